@@ -1,9 +1,18 @@
 package org.sofwerx.notdroid.util;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+
 import static org.sofwerx.sqandr.Config.isAndroid;
 
+/**
+ * Logs through android.util.Log when running on Android and to stdout otherwise. android.util.Log
+ * is looked up at runtime so that code logging through this class also runs on a plain JVM, where
+ * the notdroid.log.level system property sets the lowest priority printed.
+ */
 public class Log {
-    private Object androidLog;
+    private final static Method androidPrintln = getAndroidPrintln();
 
     /**
      * Priority constant for the println method; use Log.v.
@@ -41,8 +50,28 @@ public class Log {
             "Assertion FAILED"
     };
 
-    public android.util.Log toAndroid() {
-        return (android.util.Log) this.androidLog;
+    private final static int minPriority = Integer.getInteger("notdroid.log.level",VERBOSE); //only used off Android
+
+    private static Method getAndroidPrintln() {
+        if (!isAndroid())
+            return null;
+        try {
+            return Class.forName("android.util.Log").getMethod("println",int.class,String.class,String.class);
+        } catch (ClassNotFoundException | NoSuchMethodException ignore) {
+            return null;
+        }
+    }
+
+    private static void println(int priority, String tag, String msg) {
+        if (androidPrintln != null) {
+            try {
+                androidPrintln.invoke(null,priority,tag,msg);
+                return;
+            } catch (ReflectiveOperationException | RuntimeException ignore) {
+            }
+        }
+        if (priority >= minPriority)
+            log(Levels[priority], tag, msg);
     }
 
     public static void log(String lvl, String tag, String msg) {
@@ -50,42 +79,34 @@ public class Log {
     }
 
     public static void e(String tag, String msg) {
-        if (isAndroid()) {
-            android.util.Log.e(tag, msg);
-        } else {
-            log(Levels[ERROR], tag, msg);
-        }
+        println(ERROR, tag, msg);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        println(ERROR, tag, msg + '\n' + getStackTraceString(tr));
+    }
+
+    public static String getStackTraceString(Throwable tr) {
+        if (tr == null)
+            return "";
+        StringWriter sw = new StringWriter();
+        tr.printStackTrace(new PrintWriter(sw));
+        return sw.toString();
     }
 
     public static void w(String tag, String msg) {
-        if (isAndroid()) {
-            android.util.Log.w(tag, msg);
-        } else {
-            log(Levels[WARN], tag, msg);
-        }
+        println(WARN, tag, msg);
     }
 
     public static void i(String tag, String msg) {
-        if (isAndroid()) {
-            android.util.Log.i(tag, msg);
-        } else {
-            log(Levels[INFO], tag, msg);
-        }
+        println(INFO, tag, msg);
     }
 
     public static void d(String tag, String msg) {
-        if (isAndroid()) {
-            android.util.Log.d(tag, msg);
-        } else {
-            log(Levels[DEBUG], tag, msg);
-        }
+        println(DEBUG, tag, msg);
     }
 
     public static void v(String tag, String msg) {
-        if (isAndroid()) {
-            android.util.Log.v(tag, msg);
-        } else {
-            log(Levels[VERBOSE], tag, msg);
-        }
+        println(VERBOSE, tag, msg);
     }
 }
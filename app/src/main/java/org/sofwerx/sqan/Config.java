@@ -9,9 +9,11 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.sofwerx.sqan.manet.common.MacAddress;
+import org.sofwerx.sqan.manet.common.MeshState;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.VpnForwardValue;
 import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
 import org.sofwerx.sqan.util.CommsLog;
 import org.sofwerx.sqan.util.UuidUtil;
 import org.sofwerx.sqandr.sdr.SdrConfig;
@@ -44,6 +46,10 @@ public class Config {
     public final static String PREFS_VPN_FORWARD = "vpnfwd";
     public final static String PREFS_VPN_AUTO_ADD = "vpnautoadd";
     public final static String PREFS_VPN_FORWARDED_IPS = "vpnfwdips";
+    public final static String PREFS_VPN_COMPRESS_BT = "vpnrohcbt";
+    public final static String PREFS_VPN_COMPRESS_SDR = "vpnrohcsdr";
+    public final static String PREFS_VPN_COMPRESS_WIFI = "vpnrohcwifi";
+    public final static String PREFS_MPR_RELAY = "mpr";
     public final static String PREFS_WRITE_LOG = "log";
     public final static String PREFS_WARN_INCOMPLETE = "incomplete";
     public final static String PREFS_SDR_SETTINGS = "sdrsettings";
@@ -62,9 +68,12 @@ public class Config {
     private static boolean warnIncomplete = true;
     private static boolean ignore0000 = true;
     private static boolean largeDataWiFiOnly = true;
+    private static boolean vpnCompressBt = true;
+    private static boolean vpnCompressSdr = true;
+    private static boolean vpnCompressWiFi = false;
+    private static boolean mprRelay = true;
     private static boolean silent = false;
     private static int mtuSize = 1500;
-    private static SqAnDevice thisDevice = null;
     private static ArrayList<SavedTeammate> savedTeammates;
     private static String passcode;
 
@@ -82,11 +91,12 @@ public class Config {
         edit.putString(PREFS_UUID_EXTENDED,uuidExtended);
         edit.putString(PREFS_CALLSIGN,callsign);
         edit.apply();
-        thisDevice = new SqAnDevice();
+        SqAnDevice thisDevice = new SqAnDevice();
         thisDevice.setUUID(uuid);
         SqAnDevice.remove(thisDevice); //dont list this device in the list of other devices
         thisDevice.setUuidExtended(uuidExtended);
         thisDevice.setCallsign(callsign);
+        MeshState.get().setThisDevice(thisDevice);
         loadVpnForwardingIps(context);
         String rawTeam = prefs.getString(PREFS_SAVED_TEAM,null);
         if (rawTeam != null) {
@@ -156,7 +166,7 @@ public class Config {
                             out = new ArrayList<>();
                         VpnForwardValue value = new VpnForwardValue((byte) (forwaredAs & 0xFF), trueIp);
                         out.add(value);
-                        thisDevice.addVpnForwardValue(value);
+                        getThisDevice().addVpnForwardValue(value);
                     }
                 }
             } catch (JSONException e) {
@@ -167,6 +177,7 @@ public class Config {
     }
 
     public static void loadVpnForwardingIps(Context context) {
+        SqAnDevice thisDevice = getThisDevice();
         if (thisDevice == null)
             return;
         ArrayList<VpnForwardValue> values = getStoredVpnForwarding(context);
@@ -216,6 +227,10 @@ public class Config {
         ignore0000 = prefs.getBoolean(PREFS_IGNORE_0_0_0_0,true);
         silent = prefs.getBoolean(PREFS_SDR_LISTEN_ONLY,false);
         largeDataWiFiOnly = prefs.getBoolean(PREFS_LARGE_DATA_WIFI_ONLY,true);
+        vpnCompressBt = prefs.getBoolean(PREFS_VPN_COMPRESS_BT,true);
+        vpnCompressSdr = prefs.getBoolean(PREFS_VPN_COMPRESS_SDR,true);
+        vpnCompressWiFi = prefs.getBoolean(PREFS_VPN_COMPRESS_WIFI,false);
+        mprRelay = prefs.getBoolean(PREFS_MPR_RELAY,true);
         try {
             mtuSize = Integer.parseInt(prefs.getString(PREFS_VPN_MTU, "1500"));
         } catch (NumberFormatException e) {
@@ -362,7 +377,7 @@ public class Config {
     public static boolean isBroadcastSa() { return broadcastSa; }
     public static boolean isDebugMode() { return debugMode; }
     public static boolean isDebugConnections() { return includeConnections; }
-    public static SqAnDevice getThisDevice() { return thisDevice; }
+    public static SqAnDevice getThisDevice() { return MeshState.get().getThisDevice(); }
 
     public static boolean isStartOnReboot(Context context) {
         return PreferenceManager.getDefaultSharedPreferences(context)
@@ -512,6 +527,35 @@ public class Config {
     }
     public static boolean isIgnoringPacketsTo0000() { return ignore0000; }
     public static boolean isLargeDataWiFiOnly() { return largeDataWiFiOnly; }
+
+    /**
+     * Should VPN traffic headed over this transport have its IP/UDP/TCP headers compressed (only
+     * ever done toward a known device that advertises it can restore them)
+     * @param transport
+     * @return
+     */
+    public static boolean isVpnHeaderCompression(TransportPreference transport) {
+        if (transport == null)
+            return false;
+        switch (transport) {
+            case BLUETOOTH:
+                return vpnCompressBt;
+            case SDR:
+                return vpnCompressSdr;
+            case WIFI:
+                return vpnCompressWiFi;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Should broadcasts only be relayed by the devices chosen as multipoint relays (rather than
+     * by every device that hears them)
+     * @return
+     */
+    public static boolean isMprRelayEnabled() { return mprRelay; }
+    public static void setMprRelayEnabled(boolean enabled) { mprRelay = enabled; }
     public static boolean isMulticastEnabled() { return multicast; }
     public static int getMtuSize() { return mtuSize; }
     public static boolean isListenOnyMode() { return silent; }
@@ -13,22 +13,35 @@ import org.sofwerx.sqan.manet.bt.BtManetV2;
 import org.sofwerx.sqan.manet.bt.helper.BTSocket;
 import org.sofwerx.sqan.manet.common.AbstractManet;
 import org.sofwerx.sqan.manet.common.ManetException;
+import org.sofwerx.sqan.manet.common.ManetType;
+import org.sofwerx.sqan.manet.common.RateController;
+import org.sofwerx.sqan.manet.common.RouteCache;
+import org.sofwerx.sqan.manet.common.SelectiveRepeat;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.Status;
+import org.sofwerx.sqan.manet.common.LinkState;
 import org.sofwerx.sqan.manet.common.packet.ChannelBytesPacket;
+import org.sofwerx.sqan.manet.common.packet.CompactHeartbeat;
+import org.sofwerx.sqan.manet.common.packet.DedupCache;
 import org.sofwerx.sqan.manet.common.packet.DisconnectingPacket;
 import org.sofwerx.sqan.manet.common.packet.HeartbeatPacket;
 import org.sofwerx.sqan.manet.common.packet.PacketHeader;
 import org.sofwerx.sqan.manet.common.packet.RawBytesPacket;
+import org.sofwerx.sqan.manet.common.packet.PingPacket;
+import org.sofwerx.sqan.manet.common.packet.ReliablePacket;
+import org.sofwerx.sqan.manet.common.packet.SegmentTool;
 import org.sofwerx.sqan.manet.common.packet.VpnPacket;
 import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
+import org.sofwerx.sqan.manet.common.sockets.server.ClientHandler;
 import org.sofwerx.sqan.manet.nearbycon.NearbyConnectionsManet;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.sdr.SdrManet;
 import org.sofwerx.sqan.manet.wifiaware.WiFiAwareManetV2;
 import org.sofwerx.sqan.manet.wifidirect.WiFiDirectManet;
 import org.sofwerx.sqan.util.CommsLog;
+import org.sofwerx.sqan.util.Metrics;
 import org.sofwerx.sqan.util.StringUtil;
+import org.sofwerx.sqan.util.TransmittedTally;
 
 import static androidx.constraintlayout.widget.Constraints.TAG;
 
@@ -42,9 +55,6 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
     private AbstractManet wifiManet;
     private BtManetV2 btManet;
     private SdrManet sdrManet;
-    private static long transmittedByteTally = 0l;
-    private static long nextLoggerTransmittedBytes = 0l;
-    private final static long BYTES_TO_TX_BETWEEN_LOGGING = 1024l * 1024l;
     private HandlerThread manetThread; //the MANET itself runs on this thread where possible
     private Handler handler;
     private boolean shouldBeActive = true;
@@ -57,6 +67,30 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
     private static long totalMeshDegradedTime = 0l;
     private static long totalMeshDownTime = 0l;
 
+    private final SelectiveRepeat arq = new SelectiveRepeat(new SelectiveRepeat.Link() {
+        @Override
+        public void transmit(AbstractPacket packet, TransportPreference preferredTransport) { ManetOps.this.transmit(packet,preferredTransport); }
+
+        @Override
+        public long getRetransmitTimeout(int destination) {
+            SqAnDevice device = SqAnDevice.findByUUID(destination);
+            if (device == null)
+                return SqAnDevice.DEFAULT_RETRANSMIT_TIMEOUT;
+            return device.getRetransmitTimeout();
+        }
+    });
+    private final Runnable arqTimer = () -> {
+        arq.onTimer(System.currentTimeMillis());
+        scheduleArq();
+    };
+    private final Runnable rttProbe = new Runnable() {
+        @Override
+        public void run() {
+            probeRoundTrips();
+            if (handler != null)
+                handler.postDelayed(this,RateController.RTT_PROBE_INTERVAL);
+        }
+    };
     private long noiseReported = Long.MIN_VALUE;
     private int droppedPackets = 0;
     private long dropStartTime = Long.MIN_VALUE;
@@ -65,6 +99,7 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
 
     public ManetOps(SqAnService sqAnService) {
         this.sqAnService = sqAnService;
+        registerMetrics();
         //this.manetOps = this;
         manetThread = new HandlerThread("ManetOps") {
             @Override
@@ -361,6 +396,8 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
                         sqAnService.onStatusChange(Status.ERROR, e.getMessage());
                     }
                 }
+                handler.removeCallbacks(rttProbe);
+                handler.postDelayed(rttProbe,RateController.RTT_PROBE_INTERVAL);
             });
         }
     }
@@ -373,6 +410,15 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
 
     @Override
     public void onRx(final AbstractPacket packet) {
+        if (packet instanceof ReliablePacket) {
+            if (packet.getSqAnDestination() == Config.getThisDevice().getUUID()) {
+                AbstractPacket wrapped = arq.onReceived((ReliablePacket)packet,System.currentTimeMillis());
+                scheduleArq();
+                if (wrapped != null)
+                    onRx(wrapped);
+            }
+            return;
+        }
         if (packet != null) {
             if (handler != null)
                 handler.post(() -> {
@@ -392,6 +438,7 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
                     if (packet instanceof DisconnectingPacket) {
                         SqAnDevice outgoing = SqAnDevice.findByUUID(((DisconnectingPacket) packet).getUuidOfDeviceLeaving());
                         if (outgoing != null) {
+                            arq.forget(outgoing.getUUID());
                             if (outgoing.getCallsign() == null)
                                 Log.d(Config.TAG, Integer.toString(outgoing.getUUID()) + " reporting leaving mesh");
                             else
@@ -449,28 +496,14 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
             return;
         if (handler != null)
             handler.post(() -> {
-                //TODO decide if packet should be dropped or resent; maybe check network health as well
+                if (packet instanceof ReliablePacket) {
+                    arq.onTxFailed((ReliablePacket)packet,System.currentTimeMillis());
+                    scheduleArq();
+                } else
+                    Log.d(Config.TAG,packet.getClass().getSimpleName()+" could not be sent; only packets that are not lossy are resent");
             });
     }
 
-    /**
-     * Used to keep a running total of transmitted data
-     * @param bytes
-     */
-    public static void addBytesToTransmittedTally(int bytes) {
-        transmittedByteTally += bytes;
-        if (transmittedByteTally > nextLoggerTransmittedBytes) {
-            nextLoggerTransmittedBytes = transmittedByteTally + BYTES_TO_TX_BETWEEN_LOGGING;
-            CommsLog.log(CommsLog.Entry.Category.CONNECTION,StringUtil.toDataSize(transmittedByteTally)+" transmitted");
-        }
-    }
-
-    /**
-     * Gets the total tally of bytes transmitted
-     * @return
-     */
-    public static long getTransmittedByteTally() { return transmittedByteTally; }
-
     @Override
     public void onDevicesChanged(final SqAnDevice device) {
         if (handler != null)
@@ -533,12 +566,96 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
     public AbstractManet getWifiManet() { return wifiManet; }
     public AbstractManet getBtManet() { return btManet; }
     public SdrManet getSdrManet() { return sdrManet; }
+    public SelectiveRepeat getArq() { return arq; }
+
+    /**
+     * Reports the counts kept by other parts of SqAN through Metrics
+     */
+    private void registerMetrics() {
+        Metrics.counter("sqan_transmitted_bytes_total","Bytes handed to any transport",TransmittedTally::get);
+        Metrics.counter("sqan_duplicates_total","Packets recognized as already seen",DedupCache::getTotalHits);
+        Metrics.counter("sqan_unique_packets_total","Packets checked for duplicates that had not been seen",DedupCache::getTotalMisses);
+        Metrics.counter("sqan_relays_total","Broadcasts by whether this device relayed them as a multipoint relay",LinkState::getRelaysAllowed,"result","relayed");
+        Metrics.counter("sqan_relays_total","Broadcasts by whether this device relayed them as a multipoint relay",LinkState::getRelaysSuppressed,"result","suppressed");
+        Metrics.counter("sqan_wifi_forwards_avoided_total","Packets the WiFi server did not forward to clients that did not need them",ClientHandler::getForwardsAvoided);
+        Metrics.gauge("sqan_wifi_clients","Clients connected to the WiFi server",ClientHandler::getActiveConnectionCount);
+        Metrics.counter("sqan_heartbeat_bytes_total","Bytes of compact heartbeats encoded",() -> CompactHeartbeat.getEncoder().getBytesEncoded());
+        Metrics.counter("sqan_heartbeat_keyframes_total","Compact heartbeats sent with the full relay list",() -> CompactHeartbeat.getEncoder().getKeyframes());
+        Metrics.counter("sqan_arq_packets_total","Reliable delivery by event",arq::getPacketsSent,"event","sent");
+        Metrics.counter("sqan_arq_packets_total","Reliable delivery by event",arq::getResends,"event","resent");
+        Metrics.counter("sqan_arq_packets_total","Reliable delivery by event",arq::getPacketsDelivered,"event","delivered");
+        Metrics.counter("sqan_arq_packets_total","Reliable delivery by event",arq::getDuplicates,"event","duplicate");
+        Metrics.counter("sqan_arq_packets_total","Reliable delivery by event",arq::getPacketsAbandoned,"event","abandoned");
+        Metrics.counter("sqan_arq_packets_total","Reliable delivery by event",arq::getPacketsUnreliable,"event","unreliable");
+        Metrics.counter("sqan_arq_acks_total","Acknowledgements sent for reliable delivery",arq::getAcksSent);
+    }
 
     public void burst(AbstractPacket packet) {
         burst(packet, TransportPreference.AGNOSTIC);
     }
 
     public void burst(final AbstractPacket packet, final TransportPreference preferredTransport) {
+        if (SelectiveRepeat.isApplicable(packet)) {
+            arq.send(packet,preferredTransport,System.currentTimeMillis());
+            scheduleArq();
+            return;
+        }
+        transmit(packet,preferredTransport);
+    }
+
+    /**
+     * Runs the reliable delivery timer when it next has something to do
+     */
+    private void scheduleArq() {
+        if (handler == null)
+            return;
+        final long next = arq.getNextDue();
+        handler.removeCallbacks(arqTimer);
+        if (next != Long.MAX_VALUE)
+            handler.postDelayed(arqTimer,Math.max(0l,next - System.currentTimeMillis()));
+    }
+
+    /**
+     * Pings the neighbors at the other end of links that are carrying traffic but have gone
+     * without a round trip measurement, so their pacing can see data queuing in the link
+     */
+    private void probeRoundTrips() {
+        if (Config.getThisDevice() == null)
+            return;
+        final int thisUuid = Config.getThisDevice().getUUID();
+        for (RateController link:RateController.getRttNeeded()) {
+            TransportPreference transport;
+            switch (link.getType()) {
+                case BT_ONLY:
+                    transport = TransportPreference.BLUETOOTH;
+                    break;
+
+                case SDR:
+                    transport = TransportPreference.SDR;
+                    break;
+
+                default:
+                    transport = TransportPreference.WIFI;
+            }
+            transmit(new PingPacket(thisUuid,link.getUuid()),transport);
+        }
+    }
+
+    /**
+     * Is Bluetooth unable to take more traffic toward this neighbor right now
+     * @param nextHop the neighbor the packet goes to first (or PacketHeader.BROADCAST_ADDRESS, which
+     *                is also SqAnDevice.UNASSIGNED_UUID, if it goes out over every link)
+     * @return
+     */
+    private static boolean isBtCongested(int nextHop) {
+        if (BTSocket.isCongested())
+            return true;
+        if (nextHop == PacketHeader.BROADCAST_ADDRESS)
+            return RateController.isFull(ManetType.BT_ONLY); //each link's own queue sheds lossy data, so only hold back when no link has room
+        return RateController.isFull(ManetType.BT_ONLY,nextHop);
+    }
+
+    private void transmit(final AbstractPacket packet, final TransportPreference preferredTransport) {
         if (packet == null) {
             Log.d(Config.TAG, "ManetOps cannot burst a null packet");
             return;
@@ -555,34 +672,34 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
                             boolean sdrGood = (sdrManet != null) && (sdrManet.getStatus() == Status.CONNECTED);
                             if (btGood && wifiGood) {
                                 if (packet.isHighPerformanceNeeded())
-                                    wifiManet.burst(packet);
+                                    wifiManet.send(packet);
                                 else {
                                     if (PacketHeader.BROADCAST_ADDRESS == packet.getSqAnDestination()) {
-                                        wifiManet.burst(packet);
-                                        if (!BTSocket.isCongested() && (!Config.isLargeDataWiFiOnly() || !packet.isHighPerformanceNeeded()))
-                                            btManet.burst(packet);
+                                        wifiManet.send(packet);
+                                        if (!isBtCongested(PacketHeader.BROADCAST_ADDRESS) && (!Config.isLargeDataWiFiOnly() || !packet.isHighPerformanceNeeded()))
+                                            btManet.send(packet);
                                     } else {
-                                        SqAnDevice device = SqAnDevice.findByUUID(packet.getSqAnDestination());
-                                        if (device == null) {
-                                            wifiManet.burst(packet);
-                                            if (!BTSocket.isCongested())
-                                                btManet.burst(packet);
+                                        RouteCache.Route route = RouteCache.getRoute(packet.getSqAnDestination());
+                                        if (route == null) {
+                                            wifiManet.send(packet);
+                                            if (!isBtCongested(PacketHeader.BROADCAST_ADDRESS)) //no route, so it is flooded over every link
+                                                btManet.send(packet);
                                         } else {
-                                            if (BTSocket.isCongested())
-                                                wifiManet.burst(packet);
+                                            if (isBtCongested(route.getNextHop()))
+                                                wifiManet.send(packet);
                                             else {
-                                                switch (device.getPreferredTransport()) {
+                                                switch (route.getTransport()) {
                                                     case WIFI:
-                                                        wifiManet.burst(packet);
+                                                        wifiManet.send(packet);
                                                         break;
 
                                                     case BLUETOOTH:
-                                                        btManet.burst(packet);
+                                                        btManet.send(packet);
                                                         break;
 
                                                     default:
-                                                        wifiManet.burst(packet);
-                                                        btManet.burst(packet);
+                                                        wifiManet.send(packet);
+                                                        btManet.send(packet);
                                                 }
                                             }
                                         }
@@ -591,46 +708,46 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
                             } else {
                                 //at least one mesh isn't completely healthy so send over both
                                 if (wifiManet != null)
-                                    wifiManet.burst(packet);
+                                    wifiManet.send(packet);
                                 if ((btManet != null) && (!Config.isLargeDataWiFiOnly() || !packet.isHighPerformanceNeeded()))
-                                    btManet.burst(packet);
+                                    btManet.send(packet);
                                 if (sdrGood)
-                                    sdrManet.burst(packet);
+                                    sdrManet.send(packet);
                             }
                         } else {
                             if ((preferredTransport == null) || (preferredTransport == TransportPreference.ALL)) {
                                 if (wifiManet != null)
-                                    wifiManet.burst(packet);
+                                    wifiManet.send(packet);
                                 if ((btManet != null) && (!Config.isLargeDataWiFiOnly() || !packet.isHighPerformanceNeeded()))
-                                    btManet.burst(packet);
+                                    btManet.send(packet);
                                 if ((sdrManet != null))
-                                    sdrManet.burst(packet);
+                                    sdrManet.send(packet);
                             } else if (preferredTransport == TransportPreference.WIFI) {
                                 if (wifiManet != null)
-                                    wifiManet.burst(packet);
+                                    wifiManet.send(packet);
                                 else {
                                     if ((btManet != null) && (!Config.isLargeDataWiFiOnly() || !packet.isHighPerformanceNeeded()))
-                                        btManet.burst(packet);
+                                        btManet.send(packet);
                                     else if (sdrManet != null)
-                                        sdrManet.burst(packet);
+                                        sdrManet.send(packet);
                                 }
                             } else if (preferredTransport == TransportPreference.BLUETOOTH) {
                                 if ((btManet != null) && (!Config.isLargeDataWiFiOnly() || !packet.isHighPerformanceNeeded()))
-                                    btManet.burst(packet);
+                                    btManet.send(packet);
                                 else {
                                     if (wifiManet != null)
-                                        wifiManet.burst(packet);
+                                        wifiManet.send(packet);
                                     else if (sdrManet != null)
-                                        sdrManet.burst(packet);
+                                        sdrManet.send(packet);
                                 }
                             } else if (preferredTransport == TransportPreference.SDR) {
                                 if (sdrManet != null)
-                                    sdrManet.burst(packet);
+                                    sdrManet.send(packet);
                                 else {
                                     if (wifiManet != null)
-                                        wifiManet.burst(packet);
+                                        wifiManet.send(packet);
                                     else if ((btManet != null) && (!Config.isLargeDataWiFiOnly() || !packet.isHighPerformanceNeeded()))
-                                        btManet.burst(packet);
+                                        btManet.send(packet);
                                 }
                             }
                         }
@@ -677,6 +794,7 @@ public class ManetOps implements ManetListener, IpcBroadcastTransceiver.IpcBroad
                     wifiManet.executePeriodicTasks();
                 if (sdrManet != null)
                     sdrManet.executePeriodicTasks();
+                SegmentTool.cullStaleReassemblies();
                 SqAnDevice.updateDeviceRoutePreferences();
             });
     }
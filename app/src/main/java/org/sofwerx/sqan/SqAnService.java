@@ -23,13 +23,16 @@ import android.util.Log;
 
 import org.sofwerx.sqan.listeners.PeripheralStatusListener;
 import org.sofwerx.sqan.listeners.SqAnStatusListener;
+import org.sofwerx.sqan.manet.common.RouteCache;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.Status;
 import org.sofwerx.sqan.manet.common.StatusHelper;
+import org.sofwerx.sqan.manet.common.TrickleTimer;
 import org.sofwerx.sqan.manet.common.issues.AbstractManetIssue;
 import org.sofwerx.sqan.manet.common.issues.SqAnAppIssue;
 import org.sofwerx.sqan.manet.common.issues.WiFiInUseIssue;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.packet.CompactHeartbeat;
 import org.sofwerx.sqan.manet.common.packet.HeartbeatPacket;
 import org.sofwerx.sqan.manet.common.packet.VpnPacket;
 import org.sofwerx.sqan.manet.common.pnt.SpaceTime;
@@ -38,11 +41,14 @@ import org.sofwerx.sqan.receivers.BootReceiver;
 import org.sofwerx.sqan.receivers.ConnectivityReceiver;
 import org.sofwerx.sqan.receivers.PowerReceiver;
 import org.sofwerx.sqan.util.CommsLog;
+import org.sofwerx.sqan.util.Metrics;
 import org.sofwerx.sqan.util.NetUtil;
+import org.sofwerx.sqan.vpn.HeaderDecompressor;
 import org.sofwerx.sqan.vpn.SqAnVpnService;
 import org.sofwerx.sqandr.util.ContinuityGapSAR;
 
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 /**
@@ -56,11 +62,14 @@ public class SqAnService extends Service implements LocationService.LocationUpda
     private final static long INTERVAL_BETWEEN_HEALTH_CHECK = 1000l * 60l;
     private final static long MIN_TIME_BETWEEN_HEARTBEATS = 1000l * 1l;
     private final static long MAX_TIME_BETWEEN_HEARTBEATS = 1000l * 7l;
+    public final static long HELPER_INTERVAL = 1000l * 5l; //also how often each MANET's periodic tasks run
+    public final static long MIN_TIME_BETWEEN_NARROW_HEARTBEATS = HELPER_INTERVAL; //heartbeats are checked for every HELPER_INTERVAL so no shorter than that
+    public final static long MAX_TIME_BETWEEN_NARROW_HEARTBEATS = 1000l * 20l; //well inside SqAnDevice.TIME_TO_STALE so a couple of lost heartbeats don't make this device look stale
+    public final static long MAX_NARROW_HEARTBEAT_GAP = MAX_TIME_BETWEEN_NARROW_HEARTBEATS * 2l + HELPER_INTERVAL; //how long a steady narrow link can go between heartbeats (trickle sends fall in the second half of each interval, so up to 1.5 intervals apart, and are only checked for every HELPER_INTERVAL), with margin
     public final static String ACTION_STOP = "STOP";
     public final static String EXTRA_KEEP_ACTIVITY = "keepActivity";
     private final static int SQAN_NOTIFICATION_ID = 60;
     private final static int SQAN_NOTIFICATION_VPN_ACTIVITY_BUT_NOT_ON = 71;
-    private final static long HELPER_INTERVAL = 1000l * 5l;
     private final static String NOTIFICATION_CHANNEL = "sqan_notify";
 
     private PowerManager.WakeLock wakeLock;
@@ -78,14 +87,16 @@ public class SqAnService extends Service implements LocationService.LocationUpda
     private Status lastNotifiedStatus = Status.OFF; //the last status provided in a notification (used to prevent the notifications from firing multiple times when there is no meaningful status change)
     private int numDevicesInLastNotification = 0;
     private long lastPositiveOutgoingComms = Long.MIN_VALUE;
-    private int lastHeartbeatLevel = 0;
     private long nextDevicesCleanup = Long.MIN_VALUE;
     private long nextAvailableHeartbeat = Long.MIN_VALUE; //prevent multiple heartbeats from firing in close succession
     private long nextMandatoryHeartbeat = Long.MIN_VALUE;
+    private final TrickleTimer btHeartbeatTrickle = new TrickleTimer(MIN_TIME_BETWEEN_NARROW_HEARTBEATS,MAX_TIME_BETWEEN_NARROW_HEARTBEATS);
+    private int heartbeatTopologyVersion = RouteCache.getTopologyVersion();
     private long nextHealthCheck = Long.MIN_VALUE;
     private LocationService locationService;
     private SqAnVpnService vpnService;
     private int missedVpnPacketCount = 0;
+    private final HeaderDecompressor vpnDecompressor = new HeaderDecompressor();
     private long nextNoiseNotificationWindow = Long.MIN_VALUE;
     private final static long TIME_BETWEEN_NOISE_NOTIFICATIONS = 1000l * 60l * 5l;
 
@@ -145,6 +156,9 @@ public class SqAnService extends Service implements LocationService.LocationUpda
         CommsLog.init(this);
         Config.init(this);
         manetOps = new ManetOps(this);
+        Metrics.counter("sqan_vpn_decompressor_packets_total","VPN packets by what header decompression did with them",vpnDecompressor::getPacketsRestored,"result","restored");
+        Metrics.counter("sqan_vpn_decompressor_packets_total","VPN packets by what header decompression did with them",vpnDecompressor::getPacketsDropped,"result","dropped");
+        Metrics.counter("sqan_vpn_decompressor_context_failures_total","Compressed VPN packets that arrived without a usable flow context",vpnDecompressor::getContextFailures);
         ExceptionHelper.set();
         alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
         powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
@@ -241,11 +255,26 @@ public class SqAnService extends Service implements LocationService.LocationUpda
 
     public void requestHeartbeat() { requestHeartbeat(false); }
 
+    /**
+     * Sends a heartbeat on each link if one is due. WiFi gets a MEDIUM heartbeat at least every
+     * MAX_TIME_BETWEEN_HEARTBEATS. Bluetooth heartbeats follow a trickle schedule instead: they
+     * back off while the mesh is stable and speed back up when the topology changes or another
+     * device needs this device's full heartbeat, and are COMPACT once every Bluetooth neighbor can
+     * read that. SdrManet schedules the SDR's heartbeats the same way.
+     * @param force true == send a full (MEDIUM) heartbeat now over every link
+     */
     public void requestHeartbeat(boolean force) {
         if (force) {
             burst(new HeartbeatPacket(Config.getThisDevice(),HeartbeatPacket.DetailLevel.MEDIUM));
             return;
         }
+        if (manetOps.getWifiManet() != null)
+            requestWiFiHeartbeat();
+        if (manetOps.getBtManet() != null)
+            requestBtHeartbeat();
+    }
+
+    private void requestWiFiHeartbeat() {
         if ((System.currentTimeMillis() > lastPositiveOutgoingComms + MAX_INTERVAL_BETWEEN_COMMS) || (System.currentTimeMillis() > nextMandatoryHeartbeat)) {
             if (System.currentTimeMillis() < nextAvailableHeartbeat) {
                 Log.d(Config.TAG,"A heartbeat was just requested so this heartbeat request is being skipped.");
@@ -253,26 +282,22 @@ public class SqAnService extends Service implements LocationService.LocationUpda
             }
             nextAvailableHeartbeat = System.currentTimeMillis() + MIN_TIME_BETWEEN_HEARTBEATS;
             nextMandatoryHeartbeat = System.currentTimeMillis() + MAX_TIME_BETWEEN_HEARTBEATS;
-            //if (lastHeartbeatLevel == 0)
-                burst(new HeartbeatPacket(Config.getThisDevice(),HeartbeatPacket.DetailLevel.MEDIUM));
-            /*if (lastHeartbeatLevel == 1) {
-                //FIXME PingPackets arent working
-                //ArrayList<SqAnDevice> devices = SqAnDevice.getDevices();
-                //if ((devices != null) && !devices.isEmpty()) {
-                //    //randomly distribute ping requests
-                //    int index = random.nextInt(devices.size());
-                //    SqAnDevice device = devices.get(index);
-                //    if (device.isActive())
-                //        burst(new PingPacket(Config.getThisDevice().getUUID(),device.getUUID()));
-                //}
-            } */
-            //else
-            //    burst(new HeartbeatPacket(Config.getThisDevice(),HeartbeatPacket.DetailLevel.BASIC));
-            lastHeartbeatLevel++;
-            if (lastHeartbeatLevel > 2)
-                lastHeartbeatLevel = 0;
+            burst(new HeartbeatPacket(Config.getThisDevice(),HeartbeatPacket.DetailLevel.MEDIUM),TransportPreference.WIFI);
         } else
-            Log.d(Config.TAG,"SqAnService.requestHeartbeat(), but no heartbeat needed right now");
+            Log.d(Config.TAG,"SqAnService.requestHeartbeat(), but no WiFi heartbeat needed right now");
+    }
+
+    private void requestBtHeartbeat() {
+        final long now = System.currentTimeMillis();
+        final int topologyVersion = RouteCache.getTopologyVersion();
+        if ((topologyVersion != heartbeatTopologyVersion) || CompactHeartbeat.getEncoder().isUrgent()) {
+            heartbeatTopologyVersion = topologyVersion;
+            btHeartbeatTrickle.reset(now);
+        }
+        if (btHeartbeatTrickle.isDue(now))
+            burst(new HeartbeatPacket(Config.getThisDevice(),HeartbeatPacket.getNarrowLinkLevel(TransportPreference.BLUETOOTH)),TransportPreference.BLUETOOTH);
+        else
+            Log.d(Config.TAG,"SqAnService.requestHeartbeat(), but no Bluetooth heartbeat needed right now (interval "+btHeartbeatTrickle.getInterval()+"ms)");
     }
 
     public static void onIssueDetected(AbstractManetIssue issue) {
@@ -673,8 +698,17 @@ public class SqAnService extends Service implements LocationService.LocationUpda
 
     public void onRxVpnPacket(VpnPacket packet) {
         if (packet != null) {
+            ByteBuffer data = packet.getDataBuffer();
+            if (packet.isCompressed()) {
+                //decompressed even if the VPN is not running so the header contexts stay current
+                data = vpnDecompressor.decompress(packet.getOrigin(),packet.getSqAnDestination(),data);
+                if (data == null) {
+                    Log.w(Config.TAG,"Unable to decompress VpnPacket from "+packet.getOrigin());
+                    return;
+                }
+            }
             if (vpnService != null)
-                vpnService.onReceived(packet.getData());
+                vpnService.onReceived(data); //written straight from the received buffer
             else {
                 missedVpnPacketCount++;
                 if (missedVpnPacketCount == 2)
@@ -18,13 +18,15 @@ import org.sofwerx.sqan.manet.common.packet.RawBytesPacket;
 /**
  * Simple mechanism to support SqAN broadcasts based on IPC from other apps. To send/receive
  * data over SqAN, another app will register a listener (to receive) and then use broadcast()
- * to send the data to SqAN.
+ * to send the data to SqAN. Data sent to a single device (see send()) is acknowledged and resent
+ * until it gets through, but may arrive out of order.
  */
 public class IpcBroadcastTransceiver extends BroadcastReceiver {
     private final static String BROADCAST_PKT = "org.sofwerx.sqan.pkt";
     private final static String PACKET_BYTES = "bytes";
     private final static String PACKET_ORIGIN = "src";
     private final static String PACKET_CHANNEL = "channel";
+    private final static String PACKET_DESTINATION = "dest";
     private final static String RECEIVED = "rcv";
     private final static String HIGH_PERFORMANCE_ONLY = "high"; //packets marked with this will be routed through high performance pipes
     private static IpcBroadcastTransceiver receiver = null;
@@ -70,10 +72,24 @@ public class IpcBroadcastTransceiver extends BroadcastReceiver {
      * @param bytes the raw byte payload (this should be immediately parsed into an AbstractPacket
      */
     public static void broadcast(Context context, String channel, int originatorSqAnAddress, byte[] bytes) {
+        send(context,channel,originatorSqAnAddress,PacketHeader.BROADCAST_ADDRESS,bytes);
+    }
+
+    /**
+     * Sends data to SqAN to be delivered reliably to a single device
+     * @param context
+     * @param channel
+     * @param originatorSqAnAddress SqAnAddress for the message originator
+     * @param destinationSqAnAddress SqAnAddress of the device to receive the data (or PacketHeader.BROADCAST_ADDRESS for all devices)
+     * @param bytes the raw byte payload
+     */
+    public static void send(Context context, String channel, int originatorSqAnAddress, int destinationSqAnAddress, byte[] bytes) {
         if ((context != null) && (bytes != null)) {
             Intent intent = new Intent(BROADCAST_PKT);
             intent.putExtra(PACKET_BYTES,bytes);
             intent.putExtra(PACKET_ORIGIN,originatorSqAnAddress);
+            if (destinationSqAnAddress != PacketHeader.BROADCAST_ADDRESS)
+                intent.putExtra(PACKET_DESTINATION,destinationSqAnAddress);
             if (channel != null)
                 intent.putExtra(PACKET_CHANNEL,channel);
             if (isSqAn)
@@ -104,8 +120,12 @@ public class IpcBroadcastTransceiver extends BroadcastReceiver {
                             if (bundle.getBoolean(HIGH_PERFORMANCE_ONLY,false))
                                 packet.setHighPerformanceNeeded(true);
                         }
-                        if (packet != null)
-                            listener.onIpcPacketReceived(packet);
+                        final int destination = bundle.getInt(PACKET_DESTINATION,PacketHeader.BROADCAST_ADDRESS);
+                        if (destination != PacketHeader.BROADCAST_ADDRESS) {
+                            packet.setDestination(destination);
+                            packet.setLossy(false); //data for one device is worth resending
+                        }
+                        listener.onIpcPacketReceived(packet);
                     }
                 }
             }
@@ -173,8 +173,7 @@ public class BtManetV2 extends AbstractManet implements AcceptListener, DeviceCo
             return;
         }
         if (bytes.length > getMaximumPacketSize()) {
-            Log.d(TAG, "Packet larger than " + getName() + " max; segmenting and sending");
-            //TODO segment and burst
+            Log.e(TAG, "Packet larger than " + getName() + " max; dropping packet");
         } else {
             handler.post(() -> {
                 Log.d(TAG, "burst() - " + bytes.length + "b");
@@ -193,8 +192,11 @@ public class BtManetV2 extends AbstractManet implements AcceptListener, DeviceCo
                 return;
             }
         }
+        byte[] bytes = packet.toByteArray();
+        if (burstAsSegmentsIfNeeded(packet,bytes))
+            return;
         Log.d(TAG,"Bursting "+packet.getClass().getSimpleName());
-        burst(packet.toByteArray(), packet.getSqAnDestination(), packet.getOrigin());
+        burst(bytes, packet.getSqAnDestination(), packet.getOrigin());
         if (listener != null)
             listener.onTx(packet);
     }
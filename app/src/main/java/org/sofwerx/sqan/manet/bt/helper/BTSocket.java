@@ -6,10 +6,9 @@ import java.io.OutputStream;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
@@ -17,22 +16,37 @@ import android.util.Log;
 
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.SavedTeammate;
+import org.sofwerx.sqan.manet.common.LinkState;
 import org.sofwerx.sqan.manet.common.MacAddress;
+import org.sofwerx.sqan.manet.common.ManetType;
+import org.sofwerx.sqan.manet.common.RateController;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.TxScheduler;
 import org.sofwerx.sqan.manet.common.issues.PacketDropIssue;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.common.packet.PacketDropException;
 import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.packet.TrafficClass;
 import org.sofwerx.sqan.util.AddressUtil;
 import org.sofwerx.sqan.manet.common.sockets.PacketParser;
 import org.sofwerx.sqan.util.CommsLog;
+import org.sofwerx.sqan.util.Metrics;
 import org.sofwerx.sqan.util.NetUtil;
 
 public class BTSocket {
     public final static int MAX_PACKET_SIZE = 65400; //FIXME arbitrary picked size
-    private final static int POOL_WARNING_SIZE = 1000; //warn if the write queue gets bigger than this
+    private final static int POOL_WARNING_SIZE = 1000; //warn if the write queues for all sockets get bigger than this
+    private final static int MAX_QUEUED_FRAMES = 500; //max packets waiting to be written on a socket
+    private final static int BACKED_UP_SIZE = 100; //lossy packets are not sent to a socket with more than this many packets waiting
+    private final static int FRAME_OVERHEAD = 2 + 4 + 1; //alignment bytes, length, checksum
+    private final static int WRITE_BATCH_SIZE = 1024 * 16; //frames are gathered up to this size before being written
+    private final static int READ_BUFFER_SIZE = 1024 * 8;
+    private final static long WRITE_IDLE_WAIT = 1000l;
+    private final static long RATE_WINDOW = 1000l * 5l;
     private final static long MIN_TIME_BEFORE_TESTING_STALE = 1000l * 10l;
     private final static long MAX_TIME_BEFORE_STALE = 1000l * 60l * 5l;
+    private final static Metrics.Counter linkBytesWritten = Metrics.counter("sqan_link_written_bytes_total","Bytes written into the link","link","BT");
+    private final static Metrics.Histogram linkWriteTime = Metrics.histogram("sqan_link_write_ms","Time each write into the link took","link","BT");
     private final static String TAG = Config.TAG+".BTSocket";
     private static AtomicInteger connectionCounter = new AtomicInteger(0);
     private final static byte ALIGNMENT_BYTE_A = 0b0100100;
@@ -52,6 +66,16 @@ public class BTSocket {
     private long lastConnectInbound = Long.MIN_VALUE;
     private long lastConnectOutbound = Long.MIN_VALUE;
     private static AtomicInteger poolCount = new AtomicInteger(0);
+    private final TxScheduler<byte[]> writeQueue = new TxScheduler<>("BT socket",MAX_QUEUED_FRAMES);
+    private final Object writeLock = new Object();
+    private ByteBuffer frameBuffer;
+    private FrameReader frameReader;
+    private final AtomicLong bytesWritten = new AtomicLong(0l);
+    private final AtomicLong framesWritten = new AtomicLong(0l);
+    private long rateWindowStart = System.currentTimeMillis();
+    private long rateWindowBytes = 0l;
+    private volatile long writeRate = 0l;
+    private RateController unknownDeviceRate; //paces the socket until the device on the other end is known
 
     public SqAnDevice setDeviceIfNull(SqAnDevice device) {
         if (this.device == null) {
@@ -87,11 +111,9 @@ public class BTSocket {
     public enum Role {SERVER,CLIENT};
 
     private Thread readThread;
+    private Thread writeThread;
     private static ArrayList<Thread> readThreads = new ArrayList();
-    private static ExecutorService writeThread;
-
-    //private static final Object readThreadLock = new Object();
-    private static final Object writeThreadLock = new Object();
+    private static final ArrayList<Thread> writeThreads = new ArrayList<>();
 
     public BTSocket(BluetoothSocket socket, Role role, final ReadListener readListener) {
         this.thisDeviceEndpointRole = role;
@@ -151,6 +173,8 @@ public class BTSocket {
                 throw new IOException(getLogHeader()+" getOutputStream");
             }
 
+            frameReader = new FrameReader(inStream,READ_BUFFER_SIZE);
+            startWriteThread();
             readAsyncPacket(mReadListener);
         } catch (Exception e) {
             Log.e(TAG,getLogHeader()+" Unable to open streams: "+e.getMessage());
@@ -261,6 +285,10 @@ public class BTSocket {
 
                                         //relay logic
 
+                                        if ((packet.getSqAnDestination() == PacketHeader.BROADCAST_ADDRESS) && (getDevice() != null) && !LinkState.isRelayNeeded(getDevice().getUUID())) {
+                                            Log.d(TAG, getLogHeader() + " " + packet.getClass().getSimpleName() + "(origin " + packet.getOrigin()+", " + hopCount + " hops) not relayed since this device is not a multipoint relay for " + getDevice().getUUID());
+                                            continue;
+                                        }
                                         if (thisDeviceEndpointRole == Role.SERVER) {
                                             if ((hopCount == 1) || AddressUtil.isApplicableAddress(device.getUUID(), packet.getSqAnDestination()) && (hopCount < device.getHopsToDevice(packet.getOrigin()))) {
                                                 if (packet.isLossy() && BTSocket.isCongested())
@@ -275,6 +303,10 @@ public class BTSocket {
                                                 CommsLog.log(CommsLog.Entry.Category.COMMS, getLogHeader() + " " + packet.getClass().getSimpleName() + "(origin " + packet.getOrigin()+", " + hopCount + " hops) not evaluated for relay since network is congested and packet marked as lossyOk");
                                                 continue;
                                             }
+                                            if (Core.relayDedup.isDuplicate(data)) {
+                                                Log.d(TAG, getLogHeader() + " " + packet.getClass().getSimpleName() + "(origin " + packet.getOrigin()+") has already been relayed; not evaluated for relay");
+                                                continue;
+                                            }
                                             ArrayList<SqAnDevice> devices = SqAnDevice.getDevices();
                                             if (devices != null) {
                                                 for (SqAnDevice tgt : devices) {
@@ -332,25 +364,6 @@ public class BTSocket {
         return active;
     }
 
-    /**
-     * Read an Int from stream (blocking)
-     * @return int
-     * @throws IOException
-     */
-    private int readInt() throws IOException {
-        //Log.d(TAG,getLogHeader()+" readInt()");
-        byte[] byteInt = new byte[4];
-        if (inStream == null)
-            throw new IOException(getLogHeader()+" Cannot readInt(), inStream is null");
-        try {
-            inStream.read(byteInt);
-        } catch (Exception e) {
-            throw new IOException(getLogHeader()+" Error in readInt(): "+e.getMessage());
-        }
-        //Log.d(TAG,getLogHeader()+" readInt() received data");
-        return ByteBuffer.wrap(byteInt).getInt();
-    }
-
     /**
      * Reads until a specific byte is found; should be the first byte read, but this is implemented
      * to get the stream back in sync if noise is introduced
@@ -358,16 +371,17 @@ public class BTSocket {
      */
     private void readAlignmentByte() throws IOException {
         Log.d(TAG,getLogHeader()+" readAlignmentByte()");
-        if (inStream == null)
+        final FrameReader reader = frameReader;
+        if (reader == null)
             throw new IOException(getLogHeader()+" Cannot readAlignmentByte(), inStream is null");
         try {
             int shift = 0;
             boolean found = false;
             while (!found) {
-                while (inStream.read() != ALIGNMENT_BYTE_A) {
+                while (reader.readByte() != ALIGNMENT_BYTE_A) {
                     shift++;
                 }
-                found = inStream.read() == ALIGNMENT_BYTE_B;
+                found = reader.readByte() == ALIGNMENT_BYTE_B;
             }
             if (shift > 0) {
                 Log.w(TAG, getLogHeader() + " alignment byte not found where expected; packet start shifted by " + shift + "b");
@@ -389,17 +403,20 @@ public class BTSocket {
     private byte[] readPacketData() throws IOException, PacketDropException {
         //Log.d(TAG,getLogHeader()+" readPacketData()");
         readAlignmentByte();
-        int size = readInt();
+        final FrameReader reader = frameReader;
+        if (reader == null)
+            throw new IOException(getLogHeader()+" Cannot readPacketData(), inStream is null");
+        int size = reader.readInt();
         if (size > 0) {
             if (size > MAX_PACKET_SIZE) {
                 String message = getLogHeader()+" readPacketData() is reporting a packet size of "+size+" which seems invalid. Packet being dropped...";
                 Log.e(TAG, message);
                 throw new IOException(message);
             }
-            byte[] data = new byte[size];
+            byte[] data = new byte[size]; //not taken from the reusable buffer since the packet is handed off for processing and relay
             //Log.d(TAG,getLogHeader()+" readPacketData() looking for "+size+"b payload");
-            inStream.read(data);
-            byte checksum = (byte)inStream.read();
+            reader.readFully(data);
+            byte checksum = (byte)reader.readByte();
             byte calculatedChecksum = NetUtil.getChecksum(data);
             if (checksum != calculatedChecksum) {
                 throw new PacketDropException(getLogHeader() + " received a packet that did not have the proper checksum (" + calculatedChecksum + " expected but " + checksum + " received)");
@@ -415,49 +432,184 @@ public class BTSocket {
     }
 
     /**
-     * Writes the raw data but also wraps it in the alignment byte, the length of the data, and checksum needed for reading
-     * and error checking
+     * Queues the raw data to be written; the writer wraps it in the alignment bytes, the length of
+     * the data, and the checksum needed for reading and error checking. Data is queued by traffic
+     * class so control traffic goes out first and lossy data is dropped first if the link gets backed up.
      * @param data
-     * @throws IOException
+     * @return true == the data was queued
      */
-    public void write(final byte[] data) {
-        synchronized (writeThreadLock) {
-            if (writeThread==null) {
-                writeThread = Executors.newSingleThreadExecutor();
-                Log.d(TAG, getLogHeader()+"writeThread created");
-            }
+    public boolean write(final byte[] data) {
+        if (data == null)
+            return false;
+        boolean lossy = (data.length >= PacketHeader.getSize()) && PacketHeader.isLossyOk(ByteBuffer.wrap(data));
+        boolean queued;
+        synchronized (writeLock) {
+            final int before = writeQueue.size();
+            queued = writeQueue.offer(data,data.length,TrafficClass.ofPacket(data),lossy);
+            poolCount.addAndGet(writeQueue.size() - before);
+            writeLock.notifyAll();
         }
-        poolCount.incrementAndGet();
-        writeThread.execute(() -> {
-            try {
-                if (data == null)
-                    throw new IOException(getLogHeader()+" Cannot write as data is null");
-                if (outStream == null)
-                    throw new IOException(getLogHeader()+" Cannot write as outStream is null");
-                outStream.write(ALIGNMENT_BYTE_A);
-                outStream.write(ALIGNMENT_BYTE_B);
-                byte[] length = NetUtil.intToByteArray(data.length);
-                //outStream.write(ALIGNMENT_BYTE_C);
-                //outStream.write(ALIGNMENT_BYTE_D);
-                outStream.write(length);
-                outStream.write(data);
-                byte checksum = NetUtil.getChecksum(data);
-                outStream.write(checksum);
-                lastConnectOutbound = System.currentTimeMillis();
-            } catch (IOException e) {
-                Log.d(TAG, getLogHeader()+" writeThread error: "+e.getMessage());
-                if (e != null) {
-                    String message = e.getMessage();
-                    if ((message != null) && message.contains("Broken")) {
-                        keepGoing.set(false);
-                        close();
+        if (!queued)
+            Log.d(TAG, getLogHeader()+" write queue full, dropping "+data.length+"b packet");
+        if (poolCount.get() > POOL_WARNING_SIZE)
+            CommsLog.log(CommsLog.Entry.Category.CONNECTION,"Warning, BTSocket write queue is "+poolCount.get()+" (socket #"+id+" has "+writeQueue.size()+")");
+        return queued;
+    }
+
+    /**
+     * Is the write queue for this socket backed up enough that lossy data should not be sent over it
+     * @return
+     */
+    public boolean isBackedUp() {
+        return writeQueue.size() > BACKED_UP_SIZE;
+    }
+
+    /**
+     * Gets the number of packets waiting to be written on this socket
+     * @return
+     */
+    public int getQueueDepth() { return writeQueue.size(); }
+
+    /**
+     * Gets the total bytes (including framing) written on this socket
+     * @return
+     */
+    public long getBytesWritten() { return bytesWritten.get(); }
+
+    /**
+     * Gets the number of packets written on this socket
+     * @return
+     */
+    public long getFramesWritten() { return framesWritten.get(); }
+
+    /**
+     * Gets the recent write throughput on this socket
+     * @return bytes per second
+     */
+    public long getWriteRate() { return writeRate; }
+
+    public TxScheduler<byte[]> getWriteQueue() { return writeQueue; }
+
+    private void startWriteThread() {
+        if (writeThread != null)
+            return;
+        writeThread = new Thread() {
+            @Override
+            public void run() {
+                Log.d(TAG, getLogHeader()+" writeThread created");
+                while (keepGoing.get()) {
+                    try {
+                        synchronized (writeLock) {
+                            while (keepGoing.get() && writeQueue.isEmpty()) {
+                                writeLock.wait(WRITE_IDLE_WAIT);
+                            }
+                        }
+                        final long delay = getRateController().getDelay(System.currentTimeMillis());
+                        if (delay > 0l)
+                            Thread.sleep(delay);
+                        drainWriteQueue();
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (IOException e) {
+                        Log.d(TAG, getLogHeader()+" writeThread error: "+e.getMessage());
+                        String message = e.getMessage();
+                        if ((message != null) && message.contains("Broken")) {
+                            keepGoing.set(false);
+                            close();
+                        }
                     }
                 }
-            } finally {
-                if (poolCount.decrementAndGet() > POOL_WARNING_SIZE)
-                    CommsLog.log(CommsLog.Entry.Category.CONNECTION,"Warning, BTSocket write queue is "+poolCount.get());
+                Log.d(TAG,getLogHeader()+" writeThread closing...");
+                synchronized (writeThreads) {
+                    writeThreads.remove(this);
+                }
             }
-        });
+        };
+        synchronized (writeThreads) {
+            writeThreads.add(writeThread);
+        }
+        writeThread.start();
+    }
+
+    /**
+     * Gets the rate controller pacing this socket
+     * @return
+     */
+    public RateController getRateController() {
+        SqAnDevice remote = device;
+        if ((remote != null) && remote.isUuidKnown())
+            return RateController.get(ManetType.BT_ONLY,remote.getUUID());
+        if (unknownDeviceRate == null)
+            unknownDeviceRate = new RateController("BT socket #"+id);
+        return unknownDeviceRate;
+    }
+
+    /**
+     * Frames what is queued into the reusable frame buffer and writes it out in as few calls to
+     * the stream as possible, stopping once the link's pacing calls for a wait
+     * @throws IOException
+     */
+    private void drainWriteQueue() throws IOException {
+        final RateController rate = getRateController();
+        if (frameBuffer == null)
+            frameBuffer = ByteBuffer.allocate(WRITE_BATCH_SIZE);
+        frameBuffer.clear();
+        byte[] next;
+        while ((next = pollWriteQueue()) != null) {
+            final int frameSize = next.length + FRAME_OVERHEAD;
+            if (frameBuffer.remaining() < frameSize) {
+                flushFrames(rate);
+                if (frameBuffer.capacity() < frameSize)
+                    frameBuffer = ByteBuffer.allocate(frameSize);
+            }
+            frameBuffer.put(ALIGNMENT_BYTE_A);
+            frameBuffer.put(ALIGNMENT_BYTE_B);
+            frameBuffer.putInt(next.length);
+            frameBuffer.put(next);
+            frameBuffer.put(NetUtil.getChecksum(next));
+            framesWritten.incrementAndGet();
+            final long now = System.currentTimeMillis();
+            rate.onSent(frameSize,now);
+            if (rate.getDelay(now) > 0l)
+                break;
+        }
+        flushFrames(rate);
+        if (frameBuffer.capacity() > WRITE_BATCH_SIZE)
+            frameBuffer = null; //don't hold on to the space used by an unusually large packet
+    }
+
+    private byte[] pollWriteQueue() {
+        synchronized (writeLock) {
+            final int before = writeQueue.size();
+            byte[] next = writeQueue.poll();
+            poolCount.addAndGet(writeQueue.size() - before);
+            return next;
+        }
+    }
+
+    private void flushFrames(RateController rate) throws IOException {
+        final int length = frameBuffer.position();
+        if (length == 0)
+            return;
+        final OutputStream out = outStream;
+        frameBuffer.clear();
+        if (out == null)
+            throw new IOException(getLogHeader()+" Cannot write as outStream is null");
+        final long start = System.currentTimeMillis();
+        out.write(frameBuffer.array(),0,length);
+        out.flush();
+        lastConnectOutbound = System.currentTimeMillis();
+        rate.onWriteCompleted(length,lastConnectOutbound - start,lastConnectOutbound);
+        bytesWritten.addAndGet(length);
+        linkBytesWritten.add(length);
+        linkWriteTime.record(lastConnectOutbound - start);
+        rateWindowBytes += length;
+        final long elapsed = lastConnectOutbound - rateWindowStart;
+        if (elapsed >= RATE_WINDOW) {
+            writeRate = rateWindowBytes * 1000l / elapsed;
+            rateWindowBytes = 0l;
+            rateWindowStart = lastConnectOutbound;
+        }
     }
 
     /**
@@ -496,15 +648,22 @@ public class BTSocket {
         }
         inStream = null;
         outStream = null;
+        frameReader = null;
+        synchronized (writeLock) {
+            final int before = writeQueue.size();
+            writeQueue.clear();
+            poolCount.addAndGet(-before);
+            writeLock.notifyAll();
+        }
     }
 
 
     static void closeIOThreads() {
-        synchronized (writeThreadLock) {
-            if (writeThread != null) {
-                try { writeThread.shutdown(); } catch(Exception e) {}
-                writeThread = null;
+        synchronized (writeThreads) {
+            for (Thread thread:writeThreads) {
+                try { thread.interrupt(); } catch(Exception e) {}
             }
+            writeThreads.clear();
         }
     }
 
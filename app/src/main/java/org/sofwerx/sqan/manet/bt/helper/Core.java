@@ -3,6 +3,7 @@ package org.sofwerx.sqan.manet.bt.helper;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.UUID;
 
@@ -15,15 +16,17 @@ import android.os.ParcelUuid;
 import android.util.Log;
 
 import org.sofwerx.sqan.Config;
-import org.sofwerx.sqan.ManetOps;
 import org.sofwerx.sqan.SqAnService;
 import org.sofwerx.sqan.manet.bt.Discovery;
 import org.sofwerx.sqan.manet.common.MacAddress;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.packet.DedupCache;
 import org.sofwerx.sqan.manet.common.packet.PacketHeader;
 import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
+import org.sofwerx.sqan.util.BinaryLog;
 import org.sofwerx.sqan.util.CommsLog;
+import org.sofwerx.sqan.util.TransmittedTally;
 
 public class Core {
     private static final boolean ALWAYS_ACCEPT_SERVER = true; ///should this device in server mode always accept connections
@@ -31,6 +34,10 @@ public class Core {
     private static final long ACCEPT_RECHECK_INTERVAL_WHEN_AT_MAX_SOCKETS = 1000l * 15l; //how long to wait to see if new connections should be accepted when the server is at its max number of connections
     private static final boolean ALLOW_FAILOVER_OPTIONS = false;
     private static final String TAG = Config.TAG+".Bt.Core";
+    private static final BinaryLog.Template LOG_RELAYING = CommsLog.template(CommsLog.Entry.Category.COMMS,BinaryLog.Level.DEBUG,"BT socket #{} relaying {}b from {} to {}");
+    private static final BinaryLog.Template LOG_REFERRING = CommsLog.template(CommsLog.Entry.Category.COMMS,BinaryLog.Level.DEBUG,"BT socket #{} referring {}b from {} to {} for relay over WiFi");
+    private static final BinaryLog.Template LOG_RELAYING_NO_WIFI = CommsLog.template(CommsLog.Entry.Category.COMMS,BinaryLog.Level.DEBUG,"BT socket #{} relaying (WiFi was preferred but not available) {}b from {} to {}");
+    private static final BinaryLog.Template LOG_SENDING = CommsLog.template(CommsLog.Entry.Category.COMMS,BinaryLog.Level.DEBUG,"BT socket #{} sending {}b to {}");
     private static final String SQAN_APP_UUID_SEED = "sqan";
     private static volatile UUID appUuid;
     private static volatile UUID DEFAULT_SPP_UUID;
@@ -40,6 +47,7 @@ public class Core {
     private static volatile boolean listeningIsOn;
     private static volatile boolean connectingNow;
     private static volatile ReadListener readListener;
+    final static DedupCache relayDedup = new DedupCache(); //packets that have already been relayed over BT
 
     /**
      * Create a secure BT socket and connect to a remote BT device (server).
@@ -160,12 +168,17 @@ public class Core {
     public static void send(final byte[] data, int destination, final int origin, boolean clientsOnly, boolean isForwardedPacket) {
         if (origin <= 0)
             Log.d(TAG,"send() with an origin value of "+origin+" (this should not be)");
+        if (isForwardedPacket && relayDedup.isDuplicate(data)) {
+            Log.d(TAG,"send() ignored as this "+data.length+"b packet from "+origin+" has already been relayed");
+            return;
+        }
         synchronized (allSockets) {
             if ((data != null) && !allSockets.isEmpty()) {
                 boolean sent = false;
                 int i=0;
                 boolean useThisManet = true;
                 AbstractPacket reconstructedPacket = null;
+                final boolean lossy = (data.length >= PacketHeader.getSize()) && PacketHeader.isLossyOk(ByteBuffer.wrap(data));
 
                 while (i<allSockets.size()) {
                     BTSocket socket = allSockets.get(i);
@@ -176,28 +189,30 @@ public class Core {
                                     if (isForwardedPacket) {
                                         if (socket.getDevice().isBtPreferred()) {
                                             socket.getDevice().setLastForward();
-                                            CommsLog.log(CommsLog.Entry.Category.COMMS, "BT socket #" + socket.getBtSocketIdNum() + " relaying " + data.length + "b from " + origin + " to " + socket.getDevice().getUUID() + ((socket.getDevice() == null) ? "" : " (" + socket.getDevice().getCallsign() + ")"));
+                                            CommsLog.log(LOG_RELAYING,socket.getBtSocketIdNum(),data.length,origin,socket.getDevice().getUUID());
                                         } else {
                                             if ((SqAnService.getInstance() != null) && SqAnService.getInstance().isWiFiManetAvailable()) {
                                                 if (reconstructedPacket == null)
                                                     reconstructedPacket = AbstractPacket.newFromBytes(data);
-                                                CommsLog.log(CommsLog.Entry.Category.COMMS, "BT socket #" + socket.getBtSocketIdNum() + " referring " + data.length + "b from " + origin + " to " + socket.getDevice().getUUID() + ((socket.getDevice() == null) ? "" : " (" + socket.getDevice().getCallsign() + ") for relay over WiFi"));
+                                                CommsLog.log(LOG_REFERRING,socket.getBtSocketIdNum(),data.length,origin,socket.getDevice().getUUID());
                                                 SqAnService.burstVia(reconstructedPacket, TransportPreference.WIFI);
                                                 useThisManet = (socket.getDevice().getPreferredTransport() == TransportPreference.ALL);
                                                 if (useThisManet) {
                                                     socket.getDevice().setLastForward();
-                                                    CommsLog.log(CommsLog.Entry.Category.COMMS, "BT socket #" + socket.getBtSocketIdNum() + " relaying (WiFi was preferred but not available) " + data.length + "b from " + origin + " to " + socket.getDevice().getUUID() + ((socket.getDevice() == null) ? "" : " (" + socket.getDevice().getCallsign() + ")"));
+                                                    CommsLog.log(LOG_RELAYING_NO_WIFI,socket.getBtSocketIdNum(),data.length,origin,socket.getDevice().getUUID());
                                                 }
                                             } else {
                                                 socket.getDevice().setLastForward();
-                                                CommsLog.log(CommsLog.Entry.Category.COMMS, "BT socket #" + socket.getBtSocketIdNum() + " relaying (WiFi was preferred but not available) " + data.length + "b from " + origin + " to " + socket.getDevice().getUUID() + ((socket.getDevice() == null) ? "" : " (" + socket.getDevice().getCallsign() + ")"));
+                                                CommsLog.log(LOG_RELAYING_NO_WIFI,socket.getBtSocketIdNum(),data.length,origin,socket.getDevice().getUUID());
                                             }
                                         }
                                     } else
-                                        CommsLog.log(CommsLog.Entry.Category.COMMS,"BT socket #"+socket.getBtSocketIdNum()+" sending "+data.length+"b to "+socket.getDevice().getUUID());
+                                        CommsLog.log(LOG_SENDING,socket.getBtSocketIdNum(),data.length,socket.getDevice().getUUID());
                                     if (useThisManet) {
-                                        socket.write(data);
-                                        sent = true;
+                                        if (lossy && socket.isBackedUp())
+                                            Log.d(TAG, "Skipping lossy " + data.length + "b burst over BT socket #" + socket.getBtSocketIdNum() + " (" + socket.getQueueDepth() + " packets already waiting)");
+                                        else if (socket.write(data))
+                                            sent = true;
                                     }
                                 } else
                                     Log.d(TAG, "Skipping " + data.length + "b burst over BT socket #" + socket.getBtSocketIdNum() + " (packet destined for spokes only)");
@@ -209,7 +224,7 @@ public class Core {
                     i++;
                 }
                 if (sent)
-                    ManetOps.addBytesToTransmittedTally(data.length);
+                    TransmittedTally.add(data.length);
                 else
                     Log.d(TAG,"send(data) ignored as destination SqAN #"+((destination==PacketHeader.BROADCAST_ADDRESS)?"(All node broadcast)":Integer.toString(destination))+" did not apply to any currently connected devices");
             }
@@ -0,0 +1,79 @@
+package org.sofwerx.sqan.manet.bt.helper;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads BTSocket frames from an InputStream through a reusable buffer. Each call to the stream
+ * pulls in as much as is available rather than a single byte at a time, and reads of a given
+ * length do not return until that many bytes have arrived (the stream itself can return short reads).
+ */
+class FrameReader {
+    private final InputStream in;
+    private final byte[] buffer;
+    private int pos = 0;
+    private int limit = 0;
+
+    FrameReader(InputStream in, int bufferSize) {
+        this.in = in;
+        buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Reads one byte (blocking)
+     * @return the byte as an unsigned value
+     * @throws IOException if the stream ends or fails
+     */
+    int readByte() throws IOException {
+        if (pos == limit)
+            fill();
+        return buffer[pos++] & 0xFF;
+    }
+
+    /**
+     * Reads a big-endian int (blocking)
+     * @return
+     * @throws IOException if the stream ends or fails
+     */
+    int readInt() throws IOException {
+        return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+    }
+
+    /**
+     * Fills the array completely (blocking)
+     * @param dst
+     * @throws IOException if the stream ends or fails
+     */
+    void readFully(byte[] dst) throws IOException {
+        int offset = 0;
+        while (offset < dst.length) {
+            if (pos == limit) {
+                if (dst.length - offset >= buffer.length) {
+                    //big reads go straight into the destination
+                    int read = in.read(dst,offset,dst.length - offset);
+                    if (read < 0)
+                        throw new EOFException("Stream ended with "+(dst.length - offset)+"b of the frame left to read");
+                    offset += read;
+                    continue;
+                }
+                fill();
+            }
+            int count = Math.min(limit - pos,dst.length - offset);
+            System.arraycopy(buffer,pos,dst,offset,count);
+            pos += count;
+            offset += count;
+        }
+    }
+
+    private void fill() throws IOException {
+        int read;
+        do {
+            read = in.read(buffer,0,buffer.length);
+        } while (read == 0);
+        if (read < 0)
+            throw new EOFException("Stream ended");
+        pos = 0;
+        limit = read;
+    }
+}
@@ -19,12 +19,16 @@ import org.sofwerx.sqan.manet.common.packet.PingPacket;
 import org.sofwerx.sqan.manet.common.sockets.PacketParser;
 import org.sofwerx.sqan.manet.nearbycon.NearbyConnectionsManet;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.packet.DedupCache;
+import org.sofwerx.sqan.manet.common.packet.SegmentPacket;
 import org.sofwerx.sqan.manet.common.packet.SegmentTool;
 import org.sofwerx.sqan.manet.sdr.SdrManet;
 import org.sofwerx.sqan.manet.wifiaware.WiFiAwareManetV2;
 import org.sofwerx.sqan.manet.wifidirect.WiFiDirectManet;
 import org.sofwerx.sqan.util.CommsLog;
+import org.sofwerx.sqan.util.Metrics;
 
+import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.sofwerx.sqandr.Config.isAndroid;
@@ -35,12 +39,15 @@ import static org.sofwerx.sqandr.Config.isAndroid;
  */
 public abstract class AbstractManet {
     public final static int SQAN_PORT = 1716; //using the America's Army port to avoid likely conflicts
+    private final static Metrics.Counter droppedCircular = Metrics.counter("sqan_rx_dropped_total","Received packets dropped","reason","circular");
+    private final static Metrics.Counter droppedInvalid = Metrics.counter("sqan_rx_dropped_total","Received packets dropped","reason","invalid");
     protected Status status = Status.OFF;
     protected ManetListener listener;
     protected AtomicBoolean isRunning = new AtomicBoolean(false);
     protected final Context context;
     protected final Handler handler;
     protected final PacketParser parser;
+    private Metrics.Counter txPackets, txBytes, rxPackets, rxBytes;
 
     //TODO look to add support for the WiFi Round Trip Timing API for spacing
     //https://developer.android.com/guide/topics/connectivity/wifi-rtt
@@ -53,22 +60,30 @@ public abstract class AbstractManet {
      */
     public AbstractManet(Handler handler, Context context, ManetListener listener) {
         this.handler = handler;
-        if (isAndroid()) {
+        if (isAndroid() && (context != null)) { //the benchmark's MeshSimulator runs MANETs without a context
             this.context = new Context(context.getApplicationContext());
         } else {
             this.context = context;
         }
         this.listener = listener;
-        SegmentTool.setMaxPacketSize(getMaximumPacketSize());
         parser = new PacketParser(this);
+        initMetrics();
     }
 
     public AbstractManet(android.os.Handler handler, android.content.Context context, ManetListener listener) {
         this.handler = new Handler(handler);
         this.context = new Context (context.getApplicationContext());
         this.listener = listener;
-        SegmentTool.setMaxPacketSize(getMaximumPacketSize());
         parser = new PacketParser(this);
+        initMetrics();
+    }
+
+    private void initMetrics() {
+        final String transport = getType().name();
+        txPackets = Metrics.counter("sqan_tx_packets_total","Packets sent","transport",transport);
+        txBytes = Metrics.counter("sqan_tx_bytes_total","Bytes sent","transport",transport);
+        rxPackets = Metrics.counter("sqan_rx_packets_total","Packets received","transport",transport);
+        rxBytes = Metrics.counter("sqan_rx_bytes_total","Bytes received","transport",transport);
     }
     /**
      * Sets the listener for any status reports from a peripheral (most manet will not have a peripheral)
@@ -90,7 +105,7 @@ public abstract class AbstractManet {
      */
     public boolean checkForSystemIssues() {
         boolean passed = true;
-        if (isAndroid()) {
+        if (isAndroid() && (context != null)) { //the benchmark's MeshSimulator runs MANETs without a context
             if (!context.toAndroid().getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI)) {
                 SqAnService.onIssueDetected(new WiFiIssue(true, "WiFi absent"));
                 passed = false;
@@ -183,6 +198,51 @@ public abstract class AbstractManet {
      */
     public abstract void burst(AbstractPacket packet) throws ManetException;
 
+    /**
+     * Counts a packet against this MANET's metrics and then bursts it
+     * @param packet
+     */
+    public void send(AbstractPacket packet) throws ManetException {
+        if (packet != null) {
+            txPackets.inc();
+            txBytes.add(Math.max(0,packet.getSize()));
+        }
+        burst(packet);
+    }
+
+    /**
+     * Checks if the packet is too large for this MANET and, if so, bursts it as a series of
+     * SegmentPackets instead. MANETs should call this at the start of burst()
+     * @param packet
+     * @param bytes the packet already converted to bytes (or null if it has not been converted yet)
+     * @return true == the packet was too large and has been handled as segments; false == the packet should be sent as-is
+     */
+    protected boolean burstAsSegmentsIfNeeded(AbstractPacket packet, byte[] bytes) throws ManetException {
+        if ((packet == null) || (packet instanceof SegmentPacket))
+            return false;
+        final int max = getMaximumPacketSize();
+        if (bytes == null) {
+            int size = packet.getSize();
+            if ((size >= 0) && SegmentTool.isSinglePacket(size,max))
+                return false;
+            bytes = packet.toByteArray();
+            if (bytes == null)
+                return false;
+        }
+        if (SegmentTool.isSinglePacket(bytes.length,max))
+            return false;
+        ArrayList<SegmentPacket> segments = SegmentTool.toSegments(bytes,max);
+        if (segments == null) {
+            CommsLog.log(CommsLog.Entry.Category.PROBLEM, bytes.length+"b "+packet.getClass().getSimpleName()+" is too large for "+getName()+" and could not be segmented; dropping packet");
+            return true;
+        }
+        Log.d(Config.TAG,getName()+" sending "+bytes.length+"b "+packet.getClass().getSimpleName()+" as "+segments.size()+" segments");
+        for (SegmentPacket segment:segments) {
+            burst(segment);
+        }
+        return true;
+    }
+
     /**
      * Connect to the MANET (i.e. start communicating with other nodes on the network)
      */
@@ -213,12 +273,21 @@ public abstract class AbstractManet {
             Log.d(Config.TAG, "Empty packet received over " + getClass().getSimpleName());
             return;
         }
+        rxPackets.inc();
+        rxBytes.add(Math.max(0,packet.getSize()));
+        if (packet instanceof SegmentPacket) {
+            packet = SegmentTool.reassemble((SegmentPacket)packet);
+            if (packet == null)
+                return; //still waiting on the rest of the segments
+        }
         if ((packet.getOrigin() == Config.getThisDevice().getUUID()) && !(packet instanceof PingPacket)) {
             Log.d(Config.TAG,"Circular reporting detected - dropping packet");
+            droppedCircular.inc();
             return;
         }
         if ((packet instanceof HeartbeatPacket) && !packet.isValid()) {
             Log.d(Config.TAG,"Invalid heartbeat packet dropped from onReceived");
+            droppedInvalid.inc();
             return;
         }
         setStatus(Status.CONNECTED);
@@ -230,7 +299,9 @@ public abstract class AbstractManet {
                     return;
                 }
                 PingPacket pingPacket = (PingPacket) packet;
-                if (pingPacket.isAPingRequest() || (pingPacket.getOrigin() != Config.getThisDevice().getUUID())) {
+                if (pingPacket.isAPingRequest()) {
+                    if ((device == null) || (pingPacket.getOrigin() == Config.getThisDevice().getUUID()))
+                        return;
                     pingPacket.setDestination(device.getUUID());
                     CommsLog.log(CommsLog.Entry.Category.COMMS, "Received ping request from " + device.getUUID());
                     pingPacket.setMidpointLocalTime(System.currentTimeMillis());
@@ -241,6 +312,13 @@ public abstract class AbstractManet {
                         return;
                     }
                 } else {
+                    if (pingPacket.getOrigin() != Config.getThisDevice().getUUID())
+                        return; //another device's ping on its way back
+                    device = SqAnDevice.findByUUID(pingPacket.getResponder()); //the origin is this device, so find who it was sent to
+                    if (device == null) {
+                        Log.d(Config.TAG, "Ping returned from an unknown device (or already handled); ignoring");
+                        return;
+                    }
                     device.addLatencyMeasurement(pingPacket.getLatency());
                     CommsLog.log(CommsLog.Entry.Category.COMMS, "Received ping (round trip latency " + Long.toString(pingPacket.getLatency()) + "ms) from " + device.getUUID());
                 }
@@ -292,6 +370,10 @@ public abstract class AbstractManet {
                 teammate.update(device.getCallsign(), System.currentTimeMillis());
             if (listener != null)
                 listener.updateDeviceUi(device);
+            if (DedupCache.getDelivered().isDuplicate(packet)) {
+                Log.d(Config.TAG,packet.getClass().getSimpleName()+" from "+packet.getOrigin()+" was already received over another link; ignoring");
+                return;
+            }
             if (listener != null)
                 listener.onRx(packet);
             if (packet instanceof DisconnectingPacket)
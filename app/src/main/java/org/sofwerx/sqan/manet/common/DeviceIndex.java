@@ -0,0 +1,145 @@
+package org.sofwerx.sqan.manet.common;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lookup tables for the list of SqAnDevices so that finding the device for a packet does not
+ * require walking (and locking) the whole list. SqAnDevice keeps this in step with its list of
+ * devices; anything that changes one of the indexed values on a device in the list needs to
+ * call reindex() for that device. Each MeshState has its own index.
+ */
+class DeviceIndex {
+    private final ConcurrentHashMap<Integer,SqAnDevice> byUuid = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer,SqAnDevice> byIpv4 = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long,SqAnDevice> byBtMac = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,SqAnDevice> byNetworkId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SqAnDevice,Keys> indexed = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the index for the current MeshState
+     * @return
+     */
+    private static DeviceIndex get() { return MeshState.get().deviceIndex; }
+
+    /**
+     * Adds (or updates) the lookup entries for this device
+     * @param device
+     */
+    static void index(SqAnDevice device) {
+        if (device == null)
+            return;
+        DeviceIndex index = get();
+        Keys keys = new Keys(device);
+        Keys old = index.indexed.put(device,keys);
+        if (old != null)
+            old.removeFrom(index,device);
+        keys.addFor(index,device);
+    }
+
+    /**
+     * Updates the lookup entries for this device if it is already indexed. Used when one of the
+     * values used for lookup changes on a device that may or may not be in the list of devices
+     * @param device
+     */
+    static void reindex(SqAnDevice device) {
+        if ((device != null) && get().indexed.containsKey(device))
+            index(device);
+    }
+
+    /**
+     * Removes all lookup entries for this device
+     * @param device
+     */
+    static void unindex(SqAnDevice device) {
+        if (device == null)
+            return;
+        DeviceIndex index = get();
+        Keys old = index.indexed.remove(device);
+        if (old != null)
+            old.removeFrom(index,device);
+    }
+
+    static void clear() {
+        DeviceIndex index = get();
+        index.indexed.clear();
+        index.byUuid.clear();
+        index.byIpv4.clear();
+        index.byBtMac.clear();
+        index.byNetworkId.clear();
+    }
+
+    static SqAnDevice findByUUID(int uuid) {
+        if (uuid == SqAnDevice.UNASSIGNED_UUID)
+            return null;
+        SqAnDevice device = get().byUuid.get(uuid);
+        if ((device != null) && !device.isSame(uuid))
+            return null;
+        return device;
+    }
+
+    static SqAnDevice findByIpv4IP(int ip) {
+        SqAnDevice device = get().byIpv4.get(ip);
+        if ((device != null) && (device.getVpnIpv4AddressInt() != ip))
+            return null;
+        return device;
+    }
+
+    static SqAnDevice findByBtMac(MacAddress mac) {
+        if ((mac == null) || !mac.isValid())
+            return null;
+        SqAnDevice device = get().byBtMac.get(mac.toLong());
+        if ((device != null) && !mac.isEqual(device.getBluetoothMac()))
+            return null;
+        return device;
+    }
+
+    static SqAnDevice findByNetworkID(String networkId) {
+        if (networkId == null)
+            return null;
+        SqAnDevice device = get().byNetworkId.get(toNetworkIdKey(networkId));
+        if ((device != null) && ((device.getNetworkId() == null) || !device.getNetworkId().equalsIgnoreCase(networkId)))
+            return null;
+        return device;
+    }
+
+    private static String toNetworkIdKey(String networkId) {
+        return networkId.toLowerCase();
+    }
+
+    /**
+     * The values a device was indexed under, kept so they can be removed after they change
+     */
+    private static class Keys {
+        private final int uuid;
+        private final int ipv4;
+        private final Long btMac;
+        private final String networkId;
+
+        private Keys(SqAnDevice device) {
+            uuid = device.getUUID();
+            ipv4 = device.getVpnIpv4AddressInt();
+            MacAddress mac = device.getBluetoothMac();
+            btMac = ((mac != null) && mac.isValid())?mac.toLong():null;
+            networkId = (device.getNetworkId() == null)?null:toNetworkIdKey(device.getNetworkId());
+        }
+
+        private void addFor(DeviceIndex index, SqAnDevice device) {
+            if (uuid != SqAnDevice.UNASSIGNED_UUID)
+                index.byUuid.put(uuid,device);
+            index.byIpv4.put(ipv4,device);
+            if (btMac != null)
+                index.byBtMac.put(btMac,device);
+            if (networkId != null)
+                index.byNetworkId.put(networkId,device);
+        }
+
+        private void removeFrom(DeviceIndex index, SqAnDevice device) {
+            index.byUuid.remove(uuid,device);
+            index.byIpv4.remove(ipv4,device);
+            if (btMac != null)
+                index.byBtMac.remove(btMac,device);
+            if (networkId != null)
+                index.byNetworkId.remove(networkId,device);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package org.sofwerx.sqan.manet.common;
+
+import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.SqAnService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds a link-state view of the mesh from the relay lists each device reports in its heartbeats
+ * and uses it to pick multipoint relays (MPRs) in the style of OLSR (RFC 3626). A device's MPRs are
+ * a small set of its direct neighbors that together reach every device two hops away, so a broadcast
+ * only needs to be relayed by the MPRs of the device it was heard from rather than by every device
+ * that hears it.
+ *
+ * MPR selections are not announced; instead each device works out the selection another device
+ * would make from the links that device and its neighbors report, so the selection is made the
+ * same way everywhere (ties go to the neighbor with the most links, then the lowest UUID). When a
+ * device's links are not known yet, or the relay list of it or any of its neighbors is older than
+ * the longest gap between heartbeats on any link (so the selection it actually made may have
+ * changed since), broadcasts heard from it are relayed as before.
+ */
+public class LinkState {
+    private final static long MAX_SELECTION_AGE = 1000l * 5l; //relay lists also go stale with time, not just with topology changes
+    private final static long MAX_RELAY_LIST_AGE = SqAnService.MAX_NARROW_HEARTBEAT_GAP; //an older list has missed a heartbeat, even on Bluetooth or SDR
+    private final static AtomicLong relaysAllowed = new AtomicLong(0l);
+    private final static AtomicLong relaysSuppressed = new AtomicLong(0l);
+
+    /**
+     * Should this device relay a broadcast that it heard from this neighbor
+     * @param lastHop SqAN UUID of the device the broadcast was received from (or SqAnDevice.UNASSIGNED_UUID if unknown)
+     * @return true == this device is one of the neighbor's MPRs (or the neighbor's links aren't known well enough to tell)
+     */
+    public static boolean isRelayNeeded(int lastHop) {
+        boolean needed = true;
+        if (Config.isMprRelayEnabled() && (lastHop != SqAnDevice.UNASSIGNED_UUID) && (Config.getThisDevice() != null)) {
+            int[] mprs = getMprs(lastHop);
+            if (mprs != null)
+                needed = Arrays.binarySearch(mprs,Config.getThisDevice().getUUID()) >= 0;
+        }
+        if (needed)
+            relaysAllowed.incrementAndGet();
+        else
+            relaysSuppressed.incrementAndGet();
+        return needed;
+    }
+
+    /**
+     * Gets the MPRs that this device's broadcasts rely on
+     * @return sorted SqAN UUIDs (or null if this device has no direct neighbors)
+     */
+    public static int[] getMprs() {
+        if (Config.getThisDevice() == null)
+            return null;
+        return getMprs(Config.getThisDevice().getUUID());
+    }
+
+    /**
+     * Gets the MPRs that a device would select
+     * @param uuid SqAN UUID of the device
+     * @return sorted SqAN UUIDs (or null if the device's links are not known)
+     */
+    public static int[] getMprs(int uuid) {
+        final int version = RouteCache.getTopologyVersion();
+        final long now = System.currentTimeMillis();
+        final MeshState state = MeshState.get();
+        Selection selection = state.selections.get(uuid);
+        if ((selection != null) && (selection.version == version) && (now < selection.expires))
+            return selection.mprs;
+        HashMap<Integer,int[]> links = new HashMap<>();
+        long expires = now + MAX_SELECTION_AGE;
+        int[] neighbors = getNeighbors(uuid,now);
+        if (neighbors != null) {
+            links.put(uuid,neighbors);
+            expires = Math.min(expires,getRelayListExpiry(uuid));
+            for (int neighbor:neighbors) {
+                int[] twoHop = getNeighbors(neighbor,now);
+                if (twoHop != null)
+                    links.put(neighbor,twoHop);
+                expires = Math.min(expires,getRelayListExpiry(neighbor));
+            }
+        }
+        if (expires <= now)
+            neighbors = null; //the selection can't be worked out from out of date relay lists
+        selection = new Selection(version,expires,(neighbors == null)?null:select(uuid,links));
+        state.selections.put(uuid,selection);
+        return selection.mprs;
+    }
+
+    /**
+     * Selects the MPRs for a device: first any neighbor that is the only way to reach some device
+     * two hops away, then whichever neighbor reaches the most devices still not covered until all
+     * of them are
+     * @param node SqAN UUID of the device making the selection
+     * @param links the direct neighbors of the device and of each of its neighbors
+     * @return sorted SqAN UUIDs of the selected neighbors (or null if the device's neighbors are unknown)
+     */
+    public static int[] select(int node, Map<Integer,int[]> links) {
+        int[] neighbors = links.get(node);
+        if (neighbors == null)
+            return null;
+        HashSet<Integer> oneHop = new HashSet<>();
+        for (int neighbor:neighbors) {
+            oneHop.add(neighbor);
+        }
+        HashMap<Integer,ArrayList<Integer>> coveredBy = new HashMap<>(); //two hop device to the neighbors that reach it
+        for (int neighbor:neighbors) {
+            int[] reach = links.get(neighbor);
+            if (reach == null)
+                continue;
+            for (int target:reach) {
+                if ((target == node) || oneHop.contains(target))
+                    continue;
+                ArrayList<Integer> coverers = coveredBy.get(target);
+                if (coverers == null) {
+                    coverers = new ArrayList<>();
+                    coveredBy.put(target,coverers);
+                }
+                coverers.add(neighbor);
+            }
+        }
+        HashSet<Integer> selected = new HashSet<>();
+        for (ArrayList<Integer> coverers:coveredBy.values()) {
+            if (coverers.size() == 1)
+                selected.add(coverers.get(0));
+        }
+        HashSet<Integer> uncovered = new HashSet<>(coveredBy.keySet());
+        for (int mpr:selected) {
+            removeCovered(uncovered,links.get(mpr));
+        }
+        while (!uncovered.isEmpty()) {
+            int best = SqAnDevice.UNASSIGNED_UUID;
+            int bestCount = 0;
+            int bestDegree = 0;
+            for (int neighbor:neighbors) {
+                if (selected.contains(neighbor))
+                    continue;
+                int[] reach = links.get(neighbor);
+                if (reach == null)
+                    continue;
+                int count = 0;
+                for (int target:reach) {
+                    if (uncovered.contains(target))
+                        count++;
+                }
+                if ((count > bestCount) || ((count > 0) && (count == bestCount) && ((reach.length > bestDegree) || ((reach.length == bestDegree) && (neighbor < best))))) {
+                    best = neighbor;
+                    bestCount = count;
+                    bestDegree = reach.length;
+                }
+            }
+            if (bestCount == 0)
+                break;
+            selected.add(best);
+            removeCovered(uncovered,links.get(best));
+        }
+        int[] mprs = new int[selected.size()];
+        int i = 0;
+        for (int mpr:selected) {
+            mprs[i++] = mpr;
+        }
+        Arrays.sort(mprs);
+        return mprs;
+    }
+
+    private static void removeCovered(HashSet<Integer> uncovered, int[] reach) {
+        if (reach != null) {
+            for (int target:reach) {
+                uncovered.remove(target);
+            }
+        }
+    }
+
+    /**
+     * Gets the time after which a device's relay list is out of date
+     * @param uuid
+     * @return
+     */
+    private static long getRelayListExpiry(int uuid) {
+        SqAnDevice thisDevice = Config.getThisDevice();
+        if ((thisDevice != null) && (uuid == thisDevice.getUUID()))
+            return Long.MAX_VALUE; //this device's own links are always current
+        SqAnDevice device = SqAnDevice.findByUUID(uuid);
+        if (device == null)
+            return Long.MIN_VALUE;
+        return device.getRelaysReported() + MAX_RELAY_LIST_AGE;
+    }
+
+    /**
+     * Gets the devices directly connected to a device
+     * @param uuid
+     * @param now
+     * @return the SqAN UUIDs of the direct neighbors (or null if not known)
+     */
+    private static int[] getNeighbors(int uuid, long now) {
+        SqAnDevice thisDevice = Config.getThisDevice();
+        if (thisDevice == null)
+            return null;
+        HashSet<Integer> neighbors = new HashSet<>();
+        ArrayList<SqAnDevice> devices = SqAnDevice.getDevices();
+        if (uuid == thisDevice.getUUID()) {
+            if (devices != null) {
+                synchronized (devices) {
+                    for (SqAnDevice device:devices) {
+                        if ((device != null) && (device.getHopsAway() == 0))
+                            neighbors.add(device.getUUID());
+                    }
+                }
+            }
+        } else {
+            SqAnDevice device = SqAnDevice.findByUUID(uuid);
+            if ((device == null) || (device.getRelayConnections() == null))
+                return null;
+            final long cutoffTime = now - SqAnDevice.TIME_TO_CONSIDER_HOP_COUNT_STALE;
+            for (RelayConnection relay:device.getRelayConnections()) {
+                if ((relay.getHops() == 0) && (relay.getLastConnection() > cutoffTime) && (relay.getSqAnID() != uuid))
+                    neighbors.add(relay.getSqAnID());
+            }
+            if (neighbors.isEmpty())
+                return null;
+            if (device.getHopsAway() == 0) //links are two way so a direct neighbor also reaches this device
+                neighbors.add(thisDevice.getUUID());
+        }
+        if (neighbors.isEmpty())
+            return null;
+        int[] out = new int[neighbors.size()];
+        int i = 0;
+        for (int neighbor:neighbors) {
+            out[i++] = neighbor;
+        }
+        Arrays.sort(out);
+        return out;
+    }
+
+    /**
+     * Gets the number of broadcasts that were not relayed since this device was not an MPR for the device they were heard from
+     * @return
+     */
+    public static long getRelaysSuppressed() { return relaysSuppressed.get(); }
+
+    /**
+     * Gets the number of broadcasts that this device was needed to relay
+     * @return
+     */
+    public static long getRelaysAllowed() { return relaysAllowed.get(); }
+
+    public static void clear() { MeshState.get().selections.clear(); }
+
+    static class Selection {
+        private final int version;
+        private final long expires;
+        private final int[] mprs;
+
+        private Selection(int version, long expires, int[] mprs) {
+            this.version = version;
+            this.expires = expires;
+            this.mprs = mprs;
+        }
+    }
+}
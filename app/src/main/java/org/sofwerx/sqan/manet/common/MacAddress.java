@@ -86,6 +86,20 @@ public class MacAddress {
         return null;
     }
 
+    /**
+     * Packs this MAC address into a long (useful as a lookup key)
+     * @return the MAC as a long or -1 if the address is not valid
+     */
+    public long toLong() {
+        if (!isValid())
+            return -1l;
+        long value = 0l;
+        for (byte b:bytes) {
+            value = (value << 8) | (b & 0xFF);
+        }
+        return value;
+    }
+
     public boolean isEqual(MacAddress other) {
         if ((other == null) || (other.bytes == null) || (bytes == null) || (bytes.length != other.bytes.length))
             return false;
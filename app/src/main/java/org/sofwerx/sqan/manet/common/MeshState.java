@@ -0,0 +1,86 @@
+package org.sofwerx.sqan.manet.common;
+
+import org.sofwerx.sqan.manet.common.packet.CompactHeartbeat;
+import org.sofwerx.sqan.manet.common.packet.DedupCache;
+import org.sofwerx.sqan.manet.common.packet.SegmentTool;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What one device knows about the mesh: this device, the other devices it has heard of, the
+ * routes and MPR selections worked out from them, the packets it has only received some segments
+ * of, the packets already delivered and what its compact heartbeats have sent and received.
+ *
+ * The app only ever uses the one current MeshState. The benchmark's MeshSimulator keeps one per
+ * simulated device and makes it current while that device handles an event (the simulation runs
+ * on one thread).
+ */
+public class MeshState {
+    private static volatile MeshState current = new MeshState();
+
+    //SqAnDevice
+    ArrayList<SqAnDevice> devices;
+    final AtomicInteger nextUnassignedUUID = new AtomicInteger(-1);
+    final DeviceIndex deviceIndex = new DeviceIndex();
+    //RouteCache
+    final AtomicInteger topologyVersion = new AtomicInteger(0);
+    final ConcurrentHashMap<Integer,RouteCache.Route> routes = new ConcurrentHashMap<>();
+    //LinkState
+    final ConcurrentHashMap<Integer,LinkState.Selection> selections = new ConcurrentHashMap<>();
+
+    private volatile SqAnDevice thisDevice;
+    private final SegmentTool.PartialPackets partialPackets = new SegmentTool.PartialPackets();
+    private final DedupCache delivered = new DedupCache();
+    private final CompactHeartbeat.Encoder heartbeatEncoder = new CompactHeartbeat.Encoder();
+    private final CompactHeartbeat.Decoder heartbeatDecoder = new CompactHeartbeat.Decoder();
+
+    /**
+     * Gets the state of the device currently running
+     * @return
+     */
+    public static MeshState get() { return current; }
+
+    /**
+     * Makes this the state used by SqAnDevice, RouteCache, LinkState, SegmentTool, DedupCache
+     * and CompactHeartbeat from now on
+     * @param state
+     */
+    public static void set(MeshState state) {
+        if (state != null)
+            current = state;
+    }
+
+    /**
+     * Gets this device (set by Config.init(Context))
+     * @return
+     */
+    public SqAnDevice getThisDevice() { return thisDevice; }
+
+    public void setThisDevice(SqAnDevice thisDevice) { this.thisDevice = thisDevice; }
+
+    /**
+     * Gets the packets that this device has only received some segments of
+     * @return
+     */
+    public SegmentTool.PartialPackets getPartialPackets() { return partialPackets; }
+
+    /**
+     * Gets the cache of packets that have been delivered to this device
+     * @return
+     */
+    public DedupCache getDelivered() { return delivered; }
+
+    /**
+     * Gets the encoder for this device's compact heartbeats
+     * @return
+     */
+    public CompactHeartbeat.Encoder getHeartbeatEncoder() { return heartbeatEncoder; }
+
+    /**
+     * Gets the decoder for compact heartbeats from other devices
+     * @return
+     */
+    public CompactHeartbeat.Decoder getHeartbeatDecoder() { return heartbeatDecoder; }
+}
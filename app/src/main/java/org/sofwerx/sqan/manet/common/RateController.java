@@ -0,0 +1,429 @@
+package org.sofwerx.sqan.manet.common;
+
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.util.Metrics;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Paces what is written into one link (one neighbor over one transport, or the whole channel for
+ * a broadcast transport like the SDR) so data waits in this device's TxScheduler, where control
+ * traffic can still jump ahead and lossy data can be dropped, instead of in the first in, first
+ * out buffers further down (socket, USB and radio buffers).
+ *
+ * Like BBR, it keeps an estimate of the link's bottleneck bandwidth and paces at that rate, and it
+ * models how much is queued in the link from what has been written versus how fast it drains;
+ * once that queue holds well over TARGET_QUEUE_DELAY worth of data, sending slows to let it drain.
+ * Bandwidth is measured whenever a write blocks (the link's buffer is full so the write waits on it
+ * to drain) and is cut multiplicatively when a write comes up short or a round trip grows well past
+ * the lowest recently seen (the difference being time spent queued, as in LEDBAT). While nothing
+ * pushes back it is raised additively to probe for more. Until the first measurement, the rate
+ * doubles each round trip that senders are held back by it. Links to a neighbor that are in use
+ * ask for a ping every RTT_PROBE_INTERVAL (see getRttNeeded()), since write feedback alone can't
+ * see data queued in a slow link's buffer.
+ */
+public class RateController {
+    private final static long MIN_RATE = 1024l; //bytes per second
+    private final static long MAX_RATE = 1024l * 1024l * 64l;
+    private final static long INITIAL_RATE = 1024l * 16l;
+    private final static long DEFAULT_RTT = 100l; //ms, used until a round trip is measured
+    private final static long TARGET_QUEUE_DELAY = 100l; //ms of data allowed to wait in the link
+    private final static long BASE_RTT_WINDOW = 1000l * 60l; //how long the lowest round trip is remembered
+    private final static long BLOCKED_WRITE = 10l; //ms a write can take before the link is considered full
+    private final static double DRAIN_GAIN = 0.5d; //share of the bandwidth to send at while the link's queue drains
+    private final static double PROBE_PER_SECOND = 1d/64d; //share of the bandwidth added each second nothing pushes back
+    private final static double DECREASE = 0.8d;
+    private final static long MAX_BURST = 10l; //ms of sending that can go out back to back after the link was idle
+    private final static long RATE_WINDOW = 1000l;
+    public final static long RTT_PROBE_INTERVAL = 1000l;
+    private final static ConcurrentHashMap<String,RateController> controllers = new ConcurrentHashMap<>();
+    static {
+        Metrics.addCollector(RateController::collect);
+    }
+    private final String name;
+    private final ManetType type; //null if not the link to a known neighbor
+    private final int uuid;
+    private double startupRate = INITIAL_RATE; //bytes per second, used until the bandwidth is measured
+    private double bandwidth = -1d; //bytes per second
+    private double queued = 0d; //bytes estimated to be waiting in the link
+    private boolean draining = false;
+    private long drainedTime = Long.MIN_VALUE; //when the link's queue was last drained
+    private double bufferSize = -1d; //bytes the link was seen to hold when full
+    private long queueTime = Long.MIN_VALUE;
+    private long emptyTime = Long.MIN_VALUE; //when the link's queue was last believed empty
+    private long bytesSinceEmpty = 0l;
+    private boolean limited = false; //has anything had to wait on the rate since it was last raised
+    private double nextSendTime = 0d; //ms
+    private long baseRtt = -1l;
+    private long baseRttTime = Long.MIN_VALUE;
+    private long smoothedRtt = -1l;
+    private long rttTime = Long.MIN_VALUE; //when a round trip was last measured
+    private long lastIncrease = Long.MIN_VALUE;
+    private long lastDecrease = Long.MIN_VALUE;
+    private long windowStart = Long.MIN_VALUE;
+    private long windowBytes = 0l;
+    private long sendRate = 0l;
+    private long bytesSent = 0l;
+    private long decreases = 0l;
+
+    public RateController(String name) {
+        this(name,null,PacketHeader.BROADCAST_ADDRESS);
+    }
+
+    private RateController(String name, ManetType type, int uuid) {
+        this.name = name;
+        this.type = type;
+        this.uuid = uuid;
+    }
+
+    /**
+     * Gets the controller for a link, creating it if needed
+     * @param type the transport
+     * @param uuid SqAN UUID of the neighbor (or PacketHeader.BROADCAST_ADDRESS for a shared channel)
+     * @return
+     */
+    public static RateController get(ManetType type, int uuid) {
+        final String key = getKey(type,uuid);
+        RateController controller = controllers.get(key);
+        if (controller == null) {
+            controller = new RateController(key,type,uuid);
+            RateController existing = controllers.putIfAbsent(key,controller);
+            if (existing != null)
+                controller = existing;
+        }
+        return controller;
+    }
+
+    /**
+     * Gets the controller for a link if it exists
+     * @param type
+     * @param uuid
+     * @return the controller (or null if nothing has been sent over this link)
+     */
+    public static RateController find(ManetType type, int uuid) { return controllers.get(getKey(type,uuid)); }
+
+    /**
+     * Gets how much more traffic a link could take right now
+     * @param type
+     * @param uuid
+     * @return bytes per second (or -1 if the link has not been measured)
+     */
+    public static long getAvailableCapacity(ManetType type, int uuid) {
+        RateController controller = find(type,uuid);
+        if (controller == null)
+            return -1l;
+        return controller.getAvailableCapacity(System.currentTimeMillis());
+    }
+
+    /**
+     * Is a link known to be full (unmeasured links are assumed to have room)
+     * @param type
+     * @param uuid
+     * @return
+     */
+    public static boolean isFull(ManetType type, int uuid) { return getAvailableCapacity(type,uuid) == 0l; }
+
+    /**
+     * Are all the links over a transport known to be full
+     * @param type
+     * @return false if any link has room (or none has been measured)
+     */
+    public static boolean isFull(ManetType type) {
+        final long now = System.currentTimeMillis();
+        boolean found = false;
+        for (RateController controller:controllers.values()) {
+            if (controller.type != type)
+                continue;
+            if (controller.getAvailableCapacity(now) > 0l)
+                return false;
+            found = true;
+        }
+        return found;
+    }
+
+    /**
+     * Adds a round trip measured directly with a neighbor to every link to it
+     * @param uuid
+     * @param rtt ms
+     */
+    public static void onRttSample(int uuid, long rtt) {
+        final long now = System.currentTimeMillis();
+        for (ManetType type:ManetType.values()) {
+            RateController controller = find(type,uuid);
+            if (controller != null)
+                controller.onRttSample(rtt,now);
+        }
+    }
+
+    public static ArrayList<RateController> getControllers() { return new ArrayList<>(controllers.values()); }
+
+    /**
+     * Gets the links to a neighbor that are carrying traffic but have not had a round trip measured
+     * in the last RTT_PROBE_INTERVAL
+     * @return links that need a ping
+     */
+    public static ArrayList<RateController> getRttNeeded() {
+        final long now = System.currentTimeMillis();
+        ArrayList<RateController> needed = new ArrayList<>();
+        for (RateController controller:controllers.values()) {
+            if ((controller.type != null) && (controller.uuid != PacketHeader.BROADCAST_ADDRESS) && controller.isRttNeeded(now))
+                needed.add(controller);
+        }
+        return needed;
+    }
+
+    public static void clear() { controllers.clear(); }
+
+    private static String getKey(ManetType type, int uuid) { return type.name()+":"+uuid; }
+
+    /**
+     * Reports the state of every link to Metrics
+     * @param out
+     */
+    private static void collect(StringBuilder out) {
+        if (controllers.isEmpty())
+            return;
+        ArrayList<RateController> all = getControllers();
+        Metrics.appendHeader(out,"sqan_link_rate_bytes_per_second","Rate each link is paced at","gauge");
+        for (RateController controller:all) {
+            Metrics.appendSample(out,"sqan_link_rate_bytes_per_second",controller.getRate(),"link",controller.name);
+        }
+        Metrics.appendHeader(out,"sqan_link_bandwidth_bytes_per_second","Estimated bottleneck bandwidth of each link (-1 == not measured)","gauge");
+        for (RateController controller:all) {
+            Metrics.appendSample(out,"sqan_link_bandwidth_bytes_per_second",controller.getBandwidth(),"link",controller.name);
+        }
+        Metrics.appendHeader(out,"sqan_link_queued_bytes","Estimated bytes waiting in each link","gauge");
+        for (RateController controller:all) {
+            Metrics.appendSample(out,"sqan_link_queued_bytes",controller.getQueuedEstimate(),"link",controller.name);
+        }
+        Metrics.appendHeader(out,"sqan_link_paced_bytes_total","Bytes paced into each link","counter");
+        for (RateController controller:all) {
+            Metrics.appendSample(out,"sqan_link_paced_bytes_total",controller.getBytesSent(),"link",controller.name);
+        }
+        Metrics.appendHeader(out,"sqan_link_rate_decreases_total","Times each link's rate was cut","counter");
+        for (RateController controller:all) {
+            Metrics.appendSample(out,"sqan_link_rate_decreases_total",controller.getDecreases(),"link",controller.name);
+        }
+    }
+
+    public String getName() { return name; }
+
+    /**
+     * Gets the transport this link is over
+     * @return the transport (or null if not the link to a known neighbor)
+     */
+    public ManetType getType() { return type; }
+
+    /**
+     * Gets the neighbor at the other end of this link
+     * @return SqAN UUID (or PacketHeader.BROADCAST_ADDRESS for a shared channel)
+     */
+    public int getUuid() { return uuid; }
+
+    /**
+     * Is this link carrying traffic without a recent round trip measurement
+     * @param now
+     * @return
+     */
+    public synchronized boolean isRttNeeded(long now) {
+        if ((windowStart == Long.MIN_VALUE) || (now - windowStart >= 2l * RATE_WINDOW))
+            return false; //idle, so nothing to pace
+        return (rttTime == Long.MIN_VALUE) || (now - rttTime >= RTT_PROBE_INTERVAL);
+    }
+
+    /**
+     * Gets how long to hold the next write so the link is not sent more than it can carry
+     * @param now
+     * @return ms to wait (0 == send now)
+     */
+    public synchronized long getDelay(long now) {
+        final long delay = (long)Math.ceil(nextSendTime - (double)now);
+        if (delay > 0l) {
+            limited = true;
+            return delay;
+        }
+        return 0l;
+    }
+
+    /**
+     * Accounts for data handed to the link
+     * @param bytes
+     * @param now
+     */
+    public synchronized void onSent(int bytes, long now) {
+        updateQueue(now);
+        nextSendTime = Math.max(nextSendTime,(double)(now - MAX_BURST)) + (double)bytes * 1000d / getPacingRate();
+        if (bandwidth > 0d)
+            queued += bytes;
+        bytesSinceEmpty += bytes;
+        bytesSent += bytes;
+        if ((windowStart == Long.MIN_VALUE) || (now - windowStart >= RATE_WINDOW)) { //now - Long.MIN_VALUE would overflow
+            if (windowStart != Long.MIN_VALUE)
+                sendRate = (now - windowStart >= 2l * RATE_WINDOW)?0l:windowBytes * 1000l / (now - windowStart);
+            windowStart = now;
+            windowBytes = 0l;
+        }
+        windowBytes += bytes;
+    }
+
+    /**
+     * Reports how long a write into the link took
+     * @param bytes
+     * @param elapsed ms the write blocked
+     * @param now
+     */
+    public synchronized void onWriteCompleted(int bytes, long elapsed, long now) {
+        if (elapsed >= BLOCKED_WRITE) {
+            //the link's buffer was full, so the write waited on it to drain
+            final double drainRate = (double)bytes * 1000d / (double)elapsed;
+            updateQueue(now);
+            if (bandwidth < 0d) {
+                bandwidth = drainRate;
+                bufferSize = (double)bytesSinceEmpty - bandwidth * (double)(now - emptyTime) / 1000d; //everything sent so far that has not drained
+            } else
+                bandwidth = Math.max(bandwidth * DECREASE,Math.min(bandwidth,drainRate)); //a single write is a rough measure, so only trust it so far
+            queued = Math.max(queued,bufferSize);
+            draining = true;
+            lastDecrease = now;
+            lastIncrease = now;
+            decreases++;
+        } else if (limited && !draining)
+            increase(now);
+    }
+
+    /**
+     * The link could not take everything written to it (i.e. a short write)
+     * @param now
+     */
+    public synchronized void onCongestion(long now) {
+        if (!decrease(now))
+            return;
+        updateQueue(now);
+        queued = Math.max(queued,(bufferSize > 0d)?bufferSize:getTargetQueue() * 2d);
+        draining = true;
+    }
+
+    /**
+     * Adds a round trip measured over this link
+     * @param rtt ms
+     * @param now
+     */
+    public synchronized void onRttSample(long rtt, long now) {
+        if (rtt < 0l)
+            return;
+        rttTime = now;
+        if ((baseRtt < 0l) || (rtt <= baseRtt) || (now > baseRttTime + BASE_RTT_WINDOW)) {
+            baseRtt = rtt;
+            baseRttTime = now;
+        }
+        if (smoothedRtt < 0l)
+            smoothedRtt = rtt;
+        else
+            smoothedRtt = (7l*smoothedRtt + rtt)/8l;
+        final long queueDelay = rtt - baseRtt;
+        if ((queueDelay > TARGET_QUEUE_DELAY) && (now - rtt > lastDecrease)) { //ignore round trips that started before the last cut
+            updateQueue(now);
+            //only a queue that built up after the last one drained means the bandwidth is overestimated
+            if ((bandwidth < 0d) || (!draining && (now - rtt > drainedTime))) {
+                decrease(now);
+                queued = Math.max(queued,(double)queueDelay * bandwidth / 1000d);
+                draining = queued > getTargetQueue();
+            }
+        }
+    }
+
+    /**
+     * Drains the modeled queue at the estimated bandwidth
+     * @param now
+     */
+    private void updateQueue(long now) {
+        if (emptyTime == Long.MIN_VALUE)
+            emptyTime = now;
+        if ((bandwidth > 0d) && (queueTime != Long.MIN_VALUE) && (now > queueTime)) {
+            queued -= bandwidth * (double)(now - queueTime) / 1000d;
+            if (queued <= 0d) {
+                queued = 0d;
+                emptyTime = now;
+                bytesSinceEmpty = 0l;
+            }
+            if (draining && (queued <= getTargetQueue())) {
+                draining = false;
+                drainedTime = now;
+            }
+        }
+        queueTime = now;
+    }
+
+    private void increase(long now) {
+        final long elapsed = (lastIncrease == Long.MIN_VALUE)?0l:Math.min(getRtt(),now - lastIncrease);
+        lastIncrease = now;
+        limited = false;
+        if (bandwidth < 0d)
+            startupRate = Math.min((double)MAX_RATE,startupRate + startupRate * (double)elapsed / (double)getRtt());
+        else
+            bandwidth = Math.min((double)MAX_RATE,bandwidth + bandwidth * PROBE_PER_SECOND * (double)elapsed / 1000d);
+    }
+
+    /**
+     * Cuts the bandwidth estimate (at most once per round trip)
+     * @param now
+     * @return true == the estimate was cut
+     */
+    private boolean decrease(long now) {
+        if ((lastDecrease != Long.MIN_VALUE) && (now - lastDecrease < getRtt()))
+            return false;
+        lastDecrease = now;
+        lastIncrease = now;
+        decreases++;
+        bandwidth = Math.max((double)MIN_RATE,((bandwidth < 0d)?startupRate:bandwidth) * DECREASE);
+        return true;
+    }
+
+    private long getRtt() { return (smoothedRtt > 0l)?smoothedRtt:DEFAULT_RTT; }
+
+    private double getTargetQueue() { return bandwidth * (double)TARGET_QUEUE_DELAY / 1000d; }
+
+    private double getPacingRate() {
+        if (bandwidth < 0d)
+            return startupRate;
+        if (draining)
+            return Math.max((double)MIN_RATE,bandwidth * DRAIN_GAIN);
+        return bandwidth;
+    }
+
+    /**
+     * Gets the rate the link is currently paced at
+     * @return bytes per second
+     */
+    public synchronized long getRate() { return (long)getPacingRate(); }
+
+    /**
+     * Gets the estimated bottleneck bandwidth of the link
+     * @return bytes per second (or -1 if not measured yet)
+     */
+    public synchronized long getBandwidth() { return (long)bandwidth; }
+
+    /**
+     * Gets how much more traffic this link could take right now
+     * @param now
+     * @return bytes per second
+     */
+    public synchronized long getAvailableCapacity(long now) {
+        final long rate = (long)((bandwidth < 0d)?startupRate:bandwidth);
+        if ((windowStart == Long.MIN_VALUE) || (now - windowStart >= 2l * RATE_WINDOW))
+            return rate;
+        return Math.max(0l,rate - Math.max(sendRate,windowBytes * 1000l / RATE_WINDOW));
+    }
+
+    /**
+     * Gets the lowest round trip recently measured over this link
+     * @return ms (or -1 if not measured)
+     */
+    public synchronized long getBaseRtt() { return baseRtt; }
+
+    public synchronized long getSmoothedRtt() { return smoothedRtt; }
+    public synchronized long getBytesSent() { return bytesSent; }
+    public synchronized long getDecreases() { return decreases; }
+    public synchronized long getQueuedEstimate() { return (long)queued; }
+}
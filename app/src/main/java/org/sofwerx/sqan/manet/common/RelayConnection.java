@@ -30,6 +30,10 @@ public class RelayConnection {
         parse(raw);
     }
 
+    public RelayConnection(ByteBuffer raw) {
+        parse(raw);
+    }
+
     public int getSqAnID() {
         return sqAnID;
     }
@@ -60,6 +64,15 @@ public class RelayConnection {
 
     public byte[] toBytes() {
         ByteBuffer out = ByteBuffer.allocate(SIZE);
+        writeTo(out);
+        return out.array();
+    }
+
+    /**
+     * Writes this relay connection into the buffer at its current position
+     * @param out
+     */
+    public void writeTo(ByteBuffer out) {
         out.putInt(sqAnID);
         out.putInt(hops);
         out.putLong(lastConnection);
@@ -69,13 +82,21 @@ public class RelayConnection {
         if (directWiFi)
             flags = (byte)(flags | FLAG_WIFI);
         out.put(flags);
-        return out.array();
     }
 
     public void parse(byte[] bytes) {
         if (bytes == null)
             return;
-        ByteBuffer in = ByteBuffer.wrap(bytes);
+        parse(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Reads this relay connection from the buffer at its current position
+     * @param in
+     */
+    public void parse(ByteBuffer in) {
+        if (in == null)
+            return;
         try {
             sqAnID = in.getInt();
             hops = in.getInt();
@@ -0,0 +1,91 @@
+package org.sofwerx.sqan.manet.common;
+
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
+
+/**
+ * Caches the preferred transport and next hop for each destination so that routing a packet
+ * does not require re-evaluating the device list. Routes are only recomputed after the
+ * topology changes (i.e. a heartbeat or connection change alters hops, relays, status or
+ * transport preference for a device). Each MeshState has its own routes.
+ */
+public class RouteCache {
+    /**
+     * Marks all cached routes as needing to be recomputed
+     */
+    public static void onTopologyChanged() { MeshState.get().topologyVersion.incrementAndGet(); }
+
+    /**
+     * Gets the current topology version (changes every time the topology changes)
+     * @return
+     */
+    public static int getTopologyVersion() { return MeshState.get().topologyVersion.get(); }
+
+    /**
+     * Gets the route to a destination
+     * @param destination SqAN UUID of the destination
+     * @return the route (or null if this is a broadcast or the destination is unknown)
+     */
+    public static Route getRoute(int destination) {
+        if (destination == PacketHeader.BROADCAST_ADDRESS)
+            return null;
+        final MeshState state = MeshState.get();
+        final int version = state.topologyVersion.get();
+        Route route = state.routes.get(destination);
+        if ((route != null) && (route.version == version))
+            return route;
+        SqAnDevice device = SqAnDevice.findByUUID(destination);
+        if (device == null) {
+            state.routes.remove(destination);
+            return null;
+        }
+        route = new Route(destination,device.getPreferredTransport(),device.getNextHop(),version);
+        state.routes.put(destination,route);
+        return route;
+    }
+
+    public static void clear() {
+        MeshState.get().routes.clear();
+        onTopologyChanged();
+    }
+
+    public static class Route {
+        private final int destination;
+        private final TransportPreference transport;
+        private final int nextHop;
+        private final int version;
+
+        private Route(int destination, TransportPreference transport, int nextHop, int version) {
+            this.destination = destination;
+            this.transport = transport;
+            this.nextHop = nextHop;
+            this.version = version;
+        }
+
+        public int getDestination() { return destination; }
+
+        /**
+         * Gets the preferred transport to reach this destination
+         * @return
+         */
+        public TransportPreference getTransport() { return transport; }
+
+        /**
+         * Gets the directly connected device that packets for this destination should go through
+         * @return the SqAN UUID of the next hop (or SqAnDevice.UNASSIGNED_UUID if no path is known)
+         */
+        public int getNextHop() { return nextHop; }
+
+        /**
+         * Is the destination directly connected to this device
+         * @return
+         */
+        public boolean isDirect() { return nextHop == destination; }
+
+        /**
+         * Is a path to this destination known
+         * @return
+         */
+        public boolean isReachable() { return nextHop != SqAnDevice.UNASSIGNED_UUID; }
+    }
+}
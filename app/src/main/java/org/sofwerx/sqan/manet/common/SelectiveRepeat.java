@@ -0,0 +1,434 @@
+package org.sofwerx.sqan.manet.common;
+
+import org.sofwerx.notdroid.util.Log;
+
+import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.packet.ReliablePacket;
+import org.sofwerx.sqan.manet.common.packet.SegmentPacket;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Delivers packets that are not lossy and are sent to a single device with a selective-repeat
+ * ARQ. Each destination gets its own window of sequence numbers; the receiver acknowledges the
+ * next sequence number it expects plus a bitmap of the ones it already has past that, and those
+ * acknowledgements ride along on any reliable traffic going back (or go out on their own after a
+ * short delay). Unacknowledged packets are resent after a retransmit timeout with exponential
+ * backoff, or sooner once later packets are acknowledged without them. The timeout starts from
+ * the destination's measured ping round trips and then follows the round trips of the packets
+ * themselves (RFC 6298, ignoring resent packets) so queuing behind a full window is accounted for.
+ * Delivery is unordered: packets are handed on as soon as they arrive rather than waiting for the
+ * ones before them, so a packet that had to be resent can arrive after later ones.
+ */
+public class SelectiveRepeat {
+    private final static String TAG = Config.TAG+".ARQ";
+    public final static int WINDOW = 32; //packets in flight to each destination (also the size of the selective ack bitmap)
+    private final static int MAX_QUEUED = 256; //packets waiting for room in a destination's window before new ones are sent best effort
+    private final static int MAX_TRIES = 8;
+    private final static long ACK_DELAY = 100l; //how long an ack can wait for reverse traffic to ride on
+    private final static long MAX_BACKOFF = 1000l * 30l;
+    private final static long MIN_RETRANSMIT_TIMEOUT = 100l;
+    private final static int SEQUENCE_SPACE = 0x10000;
+    private final Link link;
+    private final HashMap<Integer,Peer> peers = new HashMap<>();
+    private final Random random = new Random();
+    private long packetsSent = 0l;
+    private long resends = 0l;
+    private long packetsDelivered = 0l;
+    private long duplicates = 0l;
+    private long acksSent = 0l;
+    private long packetsAbandoned = 0l;
+    private long packetsUnreliable = 0l;
+
+    public interface Link {
+        /**
+         * Sends the packet toward its destination
+         * @param packet
+         * @param preferredTransport
+         */
+        void transmit(AbstractPacket packet, TransportPreference preferredTransport);
+
+        /**
+         * Gets how long to wait for an acknowledgement from this device
+         * @param destination
+         * @return ms
+         */
+        long getRetransmitTimeout(int destination);
+    }
+
+    public SelectiveRepeat(Link link) {
+        this.link = link;
+    }
+
+    /**
+     * Should this packet be sent with acknowledgements and resends
+     * @param packet
+     * @return
+     */
+    public static boolean isApplicable(AbstractPacket packet) {
+        return (packet != null) && !packet.isLossy() && (packet.getSqAnDestination() != PacketHeader.BROADCAST_ADDRESS)
+                && !(packet instanceof ReliablePacket) && !(packet instanceof SegmentPacket)
+                && (Config.getThisDevice() != null) && (packet.getOrigin() == Config.getThisDevice().getUUID());
+    }
+
+    /**
+     * Sends a packet over any transport (or queues it if the destination's window is full)
+     * @param packet
+     * @param now
+     */
+    public void send(AbstractPacket packet, long now) { send(packet,TransportPreference.AGNOSTIC,now); }
+
+    /**
+     * Sends a packet (or queues it if the destination's window is full)
+     * @param packet
+     * @param preferredTransport used for this and later packets to the same destination, including resends
+     * @param now
+     */
+    public synchronized void send(AbstractPacket packet, TransportPreference preferredTransport, long now) {
+        byte[] bytes = packet.toByteArray();
+        if (bytes == null)
+            return;
+        Peer peer = getPeer(packet.getOrigin(),packet.getSqAnDestination());
+        peer.highPerformance = peer.highPerformance || packet.isHighPerformanceNeeded();
+        if (preferredTransport != null)
+            peer.transport = preferredTransport;
+        if (peer.queued.size() >= MAX_QUEUED) {
+            packetsUnreliable++;
+            Log.w(TAG,"Too many packets waiting for "+peer.uuid+"; sending "+packet.getClass().getSimpleName()+" without acknowledgement");
+            link.transmit(packet,peer.transport);
+            return;
+        }
+        peer.queued.add(bytes);
+        fillWindow(peer,now);
+    }
+
+    /**
+     * Handles a reliable packet addressed to this device
+     * @param packet
+     * @param now
+     * @return the wrapped packet if it should be delivered (null if it was only acknowledgements or is a duplicate)
+     */
+    public synchronized AbstractPacket onReceived(ReliablePacket packet, long now) {
+        if (packet == null)
+            return null;
+        Peer peer = getPeer(packet.getSqAnDestination(),packet.getOrigin());
+        if (packet.hasAck())
+            onAck(peer,packet.getAckSession(),packet.getAck(),packet.getSelectiveAcks(),now);
+        if (!packet.hasData())
+            return null;
+        if (!peer.rxStarted || (peer.rxSession != packet.getSession())) {
+            peer.rxStarted = true;
+            peer.rxSession = packet.getSession();
+            peer.rxNext = packet.getBase();
+            peer.rxReceived = 0;
+        }
+        int skip = distance(peer.rxNext,packet.getBase());
+        if ((skip > 0) && (skip < SEQUENCE_SPACE/2)) {
+            //the sender gave up on some packets so stop waiting for them
+            advanceReceived(peer,skip);
+        }
+        final int offset = distance(peer.rxNext,packet.getSequence());
+        if (offset >= WINDOW) {
+            //already received (or too far ahead to track); let the sender know where things stand
+            duplicates++;
+            peer.ackDue = now;
+            return null;
+        }
+        if (offset == 0)
+            advanceReceived(peer,1);
+        else {
+            final int bit = 1 << (offset - 1);
+            if ((peer.rxReceived & bit) != 0) {
+                duplicates++;
+                peer.ackDue = now;
+                return null;
+            }
+            peer.rxReceived |= bit;
+        }
+        packetsDelivered++;
+        peer.rxUnacked++;
+        if ((offset != 0) || (peer.rxUnacked >= 2))
+            peer.ackDue = now; //out of order or a second packet waiting, so acknowledge now
+        else
+            peer.ackDue = Math.min(peer.ackDue,now + ACK_DELAY);
+        return packet.getWrapped();
+    }
+
+    /**
+     * A reliable packet could not be sent, so resend it as soon as possible
+     * @param packet
+     * @param now
+     */
+    public synchronized void onTxFailed(ReliablePacket packet, long now) {
+        if ((packet == null) || !packet.hasData())
+            return;
+        Peer peer = peers.get(packet.getSqAnDestination());
+        if ((peer == null) || (peer.session != packet.getSession()))
+            return;
+        Outstanding out = peer.window[packet.getSequence() % WINDOW];
+        if ((out != null) && (out.sequence == packet.getSequence()))
+            out.dueAt = now;
+    }
+
+    /**
+     * Resends packets that have timed out and sends any acknowledgements that have waited long enough
+     * @param now
+     * @return when this should next be called (or Long.MAX_VALUE if nothing is waiting)
+     */
+    public synchronized long onTimer(long now) {
+        for (Peer peer:peers.values()) {
+            if (peer.inFlight > 0) {
+                for (int i=0;i<peer.nextSequence - peer.base;i++) {
+                    Outstanding out = peer.window[(peer.base + i) % WINDOW];
+                    if ((out != null) && (out.dueAt <= now)) {
+                        if (out.tries >= MAX_TRIES) {
+                            packetsAbandoned++;
+                            Log.w(TAG,"Giving up on packet "+out.sequence+" to "+peer.uuid+" after "+out.tries+" tries");
+                            peer.window[out.sequence % WINDOW] = null;
+                            peer.inFlight--;
+                        } else {
+                            resends++;
+                            transmit(peer,out,now);
+                        }
+                    }
+                }
+                slideWindow(peer,now);
+            }
+            if (peer.ackDue <= now)
+                sendAck(peer);
+        }
+        return getNextDue();
+    }
+
+    /**
+     * Gets when onTimer next has something to do
+     * @return time (or Long.MAX_VALUE if nothing is waiting)
+     */
+    public synchronized long getNextDue() {
+        long next = Long.MAX_VALUE;
+        for (Peer peer:peers.values()) {
+            next = Math.min(next,peer.ackDue);
+            if (peer.inFlight > 0) {
+                for (Outstanding out:peer.window) {
+                    if (out != null)
+                        next = Math.min(next,out.dueAt);
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Forgets everything about a device (i.e. it has left the mesh)
+     * @param uuid
+     */
+    public synchronized void forget(int uuid) { peers.remove(uuid); }
+
+    private Peer getPeer(int origin, int uuid) {
+        Peer peer = peers.get(uuid);
+        if (peer == null) {
+            peer = new Peer(origin,uuid,(byte)random.nextInt(),random.nextInt(SEQUENCE_SPACE));
+            peers.put(uuid,peer);
+        }
+        return peer;
+    }
+
+    private void fillWindow(Peer peer, long now) {
+        while (!peer.queued.isEmpty() && (peer.nextSequence - peer.base < WINDOW)) {
+            Outstanding out = new Outstanding(peer.nextSequence & 0xFFFF,peer.queued.poll());
+            peer.window[out.sequence % WINDOW] = out;
+            peer.nextSequence++;
+            peer.inFlight++;
+            packetsSent++;
+            transmit(peer,out,now);
+        }
+    }
+
+    private void transmit(Peer peer, Outstanding out, long now) {
+        ReliablePacket packet = new ReliablePacket(peer.origin,peer.uuid);
+        packet.setData(out.bytes,peer.session,out.sequence,peer.base);
+        packet.setLossy(false);
+        packet.setHighPerformanceNeeded(peer.highPerformance);
+        addAck(peer,packet);
+        out.tries++;
+        out.sentAt = now;
+        out.dueAt = now + getBackoff(peer,out);
+        link.transmit(packet,peer.transport);
+    }
+
+    private long getBackoff(Peer peer, Outstanding out) {
+        return Math.min(MAX_BACKOFF,getRetransmitTimeout(peer) << (out.tries - 1));
+    }
+
+    private long getRetransmitTimeout(Peer peer) {
+        if (peer.smoothedRtt < 0l)
+            return link.getRetransmitTimeout(peer.uuid);
+        return Math.max(MIN_RETRANSMIT_TIMEOUT,peer.smoothedRtt + 4l*peer.rttVariation);
+    }
+
+    private void addRttSample(Peer peer, Outstanding out, long now) {
+        if ((out == null) || (out.tries != 1))
+            return; //can't tell which try a resent packet's ack was for
+        final long rtt = now - out.sentAt;
+        if (peer.smoothedRtt < 0l) {
+            peer.smoothedRtt = rtt;
+            peer.rttVariation = rtt/2l;
+        } else {
+            peer.rttVariation = (3l*peer.rttVariation + Math.abs(peer.smoothedRtt - rtt))/4l;
+            peer.smoothedRtt = (7l*peer.smoothedRtt + rtt)/8l;
+        }
+    }
+
+    private void sendAck(Peer peer) {
+        ReliablePacket packet = new ReliablePacket(peer.origin,peer.uuid);
+        addAck(peer,packet);
+        acksSent++;
+        link.transmit(packet,peer.transport);
+    }
+
+    private void addAck(Peer peer, ReliablePacket packet) {
+        if (peer.rxStarted) {
+            packet.setAck(peer.rxSession,peer.rxNext,peer.rxReceived);
+            peer.ackDue = Long.MAX_VALUE;
+            peer.rxUnacked = 0;
+        }
+    }
+
+    private void onAck(Peer peer, byte session, int ack, int selectiveAcks, long now) {
+        if ((session != peer.session) || (peer.inFlight == 0))
+            return;
+        final int cumulative = distance(peer.base & 0xFFFF,ack);
+        if (cumulative > WINDOW)
+            return; //stale or not for this window
+        boolean progress = false;
+        for (int i=0;i<cumulative;i++) {
+            Outstanding out = release(peer,peer.base + i);
+            if (out != null) {
+                progress = true;
+                addRttSample(peer,out,now);
+            }
+        }
+        long latestAcked = Long.MIN_VALUE;
+        for (int i=0;i<WINDOW-1;i++) {
+            if ((selectiveAcks & (1 << i)) != 0) {
+                Outstanding out = release(peer,peer.base + cumulative + 1 + i);
+                if (out != null) {
+                    progress = true;
+                    addRttSample(peer,out,now);
+                    latestAcked = Math.max(latestAcked,out.sentAt);
+                }
+            }
+        }
+        for (int i=0;i<peer.nextSequence - peer.base;i++) {
+            Outstanding out = peer.window[(peer.base + i) % WINDOW];
+            if (out == null)
+                continue;
+            if (out.sentAt < latestAcked)
+                out.dueAt = Math.min(out.dueAt,now); //sent before a packet that has been acknowledged so probably lost; resend it now
+            else if (progress)
+                out.dueAt = Math.max(out.dueAt,now + getBackoff(peer,out)); //still moving, so the rest may just be queued; restart their timers
+        }
+        slideWindow(peer,now);
+    }
+
+    private Outstanding release(Peer peer, int sequence) {
+        if (sequence - peer.base >= peer.nextSequence - peer.base)
+            return null;
+        Outstanding out = peer.window[(sequence & 0xFFFF) % WINDOW];
+        if ((out == null) || (out.sequence != (sequence & 0xFFFF)))
+            return null;
+        peer.window[out.sequence % WINDOW] = null;
+        peer.inFlight--;
+        return out;
+    }
+
+    private void slideWindow(Peer peer, long now) {
+        while ((peer.base != peer.nextSequence) && (peer.window[(peer.base & 0xFFFF) % WINDOW] == null))
+            peer.base++;
+        fillWindow(peer,now);
+    }
+
+    /**
+     * Moves the next expected sequence number ahead, then past any that were already received
+     */
+    private void advanceReceived(Peer peer, int count) {
+        boolean received = false;
+        for (int i=0;i<count;i++) {
+            received = advanceReceived(peer);
+        }
+        while (received) {
+            received = advanceReceived(peer);
+        }
+    }
+
+    /**
+     * Moves the next expected sequence number ahead by one
+     * @return true == the new next expected sequence number was already received
+     */
+    private boolean advanceReceived(Peer peer) {
+        final boolean received = (peer.rxReceived & 1) != 0;
+        peer.rxNext = (peer.rxNext + 1) & 0xFFFF;
+        peer.rxReceived >>>= 1;
+        return received;
+    }
+
+    /**
+     * How far ahead a sequence number is (modulo the sequence space)
+     */
+    private static int distance(int from, int to) { return (to - from) & 0xFFFF; }
+
+    public synchronized long getPacketsSent() { return packetsSent; }
+    public synchronized long getResends() { return resends; }
+    public synchronized long getPacketsDelivered() { return packetsDelivered; }
+    public synchronized long getDuplicates() { return duplicates; }
+    public synchronized long getAcksSent() { return acksSent; }
+    public synchronized long getPacketsAbandoned() { return packetsAbandoned; }
+    public synchronized long getPacketsUnreliable() { return packetsUnreliable; }
+
+    private static class Peer {
+        private final int origin; //this device
+        private final int uuid;
+        private final byte session;
+        private int base; //oldest sequence not yet acknowledged (not wrapped to 16 bits)
+        private int nextSequence; //not wrapped to 16 bits
+        private int inFlight = 0;
+        private boolean highPerformance = false;
+        private TransportPreference transport = TransportPreference.AGNOSTIC;
+        private final Outstanding[] window = new Outstanding[WINDOW];
+        private final ArrayDeque<byte[]> queued = new ArrayDeque<>();
+        private boolean rxStarted = false;
+        private byte rxSession;
+        private int rxNext;
+        private int rxReceived; //bit i set == rxNext + 1 + i has been received
+        private int rxUnacked = 0;
+        private long ackDue = Long.MAX_VALUE;
+        private long smoothedRtt = -1l; //ms, from acknowledged packets
+        private long rttVariation = -1l;
+
+        private Peer(int origin, int uuid, byte session, int firstSequence) {
+            this.origin = origin;
+            this.uuid = uuid;
+            this.session = session;
+            base = firstSequence;
+            nextSequence = firstSequence;
+        }
+    }
+
+    private static class Outstanding {
+        private final int sequence;
+        private final byte[] bytes;
+        private int tries = 0;
+        private long sentAt;
+        private long dueAt;
+
+        private Outstanding(int sequence, byte[] bytes) {
+            this.sequence = sequence;
+            this.bytes = bytes;
+        }
+    }
+}
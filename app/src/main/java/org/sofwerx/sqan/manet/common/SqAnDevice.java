@@ -18,6 +18,7 @@ import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
 import org.sofwerx.sqan.util.AddressUtil;
 import org.sofwerx.sqan.ui.DeviceSummary;
 import org.sofwerx.sqan.util.CommsLog;
+import org.sofwerx.sqan.util.Metrics;
 import org.sofwerx.sqan.util.NetUtil;
 import org.sofwerx.sqan.util.StringUtil;
 import org.sofwerx.sqan.util.UuidUtil;
@@ -25,23 +26,26 @@ import org.sofwerx.sqan.util.UuidUtil;
 import java.net.Inet6Address;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class SqAnDevice {
     private final static int FIRST_VALID_UUID = 1540000000; //no SqAN device should have a UUID below this
     //private final static int VALID_UUID_UPPER_BOUNDS = (int)(System.currentTimeMillis()/1000l)+2000000;
     private final static int VALID_UUID_UPPER_BOUNDS = (int)(System.currentTimeMillis()/1000l)+80000000;
-    private static final long TIME_TO_CONSIDER_HOP_COUNT_STALE = 1000l * 60l;
+    static final long TIME_TO_CONSIDER_HOP_COUNT_STALE = 1000l * 60l;
     public final static long TIME_TO_STALE = 1000l * 60l;
     //private final static long TIME_TO_REMOVE_STALE = TIME_TO_STALE * 2l;
     private final static int MAX_LATENCY_HISTORY = 100; //the max number of latency records to keep
+    private final static Metrics.Histogram rttHistogram = Metrics.histogram("sqan_rtt_ms","Round trips measured to other devices");
+    public final static long DEFAULT_RETRANSMIT_TIMEOUT = 1000l * 3l; //used until a round trip has been measured
+    private final static long MIN_RETRANSMIT_TIMEOUT = 200l;
+    private final static long MAX_RETRANSMIT_TIMEOUT = 1000l * 60l;
     public final static int UNASSIGNED_UUID = Integer.MIN_VALUE;
     public final static int BROADCAST_IP = AddressUtil.getSqAnVpnIpv4Address(PacketHeader.BROADCAST_ADDRESS);
     private final static int MAX_RELAY_CONNECTIONS_TO_SAVE = 20;
     public final static byte[] NO_IPV6_ADDRESS = {(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0,(byte)0};
-    private static AtomicInteger nextUnassignedUUID = new AtomicInteger(-1);
-    private static ArrayList<SqAnDevice> devices;
     private int uuid; //this is the persistent SqAN ID for this device
     private String callsign; //this is the callsign which also acts as the domain name for this device
     private String uuidExtended; //this is the persistent ID for this device used solely to look for conflicts
@@ -53,11 +57,16 @@ public class SqAnDevice {
     private long displayedRxTally = 0l; //a counter used to help update the GUI when a "ping" happens
     private Status status = Status.OFFLINE;
     private ArrayList<Long> latencies;
+    private long smoothedRtt = -1l; //ms
+    private long rttVariation = -1l; //ms
     private long discoveryTime = -1l; //used to mark when this device was discovered
     private long connectTime = -1l; //used to mark when this device was connected
     private CommsLog.Entry lastEntry = null;
     private SpaceTime lastLocation = null;
     private boolean backhaulConnection = false;
+    private boolean vpnBatches = false; //learned from this device's heartbeat flags
+    private boolean compactHeartbeats = false; //learned from this device's heartbeat flags
+    private boolean headerCompression = false; //learned from this device's heartbeat flags
     private DeviceSummary uiSummary = null;
     private NodeRole roleWiFi = NodeRole.OFF;
     private NodeRole roleBT = NodeRole.OFF;
@@ -70,6 +79,7 @@ public class SqAnDevice {
     private long lastHopUpdate = Long.MIN_VALUE;
     private long lastForwardedToThisDevice = Long.MIN_VALUE;
     private ArrayList<RelayConnection> relays = new ArrayList<>();
+    private long relaysReported = 0l; //when this device last reported its relay list
     private int ipV4Address = Integer.MIN_VALUE;
     private TransportPreference preferredTransport = TransportPreference.AGNOSTIC;
     private long connectionStart = Long.MIN_VALUE;
@@ -197,6 +207,7 @@ public class SqAnDevice {
     public SqAnDevice(int uuid, String networkId) {
         this(uuid);
         this.networkId = networkId;
+        DeviceIndex.reindex(this);
     }
 
     public SqAnDevice(SavedTeammate teammate) {
@@ -205,6 +216,7 @@ public class SqAnDevice {
             networkId = teammate.getNetID();
             callsign = teammate.getCallsign();
             bluetoothMac = teammate.getBluetoothMac();
+            DeviceIndex.reindex(this);
         }
     }
 
@@ -214,6 +226,7 @@ public class SqAnDevice {
      * @return null == not found
      */
     public static SqAnDevice findByTransientAwareID(int id) {
+        final ArrayList<SqAnDevice> devices = MeshState.get().devices;
         if ((id != UNASSIGNED_UUID) && (devices != null) && !devices.isEmpty()) {
             synchronized (devices) {
                 for (SqAnDevice device:devices) {
@@ -241,7 +254,7 @@ public class SqAnDevice {
 
     private void init(int uuid) {
         if (uuid == UNASSIGNED_UUID) {
-            this.uuid = nextUnassignedUUID.decrementAndGet();
+            this.uuid = MeshState.get().nextUnassignedUUID.decrementAndGet();
             if (this.uuid > 0)
                 CommsLog.log(CommsLog.Entry.Category.PROBLEM,"SqAnDevice with unknown UUID assigned a positive UUID of "+this.uuid+" [this should never happen]");
             Log.w(Config.TAG,"This device has an unassigned UUID and so has been assigned the next UUID in the host's UUID block: "+this.uuid);
@@ -251,6 +264,7 @@ public class SqAnDevice {
     }
 
     public static boolean hasAtLeastOneActiveConnection() {
+        final ArrayList<SqAnDevice> devices = MeshState.get().devices;
         if (devices != null) {
             for (SqAnDevice device:devices) {
                 if ((device != null) && device.isActive())
@@ -266,7 +280,7 @@ public class SqAnDevice {
      * @param index
      */
     public static void setUnassignedBlockIndex(int index) {
-        nextUnassignedUUID.set(index);
+        MeshState.get().nextUnassignedUUID.set(index);
     }
 
     /**
@@ -274,16 +288,7 @@ public class SqAnDevice {
      * @return null == no device is in conflict
      */
     public SqAnDevice getConflictingDevice() {
-        int thisIpv4Address = getVpnIpv4AddressInt();
-        if ((devices != null) && !devices.isEmpty()) {
-            synchronized (devices) {
-                for (SqAnDevice device : devices) {
-                    if (device.getVpnIpv4AddressInt() == thisIpv4Address)
-                        return device;
-                }
-            }
-        }
-        return null;
+        return DeviceIndex.findByIpv4IP(getVpnIpv4AddressInt());
     }
 
     /**
@@ -291,6 +296,7 @@ public class SqAnDevice {
      * @return
      */
     public static ArrayList<SqAnDevice> getWiFiAwareDevices() {
+        final ArrayList<SqAnDevice> devices = MeshState.get().devices;
         ArrayList<SqAnDevice> awareDevices = null;
         if ((devices != null) && !devices.isEmpty()) {
             synchronized (devices) {
@@ -324,9 +330,11 @@ public class SqAnDevice {
         if ((mac == null) || !BluetoothAdapter.checkBluetoothAddress(mac)) {
             Log.e(Config.TAG,"MAC address "+mac+" is not a valid Bluetooth mac address");
             bluetoothMac = null;
+            DeviceIndex.reindex(this);
             return;
         }
         bluetoothMac = new MacAddress(mac);
+        DeviceIndex.reindex(this);
     }
 
     /**
@@ -341,19 +349,35 @@ public class SqAnDevice {
 
     public void setHopsAway(int hops, boolean directBt, boolean directWiFi) { setHopsAway(hops, directBt, directWiFi,directWiFiHiPerf); }
     public void setHopsAway(int hops, boolean directBt, boolean directWiFi, boolean directWiFiHiPerf) {
+        boolean changed = (hopsAway != hops);
         hopsAway = hops;
         if (hopsAway == 0) {
+            changed = changed || (this.directBt != directBt) || (this.directWiFi != directWiFi);
             this.directBt = directBt;
             this.directWiFi = directWiFi;
             this.directWiFiHiPerf = directWiFiHiPerf;
         }
+        if (changed)
+            RouteCache.onTopologyChanged();
     }
 
     public void setDirectSDR(boolean directSDR) {
+        if ((this.directSDR != directSDR) || (hopsAway != 0))
+            RouteCache.onTopologyChanged();
         this.directSDR = directSDR;
         hopsAway = 0;
     }
 
+    /**
+     * Is this device directly connected via SDR
+     * @return
+     */
+    public boolean isDirectSDR() {
+        if (hopsAway == 0)
+            return directSDR;
+        return false;
+    }
+
     /**
      * Is this device connected with a high performance version of WiFi (as opposed to something like using WiFi
      * Aware messages
@@ -375,7 +399,12 @@ public class SqAnDevice {
      * Sets if this device directly connected via WiFi
      * @param directWiFi
      */
-    public void setDirectWiFi(boolean directWiFi) { this.directWiFi = directWiFi; }
+    public void setDirectWiFi(boolean directWiFi) {
+        if (this.directWiFi != directWiFi) {
+            this.directWiFi = directWiFi;
+            RouteCache.onTopologyChanged();
+        }
+    }
 
     /**
      * Is this device directly connected via Bluetooth
@@ -391,7 +420,12 @@ public class SqAnDevice {
      * Sets if this device directly connected via Bluetooth
      * @param directBt
      */
-    public void setDirectBt(boolean directBt) { this.directBt = directBt; }
+    public void setDirectBt(boolean directBt) {
+        if (this.directBt != directBt) {
+            this.directBt = directBt;
+            RouteCache.onTopologyChanged();
+        }
+    }
 
     /**
      * Sets the last time our device forwarded a packet to this device
@@ -480,6 +514,7 @@ public class SqAnDevice {
      * @param other
      */
     public void consume(SqAnDevice other) {
+        final ArrayList<SqAnDevice> devices = MeshState.get().devices;
         if (other == null)
             return;
         CommsLog.log(CommsLog.Entry.Category.CONNECTION,"Device "+other.getLabel()+" is being merged into "+getLabel());
@@ -488,6 +523,7 @@ public class SqAnDevice {
             return; //this should not happen
         synchronized (devices) {
             devices.remove(other);
+            onRemovedFromList(other);
         }
     }
 
@@ -684,37 +720,60 @@ public class SqAnDevice {
      * @return the device that absorbed a duplicate device
      */
     public static SqAnDevice dedup() {
+        final ArrayList<SqAnDevice> devices = MeshState.get().devices;
         if ((devices == null) || (devices.size() < 2))
             return null;
 
-        boolean scanNeeded = true;
-        int inspectingIndex = 0;
-        while ((inspectingIndex < devices.size()) && scanNeeded) {
-            SqAnDevice inspecting = devices.get(inspectingIndex);
-            for (int i=0;i<devices.size();i++) {
-                if (i != inspectingIndex) {
-                    SqAnDevice other = devices.get(i);
-                    if (inspecting.isSame(other)) {
-                        if (inspecting.lastConnect > other.lastConnect) {
-                            CommsLog.log(CommsLog.Entry.Category.STATUS, "Duplicate devices detected; " + other.uuid + " merged into " + inspecting.uuid);
-                            devices.remove(i);
-                            inspecting.update(other);
-                            return inspecting;
-                        } else {
-                            CommsLog.log(CommsLog.Entry.Category.STATUS, "Duplicate devices detected; " + inspecting.uuid + " merged into " + other.uuid);
-                            devices.remove(inspectingIndex);
-                            other.update(inspecting);
-                            return other;
+        synchronized (devices) {
+            boolean scanNeeded = true;
+            int inspectingIndex = 0;
+            while ((inspectingIndex < devices.size()) && scanNeeded) {
+                SqAnDevice inspecting = devices.get(inspectingIndex);
+                for (int i = 0; i < devices.size(); i++) {
+                    if (i != inspectingIndex) {
+                        SqAnDevice other = devices.get(i);
+                        if (inspecting.isSame(other)) {
+                            if (inspecting.lastConnect > other.lastConnect) {
+                                CommsLog.log(CommsLog.Entry.Category.STATUS, "Duplicate devices detected; " + other.uuid + " merged into " + inspecting.uuid);
+                                devices.remove(i);
+                                inspecting.update(other);
+                                onRemovedFromList(other);
+                                return inspecting;
+                            } else {
+                                CommsLog.log(CommsLog.Entry.Category.STATUS, "Duplicate devices detected; " + inspecting.uuid + " merged into " + other.uuid);
+                                devices.remove(inspectingIndex);
+                                other.update(inspecting);
+                                onRemovedFromList(inspecting);
+                                return other;
+                            }
                         }
                     }
                 }
+                inspectingIndex++;
             }
-            inspectingIndex++;
         }
 
         return null;
     }
 
+    /**
+     * Drops a device that was just taken out of the list of devices from the lookup index. Any
+     * remaining devices are re-indexed in case they shared a lookup value with the removed device
+     * @param removed
+     */
+    private static void onRemovedFromList(SqAnDevice removed) {
+        final ArrayList<SqAnDevice> devices = MeshState.get().devices;
+        DeviceIndex.unindex(removed);
+        if (devices != null) {
+            synchronized (devices) {
+                for (SqAnDevice device:devices) {
+                    DeviceIndex.index(device);
+                }
+            }
+        }
+        RouteCache.onTopologyChanged();
+    }
+
     private void cullOldRelayConnections() {
         if (relays != null) {
             synchronized (relays) {
@@ -726,6 +785,7 @@ public class SqAnDevice {
                     if (System.currentTimeMillis() > relay.getLastConnection() + TIME_TO_CONSIDER_HOP_COUNT_STALE) {
                         Log.d(Config.TAG, "Removing old relay info from " + callsign + " to SqAn ID " + relay.getSqAnID());
                         relays.remove(i);
+                        RouteCache.onTopologyChanged();
                     } else {
                         if (worst == null)
                             worst = relay;
@@ -749,9 +809,12 @@ public class SqAnDevice {
      * logic will probably need a bit of tweaking
      */
     public static void updateDeviceRoutePreferences() {
+        final ArrayList<SqAnDevice> devices = MeshState.get().devices;
         if ((devices == null) || devices.isEmpty())
             return;
+        boolean changed = false;
         for (SqAnDevice device:devices) {
+            final TransportPreference previous = device.preferredTransport;
             if (device.isActive()) {
                 if (device.directWiFi)
                     device.addPreferWiFi();
@@ -769,7 +832,11 @@ public class SqAnDevice {
                     device.addPreferSDR();
             } else
                 device.preferredTransport = TransportPreference.AGNOSTIC;
+            if (previous != device.preferredTransport)
+                changed = true;
         }
+        if (changed)
+            RouteCache.onTopologyChanged();
     }
 
     /**
@@ -853,6 +920,7 @@ public class SqAnDevice {
      * @return
      */
     public static boolean cullOldDevices() {
+        final ArrayList<SqAnDevice> devices = MeshState.get().devices;
         if ((devices == null) || devices.isEmpty())
             return false;
 
@@ -868,6 +936,8 @@ public class SqAnDevice {
                         SavedTeammate teammate = Config.getTeammate(device.getUUID());
                         if ((teammate != null) && !teammate.isEnabled()) {
                             devices.remove(i);
+                            onRemovedFromList(device);
+                            culled = true;
                             CommsLog.log(CommsLog.Entry.Category.STATUS, "Removed disabled device " + device.getLabel());
                             continue;
                         }
@@ -925,7 +995,11 @@ public class SqAnDevice {
      * very rare exception of a collision with another device
      * @param uuid
      */
-    public void setUUID(int uuid) { this.uuid = uuid; }
+    public void setUUID(int uuid) {
+        this.uuid = uuid;
+        DeviceIndex.reindex(this);
+        RouteCache.onTopologyChanged();
+    }
 
     /**
      * Gets the device specific UUID; this is (almost always) immutable and singularly
@@ -1039,6 +1113,26 @@ public class SqAnDevice {
         latencies.add(latency);
         while (latencies.size() > MAX_LATENCY_HISTORY)
             latencies.remove(0);
+        if (smoothedRtt < 0l) {
+            smoothedRtt = latency;
+            rttVariation = latency/2l;
+        } else {
+            rttVariation = (3l*rttVariation + Math.abs(smoothedRtt - latency))/4l;
+            smoothedRtt = (7l*smoothedRtt + latency)/8l;
+        }
+        rttHistogram.record(latency);
+        RateController.onRttSample(uuid,latency);
+    }
+
+    /**
+     * Gets how long to wait for an acknowledgement from this device before resending (the
+     * smoothed round trip plus four times its variation, as in RFC 6298)
+     * @return timeout in milliseconds
+     */
+    public long getRetransmitTimeout() {
+        if (smoothedRtt < 0l)
+            return DEFAULT_RETRANSMIT_TIMEOUT;
+        return Math.min(MAX_RETRANSMIT_TIMEOUT,Math.max(MIN_RETRANSMIT_TIMEOUT,smoothedRtt + 4l*rttVariation));
     }
 
     public long getAverageLatency() {
@@ -1060,6 +1154,8 @@ public class SqAnDevice {
 
     public void setStatus(Status status) {
         if (this.status != status) {
+            if ((this.status == Status.CONNECTED) || (status == Status.CONNECTED))
+                RouteCache.onTopologyChanged();
             this.status = status;
             switch(status) {
                 case STALE:
@@ -1130,14 +1226,57 @@ public class SqAnDevice {
             if (relays.size() > MAX_RELAY_CONNECTIONS_TO_SAVE)
                 cullOldRelayConnections();
             relays.add(connection);
-        } else
+            RouteCache.onTopologyChanged();
+        } else {
+            final int hops = current.getHops();
             current.update(connection);
+            if (hops != current.getHops())
+                RouteCache.onTopologyChanged();
+        }
     }
 
     public void setRelayConnections(ArrayList<RelayConnection> relays) {
         this.relays = relays;
+        RouteCache.onTopologyChanged();
     }
 
+    /**
+     * Replaces this device's relay connections with a complete list it reported, dropping any
+     * connection that is no longer on it
+     * @param reported
+     */
+    public void replaceRelayConnections(List<RelayConnection> reported) {
+        if (reported == null)
+            return;
+        HashSet<Integer> ids = new HashSet<>();
+        for (RelayConnection connection:reported) {
+            ids.add(connection.getSqAnID());
+        }
+        synchronized (relays) {
+            Iterator<RelayConnection> i = relays.iterator();
+            while (i.hasNext()) {
+                if (!ids.contains(i.next().getSqAnID())) {
+                    i.remove();
+                    RouteCache.onTopologyChanged();
+                }
+            }
+        }
+        for (RelayConnection connection:reported) {
+            updateRelayConnection(connection);
+        }
+    }
+
+    /**
+     * This device's full relay list was just received (i.e. in a heartbeat)
+     */
+    public void onRelaysReported() { relaysReported = System.currentTimeMillis(); }
+
+    /**
+     * Gets when this device last reported its full relay list
+     * @return
+     */
+    public long getRelaysReported() { return relaysReported; }
+
     public boolean isActive() {
         return (status == Status.CONNECTED);
     }
@@ -1147,6 +1286,7 @@ public class SqAnDevice {
      * @return
      */
     public static List<String> getActiveDevicesNetworkIds() {
+        final ArrayList<SqAnDevice> devices = MeshState.get().devices;
         if ((devices == null) || devices.isEmpty())
             return null;
         ArrayList<String> active = new ArrayList<>();
@@ -1194,10 +1334,13 @@ public class SqAnDevice {
             if ((lastLocation == null) || !lastLocation.isValid() || (other.lastLocation.getTime() > lastLocation.getTime()))
                 lastLocation = other.lastLocation;
         }
-        if (other.relays != null)
+        if (other.relays != null) {
             relays = other.relays;
-        else
+            relaysReported = Math.max(relaysReported,other.relaysReported);
+            RouteCache.onTopologyChanged();
+        } else
             cullOldRelayConnections();
+        DeviceIndex.reindex(this);
         if (uuid > 0) {
             if (other.uuid < 0) {
                 CommsLog.log(CommsLog.Entry.Category.STATUS,other.networkId+" was a duplicate; information merged into "+uuid);
@@ -1207,6 +1350,7 @@ public class SqAnDevice {
     }
 
     public static int getActiveConnections() {
+        final ArrayList<SqAnDevice> devices = MeshState.get().devices;
         if ((devices == null) || devices.isEmpty())
             return 0;
         int sum = 0;
@@ -1253,11 +1397,12 @@ public class SqAnDevice {
     }
 
     public static ArrayList<SqAnDevice> getDevices() {
-        if (devices == null)
+        final MeshState state = MeshState.get();
+        if (state.devices == null)
             return null;
-        if (devices.isEmpty())
-            devices = null;
-        return devices;
+        if (state.devices.isEmpty())
+            state.devices = null;
+        return state.devices;
     }
 
     /**
@@ -1299,16 +1444,21 @@ public class SqAnDevice {
             return false;
         if ((Config.getThisDevice() != null) && (device.getUUID() == Config.getThisDevice().getUUID())) //dont add our own device
             return false;
-        if (devices == null) {
-            devices = new ArrayList<>();
-            devices.add(device);
+        final MeshState state = MeshState.get();
+        if (state.devices == null) {
+            state.devices = new ArrayList<>();
+            state.devices.add(device);
+            DeviceIndex.index(device);
+            RouteCache.onTopologyChanged();
             CommsLog.log(CommsLog.Entry.Category.CONNECTION,device.getLabel()+" was added to the list of devices.");
             return true;
         }
         SqAnDevice existing = find(device);
         if (existing == null) {
-            synchronized (devices) {
-                devices.add(device);
+            synchronized (state.devices) {
+                state.devices.add(device);
+                DeviceIndex.index(device);
+                RouteCache.onTopologyChanged();
                 CommsLog.log(CommsLog.Entry.Category.CONNECTION,device.getLabel()+" was added to the list of devices.");
             }
             return true;
@@ -1340,16 +1490,24 @@ public class SqAnDevice {
     }
 
     public static void remove(final SqAnDevice device) {
-        if (devices != null) {
-            devices.remove(device);
-            if (devices.isEmpty())
-                devices = null;
+        final MeshState state = MeshState.get();
+        if (state.devices != null) {
+            synchronized (state.devices) {
+                state.devices.remove(device);
+                onRemovedFromList(device);
+            }
+            if (state.devices.isEmpty())
+                state.devices = null;
         }
     }
 
     public static void clearAllDevices(ManetType type) {
         //TODO ignoring the type for now
-        devices = null;
+        MeshState.get().devices = null;
+        DeviceIndex.clear();
+        RouteCache.clear();
+        LinkState.clear();
+        RateController.clear();
     }
 
     /**
@@ -1358,13 +1516,21 @@ public class SqAnDevice {
      * @return the device (or null if the device is not found)
      */
     public static SqAnDevice find(final SqAnDevice other) {
-        if ((other != null) && (devices != null) && !devices.isEmpty()) {
-            synchronized (devices) {
-                for (SqAnDevice device : devices) {
-                    if ((device != null) && device.isSame(other))
-                        return device;
-                }
-            }
+        if (other == null)
+            return null;
+        SqAnDevice device = DeviceIndex.findByUUID(other.uuid);
+        if ((device != null) && device.isSame(other))
+            return device;
+        device = DeviceIndex.findByNetworkID(other.networkId);
+        if ((device != null) && device.isSame(other))
+            return device;
+        device = DeviceIndex.findByBtMac(other.bluetoothMac);
+        if ((device != null) && device.isSame(other))
+            return device;
+        if (other.transientAwareId != UNASSIGNED_UUID) {
+            device = findByTransientAwareID(other.transientAwareId);
+            if ((device != null) && device.isSame(other))
+                return device;
         }
         return null;
     }
@@ -1375,13 +1541,7 @@ public class SqAnDevice {
      * @return the device (or null if UUID is not found)
      */
     public static SqAnDevice findByUUID(int uuid) {
-        if ((devices != null) && !devices.isEmpty()) {
-            for (SqAnDevice device : devices) {
-                if ((device != null) && device.isSame(uuid))
-                    return device;
-            }
-        }
-        return null;
+        return DeviceIndex.findByUUID(uuid);
     }
 
     /**
@@ -1390,13 +1550,7 @@ public class SqAnDevice {
      * @return the device (or null if UUID is not found)
      */
     public static SqAnDevice findByIpv4IP(int ip) {
-        if ((devices != null) && !devices.isEmpty()) {
-            for (SqAnDevice device : devices) {
-                if ((device != null) && (ip == device.getVpnIpv4AddressInt()))
-                    return device;
-            }
-        }
-        return null;
+        return DeviceIndex.findByIpv4IP(ip);
     }
 
     /**
@@ -1405,13 +1559,7 @@ public class SqAnDevice {
      * @return the device (or null if not found)
      */
     public static SqAnDevice findByNetworkID(String networkId) {
-        if ((networkId != null) && (devices != null) && !devices.isEmpty()) {
-            for (SqAnDevice device : devices) {
-                if ((device != null) && (device.networkId != null) && device.networkId.equalsIgnoreCase(networkId))
-                    return device;
-            }
-        }
-        return null;
+        return DeviceIndex.findByNetworkID(networkId);
     }
 
     /**
@@ -1430,15 +1578,7 @@ public class SqAnDevice {
      * @return the device (or null if not found)
      */
     public static SqAnDevice findByBtMac(MacAddress mac) {
-        if ((mac != null) && (devices != null) && !devices.isEmpty()) {
-            synchronized (devices) {
-                for (SqAnDevice device : devices) {
-                    if ((device != null) && (mac.isEqual(device.bluetoothMac)))
-                        return device;
-                }
-            }
-        }
-        return null;
+        return DeviceIndex.findByBtMac(mac);
     }
 
     /**
@@ -1454,6 +1594,7 @@ public class SqAnDevice {
      * @return the device (or null if not found)
      */
     public static SqAnDevice findByWiFiDirectMac(MacAddress mac) {
+        final ArrayList<SqAnDevice> devices = MeshState.get().devices;
         if ((mac != null) && (devices != null) && !devices.isEmpty()) {
             synchronized (devices) {
                 for (SqAnDevice device : devices) {
@@ -1494,6 +1635,7 @@ public class SqAnDevice {
      * @return overall mesh status
      */
     public static FullMeshCapability getFullMeshStatus() {
+        final ArrayList<SqAnDevice> devices = MeshState.get().devices;
         if (devices != null) {
             synchronized (devices) {
                 boolean anyActive = false;
@@ -1544,6 +1686,34 @@ public class SqAnDevice {
         return Integer.MAX_VALUE;
     }
 
+    /**
+     * Finds the directly connected device that is the best relay for reaching this device
+     * @return the UUID of the next hop (this device's UUID if it is directly connected), or UNASSIGNED_UUID if no path is known
+     */
+    public int getNextHop() {
+        final ArrayList<SqAnDevice> devices = MeshState.get().devices;
+        if (!isActive())
+            return UNASSIGNED_UUID;
+        if (hopsAway == 0)
+            return uuid;
+        int best = UNASSIGNED_UUID;
+        int bestHops = Integer.MAX_VALUE;
+        if (devices != null) {
+            synchronized (devices) {
+                for (SqAnDevice relay : devices) {
+                    if ((relay == null) || (relay == this) || (relay.getHopsAway() != 0))
+                        continue;
+                    int hops = relay.getHopsToDevice(uuid);
+                    if ((hops >= 0) && (hops < bestHops)) {
+                        best = relay.uuid;
+                        bestHops = hops;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
     /**
      * Gets the total tally of bytes received from this device so far
      * @return tally (in bytes)
@@ -1556,7 +1726,10 @@ public class SqAnDevice {
     public String getNetworkId() {
         return networkId;
     }
-    public void setNetworkId(String networkId) { this.networkId = networkId; }
+    public void setNetworkId(String networkId) {
+        this.networkId = networkId;
+        DeviceIndex.reindex(this);
+    }
     public void setDirectWiFiHiPerf(boolean isWifiInHighPerformanceMode) { this.directWiFiHiPerf = isWifiInHighPerformanceMode; }
     public void setConnected(int hopsAway, boolean directBt, boolean directWiFi) { setConnected(hopsAway, directBt, directWiFi,directWiFiHiPerf); }
     public void setConnected(int hopsAway, boolean directBt, boolean directWiFi, boolean directWiFiHiPerf) {
@@ -1736,9 +1909,9 @@ public class SqAnDevice {
 
     private final static byte MASK_NONE =         (byte)0b00000000;
     private final static byte MASK_BACKHAUL =     (byte)0b10000000;
-    private final static byte MASK_RESERVED_2 =   (byte)0b01000000;
-    private final static byte MASK_RESERVED_3 =   (byte)0b00100000;
-    private final static byte MASK_RESERVED_4 =   (byte)0b00010000;
+    private final static byte MASK_VPN_BATCHES =  (byte)0b01000000;
+    private final static byte MASK_HEADER_COMPRESSION = (byte)0b00100000;
+    private final static byte MASK_COMPACT_HEARTBEATS = (byte)0b00010000;
     private final static byte MASK_RESERVED_5 =   (byte)0b00001000;
     private final static byte MASK_RESERVED_6 =   (byte)0b00000100;
     private final static byte MASK_RESERVED_7 =   (byte)0b00000010;
@@ -1746,11 +1919,59 @@ public class SqAnDevice {
 
     public byte getFlags() {
         byte flags = backhaulConnection?MASK_BACKHAUL:MASK_NONE;
+        flags |= MASK_VPN_BATCHES; //flags are only sent by the device they describe, so this reports what this build can do
+        flags |= MASK_HEADER_COMPRESSION;
+        flags |= MASK_COMPACT_HEARTBEATS;
 
         return flags;
     }
 
     public void parseFlags(byte data) {
         backhaulConnection = (MASK_BACKHAUL & data) == MASK_BACKHAUL;
+        vpnBatches = (MASK_VPN_BATCHES & data) == MASK_VPN_BATCHES;
+        headerCompression = (MASK_HEADER_COMPRESSION & data) == MASK_HEADER_COMPRESSION;
+        compactHeartbeats = (MASK_COMPACT_HEARTBEATS & data) == MASK_COMPACT_HEARTBEATS;
+    }
+
+    /**
+     * Can this device split a VpnPacket carrying several IP packets back apart (older builds write
+     * a VpnPacket's data to their VPN interface as a single IP packet)
+     * @return
+     */
+    public boolean isVpnBatchesSupported() { return vpnBatches; }
+
+    /**
+     * Can this device restore VPN traffic whose headers were compressed (older builds write the
+     * compressed bytes to their VPN interface as a corrupt IP packet)
+     * @return
+     */
+    public boolean isHeaderCompressionSupported() { return headerCompression; }
+
+    /**
+     * Can this device read COMPACT heartbeats (older builds read them as a malformed MEDIUM heartbeat)
+     * @return
+     */
+    public boolean isCompactHeartbeatsSupported() { return compactHeartbeats; }
+
+    /**
+     * Can every device directly connected over this transport read COMPACT heartbeats
+     * @param transport TransportPreference.BLUETOOTH or TransportPreference.SDR
+     * @return false == at least one of them has not advertised it yet
+     */
+    public static boolean isCompactHeartbeatsSupported(TransportPreference transport) {
+        ArrayList<SqAnDevice> devices = getDevices();
+        if (devices == null)
+            return true;
+        synchronized (devices) {
+            for (SqAnDevice device:devices) {
+                if ((device == null) || device.compactHeartbeats || !device.isActive())
+                    continue;
+                if ((transport == TransportPreference.BLUETOOTH) && device.isDirectBt())
+                    return false;
+                if ((transport == TransportPreference.SDR) && device.isDirectSDR())
+                    return false;
+            }
+        }
+        return true;
     }
 }
@@ -0,0 +1,89 @@
+package org.sofwerx.sqan.manet.common;
+
+import java.util.Random;
+
+/**
+ * Schedules periodic control traffic in the style of the Trickle algorithm (RFC 6206). The
+ * interval between transmissions doubles (up to a maximum) each time it passes without anything
+ * changing and drops back to the minimum as soon as something does, so a stable mesh is quiet
+ * but a change is announced quickly. Each transmission falls at a random point in the second
+ * half of its interval so devices that reset together don't stay in lockstep.
+ *
+ * Unlike RFC 6206 there is no suppression when other devices' transmissions are heard: heartbeats
+ * also show that their sender is still there, so hearing a neighbor's does not make ours redundant.
+ */
+public class TrickleTimer {
+    private final long minInterval;
+    private final long maxInterval;
+    private final Random random;
+    private long interval;
+    private long intervalEnd = Long.MIN_VALUE;
+    private long fireAt;
+    private boolean fired;
+
+    /**
+     * @param minInterval ms
+     * @param maxInterval ms
+     */
+    public TrickleTimer(long minInterval, long maxInterval) {
+        this(minInterval,maxInterval,new Random());
+    }
+
+    /**
+     * @param minInterval ms
+     * @param maxInterval ms
+     * @param random picks when in each interval to transmit (seeded to repeat a run)
+     */
+    public TrickleTimer(long minInterval, long maxInterval, Random random) {
+        this.random = random;
+        this.minInterval = Math.max(1l,minInterval);
+        this.maxInterval = Math.max(this.minInterval,maxInterval);
+        interval = this.minInterval;
+    }
+
+    /**
+     * Something changed, so go back to the minimum interval (unless already there)
+     * @param now
+     */
+    public synchronized void reset(long now) {
+        if ((interval == minInterval) && (intervalEnd != Long.MIN_VALUE))
+            return;
+        interval = minInterval;
+        startInterval(now);
+    }
+
+    /**
+     * Checks if a transmission is due (and if so, counts it as sent). If this is checked less
+     * often than the interval, a transmission missed in the interval that just ended is due now.
+     * @param now
+     * @return true == transmit now
+     */
+    public synchronized boolean isDue(long now) {
+        if (intervalEnd == Long.MIN_VALUE)
+            startInterval(now);
+        else if (now >= intervalEnd) {
+            final boolean missed = !fired;
+            interval = Math.min(interval * 2l,maxInterval);
+            startInterval(now);
+            if (missed)
+                return true;
+        }
+        if (!fired && (now >= fireAt)) {
+            fired = true;
+            return true;
+        }
+        return false;
+    }
+
+    private void startInterval(long now) {
+        intervalEnd = now + interval;
+        fireAt = now + interval/2l + (long)(random.nextDouble() * (double)(interval/2l));
+        fired = false;
+    }
+
+    /**
+     * Gets the current interval
+     * @return ms
+     */
+    public synchronized long getInterval() { return interval; }
+}
@@ -0,0 +1,301 @@
+package org.sofwerx.sqan.manet.common;
+
+import org.sofwerx.sqan.manet.common.packet.TrafficClass;
+import org.sofwerx.sqan.util.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Orders outgoing items by TrafficClass. CONTROL traffic (heartbeats, pings, etc) is always
+ * sent first; the remaining classes share the link by weight (deficit round robin over the
+ * bytes queued) so bulk transfers cannot starve interactive traffic. When the queue is full,
+ * items marked as lossy are dropped first, starting with the lowest priority class. Depth, drops
+ * and time queued are reported to Metrics by name and class (summed over schedulers with the same name).
+ * @param <T> the type of item queued (i.e. a byte[] or ByteBuffer)
+ */
+public class TxScheduler<T> {
+    private final static int QUANTUM = 1500; //bytes per round for a class with a weight of 1
+    private final static TrafficClass[] CLASSES = TrafficClass.values();
+    private final static TrafficClass[] DROP_ORDER = {TrafficClass.BULK,TrafficClass.DATA,TrafficClass.INTERACTIVE,TrafficClass.CONTROL};
+    private final String name;
+    private final int maxItems;
+    private final ClassQueue<T>[] queues;
+    private int size = 0;
+    private int current = 0; //index of the weighted class currently being served
+    private boolean granted = false; //has the current class received its quantum for this round
+
+    /**
+     * @param name used when reporting metrics
+     * @param maxItems the max number of items to hold (<= 0 == no limit)
+     */
+    @SuppressWarnings("unchecked")
+    public TxScheduler(String name, int maxItems) {
+        this.name = name;
+        this.maxItems = maxItems;
+        queues = (ClassQueue<T>[])new ClassQueue<?>[CLASSES.length];
+        for (int i=0;i<queues.length;i++) {
+            queues[i] = new ClassQueue<>(name,CLASSES[i]);
+        }
+    }
+
+    public String getName() { return name; }
+
+    /**
+     * Adds an item to the queue
+     * @param item
+     * @param size size of the item in bytes
+     * @param trafficClass
+     * @param lossy true == this item can be dropped if the link gets congested
+     * @return false == the item was dropped instead of queued
+     */
+    public synchronized boolean offer(T item, int size, TrafficClass trafficClass, boolean lossy) {
+        if (item == null)
+            return false;
+        if (trafficClass == null)
+            trafficClass = TrafficClass.DATA;
+        Entry<T> entry = new Entry<>(item,size,lossy);
+        ClassQueue<T> queue = queues[trafficClass.ordinal()];
+        queue.add(entry);
+        this.size++;
+        if (maxItems > 0) {
+            while (this.size > maxItems) {
+                if (dropOne() == entry)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the next item to send
+     * @return the item or null if nothing is queued
+     */
+    public synchronized T poll() {
+        if (size == 0)
+            return null;
+        Entry<T> entry = queues[TrafficClass.CONTROL.ordinal()].poll();
+        if (entry == null) {
+            while (true) {
+                TrafficClass tc = CLASSES[current];
+                ClassQueue<T> queue = queues[current];
+                if ((tc.getWeight() == 0) || queue.isEmpty()) {
+                    queue.deficit = 0;
+                    advance();
+                    continue;
+                }
+                if (!granted) {
+                    queue.deficit += QUANTUM * tc.getWeight();
+                    granted = true;
+                }
+                if (queue.peekSize() <= queue.deficit) {
+                    entry = queue.poll();
+                    queue.deficit -= entry.size;
+                    break;
+                }
+                advance();
+            }
+        }
+        size--;
+        return entry.item;
+    }
+
+    private void advance() {
+        current = (current + 1) % CLASSES.length;
+        granted = false;
+    }
+
+    public synchronized boolean isEmpty() { return size == 0; }
+
+    public synchronized int size() { return size; }
+
+    /**
+     * Drops items (lossy ones first) until no more than limit items are queued
+     * @param limit
+     * @return the number of items dropped
+     */
+    public synchronized int trim(int limit) {
+        int dropped = 0;
+        while (size > limit) {
+            if (dropOne() == null)
+                break;
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * Removes everything from the queue
+     */
+    public synchronized void clear() {
+        for (ClassQueue<T> queue:queues) {
+            queue.clear();
+        }
+        size = 0;
+    }
+
+    /**
+     * Drops the oldest lossy item from the lowest priority class that has one; if nothing
+     * is lossy, drops the oldest item from the lowest priority class
+     * @return the dropped entry
+     */
+    private Entry<T> dropOne() {
+        for (TrafficClass tc:DROP_ORDER) {
+            Entry<T> entry = queues[tc.ordinal()].removeOldestLossy();
+            if (entry != null) {
+                size--;
+                return entry;
+            }
+        }
+        for (TrafficClass tc:DROP_ORDER) {
+            ClassQueue<T> queue = queues[tc.ordinal()];
+            if (!queue.isEmpty()) {
+                Entry<T> entry = queue.drop();
+                size--;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the number of items queued for this class
+     * @param trafficClass
+     * @return
+     */
+    public synchronized int getDepth(TrafficClass trafficClass) { return queues[trafficClass.ordinal()].entries.size(); }
+
+    /**
+     * Gets the number of bytes queued for this class
+     * @param trafficClass
+     * @return
+     */
+    public synchronized long getBytesQueued(TrafficClass trafficClass) { return queues[trafficClass.ordinal()].bytes; }
+
+    /**
+     * Gets the number of items from this class that have left the queue to be sent
+     * @param trafficClass
+     * @return
+     */
+    public synchronized long getSent(TrafficClass trafficClass) { return queues[trafficClass.ordinal()].sent; }
+
+    /**
+     * Gets the number of items from this class that were dropped
+     * @param trafficClass
+     * @return
+     */
+    public synchronized long getDropped(TrafficClass trafficClass) { return queues[trafficClass.ordinal()].dropped; }
+
+    /**
+     * Gets the average time (in ms) items from this class spent in the queue
+     * @param trafficClass
+     * @return
+     */
+    public synchronized long getAverageLatency(TrafficClass trafficClass) {
+        ClassQueue<T> queue = queues[trafficClass.ordinal()];
+        if (queue.sent == 0l)
+            return 0l;
+        return queue.totalLatency/queue.sent;
+    }
+
+    /**
+     * Gets the longest time (in ms) an item from this class spent in the queue
+     * @param trafficClass
+     * @return
+     */
+    public synchronized long getMaxLatency(TrafficClass trafficClass) { return queues[trafficClass.ordinal()].maxLatency; }
+
+    private static class Entry<T> {
+        private final T item;
+        private final int size;
+        private final boolean lossy;
+        private final long queuedAt = System.currentTimeMillis();
+
+        private Entry(T item, int size, boolean lossy) {
+            this.item = item;
+            this.size = Math.max(size,1);
+            this.lossy = lossy;
+        }
+    }
+
+    private static class ClassQueue<T> {
+        private final ArrayDeque<Entry<T>> entries = new ArrayDeque<>();
+        private final Metrics.Gauge depth;
+        private final Metrics.Counter drops;
+        private final Metrics.Histogram queueTime;
+        private int deficit = 0;
+        private long bytes = 0l;
+        private long sent = 0l;
+        private long dropped = 0l;
+        private long totalLatency = 0l;
+        private long maxLatency = 0l;
+
+        private ClassQueue(String name, TrafficClass trafficClass) {
+            depth = Metrics.gauge("sqan_tx_queue_depth","Items waiting to be sent","queue",name,"class",trafficClass.name());
+            drops = Metrics.counter("sqan_tx_queue_dropped_total","Items dropped because the queue was full","queue",name,"class",trafficClass.name());
+            queueTime = Metrics.histogram("sqan_tx_queue_time_ms","Time items waited to be sent","queue",name,"class",trafficClass.name());
+        }
+
+        private void add(Entry<T> entry) {
+            entries.add(entry);
+            bytes += entry.size;
+            depth.inc();
+        }
+
+        private boolean isEmpty() { return entries.isEmpty(); }
+
+        private int peekSize() {
+            Entry<T> entry = entries.peek();
+            return (entry == null)?0:entry.size;
+        }
+
+        private Entry<T> poll() {
+            Entry<T> entry = entries.poll();
+            if (entry != null) {
+                bytes -= entry.size;
+                sent++;
+                depth.dec();
+                long latency = System.currentTimeMillis() - entry.queuedAt;
+                totalLatency += latency;
+                if (latency > maxLatency)
+                    maxLatency = latency;
+                queueTime.record(latency);
+            }
+            return entry;
+        }
+
+        private Entry<T> drop() {
+            Entry<T> entry = entries.poll();
+            if (entry != null) {
+                bytes -= entry.size;
+                dropped++;
+                depth.dec();
+                drops.inc();
+            }
+            return entry;
+        }
+
+        private Entry<T> removeOldestLossy() {
+            Iterator<Entry<T>> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                Entry<T> entry = iterator.next();
+                if (entry.lossy) {
+                    iterator.remove();
+                    bytes -= entry.size;
+                    dropped++;
+                    depth.dec();
+                    drops.inc();
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        private void clear() {
+            depth.add(-entries.size());
+            entries.clear();
+            bytes = 0l;
+            deficit = 0;
+        }
+    }
+}
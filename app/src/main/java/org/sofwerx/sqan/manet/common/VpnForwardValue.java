@@ -5,6 +5,7 @@ package org.sofwerx.sqan.manet.common;
  */
 public class VpnForwardValue {
     public final static byte NOT_FORWARDED = (byte)0b11111110;
+    public final static byte COMPRESSED = (byte)0b11111101; //not forwarded and the headers are compressed (see HeaderCompressor)
     private byte index;
     private int ipv4Address;
     private int port;
@@ -17,7 +18,7 @@ public class VpnForwardValue {
 
     public VpnForwardValue() { index = 0b00000000; }
 
-    public boolean isForwarded() { return index != NOT_FORWARDED; }
+    public boolean isForwarded() { return (index != NOT_FORWARDED) && (index != COMPRESSED); }
 
     public byte getForwardIndex() { return index; }
 
@@ -49,6 +49,16 @@ public abstract class AbstractPacket {
         return true;
     }
 
+    /**
+     * Sets if this packet can be dropped. Packets that can't (and are sent to a single device)
+     * are acknowledged and resent until they get through, though not necessarily in the order sent.
+     * @param lossy
+     */
+    public void setLossy(boolean lossy) {
+        if (packetHeader != null)
+            packetHeader.setIsLossyOk(lossy);
+    }
+
     /**
      * Sets if this packet needs to be expedited
      * @param highPerformanceNeeded true == push through the higher bandwidth connection
@@ -80,35 +90,44 @@ public abstract class AbstractPacket {
 
     //creates a new packet from the byte array
     public static AbstractPacket newFromBytes(byte[] bytes) {
+        if ((bytes == null) || (bytes.length < PacketHeader.getSize())) {
+            CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Unable to generate a packet from the byte array; byte array was not big enough to hold a header");
+            return null;
+        }
+        return newFromBuffer(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Creates a new packet from the bytes between the buffer's position and limit. The header
+     * is read in place and the payload is handed to the packet as a slice of the buffer rather
+     * than a copy, so the packet is only valid as long as the underlying buffer is not reused.
+     * The buffer's position is advanced to its limit.
+     * @param buf
+     * @return the packet (or null if the buffer does not hold a valid packet)
+     */
+    public static AbstractPacket newFromBuffer(ByteBuffer buf) {
         try {
-            if ((bytes == null) || (bytes.length < PacketHeader.getSize())) {
-                CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Unable to generate a packet from the byte array; byte array was not big enough to hold a header");
+            if ((buf == null) || (buf.remaining() < PacketHeader.getSize())) {
+                CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Unable to generate a packet from the buffer; buffer was not big enough to hold a header");
+                return null;
             }
-            AbstractPacket packet = null;
-            ByteBuffer reader = ByteBuffer.wrap(bytes);
-
-            byte[] headerBytes = new byte[PacketHeader.getSize()];
-            reader.get(headerBytes);
-            PacketHeader header = PacketHeader.newFromBytes(headerBytes);
+            PacketHeader header = PacketHeader.newFromBuffer(buf);
 
             if (header == null) {
-                CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Unable to generate a packet header from the byte array");
+                CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Unable to generate a packet header from the buffer");
                 return null;
             }
 
-            packet = AbstractPacket.newFromHeader(header);
+            AbstractPacket packet = AbstractPacket.newFromHeader(header);
             if (packet == null) {
                 CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Unable to generate a packet from the packet header");
                 return null;
             }
 
-            int len = reader.remaining();
-            if (len > 0) {
-                byte[] packetBytes = new byte[len];
-                reader.get(packetBytes);
-                packet.parse(packetBytes);
+            if (buf.hasRemaining()) {
+                packet.parse(buf.slice());
+                buf.position(buf.limit());
             }
-            reader.clear();
             return packet;
         } catch (Exception e) {
             return null;
@@ -120,10 +139,60 @@ public abstract class AbstractPacket {
     public byte[] toByteArray() {
         if (packetHeader == null)
             return null;
+        int size = getSize();
+        if (size < 0) {
+            //size is not known until the packet is written, so write into a pooled buffer first
+            ByteBuffer scratch = PacketBufferPool.acquire();
+            try {
+                writeTo(scratch);
+                scratch.flip();
+                byte[] out = new byte[scratch.remaining()];
+                scratch.get(out);
+                return out;
+            } finally {
+                PacketBufferPool.release(scratch);
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        writeTo(out);
+        return out.array();
+    }
+
+    /**
+     * Writes this packet (header and payload) into the buffer at its current position
+     * @param out
+     */
+    public void writeTo(ByteBuffer out) {
+        if (packetHeader == null)
+            return;
         packetHeader.setChecksum(getChecksum());
-        return packetHeader.toByteArray();
+        packetHeader.writeTo(out);
+        writePayload(out);
+    }
+
+    /**
+     * Gets the size of this packet in bytes once written
+     * @return size in bytes (or -1 if the size cannot be known until the packet is written)
+     */
+    public int getSize() {
+        int payloadSize = getPayloadSize();
+        if (payloadSize < 0)
+            return -1;
+        return PacketHeader.getSize() + payloadSize;
     }
 
+    /**
+     * Gets the size of the payload that follows the header
+     * @return size in bytes (or -1 if not known until written)
+     */
+    protected int getPayloadSize() { return 0; }
+
+    /**
+     * Writes the payload that follows the header into the buffer
+     * @param out
+     */
+    protected void writePayload(ByteBuffer out) {}
+
     public static AbstractPacket newFromHeader(PacketHeader packetHeader) {
         if (packetHeader == null) {
             CommsLog.log(CommsLog.Entry.Category.PROBLEM,"Cannot generate a Packet from an empty packet header");
@@ -157,6 +226,14 @@ public abstract class AbstractPacket {
                 packet = new VpnPacket(packetHeader);
                 break;
 
+            case PacketHeader.PACKET_TYPE_SEGMENT:
+                packet = new SegmentPacket(packetHeader);
+                break;
+
+            case PacketHeader.PACKET_TYPE_RELIABLE:
+                packet = new ReliablePacket(packetHeader);
+                break;
+
             //TODO case PacketHeader.PACKET_TYPE_CHALLENGE:
         }
 
@@ -170,6 +247,15 @@ public abstract class AbstractPacket {
      */
     public abstract boolean isAdminPacket();
     public abstract void parse(byte[] bytes);
+
+    /**
+     * Parses the payload from the buffer. Packets that hold onto their payload may keep a
+     * slice of this buffer rather than copying it.
+     * @param buf the payload (position to limit)
+     */
+    public void parse(ByteBuffer buf) {
+        parse(PacketBufferPool.toBytes(buf));
+    }
     protected abstract byte getType();
 
     /**
@@ -1,6 +1,6 @@
 package org.sofwerx.sqan.manet.common.packet;
 
-import android.util.Log;
+import org.sofwerx.notdroid.util.Log;
 
 import org.sofwerx.sqan.Config;
 
@@ -15,52 +15,64 @@ import java.nio.ByteBuffer;
 public class ChannelBytesPacket extends AbstractPacket {
     private String channel;
     private byte[] data;
+    private ByteBuffer payload; //view of the received data when parsed from a buffer
+    private byte[] channelBytes; //UTF-8 channel name, kept between sizing and writing the packet
 
     public ChannelBytesPacket(PacketHeader packetHeader) {
         super(packetHeader);
         data = null;
+        payload = null;
     }
 
     @Override
-    protected byte getChecksum() { return PacketHeader.calcChecksum(data); }
+    protected byte getChecksum() {
+        if (data != null)
+            return PacketHeader.calcChecksum(data);
+        return PacketHeader.calcChecksumInPlace(payload);
+    }
 
     @Override
     public void parse(byte[] bytes) {
         if (bytes == null) {
             channel = null;
             data = null;
-        } else {
-            ByteBuffer buf = ByteBuffer.wrap(bytes);
-            int channelBytesLen = buf.getInt();
-            if (buf.remaining() < channelBytesLen) {
-                Log.e(Config.TAG,"Could not processPacketAndNotifyManet incoming channel bytes buffer; incomplete data");
-                channel = null;
-                data = null;
-                return;
-            }
-            try {
+            payload = null;
+        } else
+            parse(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public void parse(ByteBuffer buf) {
+        channel = null;
+        data = null;
+        payload = null;
+        if ((buf == null) || (buf.remaining() < 4))
+            return;
+        int channelBytesLen = buf.getInt();
+        if ((channelBytesLen < 0) || (buf.remaining() < channelBytesLen)) {
+            Log.e(Config.TAG,"Could not processPacketAndNotifyManet incoming channel bytes buffer; incomplete data");
+            return;
+        }
+        try {
+            if (buf.hasArray())
+                channel = new String(buf.array(),buf.arrayOffset()+buf.position(),channelBytesLen,"UTF-8");
+            else {
                 byte[] channelBytes = new byte[channelBytesLen];
-                buf.get(channelBytes);
+                buf.duplicate().get(channelBytes);
                 channel = new String(channelBytes,"UTF-8");
-                int remaining = buf.remaining();
-                if (remaining > 0) {
-                    data = new byte[remaining];
-                    buf.get(data);
-                } else
-                    data = null;
-            } catch (UnsupportedEncodingException e) {
-                channel = null;
-                data = null;
-                e.printStackTrace();
             }
+            buf.position(buf.position()+channelBytesLen);
+            if (buf.hasRemaining())
+                payload = buf.slice();
+        } catch (UnsupportedEncodingException e) {
+            channel = null;
+            e.printStackTrace();
         }
     }
 
     @Override
-    public byte[] toByteArray() {
-        byte[] superBytes = super.toByteArray();
-        int len = 4; //minimum is the int that provides the length of the channel name
-        byte[] channelBytes = null;
+    protected int getPayloadSize() {
+        channelBytes = null;
         if (channel != null) {
             try {
                 channelBytes = channel.getBytes("UTF-8");
@@ -68,12 +80,20 @@ public class ChannelBytesPacket extends AbstractPacket {
                 e.printStackTrace();
             }
         }
+        int len = 4; //minimum is the int that provides the length of the channel name
         if (channelBytes != null)
             len += channelBytes.length;
         if (data != null)
             len += data.length;
-        ByteBuffer out = ByteBuffer.allocate(superBytes.length + len);
-        out.put(superBytes);
+        else if (payload != null)
+            len += payload.remaining();
+        return len;
+    }
+
+    @Override
+    protected void writePayload(ByteBuffer out) {
+        if ((channelBytes == null) && (channel != null))
+            getPayloadSize();
         if (channelBytes == null)
             out.putInt(0);
         else {
@@ -82,7 +102,8 @@ public class ChannelBytesPacket extends AbstractPacket {
         }
         if (data != null)
             out.put(data);
-        return out.array();
+        else if (payload != null)
+            out.put(payload.duplicate());
     }
 
     @Override
@@ -93,8 +114,30 @@ public class ChannelBytesPacket extends AbstractPacket {
         return PacketHeader.PACKET_TYPE_CHANNEL_BYTES;
     }
 
-    public byte[] getData() { return data; }
-    public void setData(byte[] data) { this.data = data; }
+    public byte[] getData() {
+        if ((data == null) && (payload != null)) {
+            data = PacketBufferPool.toBytes(payload);
+            payload = null;
+        }
+        return data;
+    }
+
+    /**
+     * Gets the data without copying it out of the buffer it was received in
+     * @return a read-only view of the data (or null if none)
+     */
+    public ByteBuffer getDataBuffer() {
+        if (data != null)
+            return ByteBuffer.wrap(data).asReadOnlyBuffer();
+        if (payload != null)
+            return payload.asReadOnlyBuffer();
+        return null;
+    }
+
+    public void setData(byte[] data) {
+        this.data = data;
+        payload = null;
+    }
 
     /**
      * Gets the channel that this data belongs to
@@ -108,5 +151,8 @@ public class ChannelBytesPacket extends AbstractPacket {
      * packet size.
      * @param channel channel name (null is legal, but it would make more sense to use the RawBytesPacket)
      */
-    public void setChannel(String channel) { this.channel = channel; }
+    public void setChannel(String channel) {
+        this.channel = channel;
+        channelBytes = null;
+    }
 }
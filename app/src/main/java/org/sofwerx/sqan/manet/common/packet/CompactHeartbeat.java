@@ -0,0 +1,438 @@
+package org.sofwerx.sqan.manet.common.packet;
+
+import org.sofwerx.sqan.manet.common.MacAddress;
+import org.sofwerx.sqan.manet.common.MeshState;
+import org.sofwerx.sqan.manet.common.RelayConnection;
+import org.sofwerx.sqan.manet.common.pnt.SpaceTime;
+import org.sofwerx.sqan.util.VarInt;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The compact heartbeat payload used over narrow links (DetailLevel.COMPACT):
+ *
+ *   [MARKER][flags][varint keyframe version][device flags]
+ *   [position: lat, lon as int 1e-7 deg][zigzag altitude m][varint accuracy m][varint age s]  (FLAG_POSITION)
+ *   [static: aware MAC][IPV6 length][IPV6][varint callsign length][callsign]                   (FLAG_STATIC)
+ *   [varint count][relays: varint SqAN ID, hops/link byte]                                      (FLAG_RELAYS_FULL or FLAG_RELAYS_DELTA)
+ *   [varint count][varint SqAN IDs of devices this device needs a full heartbeat from]         (FLAG_REQUEST)
+ *
+ * A full relay list is a keyframe with a new version; after that, heartbeats only carry the
+ * relays that changed (or dropped out, REMOVED) since that keyframe, so a lost heartbeat does not
+ * break the ones that follow. The position is only sent when it moves and the static fields
+ * (callsign, MAC, IPV6) only when they change, when asked for or every few keyframes. A device
+ * that hears a delta against a keyframe it doesn't have asks for a full heartbeat.
+ *
+ * MARKER can't start a MEDIUM heartbeat (it would be a NaN latitude with the sign bit set, which
+ * SpaceTime never writes) so the two can be told apart.
+ */
+public class CompactHeartbeat {
+    public final static byte MARKER = (byte)0xFF;
+    private final static byte FLAG_POSITION = 0b00000001;
+    private final static byte FLAG_STATIC = 0b00000010;
+    private final static byte FLAG_RELAYS_FULL = 0b00000100;
+    private final static byte FLAG_RELAYS_DELTA = 0b00001000;
+    private final static byte FLAG_REQUEST = 0b00010000;
+    private final static byte FLAG_ALTITUDE = 0b00100000;
+    private final static byte FLAG_ACCURACY = 0b01000000;
+    private final static int VERSION_MASK = 0x3FFF; //keeps the version to 2 bytes
+    private final static int REMOVED = 0xFF;
+    private final static int MAX_HOPS = 62; //so hops/link never reads as REMOVED
+    private final static int HOPS_LINK_BT = 0b01;
+    private final static int HOPS_LINK_WIFI = 0b10;
+    private final static int KEYFRAME_INTERVAL = 16; //heartbeats between full relay lists
+    private final static int STATIC_REFRESH_KEYFRAMES = 4; //keyframes between unrequested static fields
+    private final static int MAX_REQUESTS = 8;
+    private final static int MAX_CALLSIGN_SIZE = 256;
+    private final static double POSITION_SCALE = 10000000d;
+    private final static int MIN_MOVEMENT = 100; //1e-7 deg units (~1m)
+    private final static long POSITION_REFRESH = 1000l * 20l; //resend an unchanged position this often so it doesn't go stale
+
+    /**
+     * Gets the encoder for this device's heartbeats
+     */
+    public static Encoder getEncoder() { return MeshState.get().getHeartbeatEncoder(); }
+
+    /**
+     * Gets the decoder for heartbeats from other devices
+     */
+    public static Decoder getDecoder() { return MeshState.get().getHeartbeatDecoder(); }
+
+    /**
+     * Builds this device's compact heartbeats, keeping track of what receivers already have
+     */
+    public static class Encoder {
+        private int version = new Random().nextInt(VERSION_MASK + 1); //random start so receivers don't mistake an old keyframe from before a restart
+        private HashMap<Integer,Integer> keyframe = null;
+        private int heartbeatsSinceKeyframe = 0;
+        private int keyframesSinceStatic = 0;
+        private int staticFingerprint = 0;
+        private boolean fullRequested = true;
+        private int lastLat, lastLon;
+        private long lastPositionTime = Long.MIN_VALUE;
+        private long lastPositionSent = Long.MIN_VALUE;
+        private final LinkedHashSet<Integer> requests = new LinkedHashSet<>();
+        private long bytesEncoded = 0l;
+        private int keyframes = 0;
+
+        /**
+         * Builds a heartbeat payload
+         * @param position (or null if unknown)
+         * @param deviceFlags
+         * @param awareMac
+         * @param awareIpv6 (or null if not an aware server)
+         * @param callsign
+         * @param relays active relay connections
+         * @param time network time the heartbeat is sent at
+         * @return
+         */
+        public synchronized byte[] encode(SpaceTime position, byte deviceFlags, byte[] awareMac, byte[] awareIpv6, String callsign, List<RelayConnection> relays, long time) {
+            HashMap<Integer,Integer> current = new HashMap<>();
+            if (relays != null) {
+                for (RelayConnection relay:relays) {
+                    current.put(relay.getSqAnID(),toHopsLink(relay));
+                }
+            }
+            byte[] callsignBytes = (callsign == null)?new byte[0]:callsign.getBytes(StandardCharsets.UTF_8);
+            if (callsignBytes.length > MAX_CALLSIGN_SIZE)
+                callsignBytes = Arrays.copyOf(callsignBytes,MAX_CALLSIGN_SIZE);
+            final int fingerprint = (Arrays.hashCode(awareMac) * 31 + Arrays.hashCode(awareIpv6)) * 31 + Arrays.hashCode(callsignBytes);
+
+            //relays that changed since the keyframe
+            ArrayList<int[]> delta = new ArrayList<>();
+            if (keyframe != null) {
+                for (Map.Entry<Integer,Integer> entry:current.entrySet()) {
+                    if (!entry.getValue().equals(keyframe.get(entry.getKey())))
+                        delta.add(new int[] {entry.getKey(),entry.getValue()});
+                }
+                for (Integer id:keyframe.keySet()) {
+                    if (!current.containsKey(id))
+                        delta.add(new int[] {id,REMOVED});
+                }
+            }
+            final boolean isKeyframe = fullRequested || (keyframe == null) || (heartbeatsSinceKeyframe >= KEYFRAME_INTERVAL)
+                    || (delta.size() > Math.max(4,current.size()/2));
+            final boolean sendStatic = (fingerprint != staticFingerprint) || fullRequested
+                    || (isKeyframe && (keyframesSinceStatic >= STATIC_REFRESH_KEYFRAMES));
+            byte flags = 0;
+            int lat = 0, lon = 0;
+            if ((position != null) && position.isValid()) {
+                lat = (int)Math.round(position.getLatitude() * POSITION_SCALE);
+                lon = (int)Math.round(position.getLongitude() * POSITION_SCALE);
+                if (isKeyframe || (Math.abs(lat - lastLat) >= MIN_MOVEMENT) || (Math.abs(lon - lastLon) >= MIN_MOVEMENT)
+                        || ((position.getTime() != lastPositionTime) && (time >= lastPositionSent + POSITION_REFRESH))) {
+                    flags |= FLAG_POSITION;
+                    if (position.hasAltitude())
+                        flags |= FLAG_ALTITUDE;
+                    if (position.hasAccuracy() && (position.getAccuracy() >= 0f))
+                        flags |= FLAG_ACCURACY;
+                }
+            }
+            if (sendStatic)
+                flags |= FLAG_STATIC;
+            if (isKeyframe)
+                flags |= FLAG_RELAYS_FULL;
+            else if (!delta.isEmpty())
+                flags |= FLAG_RELAYS_DELTA;
+            if (!requests.isEmpty())
+                flags |= FLAG_REQUEST;
+
+            ByteBuffer out = ByteBuffer.allocate(3 + 3 + 4 + 4 + 3 * VarInt.MAX_SIZE + MacAddress.MAC_BYTE_SIZE + 1 + 16 + VarInt.MAX_SIZE + callsignBytes.length
+                    + VarInt.MAX_SIZE + Math.max(current.size(),delta.size()) * (VarInt.MAX_SIZE + 1) + VarInt.MAX_SIZE * (1 + MAX_REQUESTS));
+            out.put(MARKER);
+            out.put(flags);
+            if (isKeyframe) {
+                version = (version + 1) & VERSION_MASK;
+                keyframe = current;
+                heartbeatsSinceKeyframe = 0;
+                keyframes++;
+                if (sendStatic)
+                    keyframesSinceStatic = 0;
+                else
+                    keyframesSinceStatic++;
+            } else
+                heartbeatsSinceKeyframe++;
+            VarInt.put(out,version);
+            out.put(deviceFlags);
+            if ((flags & FLAG_POSITION) != 0) {
+                out.putInt(lat);
+                out.putInt(lon);
+                if ((flags & FLAG_ALTITUDE) != 0)
+                    VarInt.putSigned(out,(int)Math.round(position.getAltitude()));
+                if ((flags & FLAG_ACCURACY) != 0)
+                    VarInt.put(out,(int)Math.ceil(position.getAccuracy()));
+                VarInt.put(out,(int)Math.max(0l,Math.min(Integer.MAX_VALUE,(time - position.getTime())/1000l)));
+                lastLat = lat;
+                lastLon = lon;
+                lastPositionTime = position.getTime();
+                lastPositionSent = time;
+            }
+            if (sendStatic) {
+                out.put((awareMac == null)?new byte[MacAddress.MAC_BYTE_SIZE]:Arrays.copyOf(awareMac,MacAddress.MAC_BYTE_SIZE));
+                if (awareIpv6 == null)
+                    out.put((byte)0);
+                else {
+                    out.put((byte)awareIpv6.length);
+                    out.put(awareIpv6);
+                }
+                VarInt.put(out,callsignBytes.length);
+                out.put(callsignBytes);
+                staticFingerprint = fingerprint;
+            }
+            if (isKeyframe) {
+                VarInt.put(out,current.size());
+                for (Map.Entry<Integer,Integer> entry:current.entrySet()) {
+                    VarInt.put(out,entry.getKey());
+                    out.put((byte)(int)entry.getValue());
+                }
+            } else if (!delta.isEmpty()) {
+                VarInt.put(out,delta.size());
+                for (int[] entry:delta) {
+                    VarInt.put(out,entry[0]);
+                    out.put((byte)entry[1]);
+                }
+            }
+            if (!requests.isEmpty()) {
+                VarInt.put(out,requests.size());
+                for (Integer id:requests) {
+                    VarInt.put(out,id);
+                }
+                requests.clear();
+            }
+            fullRequested = false;
+            bytesEncoded += out.position();
+            return Arrays.copyOf(out.array(),out.position());
+        }
+
+        /**
+         * Another device asked for this device's full heartbeat
+         */
+        public synchronized void onFullRequested() { fullRequested = true; }
+
+        /**
+         * Asks a device for its full heartbeat in the next heartbeat this device sends
+         * @param uuid
+         */
+        public synchronized void requestFullFrom(int uuid) {
+            if (requests.size() < MAX_REQUESTS)
+                requests.add(uuid);
+        }
+
+        /**
+         * Is there something that should go out without waiting for the usual heartbeat interval
+         * @return true == a full heartbeat was asked for or this device needs to ask for one
+         */
+        public synchronized boolean isUrgent() { return fullRequested || !requests.isEmpty(); }
+
+        public synchronized long getBytesEncoded() { return bytesEncoded; }
+
+        public synchronized int getKeyframes() { return keyframes; }
+    }
+
+    /**
+     * Reads compact heartbeats, keeping each sender's last keyframe so deltas can be applied
+     */
+    public static class Decoder {
+        private final HashMap<Integer,Origin> origins = new HashMap<>();
+
+        /**
+         * Reads a compact heartbeat
+         * @param origin SqAN UUID of the sender
+         * @param in the payload, starting at the MARKER
+         * @param time network time the heartbeat was sent at
+         * @return the contents (or null if it could not be read)
+         */
+        public synchronized Result decode(int origin, ByteBuffer in, long time) {
+            try {
+                if (in.get() != MARKER)
+                    return null;
+                Result result = new Result();
+                final byte flags = in.get();
+                final int version = VarInt.get(in);
+                result.deviceFlags = in.get();
+                if ((flags & FLAG_POSITION) != 0) {
+                    final double lat = ((double)in.getInt()) / POSITION_SCALE;
+                    final double lon = ((double)in.getInt()) / POSITION_SCALE;
+                    double alt = SpaceTime.NO_ALTITUDE;
+                    if ((flags & FLAG_ALTITUDE) != 0)
+                        alt = VarInt.getSigned(in);
+                    float accuracy = Float.NaN;
+                    if ((flags & FLAG_ACCURACY) != 0)
+                        accuracy = VarInt.get(in);
+                    final long age = (VarInt.get(in) & 0xFFFFFFFFl) * 1000l;
+                    result.position = new SpaceTime(lat,lon,alt,time - age);
+                    result.position.setAccuracy(accuracy);
+                }
+                Origin state = origins.get(origin);
+                if (state == null) {
+                    state = new Origin();
+                    origins.put(origin,state);
+                }
+                if ((flags & FLAG_STATIC) != 0) {
+                    result.awareMac = new byte[MacAddress.MAC_BYTE_SIZE];
+                    in.get(result.awareMac);
+                    final int ipv6Length = in.get() & 0xFF;
+                    if (ipv6Length > 0) {
+                        result.awareIpv6 = new byte[ipv6Length];
+                        in.get(result.awareIpv6);
+                    }
+                    final int callsignLength = VarInt.get(in);
+                    if ((callsignLength < 0) || (callsignLength > MAX_CALLSIGN_SIZE))
+                        return null;
+                    byte[] callsignBytes = new byte[callsignLength];
+                    in.get(callsignBytes);
+                    result.callsign = (callsignLength == 0)?null:new String(callsignBytes,StandardCharsets.UTF_8);
+                    result.hasStatic = true;
+                    state.hasStatic = true;
+                }
+                if ((flags & FLAG_RELAYS_FULL) != 0) {
+                    HashMap<Integer,Integer> keyframe = new HashMap<>();
+                    final int count = VarInt.get(in);
+                    for (int i=0;i<count;i++) {
+                        final int id = VarInt.get(in);
+                        keyframe.put(id,in.get() & 0xFF);
+                    }
+                    state.version = version;
+                    state.keyframe = keyframe;
+                    result.relays = toRelays(keyframe);
+                } else if (state.keyframe == null || (state.version != version)) {
+                    result.needsFull = true; //this delta is against a keyframe that never arrived
+                    if ((flags & FLAG_RELAYS_DELTA) != 0) {
+                        final int count = VarInt.get(in);
+                        for (int i=0;i<count;i++) {
+                            VarInt.get(in);
+                            in.get();
+                        }
+                    }
+                } else {
+                    HashMap<Integer,Integer> relays = new HashMap<>(state.keyframe);
+                    if ((flags & FLAG_RELAYS_DELTA) != 0) {
+                        final int count = VarInt.get(in);
+                        for (int i=0;i<count;i++) {
+                            final int id = VarInt.get(in);
+                            final int hopsLink = in.get() & 0xFF;
+                            if (hopsLink == REMOVED)
+                                relays.remove(id);
+                            else
+                                relays.put(id,hopsLink);
+                        }
+                    }
+                    result.relays = toRelays(relays);
+                }
+                if (!state.hasStatic)
+                    result.needsFull = true;
+                if ((flags & FLAG_REQUEST) != 0) {
+                    final int count = VarInt.get(in);
+                    if (count > MAX_REQUESTS)
+                        return null;
+                    result.requested = new int[count];
+                    for (int i=0;i<count;i++) {
+                        result.requested[i] = VarInt.get(in);
+                    }
+                }
+                return result;
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Forgets what is known about a device (i.e. when it leaves the mesh)
+         * @param origin
+         */
+        public synchronized void forget(int origin) { origins.remove(origin); }
+    }
+
+    /**
+     * The contents of a compact heartbeat
+     */
+    public static class Result {
+        private SpaceTime position;
+        private byte deviceFlags;
+        private boolean hasStatic = false;
+        private byte[] awareMac;
+        private byte[] awareIpv6;
+        private String callsign;
+        private ArrayList<RelayConnection> relays;
+        private boolean needsFull = false;
+        private int[] requested;
+
+        /**
+         * @return the position (or null if it has not changed)
+         */
+        public SpaceTime getPosition() { return position; }
+
+        public byte getDeviceFlags() { return deviceFlags; }
+
+        /**
+         * @return true == the callsign, MAC and IPV6 address were included
+         */
+        public boolean hasStatic() { return hasStatic; }
+
+        public byte[] getAwareMac() { return awareMac; }
+
+        /**
+         * @return the aware server IPV6 address (or null if the sender is not an aware server)
+         */
+        public byte[] getAwareIpv6() { return awareIpv6; }
+
+        public String getCallsign() { return callsign; }
+
+        /**
+         * @return the sender's full relay list (or null if it could not be rebuilt)
+         */
+        public ArrayList<RelayConnection> getRelays() { return relays; }
+
+        /**
+         * @return true == a full heartbeat should be requested from the sender
+         */
+        public boolean isFullNeeded() { return needsFull; }
+
+        /**
+         * @return true == the sender asked this device for a full heartbeat
+         */
+        public boolean isRequested(int uuid) {
+            if (requested != null) {
+                for (int id:requested) {
+                    if (id == uuid)
+                        return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Origin {
+        private int version = -1;
+        private HashMap<Integer,Integer> keyframe = null;
+        private boolean hasStatic = false;
+    }
+
+    private static int toHopsLink(RelayConnection relay) {
+        int hopsLink = Math.max(0,Math.min(MAX_HOPS,relay.getHops())) << 2;
+        if (relay.isDirectBt())
+            hopsLink |= HOPS_LINK_BT;
+        if (relay.isDirectWiFi())
+            hopsLink |= HOPS_LINK_WIFI;
+        return hopsLink;
+    }
+
+    private static ArrayList<RelayConnection> toRelays(HashMap<Integer,Integer> relays) {
+        ArrayList<RelayConnection> list = new ArrayList<>(relays.size());
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<Integer,Integer> entry:relays.entrySet()) {
+            final int hopsLink = entry.getValue();
+            list.add(new RelayConnection(entry.getKey(),hopsLink >> 2,now,(hopsLink & HOPS_LINK_BT) != 0,(hopsLink & HOPS_LINK_WIFI) != 0));
+        }
+        return list;
+    }
+}
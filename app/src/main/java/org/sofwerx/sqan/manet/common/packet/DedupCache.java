@@ -0,0 +1,179 @@
+package org.sofwerx.sqan.manet.common.packet;
+
+import org.sofwerx.sqan.manet.common.MeshState;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A time-bounded record of packets that have already been seen; used to keep the same packet
+ * from being delivered or relayed more than once when it arrives over several links. Packets
+ * are identified by origin, time and type (plus the segment index for SegmentPackets). Entries
+ * are kept in primitive arrays with open addressing so that checking a packet does not allocate.
+ *
+ * One cache (kept in the MeshState) covers packets delivered to this device; each relay path keeps its own
+ * cache so that relaying a packet over one MANET does not prevent relaying it over another.
+ */
+public class DedupCache {
+    public final static long DEFAULT_TIME_TO_KEEP = 1000l * 30l;
+    private final static int DEFAULT_CAPACITY = 4096; //needs to be a power of 2
+    private final static int MAX_PROBES = 16;
+    private final static AtomicLong totalHits = new AtomicLong(0l);
+    private final static AtomicLong totalMisses = new AtomicLong(0l);
+    private final long[] times;
+    private final long[] ids;
+    private final long[] seen; //when the entry was recorded; 0 == never used
+    private final int mask;
+    private final long timeToKeep;
+    private long hits = 0l;
+    private long misses = 0l;
+
+    public DedupCache() { this(DEFAULT_CAPACITY, DEFAULT_TIME_TO_KEEP); }
+
+    /**
+     * @param capacity max number of packets to track (rounded up to a power of 2)
+     * @param timeToKeep how long (in ms) a packet is remembered
+     */
+    public DedupCache(int capacity, long timeToKeep) {
+        int size = Integer.highestOneBit(Math.max(capacity,MAX_PROBES) - 1) << 1;
+        times = new long[size];
+        ids = new long[size];
+        seen = new long[size];
+        mask = size - 1;
+        this.timeToKeep = timeToKeep;
+    }
+
+    /**
+     * Gets the cache of packets that have been delivered to this device
+     * @return
+     */
+    public static DedupCache getDelivered() { return MeshState.get().getDelivered(); }
+
+    /**
+     * Checks if this packet has already been seen and, if not, remembers it. Pings are
+     * never treated as duplicates since the reply carries the same identifiers as the request
+     * @param packet
+     * @return true == this packet has been seen before
+     */
+    public boolean isDuplicate(AbstractPacket packet) {
+        if (packet == null)
+            return false;
+        final byte type = packet.getType();
+        if (type == PacketHeader.PACKET_TYPE_PING)
+            return false;
+        int index = -1;
+        if (packet instanceof SegmentPacket)
+            index = ((SegmentPacket)packet).getIndex();
+        return isDuplicate(packet.getOrigin(),packet.getTime(),toDiscriminator(type,index));
+    }
+
+    /**
+     * Checks if the packet held in this buffer (starting at the buffer's position) has already
+     * been seen and, if not, remembers it. The buffer's position is not changed
+     * @param packetView
+     * @return true == this packet has been seen before
+     */
+    public boolean isDuplicate(ByteBuffer packetView) {
+        if ((packetView == null) || (packetView.remaining() < PacketHeader.getSize()))
+            return false;
+        final byte type = PacketHeader.getType(packetView);
+        if (type == PacketHeader.PACKET_TYPE_PING)
+            return false;
+        int index = -1;
+        if ((type == PacketHeader.PACKET_TYPE_SEGMENT) && (packetView.remaining() >= PacketHeader.getSize() + SegmentPacket.SEGMENT_HEADER_SIZE))
+            index = packetView.getShort(packetView.position() + PacketHeader.getSize() + 4) & 0xFFFF;
+        return isDuplicate(PacketHeader.getOriginUUID(packetView),PacketHeader.getTime(packetView),toDiscriminator(type,index));
+    }
+
+    /**
+     * Checks if the packet in this byte array has already been seen and, if not, remembers it
+     * @param packetBytes
+     * @return true == this packet has been seen before
+     */
+    public boolean isDuplicate(byte[] packetBytes) {
+        if (packetBytes == null)
+            return false;
+        return isDuplicate(ByteBuffer.wrap(packetBytes));
+    }
+
+    private synchronized boolean isDuplicate(int origin, long time, int discriminator) {
+        final long id = (((long)origin) << 32) | (discriminator & 0xFFFFFFFFl);
+        final long now = System.currentTimeMillis();
+        final long expired = now - timeToKeep;
+        int slot = hash(time,id);
+        int open = -1;
+        int oldest = slot;
+        for (int i=0;i<MAX_PROBES;i++) {
+            final int s = (slot + i) & mask;
+            if (seen[s] == 0l) {
+                //nothing has ever been stored past here so this packet is new
+                if (open < 0)
+                    open = s;
+                break;
+            }
+            if (seen[s] < expired) {
+                if (open < 0)
+                    open = s;
+                continue;
+            }
+            if ((times[s] == time) && (ids[s] == id)) {
+                seen[s] = now;
+                hits++;
+                totalHits.incrementAndGet();
+                return true;
+            }
+            if (seen[s] < seen[oldest])
+                oldest = s;
+        }
+        if (open < 0)
+            open = oldest; //no room so forget the oldest packet in this neighborhood
+        times[open] = time;
+        ids[open] = id;
+        seen[open] = now;
+        misses++;
+        totalMisses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Forgets all packets
+     */
+    public synchronized void clear() {
+        Arrays.fill(seen,0l);
+    }
+
+    /**
+     * Gets the number of packets found to be duplicates
+     * @return
+     */
+    public synchronized long getHits() { return hits; }
+
+    /**
+     * Gets the number of packets found to be new
+     * @return
+     */
+    public synchronized long getMisses() { return misses; }
+
+    /**
+     * Gets the number of duplicates found across all caches
+     * @return
+     */
+    public static long getTotalHits() { return totalHits.get(); }
+
+    /**
+     * Gets the number of new packets found across all caches
+     * @return
+     */
+    public static long getTotalMisses() { return totalMisses.get(); }
+
+    private static int toDiscriminator(byte type, int segmentIndex) {
+        return (type & 0xFF) | ((segmentIndex + 1) << 8);
+    }
+
+    private int hash(long time, long id) {
+        long h = time * 0x9E3779B97F4A7C15l ^ id * 0xC2B2AE3D27D4EB4Fl;
+        h ^= (h >>> 31);
+        return (int)h & mask;
+    }
+}
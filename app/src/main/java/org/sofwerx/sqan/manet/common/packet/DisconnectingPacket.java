@@ -1,7 +1,5 @@
 package org.sofwerx.sqan.manet.common.packet;
 
-import org.sofwerx.sqan.manet.common.pnt.NetworkTime;
-
 import java.nio.ByteBuffer;
 
 /**
@@ -11,7 +9,6 @@ public class DisconnectingPacket extends AbstractPacket {
     public DisconnectingPacket(int uuid) {
         super(new PacketHeader(uuid));
         packetHeader.setType(getType());
-        packetHeader.setTime(NetworkTime.getNetworkTimeNow());
     }
 
     public DisconnectingPacket(PacketHeader packetHeader) {
@@ -23,8 +20,9 @@ public class DisconnectingPacket extends AbstractPacket {
         //ignore
     }
 
-    public byte[] toByteArray() {
-        return super.toByteArray();
+    @Override
+    public void parse(ByteBuffer buf) {
+        //ignore
     }
 
     /**
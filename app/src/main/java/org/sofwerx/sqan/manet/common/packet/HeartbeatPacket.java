@@ -1,26 +1,26 @@
 package org.sofwerx.sqan.manet.common.packet;
 
-import android.util.Log;
+import org.sofwerx.notdroid.util.Log;
 
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.manet.common.MacAddress;
 import org.sofwerx.sqan.manet.common.RelayConnection;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
-import org.sofwerx.sqan.manet.common.pnt.NetworkTime;
 import org.sofwerx.sqan.manet.common.pnt.SpaceTime;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
 
 import java.io.UnsupportedEncodingException;
 import java.net.Inet6Address;
 import java.net.UnknownHostException;
 import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
-import javax.crypto.Mac;
-
 public class HeartbeatPacket extends AbstractPacket {
     private SqAnDevice device;
     private DetailLevel detailLevel;
+    private byte[] compact; //COMPACT payload (built when sent, or kept as received so it can be relayed)
 
     //FIXME include a list of the devices this device is connected to (and maybe some measure of strength/stability)
 
@@ -29,7 +29,6 @@ public class HeartbeatPacket extends AbstractPacket {
         if (originUUID <= 0)
             Log.e(Config.TAG,"trying to create Heartbeat packet with origin UUID of "+originUUID+" (this should not happen)");
         packetHeader.setType(getType());
-        packetHeader.setTime(NetworkTime.getNetworkTimeNow());
         device = null;
     }
 
@@ -37,6 +36,8 @@ public class HeartbeatPacket extends AbstractPacket {
         this(device.getUUID());
         this.device = device;
         this.detailLevel = detailLevel;
+        if (detailLevel == DetailLevel.COMPACT)
+            compact = buildCompact(device,packetHeader.getTime());
     }
 
     public HeartbeatPacket(PacketHeader packetHeader) {
@@ -49,7 +50,18 @@ public class HeartbeatPacket extends AbstractPacket {
 
     public enum DetailLevel {
         BASIC,
-        MEDIUM
+        MEDIUM,
+        COMPACT //see CompactHeartbeat; for narrow links
+    }
+
+    /**
+     * Gets the detail level for a periodic heartbeat over a narrow link: COMPACT once every device
+     * directly connected over that link has advertised that it can read it, otherwise MEDIUM
+     * @param transport TransportPreference.BLUETOOTH or TransportPreference.SDR
+     * @return
+     */
+    public static DetailLevel getNarrowLinkLevel(TransportPreference transport) {
+        return SqAnDevice.isCompactHeartbeatsSupported(transport)?DetailLevel.COMPACT:DetailLevel.MEDIUM;
     }
 
 
@@ -67,19 +79,30 @@ public class HeartbeatPacket extends AbstractPacket {
     public void parse(byte[] bytes) {
         if ((bytes == null) || (packetHeader == null))
             device = null;
+        else
+            parse(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public void parse(ByteBuffer buf) {
+        if ((buf == null) || (packetHeader == null))
+            device = null;
         else {
-            ByteBuffer buf = ByteBuffer.wrap(bytes);
             try {
                 if (packetHeader.getOriginUUID() > 0) {
                     device = SqAnDevice.findByUUID(packetHeader.getOriginUUID());
                     if (device == null)
                         device = new SqAnDevice(packetHeader.getOriginUUID());
+                    if (buf.hasRemaining() && (buf.get(buf.position()) == CompactHeartbeat.MARKER)) {
+                        compact = new byte[buf.remaining()];
+                        buf.get(compact);
+                        parseCompact(device,compact,packetHeader.getTime());
+                        return;
+                    }
                     if (buf.remaining() < SpaceTime.SIZE_IN_BYTES)
                         return;
-                    byte[] spaceTimeBytes = new byte[SpaceTime.SIZE_IN_BYTES];
-                    buf.get(spaceTimeBytes);
                     SpaceTime spaceTime = new SpaceTime();
-                    spaceTime.parse(spaceTimeBytes);
+                    spaceTime.parse(buf);
                     if (!spaceTime.isValid())
                         spaceTime = null;
                     device.setLastLocation(spaceTime);
@@ -93,13 +116,14 @@ public class HeartbeatPacket extends AbstractPacket {
                     buf.get(awareIpv6Bytes);
                     device.setAwareServerIp(awareIpv6Bytes);
                     int relaySize = buf.getInt();
-                    if (relaySize > 0) {
-                        byte[] relayBytes = new byte[RelayConnection.SIZE];
-                        for (int i=0;i<relaySize;i++) {
-                            buf.get(relayBytes);
-                            device.updateRelayConnection(new RelayConnection(relayBytes));
-                        }
+                    if (relaySize > buf.remaining()/RelayConnection.SIZE) {
+                        Log.e(Config.TAG,"Heartbeat reported "+relaySize+" relays but does not contain that many; relays were ignored");
+                        return;
                     }
+                    for (int i=0;i<relaySize;i++) {
+                        device.updateRelayConnection(new RelayConnection(buf));
+                    }
+                    device.onRelaysReported();
                     if (buf.remaining() < 4)
                         return;
                     int callsignSize = buf.getInt();
@@ -117,7 +141,7 @@ public class HeartbeatPacket extends AbstractPacket {
                     }
                 } else
                     Log.e(Config.TAG,"trying to parse Heartbeat packet, but UUID was "+packetHeader.getOriginUUID()+" (this should never happen)");
-            } catch (BufferOverflowException e) {
+            } catch (BufferOverflowException | BufferUnderflowException e) {
                 Log.e(Config.TAG,"Could not processPacketAndNotifyManet Heartbeat: "+e.getMessage());
             }
         }
@@ -145,15 +169,32 @@ public class HeartbeatPacket extends AbstractPacket {
         return relays;
     }
 
-    public byte[] toByteArray() {
-        byte[] superBytes = super.toByteArray();
+    /**
+     * The size of a MEDIUM heartbeat depends on the relay table at the moment it is written,
+     * so it is only known once written
+     * @return
+     */
+    @Override
+    protected int getPayloadSize() {
+        if (compact != null)
+            return compact.length;
+        if ((detailLevel == null) || (detailLevel == DetailLevel.BASIC) || (device == null))
+            return 0;
+        return -1;
+    }
 
+    @Override
+    protected void writePayload(ByteBuffer out) {
         boolean includePosition;
         boolean includeRelays;
         boolean includeCallsign;
 
+        if (compact != null) {
+            out.put(compact);
+            return;
+        }
         if ((detailLevel == null) || (detailLevel == DetailLevel.BASIC) || (device == null))
-            return superBytes;
+            return;
 
         switch (detailLevel) {
             case MEDIUM:
@@ -169,90 +210,95 @@ public class HeartbeatPacket extends AbstractPacket {
         }
 
         //for now at least, Callsign, Relays, and Position must have all the flags before it to be valid
-        if (includeCallsign && (!includeRelays || !includePosition)) {
-            Log.e(Config.TAG,"Invalid heartbeat request - check flags");
-            return null; //invalid
-        }
-        if (includeRelays && !includePosition) {
+        if ((includeCallsign && (!includeRelays || !includePosition)) || (includeRelays && !includePosition)) {
             Log.e(Config.TAG,"Invalid heartbeat request - check flags");
-            return null; //invalid
+            return; //invalid
         }
 
-        byte[] spaceTimeBytes = null;
-        if (includePosition) {
-            SpaceTime spaceTime = device.getLastLocation();
-            if (spaceTime == null)
-                spaceTimeBytes = SpaceTime.toByteArrayEmptySpaceTime();
-            else
-                spaceTimeBytes = spaceTime.toByteArray();
+        if (!includePosition)
+            return;
+        SpaceTime spaceTime = device.getLastLocation();
+        if (spaceTime == null)
+            spaceTime = new SpaceTime();
+        spaceTime.writeTo(out);
+
+        if (!includeRelays)
+            return;
+        ArrayList<RelayConnection> relays = getRelayConnections();
+        MacAddress awareMac = device.getAwareMac();
+        if (awareMac == null)
+            awareMac = new MacAddress();
+        out.put(awareMac.toByteArray());
+        out.put(device.getFlags());
+        if (device.isAwareServer())
+            out.put(device.getAwareServerIp().getAddress());
+        else
+            out.put(SqAnDevice.NO_IPV6_ADDRESS);
+        if (relays == null)
+            out.putInt(0);
+        else {
+            out.putInt(relays.size());
+            for (RelayConnection relay:relays) {
+                relay.writeTo(out);
+            }
         }
 
-        byte[] callsignBytes = null;
         if (includeCallsign && (device.getCallsign() != null)) {
             try {
-                callsignBytes = device.getCallsign().getBytes("UTF-8");
+                byte[] callsignBytes = device.getCallsign().getBytes("UTF-8");
+                out.putInt(callsignBytes.length);
+                out.put(callsignBytes);
             } catch (UnsupportedEncodingException e) {
                 e.printStackTrace();
             }
         }
+    }
 
-        byte[] relayBytes = null;
-        if (includeRelays) {
-            ByteBuffer relayBuf;
-            ArrayList<RelayConnection> relays = getRelayConnections();
-            int nums = 0;
-            if (relays != null)
-                nums = relays.size();
-            relayBuf = ByteBuffer.allocate(MacAddress.MAC_BYTE_SIZE + 1 + 16 + 4 + nums * RelayConnection.SIZE);
-            MacAddress awareMac = device.getAwareMac();
-            if (awareMac == null)
-                awareMac = new MacAddress();
-            relayBuf.put(awareMac.toByteArray());
-            relayBuf.put(device.getFlags());
-            if (device.isAwareServer())
-                relayBuf.put(device.getAwareServerIp().getAddress());
-            else
-                relayBuf.put(SqAnDevice.NO_IPV6_ADDRESS);
-            relayBuf.putInt(nums);
-            if (relays != null) {
-                for (RelayConnection relay:relays) {
-                    relayBuf.put(relay.toBytes());
-                }
-            }
-            relayBytes = relayBuf.array();
-        }
+    /**
+     * Builds the COMPACT payload for this device
+     * @param device
+     * @param time
+     * @return
+     */
+    private byte[] buildCompact(SqAnDevice device, long time) {
+        MacAddress awareMac = device.getAwareMac();
+        byte[] awareIpv6 = null;
+        if (device.isAwareServer())
+            awareIpv6 = device.getAwareServerIp().getAddress();
+        return CompactHeartbeat.getEncoder().encode(device.getLastLocation(),device.getFlags(),
+                (awareMac == null)?null:awareMac.toByteArray(),awareIpv6,device.getCallsign(),getRelayConnections(),time);
+    }
 
-        int size;
-        if (superBytes == null)
-            size = 0;
-        else
-            size = superBytes.length;
-        if (includePosition && (spaceTimeBytes != null)) {
-            size += spaceTimeBytes.length;
-            if (includeRelays && (relayBytes != null)) {
-                size += relayBytes.length;
-                if (includeCallsign && (callsignBytes != null))
-                    size += 4 + callsignBytes.length;
-            }
+    /**
+     * Updates the device from a COMPACT payload
+     * @param device
+     * @param payload
+     * @param time
+     */
+    private static void parseCompact(SqAnDevice device, byte[] payload, long time) {
+        CompactHeartbeat.Result result = CompactHeartbeat.getDecoder().decode(device.getUUID(),ByteBuffer.wrap(payload),time);
+        if (result == null) {
+            Log.e(Config.TAG,"Unable to read compact heartbeat from "+device.getUUID());
+            return;
         }
-
-        ByteBuffer out = ByteBuffer.allocate(size);
-
-        if (superBytes != null) {
-            out.put(superBytes);
+        if (result.getPosition() != null)
+            device.setLastLocation(result.getPosition());
+        device.parseFlags(result.getDeviceFlags());
+        if (result.hasStatic()) {
+            device.setAwareMac(new MacAddress(result.getAwareMac()));
+            device.setAwareServerIp(result.getAwareIpv6());
+            if (result.getCallsign() != null)
+                device.setCallsign(result.getCallsign());
         }
-        if (includePosition && (spaceTimeBytes != null)) {
-            out.put(spaceTimeBytes);
-            if (includeRelays && (relayBytes != null)) {
-                out.put(relayBytes);
-                if (includeCallsign && (callsignBytes != null)) {
-                    out.putInt(callsignBytes.length);
-                    out.put(callsignBytes);
-                }
-            }
+        if (result.getRelays() != null) {
+            device.replaceRelayConnections(result.getRelays()); //the keyframe plus delta is the whole list, so anything missing was removed
+            device.onRelaysReported();
         }
-
-        return out.array();
+        if (result.isFullNeeded())
+            CompactHeartbeat.getEncoder().requestFullFrom(device.getUUID());
+        SqAnDevice thisDevice = Config.getThisDevice();
+        if ((thisDevice != null) && result.isRequested(thisDevice.getUUID()))
+            CompactHeartbeat.getEncoder().onFullRequested();
     }
 
     @Override
@@ -0,0 +1,88 @@
+package org.sofwerx.sqan.manet.common.packet;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of reusable ByteBuffers used to read and write packets without allocating
+ * a new buffer for every packet. Buffers are only valid between acquire() and release();
+ * anything that needs to keep the packet contents longer than that needs to copy them.
+ */
+public class PacketBufferPool {
+    public final static int BUFFER_SIZE = 1024 * 64;
+    private final static int MAX_POOLED_BUFFERS = 32;
+    private final static ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final static AtomicInteger pooledCount = new AtomicInteger(0);
+    private static boolean useDirectBuffers = false;
+
+    /**
+     * Sets if newly created pool buffers should be direct (i.e. outside of the Java heap). Direct
+     * buffers are cheaper to hand to NIO channels but more expensive to read from in Java
+     * @param useDirect true == use direct buffers
+     */
+    public static void setUseDirectBuffers(boolean useDirect) {
+        if (useDirect != useDirectBuffers) {
+            useDirectBuffers = useDirect;
+            pool.clear();
+            pooledCount.set(0);
+        }
+    }
+
+    public static boolean isUsingDirectBuffers() { return useDirectBuffers; }
+
+    /**
+     * Gets a cleared buffer from the pool (or creates a new one if the pool is empty)
+     * @return
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buf = pool.poll();
+        if (buf == null)
+            return useDirectBuffers?ByteBuffer.allocateDirect(BUFFER_SIZE):ByteBuffer.allocate(BUFFER_SIZE);
+        pooledCount.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Gets a cleared buffer able to hold at least the given number of bytes. Requests larger
+     * than BUFFER_SIZE get a one-off buffer that is not kept by the pool when released
+     * @param minSize
+     * @return
+     */
+    public static ByteBuffer acquire(int minSize) {
+        if (minSize > BUFFER_SIZE)
+            return ByteBuffer.allocate(minSize);
+        return acquire();
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used by the caller after this.
+     * @param buf
+     */
+    public static void release(ByteBuffer buf) {
+        if ((buf == null) || (buf.capacity() != BUFFER_SIZE) || (buf.isDirect() != useDirectBuffers))
+            return;
+        if (pooledCount.incrementAndGet() > MAX_POOLED_BUFFERS) {
+            pooledCount.decrementAndGet();
+            return;
+        }
+        pool.offer(buf);
+    }
+
+    /**
+     * Copies the remaining bytes of a buffer into a byte array without changing the buffer's
+     * position. If the buffer exactly covers a heap array, that array is returned without copying.
+     * @param buf
+     * @return
+     */
+    public static byte[] toBytes(ByteBuffer buf) {
+        if (buf == null)
+            return null;
+        if (buf.hasArray() && (buf.arrayOffset() == 0) && (buf.position() == 0) && (buf.limit() == buf.array().length))
+            return buf.array();
+        byte[] out = new byte[buf.remaining()];
+        buf.duplicate().get(out);
+        return out;
+    }
+}
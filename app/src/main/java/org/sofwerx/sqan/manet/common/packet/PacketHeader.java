@@ -1,10 +1,12 @@
 package org.sofwerx.sqan.manet.common.packet;
 
-import android.util.Log;
+import org.sofwerx.notdroid.util.Log;
 
 import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.manet.common.pnt.NetworkTime;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Contains the header information needed for all packets
@@ -17,9 +19,17 @@ public class PacketHeader {
     protected final static byte PACKET_TYPE_CHANNEL_BYTES = 0b00000011;
     protected final static byte PACKET_TYPE_VPN_BYTES =     0b00000100;
     public final static byte PACKET_TYPE_DISCONNECTING =    0b00000101;
+    public final static byte PACKET_TYPE_SEGMENT =          0b00000110;
+    protected final static byte PACKET_TYPE_RELIABLE =      0b00000111;
     private final static byte FLAG_LOSSY_OK =         (byte)0b00001000;
     final static byte MASK_CHECKSUM =                 (byte)0b11110000;
     private final static byte MASK_TYPE =             (byte)0b00000111;
+    private final static int OFFSET_FLAGS = 0;
+    private final static int OFFSET_HOP_COUNT = 1;
+    private final static int OFFSET_ORIGIN = 2;
+    private final static int OFFSET_DESTINATION = 6;
+    private final static int OFFSET_TIME = 10;
+    private final static AtomicLong lastTime = new AtomicLong(0l);
     private long time; //timestamps are used as a message index as well //FIXME switch this to an int and then also add a checksum byte
     private byte packetType;
     private byte hopCount = 0;
@@ -33,7 +43,24 @@ public class PacketHeader {
     public PacketHeader(int originUUID) {
         this();
         this.originUUID = originUUID;
-        time = System.currentTimeMillis();
+        time = nextTime();
+    }
+
+    /**
+     * Gets the time for a new packet. Since the time also identifies the packet (i.e. for
+     * duplicate detection), packets created in the same millisecond are pushed forward so
+     * that no two packets from this device share a time
+     * @return network time
+     */
+    private static long nextTime() {
+        final long now = NetworkTime.getNetworkTimeNow();
+        long last;
+        long next;
+        do {
+            last = lastTime.get();
+            next = (now > last)?now:(last+1l);
+        } while (!lastTime.compareAndSet(last,next));
+        return next;
     }
 
     void setChecksum(byte checksum) { this.checksum = checksum; }
@@ -49,6 +76,25 @@ public class PacketHeader {
         return calcCheck;
     }
 
+    /**
+     * Calculates the checksum over the remaining bytes in the buffer without changing
+     * the buffer's position
+     * @param data
+     * @return
+     */
+    public static byte calcChecksumInPlace(ByteBuffer data) {
+        byte calcCheck = 0;
+        if (data != null) {
+            byte value;
+            for (int i = data.position(); i < data.limit(); i++) {
+                value = data.get(i);
+                calcCheck = (byte) (calcCheck ^ value);
+                calcCheck = (byte) (calcCheck ^ (value << 4));
+            }
+        }
+        return calcCheck;
+    }
+
     /**
      * Sets if this packet ok to drop when the network gets congested (i.e. is it ok for
      * this packet to be lossy)
@@ -63,6 +109,14 @@ public class PacketHeader {
      */
     public boolean isLossyOk() { return lossyOk; }
 
+    /**
+     * Reads if the packet held in a buffer (starting at the buffer's current position) is ok
+     * to drop when the network gets congested without changing the buffer's position
+     * @param buf
+     * @return
+     */
+    public static boolean isLossyOk(ByteBuffer buf) { return (buf.get(buf.position()+OFFSET_FLAGS) & FLAG_LOSSY_OK) == FLAG_LOSSY_OK; }
+
     /**
      * Gets the size of the header in bytes
      * @return
@@ -97,6 +151,57 @@ public class PacketHeader {
         }
     }
 
+    /**
+     * Helper method to overwrite just the hop count of a packet held in a buffer, starting at
+     * the buffer's current position. The buffer's position is not changed.
+     * @param newHopCount
+     * @param buf
+     */
+    public static void setHopCount(int newHopCount,ByteBuffer buf) {
+        if ((buf != null) && (buf.remaining() >= getSize()))
+            buf.put(buf.position()+OFFSET_HOP_COUNT,(byte)newHopCount);
+    }
+
+    /**
+     * Reads the packet type in place from a packet held in a buffer (starting at the buffer's
+     * current position) without changing the buffer's position
+     * @param buf
+     * @return
+     */
+    public static byte getType(ByteBuffer buf) { return (byte)(buf.get(buf.position()+OFFSET_FLAGS) & MASK_TYPE); }
+
+    /**
+     * Reads the hop count in place from a packet held in a buffer (starting at the buffer's
+     * current position) without changing the buffer's position
+     * @param buf
+     * @return
+     */
+    public static int getHopCount(ByteBuffer buf) { return (int)buf.get(buf.position()+OFFSET_HOP_COUNT); }
+
+    /**
+     * Reads the origin UUID in place from a packet held in a buffer (starting at the buffer's
+     * current position) without changing the buffer's position
+     * @param buf
+     * @return
+     */
+    public static int getOriginUUID(ByteBuffer buf) { return buf.getInt(buf.position()+OFFSET_ORIGIN); }
+
+    /**
+     * Reads the destination in place from a packet held in a buffer (starting at the buffer's
+     * current position) without changing the buffer's position
+     * @param buf
+     * @return
+     */
+    public static int getDestination(ByteBuffer buf) { return buf.getInt(buf.position()+OFFSET_DESTINATION); }
+
+    /**
+     * Reads the packet time in place from a packet held in a buffer (starting at the buffer's
+     * current position) without changing the buffer's position
+     * @param buf
+     * @return
+     */
+    public static long getTime(ByteBuffer buf) { return buf.getLong(buf.position()+OFFSET_TIME); }
+
     public long getTime() { return time; }
     public void setTime(long time) { this.time = time; }
     public int getOriginUUID() { return originUUID; }
@@ -150,6 +255,15 @@ public class PacketHeader {
 
     public byte[] toByteArray() {
         ByteBuffer out = ByteBuffer.allocate(getSize());
+        writeTo(out);
+        return out.array();
+    }
+
+    /**
+     * Writes this header into the buffer at its current position
+     * @param out
+     */
+    public void writeTo(ByteBuffer out) {
         byte flags = (byte)(packetType | (checksum & MASK_CHECKSUM));
         if (lossyOk)
             flags = (byte)(flags | FLAG_LOSSY_OK);
@@ -159,7 +273,6 @@ public class PacketHeader {
         out.putInt(originUUID);
         out.putInt(destination);
         out.putLong(time);
-        return out.array();
     }
 
     public static PacketHeader newFromBytes(byte[] bytes) {
@@ -171,8 +284,21 @@ public class PacketHeader {
             Log.e(Config.TAG,"Cannot generate a packet header from a "+bytes.length+" byte array ("+getSize()+" bytes expected)");
             return null;
         }
+        return newFromBuffer(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Reads a header from the buffer at its current position and advances the position past
+     * the header. No intermediate copy of the header is made.
+     * @param in
+     * @return the header (or null if there are not enough bytes remaining)
+     */
+    public static PacketHeader newFromBuffer(ByteBuffer in) {
+        if ((in == null) || (in.remaining() < getSize())) {
+            Log.e(Config.TAG,"Cannot generate a packet header from a buffer without "+getSize()+" bytes remaining");
+            return null;
+        }
         PacketHeader packetHeader = new PacketHeader();
-        ByteBuffer in = ByteBuffer.wrap(bytes);
         byte typeAndChecksum = in.get();
         packetHeader.packetType = (byte)(typeAndChecksum & MASK_TYPE);
         packetHeader.checksum = (byte)(typeAndChecksum & MASK_CHECKSUM);
@@ -3,6 +3,10 @@ package org.sofwerx.sqan.manet.common.packet;
 import org.sofwerx.sqan.manet.common.pnt.NetworkTime;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Provides a ping mechanism. Functions as so:
@@ -10,8 +14,16 @@ import java.nio.ByteBuffer;
  *  - Device B receives the packet, sees that isAPingRequest is true then sets the
  *      midpointLocalTime to Device B's current device local time and then sends the packet back
  *  - Device A receives the packet, sees that isPingRequest is false and handles result
+ * Since the returned packet still shows Device A as both origin and destination, Device A keeps
+ * track of who each of its pings went to (by departure time) to know which device answered.
  */
 public class PingPacket extends AbstractPacket {
+    private final static int MAX_OUTSTANDING = 64;
+    private final static AtomicLong lastDeparture = new AtomicLong(0l);
+    private final static Map<Long,Integer> outstanding = Collections.synchronizedMap(new LinkedHashMap<Long,Integer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long,Integer> eldest) { return size() > MAX_OUTSTANDING; }
+    });
     private long midpointLocalTime = -1l;
     private long latency = -1l; //this gets calculated
 
@@ -19,7 +31,35 @@ public class PingPacket extends AbstractPacket {
         super(new PacketHeader(originUUID));
         packetHeader.setDestination(destinationUUID);
         packetHeader.setType(getType());
-        packetHeader.setTime(NetworkTime.getNetworkTimeNow());
+        packetHeader.setTime(nextDeparture());
+        outstanding.put(packetHeader.getTime(),destinationUUID);
+    }
+
+    /**
+     * Gets the network time for a new ping, pushed forward if needed so no two pings from this
+     * device share a departure time
+     * @return
+     */
+    private static long nextDeparture() {
+        final long now = NetworkTime.getNetworkTimeNow();
+        long last;
+        long next;
+        do {
+            last = lastDeparture.get();
+            next = (now > last)?now:(last+1l);
+        } while (!lastDeparture.compareAndSet(last,next));
+        return next;
+    }
+
+    /**
+     * Gets the device that returned a ping sent by this device
+     * @return SqAN UUID (or PacketHeader.BROADCAST_ADDRESS if this ping was not sent by this device or was already handled)
+     */
+    public int getResponder() {
+        Integer uuid = outstanding.remove(getDepartureTime());
+        if (uuid == null)
+            return PacketHeader.BROADCAST_ADDRESS;
+        return uuid;
     }
 
     public PingPacket(PacketHeader packetHeader) {
@@ -32,21 +72,24 @@ public class PingPacket extends AbstractPacket {
     public void parse(byte[] bytes) {
         if ((bytes == null) || (bytes.length != INTERNAL_LENGTH))
             midpointLocalTime = -1;
-        else {
-            ByteBuffer buf = ByteBuffer.wrap(bytes);
+        else
+            parse(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public void parse(ByteBuffer buf) {
+        if ((buf == null) || (buf.remaining() != INTERNAL_LENGTH))
+            midpointLocalTime = -1;
+        else
             midpointLocalTime = buf.getLong();
-        }
     }
 
-    public byte[] toByteArray() {
-        byte[] superBytes = super.toByteArray();
+    @Override
+    protected int getPayloadSize() { return INTERNAL_LENGTH; }
 
-        if (superBytes == null)
-            return null;
-        ByteBuffer out = ByteBuffer.allocate(superBytes.length + INTERNAL_LENGTH);
-        out.put(superBytes);
+    @Override
+    protected void writePayload(ByteBuffer out) {
         out.putLong(midpointLocalTime);
-        return out.array();
     }
 
     @Override
@@ -55,8 +98,8 @@ public class PingPacket extends AbstractPacket {
     }
 
     /**
-     * Gets the time when the packet leaves the origination station (in local time)
-     * @return departure time (local device time)
+     * Gets the time when the packet leaves the origination station
+     * @return departure time (network time)
      */
     public long getDepartureTime() {
         if (packetHeader == null)
@@ -88,7 +131,7 @@ public class PingPacket extends AbstractPacket {
             return true;
         else {
             if (latency < 0l)
-                latency = System.currentTimeMillis() - getDepartureTime();
+                latency = NetworkTime.getNetworkTimeNow() - getDepartureTime();
             return false;
         }
     }
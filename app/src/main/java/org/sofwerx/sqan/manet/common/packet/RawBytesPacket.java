@@ -7,30 +7,44 @@ import java.nio.ByteBuffer;
  */
 public class RawBytesPacket extends AbstractPacket {
     private byte[] data;
+    private ByteBuffer payload; //view of the received data when parsed from a buffer
 
     public RawBytesPacket(PacketHeader packetHeader) {
         super(packetHeader);
         data = null;
+        payload = null;
     }
 
     @Override
     public void parse(byte[] bytes) {
         data = bytes;
+        payload = null;
     }
 
     @Override
-    public byte[] toByteArray() {
-        byte[] superBytes = super.toByteArray();
-        int len;
-        if (data == null)
-            len = 0;
+    public void parse(ByteBuffer buf) {
+        data = null;
+        if ((buf == null) || !buf.hasRemaining())
+            payload = null;
         else
-            len = data.length;
-        ByteBuffer out = ByteBuffer.allocate(superBytes.length + len);
-        out.put(superBytes);
-        if (len > 0)
+            payload = buf.slice();
+    }
+
+    @Override
+    protected int getPayloadSize() {
+        if (data != null)
+            return data.length;
+        if (payload != null)
+            return payload.remaining();
+        return 0;
+    }
+
+    @Override
+    protected void writePayload(ByteBuffer out) {
+        if (data != null)
             out.put(data);
-        return out.array();
+        else if (payload != null)
+            out.put(payload.duplicate());
     }
 
     @Override
@@ -40,10 +54,36 @@ public class RawBytesPacket extends AbstractPacket {
 
 
     @Override
-    protected byte getChecksum() { return PacketHeader.calcChecksum(data); }
+    protected byte getChecksum() {
+        if (data != null)
+            return PacketHeader.calcChecksum(data);
+        return PacketHeader.calcChecksumInPlace(payload);
+    }
+
+    public byte[] getData() {
+        if ((data == null) && (payload != null)) {
+            data = PacketBufferPool.toBytes(payload);
+            payload = null;
+        }
+        return data;
+    }
 
-    public byte[] getData() { return data; }
-    public void setData(byte[] data) { this.data = data; }
+    /**
+     * Gets the data without copying it out of the buffer it was received in
+     * @return a read-only view of the data (or null if none)
+     */
+    public ByteBuffer getDataBuffer() {
+        if (data != null)
+            return ByteBuffer.wrap(data).asReadOnlyBuffer();
+        if (payload != null)
+            return payload.asReadOnlyBuffer();
+        return null;
+    }
+
+    public void setData(byte[] data) {
+        this.data = data;
+        payload = null;
+    }
 
     @Override
     public boolean isAdminPacket() { return false; }
@@ -0,0 +1,185 @@
+package org.sofwerx.sqan.manet.common.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Used by SelectiveRepeat to carry a packet that must not be lost along with its sequence
+ * number, the acknowledgements for packets going the other way, or both. The wrapped packet's
+ * origin, destination and hop count are the same as this packet's so only its flags and time
+ * are carried with its payload. Each transmission (including resends) gets its own time so
+ * resends are not mistaken for duplicates while being relayed.
+ *
+ * Payload: [flags][data: session, sequence, window base][ack: session, next expected, selective acks][wrapped packet]
+ */
+public class ReliablePacket extends AbstractPacket {
+    private final static byte FLAG_DATA = 0b00000001;
+    private final static byte FLAG_ACK = 0b00000010;
+    private final static int DATA_SIZE = 1 + 2 + 2;
+    private final static int ACK_SIZE = 1 + 2 + 4;
+    private final static int WRAPPED_HEADER_SIZE = 1 + 8; //flags and time of the wrapped packet
+    private byte[] wrapped; //the complete wrapped packet
+    private byte session;
+    private int sequence;
+    private int base;
+    private boolean hasAck = false;
+    private byte ackSession;
+    private int ack;
+    private int selectiveAcks;
+
+    public ReliablePacket(PacketHeader packetHeader) {
+        super(packetHeader);
+    }
+
+    /**
+     * Creates an empty packet to this destination; add data and/or acknowledgements to it
+     * @param origin
+     * @param destination
+     */
+    public ReliablePacket(int origin, int destination) {
+        this(new PacketHeader(origin));
+        packetHeader.setDestination(destination);
+    }
+
+    /**
+     * Adds the packet to be delivered
+     * @param wrapped complete bytes of the packet (header included)
+     * @param session identifies the sender's sequence numbering
+     * @param sequence sequence number of this packet
+     * @param base oldest sequence number the sender is still trying to deliver
+     */
+    public void setData(byte[] wrapped, byte session, int sequence, int base) {
+        this.wrapped = wrapped;
+        this.session = session;
+        this.sequence = sequence & 0xFFFF;
+        this.base = base & 0xFFFF;
+    }
+
+    /**
+     * Adds acknowledgements for the packets received from this packet's destination
+     * @param session the session being acknowledged
+     * @param ack next sequence number expected (everything before it has been received)
+     * @param selectiveAcks bit i set == ack + 1 + i has been received
+     */
+    public void setAck(byte session, int ack, int selectiveAcks) {
+        hasAck = true;
+        ackSession = session;
+        this.ack = ack & 0xFFFF;
+        this.selectiveAcks = selectiveAcks;
+    }
+
+    public boolean hasData() { return wrapped != null; }
+    public boolean hasAck() { return hasAck; }
+    public byte getSession() { return session; }
+    public int getSequence() { return sequence; }
+    public int getBase() { return base; }
+    public byte getAckSession() { return ackSession; }
+    public int getAck() { return ack; }
+    public int getSelectiveAcks() { return selectiveAcks; }
+
+    /**
+     * Gets the complete bytes of the wrapped packet
+     * @return
+     */
+    public byte[] getWrappedBytes() { return wrapped; }
+
+    /**
+     * Gets the wrapped packet
+     * @return the packet (or null if none)
+     */
+    public AbstractPacket getWrapped() {
+        if (wrapped == null)
+            return null;
+        PacketHeader.setHopCount(getCurrentHopCount(),wrapped);
+        return AbstractPacket.newFromBytes(wrapped);
+    }
+
+    @Override
+    public void parse(byte[] bytes) {
+        if (bytes == null)
+            return;
+        parse(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public void parse(ByteBuffer buf) {
+        wrapped = null;
+        hasAck = false;
+        if ((buf == null) || !buf.hasRemaining())
+            return;
+        final byte flags = buf.get();
+        if ((flags & FLAG_DATA) == FLAG_DATA) {
+            if (buf.remaining() < DATA_SIZE)
+                return;
+            session = buf.get();
+            sequence = buf.getShort() & 0xFFFF;
+            base = buf.getShort() & 0xFFFF;
+        }
+        if ((flags & FLAG_ACK) == FLAG_ACK) {
+            if (buf.remaining() < ACK_SIZE)
+                return;
+            hasAck = true;
+            ackSession = buf.get();
+            ack = buf.getShort() & 0xFFFF;
+            selectiveAcks = buf.getInt();
+        }
+        if (((flags & FLAG_DATA) == FLAG_DATA) && (buf.remaining() >= WRAPPED_HEADER_SIZE)) {
+            //rebuild the wrapped packet's header from this one's
+            ByteBuffer out = ByteBuffer.allocate(PacketHeader.getSize() + buf.remaining() - WRAPPED_HEADER_SIZE);
+            out.put(buf.get());
+            out.put((byte)getCurrentHopCount());
+            out.putInt(getOrigin());
+            out.putInt(getSqAnDestination());
+            out.putLong(buf.getLong());
+            out.put(buf);
+            wrapped = out.array();
+        }
+    }
+
+    @Override
+    protected int getPayloadSize() {
+        int size = 1;
+        if (wrapped != null)
+            size += DATA_SIZE + WRAPPED_HEADER_SIZE + wrapped.length - PacketHeader.getSize();
+        if (hasAck)
+            size += ACK_SIZE;
+        return size;
+    }
+
+    @Override
+    protected void writePayload(ByteBuffer out) {
+        byte flags = 0;
+        if (wrapped != null)
+            flags |= FLAG_DATA;
+        if (hasAck)
+            flags |= FLAG_ACK;
+        out.put(flags);
+        if (wrapped != null) {
+            out.put(session);
+            out.putShort((short)sequence);
+            out.putShort((short)base);
+        }
+        if (hasAck) {
+            out.put(ackSession);
+            out.putShort((short)ack);
+            out.putInt(selectiveAcks);
+        }
+        if (wrapped != null) {
+            out.put(wrapped[0]);
+            out.putLong(PacketHeader.getTime(ByteBuffer.wrap(wrapped)));
+            out.put(wrapped,PacketHeader.getSize(),wrapped.length - PacketHeader.getSize());
+        }
+    }
+
+    @Override
+    protected byte getType() { return PacketHeader.PACKET_TYPE_RELIABLE; }
+
+    @Override
+    protected byte getChecksum() {
+        if (wrapped == null)
+            return 0;
+        return PacketHeader.calcChecksumInPlace(ByteBuffer.wrap(wrapped,PacketHeader.getSize(),wrapped.length - PacketHeader.getSize()));
+    }
+
+    @Override
+    public boolean isAdminPacket() { return false; }
+}
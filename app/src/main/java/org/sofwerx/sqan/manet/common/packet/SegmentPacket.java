@@ -0,0 +1,125 @@
+package org.sofwerx.sqan.manet.common.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Carries one piece of a packet that was too large for the MANET it is being sent over. The
+ * header of each segment mirrors the header of the original packet (origin, destination, time
+ * and lossy flag) so segments route just like the packet they came from. The SegmentTool
+ * reassembles the original packet once all of the segments are received.
+ */
+public class SegmentPacket extends AbstractPacket {
+    public final static int SEGMENT_HEADER_SIZE = 4 + 2 + 2;
+    private int segmentId;
+    private int index;
+    private int count;
+    private ByteBuffer data;
+
+    public SegmentPacket(PacketHeader packetHeader) {
+        super(packetHeader);
+        data = null;
+    }
+
+    /**
+     * Creates a segment of an original packet
+     * @param original header of the packet being segmented
+     * @param segmentId id shared by all the segments of this packet
+     * @param index position of this segment (0 is first)
+     * @param count total number of segments
+     * @param data the part of the original packet carried by this segment
+     */
+    public SegmentPacket(PacketHeader original, int segmentId, int index, int count, ByteBuffer data) {
+        this(new PacketHeader(original.getOriginUUID()));
+        packetHeader.setDestination(original.getDestination());
+        packetHeader.setTime(original.getTime());
+        packetHeader.setHopCount(original.getHopCount());
+        packetHeader.setIsLossyOk(original.isLossyOk());
+        this.segmentId = segmentId;
+        this.index = index;
+        this.count = count;
+        this.data = data;
+    }
+
+    @Override
+    public void parse(byte[] bytes) {
+        if (bytes == null)
+            data = null;
+        else
+            parse(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public void parse(ByteBuffer buf) {
+        if ((buf == null) || (buf.remaining() < SEGMENT_HEADER_SIZE)) {
+            data = null;
+            return;
+        }
+        segmentId = buf.getInt();
+        index = buf.getShort() & 0xFFFF;
+        count = buf.getShort() & 0xFFFF;
+        data = buf.slice();
+    }
+
+    @Override
+    protected int getPayloadSize() {
+        return SEGMENT_HEADER_SIZE + ((data==null)?0:data.remaining());
+    }
+
+    @Override
+    protected void writePayload(ByteBuffer out) {
+        out.putInt(segmentId);
+        out.putShort((short)index);
+        out.putShort((short)count);
+        if (data != null)
+            out.put(data.duplicate());
+    }
+
+    @Override
+    protected byte getChecksum() { return PacketHeader.calcChecksumInPlace(data); }
+
+    @Override
+    protected byte getType() { return PacketHeader.PACKET_TYPE_SEGMENT; }
+
+    /**
+     * Segments are not admin packets themselves; the packet they reassemble into might be
+     * @return
+     */
+    @Override
+    public boolean isAdminPacket() { return false; }
+
+    /**
+     * Gets the id shared by all segments of the same original packet
+     * @return
+     */
+    public int getSegmentId() { return segmentId; }
+
+    /**
+     * Gets the position of this segment within the original packet
+     * @return 0 == first segment
+     */
+    public int getIndex() { return index; }
+
+    /**
+     * Gets the total number of segments the original packet was broken into
+     * @return
+     */
+    public int getCount() { return count; }
+
+    /**
+     * Gets the part of the original packet carried by this segment
+     * @return
+     */
+    public ByteBuffer getData() {
+        if (data == null)
+            return null;
+        return data.duplicate();
+    }
+
+    /**
+     * Is the information in this segment internally consistent
+     * @return
+     */
+    public boolean isValidSegment() {
+        return (data != null) && (count > 0) && (index < count);
+    }
+}
@@ -1,23 +1,304 @@
 package org.sofwerx.sqan.manet.common.packet;
 
+import org.sofwerx.notdroid.util.Log;
+
+import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.manet.common.MeshState;
+import org.sofwerx.sqan.util.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Used to break up and re-assemble packets that are larger than the max throughput size for the MANET
  */
 public class SegmentTool {
-    private static int maxSize;
+    private final static String TAG = Config.TAG+".Segment";
+    private final static int MAX_SEGMENTS = 0xFFFF; //count is sent as an unsigned short
+    private final static int MAX_REASSEMBLY_BYTES = 1024 * 1024 * 4; //total memory that can be held by partially received packets
+    private final static int BYTES_PER_SLOT = 8; //what a partial packet holds for each segment before it arrives (the reference to its bytes)
+    private final static long TIME_TO_STALE = 1000l * 10l; //partially received packets are dropped if no new segments arrive in this time
+    private final static AtomicInteger nextSegmentId = new AtomicInteger((int)System.currentTimeMillis());
+    private final static String REASSEMBLIES = "sqan_segment_reassemblies_total";
+    private final static String REASSEMBLIES_HELP = "Segmented packets by how their reassembly ended";
+    private final static Metrics.Counter reassembled = Metrics.counter(REASSEMBLIES,REASSEMBLIES_HELP,"result","complete");
+    private final static Metrics.Counter unparseable = Metrics.counter(REASSEMBLIES,REASSEMBLIES_HELP,"result","unparseable");
+    private final static Metrics.Counter stale = Metrics.counter(REASSEMBLIES,REASSEMBLIES_HELP,"result","stale");
+    private final static Metrics.Counter evicted = Metrics.counter(REASSEMBLIES,REASSEMBLIES_HELP,"result","evicted");
+    private final static Metrics.Counter invalidSegments = Metrics.counter("sqan_rx_dropped_total","Received packets dropped","reason","invalid_segment");
 
     /**
-     * Sets the max size in bytes that can be passed before a message needs to be segmented
-     * @param max max size in bytes
+     * Will this data fit into a single packet on a MANET with the given max packet size
+     * @param size byte size of the data
+     * @param max max size in bytes of the MANET
+     * @return true == will fit in a single packet
      */
-    public static void setMaxPacketSize(int max) { SegmentTool.maxSize = max; }
+    public static boolean isSinglePacket(int size, int max) { return (size<=max); }
 
     /**
-     * Will this data fit into a single packet
-     * @param size byte size of the data
-     * @return true == will fit in a single packet
+     * Breaks a serialized packet into SegmentPackets that each fit within the max size
+     * @param packetBytes the original packet (header and payload)
+     * @param max max size in bytes of each segment (including its header)
+     * @return the segments (or null if the packet could not be segmented)
+     */
+    public static ArrayList<SegmentPacket> toSegments(byte[] packetBytes, int max) {
+        if ((packetBytes == null) || (packetBytes.length < PacketHeader.getSize())) {
+            Log.e(TAG,"Cannot segment a packet without a header");
+            return null;
+        }
+        ByteBuffer in = ByteBuffer.wrap(packetBytes);
+        if (PacketHeader.getType(in) == PacketHeader.PACKET_TYPE_SEGMENT) {
+            Log.e(TAG,"Segments cannot be segmented again");
+            return null;
+        }
+        int perSegment = max - PacketHeader.getSize() - SegmentPacket.SEGMENT_HEADER_SIZE;
+        if (perSegment < 1) {
+            Log.e(TAG,"A max packet size of "+max+"b is too small to carry segments");
+            return null;
+        }
+        int count = (packetBytes.length + perSegment - 1)/perSegment;
+        if (count > MAX_SEGMENTS) {
+            Log.e(TAG,packetBytes.length+"b packet would need "+count+" segments, which is more than can be sent");
+            return null;
+        }
+        PacketHeader original = PacketHeader.newFromBuffer(in.duplicate());
+        int segmentId = nextSegmentId.incrementAndGet();
+        ArrayList<SegmentPacket> segments = new ArrayList<>(count);
+        for (int i=0;i<count;i++) {
+            int start = i*perSegment;
+            in.limit(Math.min(packetBytes.length,start+perSegment));
+            in.position(start);
+            segments.add(new SegmentPacket(original,segmentId,i,count,in.slice()));
+        }
+        Log.d(TAG,"Segmented "+packetBytes.length+"b packet into "+count+" segments");
+        return segments;
+    }
+
+    /**
+     * Adds this segment to the packet it is a part of (in the current MeshState)
+     * @param segment
+     * @return the reassembled packet if this segment completed it; otherwise null
+     */
+    public static AbstractPacket reassemble(SegmentPacket segment) { return MeshState.get().getPartialPackets().reassemble(segment); }
+
+    /**
+     * Drops any partially received packets that have not received a segment in a while
+     */
+    public static void cullStaleReassemblies() { MeshState.get().getPartialPackets().cullStale(); }
+
+    /**
+     * Gets the number of bytes currently held in partially received packets
+     * @return
+     */
+    public static int getBytesHeld() { return MeshState.get().getPartialPackets().bytesHeld; }
+
+    public static void clear() { MeshState.get().getPartialPackets().clear(); }
+
+    /**
+     * The packets that one device has only received some segments of
+     */
+    public static class PartialPackets {
+        private final HashMap<Long,Reassembly> reassemblies = new HashMap<>();
+        private int bytesHeld = 0;
+
+        /**
+         * Adds this segment to the packet it is a part of
+         * @param segment
+         * @return the reassembled packet if this segment completed it; otherwise null
+         */
+        public AbstractPacket reassemble(SegmentPacket segment) {
+            if ((segment == null) || !segment.isValidSegment()) {
+                Log.w(TAG,"Invalid segment dropped");
+                invalidSegments.inc();
+                return null;
+            }
+            if (!isCountPlausible(segment)) {
+                Log.w(TAG,"Segment claiming "+segment.getCount()+" segments of "+segment.getData().remaining()+"b is larger than any packet that can be reassembled; dropped");
+                invalidSegments.inc();
+                return null;
+            }
+            byte[] complete = null;
+            synchronized (reassemblies) {
+                cullStale();
+                final long key = toKey(segment.getOrigin(),segment.getSegmentId());
+                Reassembly reassembly = reassemblies.get(key);
+                if ((reassembly != null) && ((reassembly.time != segment.getTime()) || (reassembly.count != segment.getCount()))) {
+                    //the segment ID was reused (i.e. the other device restarted) so the old one is no good
+                    remove(key,reassembly);
+                    reassembly = null;
+                }
+                if (reassembly == null) {
+                    reassembly = new Reassembly(segment.getTime(),segment.getCount());
+                    reassemblies.put(key,reassembly);
+                    bytesHeld += reassembly.getHeld();
+                }
+                ByteBuffer data = segment.getData();
+                bytesHeld += reassembly.add(segment.getIndex(),data);
+                if (bytesHeld > MAX_REASSEMBLY_BYTES) {
+                    makeRoom(key);
+                    if (reassemblies.get(key) != reassembly)
+                        return null;
+                }
+                if (reassembly.isComplete()) {
+                    remove(key,reassembly);
+                    complete = reassembly.toBytes();
+                    PacketHeader.setHopCount(segment.getCurrentHopCount(),complete);
+                }
+            }
+            if (complete == null)
+                return null;
+            AbstractPacket packet = AbstractPacket.newFromBytes(complete);
+            if (packet == null) {
+                Log.w(TAG,"Reassembled "+complete.length+"b packet could not be parsed");
+                unparseable.inc();
+            } else {
+                Log.d(TAG,"Reassembled "+packet.getClass().getSimpleName()+" from "+segment.getCount()+" segments");
+                reassembled.inc();
+            }
+            return packet;
+        }
+
+        /**
+         * Drops any partially received packets that have not received a segment in a while
+         */
+        public void cullStale() {
+            synchronized (reassemblies) {
+                if (reassemblies.isEmpty())
+                    return;
+                final long staleTime = System.currentTimeMillis() - TIME_TO_STALE;
+                Iterator<Map.Entry<Long,Reassembly>> i = reassemblies.entrySet().iterator();
+                while (i.hasNext()) {
+                    Reassembly reassembly = i.next().getValue();
+                    if (reassembly.lastUpdate < staleTime) {
+                        Log.d(TAG,"Dropping stale partial packet ("+reassembly.received.cardinality()+" of "+reassembly.count+" segments received)");
+                        bytesHeld -= reassembly.getHeld();
+                        i.remove();
+                        stale.inc();
+                    }
+                }
+            }
+        }
+
+        public void clear() {
+            synchronized (reassemblies) {
+                reassemblies.clear();
+                bytesHeld = 0;
+            }
+        }
+
+        /**
+         * Evicts the least recently updated partial packets (other than the one being worked)
+         * until the memory budget is met
+         * @param keep key of the partial packet that should be kept
+         */
+        private void makeRoom(long keep) {
+            while (bytesHeld > MAX_REASSEMBLY_BYTES) {
+                Long oldestKey = null;
+                Reassembly oldest = null;
+                for (Map.Entry<Long,Reassembly> entry:reassemblies.entrySet()) {
+                    if (entry.getKey() == keep)
+                        continue;
+                    if ((oldest == null) || (entry.getValue().lastUpdate < oldest.lastUpdate)) {
+                        oldestKey = entry.getKey();
+                        oldest = entry.getValue();
+                    }
+                }
+                if (oldest == null) {
+                    //the one being worked is by itself over the budget
+                    Log.w(TAG,"Partial packet exceeds the reassembly memory budget; dropping");
+                    remove(keep,reassemblies.get(keep));
+                    evicted.inc();
+                    return;
+                }
+                Log.d(TAG,"Reassembly memory budget exceeded; dropping a partial packet");
+                remove(oldestKey,oldest);
+                evicted.inc();
+            }
+        }
+
+        private void remove(long key, Reassembly reassembly) {
+            if (reassembly == null)
+                return;
+            reassemblies.remove(key);
+            bytesHeld -= reassembly.getHeld();
+        }
+    }
+
+    /**
+     * Could the packet this segment is part of be reassembled within the memory budget. Every
+     * segment but the last carries the same number of bytes, so those give the packet's size.
+     * @param segment
+     * @return
+     */
+    private static boolean isCountPlausible(SegmentPacket segment) {
+        if (segment.getIndex() == segment.getCount() - 1)
+            return true; //the last segment can be shorter; its count is still at most MAX_SEGMENTS and the slots count against the budget
+        final int length = segment.getData().remaining();
+        return (length > 0) && ((long)segment.getCount() * length <= MAX_REASSEMBLY_BYTES);
+    }
+
+    private static long toKey(int origin, int segmentId) {
+        return (((long)origin) << 32) | (segmentId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The segments received so far for one original packet
      */
-    public static boolean isSinglePacket(int size) { return (size<maxSize); }
+    private static class Reassembly {
+        private final long time;
+        private final int count;
+        private final byte[][] parts;
+        private final BitSet received;
+        private int size = 0;
+        private long lastUpdate;
+
+        private Reassembly(long time, int count) {
+            this.time = time;
+            this.count = count;
+            parts = new byte[count][];
+            received = new BitSet(count);
+            lastUpdate = System.currentTimeMillis();
+        }
+
+        /**
+         * Adds a segment
+         * @param index
+         * @param data
+         * @return the number of bytes added (0 if this was a duplicate)
+         */
+        private int add(int index, ByteBuffer data) {
+            lastUpdate = System.currentTimeMillis();
+            if (received.get(index))
+                return 0;
+            byte[] part = new byte[data.remaining()];
+            data.get(part);
+            parts[index] = part;
+            received.set(index);
+            size += part.length;
+            return part.length;
+        }
+
+        private boolean isComplete() { return received.cardinality() == count; }
+
+        /**
+         * Gets the memory held by this partial packet: the segments received and a slot for each one
+         * @return bytes
+         */
+        private int getHeld() { return count * BYTES_PER_SLOT + size; }
 
-    //FIXME actually segment if needed
+        private byte[] toBytes() {
+            byte[] out = new byte[size];
+            int offset = 0;
+            for (byte[] part:parts) {
+                System.arraycopy(part,0,out,offset,part.length);
+                offset += part.length;
+            }
+            return out;
+        }
+    }
 }
@@ -0,0 +1,110 @@
+package org.sofwerx.sqan.manet.common.packet;
+
+import org.sofwerx.sqan.util.NetUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The classes of traffic used to decide which queued packet is sent next. CONTROL is always
+ * sent first; the other classes share the link based on their weight.
+ */
+public enum TrafficClass {
+    CONTROL(0),     //heartbeats, pings and disconnect notices
+    INTERACTIVE(4), //voice, video conferencing and other latency sensitive VPN traffic
+    DATA(2),        //everything else
+    BULK(1);        //large transfers and traffic marked as low priority
+
+    private final static int LARGE_PACKET_SIZE = 1024 * 8; //packets larger than this are considered bulk
+    private final int weight;
+
+    TrafficClass(int weight) { this.weight = weight; }
+
+    /**
+     * Gets the share of the link this class gets relative to the other weighted classes
+     * @return 0 == strict priority
+     */
+    public int getWeight() { return weight; }
+
+    /**
+     * Gets the traffic class for a packet
+     * @param packet
+     * @return
+     */
+    public static TrafficClass of(AbstractPacket packet) {
+        if (packet == null)
+            return DATA;
+        if (packet.isAdminPacket())
+            return CONTROL;
+        if (packet instanceof VpnPacket)
+            return of(((VpnPacket)packet).getDataBuffer());
+        if (packet.isHighPerformanceNeeded())
+            return BULK;
+        return DATA;
+    }
+
+    /**
+     * Gets the traffic class for a packet held in a buffer (starting at the buffer's position)
+     * without changing the buffer's position
+     * @param packetView
+     * @return
+     */
+    public static TrafficClass ofPacket(ByteBuffer packetView) {
+        if ((packetView == null) || (packetView.remaining() < PacketHeader.getSize()))
+            return DATA;
+        switch (PacketHeader.getType(packetView)) {
+            case PacketHeader.PACKET_TYPE_HEARTBEAT:
+            case PacketHeader.PACKET_TYPE_PING:
+            case PacketHeader.PACKET_TYPE_DISCONNECTING:
+                return CONTROL;
+
+            case PacketHeader.PACKET_TYPE_VPN_BYTES:
+                if (packetView.remaining() > PacketHeader.getSize() + 1) {
+                    ByteBuffer ipPacket = packetView.duplicate();
+                    ipPacket.position(ipPacket.position() + PacketHeader.getSize() + 1); //skip the forwarding index
+                    TrafficClass tc = of(ipPacket);
+                    if (tc != DATA)
+                        return tc;
+                }
+                break;
+        }
+        if (packetView.remaining() > LARGE_PACKET_SIZE)
+            return BULK;
+        return DATA;
+    }
+
+    /**
+     * Gets the traffic class for a packet held in a byte array
+     * @param packetBytes
+     * @return
+     */
+    public static TrafficClass ofPacket(byte[] packetBytes) {
+        if (packetBytes == null)
+            return DATA;
+        return ofPacket(ByteBuffer.wrap(packetBytes));
+    }
+
+    /**
+     * Gets the traffic class for an IP packet based on its DSCP marking
+     * @param ipPacket
+     * @return
+     */
+    private static TrafficClass of(ByteBuffer ipPacket) {
+        if (ipPacket == null)
+            return DATA;
+        switch (NetUtil.getDscpType(NetUtil.getDscpFromIpPacket(ipPacket))) {
+            case Network_Control:
+            case Telephony:
+            case Signaling:
+            case Multimedia_Conferencing:
+            case Real_Time_Interactive:
+                return INTERACTIVE;
+
+            case High_Throughput_Data:
+            case Low_Priority_Data:
+                return BULK;
+
+            default:
+                return DATA;
+        }
+    }
+}
@@ -9,11 +9,14 @@ import java.nio.ByteBuffer;
  */
 public class VpnPacket extends AbstractPacket {
     private byte[] data;
+    private ByteBuffer payload; //view of the received data when parsed from a buffer
     private VpnForwardValue forwardValue;
+    private boolean compressed = false;
 
     public VpnPacket(PacketHeader packetHeader) {
         super(packetHeader);
         data = null;
+        payload = null;
         forwardValue = null;
     }
 
@@ -23,37 +26,66 @@ public class VpnPacket extends AbstractPacket {
      */
     public boolean isForwarded() { return forwardValue != null; }
 
+    /**
+     * Are the IP headers in this packet's data compressed (see HeaderCompressor)
+     * @return true == data needs to go through a HeaderDecompressor
+     */
+    public boolean isCompressed() { return compressed; }
+
+    /**
+     * Marks the data as header compressed; compressed packets are never forwarded
+     * @param compressed
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+        if (compressed)
+            forwardValue = null;
+    }
+
     @Override
     public void parse(byte[] bytes) {
         if (bytes == null)
             return;
-        ByteBuffer in = ByteBuffer.wrap(bytes);
-        forwardValue = new VpnForwardValue(in.get());
+        parse(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public void parse(ByteBuffer in) {
+        if ((in == null) || !in.hasRemaining())
+            return;
+        final byte forwardIndex = in.get();
+        compressed = forwardIndex == VpnForwardValue.COMPRESSED;
+        forwardValue = new VpnForwardValue(forwardIndex);
         if (!forwardValue.isForwarded())
             forwardValue = null;
-        if (in.remaining() > 0) {
-            data = new byte[in.remaining()];
-            in.get(data);
-        }
+        data = null;
+        if (in.remaining() > 0)
+            payload = in.slice();
+        else
+            payload = null;
     }
 
     @Override
-    public byte[] toByteArray() {
-        byte[] superBytes = super.toByteArray();
-        int len;
-        if (data == null)
-            len = 1;
-        else
-            len = data.length + 1;
-        ByteBuffer out = ByteBuffer.allocate(superBytes.length + len);
-        out.put(superBytes);
-        if ((forwardValue == null) || !forwardValue.isForwarded())
+    protected int getPayloadSize() {
+        if (data != null)
+            return 1 + data.length;
+        if (payload != null)
+            return 1 + payload.remaining();
+        return 1;
+    }
+
+    @Override
+    protected void writePayload(ByteBuffer out) {
+        if (compressed)
+            out.put(VpnForwardValue.COMPRESSED);
+        else if ((forwardValue == null) || !forwardValue.isForwarded())
             out.put(VpnForwardValue.NOT_FORWARDED);
         else
             out.put(forwardValue.getForwardIndex());
-        if (len > 0)
+        if (data != null)
             out.put(data);
-        return out.array();
+        else if (payload != null)
+            out.put(payload.duplicate());
     }
 
     @Override
@@ -67,8 +99,30 @@ public class VpnPacket extends AbstractPacket {
         return PacketHeader.calcChecksum(null); // checksum cals for VPN packets are not calculated as this is usually handled within the packet traffic itself (like in an HTTP header) and would cost additional processor time
     }
 
-    public byte[] getData() { return data; }
-    public void setData(byte[] data) { this.data = data; }
+    public byte[] getData() {
+        if ((data == null) && (payload != null)) {
+            data = PacketBufferPool.toBytes(payload);
+            payload = null;
+        }
+        return data;
+    }
+
+    /**
+     * Gets the data without copying it out of the buffer it was received in
+     * @return a read-only view of the data (or null if none)
+     */
+    public ByteBuffer getDataBuffer() {
+        if (data != null)
+            return ByteBuffer.wrap(data).asReadOnlyBuffer();
+        if (payload != null)
+            return payload.asReadOnlyBuffer();
+        return null;
+    }
+
+    public void setData(byte[] data) {
+        this.data = data;
+        payload = null;
+    }
 
     @Override
     public boolean isAdminPacket() { return false; }
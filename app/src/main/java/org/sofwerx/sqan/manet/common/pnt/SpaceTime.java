@@ -133,12 +133,20 @@ public class SpaceTime {
 
     public byte[] toByteArray() {
         ByteBuffer out = ByteBuffer.allocate(SIZE_IN_BYTES);
+        writeTo(out);
+        return out.array();
+    }
+
+    /**
+     * Writes this SpaceTime into the buffer at its current position
+     * @param out
+     */
+    public void writeTo(ByteBuffer out) {
         out.putDouble(latitude);
         out.putDouble(longitude);
         out.putDouble(altitude);
         out.putFloat(accuracy);
         out.putLong(time);
-        return out.array();
     }
 
     /**
@@ -155,7 +163,18 @@ public class SpaceTime {
             Log.e(Config.TAG,"Unable to processPacketAndNotifyManet SpaceTime as "+SIZE_IN_BYTES+"b expected");
             return;
         }
-        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        parse(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Reads this SpaceTime from the buffer at its current position
+     * @param buf
+     */
+    public void parse(ByteBuffer buf) {
+        if ((buf == null) || (buf.remaining() < SIZE_IN_BYTES)) {
+            Log.e(Config.TAG,"Unable to processPacketAndNotifyManet SpaceTime as "+SIZE_IN_BYTES+"b expected");
+            return;
+        }
         latitude = buf.getDouble();
         longitude = buf.getDouble();
         altitude = buf.getDouble();
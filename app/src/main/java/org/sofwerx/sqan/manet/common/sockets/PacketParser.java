@@ -8,9 +8,14 @@ import org.sofwerx.sqan.manet.common.AbstractManet;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.common.packet.HeartbeatPacket;
+import org.sofwerx.sqan.util.BinaryLog;
 import org.sofwerx.sqan.util.CommsLog;
 
+import java.nio.ByteBuffer;
+
 public class PacketParser {
+    private final static BinaryLog.Template LOG_HEARTBEAT = CommsLog.template(CommsLog.Entry.Category.COMMS,BinaryLog.Level.DEBUG,"Processed Heartbeat from {}, {} hops");
+    private final static BinaryLog.Template LOG_INVALID_HEARTBEAT = CommsLog.template(CommsLog.Entry.Category.COMMS,BinaryLog.Level.INFO,"Invalid heartbeat received from {}");
     private final AbstractManet manet;
 
     public PacketParser(AbstractManet manet) {
@@ -26,9 +31,9 @@ public class PacketParser {
         SqAnDevice device = SqAnDevice.findByUUID(packet.getOrigin());
         if (packet instanceof HeartbeatPacket) {
             if (packet.isValid())
-                CommsLog.log(CommsLog.Entry.Category.COMMS, "Processed Heartbeat from " + ((device != null) ? (device.getCallsign() + " (" + device.getUUID() + ")") : packet.getOrigin()) + ", " + packet.getCurrentHopCount() + " hops");
+                CommsLog.log(LOG_HEARTBEAT,packet.getOrigin(),packet.getCurrentHopCount());
             else {
-                CommsLog.log(CommsLog.Entry.Category.COMMS, "Invalid heartbeat received");
+                CommsLog.log(LOG_INVALID_HEARTBEAT,packet.getOrigin());
                 return null;
             }
         } else
@@ -73,6 +78,27 @@ public class PacketParser {
         return processPacketAndNotifyManet(packet);
     }
 
+    /**
+     * Processes a packet held in a buffer without first copying it into a byte array. The
+     * resulting packet may view the buffer, so the buffer should not be reused afterwards.
+     * @param buf the packet (position to limit)
+     * @return
+     */
+    public SqAnDevice processPacketAndNotifyManet(ByteBuffer buf) {
+        if (buf == null) {
+            Log.e(Config.TAG, "PacketParser.processPacketAndNotifyManet(null) ignored");
+            return null;
+        }
+        final int size = buf.remaining();
+        AbstractPacket packet = AbstractPacket.newFromBuffer(buf);
+        if (packet != null) {
+            SqAnDevice device = SqAnDevice.findByUUID(packet.getOrigin());
+            if (device != null)
+                device.addToDataTally(size);
+        }
+        return processPacketAndNotifyManet(packet);
+    }
+
     public byte[] toBytes(AbstractPacket packet) {
         if (packet == null)
             return null;
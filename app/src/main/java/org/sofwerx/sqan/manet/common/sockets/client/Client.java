@@ -23,11 +23,10 @@ import java.nio.channels.SocketChannel;
 public class Client extends Thread {
     private final static String TAG = Config.TAG+".Client";
     //private final static String DEFAULT_LINK_NAME = "TCP/IP datalink";
-    private DownlinkThread downlinkThread;
+    private ClientLink link;
     private SocketChannelConfig config;
-    private SocketChannel uplink;
-    private SocketChannel downlink;
-    private SocketTransceiver datalink = null;
+    private volatile SocketChannel uplink;
+    private volatile SocketTransceiver datalink = null;
     private static Handler handler;
     private static Looper looper;
     private long linkStartTime = Long.MIN_VALUE;
@@ -65,35 +64,10 @@ public class Client extends Thread {
             handler = new Handler(looper);
             CommsLog.log(CommsLog.Entry.Category.STATUS,"Starting as Client...");
             buildSocket();
-            downlinkThread = new DownlinkThread();
-            downlinkThread.start();
             looper.loop();
         }
     }
 
-    private class DownlinkThread extends Thread {
-        private boolean keepRunning = true;
-
-        public void stopLink() {
-            keepRunning = false;
-        }
-
-        @Override
-        public void run() {
-            while (keepRunning) {
-                try {
-                    if ((datalink != null) && (uplink != null) && (downlink != null))
-                        datalink.read(uplink, downlink);
-                } catch (Exception e) {
-                    if (keepRunning) {
-                        Log.e(TAG, "Client.DownlinkThread.run error: " + e.getMessage());
-                        restartClient();
-                    }
-                }
-            }
-        }
-    }
-
     public boolean isReady() {
         if (datalink == null)
             return false;
@@ -104,26 +78,32 @@ public class Client extends Thread {
         return burst(packet,false);
     }
 
+    /**
+     * Is the Client's outbound queue backed up
+     * @return
+     */
+    public boolean isCongested() {
+        SocketTransceiver current = datalink;
+        return (current != null) && current.isCongested();
+    }
+
+    /**
+     * Queues the packet to be sent to the Server; this does not wait on the socket
+     * @param packet
+     * @param tryEvenIfLinkInErrorState
+     * @return true == the packet was queued
+     */
     public boolean burst(final AbstractPacket packet, boolean tryEvenIfLinkInErrorState) {
         Log.d(TAG,"burst");
-        if (!isAlive())
+        if (!isAlive() || (packet == null))
             return false;
-        if ((handler != null) && (packet != null)) {
+        final SocketChannel channel = uplink;
+        final SocketTransceiver current = datalink;
+        if ((channel != null) && channel.isConnected() && (current != null))
+            return current.queue(packet,listener);
+        if (handler != null) {
             handler.post(() -> {
-                if ((uplink != null) && uplink.isConnected()) {
-                    if (datalink != null) {
-                        try {
-                            datalink.queue(packet, uplink,listener);
-                        } catch (Exception e) {
-                            Log.e(TAG, e.getMessage());
-                            buildSocket(); //reset the connection
-                        }
-                    } else {
-                        if ((uplink == null) || (datalink == null) || !uplink.isConnected())
-                            buildSocket(); //reset the connection
-                        Log.d(TAG, "Not sending burst; datalink is null");
-                    }
-                } else {
+                if ((uplink == null) || !uplink.isConnected()) {
                     if (System.currentTimeMillis() > linkStartTime + TIME_TO_WAIT_FOR_LINK_TO_INITIATE) {
                         Log.d(TAG, "Tried to send a burst over an unprepared uplink - trying to build the sockets again");
                         terminateLink(false);
@@ -131,10 +111,13 @@ public class Client extends Thread {
                         buildSocket();
                     } else
                         Log.d(TAG, "Tried to send a burst, but the link is still initializing");
+                } else if (datalink == null) {
+                    Log.d(TAG, "Not sending burst; datalink is null");
+                    buildSocket(); //reset the connection
                 }
             });
         }
-        return true;
+        return false;
     }
 
     private void buildSocket() {
@@ -157,7 +140,11 @@ public class Client extends Thread {
             uplink = null;
             try {
                 uplink = SocketChannel.open(address);
-                downlink = uplink;
+                if ((link == null) || !link.isAlive()) {
+                    link = new ClientLink(() -> restartClient());
+                    link.start();
+                }
+                link.attach(uplink,datalink);
                 CommsLog.log(CommsLog.Entry.Category.STATUS,"Operating as a Client");
             } catch (IOException e) {
                 CommsLog.log(CommsLog.Entry.Category.PROBLEM,"Error initiating uplink: "+e.getMessage());
@@ -214,7 +201,7 @@ public class Client extends Thread {
         if (datalink != null) {
             try {
                 DisconnectingPacket packet = new DisconnectingPacket(Config.getThisDevice().getUUID());
-                datalink.queue(packet, uplink, listener);
+                datalink.queue(packet, listener);
             } catch (Exception ignore) {
             }
         }
@@ -225,9 +212,9 @@ public class Client extends Thread {
         Log.d(TAG,"terminating socket link");
         if (sendHangup)
             sendHangup();
-        if (downlinkThread != null) {
-            downlinkThread.stopLink();
-            downlinkThread = null;
+        if (link != null) {
+            link.stopLink(); //gives the hangup a chance to be written
+            link = null;
         }
         try {
             if (uplink!=null)
@@ -236,13 +223,6 @@ public class Client extends Thread {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        try {
-            if (downlink!=null)
-                downlink.close();
-            downlink = null;
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
         if (datalink != null) {
             datalink.closeAll();
             datalink = null;
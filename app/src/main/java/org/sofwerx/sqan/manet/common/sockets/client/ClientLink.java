@@ -0,0 +1,153 @@
+package org.sofwerx.sqan.manet.common.sockets.client;
+
+import org.sofwerx.notdroid.util.Log;
+
+import org.sofwerx.sqan.Config;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The thread that does all of the Client's socket I/O. The socket is non-blocking and a selector
+ * tells the link when the socket can be read or, while there is a backlog, written to; queuing a
+ * packet wakes the selector so the packet is written straight away if the socket has room.
+ */
+class ClientLink extends Thread {
+    private final static String TAG = Config.TAG+".ClientLink";
+    private final static long SELECT_TIMEOUT = 1000l;
+    private final static long TIME_TO_LINGER = 250l; //time allowed to write out anything left (like a hangup) when stopping
+    private final Selector selector;
+    private final Runnable onFailure;
+    private volatile SocketChannel channel;
+    private volatile SocketTransceiver datalink;
+    private volatile boolean keepRunning = true;
+    private SocketChannel registered;
+    private SocketTransceiver registeredDatalink;
+    private SelectionKey key;
+
+    /**
+     * @param onFailure called (from this thread) if the connection fails
+     * @throws IOException if a selector could not be opened
+     */
+    ClientLink(Runnable onFailure) throws IOException {
+        super("SocketClientLink");
+        this.onFailure = onFailure;
+        selector = Selector.open();
+    }
+
+    /**
+     * Starts handling I/O for this connection
+     * @param channel a connected channel
+     * @param datalink
+     */
+    void attach(SocketChannel channel, SocketTransceiver datalink) {
+        this.channel = channel;
+        this.datalink = datalink;
+        selector.wakeup();
+    }
+
+    /**
+     * Stops the link, first giving it a moment to write out anything still queued
+     */
+    void stopLink() {
+        keepRunning = false;
+        selector.wakeup();
+        if (Thread.currentThread() != this) {
+            try {
+                join(TIME_TO_LINGER);
+            } catch (InterruptedException ignore) {
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (keepRunning) {
+            try {
+                if (!updateRegistration()) {
+                    selector.select(SELECT_TIMEOUT);
+                    selector.selectedKeys().clear();
+                    continue;
+                }
+                final boolean selected = selector.select(SELECT_TIMEOUT) > 0;
+                if (!keepRunning)
+                    break;
+                if (selected && key.isValid() && key.isReadable())
+                    registeredDatalink.read(registered);
+                selector.selectedKeys().clear();
+                boolean clear = true;
+                if (registeredDatalink.hasQueuedOutput())
+                    clear = registeredDatalink.flush(registered);
+                key.interestOps(clear?SelectionKey.OP_READ:(SelectionKey.OP_READ | SelectionKey.OP_WRITE));
+            } catch (Exception e) {
+                if (keepRunning) {
+                    Log.e(TAG, "Client link error: " + e.getMessage());
+                    final SocketChannel failed = registered;
+                    drop();
+                    if (channel == failed)
+                        channel = null; //wait for a new connection to be attached
+                    if (onFailure != null)
+                        onFailure.run();
+                }
+            }
+        }
+        linger();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.e(TAG,"selector.close() error: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Registers the current channel if it has changed
+     * @return true == there is a channel to handle
+     */
+    private boolean updateRegistration() throws IOException {
+        final SocketChannel current = channel;
+        final SocketTransceiver currentDatalink = datalink;
+        if ((current != registered) || (currentDatalink != registeredDatalink)) {
+            drop();
+            if ((current != null) && (currentDatalink != null) && current.isOpen()) {
+                current.configureBlocking(false);
+                currentDatalink.reset();
+                currentDatalink.setSelector(selector);
+                key = current.register(selector,SelectionKey.OP_READ);
+                registered = current;
+                registeredDatalink = currentDatalink;
+            }
+        }
+        return key != null;
+    }
+
+    /**
+     * Stops handling the current channel (until a new one is attached)
+     */
+    private void drop() {
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (registeredDatalink != null)
+            registeredDatalink.setSelector(null);
+        registered = null;
+        registeredDatalink = null;
+    }
+
+    /**
+     * Makes a last non-blocking attempt to write out anything still queued
+     */
+    private void linger() {
+        if ((registered == null) || (registeredDatalink == null) || !registered.isOpen())
+            return;
+        final long giveUpAt = System.currentTimeMillis() + TIME_TO_LINGER;
+        try {
+            while (!registeredDatalink.flush(registered) && (System.currentTimeMillis() < giveUpAt)) {
+                Thread.sleep(5l);
+            }
+        } catch (IOException | InterruptedException ignore) {
+        }
+    }
+}
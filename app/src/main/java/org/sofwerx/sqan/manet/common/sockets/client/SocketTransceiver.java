@@ -1,156 +1,306 @@
 package org.sofwerx.sqan.manet.common.sockets.client;
 
-import android.util.Log;
+import org.sofwerx.notdroid.util.Log;
 
 import org.sofwerx.sqan.Config;
-import org.sofwerx.sqan.ManetOps;
 import org.sofwerx.sqan.listeners.ManetListener;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.common.sockets.Challenge;
 import org.sofwerx.sqan.manet.common.sockets.PacketParser;
 import org.sofwerx.sqan.manet.common.sockets.SocketChannelConfig;
+import org.sofwerx.sqan.util.Metrics;
+import org.sofwerx.sqan.util.TransmittedTally;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
-import java.security.NoSuchAlgorithmException;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.ShortBufferException;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Frames packets to and from the Server. Any thread can queue packets; the queued frames are
+ * written by the ClientLink thread when the socket is ready for them, so a sender never waits on
+ * the socket. Incoming data is read in bulk into a reusable buffer and split into frames there.
+ */
 public class SocketTransceiver {
+    private final static String TAG = Config.TAG+".SocketTxcvr";
     private final static int MAX_PACKET_SIZE = 256000;
-    private ByteBuffer inputBuffer;
+    private final static int READ_BUFFER_SIZE = 1024 * 64;
+    private final static int MAX_QUEUED_FRAMES = 256;
+    private final static long MAX_QUEUED_BYTES = 1024l * 512l; //frames beyond this are refused
+    private final static long CONGESTED_BYTES = 1024l * 64l; //backlog at which the link reports congestion
+    private final static int MAX_FRAMES_PER_WRITE = 32;
+    private final static Metrics.Counter linkBytesWritten = Metrics.counter("sqan_link_written_bytes_total","Bytes written into the link","link","WiFi client");
+    private final static Metrics.Counter refused = Metrics.counter("sqan_socket_refused_frames_total","Frames refused because the socket's outbound queue was full");
     private final SocketChannelConfig config;
-    private ClientState state;
-    private static final int MAX_QUEUE_SLOTS = 10;
-    //private SocketChannel socket;
+    private volatile ClientState state;
     private final PacketParser parser;
+    private final ConcurrentLinkedQueue<Frame> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedFrames = new AtomicInteger(0);
+    private final AtomicLong queuedBytes = new AtomicLong(0l);
+    private final AtomicLong refusedFrames = new AtomicLong(0l);
+    private volatile Selector selector;
+
+    //only used by the ClientLink thread
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Frame[] writeFrames = new Frame[MAX_FRAMES_PER_WRITE];
+    private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_FRAMES_PER_WRITE];
+    private int writeCount = 0;
+
     private enum ClientState {
         READING_BODY, READING_CHALLENGE
     }
 
+    private static class Frame {
+        private final ByteBuffer data;
+        private final AbstractPacket packet;
+        private final ManetListener listener;
+
+        private Frame(ByteBuffer data, AbstractPacket packet, ManetListener listener) {
+            this.data = data;
+            this.packet = packet;
+            this.listener = listener;
+        }
+    }
+
     protected SocketTransceiver(SocketChannelConfig config, PacketParser parser) {
         this.state = ClientState.READING_CHALLENGE;
         this.config = config;
         this.parser = parser;
-        this.inputBuffer = ByteBuffer.allocate(Challenge.CHALLENGE_LENGTH);
     }
 
-    private void immediateOutput(ByteBuffer data, final WritableByteChannel channel) throws IOException {
-        while (true) {
-            while (data.hasRemaining() && channel.write(data) > 0) {}
-            if (!data.hasRemaining()) {
-                Log.d(Config.TAG,"Socket output complete");
-                return;
-            }
-            try {
-                Thread.sleep(100l);
-            } catch (Throwable ignore) {
-            }
+    /**
+     * Sets the selector to wake up when there is something new to write
+     * @param selector
+     */
+    void setSelector(Selector selector) { this.selector = selector; }
+
+    /**
+     * Readies this transceiver for a new connection; anything left from the old connection is dropped
+     */
+    void reset() {
+        state = ClientState.READING_CHALLENGE;
+        readBuffer.clear();
+        for (int i=0;i<writeCount;i++) {
+            queuedBytes.addAndGet(-writeBatch[i].remaining());
+            queuedFrames.decrementAndGet();
+            writeFrames[i] = null;
+            writeBatch[i] = null;
         }
+        writeCount = 0;
+        dropQueued();
     }
 
     public void closeAll() {
-        /*try {
-            if (socket != null)
-                socket.close();
-        } catch (IOException ignore) {
-        }*/
+        dropQueued();
+    }
+
+    /**
+     * Drops everything in the outbound queue. Frames are taken out one at a time and the counts
+     * reduced for each, as a sender may be queuing at the same moment; clearing the queue and
+     * zeroing the counts could wipe out a frame's count but not the frame (or the reverse) and
+     * leave the selector never woken for new output.
+     */
+    private void dropQueued() {
+        Frame frame;
+        while ((frame = outbound.poll()) != null) {
+            queuedBytes.addAndGet(-frame.data.remaining());
+            queuedFrames.decrementAndGet();
+        }
     }
 
     public boolean isReadyToWrite() {
         return state != ClientState.READING_CHALLENGE;
     }
 
-    public int queue(AbstractPacket packet, WritableByteChannel channel, ManetListener listener) throws IOException {
-        if (isReadyToWrite()) {
-            byte[] data = parser.toBytes(packet);
-            if (data != null) {
-                Log.d(Config.TAG,"queuing "+data.length+"b message");
-                ByteBuffer out = ByteBuffer.allocate(4 + data.length);
-                out.putInt(data.length);
-                out.put(data);
-                out.flip();
-                ManetOps.addBytesToTransmittedTally(data.length);
-                immediateOutput(out, channel);
-                if (listener != null)
-                    listener.onTx(packet);
-            }
-        } else
-            Log.d(Config.TAG,"Packet sent for queuing but socket connection is not ready to write");
-
-        return MAX_QUEUE_SLOTS;
+    /**
+     * Is the backlog of frames waiting on the socket large enough that senders should hold off
+     * @return
+     */
+    public boolean isCongested() {
+        return (queuedBytes.get() >= CONGESTED_BYTES) || (queuedFrames.get() >= MAX_QUEUED_FRAMES);
     }
 
-    public void read(ReadableByteChannel channel, WritableByteChannel output) throws IOException, NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, ShortBufferException {
-        boolean keepGoing = true;
-        boolean firstTime = true;
-        while (keepGoing) {
-            if (state == ClientState.READING_CHALLENGE) {
-                keepGoing = readChallenge(firstTime, channel, output);
-                Log.d(Config.TAG,"SocketTransceiver.readChallenge complete, keepGoing "+keepGoing);
-            } else
-                keepGoing = parseMessage(channel);
-            firstTime = false;
+    /**
+     * Gets the number of bytes queued but not yet written to the socket
+     * @return
+     */
+    public long getQueuedBytes() { return queuedBytes.get(); }
+
+    /**
+     * Gets the number of frames refused because the queue was full
+     * @return
+     */
+    public long getRefusedFrames() { return refusedFrames.get(); }
+
+    /**
+     * Queues a packet to be sent; this never waits on the socket
+     * @param packet
+     * @param listener notified once the packet has been written to the socket
+     * @return true == the packet was queued; false == the link is not ready or is too backed up
+     */
+    public boolean queue(AbstractPacket packet, ManetListener listener) {
+        if (!isReadyToWrite()) {
+            Log.d(TAG,"Packet sent for queuing but socket connection is not ready to write");
+            return false;
         }
+        byte[] data = parser.toBytes(packet);
+        if (data == null)
+            return false;
+        return queueFrame(data,packet,listener);
     }
 
-    private boolean parseMessage(ReadableByteChannel channel) throws IOException {
-        if ((channel == null) || !channel.isOpen()) //channel is now closed
+    /**
+     * Frames the data and adds it to the outbound queue
+     * @param data
+     * @param packet the packet the data came from (if any)
+     * @param listener
+     * @return true == queued
+     */
+    boolean queueFrame(byte[] data, AbstractPacket packet, ManetListener listener) {
+        final int frameSize = 4 + data.length;
+        if ((queuedFrames.get() >= MAX_QUEUED_FRAMES) || (queuedBytes.get() + frameSize > MAX_QUEUED_BYTES)) {
+            refusedFrames.incrementAndGet();
+            refused.inc();
+            Log.d(TAG,"Outbound queue full; "+data.length+"b message refused");
             return false;
-        ByteBuffer preambleBuffer = ByteBuffer.allocate(4);
-        while (preambleBuffer.hasRemaining() && (channel.read(preambleBuffer) > 0)) {}
+        }
+        ByteBuffer out = ByteBuffer.allocate(frameSize);
+        out.putInt(data.length);
+        out.put(data);
+        out.flip();
+        queuedBytes.addAndGet(frameSize);
+        outbound.add(new Frame(out,packet,listener));
+        if (queuedFrames.getAndIncrement() == 0) {
+            Selector wake = selector;
+            if (wake != null)
+                wake.wakeup();
+        }
+        return true;
+    }
 
-        if (preambleBuffer.position() == 0)
-            return false; //nothing to read
-        preambleBuffer.rewind();
-        int size = preambleBuffer.getInt();
+    /**
+     * Is there anything waiting to be written
+     * @return
+     */
+    boolean hasQueuedOutput() { return queuedFrames.get() > 0; }
+
+    /**
+     * Writes as much of the queued output as the socket will currently take, several frames at a
+     * time (ClientLink thread only)
+     * @param channel
+     * @return true == everything queued has been written
+     * @throws IOException
+     */
+    boolean flush(GatheringByteChannel channel) throws IOException {
+        while (true) {
+            Frame frame;
+            while ((writeCount < MAX_FRAMES_PER_WRITE) && ((frame = outbound.poll()) != null)) {
+                writeFrames[writeCount] = frame;
+                writeBatch[writeCount] = frame.data;
+                writeCount++;
+            }
+            if (writeCount == 0)
+                return true;
+            final long written = channel.write(writeBatch,0,writeCount);
+            if (written > 0l) {
+                queuedBytes.addAndGet(-written);
+                linkBytesWritten.add(written);
+                TransmittedTally.add((int)written);
+            }
+            int done = 0;
+            while ((done < writeCount) && !writeBatch[done].hasRemaining()) {
+                Frame sent = writeFrames[done];
+                if (sent.listener != null)
+                    sent.listener.onTx(sent.packet);
+                done++;
+            }
+            if (done > 0) {
+                queuedFrames.addAndGet(-done);
+                System.arraycopy(writeFrames,done,writeFrames,0,writeCount - done);
+                System.arraycopy(writeBatch,done,writeBatch,0,writeCount - done);
+                for (int i=writeCount-done;i<writeCount;i++) {
+                    writeFrames[i] = null;
+                    writeBatch[i] = null;
+                }
+                writeCount -= done;
+            }
+            if (writeCount > 0)
+                return false; //the socket is full; wait until it is writable again
+        }
+    }
+
+    /**
+     * Reads whatever is available and processes any complete messages (ClientLink thread only)
+     * @param channel
+     * @throws IOException if the connection has closed or the data is invalid
+     */
+    void read(ReadableByteChannel channel) throws IOException {
+        if (channel.read(readBuffer) < 0)
+            throw new EOFException("Server closed the connection");
+        readBuffer.flip();
+        try {
+            if (state == ClientState.READING_CHALLENGE)
+                readChallenge();
+            while ((state == ClientState.READING_BODY) && parseMessage()) {}
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    /**
+     * Processes the next message in the read buffer
+     * @return true == a message was processed; false == the rest of the message has not arrived yet
+     * @throws IOException
+     */
+    private boolean parseMessage() throws IOException {
+        if (readBuffer.remaining() < 4)
+            return false;
+        final int size = readBuffer.getInt(readBuffer.position());
         if (size < 0)
             throw new IOException("SocketTransceiver unable to processPacketAndNotifyManet a message with a negative size");
         else if (size > MAX_PACKET_SIZE)
             throw new IOException("SocketTransceiver unable to processPacketAndNotifyManet a "+size+"b message, this must be an error");
-        else
-            Log.d(Config.TAG,"SocketTransceiver received "+size+"b message");
-        ByteBuffer data = ByteBuffer.allocate(size);
-        while (data.hasRemaining() && (channel.read(data) > 0)) {}
-        byte[] payload = data.array();
-        parser.processPacketAndNotifyManet(payload);
-        return false;
-    }
-
-    private boolean readChallenge(boolean firstTime, ReadableByteChannel channel, WritableByteChannel output) throws IOException, NoSuchAlgorithmException {
-        Log.d(Config.TAG,"SocketTransceiver reading challenge");
-        boolean success = false;
-        try {
-            while ((inputBuffer != null ) && inputBuffer.hasRemaining() && (channel.read(inputBuffer) > 0)) {
-                firstTime = false;
+        if (readBuffer.remaining() < 4 + size) {
+            if (4 + size > readBuffer.capacity()) {
+                //grow the buffer (compacted by the caller) to fit this message
+                ByteBuffer larger = ByteBuffer.allocate(4 + size);
+                larger.put(readBuffer);
+                larger.flip();
+                readBuffer = larger;
             }
-        } catch (NullPointerException e) {
-        }
-        if (inputBuffer.hasRemaining())
             return false;
+        }
+        Log.d(TAG,"SocketTransceiver received "+size+"b message");
+        readBuffer.position(readBuffer.position() + 4);
+        //the packet keeps its bytes, so they are copied out of the reusable buffer
+        byte[] payload = new byte[size];
+        readBuffer.get(payload);
+        if (parser != null)
+            parser.processPacketAndNotifyManet(ByteBuffer.wrap(payload));
+        return true;
+    }
 
-        inputBuffer.flip();
-
+    private void readChallenge() throws IOException {
+        if (readBuffer.remaining() < Challenge.CHALLENGE_LENGTH)
+            return;
+        Log.d(TAG,"SocketTransceiver reading challenge");
+        byte[] challenge = new byte[Challenge.CHALLENGE_LENGTH];
+        readBuffer.get(challenge);
         if (config != null) {
-            try {
-                byte[] responseArray = Challenge.getResponse(null,null);
-                ByteBuffer response = ByteBuffer.allocate(responseArray.length);
-                response.put(responseArray);
-                response.flip();
-                Log.d(Config.TAG,"Writing challenge response");
-                immediateOutput(response, output);
-                state = ClientState.READING_BODY;
-                if (parser != null)
-                    parser.getManet().onAuthenticatedOnNet();
-            } catch (UnsupportedEncodingException ignore) {
-            }
+            byte[] responseArray = Challenge.getResponse(null,challenge);
+            Log.d(TAG,"Writing challenge response");
+            //nothing else can be queued before the challenge is answered, so the response goes out first
+            queuedBytes.addAndGet(responseArray.length);
+            outbound.add(new Frame(ByteBuffer.wrap(responseArray),null,null));
+            queuedFrames.incrementAndGet();
+            state = ClientState.READING_BODY;
+            if ((parser != null) && (parser.getManet() != null))
+                parser.getManet().onAuthenticatedOnNet();
         }
-        inputBuffer.position(0);
-        return success;
     }
 }
@@ -1,14 +1,20 @@
 package org.sofwerx.sqan.manet.common.sockets.server;
 
-import android.util.Log;
+import org.sofwerx.notdroid.util.Log;
 
 import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.manet.common.LinkState;
+import org.sofwerx.sqan.manet.common.RouteCache;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.TxScheduler;
+import org.sofwerx.sqan.manet.common.packet.DedupCache;
 import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.packet.TrafficClass;
 import org.sofwerx.sqan.util.AddressUtil;
 import org.sofwerx.sqan.manet.common.sockets.Challenge;
 import org.sofwerx.sqan.manet.common.sockets.PacketParser;
 import org.sofwerx.sqan.util.CommsLog;
+import org.sofwerx.sqan.util.Metrics;
 import org.sofwerx.sqan.util.StringUtil;
 
 import java.io.IOException;
@@ -16,15 +22,18 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ClientHandler {
     private final static String TAG = Config.TAG+".ClntHndlr";
@@ -32,18 +41,28 @@ public class ClientHandler {
     private final static long BLACKLIST_DURATION = 1000l * 60l * 5l;
     public static final Map<InetAddress, Long> BLACKLIST_MAP = new HashMap<>();
     private static final Map<Integer, ClientHandler> HANDLER_MAP = new ConcurrentHashMap<>();
+    private static final Map<Integer, ClientHandler> UUID_MAP = new ConcurrentHashMap<>(); //directly connected clients by the SqAN UUID they originate packets from
+    private static final DedupCache relayDedup = new DedupCache(); //packets that have already been forwarded to the other clients
     private static final AtomicInteger ID = new AtomicInteger(0);
     private static final long RESPONSE_TIMEOUT = 1000L * 5L;
     private static final int SINGLE_READ_MAX_PACKETS = 10;
-    public static final Map<Integer, Long> START_TIME_MAP = new HashMap<>();
+    private static final int MAX_FRAMES_PER_WRITE = 32; //max frames handed to the socket in one gathering write
+    private static final int MAX_QUEUED_PER_CONNECTION = 100;
+    private static final int CONGESTED_QUEUE_SIZE = MAX_QUEUED_PER_CONNECTION / 2; //backlog at which the server reports congestion
     private static ServerStatusListener listener;
-    private SqAnDevice clientDevice = null;
-    private static final Object writeThreadLock = new Object();
+    private volatile SqAnDevice clientDevice = null;
+    private static final long RATE_WINDOW = 1000l * 5l;
+    private static final AtomicLong forwardsAvoided = new AtomicLong(0l);
+    private static final Metrics.Counter linkBytesWritten = Metrics.counter("sqan_link_written_bytes_total","Bytes written into the link","link","WiFi server");
+    private final static AtomicLong rateWindowStart = new AtomicLong(System.currentTimeMillis());
+    private final static AtomicLong rateWindowAvoided = new AtomicLong(0l); //updated from every IoLoop thread
+    private static volatile float forwardsAvoidedRate = 0f;
+    private int clientUuid = SqAnDevice.UNASSIGNED_UUID;
 
     public static void clear() {
         BLACKLIST_MAP.clear();
         HANDLER_MAP.clear();
-        START_TIME_MAP.clear();
+        UUID_MAP.clear();
         ID.set(0);
     }
 
@@ -51,6 +70,18 @@ public class ClientHandler {
         INACTIVE, READING_PACKET, READING_PREAMBLE, READING_RESPONSE, WRITING_CHALLENGE
     }
 
+    /**
+     * Is any client's outbound queue backed up (about to be pruned)
+     * @return
+     */
+    public static boolean isCongested() {
+        for (ClientHandler handler:HANDLER_MAP.values()) {
+            if (handler.writeQueue.size() >= CONGESTED_QUEUE_SIZE)
+                return true;
+        }
+        return false;
+    }
+
     public static int getActiveConnectionCount() {
         Set<Map.Entry<Integer, ClientHandler>> entries = HANDLER_MAP.entrySet();
         if (entries == null)
@@ -58,37 +89,29 @@ public class ClientHandler {
         return entries.size();
     }
 
-    public static void removeUnresponsiveConnections() {
-        long now = System.currentTimeMillis();
-        Iterator<Map.Entry<Integer, Long>> i = START_TIME_MAP.entrySet().iterator();
-        while (i.hasNext()) {
-            Map.Entry<Integer, Long> entry = i.next();
-            if (now - entry.getValue() > RESPONSE_TIMEOUT) {
-                ClientHandler h = HANDLER_MAP.get(entry.getKey());
-                if (h == null)
-                    Log.w(TAG, "No such handler to kill: " + entry.getKey());
-                else {
-                    String warning = "Killing client #" + entry.getKey() + " (no response)";
-                    Log.w(TAG, warning);
-                    if (listener != null)
-                        listener.onServerError(warning);
-                    h.closeClient();
-                }
-                i.remove();
-            }
-        }
-    }
-
     private ByteBuffer challengeBuffer;
     private final SocketChannel client;
     private final Integer id = ID.incrementAndGet();
     private final byte[] password = null;
     private ByteBuffer sizeBuffer = ByteBuffer.allocate(4); //just used to get the size
     private ByteBuffer readBuffer, writeBuffer;
-    private ReadState readState = ReadState.INACTIVE;
+    private volatile ReadState readState = ReadState.INACTIVE;
     private final PacketParser parser;
-
-    private final BlockingQueue<ByteBuffer> writeQueue = new LinkedBlockingQueue<>();
+    private IoLoop loop;
+    private SelectionKey key;
+    private TimeoutWheel.Timeout responseTimeout;
+
+    //frames from other threads wait here until this client's IoLoop moves them into the writeQueue
+    private final ConcurrentLinkedQueue<ByteBuffer> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Runnable flushTask = () -> {
+        flushScheduled.set(false);
+        readyToWrite();
+        updateInterest();
+    };
+    private final TxScheduler<ByteBuffer> writeQueue = new TxScheduler<>("WiFi client",0);
+    private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_FRAMES_PER_WRITE];
+    private int writeBatchCount = 0;
 
     public ClientHandler(SocketChannel client, PacketParser parser, ServerStatusListener listener) throws IOException, BlacklistException {
         this.parser = parser;
@@ -106,10 +129,50 @@ public class ClientHandler {
         readState = ReadState.WRITING_CHALLENGE;
 
         HANDLER_MAP.put(id, this);
-        START_TIME_MAP.put(id, System.currentTimeMillis());
         CommsLog.log(CommsLog.Entry.Category.CONNECTION,"ClientHandler #"+id+" created");
     }
 
+    SocketChannel getChannel() { return client; }
+
+    /**
+     * Called on the IoLoop thread once this client has been registered with that loop
+     * @param loop
+     * @param key
+     */
+    void onRegistered(IoLoop loop, SelectionKey key) {
+        this.loop = loop;
+        this.key = key;
+        responseTimeout = loop.schedule(() -> {
+            if (!isClosed() && ((readState == ReadState.WRITING_CHALLENGE) || (readState == ReadState.READING_RESPONSE))) {
+                String warning = "Killing client #" + id + " (no response)";
+                Log.w(TAG, warning);
+                if (listener != null)
+                    listener.onServerError(warning);
+                closeClient();
+            }
+        },RESPONSE_TIMEOUT);
+        updateInterest();
+    }
+
+    /**
+     * Sets the events this client's IoLoop waits on; write readiness is only requested while
+     * there is something waiting to be written. Must be called from the IoLoop thread.
+     */
+    void updateInterest() {
+        if ((key == null) || !key.isValid())
+            return;
+        if (isClosed()) {
+            key.cancel();
+            return;
+        }
+        final int ops = hasBacklog()?(SelectionKey.OP_READ | SelectionKey.OP_WRITE):SelectionKey.OP_READ;
+        try {
+            if (key.interestOps() != ops)
+                key.interestOps(ops);
+        } catch (CancelledKeyException ignore) { //the client was closed from another thread
+        }
+    }
+
     public void closeClient() {
         Log.d(TAG,"Closing client #"+id);
         try {
@@ -122,6 +185,8 @@ public class ClientHandler {
         } catch (IOException ignore) {
         }
         HANDLER_MAP.remove(id);
+        if (clientUuid != SqAnDevice.UNASSIGNED_UUID)
+            UUID_MAP.remove(clientUuid,this);
     }
 
     public Integer getId() {
@@ -134,7 +199,7 @@ public class ClientHandler {
             case READING_PACKET:
             case READING_PREAMBLE:
             case READING_RESPONSE:
-                return (writeBuffer != null) || (!writeQueue.isEmpty());
+                return (writeBatchCount > 0) || !writeQueue.isEmpty() || !inbox.isEmpty();
             case WRITING_CHALLENGE:
             default:
                 return true;
@@ -145,11 +210,29 @@ public class ClientHandler {
         return !client.isOpen();
     }
 
-    private void queueReadBuffer() {
-        ByteBuffer out = ByteBuffer.allocate(4 + readBuffer.limit());
-        out.putInt(readBuffer.limit());
-        out.put(readBuffer);
-        out.flip();
+    /**
+     * Queues the packet just read (which is already framed with its length prefix) to the client
+     * that leads to its destination, or to all of the other clients if it is a broadcast or no
+     * route is known. The same backing buffer is shared across all of the queues.
+     * @param destination SqAN UUID of the packet's destination
+     */
+    private void queueReadBuffer(int destination) {
+        readBuffer.position(0);
+        ClientHandler target = findClientFor(destination);
+        if (target != null) {
+            int sent = 0;
+            if (target == this)
+                Log.d(TAG, "#" + id + ": packet for "+destination+" routes back through its sender; not forwarding");
+            else if (target.readState == ReadState.WRITING_CHALLENGE)
+                Log.e(TAG, "#" + id + ": cannot queue incoming packet to #"+ target.id + "; state=" + target.readState);
+            else {
+                Log.d(TAG, "#" + id + ": forwarding readBuffer to #" + target.id);
+                target.enqueue(readBuffer);
+                sent = 1;
+            }
+            onForwardsAvoided(HANDLER_MAP.size() - 1 - sent);
+            return;
+        }
         Log.d(TAG, "#" + id + ": adding readBuffer to the outgoing queue");
         for (ClientHandler h : HANDLER_MAP.values()) {
             boolean send = !h.id.equals(this.id); // don't queue the incoming packet to myself
@@ -158,7 +241,103 @@ public class ClientHandler {
                 send = false;
             }
             if (send)
-                h.writeQueue.add(out.duplicate());
+                h.enqueue(readBuffer);
+        }
+    }
+
+    /**
+     * Finds the directly connected client that packets for this destination should go to
+     * @param destination SqAN UUID
+     * @return the client or null if the packet should go to every client (i.e. a broadcast or
+     * a destination with no known route)
+     */
+    private static ClientHandler findClientFor(int destination) {
+        if (destination == PacketHeader.BROADCAST_ADDRESS)
+            return null;
+        ClientHandler target = UUID_MAP.get(destination);
+        if (target != null)
+            return target;
+        RouteCache.Route route = RouteCache.getRoute(destination);
+        if ((route == null) || !route.isReachable())
+            return null;
+        return UUID_MAP.get(route.getNextHop());
+    }
+
+    /**
+     * Tracks forwards that were not needed because the packet was only sent toward its destination
+     * @param count
+     */
+    private static void onForwardsAvoided(int count) {
+        if (count > 0) {
+            forwardsAvoided.addAndGet(count);
+            rateWindowAvoided.addAndGet(count);
+        }
+        final long now = System.currentTimeMillis();
+        final long start = rateWindowStart.get();
+        final long elapsed = now - start;
+        if ((elapsed >= RATE_WINDOW) && rateWindowStart.compareAndSet(start,now)) {
+            //only the thread that closed the window reports it
+            final long avoided = rateWindowAvoided.getAndSet(0l);
+            forwardsAvoidedRate = ((float)avoided) * 1000f / ((float)elapsed);
+            if (avoided > 0l)
+                Log.d(TAG, String.format(Locale.US,"Destination-aware forwarding avoided %.1f forwards/s", forwardsAvoidedRate));
+        }
+    }
+
+    /**
+     * Gets the total number of forwards to clients that were avoided by sending packets only
+     * toward their destination rather than to every client
+     * @return
+     */
+    public static long getForwardsAvoided() { return forwardsAvoided.get(); }
+
+    /**
+     * Gets the recent rate of forwards avoided
+     * @return forwards avoided per second
+     */
+    public static float getForwardsAvoidedPerSecond() { return forwardsAvoidedRate; }
+
+    /**
+     * Adds a framed packet (length prefix followed by the packet) to the outgoing queue based
+     * on the packet's traffic class
+     * @param framed
+     */
+    private void enqueue(ByteBuffer framed) {
+        if ((loop != null) && loop.isLoopThread())
+            offer(framed.duplicate()); //already on this client's loop, so skip the hand off
+        else
+            inbox.add(framed.duplicate());
+        if ((loop != null) && flushScheduled.compareAndSet(false,true))
+            loop.execute(flushTask);
+    }
+
+    /**
+     * Adds the frame to the writeQueue based on its packet's traffic class. Must be called from
+     * the IoLoop thread.
+     * @param framed
+     */
+    private void offer(ByteBuffer framed) {
+        ByteBuffer packetView = framed.duplicate();
+        packetView.clear();
+        packetView.position(4);
+        TrafficClass trafficClass = TrafficClass.ofPacket(packetView);
+        boolean lossy = (packetView.remaining() >= PacketHeader.getSize()) && PacketHeader.isLossyOk(packetView);
+        writeQueue.offer(framed,framed.capacity(),trafficClass,lossy);
+    }
+
+    /**
+     * Moves frames handed over by other threads into the writeQueue based on each packet's
+     * traffic class, pruning the queue (lossy and lower priority frames first) if it gets too long
+     */
+    private void drainInbox() {
+        ByteBuffer framed;
+        while ((framed = inbox.poll()) != null) {
+            offer(framed);
+        }
+        final int limit = MAX_QUEUED_PER_CONNECTION * Math.max(1,HANDLER_MAP.size());
+        if (writeQueue.size() > limit) {
+            Log.w(TAG, "#" + id + ": Pruning " + (writeQueue.size() - limit)+ " queued messages");
+            writeQueue.trim(limit);
         }
     }
 
@@ -171,9 +350,12 @@ public class ClientHandler {
     public static boolean addToWriteQue(ByteBuffer out, int address) {
         boolean sent = false;
         if (out != null) {
+            final ClientHandler target = findClientFor(address);
             for (ClientHandler h : HANDLER_MAP.values()) {
                 boolean send = true;
-                if (h.clientDevice != null)
+                if (target != null)
+                    send = (h == target);
+                else if (h.clientDevice != null)
                     send = AddressUtil.isApplicableAddress(h.clientDevice.getUUID(),address);
                 if (h.readState == ReadState.WRITING_CHALLENGE) {
                     Log.e(TAG, "#" + h.id + ": Server cannot queue packet to client; state=" + h.readState);
@@ -182,12 +364,7 @@ public class ClientHandler {
                 if (send) {
                     sent = true;
                     Log.d(TAG, "#" + h.id + ": " + out.limit()+"b added to writeQueue for client");
-                    h.writeQueue.add(out.duplicate());
-
-                    //TODO
-                    h.readyToWrite();
-                    //TODO
-                    //TODO call read and write here possibly as a way to speed up the data burst from the server
+                    h.enqueue(out);
                 } else
                     Log.d(TAG, "#" + h.id +": Outgoing packet does not apply to client #");
             }
@@ -195,22 +372,29 @@ public class ClientHandler {
         return sent;
     }
 
-    private boolean readBody(boolean firstTime) {
+    /**
+     * Reads (more of) a packet from the client
+     * @param firstTime true if this is the start of a new packet
+     * @param expectData true if the selector reported data for this client; false when checking
+     *                   for another packet already waiting after one was read
+     * @return true if there may be more to read now
+     */
+    private boolean readBody(boolean firstTime, boolean expectData) {
         try {
             if (firstTime) {
                 sizeBuffer.clear();
                 while (sizeBuffer.hasRemaining() && (client.read(sizeBuffer) > 0)) {}
 
                 if ((sizeBuffer.position() == 0)) {
-                    if (firstTime) {
+                    readState = ReadState.INACTIVE;
+                    if (expectData) {
                         String warning = "#" + id + ": Empty header (closing)";
                         CommsLog.log(CommsLog.Entry.Category.PROBLEM, warning);
                         if (listener != null)
                             listener.onServerError(warning);
                         //TODO closeClient(); ignoring client problems
-                    } else
-                        Log.d(TAG, "#" + id + ": Nothing else to read for this client");
-                    return false;
+                    }
+                    return false; //otherwise nothing else is waiting from this client yet
                 }
 
                 sizeBuffer.rewind();
@@ -231,7 +415,9 @@ public class ClientHandler {
                     closeClient();
                     return false;
                 }
-                readBuffer = ByteBuffer.allocate(totalSize);
+                //keep the length prefix in front of the packet so it can be forwarded without another copy
+                readBuffer = ByteBuffer.allocate(4 + totalSize);
+                readBuffer.putInt(totalSize);
             } else
                 Log.d(TAG, "#" + id + " readyBody(false)");
 
@@ -243,60 +429,76 @@ public class ClientHandler {
             int pos = readBuffer.position();
             while (readBuffer.hasRemaining() && (client.read(readBuffer) > 0)) {}
             if (readBuffer.hasRemaining()) {
-                if (firstTime && (readBuffer.position() == pos)) {
-                    String warning = "#" + id + ": Attempted to read "+readBuffer.capacity()+"b from body but nothing is available (closing)";
-                    CommsLog.log(CommsLog.Entry.Category.PROBLEM, warning);
-                    if (listener != null)
-                        listener.onServerError(warning);
-                    //TODO closeClient(); //ignoring client problems
-                    return false;
+                if (readBuffer.position() == pos) {
+                    if (firstTime && expectData) {
+                        String warning = "#" + id + ": Attempted to read "+readBuffer.capacity()+"b from body but nothing is available (closing)";
+                        CommsLog.log(CommsLog.Entry.Category.PROBLEM, warning);
+                        if (listener != null)
+                            listener.onServerError(warning);
+                        //TODO closeClient(); //ignoring client problems
+                    }
+                    return false; //wait for the rest of the body
                 }
                 return true;
             } else {
                 Log.d(TAG, "#" + id + ": PACKET received ("+readBuffer.position()+"b)");
                 readBuffer.flip();
-
-                byte[] headerBytes = new byte[PacketHeader.getSize()];
-                readBuffer.get(headerBytes);
-                PacketHeader header = PacketHeader.newFromBytes(headerBytes);
-                if (header == null) {
-                    String warning = "#" + id + ": PacketHeader is null";
+                readBuffer.position(4);
+                ByteBuffer packetView = readBuffer.slice();
+                if (packetView.remaining() < PacketHeader.getSize()) {
+                    String warning = "#" + id + ": Packet is too small to contain a PacketHeader";
                     CommsLog.log(CommsLog.Entry.Category.PROBLEM, warning);
                     if (listener != null)
                         listener.onServerError(warning);
-                    //TODO closeClient(); //ignoring failed headers
+                    readBuffer = null;
+                    readState = ReadState.INACTIVE;
                     return false;
                 }
-                //Log.d(TAG, "#" + id + ": HEADER packet type: "+header.getType());
+                //header values are read in place rather than building a PacketHeader
+                final byte type = PacketHeader.getType(packetView);
+                final int hopCount = PacketHeader.getHopCount(packetView);
+                final int destination = PacketHeader.getDestination(packetView);
 
-                if ((parser != null) && AddressUtil.isApplicableAddress(Config.getThisDevice().getUUID(),header.getDestination())) {
+                if ((parser != null) && AddressUtil.isApplicableAddress(Config.getThisDevice().getUUID(),destination)) {
                     //this packet also applies to the server
-                    readBuffer.position(0);
-                    byte[] data = new byte[readBuffer.remaining()];
-                    readBuffer.get(data);
-                    parser.processPacketAndNotifyManet(data);
+                    parser.processPacketAndNotifyManet(packetView.duplicate());
+                }
+                if (hopCount == 0) {
+                    final int origin = PacketHeader.getOriginUUID(packetView);
+                    if (origin != clientUuid) {
+                        if (clientUuid != SqAnDevice.UNASSIGNED_UUID)
+                            UUID_MAP.remove(clientUuid,this);
+                        clientUuid = origin;
+                        UUID_MAP.put(origin,this);
+                    }
                 }
-                if ((clientDevice == null) && header.isDirectFromOrigin()) {
-                    clientDevice = SqAnDevice.findByUUID(header.getOriginUUID()); //assign the device based on the origin
+                if ((clientDevice == null) && (hopCount == 0)) {
+                    clientDevice = SqAnDevice.findByUUID(clientUuid); //assign the device based on the origin
                     if (clientDevice != null)
                         Log.d(TAG,"Client Handler #"+id+" resolved to device "+clientDevice.getLabel());
                 }
-                //Add one hop to the count of message routing then write the new header to the readBuffer
-                readBuffer.position(0);
-                header.incrementHopCount();
-                headerBytes = header.toByteArray();
-                readBuffer.put(headerBytes);
-                readBuffer.position(0);
-                if (header.getType() != PacketHeader.PACKET_TYPE_PING) //don't forward pings
-                    queueReadBuffer();
-                if (header.getType() == PacketHeader.PACKET_TYPE_DISCONNECTING) {
+                //Add one hop to the count of message routing directly in the readBuffer
+                PacketHeader.setHopCount(hopCount+1,packetView);
+                if (type != PacketHeader.PACKET_TYPE_PING) { //don't forward pings
+                    if (destination == Config.getThisDevice().getUUID()) //packets just for the server are not forwarded
+                        onForwardsAvoided(HANDLER_MAP.size() - 1);
+                    else if ((destination == PacketHeader.BROADCAST_ADDRESS) && !LinkState.isRelayNeeded(clientUuid)) {
+                        //checked before the dedup cache so a later copy from a device that needs this one as a relay still goes out
+                        Log.d(TAG, "#" + id + ": broadcast not forwarded since this device is not a multipoint relay for " + clientUuid);
+                        onForwardsAvoided(HANDLER_MAP.size() - 1);
+                    } else if (relayDedup.isDuplicate(packetView))
+                        Log.d(TAG, "#" + id + ": packet has already been relayed; not forwarding");
+                    else
+                        queueReadBuffer(destination);
+                }
+                if (type == PacketHeader.PACKET_TYPE_DISCONNECTING) {
                     Log.i(TAG, "#" + id + ": is terminating link (planned and reported)");
                     closeClient(); //client requested termination
                     return false;
                 }
                 readBuffer = null;
                 readState = ReadState.INACTIVE;
-                return false;
+                return true; //the next packet is often already waiting, so read it without another select
             }
         } catch (Exception e) {
             String reason = e.getMessage();
@@ -317,7 +519,10 @@ public class ClientHandler {
                 return false; // nothing more to read
             }
 
-            START_TIME_MAP.remove(this.id);
+            if (responseTimeout != null) {
+                responseTimeout.cancel();
+                responseTimeout = null;
+            }
             InetSocketAddress address = (InetSocketAddress) client.getRemoteAddress();
             byte[] expected = Challenge.getResponse(password,challengeBuffer.array());
             readBuffer.flip();
@@ -368,11 +573,11 @@ public class ClientHandler {
                         readBuffer.clear();
                     //MUST be before readBody!
                     readState = ReadState.READING_PACKET;
-                    keepGoing = readBody(true);
+                    keepGoing = readBody(true,cycleCount == 0);
                     break;
                 case READING_PACKET:
                     Log.d(TAG, "#" + id + ": readyToRead().READING_PACKET");
-                    keepGoing = readBody(false);
+                    keepGoing = readBody(false,true);
                     break;
                 case READING_RESPONSE:
                     keepGoing = readResponse();
@@ -390,67 +595,64 @@ public class ClientHandler {
         }
     }
 
+    /**
+     * Writes as much of the queued data as the socket will take, handing the socket several
+     * frames at a time through a gathering write. Must be called from the IoLoop thread.
+     */
     public void readyToWrite() {
-        synchronized (writeThreadLock) {
-            if (readState == ReadState.WRITING_CHALLENGE) {
-                try {
-                    writeChallenge();
-                } catch (Throwable e) {
-                    String warning = "#" + id + ": Error writing challenge from client #" + id + " (closing)";
-                    Log.e(TAG, warning, e);
-                    if (listener != null)
-                        listener.onServerError(warning);
-                    closeClient();
-                }
-                return;
-            }
-            if (readState == ReadState.READING_RESPONSE) {
-                return; // no writes until we pass the challenge
+        if (readState == ReadState.WRITING_CHALLENGE) {
+            try {
+                writeChallenge();
+            } catch (Throwable e) {
+                String warning = "#" + id + ": Error writing challenge from client #" + id + " (closing)";
+                Log.e(TAG, warning, e);
+                if (listener != null)
+                    listener.onServerError(warning);
+                closeClient();
             }
-            //Log.d(TAG, "#" + id + ": ClientHandler ready to write");
+            return;
+        }
+        if (readState == ReadState.READING_RESPONSE) {
+            return; // no writes until we pass the challenge
+        }
+        drainInbox();
+        try {
             while (true) { // write as many packets as possible
-                if (writeBuffer == null) {
-                    writeBuffer = writeQueue.poll();
-                    if (writeBuffer == null) {
-                        //Log.d(TAG, "#" + id + ": ClientHandler writeBuffer null");
+                while (writeBatchCount < writeBatch.length) {
+                    ByteBuffer next = writeQueue.poll();
+                    if (next == null)
                         break;
-                    } else {
-                        //Log.d(TAG, "#" + id + ": ClientHandler writeQueue size " + writeQueue.size());
-                    }
+                    next.rewind();
+                    writeBatch[writeBatchCount++] = next;
                 }
-                try {
-                    writeBuffer.rewind();
-                    //Log.d(TAG, "#" + id + "ClientHandler WRITING buffer of size " + writeBuffer.limit() + "b, pos " + writeBuffer.position());
-                    while (writeBuffer.hasRemaining() && (client.write(writeBuffer) > 0)) {}
-
-                    if (writeBuffer.hasRemaining()) {
-                        break; // nothing more to do
-                    }
-                    writeBuffer = null;
-                    // and loop around to grab the next buffer
-                    //} catch (Throwable t) {
-                } catch (Exception e) {
-                    String warning = "#" + id + ": Error writing packet from client #" + id + ": " + e.getMessage();
-                    //TODO Log.e(TAG, warning, t);
-                    Log.e(TAG, warning);
-                    CommsLog.log(CommsLog.Entry.Category.PROBLEM, warning);
-                    writeBuffer = null; //TODO was closing the client but going to try to keep it open and work through the error
-                    if (listener != null)
-                        listener.onServerError(warning);
-                    //TODO closeClient();
+                if (writeBatchCount == 0)
                     break;
+                linkBytesWritten.add(client.write(writeBatch,0,writeBatchCount));
+                int done = 0;
+                while ((done < writeBatchCount) && !writeBatch[done].hasRemaining()) {
+                    done++;
                 }
+                if (done > 0) {
+                    System.arraycopy(writeBatch,done,writeBatch,0,writeBatchCount - done);
+                    for (int i=writeBatchCount-done;i<writeBatchCount;i++) {
+                        writeBatch[i] = null;
+                    }
+                    writeBatchCount -= done;
+                }
+                if (writeBatchCount > 0)
+                    break; // the socket is full; wait to be told it is writable again
             }
-        }
-    }
-
-    public void trimQueue(int connectionCount) {
-        int limit = 100 * connectionCount;
-        if (writeQueue.size() > limit) {
-            Log.w(TAG, "#" + id + ": Pruning " + (writeQueue.size() - limit)+ " queued messages");
-            while (writeQueue.size() > limit) {
-                writeQueue.poll(); // remove the oldest
+        } catch (Exception e) {
+            String warning = "#" + id + ": Error writing packet from client #" + id + ": " + e.getMessage();
+            Log.e(TAG, warning);
+            CommsLog.log(CommsLog.Entry.Category.PROBLEM, warning);
+            //drop the frames being written but try to keep the client open and work through the error
+            for (int i=0;i<writeBatchCount;i++) {
+                writeBatch[i] = null;
             }
+            writeBatchCount = 0;
+            if (listener != null)
+                listener.onServerError(warning);
         }
     }
 
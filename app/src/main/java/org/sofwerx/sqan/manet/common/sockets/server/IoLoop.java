@@ -0,0 +1,157 @@
+package org.sofwerx.sqan.manet.common.sockets.server;
+
+import org.sofwerx.notdroid.util.Log;
+
+import org.sofwerx.sqan.Config;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One of the Server's I/O threads. Each client is assigned to a single IoLoop which does all of
+ * the reading and writing for that client, so a client's state is only ever touched by one thread.
+ * Other threads hand work to the loop through a lock-free task queue.
+ */
+class IoLoop implements Runnable {
+    private final static String TAG = Config.TAG+".IoLoop";
+    private final static long TIMEOUT_TICK = 250l;
+    private final int index;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ArrayList<Runnable> deferred = new ArrayList<>(); //tasks from this loop's own thread; run without waking the selector
+    private final TimeoutWheel timeouts = new TimeoutWheel(TIMEOUT_TICK);
+    private final Thread thread;
+    private volatile boolean keepRunning = true;
+
+    IoLoop(int index) throws IOException {
+        this.index = index;
+        selector = Selector.open();
+        thread = new Thread(this,"IpServerIo"+index);
+    }
+
+    void start() { thread.start(); }
+
+    /**
+     * Runs the task on this loop's thread
+     * @param task
+     */
+    void execute(Runnable task) {
+        if (isLoopThread())
+            deferred.add(task);
+        else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Starts handling I/O for this client
+     * @param handler
+     */
+    void register(final ClientHandler handler) {
+        execute(() -> {
+            try {
+                SelectionKey key = handler.getChannel().register(selector,SelectionKey.OP_READ | SelectionKey.OP_WRITE,handler);
+                handler.onRegistered(this,key);
+            } catch (ClosedChannelException e) {
+                Log.w(TAG,"Client #"+handler.getId()+" closed before it could be registered");
+                handler.closeClient();
+            }
+        });
+    }
+
+    /**
+     * Runs the task after delay ms (must be called from this loop's thread)
+     * @param task
+     * @param delay
+     * @return the timeout, which can be cancelled
+     */
+    TimeoutWheel.Timeout schedule(Runnable task, long delay) {
+        return timeouts.schedule(task,delay);
+    }
+
+    int getIndex() { return index; }
+
+    /**
+     * Is this being called from this loop's thread
+     * @return
+     */
+    boolean isLoopThread() { return Thread.currentThread() == thread; }
+
+    @Override
+    public void run() {
+        Log.d(TAG,"I/O loop "+index+" started");
+        while (keepRunning) {
+            try {
+                selector.select(TIMEOUT_TICK);
+            } catch (IOException e) {
+                Log.e(TAG,"I/O loop "+index+" select failed: "+e.getMessage());
+                break;
+            } catch (Exception e) {
+                break; //the selector was closed
+            }
+            if (!keepRunning)
+                break;
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    Log.e(TAG,"I/O loop "+index+" task failed: "+e.getMessage());
+                }
+            }
+            Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+            while (i.hasNext()) {
+                SelectionKey key = i.next();
+                i.remove();
+                ClientHandler handler = (ClientHandler)key.attachment();
+                if (handler == null)
+                    continue;
+                try {
+                    if (key.isWritable())
+                        handler.readyToWrite();
+                    if (key.isValid() && key.isReadable())
+                        handler.readyToRead();
+                } catch (CancelledKeyException ignore) {
+                } catch (BlacklistException ignore) {
+                    key.cancel(); // already logged; just cancel
+                }
+                handler.updateInterest();
+            }
+            for (int d=0;d<deferred.size();d++) {
+                try {
+                    deferred.get(d).run();
+                } catch (Exception e) {
+                    Log.e(TAG,"I/O loop "+index+" task failed: "+e.getMessage());
+                }
+            }
+            deferred.clear();
+            timeouts.advance(System.currentTimeMillis());
+        }
+        for (SelectionKey key:selector.keys()) {
+            ClientHandler handler = (ClientHandler)key.attachment();
+            if (handler != null)
+                handler.closeClient();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.e(TAG,"I/O loop "+index+" selector.close() error: "+e.getMessage());
+        }
+        Log.d(TAG,"I/O loop "+index+" stopped");
+    }
+
+    /**
+     * Stops this loop and closes its clients
+     */
+    void close() {
+        keepRunning = false;
+        selector.wakeup();
+    }
+}
@@ -5,7 +5,6 @@ import android.os.HandlerThread;
 import android.util.Log;
 
 import org.sofwerx.sqan.Config;
-import org.sofwerx.sqan.ManetOps;
 import org.sofwerx.sqan.listeners.ManetListener;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.Status;
@@ -15,13 +14,13 @@ import org.sofwerx.sqan.manet.common.packet.PacketHeader;
 import org.sofwerx.sqan.manet.common.sockets.PacketParser;
 import org.sofwerx.sqan.manet.common.sockets.SocketChannelConfig;
 import org.sofwerx.sqan.util.CommsLog;
+import org.sofwerx.sqan.util.TransmittedTally;
 
 import java.io.IOException;
 import java.net.BindException;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
-import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -30,11 +29,14 @@ import java.util.Iterator;
 import java.util.Set;
 
 /**
- * The Server to host Clients over TCP/IP
+ * The Server to host Clients over TCP/IP. The server thread only accepts connections; each
+ * client is then handed to one of several IoLoops (one per core, up to MAX_IO_LOOPS) which does
+ * all of the reading and writing for that client.
  */
 public class Server {
     private final static String TAG = Config.TAG+".Server";
     private final static int MAX_SOCKETS_ACCEPTED = 24;
+    private final static int MAX_IO_LOOPS = 4;
     private SocketChannelConfig config;
     //private boolean restart;
     private Selector selector;
@@ -47,6 +49,8 @@ public class Server {
     private final ManetListener manetListener;
     private long lastConnection;
     private long idleTimeout = -1l;
+    private IoLoop[] loops;
+    private int nextLoop = 0;
 
     public Server(SocketChannelConfig config, PacketParser parser, ServerStatusListener listener) {
         this.config = config;
@@ -63,6 +67,14 @@ public class Server {
         return ClientHandler.getActiveConnectionCount();
     }
 
+    /**
+     * Is the outbound queue to any of the clients backed up
+     * @return
+     */
+    public boolean isCongested() {
+        return ClientHandler.isCongested();
+    }
+
     private int acceptClients(int acceptCount) throws IOException {
         SocketChannel client;
         while ((client = server.accept()) != null) {
@@ -74,8 +86,10 @@ public class Server {
                 client.setOption(StandardSocketOptions.TCP_NODELAY,Boolean.TRUE);
                 try {
                     ClientHandler handler = new ClientHandler(client,parser,listener);
-                    client.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, handler);
-                    CommsLog.log(CommsLog.Entry.Category.CONNECTION, this.getClass().getSimpleName()+" accepted client #" + handler.getId());
+                    IoLoop loop = loops[nextLoop];
+                    nextLoop = (nextLoop + 1) % loops.length;
+                    loop.register(handler);
+                    CommsLog.log(CommsLog.Entry.Category.CONNECTION, this.getClass().getSimpleName()+" accepted client #" + handler.getId()+" on I/O loop "+loop.getIndex());
                 } catch (Throwable t) {
                     String msg = "Error defining/registering new client";
                     CommsLog.log(CommsLog.Entry.Category.PROBLEM, msg);
@@ -114,8 +128,13 @@ public class Server {
             throw new IOException("Could not bind to " + address);
 
         this.selector = Selector.open();
-        // NOTE: the key for the server MUST have a null attachment
         server.register(selector, SelectionKey.OP_ACCEPT);
+        final int loopCount = Math.max(1,Math.min(MAX_IO_LOOPS,Runtime.getRuntime().availableProcessors()));
+        loops = new IoLoop[loopCount];
+        for (int i=0;i<loopCount;i++) {
+            loops[i] = new IoLoop(i);
+            loops[i].start();
+        }
         CommsLog.log(CommsLog.Entry.Category.STATUS, "Server started port: " + address.getPort());
         lastConnection = System.currentTimeMillis();
     }
@@ -128,42 +147,22 @@ public class Server {
         long secondTime = 0l;
         int acceptCount = 0;
         while (keepRunning) {
-            boolean isReading = false;
-            int selectionCount = selector.select(1000l * 5l);
+            selector.select(1000l * 5l);
             Set<SelectionKey> selected = selector.selectedKeys();
             Iterator<SelectionKey> i = selected.iterator();
             while (i.hasNext()) {
                 SelectionKey s = i.next();
-                if (s.isAcceptable()) {
+                if (s.isValid() && s.isAcceptable()) {
                     long temp = System.currentTimeMillis() / 1000l;
                     if (temp != secondTime) {
                         secondTime = temp;
                         acceptCount = 0;
                     }
                     acceptCount = acceptClients(acceptCount);
-                } else {
-                    try {
-                        if (s.isWritable()) {
-                            ClientHandler handler = (ClientHandler)s.attachment();
-                            handler.readyToWrite();
-                        }
-                    } catch (CancelledKeyException ignore) {
-                    }
-                    try {
-                        if (s.isReadable()) {
-                            isReading = true;
-                            ClientHandler handler = (ClientHandler)s.attachment();
-                            handler.readyToRead();
-                        }
-                    } catch (CancelledKeyException ignore) {
-                    } catch (BlacklistException ignore) {
-                        s.cancel(); // already logged; just cancel
-                    }
                 }
                 i.remove();
             }
 
-            ClientHandler.removeUnresponsiveConnections();
             if (idleTimeout > 0l) {
                 int clientCount = ClientHandler.getActiveConnectionCount();
                 if (clientCount > 0) {
@@ -180,26 +179,15 @@ public class Server {
                     }
                 }
             }
+        }
+    }
 
-            // Make sure the operations are set correctly
-            int connectionCount = selector.keys().size();
-            for (SelectionKey key : selector.keys()) {
-                ClientHandler handler = (ClientHandler) key.attachment();
-                if (handler == null)
-                    continue; // the server key
-                if (handler.isClosed())
-                    key.cancel();
-                else if (isReading || handler.hasBacklog()) {
-                    if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) // Make sure the write-ready key is on
-                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                    handler.trimQueue(connectionCount);
-                } else if (selectionCount > 0) {
-                    // Make sure we don't get spurious write-ready selections,
-                    // but don't turn off op-write if we simply timed out
-                    if ((key.interestOps() & SelectionKey.OP_WRITE) != 0)
-                        key.interestOps(SelectionKey.OP_READ);
-                }
+    private void closeLoops() {
+        if (loops != null) {
+            for (IoLoop loop:loops) {
+                loop.close();
             }
+            loops = null;
         }
     }
 
@@ -239,19 +227,29 @@ public class Server {
         }
         boolean sent = false;
         if (packet != null) {
-            byte[] bytes = packet.toByteArray();
+            ByteBuffer out;
+            int size = packet.getSize();
+            if (size < 0) {
+                byte[] bytes = packet.toByteArray();
+                size = bytes.length;
+                out = ByteBuffer.allocate(4 + size);
+                out.putInt(size);
+                out.put(bytes);
+            } else {
+                //write the packet directly behind the length prefix rather than copying it in
+                out = ByteBuffer.allocate(4 + size);
+                out.putInt(size);
+                packet.writeTo(out);
+            }
             if (address == PacketHeader.BROADCAST_ADDRESS)
-                Log.d(TAG,"Server broadcasting "+bytes.length+"b packet");
+                Log.d(TAG,"Server broadcasting "+size+"b packet");
             else
-                Log.d(TAG,"Server bursting "+bytes.length+"b packet to "+address);
-            ByteBuffer out = ByteBuffer.allocate(4 + bytes.length);
-            out.putInt(bytes.length);
-            out.put(bytes);
+                Log.d(TAG,"Server bursting "+size+"b packet to "+address);
             sent = ClientHandler.addToWriteQue(out,address);
             if (sent) {
                 if (manetListener != null)
                     manetListener.onTx(packet);
-                ManetOps.addBytesToTransmittedTally(bytes.length);
+                TransmittedTally.add(size);
             }
         }
         return sent;
@@ -268,6 +266,7 @@ public class Server {
                 Log.d(TAG, "Server shutting down...");
                 handler.removeCallbacksAndMessages(null);
                 handler = null;
+                closeLoops();
                 if (selector != null) {
                     try {
                         selector.close();
@@ -290,6 +289,7 @@ public class Server {
         } else {
             keepRunning = false;
             Log.d(TAG, "Handler is null but Server shutting down anyway...");
+            closeLoops();
             if (selector != null) {
                 try {
                     selector.close();
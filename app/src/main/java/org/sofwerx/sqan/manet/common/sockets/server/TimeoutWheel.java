@@ -0,0 +1,93 @@
+package org.sofwerx.sqan.manet.common.sockets.server;
+
+import java.util.ArrayList;
+
+/**
+ * A hashed timing wheel; scheduling and cancelling a timeout are constant time and advancing
+ * the wheel only looks at the slots whose time has come rather than every pending timeout.
+ * Not thread safe; each IoLoop owns its own wheel.
+ */
+class TimeoutWheel {
+    private final static int SLOTS = 64; //needs to be a power of 2
+    private final long tick;
+    private final ArrayList<Timeout>[] wheel;
+    private long currentTick;
+
+    /**
+     * @param tick resolution of the wheel in ms
+     */
+    @SuppressWarnings({"unchecked","rawtypes"})
+    TimeoutWheel(long tick) {
+        this.tick = Math.max(1l,tick);
+        wheel = (ArrayList<Timeout>[])new ArrayList[SLOTS];
+        for (int i=0;i<SLOTS;i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        currentTick = System.currentTimeMillis() / this.tick;
+    }
+
+    /**
+     * Runs the task after (at least) delay ms
+     * @param task
+     * @param delay
+     * @return the timeout, which can be cancelled
+     */
+    Timeout schedule(Runnable task, long delay) {
+        final long deadlineTick = Math.max(currentTick+1,(System.currentTimeMillis() + delay + tick - 1) / tick);
+        Timeout timeout = new Timeout(task,deadlineTick);
+        wheel[(int)(deadlineTick & (SLOTS-1))].add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Runs any tasks that are due
+     * @param now current time in ms
+     */
+    void advance(long now) {
+        final long targetTick = now / tick;
+        //if the loop was stalled for longer than a full rotation, each slot only needs to be visited once
+        long from = Math.max(currentTick + 1,targetTick - SLOTS + 1);
+        for (long t=from;t<=targetTick;t++) {
+            ArrayList<Timeout> slot = wheel[(int)(t & (SLOTS-1))];
+            int i = 0;
+            while (i < slot.size()) {
+                Timeout timeout = slot.get(i);
+                if (timeout.cancelled) {
+                    removeAt(slot,i);
+                } else if (timeout.deadlineTick <= targetTick) {
+                    removeAt(slot,i);
+                    timeout.task.run();
+                } else
+                    i++;
+            }
+        }
+        if (targetTick > currentTick)
+            currentTick = targetTick;
+    }
+
+    /**
+     * Gets the time (in ms) until the wheel next needs to be advanced
+     * @return
+     */
+    long getTick() { return tick; }
+
+    private static void removeAt(ArrayList<Timeout> slot, int index) {
+        final int last = slot.size() - 1;
+        if (index != last)
+            slot.set(index,slot.get(last));
+        slot.remove(last);
+    }
+
+    static class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        void cancel() { cancelled = true; }
+    }
+}
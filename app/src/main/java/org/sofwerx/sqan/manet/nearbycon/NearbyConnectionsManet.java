@@ -18,7 +18,6 @@ import com.google.android.gms.nearby.connection.PayloadCallback;
 import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
 
 import org.sofwerx.sqan.Config;
-import org.sofwerx.sqan.ManetOps;
 import org.sofwerx.sqan.SqAnService;
 import org.sofwerx.sqan.listeners.ManetListener;
 import org.sofwerx.sqan.listeners.PeripheralStatusListener;
@@ -31,6 +30,7 @@ import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.common.packet.PingPacket;
 import org.sofwerx.sqan.util.CommsLog;
 import org.sofwerx.sqan.util.StringUtil;
+import org.sofwerx.sqan.util.TransmittedTally;
 
 import java.io.StringWriter;
 import java.util.HashMap;
@@ -106,6 +106,13 @@ public class NearbyConnectionsManet extends AbstractManet {
             CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Unable to send packet; the ByteArray output was too small to be correct");
             return; //nothing to send but that seems like an error
         }
+        try {
+            if (burstAsSegmentsIfNeeded(packet,bytes))
+                return;
+        } catch (ManetException e) {
+            CommsLog.log(CommsLog.Entry.Category.PROBLEM, "Unable to send segmented packet: "+e.getMessage());
+            return;
+        }
         final List<String> devices;
             devices = SqAnDevice.getActiveDevicesNetworkIds();
         if (devices == null) {
@@ -139,7 +146,7 @@ public class NearbyConnectionsManet extends AbstractManet {
                     .addOnSuccessListener(aVoid -> {
                         CommsLog.log(CommsLog.Entry.Category.COMMS, StringUtil.toDataSize(bytesSent) + " sent to " + devices.size() + ((devices.size() == 1) ? " device" : " devices"));
                         setStatus(Status.CONNECTED);
-                        ManetOps.addBytesToTransmittedTally(bytesSent);
+                        TransmittedTally.add(bytesSent);
                         if (listener != null)
                             listener.onTx(packet);
                     })
@@ -161,7 +168,7 @@ public class NearbyConnectionsManet extends AbstractManet {
                     .addOnSuccessListener(aVoid -> {
                         CommsLog.log(CommsLog.Entry.Category.COMMS, StringUtil.toDataSize(bytesSent) + " sent to " + device.getNetworkId());
                         setStatus(Status.CONNECTED);
-                        ManetOps.addBytesToTransmittedTally(bytesSent);
+                        TransmittedTally.add(bytesSent);
                         if (listener != null)
                             listener.onTx(packet);
                     })
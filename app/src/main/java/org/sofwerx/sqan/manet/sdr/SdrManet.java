@@ -6,16 +6,27 @@ import org.sofwerx.notdroid.util.Log;
 
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.ManetOps;
+import org.sofwerx.sqan.SqAnService;
 import org.sofwerx.sqan.listeners.ManetListener;
 import org.sofwerx.sqan.listeners.PeripheralStatusListener;
 import org.sofwerx.sqan.manet.common.AbstractManet;
+import org.sofwerx.sqan.manet.common.LinkState;
 import org.sofwerx.sqan.manet.common.ManetException;
 import org.sofwerx.sqan.manet.common.ManetType;
+import org.sofwerx.sqan.manet.common.RouteCache;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.Status;
+import org.sofwerx.sqan.manet.common.TrickleTimer;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.packet.CompactHeartbeat;
+import org.sofwerx.sqan.manet.common.packet.DedupCache;
 import org.sofwerx.sqan.manet.common.packet.HeartbeatPacket;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.packet.SegmentPacket;
+import org.sofwerx.sqan.manet.common.packet.SegmentTool;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
 import org.sofwerx.sqan.util.CommsLog;
+import org.sofwerx.sqan.util.Metrics;
 import org.sofwerx.sqandr.SqANDRListener;
 import org.sofwerx.sqandr.SqANDRService;
 import org.sofwerx.sqandr.sdr.DataConnectionListener;
@@ -24,6 +35,8 @@ import org.sofwerx.sqandr.sdr.SdrMode;
 import org.sofwerx.sqandr.sdr.sar.Segmenter;
 import org.sofwerx.sqandr.serial.SerialConnection;
 
+import java.util.Random;
+
 /**
  * MANET built for including hops over SDR
  *
@@ -35,26 +48,35 @@ public class SdrManet extends AbstractManet implements SqANDRListener {
     private static final long OLD_DEVICE_CHECK_INTERVAL = 1000l * 60l;
     private static final int MAX_HOP_COUNT = 4; //max number of times a message should be relayed
     private final static String TAG = Config.TAG+".SdrManet";
+    private final static Metrics.Counter droppedUnparseable = Metrics.counter("sqan_rx_dropped_total","Received packets dropped","reason","unparseable");
+    private final static Metrics.Counter droppedInvalidOrigin = Metrics.counter("sqan_rx_dropped_total","Received packets dropped","reason","invalid_origin");
     private long nextOldDeviceCheck = Long.MIN_VALUE;
     private static SdrManet instance;
     private long staleTime = Long.MIN_VALUE;
     private SqANDRService sqANDRService;
-    private long[] DEDUP_LIST = new long[10]; //used to prevent handling duplicate messages but still allow messages out of order (within a small group)
-    private int dedupIndex = 0;
-    private final static long SUPPLEMENTAL_HEARTBEAT_INTERVAL = 1000l;
-    private long nextSupplementalHeartbeat = Long.MIN_VALUE;
+    private final DedupCache relayDedup = new DedupCache(); //used to prevent relaying the same packet more than once
+    private final TrickleTimer supplementalHeartbeat;
+    private int heartbeatTopologyVersion = RouteCache.getTopologyVersion();
 
     public SdrManet(Handler handler, Context context, ManetListener listener) {
+        this(handler, context, listener, new Random());
+    }
+
+    /**
+     * @param handler
+     * @param context
+     * @param listener
+     * @param random picks when the supplemental heartbeats go out (seeded to repeat a simulated run)
+     */
+    public SdrManet(Handler handler, Context context, ManetListener listener, Random random) {
         super(handler, context, listener);
+        supplementalHeartbeat = new TrickleTimer(SqAnService.MIN_TIME_BETWEEN_NARROW_HEARTBEATS,SqAnService.MAX_TIME_BETWEEN_NARROW_HEARTBEATS,random);
         sqANDRService = new SqANDRService(context,this);
         instance = this;
     }
 
-
     public SdrManet(android.os.Handler handlerIn, android.content.Context contextIn, ManetListener listener) {
-        super(new Handler(handlerIn), new Context(contextIn), listener);
-        sqANDRService = new SqANDRService(context,this);
-        instance = this;
+        this(new Handler(handlerIn), new Context(contextIn), listener);
     }
 
     @Override
@@ -108,13 +130,19 @@ public class SdrManet extends AbstractManet implements SqANDRListener {
         } else {
             handler.post(() -> {
                 Log.d(TAG, "burst() - " + bytes.length + "b");
-                sqANDRService.burst(bytes);
+                transmit(bytes);
                 if (listener != null)
                     listener.onTx(bytes);
             });
         }
     }
 
+    /**
+     * Hands bytes to the SDR to send
+     * @param bytes
+     */
+    protected void transmit(byte[] bytes) { sqANDRService.burst(bytes); }
+
     @Override
     public void burst(final AbstractPacket packet) throws ManetException {
         if (packet == null)
@@ -126,9 +154,16 @@ public class SdrManet extends AbstractManet implements SqANDRListener {
                 Log.d(TAG,"Packet dropped - exceeded max hop count.");
                 return;
             }
+            if (relayDedup.isDuplicate(packet)) {
+                Log.d(TAG,packet.getClass().getSimpleName()+" has already been relayed; dropped");
+                return;
+            }
         }
+        byte[] bytes = packet.toByteArray();
+        if (burstAsSegmentsIfNeeded(packet,bytes))
+            return;
         Log.d(TAG,"Bursting "+packet.getClass().getSimpleName());
-        burst(packet.toByteArray(), packet.getSqAnDestination(), packet.getOrigin());
+        burst(bytes, packet.getSqAnDestination(), packet.getOrigin());
     }
 
     @Override
@@ -183,10 +218,23 @@ public class SdrManet extends AbstractManet implements SqANDRListener {
             SqAnDevice.cullOldDevices();
         }
 
-        if (System.currentTimeMillis() > nextSupplementalHeartbeat) {
-            nextSupplementalHeartbeat = System.currentTimeMillis() + SUPPLEMENTAL_HEARTBEAT_INTERVAL;
+        burstHeartbeatIfDue(System.currentTimeMillis());
+    }
+
+    /**
+     * Sends a supplemental heartbeat if one is due; these back off while the mesh is stable and
+     * speed up when it changes
+     * @param now ms
+     */
+    protected void burstHeartbeatIfDue(long now) {
+        final int topologyVersion = RouteCache.getTopologyVersion();
+        if ((topologyVersion != heartbeatTopologyVersion) || CompactHeartbeat.getEncoder().isUrgent()) {
+            heartbeatTopologyVersion = topologyVersion;
+            supplementalHeartbeat.reset(now);
+        }
+        if (supplementalHeartbeat.isDue(now)) {
             try {
-                burst(new HeartbeatPacket(Config.getThisDevice(),HeartbeatPacket.DetailLevel.MEDIUM));
+                burst(new HeartbeatPacket(Config.getThisDevice(),HeartbeatPacket.getNarrowLinkLevel(TransportPreference.SDR)));
             } catch (ManetException e) {
                 e.printStackTrace();
             }
@@ -225,20 +273,22 @@ public class SdrManet extends AbstractManet implements SqANDRListener {
         AbstractPacket packet = AbstractPacket.newFromBytes(data);
         if (packet == null) {
             Log.w(TAG,"Unable to parse data, packet dropped");
+            droppedUnparseable.inc();
             onPacketDropped();
             return;
         }
-        if (hasTimeAlreadyInDedupList(packet.getTime())) {
-            Log.d(TAG,packet.getClass().getSimpleName()+" packet is likely a duplicate; ignoring");
-            return;
+        if (packet instanceof SegmentPacket) {
+            packet = SegmentTool.reassemble((SegmentPacket)packet);
+            if (packet == null)
+                return; //still waiting on the rest of the segments
         }
-        addTimeToDedupList(packet.getTime());
         if (packet.getOrigin() == Config.getThisDevice().getUUID()) {
             Log.d(TAG,packet.getClass().getSimpleName()+" is circular; ignoring");
             return;
         }
         if (!SqAnDevice.isValidUuid(packet.getOrigin())) {
             Log.w(TAG,packet.getOrigin()+" is not a valid UUID, packet dropped");
+            droppedInvalidOrigin.inc();
             onPacketDropped();
             return;
         }
@@ -247,11 +297,37 @@ public class SdrManet extends AbstractManet implements SqANDRListener {
             Log.d(TAG,packet.getClass().getSimpleName()+" packet received from unknown device");
         if (dev != null) {
             Log.d(TAG,packet.getClass().getSimpleName()+" received from "+dev.getLabel());
-            dev.setDirectSDR(true);
+            if (packet.isDirectFromOrigin())
+                dev.setDirectSDR(true);
             dev.addToDataTally(data.length);
         }
         setCurrent();
         onReceived(packet);
+        relayIfNeeded(packet);
+    }
+
+    /**
+     * Repeats a broadcast heard straight from its origin if this device is one of the origin's
+     * multipoint relays (i.e. some of this device's neighbors are out of the origin's reach).
+     * A relayed broadcast doesn't say which device relayed it, so those are not repeated again.
+     * @param packet
+     */
+    private void relayIfNeeded(AbstractPacket packet) {
+        if ((packet.getSqAnDestination() != PacketHeader.BROADCAST_ADDRESS) || !packet.isDirectFromOrigin())
+            return;
+        if (packet.isLossy() && isCongested())
+            return;
+        if (!LinkState.isRelayNeeded(packet.getOrigin()))
+            return;
+        AbstractPacket relay = AbstractPacket.newFromBytes(packet.toByteArray());
+        if (relay == null)
+            return;
+        relay.incrementHopCount();
+        try {
+            burst(relay);
+        } catch (ManetException e) {
+            Log.e(TAG,"Unable to relay "+relay.getClass().getSimpleName()+": "+e.getMessage());
+        }
     }
 
     @Override
@@ -292,30 +368,6 @@ public class SdrManet extends AbstractManet implements SqANDRListener {
             sqANDRService.setDataConnectionListener(terminal);
     }
 
-    /**
-     * Checks to see if a message time is already in the list of duplicate times
-     * @param time
-     * @return
-     */
-    private boolean hasTimeAlreadyInDedupList(long time) {
-        for (int i=0;i<DEDUP_LIST.length;i++) {
-            if (DEDUP_LIST[i] == time)
-                return true;
-        }
-        return false;
-    }
-
-    /**
-     * Adds a message time to the list of times to check for duplication
-     * @param time
-     */
-    private void addTimeToDedupList(long time) {
-        DEDUP_LIST[dedupIndex] = time;
-        dedupIndex++;
-        if (dedupIndex >= DEDUP_LIST.length)
-            dedupIndex = 0;
-    }
-
     public SerialConnection getSerialConnection() {
         if (sqANDRService == null)
             return null;
@@ -24,7 +24,6 @@ import android.util.Log;
 import androidx.annotation.RequiresApi;
 
 import org.sofwerx.sqan.Config;
-import org.sofwerx.sqan.ManetOps;
 import org.sofwerx.sqan.SqAnService;
 import org.sofwerx.sqan.listeners.ManetListener;
 import org.sofwerx.sqan.listeners.PeripheralStatusListener;
@@ -40,12 +39,15 @@ import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.common.packet.HeartbeatPacket;
 import org.sofwerx.sqan.manet.common.packet.PacketHeader;
 import org.sofwerx.sqan.manet.common.packet.PingPacket;
+import org.sofwerx.sqan.manet.common.packet.SegmentPacket;
+import org.sofwerx.sqan.manet.common.packet.SegmentTool;
 import org.sofwerx.sqan.manet.common.sockets.server.ServerStatusListener;
 import org.sofwerx.sqan.manet.wifiaware.client.ClientConnection;
 import org.sofwerx.sqan.manet.wifiaware.server.ServerConnection;
 import org.sofwerx.sqan.util.AddressUtil;
 import org.sofwerx.sqan.util.CommsLog;
 import org.sofwerx.sqan.util.NetUtil;
+import org.sofwerx.sqan.util.TransmittedTally;
 
 import java.net.InetAddress;
 import java.util.ArrayList;
@@ -280,6 +282,7 @@ public class WiFiAwareManetV2 extends AbstractManet implements ServerStatusListe
                     if ((pairings != null) && !pairings.isEmpty()) {
                         int sentCount = 0;
                         byte[] payload = null;
+                        ArrayList<SegmentPacket> segments = null;
                         boolean socketSent;
                         SqAnDevice device;
                         boolean applicable;
@@ -306,11 +309,21 @@ public class WiFiAwareManetV2 extends AbstractManet implements ServerStatusListe
                                         continue;
                                     if (payload == null)
                                         payload = packet.toByteArray();
-                                    if ((payload == null) || (payload.length > AWARE_MESSAGE_LIMIT)) {
-                                        Log.d(TAG, packet.getClass().getSimpleName() + " larger than Aware Message " + AWARE_MESSAGE_LIMIT + "b limit as will not be sent");
+                                    if (payload == null)
                                         break;
-                                    }
-                                    burst(payload, pairing.getPeerHandle());
+                                    if (payload.length > AWARE_MESSAGE_LIMIT) {
+                                        if (segments == null) {
+                                            segments = SegmentTool.toSegments(payload, AWARE_MESSAGE_LIMIT);
+                                            if (segments == null) {
+                                                Log.d(TAG, packet.getClass().getSimpleName() + " larger than Aware Message " + AWARE_MESSAGE_LIMIT + "b limit and could not be segmented so will not be sent");
+                                                break;
+                                            }
+                                        }
+                                        for (SegmentPacket segment : segments) {
+                                            burst(segment, pairing.getPeerHandle());
+                                        }
+                                    } else
+                                        burst(payload, pairing.getPeerHandle());
                                     sentCount++;
                                 }
                             }
@@ -366,12 +379,12 @@ public class WiFiAwareManetV2 extends AbstractManet implements ServerStatusListe
                     if (pub && (pubDiscoverySession != null)) {
                         Log.d(TAG, "Sending Message (via Pub) " + (messageIds.get() + 1) + " (" + payload.length + "b) to " + peerHandle.hashCode());
                         pubDiscoverySession.sendMessage(peerHandle, messageIds.incrementAndGet(), payload);
-                        ManetOps.addBytesToTransmittedTally(payload.length);
+                        TransmittedTally.add(payload.length);
                     }
                     if (sub && (subDiscoverySession != null)) {
                         Log.d(TAG, "Sending Message (via Sub) " + (messageIds.get() + 1) + " (" + payload.length + "b) to " + peerHandle.hashCode());
                         subDiscoverySession.sendMessage(peerHandle, messageIds.incrementAndGet(), payload);
-                        ManetOps.addBytesToTransmittedTally(payload.length);
+                        TransmittedTally.add(payload.length);
                     }
                     if (listener != null)
                         listener.onTx(payload);
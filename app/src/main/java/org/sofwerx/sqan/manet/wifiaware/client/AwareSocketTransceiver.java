@@ -3,13 +3,13 @@ package org.sofwerx.sqan.manet.wifiaware.client;
 import android.util.Log;
 
 import org.sofwerx.sqan.Config;
-import org.sofwerx.sqan.ManetOps;
 import org.sofwerx.sqan.listeners.ManetListener;
 import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
 import org.sofwerx.sqan.manet.common.sockets.Challenge;
 import org.sofwerx.sqan.manet.common.sockets.PacketParser;
 import org.sofwerx.sqan.manet.common.sockets.SocketChannelConfig;
 import org.sofwerx.sqan.util.NetUtil;
+import org.sofwerx.sqan.util.TransmittedTally;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -50,7 +50,7 @@ public class AwareSocketTransceiver {
         if (includeSize)
             output.write(NetUtil.intToByteArray(data.length));
         output.write(data);
-        ManetOps.addBytesToTransmittedTally(data.length);
+        TransmittedTally.add(data.length);
     }
 
     /*public void closeAll() {
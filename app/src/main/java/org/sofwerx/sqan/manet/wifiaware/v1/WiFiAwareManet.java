@@ -27,7 +27,6 @@ import android.os.Handler;
 import android.util.Log;
 
 import org.sofwerx.sqan.Config;
-import org.sofwerx.sqan.ManetOps;
 import org.sofwerx.sqan.SqAnService;
 import org.sofwerx.sqan.listeners.ManetListener;
 import org.sofwerx.sqan.listeners.PeripheralStatusListener;
@@ -51,6 +50,7 @@ import org.sofwerx.sqan.manet.common.sockets.server.ServerStatusListener;
 import org.sofwerx.sqan.util.AddressUtil;
 import org.sofwerx.sqan.util.CommsLog;
 import org.sofwerx.sqan.util.NetUtil;
+import org.sofwerx.sqan.util.TransmittedTally;
 
 import java.io.StringWriter;
 import java.net.Inet6Address;
@@ -174,8 +174,8 @@ public class WiFiAwareManet extends AbstractManet implements ServerStatusListene
 
     @Override
     public boolean isCongested() {
-        //FIXME
-        return false;
+        return ((socketClient != null) && socketClient.isCongested())
+                || ((socketServer != null) && socketServer.isCongested());
     }
 
     @Override
@@ -863,7 +863,7 @@ public class WiFiAwareManet extends AbstractManet implements ServerStatusListene
                         if (discoverySession != null) {
                             Log.d(TAG, "Sending Message " + (messageIds.get() + 1) + " (" + bytes.length + "b) to " + peerHandle.hashCode());
                             discoverySession.sendMessage(peerHandle, messageIds.incrementAndGet(), bytes);
-                            ManetOps.addBytesToTransmittedTally(bytes.length);
+                            TransmittedTally.add(bytes.length);
                         }
                     });
                 else
@@ -227,8 +227,8 @@ public class WiFiDirectManet extends AbstractManet implements WifiP2pManager.Pee
 
     @Override
     public boolean isCongested() {
-        //FIXME
-        return false;
+        return ((socketClient != null) && socketClient.isCongested())
+                || ((socketServer != null) && socketServer.isCongested());
     }
 
     @Override
@@ -305,6 +305,8 @@ public class WiFiDirectManet extends AbstractManet implements WifiP2pManager.Pee
     @Override
     public void burst(AbstractPacket packet) throws ManetException {
         if (packet != null) {
+            if (burstAsSegmentsIfNeeded(packet,null))
+                return;
             if (socketClient != null) {//packets from clients always get sent to the server
                 Log.d(TAG,"burst(packet) sent as a Client");
                 burst(packet, null);
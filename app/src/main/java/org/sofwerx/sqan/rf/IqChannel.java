@@ -0,0 +1,132 @@
+package org.sofwerx.sqan.rf;
+
+import java.util.Random;
+
+/**
+ * Simulates the RF path between two SDRs by altering the IQ values from a SignalModulator before
+ * they reach a SignalProcessor. Each impairment is off until set:
+ *  noise - gaussian noise added to every I and Q value
+ *  phase flips - the signal's sign flips (and stays flipped), which the receiver sees as bit inversion
+ *  clock drift - the receiver's clock runs fast or slow, so a sample is repeated or skipped every so often
+ *  dropouts - runs of samples are lost, as when the receiver's buffers overflow
+ * The channel keeps its state between calls so consecutive buffers see one continuous link.
+ */
+public class IqChannel {
+    private final static int MAX_VALUE = 2047; //12 bit samples
+    private final static int MIN_VALUE = -2048;
+    private final Random random;
+    private float noise = 0f;
+    private float flipChance = 0f;
+    private long samplesPerSlip = 0l;
+    private boolean receiverFast = false;
+    private float dropoutChance = 0f;
+    private int dropoutLength = 0;
+
+    private boolean flipped = false;
+    private long samplesToSlip;
+    private int dropoutRemaining = 0;
+    private long flips = 0l;
+    private long slips = 0l;
+    private long droppedSamples = 0l;
+
+    public IqChannel(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Sets the standard deviation of the noise added to each value
+     * @param sigma in the same units as the samples (i.e. relative to SignalModulator.DEFAULT_AMPLITUDE)
+     */
+    public void setNoise(float sigma) { this.noise = sigma; }
+
+    /**
+     * Sets how often the signal's phase flips
+     * @param meanSamplesBetween average samples between flips; 0 == never
+     */
+    public void setPhaseFlips(int meanSamplesBetween) { flipChance = (meanSamplesBetween > 0) ? 1f / (float)meanSamplesBetween : 0f; }
+
+    /**
+     * Sets the difference between the transmitter's and receiver's clocks
+     * @param ppm parts per million; positive == the receiver's clock is slow and skips samples, negative == it is fast and repeats samples
+     */
+    public void setClockDrift(int ppm) {
+        samplesPerSlip = (ppm == 0) ? 0l : Math.max(1l,1000000l / Math.abs(ppm));
+        receiverFast = ppm < 0;
+        samplesToSlip = samplesPerSlip;
+    }
+
+    /**
+     * Sets how often runs of samples are lost
+     * @param meanSamplesBetween average samples between dropouts; 0 == never
+     * @param length samples lost in each dropout
+     */
+    public void setDropouts(int meanSamplesBetween, int length) {
+        dropoutChance = (meanSamplesBetween > 0) ? 1f / (float)meanSamplesBetween : 0f;
+        dropoutLength = length;
+    }
+
+    /**
+     * Passes IQ values through the channel
+     * @param iq IQ values as 16 bit little endian I followed by 16 bit little endian Q
+     * @return the IQ values the receiver gets
+     */
+    public byte[] apply(byte[] iq) {
+        if (iq == null)
+            return null;
+        final int samples = iq.length / SignalModulator.BYTES_PER_IQ;
+        byte[] out = new byte[(samples + (receiverFast ? (int)(samples / samplesPerSlip) + 1 : 0)) * SignalModulator.BYTES_PER_IQ];
+        int o = 0;
+        for (int s=0;s<samples;s++) {
+            final int i = s * SignalModulator.BYTES_PER_IQ;
+            if ((flipChance > 0f) && (random.nextFloat() < flipChance)) {
+                flipped = !flipped;
+                flips++;
+            }
+            if (dropoutRemaining == 0) {
+                if ((dropoutChance > 0f) && (random.nextFloat() < dropoutChance))
+                    dropoutRemaining = dropoutLength;
+            }
+            if (dropoutRemaining > 0) {
+                dropoutRemaining--;
+                droppedSamples++;
+                continue;
+            }
+            if ((samplesPerSlip > 0l) && (--samplesToSlip == 0l)) {
+                samplesToSlip = samplesPerSlip;
+                slips++;
+                if (!receiverFast)
+                    continue;
+                o = put(out,o,iq,i);
+            }
+            o = put(out,o,iq,i);
+        }
+        if (o == out.length)
+            return out;
+        byte[] trimmed = new byte[o];
+        System.arraycopy(out,0,trimmed,0,o);
+        return trimmed;
+    }
+
+    private int put(byte[] out, int o, byte[] iq, int i) {
+        put(out,o,(iq[i+1] << 8) | (iq[i] & 0xFF));
+        put(out,o+2,(iq[i+3] << 8) | (iq[i+2] & 0xFF));
+        return o + SignalModulator.BYTES_PER_IQ;
+    }
+
+    private void put(byte[] out, int o, int value) {
+        if (flipped)
+            value = -value;
+        if (noise > 0f)
+            value += Math.round(random.nextGaussian() * noise);
+        if (value > MAX_VALUE)
+            value = MAX_VALUE;
+        else if (value < MIN_VALUE)
+            value = MIN_VALUE;
+        out[o] = (byte)value;
+        out[o+1] = (byte)(value >> 8);
+    }
+
+    public long getFlips() { return flips; }
+    public long getSlips() { return slips; }
+    public long getDroppedSamples() { return droppedSamples; }
+}
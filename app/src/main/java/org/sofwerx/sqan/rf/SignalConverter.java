@@ -1,17 +1,22 @@
 package org.sofwerx.sqan.rf;
 
-import android.util.Log;
+import org.sofwerx.notdroid.util.Log;
 
 import org.sofwerx.sqandr.util.StringUtils;
 
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
 /**
- * Holds the logic to convert raw IQ values into a byte
+ * Holds the logic to convert raw IQ values into a byte. All of the demodulation state is kept in
+ * primitive fields so that whole batches of IQ values can be processed without allocating.
  */
 public class SignalConverter {
     private final static int PERCENT_LAST = 5; //percent of last amplitude to consider as threshold
     private final static int MIN_SPACE_BETWEEN_HEADERS = 20;
     private final static int MAX_SPACE_BETWEEN_HEADERS = 1600;
     public final static byte[] SQAN_HEADER = {(byte)0b01100110,(byte)0b10011001};
+    public final static byte[] LEAN_HEADER = {SQAN_HEADER[0],SQAN_HEADER[1],SQAN_HEADER[0],SQAN_HEADER[1]}; //sent ahead of the data in lean mode; SQAN_AS_HEADER is this as bits
     private final static int LEAST_SIG_BIT_HEADER    = 0b00000000000000000000000000000001;
     private final static int MOST_SIG_BIT_HEADER     = 0b10000000000000000000000000000000;
     private final static int HEADER                  = 0b00000000000000000000101101010011; //this is the 12 bit header that signals coming data
@@ -32,6 +37,9 @@ public class SignalConverter {
     private final static byte LEAST_SIG_BIT = (byte)0b00000001;
 
     private final static String TAG = "SqAN.SigCon";
+    private final static boolean TRACE_BYTES = false; //true == log demodulated bytes in hex (slow; for debugging only)
+    private final static int BYTES_PER_IQ = 4; //16 bit I then 16 bit Q
+    private final static int MIN_BITS_PER_BYTE = 8;
     private byte dataPt;
     private boolean dataPtIsReady = false;
     private int amplitude;
@@ -52,6 +60,9 @@ public class SignalConverter {
     private boolean processAsByte = false;
 
     private boolean isSignalInverted;
+    private boolean headerFound = false;
+    private int sqanHeaderOutIndex = -1;
+    private final IqResult iqResult = new IqResult();
 
     /**
      *
@@ -88,21 +99,100 @@ public class SignalConverter {
         return sqanHeaderComplete;
     }
 
+    /**
+     * Gets where the SqAN header was first found in the output of the last call to demodulate()
+     * @return the number of bytes output before the header was found (or -1 if it was not found)
+     */
+    public int getSqanHeaderIndex() {
+        return sqanHeaderOutIndex;
+    }
+
+    /**
+     * Gets the most bytes that could be demodulated from this many bytes of IQ data
+     * @param iqBytes
+     * @return
+     */
+    public static int getMaxOutputSize(int iqBytes) {
+        return iqBytes / (BYTES_PER_IQ * MIN_BITS_PER_BYTE) + 1;
+    }
+
+    /**
+     * Demodulates a batch of IQ values into bytes
+     * @param iq IQ values as 16 bit little endian I followed by 16 bit little endian Q
+     * @param offset
+     * @param length number of bytes of IQ data
+     * @param out caller owned buffer for the demodulated bytes; must have room for getMaxOutputSize(length) bytes
+     * @param outOffset
+     * @return the number of bytes written to out
+     */
+    public int demodulate(byte[] iq, int offset, int length, byte[] out, int outOffset) {
+        if (out.length - outOffset < getMaxOutputSize(length))
+            throw new IllegalArgumentException("Output buffer needs room for "+getMaxOutputSize(length)+"b");
+        int written = outOffset;
+        sqanHeaderOutIndex = -1;
+        if (dataPtIsReady)
+            out[written++] = popByte();
+        final int end = offset + length - (BYTES_PER_IQ - 1);
+        for (int i=offset;i<end;i+=BYTES_PER_IQ) {
+            step((iq[i+1] << 8 | (iq[i] & 0xFF))<<4);
+            if (headerFound && sqanHeaderOnly && (sqanHeaderOutIndex < 0))
+                sqanHeaderOutIndex = written - outOffset;
+            if (dataPtIsReady)
+                out[written++] = popByte();
+        }
+        return written - outOffset;
+    }
+
+    /**
+     * Demodulates IQ values (I then Q) into bytes. Stops when either the IQ values run out or
+     * the output is full; anything not consumed is left in the iq buffer.
+     * @param iq
+     * @param out
+     * @return the number of bytes added to out
+     */
+    public int demodulate(ShortBuffer iq, ByteBuffer out) {
+        final int start = out.position();
+        sqanHeaderOutIndex = -1;
+        if (dataPtIsReady && out.hasRemaining())
+            out.put(popByte());
+        while ((iq.remaining() > 1) && out.hasRemaining()) {
+            step(iq.get()<<4);
+            iq.get(); //Q is not currently used
+            if (headerFound && sqanHeaderOnly && (sqanHeaderOutIndex < 0))
+                sqanHeaderOutIndex = out.position() - start;
+            if (dataPtIsReady)
+                out.put(popByte());
+        }
+        return out.position() - start;
+    }
+
     /**
      * Intake a new IQ value into the converter
      * @param valueI
      * @param valueQ
-     * @return
+     * @return the result, which is reused by the next call
      */
     public IqResult onNewIQ(int valueI, int valueQ) {
         if (dataPtIsReady) {
             Log.w(TAG, "SignalConverter is attempting to consume another IQ value, but the last byte hasn't been read. Be sure to call hasByte() to see if a byte is ready then popByte() to remove the byte from the converter");
-            return new IqResult(false,false);
+            iqResult.bitOn = false;
+            iqResult.headerFound = false;
+            return iqResult;
         }
+        iqResult.bitOn = step(valueI);
+        iqResult.headerFound = headerFound;
+        return iqResult;
+    }
 
+    /**
+     * Processes the next I value
+     * @param valueI
+     * @return true == the bit is on
+     */
+    private boolean step(int valueI) {
         processAsByte = true;
+        headerFound = false;
         amplitude = valueI; // Real (I)
-        IqResult iqResult = new IqResult();
         if (sqanHeaderOnly) {
             if (distanceSinceLastSqanHeader > MIN_SPACE_BETWEEN_HEADERS) {
                 if (distanceSinceLastSqanHeader > MAX_SPACE_BETWEEN_HEADERS)
@@ -114,34 +204,32 @@ public class SignalConverter {
                 } else
                     bitOn = false;
                 tempSqanHeader = tempSqanHeader & SQAN_HEADER_MASK;
+                boolean matched = false; //only a new match re-syncs; sqanHeaderComplete stays true between headers
                 if (tempSqanHeader == SQAN_AS_HEADER) {
                     Log.d(TAG,"SqAN header found");
-                    bitIndex = 0;
-                    sqanHeaderComplete = true;
+                    matched = true;
                     isSignalInverted = false;
-                    processAsByte = false;
                 } else if (tempSqanHeader == INVERSE_SQAN_AS_HEADER) {
                     Log.d(TAG,"SqAN header found, INVERSE");
-                    bitIndex = 0;
-                    sqanHeaderComplete = true;
+                    matched = true;
                     isSignalInverted = true;
-                    processAsByte = false;
                 }
-                if (sqanHeaderComplete) {
+                if (matched) {
+                    sqanHeaderComplete = true;
+                    processAsByte = false;
                     tempSqanHeader = 0;
                     bitIndex = 0;
                     tempByte = 0;
                     distanceSinceLastSqanHeader = 0;
-                    iqResult.headerFound = true;
-                } else
-                    processAsByte = false;
+                    headerFound = true;
+                }
             }
             if (sqanHeaderComplete) {
                 //Log.d(TAG,"SqAN header complete");
             } else
                 processAsByte = false;
         }
-        if (isReadingHeader) {
+        if (isReadingHeader && !sqanHeaderOnly) { //lean mode has no byte headers
             boolean headerComplete = false;
             tempHeader = tempHeader << 1; //move bits over to make room for new bit
 
@@ -169,7 +257,7 @@ public class SignalConverter {
                 isReadingHeader = false;
                 bitIndex = 0;
                 tempByte = 0;
-                iqResult.headerFound = true;
+                headerFound = true;
             }
             processAsByte = false;
         }
@@ -196,6 +284,7 @@ public class SignalConverter {
                     dataPt = tempByte;
                     dataPtIsReady = true;
                     distanceSinceLastSqanHeader++;
+                    bitIndex = 0; //no byte header to reset it, the next byte starts right away
                 }
             } else {
                 if (((bitIndex == 8) && !ignoreHeaders) || ((bitIndex == 20) && ignoreHeaders) || ((bitIndex == 17) && shortHeader && ignoreHeaders)) {
@@ -205,8 +294,7 @@ public class SignalConverter {
             }
         }
         amplitudeLast = amplitude * PERCENT_LAST / 100;
-        iqResult.bitOn = bitOn;
-        return iqResult;
+        return bitOn;
     }
 
     /**
@@ -218,16 +306,20 @@ public class SignalConverter {
     }
 
 
-    StringBuilder tempByteOut = new StringBuilder(); //FIXME temp
+    private StringBuilder tempByteOut;
     public byte popByte() {
         if (!dataPtIsReady)
             Log.w(TAG,"popByte called when no byte is actually ready. Be sure to call hasByte() to check if a byte is ready before popping the byte");
         dataPtIsReady = false;
         final byte outgoing = dataPt;
-        tempByteOut.append(StringUtils.toHex(outgoing));
-        if (tempByteOut.length() > 100) {
-            Log.d(TAG, "Bytes: " + tempByteOut.toString());
-            tempByteOut = new StringBuilder();
+        if (TRACE_BYTES) {
+            if (tempByteOut == null)
+                tempByteOut = new StringBuilder();
+            tempByteOut.append(StringUtils.toHex(outgoing));
+            if (tempByteOut.length() > 100) {
+                Log.d(TAG, "Bytes: " + tempByteOut.toString());
+                tempByteOut.setLength(0);
+            }
         }
         dataPt = (byte)0;
         isReadingHeader = true;
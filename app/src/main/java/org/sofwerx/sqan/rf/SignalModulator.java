@@ -0,0 +1,146 @@
+package org.sofwerx.sqan.rf;
+
+/**
+ * Software version of SqANDR's transmitter: turns the bytes from one write into the IQ values for
+ * one SDR transmit buffer, the same way sqandrv3.c fills its tx buffer (leading zeros, then each
+ * byte preceded by the byte header and sent MSB first as a full positive or full negative sample,
+ * then zeros to the end of the buffer). The IQ values are in the format SignalConverter reads, so
+ * the output can be fed to a SignalProcessor without any SDR hardware.
+ */
+public class SignalModulator {
+    public final static int DEFAULT_BUFFER_SIZE = 17284; //samples; matches SerialConnection's tx and rx buffer sizes
+    public final static int DEFAULT_AMPLITUDE = 30000 >> 4; //SqANDR transmits at +/-30000 and the SDR returns 12 bit samples
+    public final static int BYTES_PER_IQ = 4; //16 bit I then 16 bit Q, little endian
+    private final static int LEADING_ZEROS = 21; //SqANDR leads each buffer with 21 empty samples
+    private final static int HEADER = 0b101101010011; //must match SignalConverter
+    private final static int SHORT_HEADER = 0b101010011;
+    private final int bufferSize;
+    private int amplitude = DEFAULT_AMPLITUDE;
+    private boolean shortHeader = false;
+    private boolean leanMode = false;
+    private boolean inverted = false;
+    private int repeat = 1;
+
+    /**
+     * @param bufferSize number of IQ samples in each transmit buffer
+     */
+    public SignalModulator(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public SignalModulator() { this(DEFAULT_BUFFER_SIZE); }
+
+    /**
+     * Uses the short byte header (SqANDR's -shortHeader); SignalConverter.setShortHeader() must match
+     * @param shortHeader
+     */
+    public void setShortHeader(boolean shortHeader) { this.shortHeader = shortHeader; }
+
+    /**
+     * In lean mode no byte headers are sent; the receiver syncs on the SqAN header instead
+     * @param leanMode
+     */
+    public void setLeanMode(boolean leanMode) { this.leanMode = leanMode; }
+
+    /**
+     * Sends every sample with the opposite sign, as a receiver that is 180 degrees out of phase would see it
+     * @param inverted
+     */
+    public void setInverted(boolean inverted) { this.inverted = inverted; }
+
+    /**
+     * Sets the number of times the data is repeated within the buffer (SqANDR's -messageRepeat)
+     * @param repeat
+     */
+    public void setRepeat(int repeat) { this.repeat = Math.max(1,repeat); }
+
+    /**
+     * Sets the magnitude of each sample (12 bit, so up to 2047)
+     * @param amplitude
+     */
+    public void setAmplitude(int amplitude) { this.amplitude = amplitude; }
+
+    public int getBufferSize() { return bufferSize; }
+
+    /**
+     * Gets the number of samples used to send each byte
+     * @return
+     */
+    public int getSamplesPerByte() {
+        if (leanMode)
+            return 8;
+        return (shortHeader ? 8 : 12) + 8;
+    }
+
+    /**
+     * Gets the most bytes that fit in one transmit buffer
+     * @return
+     */
+    public int getMaxBytesPerBuffer() { return (bufferSize - LEADING_ZEROS - 1) / getSamplesPerByte(); }
+
+    /**
+     * Modulates the data into one transmit buffer
+     * @param data
+     * @return the IQ values for the whole buffer or null if there is no data
+     */
+    public byte[] modulate(byte[] data) {
+        if (data == null)
+            return null;
+        byte[] iq = new byte[bufferSize * BYTES_PER_IQ];
+        modulate(data,0,data.length,iq);
+        return iq;
+    }
+
+    /**
+     * Modulates the data into one transmit buffer. As in SqANDR, whatever does not fit in the
+     * buffer is not sent.
+     * @param data
+     * @param offset
+     * @param length
+     * @param iq the buffer; must be getBufferSize() * BYTES_PER_IQ long
+     * @return the number of data bytes sent
+     */
+    public int modulate(byte[] data, int offset, int length, byte[] iq) {
+        if (iq.length < bufferSize * BYTES_PER_IQ)
+            throw new IllegalArgumentException("IQ buffer needs room for "+bufferSize+" samples");
+        final int end = bufferSize - 1; //SqANDR stops a sample short of the end of the buffer as a safety margin
+        int sample = LEADING_ZEROS;
+        int sent = 0;
+        fill:
+        for (int times=0;times<repeat;times++) {
+            for (int i=offset;i<offset+length;i++) {
+                if (!leanMode) {
+                    final int header = shortHeader ? SHORT_HEADER : HEADER;
+                    for (int bit=(shortHeader ? 7 : 11);bit>=0;bit--) {
+                        if (sample > end)
+                            break fill;
+                        put(iq,sample++,((header >> bit) & 1) == 1);
+                    }
+                }
+                for (int bit=7;bit>=0;bit--) {
+                    if (sample > end)
+                        break fill;
+                    put(iq,sample++,((data[i] >> bit) & 1) == 1);
+                }
+                if (times == 0)
+                    sent++;
+            }
+        }
+        for (int i=0;i<LEADING_ZEROS*BYTES_PER_IQ;i++) {
+            iq[i] = 0;
+        }
+        for (int i=sample*BYTES_PER_IQ;i<bufferSize*BYTES_PER_IQ;i++) {
+            iq[i] = 0;
+        }
+        return sent;
+    }
+
+    private void put(byte[] iq, int sample, boolean bitOn) {
+        final int value = (bitOn != inverted) ? amplitude : -amplitude;
+        final int i = sample * BYTES_PER_IQ;
+        iq[i] = (byte)value;
+        iq[i+1] = (byte)(value >> 8);
+        iq[i+2] = (byte)value;
+        iq[i+3] = (byte)(value >> 8);
+    }
+}
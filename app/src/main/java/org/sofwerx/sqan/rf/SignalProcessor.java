@@ -1,14 +1,15 @@
 package org.sofwerx.sqan.rf;
 
-import android.util.Log;
+import org.sofwerx.notdroid.util.Log;
 
 import org.sofwerx.sqan.util.StringUtil;
 import org.sofwerx.sqandr.util.StringUtils;
-import org.sofwerx.sqandr.util.WriteableInputStream;
+import org.sofwerx.sqandr.util.ByteRingBuffer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SignalProcessor {
@@ -18,7 +19,7 @@ public class SignalProcessor {
     private ByteBuffer processed;
     private SignalProcessingListener listener;
     private RawSignalListener rawListener;
-    private WriteableInputStream incomingStream;
+    private ByteRingBuffer incomingStream;
     private Thread readThread,writeThread;
     private long timeout;
     private long nextTimeout = Long.MAX_VALUE;
@@ -46,7 +47,7 @@ public class SignalProcessor {
         this.timeout = timeout;
         //TODO non-functional at this time
         /*processed = ByteBuffer.allocate(bufferSize);
-        incomingStream = new WriteableInputStream();
+        incomingStream = new ByteRingBuffer();
         readThread = new Thread("SignalIn") {
             SignalConverter converter = new SignalConverter();
             byte[] byteValueI = new byte[2];
@@ -152,7 +153,7 @@ public class SignalProcessor {
     /*public void consumeIqData(byte[] incoming) {
         Log.d(TAG,"consumeIqData("+((incoming==null)?"null":(incoming.length+"b"))+")");
         if ((incomingStream != null) && (incoming != null))
-            incomingStream.write(incoming);
+            incomingStream.put(incoming);
     }*/
 
     private int turnOnIqRemaining = 0;
@@ -167,9 +168,56 @@ public class SignalProcessor {
     private SignalConverter converter;
     private ByteBuffer out = ByteBuffer.allocate(16);
     private StringBuilder iiqoffsetTest = new StringBuilder();
+    private byte[] demodulated; //reused between batches
+
+    /**
+     * Demodulates a batch of IQ data and passes all of the bytes recovered to the listener at once
+     * @param incoming
+     */
     public void consumeIqData(byte[] incoming) {
         if (incoming == null)
             return;
+        if (DETAILED_IQ || FORCE_DETAILED_IQ) {
+            consumeIqDataDetailed(incoming);
+            return;
+        }
+        final int headerRoom = SignalConverter.SQAN_HEADER.length;
+        final int max = headerRoom + SignalConverter.getMaxOutputSize(incoming.length);
+        if ((demodulated == null) || (demodulated.length < max))
+            demodulated = new byte[max];
+        final int count = converter.demodulate(incoming,0,incoming.length,demodulated,headerRoom);
+        if (count == 0)
+            return;
+        int start = headerRoom;
+        if (leanMode && !sqanHeaderFound && converter.hasSqanHeader()) {
+            Log.d(TAG,"consumeIqData -> SqAN Header found");
+            sqanHeaderFound = true;
+            start = 0;
+            final int before = Math.max(0,converter.getSqanHeaderIndex()); //-1 == found in an earlier batch that produced no bytes
+            System.arraycopy(demodulated,headerRoom,demodulated,0,before); //the header goes where it was found, after any bytes read before it
+            System.arraycopy(SignalConverter.SQAN_HEADER,0,demodulated,before,headerRoom);
+        }
+        final int end = headerRoom + count;
+        int asterisksInARow = 0;
+        for (int i=headerRoom;i<end;i++) {
+            if (demodulated[i] == (byte)42) {
+                asterisksInARow++;
+                if (asterisksInARow == 4) {
+                    Log.d(TAG,"fwrite error signal detected from Pluto");
+                    turnOnIqRemaining = 200;
+                }
+            } else
+                asterisksInARow = 0;
+        }
+        if (listener != null)
+            listener.onSignalDataExtracted(Arrays.copyOfRange(demodulated,start,end));
+    }
+
+    /**
+     * Demodulates IQ data one value at a time so that each bit can be traced; only used for debugging
+     * @param incoming
+     */
+    private void consumeIqDataDetailed(byte[] incoming) {
         final int limit = out.limit()-1;
         int valueI,valueQ;
         if (DETAILED_IQ) {
@@ -233,7 +281,7 @@ public class SignalProcessor {
                     showByteValue = true;
                     out.put(valueByte);
                     if (out.position() > limit) {
-                        byte[] outBytes = out.array();
+                        byte[] outBytes = Arrays.copyOf(out.array(),out.position());
                         Log.d(TAG,"From SDR: "+ StringUtils.toHex(outBytes));
                         if (listener != null)
                             listener.onSignalDataExtracted(outBytes);
@@ -261,7 +309,7 @@ public class SignalProcessor {
                     }
                     out.put(valueByte);
                     if (out.position() > limit) {
-                        byte[] outBytes = out.array();
+                        byte[] outBytes = Arrays.copyOf(out.array(),out.position());
                         Log.d(TAG,"From SDR: "+ StringUtils.toHex(outBytes));
                         if (listener != null)
                             listener.onSignalDataExtracted(outBytes);
@@ -329,11 +377,7 @@ public class SignalProcessor {
             writeThread = null;
         }
         if (incomingStream != null) {
-            try {
-                incomingStream.close();
-            } catch (IOException e) {
-                Log.w(TAG, "Unable to close incomingStream: " + e.getMessage());
-            }
+            incomingStream.close();
             incomingStream = null;
         }
     }
@@ -1,6 +1,7 @@
 package org.sofwerx.sqan.ui;
 
 import android.bluetooth.BluetoothDevice;
+import android.content.Context;
 import android.content.Intent;
 import android.graphics.Color;
 import android.os.Bundle;
@@ -60,20 +61,16 @@ public class ConnectionDetailsActivity extends AppCompatActivity {
             sb.append(" * System Saved Pairings:\r\n");
             sb.append(textSysConnect.getText().toString());
             CommsLog.log(CommsLog.Entry.Category.STATUS,sb.toString());
-            File file = CommsLog.getFileAndStartNew(ConnectionDetailsActivity.this);
-            Intent intent = new Intent(Intent.ACTION_SEND);
-            intent.setType("plain/text");
-            intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            intent.putExtra(Intent.EXTRA_EMAIL, new String[]{"support@aug.email"});
-            intent.putExtra(Intent.EXTRA_SUBJECT, "SqAN log file");
-            if ((file == null) || !file.exists())
-                intent.putExtra(Intent.EXTRA_TEXT, "Unable to generate a log file");
-            else {
-                intent.putExtra(Intent.EXTRA_STREAM,
-                        FileProvider.getUriForFile(ConnectionDetailsActivity.this, ConnectionDetailsActivity.this.getApplicationContext().getPackageName() + ".mission.provider", file));
-                intent.putExtra(Intent.EXTRA_TEXT, "Log generated at " + StringUtil.getFilesafeTime(System.currentTimeMillis()));
-            }
-            ConnectionDetailsActivity.this.startActivity(intent);
+            sendDiagnostics.setEnabled(false);
+            final Context context = getApplicationContext();
+            new Thread(() -> { //closing and decoding the log waits on file writes
+                final File file = CommsLog.getFileAndStartNew(context);
+                runOnUiThread(() -> {
+                    sendDiagnostics.setEnabled(true);
+                    if (!isDestroyed())
+                        shareLog(file);
+                });
+            },"DiagnosticsLog").start();
         });
         if ((SqAnService.getInstance() != null) && (SqAnService.getInstance().getManetOps() != null))
             sdrManet = SqAnService.getInstance().getManetOps().getSdrManet();
@@ -90,6 +87,22 @@ public class ConnectionDetailsActivity extends AppCompatActivity {
             openTerminal.setVisibility(View.GONE);
     }
 
+    private void shareLog(File file) {
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("plain/text");
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        intent.putExtra(Intent.EXTRA_EMAIL, new String[]{"support@aug.email"});
+        intent.putExtra(Intent.EXTRA_SUBJECT, "SqAN log file");
+        if ((file == null) || !file.exists())
+            intent.putExtra(Intent.EXTRA_TEXT, "Unable to generate a log file");
+        else {
+            intent.putExtra(Intent.EXTRA_STREAM,
+                    FileProvider.getUriForFile(this, getApplicationContext().getPackageName() + ".mission.provider", file));
+            intent.putExtra(Intent.EXTRA_TEXT, "Log generated at " + StringUtil.getFilesafeTime(System.currentTimeMillis()));
+        }
+        startActivity(intent);
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -47,6 +47,7 @@ import org.sofwerx.sqan.manet.sdr.SdrManet;
 import org.sofwerx.sqan.util.PermissionsHelper;
 import org.sofwerx.sqan.util.StringUtil;
 import org.sofwerx.sqan.vpn.SqAnVpnService;
+import org.sofwerx.sqan.util.TransmittedTally;
 
 import java.util.ArrayList;
 import java.util.Timer;
@@ -273,7 +274,7 @@ public class MainActivity extends AppCompatActivity implements SqAnStatusListene
     }
 
     private void updateTransmitText() {
-        long currentTotal = ManetOps.getTransmittedByteTally();
+        long currentTotal = TransmittedTally.get();
         if (currentTotal != lastTxTotal) {
             lastTxTotal = currentTotal;
             iconPing.setAlpha(1f);
@@ -0,0 +1,426 @@
+package org.sofwerx.sqan.util;
+
+import org.sofwerx.notdroid.util.Log;
+
+import org.sofwerx.sqan.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+
+/**
+ * Asynchronous structured log behind CommsLog. Callers drop fixed size entries (time, template
+ * and up to four numeric arguments) into a preallocated ring that any number of threads can add
+ * to at once; a single drainer thread batches them into deflated segments in the log file. The
+ * caller never formats a String or touches the file, and if the drainer falls behind entries are
+ * dropped (and counted) rather than making the caller wait. CommsLogDecoder turns a file back
+ * into text.
+ *
+ * File layout: MAGIC, VERSION, then segments of [raw length (int)][deflated length (int)][deflated
+ * records]. Each record starts with a type byte: RECORD_TEMPLATE defines a template the first
+ * time it is used in the file, RECORD_ENTRY is a logged entry (time is relative to the previous
+ * entry in the segment) and RECORD_DROPPED counts entries lost because the ring was full.
+ */
+public class BinaryLog {
+    private final static String TAG = Config.TAG+".BinLog";
+    public final static int MAGIC = 0x53514C47; //SQLG
+    public final static byte VERSION = 1;
+    public final static byte RECORD_TEMPLATE = 1;
+    public final static byte RECORD_ENTRY = 2;
+    public final static byte RECORD_DROPPED = 3;
+    public final static int MAX_ARGS = 4;
+    public final static String ARG = "{}";
+    private final static int CAPACITY = 1 << 13; //entries the ring holds before new ones are dropped
+    private final static int MASK = CAPACITY - 1;
+    private final static int SEGMENT_SIZE = 1 << 16; //raw bytes batched into each compressed segment
+    private final static long DRAIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50l); //how long the drainer sleeps when the ring is empty
+    private final static long MAX_FLUSH_INTERVAL = 1000l * 2l; //longest a partial segment waits before being written
+    private final static long STOP_WAIT = 1000l * 2l; //how long stop() waits for the drainer to finish writing
+    private final static int TIMED_CALL_INTERVAL = 256; //every nth call is timed for the caller cost histogram
+
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARNING
+    }
+
+    private final static long[] times = new long[CAPACITY];
+    private final static Template[] slotTemplates = new Template[CAPACITY];
+    private final static long[] args = new long[CAPACITY * MAX_ARGS];
+    private final static String[] texts = new String[CAPACITY];
+    private final static AtomicLongArray published = new AtomicLongArray(CAPACITY); //holds position+1 once the slot at that position is filled
+    private final static AtomicLong tail = new AtomicLong(0l); //next position to be claimed by a caller
+    private static volatile long head = 0l; //next position to be read by the drainer
+
+    private static volatile Template[] templates = new Template[0];
+    private static volatile int minLevel = Level.DEBUG.ordinal();
+    private static volatile boolean running = false;
+    private static volatile Thread drainer;
+    private static int callCount = 0; //racy on purpose; only used to pick calls to time
+
+    private final static Metrics.Counter written = Metrics.counter("sqan_log_entries_total","Log entries by what happened to them","result","written");
+    private final static Metrics.Counter dropped = Metrics.counter("sqan_log_entries_total","Log entries by what happened to them","result","dropped");
+    private final static Metrics.Counter segments = Metrics.counter("sqan_log_segments_total","Compressed segments written to the log file");
+    private final static Metrics.Histogram callCost = Metrics.histogram("sqan_log_call_ns","Time spent by a sample of callers adding an entry to the log (ns)");
+
+    /**
+     * A log message registered once (e.g. into a static final field) so that logging it later
+     * only passes its numbers
+     */
+    public static class Template {
+        private final int id;
+        private final String category;
+        private final Level level;
+        private final String format;
+        private final int argCount;
+        private volatile int sampling = 1;
+
+        private Template(int id, String category, Level level, String format) {
+            this.id = id;
+            this.category = category;
+            this.level = level;
+            this.format = format;
+            this.argCount = countArgs(format);
+        }
+
+        public int getId() { return id; }
+
+        public String getCategory() { return category; }
+
+        public Level getLevel() { return level; }
+
+        /**
+         * Gets the message format
+         * @return the format (or null if each entry carries its own text)
+         */
+        public String getFormat() { return format; }
+
+        public int getArgCount() { return argCount; }
+
+        /**
+         * Keeps only some of the entries logged with this template
+         * @param oneIn 1 keeps every entry, n keeps one entry in n (chosen at random)
+         */
+        public void setSampling(int oneIn) { sampling = Math.max(1,oneIn); }
+
+        public int getSampling() { return sampling; }
+    }
+
+    /**
+     * Registers a message
+     * @param category shown with each entry (e.g. COMMS)
+     * @param level
+     * @param format message text with {} wherever an argument goes (up to MAX_ARGS); null if
+     *               entries with this template carry their own text instead
+     * @return
+     */
+    public static synchronized Template template(String category, Level level, String format) {
+        if (countArgs(format) > MAX_ARGS)
+            throw new IllegalArgumentException("Log templates can have at most "+MAX_ARGS+" arguments: "+format);
+        Template[] current = templates;
+        Template[] next = new Template[current.length+1];
+        System.arraycopy(current,0,next,0,current.length);
+        Template template = new Template(current.length,category,level,format);
+        next[current.length] = template;
+        templates = next;
+        return template;
+    }
+
+    /**
+     * Counts the places in a format where an argument goes
+     * @param format
+     * @return
+     */
+    public static int countArgs(String format) {
+        int count = 0;
+        if (format != null) {
+            int index = format.indexOf(ARG);
+            while (index >= 0) {
+                count++;
+                index = format.indexOf(ARG,index+ARG.length());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Drops entries below this level
+     * @param level
+     */
+    public static void setLevel(Level level) {
+        if (level != null)
+            minLevel = level.ordinal();
+    }
+
+    public static Level getLevel() { return Level.values()[minLevel]; }
+
+    public static boolean isRunning() { return running; }
+
+    /**
+     * Gets the number of entries written to a log file so far
+     * @return
+     */
+    public static long getWritten() { return written.get(); }
+
+    /**
+     * Gets the number of entries lost so far because the ring was full
+     * @return
+     */
+    public static long getDropped() { return dropped.get(); }
+
+    /**
+     * Starts writing entries to a file (closing any file already in use)
+     * @param file
+     * @return true if the file was opened
+     */
+    public static synchronized boolean start(File file) {
+        stop(0l); //a drainer still writing would otherwise keep running alongside the new one
+        FileOutputStream out;
+        try {
+            out = new FileOutputStream(file);
+            ByteBuffer header = ByteBuffer.allocate(5);
+            header.putInt(MAGIC);
+            header.put(VERSION);
+            out.write(header.array());
+        } catch (IOException e) {
+            Log.e(TAG,"Unable to open "+file.getName()+": "+e.getMessage());
+            return false;
+        }
+        running = true;
+        drainer = new Thread(new Drainer(out),"BinaryLog");
+        drainer.setDaemon(true);
+        drainer.setPriority(Thread.MIN_PRIORITY);
+        drainer.start();
+        return true;
+    }
+
+    /**
+     * Writes everything already logged and closes the file, waiting up to STOP_WAIT for that
+     * @return true if the file was closed in time
+     */
+    public static boolean stop() { return stop(STOP_WAIT); }
+
+    /**
+     * Writes everything already logged and closes the file
+     * @param maxWait longest to wait (ms) for the drainer to finish; 0 waits as long as it takes
+     * @return true if the file was closed in time (otherwise the drainer is still writing)
+     */
+    public static synchronized boolean stop(long maxWait) {
+        running = false;
+        if (drainer != null) {
+            LockSupport.unpark(drainer);
+            try {
+                drainer.join(maxWait);
+            } catch (InterruptedException ignore) {
+            }
+            if (drainer.isAlive())
+                return false; //keep hold of it so the next stop or start can wait for it
+            drainer = null;
+        }
+        return true;
+    }
+
+    public static boolean log(Template template) { return put(template,0l,0l,0l,0l,null); }
+
+    public static boolean log(Template template, long arg0) { return put(template,arg0,0l,0l,0l,null); }
+
+    public static boolean log(Template template, long arg0, long arg1) { return put(template,arg0,arg1,0l,0l,null); }
+
+    public static boolean log(Template template, long arg0, long arg1, long arg2) { return put(template,arg0,arg1,arg2,0l,null); }
+
+    public static boolean log(Template template, long arg0, long arg1, long arg2, long arg3) { return put(template,arg0,arg1,arg2,arg3,null); }
+
+    /**
+     * Logs an entry that carries its own text
+     * @param template a template with a null format
+     * @param text
+     * @return
+     */
+    public static boolean log(Template template, String text) { return put(template,0l,0l,0l,0l,text); }
+
+    /**
+     * Adds an entry to the ring; never blocks and never allocates
+     * @return true if the entry was added, false if it was filtered out or the ring was full
+     */
+    private static boolean put(Template template, long arg0, long arg1, long arg2, long arg3, String text) {
+        if (!running || (template == null) || (template.level.ordinal() < minLevel))
+            return false;
+        final int sampling = template.sampling;
+        if ((sampling > 1) && (ThreadLocalRandom.current().nextInt(sampling) != 0))
+            return false;
+        final long start = ((++callCount % TIMED_CALL_INTERVAL) == 0) ? System.nanoTime() : 0l;
+        long position;
+        do {
+            position = tail.get();
+            if (position - head >= CAPACITY) {
+                dropped.inc();
+                return false;
+            }
+        } while (!tail.compareAndSet(position,position+1l));
+        if (position - head == CAPACITY / 2) { //exactly one caller sees the ring reach half full, so wake the drainer early
+            final Thread thread = drainer;
+            if (thread != null)
+                LockSupport.unpark(thread);
+        }
+        final int slot = (int)position & MASK;
+        times[slot] = System.currentTimeMillis();
+        slotTemplates[slot] = template;
+        args[slot*MAX_ARGS] = arg0;
+        args[slot*MAX_ARGS+1] = arg1;
+        args[slot*MAX_ARGS+2] = arg2;
+        args[slot*MAX_ARGS+3] = arg3;
+        texts[slot] = text;
+        published.lazySet(slot,position+1l);
+        if (start != 0l)
+            callCost.record(System.nanoTime()-start);
+        return true;
+    }
+
+    /**
+     * Moves entries from the ring to the file
+     */
+    private static class Drainer implements Runnable {
+        private final OutputStream out;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final BitSet templatesWritten = new BitSet();
+        private ByteBuffer raw = ByteBuffer.allocate(SEGMENT_SIZE);
+        private byte[] compressed = new byte[SEGMENT_SIZE];
+        private long lastTime = 0l;
+        private long lastFlush = System.currentTimeMillis();
+        private long droppedReported = dropped.get();
+
+        private Drainer(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running || (head < tail.get())) {
+                    long position = head;
+                    while (published.get((int)position & MASK) == position+1l) {
+                        writeEntry((int)position & MASK);
+                        position++;
+                        if ((position & 0xFF) == 0l)
+                            head = position; //hand space back to callers as we go
+                    }
+                    head = position;
+                    writeDropped();
+                    if ((raw.position() > 0) && (System.currentTimeMillis() > lastFlush + MAX_FLUSH_INTERVAL))
+                        flush();
+                    if (running && (head == tail.get()))
+                        LockSupport.parkNanos(DRAIN_INTERVAL);
+                    else if (!running && (head < tail.get()) && (published.get((int)head & MASK) != head+1l))
+                        Thread.yield(); //a caller is still filling its slot
+                }
+                writeDropped();
+                flush();
+            } catch (IOException e) {
+                Log.e(TAG,"Unable to write to the log file: "+e.getMessage());
+                running = false;
+                head = tail.get();
+            } finally {
+                deflater.end();
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        private void writeEntry(int slot) throws IOException {
+            final Template template = slotTemplates[slot];
+            final String text = texts[slot];
+            slotTemplates[slot] = null;
+            texts[slot] = null;
+            if (!templatesWritten.get(template.id)) {
+                byte[] category = toBytes(template.category);
+                byte[] format = toBytes(template.format);
+                ensureSpace(1 + VarInt.MAX_SIZE * 3 + 2 + category.length + format.length);
+                raw.put(RECORD_TEMPLATE);
+                VarInt.put(raw,template.id);
+                raw.put((byte)template.level.ordinal());
+                raw.put((byte)((template.format == null) ? 1 : 0));
+                putBytes(category);
+                putBytes(format);
+                templatesWritten.set(template.id);
+            }
+            final byte[] textBytes = (template.format == null) ? toBytes(text) : null;
+            ensureSpace(1 + VarInt.MAX_SIZE + VarInt.MAX_LONG_SIZE * (1 + template.argCount) + ((textBytes == null) ? 0 : (VarInt.MAX_SIZE + textBytes.length)));
+            raw.put(RECORD_ENTRY);
+            VarInt.put(raw,template.id);
+            VarInt.putSignedLong(raw,times[slot]-lastTime);
+            lastTime = times[slot];
+            for (int i=0;i<template.argCount;i++) {
+                VarInt.putSignedLong(raw,args[slot*MAX_ARGS+i]);
+            }
+            if (textBytes != null)
+                putBytes(textBytes);
+            written.inc();
+        }
+
+        private void writeDropped() throws IOException {
+            final long count = dropped.get();
+            if (count != droppedReported) {
+                ensureSpace(1 + VarInt.MAX_LONG_SIZE);
+                raw.put(RECORD_DROPPED);
+                VarInt.putLong(raw,count - droppedReported);
+                droppedReported = count;
+            }
+        }
+
+        private void putBytes(byte[] bytes) {
+            VarInt.put(raw,bytes.length);
+            raw.put(bytes);
+        }
+
+        private void ensureSpace(int size) throws IOException {
+            if (raw.remaining() < size) {
+                flush();
+                if (raw.capacity() < size)
+                    raw = ByteBuffer.allocate(size);
+            }
+        }
+
+        /**
+         * Compresses what has been batched so far and writes it as a segment
+         */
+        private void flush() throws IOException {
+            lastFlush = System.currentTimeMillis();
+            if (raw.position() == 0)
+                return;
+            deflater.reset();
+            deflater.setInput(raw.array(),0,raw.position());
+            deflater.finish();
+            int length = 8;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    byte[] bigger = new byte[compressed.length*2];
+                    System.arraycopy(compressed,0,bigger,0,length);
+                    compressed = bigger;
+                }
+                length += deflater.deflate(compressed,length,compressed.length-length);
+            }
+            ByteBuffer.wrap(compressed,0,8).putInt(raw.position()).putInt(length-8);
+            out.write(compressed,0,length);
+            out.flush();
+            segments.inc();
+            raw.clear();
+            lastTime = 0l;
+        }
+    }
+
+    private static byte[] toBytes(String text) {
+        return (text == null) ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -11,25 +11,33 @@ import android.util.Log;
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import androidx.core.content.ContextCompat;
 
+/**
+ * Comms log kept for the UI (the last few entries) and, when logging is enabled, written to
+ * Documents/SqAN through BinaryLog so that callers never wait on the file. Hot paths should
+ * register a template once and log numbers against it rather than building a String each time.
+ */
 public class CommsLog {
     private final static int MAX_LOG_LENGTH = 20;
+    public final static String LOG_FILE_EXTENSION = ".sqlog";
     private static ArrayList<Entry> entries = null;
     private static File file;
-    private static FileOutputStream fos;
-    private static OutputStreamWriter oswriter;
-    private static BufferedWriter bwriter;
     private static AtomicBoolean isRunning = new AtomicBoolean(false);
+    private final static BinaryLog.Template untagged = BinaryLog.template("LOG",BinaryLog.Level.INFO,null);
+    private final static BinaryLog.Template[] tagged = new BinaryLog.Template[Entry.Category.values().length];
+
+    static {
+        for (Entry.Category category:Entry.Category.values()) {
+            tagged[category.ordinal()] = BinaryLog.template(category.name(),(category == Entry.Category.PROBLEM)?BinaryLog.Level.WARNING:BinaryLog.Level.INFO,null);
+        }
+    }
 
     public static void clear() {
         entries = null;
@@ -48,79 +56,96 @@ public class CommsLog {
                         filename.append(' ');
                         filename.append(cs);
                     }
-                    filename.append(".txt");
+                    filename.append(LOG_FILE_EXTENSION);
                     file = new File(logDir,filename.toString());
-                    file.createNewFile();
-                    fos = new FileOutputStream(file);
-                    oswriter = new OutputStreamWriter(fos);
-                    bwriter = new BufferedWriter(oswriter);
-                    isRunning.set(true);
+                    isRunning.set(BinaryLog.start(file));
                 }
             } catch (Exception e) {
                 e.printStackTrace();
                 isRunning.set(false);
             }
-            try {
-                bwriter.append("Comms log started on ");
-                bwriter.newLine();
-                bwriter.append("  ");
-                bwriter.append(Build.MANUFACTURER);
-                bwriter.append(' ');
-                bwriter.append(Build.MODEL);
+            if (isRunning.get()) {
+                StringWriter out = new StringWriter();
+                out.append("Comms log started on ");
+                out.append(Build.MANUFACTURER);
+                out.append(' ');
+                out.append(Build.MODEL);
                 SqAnDevice device = Config.getThisDevice();
                 if (device != null) {
-                    bwriter.newLine();
-                    bwriter.append("  SqAN UUID ");
-                    bwriter.append(Integer.toString(device.getUUID()));
+                    out.append(", SqAN UUID ");
+                    out.append(Integer.toString(device.getUUID()));
                 }
-                bwriter.newLine();
-                bwriter.append("  last reboot ");
-                bwriter.append(StringUtil.toDuration(SystemClock.elapsedRealtime()));
-                bwriter.append(" ago");
-                bwriter.newLine();
-                bwriter.append(" ------------------------ ");
-                bwriter.newLine();
-            } catch (Exception ignore) {
+                out.append(", last reboot ");
+                out.append(StringUtil.toDuration(SystemClock.elapsedRealtime()));
+                out.append(" ago");
+                log(out.toString());
             }
         } else
             close();
     }
 
-    public static void close() {
-        isRunning.set(false);
+    public static void close() { close(false); }
+
+    /**
+     * Stops logging
+     * @param waitForWrite true to wait however long it takes for everything logged to be written
+     */
+    private static void close(boolean waitForWrite) {
+        if (isRunning.getAndSet(false))
+            BinaryLog.log(untagged,"Logging shutdown normally");
         clear();
-        try {
-            if (bwriter != null) {
-                bwriter.append(StringUtil.getFormattedJustTime(System.currentTimeMillis()));
-                bwriter.append(": Logging shutdown normally");
-                bwriter.close();
-                bwriter = null;
-            }
-        } catch (IOException ignore) {
-        }
-        try {
-            if (oswriter != null) {
-                oswriter.close();
-                oswriter = null;
-            }
-        } catch (IOException ignore) {
-        }
-        try {
-            if (fos != null) {
-                fos.close();
-                fos = null;
-            }
-        } catch (IOException ignore) {
-        }
+        if (waitForWrite)
+            BinaryLog.stop(0l);
+        else
+            BinaryLog.stop();
     }
 
+    /**
+     * Closes the current log and starts a new one. Waits for everything logged to be written and
+     * then decodes the whole file, so this should not be called on the UI thread.
+     * @param context
+     * @return the closed log decoded to text (or null if there was no log or it could not be decoded)
+     */
     public static File getFileAndStartNew(Context context) {
         File fileToReport = file;
-        close();
+        close(true); //the whole log needs to be in the file before it is decoded
         init(context);
-        return fileToReport;
+        if ((fileToReport == null) || !fileToReport.exists())
+            return null;
+        String name = fileToReport.getName();
+        if (name.endsWith(LOG_FILE_EXTENSION))
+            name = name.substring(0,name.length()-LOG_FILE_EXTENSION.length());
+        File text = new File(fileToReport.getParentFile(),name+".txt");
+        try {
+            CommsLogDecoder.decode(fileToReport,text);
+        } catch (IOException e) {
+            Log.e(Config.TAG,"Unable to decode "+fileToReport.getName()+": "+e.getMessage());
+            return null;
+        }
+        return text;
     }
 
+    /**
+     * Registers a message for logging numbers against without building a String each time
+     * @param category
+     * @param level entries below BinaryLog's level are dropped
+     * @param format message text with {} wherever an argument goes (up to BinaryLog.MAX_ARGS)
+     * @return
+     */
+    public static BinaryLog.Template template(Entry.Category category, BinaryLog.Level level, String format) {
+        return BinaryLog.template(category.name(),level,format);
+    }
+
+    public static void log(BinaryLog.Template template) { BinaryLog.log(template); }
+
+    public static void log(BinaryLog.Template template, long arg0) { BinaryLog.log(template,arg0); }
+
+    public static void log(BinaryLog.Template template, long arg0, long arg1) { BinaryLog.log(template,arg0,arg1); }
+
+    public static void log(BinaryLog.Template template, long arg0, long arg1, long arg2) { BinaryLog.log(template,arg0,arg1,arg2); }
+
+    public static void log(BinaryLog.Template template, long arg0, long arg1, long arg2, long arg3) { BinaryLog.log(template,arg0,arg1,arg2,arg3); }
+
     public static class Entry {
         public enum Category {
             PROBLEM,
@@ -172,15 +197,8 @@ public class CommsLog {
     }
 
     public static void log(String message) {
-        if ((message != null) && isRunning.get()) {
-            if (bwriter != null) {
-                try {
-                    bwriter.append(message);
-                    bwriter.newLine();
-                } catch (Exception ignore) {
-                }
-            }
-        }
+        if ((message != null) && isRunning.get())
+            BinaryLog.log(untagged,message);
     }
 
     public static void log(Entry.Category category, String message) {
@@ -193,8 +211,8 @@ public class CommsLog {
                 entries.add(entry);
                 while (entries.size() > MAX_LOG_LENGTH)
                     entries.remove(0);
-                log(entry.toString());
             }
+            BinaryLog.log(tagged[category.ordinal()],message);
         }
     }
 
@@ -0,0 +1,171 @@
+package org.sofwerx.sqan.util;
+
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Turns a log file written by BinaryLog back into text, one entry per line. Runs without Android,
+ * so a log pulled off a device can be read with:
+ *   java -cp app/build/intermediates/javac/fullDebug/classes org.sofwerx.sqan.util.CommsLogDecoder in.sqlog [out.txt]
+ */
+public class CommsLogDecoder {
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+    private final ArrayList<TemplateDef> templates = new ArrayList<>();
+    private final StringBuilder line = new StringBuilder();
+
+    private static class TemplateDef {
+        private final String category;
+        private final String[] parts; //format split around each argument; null if entries carry their own text
+
+        private TemplateDef(String category, String format, boolean hasText) {
+            this.category = category;
+            this.parts = hasText ? null : format.split("\\{\\}",-1);
+        }
+    }
+
+    /**
+     * Decodes a log file into a text file
+     * @param in
+     * @param out
+     * @throws IOException if the log could not be read or the text could not be written
+     */
+    public static void decode(File in, File out) throws IOException {
+        try (InputStream input = new FileInputStream(in);
+             Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out),StandardCharsets.UTF_8))) {
+            new CommsLogDecoder().decode(input,output);
+        }
+    }
+
+    /**
+     * Writes each entry in the log as a line of text. A log cut short (e.g. by the app being
+     * killed mid write) is decoded up to the last complete segment.
+     * @param in
+     * @param out
+     * @throws IOException if the log is not one written by BinaryLog or the text could not be written
+     */
+    public void decode(InputStream in, Writer out) throws IOException {
+        DataInputStream input = new DataInputStream(in);
+        if ((input.readInt() != BinaryLog.MAGIC) || (input.readByte() != BinaryLog.VERSION))
+            throw new IOException("Not a SqAN binary log");
+        Inflater inflater = new Inflater();
+        try {
+            while (true) {
+                final int rawLength;
+                final byte[] compressed;
+                try {
+                    rawLength = input.readInt();
+                    compressed = new byte[input.readInt()];
+                    input.readFully(compressed);
+                } catch (EOFException e) {
+                    return;
+                }
+                byte[] raw = new byte[rawLength];
+                inflater.reset();
+                inflater.setInput(compressed);
+                try {
+                    if (inflater.inflate(raw) != rawLength)
+                        throw new IOException("Log segment is shorter than expected");
+                } catch (DataFormatException e) {
+                    throw new IOException("Log segment is corrupt: "+e.getMessage());
+                }
+                decodeSegment(ByteBuffer.wrap(raw),out);
+            }
+        } finally {
+            inflater.end();
+            out.flush();
+        }
+    }
+
+    private void decodeSegment(ByteBuffer in, Writer out) throws IOException {
+        long time = 0l;
+        while (in.hasRemaining()) {
+            final byte type = in.get();
+            switch (type) {
+                case BinaryLog.RECORD_TEMPLATE:
+                    final int id = VarInt.get(in);
+                    in.get(); //level
+                    final boolean hasText = in.get() != 0;
+                    final String category = getString(in);
+                    final String format = getString(in);
+                    while (templates.size() <= id)
+                        templates.add(null);
+                    templates.set(id,new TemplateDef(category,format,hasText));
+                    break;
+
+                case BinaryLog.RECORD_ENTRY:
+                    final int templateId = VarInt.get(in);
+                    time += VarInt.getSignedLong(in);
+                    final TemplateDef template = (templateId < templates.size()) ? templates.get(templateId) : null;
+                    if (template == null)
+                        throw new IOException("Log entry uses undefined template "+templateId);
+                    line.setLength(0);
+                    line.append(timeFormat.format(new Date(time)));
+                    line.append(" [");
+                    line.append(template.category);
+                    line.append("] ");
+                    if (template.parts == null)
+                        line.append(getString(in));
+                    else {
+                        line.append(template.parts[0]);
+                        for (int i=1;i<template.parts.length;i++) {
+                            line.append(VarInt.getSignedLong(in));
+                            line.append(template.parts[i]);
+                        }
+                    }
+                    out.append(line);
+                    out.append("\r\n");
+                    break;
+
+                case BinaryLog.RECORD_DROPPED:
+                    out.append("... ");
+                    out.append(Long.toString(VarInt.getLong(in)));
+                    out.append(" entries dropped (log could not keep up)\r\n");
+                    break;
+
+                default:
+                    throw new IOException("Unknown log record type "+type);
+            }
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        final int length = VarInt.get(in);
+        final String text = new String(in.array(),in.arrayOffset()+in.position(),length,StandardCharsets.UTF_8);
+        in.position(in.position()+length);
+        return text;
+    }
+
+    public static void main(String[] args) {
+        if ((args == null) || (args.length < 1)) {
+            System.out.println("Usage: CommsLogDecoder log.sqlog [output.txt]");
+            return;
+        }
+        try {
+            if (args.length > 1)
+                decode(new File(args[0]),new File(args[1]));
+            else {
+                try (InputStream input = new FileInputStream(args[0])) {
+                    new CommsLogDecoder().decode(input,new OutputStreamWriter(System.out,StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to decode "+args[0]+": "+e.getMessage());
+        }
+    }
+}
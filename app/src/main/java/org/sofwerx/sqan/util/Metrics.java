@@ -0,0 +1,342 @@
+package org.sofwerx.sqan.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of counters, gauges and latency histograms, reported in the Prometheus text format
+ * (see LiteWebServer's /metrics). Look a metric up once (e.g. into a static final field) and keep
+ * it; recording into it afterwards only touches LongAdders and atomic arrays so it is safe and
+ * allocation free on hot paths.
+ */
+public class Metrics {
+    private final static ConcurrentSkipListMap<String,Family> families = new ConcurrentSkipListMap<>();
+    private final static CopyOnWriteArrayList<Collector> collectors = new CopyOnWriteArrayList<>();
+
+    /**
+     * Something that always has a current value to report (e.g. a counter kept elsewhere)
+     */
+    public interface Reading {
+        long read();
+    }
+
+    /**
+     * Reports a set of samples that changes over time (e.g. one per link) when metrics are gathered
+     */
+    public interface Collector {
+        void collect(StringBuilder out);
+    }
+
+    /**
+     * Gets a counter, creating it if needed
+     * @param name metric name (e.g. sqan_tx_bytes_total)
+     * @param help description of the metric
+     * @param labels label names and values in pairs (e.g. "transport","SDR")
+     * @return
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter)getFamily(name,help,"counter").get(toLabels(labels),Counter.class);
+    }
+
+    /**
+     * Gets a gauge that is raised and lowered as things happen (e.g. items added to and taken off a queue)
+     * @param name
+     * @param help
+     * @param labels label names and values in pairs
+     * @return
+     */
+    public static Gauge gauge(String name, String help, String... labels) {
+        return (Gauge)getFamily(name,help,"gauge").get(toLabels(labels),Gauge.class);
+    }
+
+    /**
+     * Gets a histogram, creating it if needed
+     * @param name
+     * @param help
+     * @param labels label names and values in pairs
+     * @return
+     */
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram)getFamily(name,help,"histogram").get(toLabels(labels),Histogram.class);
+    }
+
+    /**
+     * Reports a value kept elsewhere as a counter (replacing any reading already registered for these labels)
+     * @param name
+     * @param help
+     * @param reading
+     * @param labels label names and values in pairs
+     */
+    public static void counter(String name, String help, Reading reading, String... labels) {
+        getFamily(name,help,"counter").put(toLabels(labels),new ReadingSeries(reading));
+    }
+
+    /**
+     * Reports a value kept elsewhere as a gauge (replacing any reading already registered for these labels)
+     * @param name
+     * @param help
+     * @param reading
+     * @param labels label names and values in pairs
+     */
+    public static void gauge(String name, String help, Reading reading, String... labels) {
+        getFamily(name,help,"gauge").put(toLabels(labels),new ReadingSeries(reading));
+    }
+
+    public static void addCollector(Collector collector) {
+        if ((collector != null) && !collectors.contains(collector))
+            collectors.add(collector);
+    }
+
+    /**
+     * Gets every metric in the Prometheus text exposition format
+     * @return
+     */
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        for (Family family:families.values()) {
+            family.write(out);
+        }
+        for (Collector collector:collectors) {
+            collector.collect(out);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Adds the HELP and TYPE lines that start a metric (for use by Collectors)
+     * @param out
+     * @param name
+     * @param help
+     * @param type counter, gauge or histogram
+     */
+    public static void appendHeader(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Adds one sample (for use by Collectors)
+     * @param out
+     * @param name
+     * @param value
+     * @param labels label names and values in pairs
+     */
+    public static void appendSample(StringBuilder out, String name, long value, String... labels) {
+        out.append(name).append(toLabels(labels)).append(' ').append(value).append('\n');
+    }
+
+    private static Family getFamily(String name, String help, String type) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(name,help,type);
+            Family existing = families.putIfAbsent(name,family);
+            if (existing != null)
+                family = existing;
+        }
+        if (!family.type.equals(type))
+            throw new IllegalArgumentException(name+" is already registered as a "+family.type);
+        return family;
+    }
+
+    private static String toLabels(String... labels) {
+        if ((labels == null) || (labels.length == 0))
+            return "";
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels must be given as name and value pairs");
+        StringBuilder sb = new StringBuilder("{");
+        for (int i=0;i<labels.length;i+=2) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(labels[i]).append("=\"");
+            String value = (labels[i+1] == null)?"":labels[i+1];
+            sb.append(value.replace("\\","\\\\").replace("\"","\\\"").replace("\n","\\n")).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * All the series (one per set of labels) reported under one metric name
+     */
+    private static class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final ConcurrentSkipListMap<String,Series> series = new ConcurrentSkipListMap<>();
+
+        private Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        private Series get(String labels, Class<? extends Series> kind) {
+            Series existing = series.get(labels);
+            if (existing == null) {
+                Series created;
+                if (kind == Histogram.class)
+                    created = new Histogram();
+                else if (kind == Gauge.class)
+                    created = new Gauge();
+                else
+                    created = new Counter();
+                existing = series.putIfAbsent(labels,created);
+                if (existing == null)
+                    existing = created;
+            }
+            if (!kind.isInstance(existing))
+                throw new IllegalArgumentException(name+labels+" is already registered as a reading");
+            return existing;
+        }
+
+        private void put(String labels, Series reading) { series.put(labels,reading); }
+
+        private void write(StringBuilder out) {
+            appendHeader(out,name,help,type);
+            for (Map.Entry<String,Series> entry:series.entrySet()) {
+                entry.getValue().write(out,name,entry.getKey());
+            }
+        }
+    }
+
+    private static abstract class Series {
+        abstract void write(StringBuilder out, String name, String labels);
+    }
+
+    private static class ReadingSeries extends Series {
+        private final Reading reading;
+
+        private ReadingSeries(Reading reading) { this.reading = reading; }
+
+        @Override
+        void write(StringBuilder out, String name, String labels) {
+            out.append(name).append(labels).append(' ').append(reading.read()).append('\n');
+        }
+    }
+
+    /**
+     * A total that only goes up
+     */
+    public static class Counter extends Series {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() { value.increment(); }
+
+        public void add(long amount) { value.add(amount); }
+
+        public long get() { return value.sum(); }
+
+        @Override
+        void write(StringBuilder out, String name, String labels) {
+            out.append(name).append(labels).append(' ').append(value.sum()).append('\n');
+        }
+    }
+
+    /**
+     * A level that goes up and down
+     */
+    public static class Gauge extends Series {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() { value.increment(); }
+
+        public void dec() { value.decrement(); }
+
+        public void add(long amount) { value.add(amount); }
+
+        public long get() { return value.sum(); }
+
+        @Override
+        void write(StringBuilder out, String name, String labels) {
+            out.append(name).append(labels).append(' ').append(value.sum()).append('\n');
+        }
+    }
+
+    /**
+     * Counts values (e.g. latencies in ms) into log-linear buckets like an HdrHistogram: each power
+     * of two is split into SUB_BUCKETS equal buckets so any value is placed within 1/SUB_BUCKETS
+     * of its true size. Reported to Prometheus with one bucket per power of two.
+     */
+    public static class Histogram extends Series {
+        private final static int SUB_BUCKET_BITS = 3;
+        private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private final static int MAX_BITS = 40; //values past 2^40 are counted in the top bucket
+        private final static int REPORTED_BITS = 24; //powers of two reported as Prometheus buckets
+        private final AtomicLongArray counts = new AtomicLongArray((MAX_BITS - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        /**
+         * Records a value (negative values are counted as 0)
+         * @param value
+         */
+        public void record(long value) {
+            if (value < 0l)
+                value = 0l;
+            counts.incrementAndGet(getIndex(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        public long getCount() { return count.sum(); }
+
+        public long getSum() { return sum.sum(); }
+
+        /**
+         * Gets the value below which a given share of recorded values fall
+         * @param percentile 0 to 100
+         * @return the upper end of the bucket holding that value (or -1 if nothing has been recorded)
+         */
+        public long getPercentile(double percentile) {
+            final long total = count.sum();
+            if (total == 0l)
+                return -1l;
+            final long target = Math.max(1l,(long)Math.ceil((double)total * percentile / 100d));
+            long seen = 0l;
+            for (int i=0;i<counts.length();i++) {
+                seen += counts.get(i);
+                if (seen >= target)
+                    return getUpperBound(i);
+            }
+            return getUpperBound(counts.length()-1);
+        }
+
+        private static int getIndex(long value) {
+            if (value < SUB_BUCKETS)
+                return (int)value;
+            final int bits = Math.min(MAX_BITS,63 - Long.numberOfLeadingZeros(value));
+            if (bits == MAX_BITS)
+                return (MAX_BITS - SUB_BUCKET_BITS + 2) * SUB_BUCKETS - 1;
+            final int shift = bits - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int)((value >> shift) & (SUB_BUCKETS - 1));
+        }
+
+        private static long getUpperBound(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            final int shift = index / SUB_BUCKETS - 1;
+            final long start = ((long)(SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+            return start + (1l << shift) - 1l;
+        }
+
+        @Override
+        void write(StringBuilder out, String name, String labels) {
+            final String prefix = labels.isEmpty()?"{":labels.substring(0,labels.length() - 1)+",";
+            long cumulative = 0l;
+            int index = 0;
+            for (int bits=0;bits<=REPORTED_BITS;bits++) {
+                final long bound = (1l << bits) - 1l; //each bucket ends just before the next power of two
+                while ((index < counts.length()) && (getUpperBound(index) <= bound)) {
+                    cumulative += counts.get(index);
+                    index++;
+                }
+                out.append(name).append("_bucket").append(prefix).append("le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(count.sum()).append('\n');
+            out.append(name).append("_sum").append(labels).append(' ').append(sum.sum()).append('\n');
+            out.append(name).append("_count").append(labels).append(' ').append(count.sum()).append('\n');
+        }
+    }
+}
@@ -20,6 +20,7 @@ import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
@@ -33,6 +34,8 @@ public class NetUtil {
     private final static int IVP4_HEADER_OFFSET_CHECKSUM = 10;
     private final static int IPV4_HEADER_OFFSET_SRC_IP = 12;
     private final static int IPV4_HEADER_OFFSET_DST_IP = 16;
+    private final static int IPV4_HEADER_MIN_SIZE = 20;
+    private final static int IPV6_HEADER_SIZE = 40;
 
     public static ConnectionType getConnectivityStatus(Context context) {
         ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -101,10 +104,24 @@ public class NetUtil {
      * @return
      */
     public static byte getChecksum(byte[] bytes) {
+        if (bytes == null)
+            return (byte)(FNV_OFFSET_BASIS & 0xFF);
+        return getChecksum(bytes,0,bytes.length);
+    }
+
+    /**
+     * Gets the checksum for part of an array
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return
+     */
+    public static byte getChecksum(byte[] bytes, int offset, int length) {
         int checksum = FNV_OFFSET_BASIS;
         if (bytes != null) {
-            for (byte b:bytes) {
-                checksum = updateChecksum(checksum,b);
+            final int end = Math.min(bytes.length,offset+length);
+            for (int i=offset;i<end;i++) {
+                checksum = updateChecksum(checksum,bytes[i]);
             }
         }
         return (byte)(checksum & 0xFF);
@@ -214,6 +231,44 @@ public class NetUtil {
         return ip;
     }
 
+    /**
+     * Parse an IP packet held within a larger array to get the destination IP address
+     * @param packet
+     * @param offset start of the IP packet
+     * @param length length of the IP packet
+     * @return
+     */
+    public static int getDestinationIpFromIpPacket(byte[] packet, int offset, int length) {
+        if ((packet == null) || (offset < 0) || (length < IPV4_HEADER_OFFSET_DST_IP + 4) || (offset + length > packet.length))
+            return SqAnDevice.BROADCAST_IP;
+        final int i = offset + IPV4_HEADER_OFFSET_DST_IP;
+        return packet[i] << 24 | (packet[i+1] & 0xFF) << 16 | (packet[i+2] & 0xFF) << 8 | (packet[i+3] & 0xFF);
+    }
+
+    /**
+     * Gets the total length of the IP packet that starts at the buffer's position (from its
+     * IPV4 total length or IPV6 payload length field) without changing the buffer's position
+     * @param packet
+     * @return the length in bytes (or -1 if the header is incomplete or not IPV4/IPV6)
+     */
+    public static int getIpPacketLength(ByteBuffer packet) {
+        if ((packet == null) || (packet.remaining() < IPV4_HEADER_MIN_SIZE))
+            return -1;
+        final int start = packet.position();
+        switch ((packet.get(start) >> 4) & 0x0F) {
+            case 4:
+                return ((packet.get(start+2) & 0xFF) << 8) | (packet.get(start+3) & 0xFF);
+
+            case 6:
+                if (packet.remaining() < IPV6_HEADER_SIZE)
+                    return -1;
+                return IPV6_HEADER_SIZE + (((packet.get(start+4) & 0xFF) << 8) | (packet.get(start+5) & 0xFF));
+
+            default:
+                return -1;
+        }
+    }
+
 
     public static enum DscpType {
         Network_Control,
@@ -239,6 +294,7 @@ public class NetUtil {
     public static DscpType getDscpType(byte dscp) {
         switch (dscp & MASK_DSCP) {
             case ((byte)0b110000):
+            case ((byte)0b111000):
                 return DscpType.Network_Control;
 
             case ((byte)0b101110):
@@ -256,7 +312,7 @@ public class NetUtil {
                 return DscpType.Real_Time_Interactive;
 
             case ((byte)0b011010):
-            case ((byte)0b0111000):
+            case ((byte)0b011100):
             case ((byte)0b011110):
                 return DscpType.Multimedia_Streaming;
 
@@ -287,17 +343,51 @@ public class NetUtil {
         }
     }
 
-    private final static byte MASK_DSCP = (byte)0b11111100;
+    private final static byte MASK_DSCP = (byte)0b00111111;
     /**
      * Parse an IP packet to get the DSCP
      * @param packet
-     * @return
+     * @return the 6 bit DSCP value
      */
     public static byte getDscpFromIpPacket(byte[] packet) {
         if ((packet == null) || (packet.length < 4))
             return Byte.MIN_VALUE;
-        byte dscpByte = packet[1];
-        return (byte)(dscpByte & MASK_DSCP);
+        return getDscp(packet[0],packet[1]);
+    }
+
+    /**
+     * Parse an IP packet held within a larger array to get the DSCP
+     * @param packet
+     * @param offset start of the IP packet
+     * @param length length of the IP packet
+     * @return the 6 bit DSCP value
+     */
+    public static byte getDscpFromIpPacket(byte[] packet, int offset, int length) {
+        if ((packet == null) || (offset < 0) || (length < 4) || (offset + length > packet.length))
+            return Byte.MIN_VALUE;
+        return getDscp(packet[offset],packet[offset+1]);
+    }
+
+    /**
+     * Parse an IP packet held in a buffer (starting at the buffer's position) to get the DSCP
+     * without changing the buffer's position
+     * @param packet
+     * @return the 6 bit DSCP value
+     */
+    public static byte getDscpFromIpPacket(ByteBuffer packet) {
+        if ((packet == null) || (packet.remaining() < 4))
+            return Byte.MIN_VALUE;
+        return getDscp(packet.get(packet.position()),packet.get(packet.position()+1));
+    }
+
+    /**
+     * The DSCP is the upper 6 bits of the IPV4 type of service byte or of the IPV6 traffic
+     * class (which straddles the first two bytes)
+     */
+    private static byte getDscp(byte first, byte second) {
+        if (((first >> 4) & 0x0F) == 6)
+            return (byte)((((first & 0x0F) << 4) | ((second & 0xF0) >> 4)) >> 2);
+        return (byte)((second & 0xFF) >> 2);
     }
 
     /**
@@ -0,0 +1,30 @@
+package org.sofwerx.sqan.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running total of the bytes handed to any transport. Kept apart from ManetOps so that the
+ * transports can count what they send without loading the Android classes ManetOps uses.
+ */
+public class TransmittedTally {
+    private final static long BYTES_TO_TX_BETWEEN_LOGGING = 1024l * 1024l;
+    private final static AtomicLong tally = new AtomicLong(0l);
+    private final static AtomicLong nextLog = new AtomicLong(0l);
+
+    /**
+     * Adds to the running total of transmitted data (from any thread)
+     * @param bytes
+     */
+    public static void add(long bytes) {
+        final long total = tally.addAndGet(bytes);
+        final long next = nextLog.get();
+        if ((total > next) && nextLog.compareAndSet(next,total + BYTES_TO_TX_BETWEEN_LOGGING))
+            CommsLog.log(CommsLog.Entry.Category.CONNECTION,StringUtil.toDataSize(total)+" transmitted");
+    }
+
+    /**
+     * Gets the total tally of bytes transmitted
+     * @return
+     */
+    public static long get() { return tally.get(); }
+}
@@ -0,0 +1,120 @@
+package org.sofwerx.sqan.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length integers (7 bits per byte, low bits first, high bit set on every byte but the
+ * last) so small values take a single byte
+ */
+public class VarInt {
+    public final static int MAX_SIZE = 5;
+    public final static int MAX_LONG_SIZE = 10;
+
+    /**
+     * Writes the value (treated as unsigned)
+     * @param out
+     * @param value
+     */
+    public static void put(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte)value);
+    }
+
+    /**
+     * Reads a value written by put
+     * @param in
+     * @return
+     * @throws IllegalArgumentException if the value runs longer than MAX_SIZE bytes
+     */
+    public static int get(ByteBuffer in) {
+        int value = 0;
+        for (int shift=0;shift<7*MAX_SIZE;shift+=7) {
+            final byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("VarInt is too long");
+    }
+
+    /**
+     * Writes a signed value so that small negative values are small too
+     * @param out
+     * @param value
+     */
+    public static void putSigned(ByteBuffer out, int value) { put(out,(value << 1) ^ (value >> 31)); }
+
+    /**
+     * Reads a value written by putSigned
+     * @param in
+     * @return
+     */
+    public static int getSigned(ByteBuffer in) {
+        final int raw = get(in);
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    /**
+     * Gets the number of bytes put() would write for this value
+     * @param value
+     * @return
+     */
+    public static int getSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a long value (treated as unsigned) in up to MAX_LONG_SIZE bytes
+     * @param out
+     * @param value
+     */
+    public static void putLong(ByteBuffer out, long value) {
+        while ((value & ~0x7Fl) != 0l) {
+            out.put((byte)((value & 0x7Fl) | 0x80l));
+            value >>>= 7;
+        }
+        out.put((byte)value);
+    }
+
+    /**
+     * Reads a value written by putLong
+     * @param in
+     * @return
+     * @throws IllegalArgumentException if the value runs longer than MAX_LONG_SIZE bytes
+     */
+    public static long getLong(ByteBuffer in) {
+        long value = 0l;
+        for (int shift=0;shift<7*MAX_LONG_SIZE;shift+=7) {
+            final byte b = in.get();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("VarInt is too long");
+    }
+
+    /**
+     * Writes a signed long value so that small negative values are small too
+     * @param out
+     * @param value
+     */
+    public static void putSignedLong(ByteBuffer out, long value) { putLong(out,(value << 1) ^ (value >> 63)); }
+
+    /**
+     * Reads a value written by putSignedLong
+     * @param in
+     * @return
+     */
+    public static long getSignedLong(ByteBuffer in) {
+        final long raw = getLong(in);
+        return (raw >>> 1) ^ -(raw & 1l);
+    }
+}
@@ -0,0 +1,342 @@
+package org.sofwerx.sqan.vpn;
+
+import org.sofwerx.sqan.util.NetUtil;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compresses the IPV4/UDP/TCP headers of VPN traffic in the style of ROHC (RFC 3095/6846). For
+ * each flow (addresses, protocol and ports) a context holding the full headers is set up on both
+ * ends by an IR unit (the whole packet plus a context ID); after that, packets in the flow only
+ * carry the header fields that change from packet to packet:
+ *
+ *   IR:           [TYPE_IR][cid][length][IP packet]
+ *   CO:           [TYPE_CO | TYPE_CO_IPID_RAW][cid][crc8][IP ID][rest length][changing fields][payload]
+ *   Uncompressed: [TYPE_UNCOMPRESSED][length][IP packet]
+ *
+ * where the changing fields are the UDP checksum or the TCP sequence, ack, flags, window,
+ * checksum, urgent pointer (only if URG is set) and options. The IP ID is sent as an offset from
+ * the context's reference (so a lost packet does not throw off the next one), the IP total
+ * length, UDP length and IP checksum are rebuilt from the rest, and the CRC over the rebuilt
+ * headers lets the decompressor catch a damaged context.
+ *
+ * Contexts are kept per SqAN destination. Like ROHC's unidirectional mode, every context is
+ * refreshed with an IR periodically, so a receiver that missed an IR (or joined late) resyncs
+ * on its own without needing a return channel.
+ */
+public class HeaderCompressor {
+    final static byte TYPE_UNCOMPRESSED = 0x00;
+    final static byte TYPE_IR = 0x01;
+    final static byte TYPE_CO = 0x02; //IP ID sent as a one byte offset from the reference
+    final static byte TYPE_CO_IPID_RAW = 0x03; //IP ID sent in full
+    final static int MAX_CONTEXTS = 256;
+    final static int IPV4_HEADER_SIZE = 20;
+    final static int UDP_HEADER_SIZE = 8;
+    final static int TCP_MIN_HEADER_SIZE = 20;
+    final static int PROTOCOL_TCP = 6;
+    final static int PROTOCOL_UDP = 17;
+    final static int TCP_FLAG_URG = 0x20;
+    private final static int IR_REFRESH_PACKETS = 32; //packets between IR refreshes of a context
+    private final static long IR_REFRESH_TIME = 1000l * 2l; //max time between IR refreshes of a context
+    private final static int[] CRC8_TABLE = new int[256];
+    private final HashMap<Integer,FlowTable> tables = new HashMap<>();
+    private final byte[] scratch = new byte[IPV4_HEADER_SIZE];
+    private byte[] out = new byte[2048];
+    private int outLength;
+    private long bytesIn = 0l;
+    private long bytesOut = 0l;
+    private long packetsCompressed = 0l;
+    private long packetsRefreshed = 0l;
+    private long packetsUncompressed = 0l;
+
+    static {
+        for (int i=0;i<256;i++) {
+            int crc = i;
+            for (int bit=0;bit<8;bit++) {
+                crc = ((crc & 0x80) != 0)?((crc << 1) ^ 0x07):(crc << 1);
+            }
+            CRC8_TABLE[i] = crc & 0xFF;
+        }
+    }
+
+    /**
+     * Compresses the headers of the IP packet(s)
+     * @param destination SqAN UUID of the destination (contexts are kept per destination)
+     * @param packets one or more IP packets back to back
+     * @param length
+     * @return the compressed packets
+     */
+    public byte[] compress(int destination, byte[] packets, int length) {
+        return compress(destination,packets,length,System.currentTimeMillis());
+    }
+
+    /**
+     * Compresses the headers of the IP packet(s) as of a given time (used when replaying captures)
+     */
+    synchronized byte[] compress(int destination, byte[] packets, int length, long now) {
+        FlowTable table = tables.get(destination);
+        if (table == null) {
+            table = new FlowTable();
+            tables.put(destination,table);
+        }
+        outLength = 0;
+        int offset = 0;
+        while (offset < length) {
+            int size = getIpv4Length(packets,offset,length - offset);
+            if ((size <= 0) || (size > length - offset))
+                size = length - offset; //not a packet that can be compressed; pass the rest along as is
+            compressOne(table,packets,offset,size,now);
+            offset += size;
+        }
+        bytesIn += length;
+        bytesOut += outLength;
+        return Arrays.copyOf(out,outLength);
+    }
+
+    private void compressOne(FlowTable table, byte[] in, int off, int len, long now) {
+        final int headerLength = getCompressibleHeaderLength(in,off,len);
+        if (headerLength < 0) {
+            ensureRoom(4 + len);
+            out[outLength++] = TYPE_UNCOMPRESSED;
+            writeLength(len);
+            append(in,off,len);
+            packetsUncompressed++;
+            return;
+        }
+        final boolean tcp = in[off+9] == PROTOCOL_TCP;
+        final long key = getFlowKey(in,off);
+        Context context = table.byKey.get(key);
+        if ((context != null) && !context.hasSameStaticFields(in,off,headerLength))
+            context = null; //a different flow that happens to have the same key (or the flow's static fields changed)
+        final int ipId = ((in[off+4] & 0xFF) << 8) | (in[off+5] & 0xFF);
+        if ((context == null) || (context.packetsSinceRefresh >= IR_REFRESH_PACKETS) || (now - context.refreshedAt >= IR_REFRESH_TIME)) {
+            if (context == null)
+                context = table.allocate(key);
+            context.set(in,off,headerLength,ipId,now);
+            ensureRoom(5 + len);
+            out[outLength++] = TYPE_IR;
+            out[outLength++] = (byte)context.cid;
+            writeLength(len);
+            append(in,off,len);
+            context.lastUsed = now;
+            packetsRefreshed++;
+            return;
+        }
+        context.packetsSinceRefresh++;
+        context.lastUsed = now;
+        final int t = off + IPV4_HEADER_SIZE;
+        final int idOffset = (ipId - context.ipIdRef) & 0xFFFF;
+        final int dynamicLength = tcp?getTcpDynamicLength(in,t,headerLength - IPV4_HEADER_SIZE):2;
+        final int payloadLength = len - headerLength;
+        ensureRoom(9 + dynamicLength + payloadLength);
+        if (idOffset < 0x100) {
+            out[outLength++] = TYPE_CO;
+            out[outLength++] = (byte)context.cid;
+            out[outLength++] = (byte)crc8(in,off,headerLength);
+            out[outLength++] = (byte)idOffset;
+        } else {
+            out[outLength++] = TYPE_CO_IPID_RAW;
+            out[outLength++] = (byte)context.cid;
+            out[outLength++] = (byte)crc8(in,off,headerLength);
+            out[outLength++] = in[off+4];
+            out[outLength++] = in[off+5];
+        }
+        writeLength(dynamicLength + payloadLength);
+        if (tcp) {
+            append(in,t+4,8); //sequence and ack
+            out[outLength++] = in[t+13]; //flags
+            append(in,t+14,4); //window and checksum
+            if ((in[t+13] & TCP_FLAG_URG) != 0)
+                append(in,t+18,2);
+            append(in,t+TCP_MIN_HEADER_SIZE,headerLength - IPV4_HEADER_SIZE - TCP_MIN_HEADER_SIZE); //options
+        } else
+            append(in,t+6,2); //checksum
+        append(in,off+headerLength,payloadLength);
+        packetsCompressed++;
+    }
+
+    /**
+     * Gets the number of changing TCP header bytes sent in a CO unit
+     */
+    static int getTcpDynamicLength(byte[] in, int tcpOffset, int tcpHeaderLength) {
+        return 13 + (((in[tcpOffset+13] & TCP_FLAG_URG) != 0)?2:0) + (tcpHeaderLength - TCP_MIN_HEADER_SIZE);
+    }
+
+    /**
+     * Gets the length of the IPV4/UDP or IPV4/TCP headers if this packet can be compressed
+     * @return the header length or -1 if the packet can't be compressed
+     */
+    int getCompressibleHeaderLength(byte[] in, int off, int len) {
+        if ((len < IPV4_HEADER_SIZE + UDP_HEADER_SIZE) || (((in[off] >> 4) & 0x0F) != 4))
+            return -1;
+        System.arraycopy(in,off,scratch,0,IPV4_HEADER_SIZE);
+        if ((NetUtil.getHeaderLength(scratch) != IPV4_HEADER_SIZE) || (getIpv4Length(in,off,len) != len))
+            return -1; //IP options or a length mismatch
+        if ((((in[off+6] & 0x3F) << 8) | (in[off+7] & 0xFF)) != 0)
+            return -1; //fragment
+        //the IP checksum is rebuilt by the decompressor, so it has to be correct to begin with
+        NetUtil.updateIpv4Checksum(scratch);
+        if ((scratch[10] != in[off+10]) || (scratch[11] != in[off+11]))
+            return -1;
+        switch (in[off+9]) {
+            case PROTOCOL_UDP:
+                if (((((in[off+24] & 0xFF) << 8) | (in[off+25] & 0xFF))) != len - IPV4_HEADER_SIZE)
+                    return -1;
+                return IPV4_HEADER_SIZE + UDP_HEADER_SIZE;
+
+            case PROTOCOL_TCP:
+                if (len < IPV4_HEADER_SIZE + TCP_MIN_HEADER_SIZE)
+                    return -1;
+                final int tcpHeaderLength = ((in[off+IPV4_HEADER_SIZE+12] >> 4) & 0x0F) * 4;
+                if ((tcpHeaderLength < TCP_MIN_HEADER_SIZE) || (IPV4_HEADER_SIZE + tcpHeaderLength > len))
+                    return -1;
+                return IPV4_HEADER_SIZE + tcpHeaderLength;
+
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Gets the IPV4 total length
+     * @return the length or -1 if this is not an IPV4 packet
+     */
+    static int getIpv4Length(byte[] in, int off, int available) {
+        if ((available < IPV4_HEADER_SIZE) || (((in[off] >> 4) & 0x0F) != 4))
+            return -1;
+        return ((in[off+2] & 0xFF) << 8) | (in[off+3] & 0xFF);
+    }
+
+    /**
+     * Builds a lookup key for the flow from its addresses, protocol and ports
+     */
+    private static long getFlowKey(byte[] in, int off) {
+        long key = 17l;
+        for (int i=12;i<20;i++) {
+            key = key * 31l + (in[off+i] & 0xFF);
+        }
+        key = key * 31l + (in[off+9] & 0xFF);
+        for (int i=IPV4_HEADER_SIZE;i<IPV4_HEADER_SIZE+4;i++) {
+            key = key * 31l + (in[off+i] & 0xFF);
+        }
+        return key;
+    }
+
+    static int crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i=offset;i<offset+length;i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    private void writeLength(int length) {
+        while (length >= 0x80) {
+            out[outLength++] = (byte)((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out[outLength++] = (byte)length;
+    }
+
+    private void append(byte[] in, int off, int len) {
+        System.arraycopy(in,off,out,outLength,len);
+        outLength += len;
+    }
+
+    private void ensureRoom(int needed) {
+        if (outLength + needed > out.length)
+            out = Arrays.copyOf(out,Math.max(out.length * 2,outLength + needed));
+    }
+
+    public synchronized long getBytesIn() { return bytesIn; }
+
+    public synchronized long getBytesOut() { return bytesOut; }
+
+    public synchronized long getPacketsCompressed() { return packetsCompressed; }
+
+    public synchronized long getPacketsRefreshed() { return packetsRefreshed; }
+
+    public synchronized long getPacketsUncompressed() { return packetsUncompressed; }
+
+    /**
+     * Gets the compressed size as a fraction of the original size
+     * @return
+     */
+    public synchronized float getCompressionRatio() {
+        if (bytesIn == 0l)
+            return 1f;
+        return ((float)bytesOut)/((float)bytesIn);
+    }
+
+    /**
+     * The contexts for all the flows headed to one destination
+     */
+    private static class FlowTable {
+        private final Context[] contexts = new Context[MAX_CONTEXTS];
+        private final HashMap<Long,Context> byKey = new HashMap<>();
+        private int nextCid = 0;
+
+        /**
+         * Gets a context for a new flow, reusing the least recently used one if they are all taken
+         */
+        private Context allocate(long key) {
+            Context context;
+            if (nextCid < MAX_CONTEXTS) {
+                context = new Context(nextCid);
+                contexts[nextCid++] = context;
+            } else {
+                context = contexts[0];
+                for (Context candidate:contexts) {
+                    if (candidate.lastUsed < context.lastUsed)
+                        context = candidate;
+                }
+                byKey.remove(context.key);
+            }
+            context.key = key;
+            byKey.put(key,context);
+            return context;
+        }
+    }
+
+    private static class Context {
+        private final int cid;
+        private final byte[] header = new byte[IPV4_HEADER_SIZE + 60];
+        private int headerLength;
+        private int ipIdRef;
+        private long key;
+        private int packetsSinceRefresh;
+        private long refreshedAt;
+        private long lastUsed;
+
+        private Context(int cid) { this.cid = cid; }
+
+        private void set(byte[] in, int off, int headerLength, int ipId, long now) {
+            System.arraycopy(in,off,header,0,headerLength);
+            this.headerLength = headerLength;
+            ipIdRef = ipId;
+            packetsSinceRefresh = 0;
+            refreshedAt = now;
+        }
+
+        /**
+         * Do the fields that are not sent in a CO unit match this context
+         */
+        private boolean hasSameStaticFields(byte[] in, int off, int headerLength) {
+            if (headerLength != this.headerLength)
+                return false;
+            //version, IHL, TOS then flags, fragment offset, TTL, protocol then addresses and ports
+            if ((header[0] != in[off]) || (header[1] != in[off+1]))
+                return false;
+            for (int i=6;i<10;i++) {
+                if (header[i] != in[off+i])
+                    return false;
+            }
+            for (int i=12;i<IPV4_HEADER_SIZE+4;i++) {
+                if (header[i] != in[off+i])
+                    return false;
+            }
+            return (header[9] != PROTOCOL_TCP) || (header[IPV4_HEADER_SIZE+12] == in[off+IPV4_HEADER_SIZE+12]); //TCP data offset
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.sofwerx.sqan.vpn;
+
+import org.sofwerx.sqan.util.NetUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Rebuilds the IP packets compressed by a HeaderCompressor. Contexts are kept for each
+ * origin/destination pair (which matches the compressor keeping a set of contexts for each
+ * destination). If a CO unit refers to a context this end does not have, or the CRC shows the
+ * rebuilt headers do not match the original, the context is dropped and packets for it are
+ * discarded until the compressor's next IR refresh sets it up again.
+ */
+public class HeaderDecompressor {
+    private final static int IPV4_HEADER_SIZE = HeaderCompressor.IPV4_HEADER_SIZE;
+    private final HashMap<Long,byte[][]> contextSets = new HashMap<>();
+    private final HashMap<Long,int[]> ipIdRefSets = new HashMap<>();
+    private byte[] out = new byte[2048];
+    private int outLength;
+    private long packetsRestored = 0l;
+    private long packetsDropped = 0l;
+    private long contextFailures = 0l;
+
+    /**
+     * Decompresses the data from a compressed VpnPacket
+     * @param origin SqAN UUID of the sender
+     * @param destination SqAN UUID of the destination (as addressed by the sender)
+     * @param in the compressed data (position to limit)
+     * @return the IP packets back to back (may be empty if everything had to be dropped) or null if the data could not be read
+     */
+    public synchronized ByteBuffer decompress(int origin, int destination, ByteBuffer in) {
+        if (in == null)
+            return null;
+        final long pair = (((long)origin) << 32) | (destination & 0xFFFFFFFFl);
+        byte[][] contexts = contextSets.get(pair);
+        int[] ipIdRefs = ipIdRefSets.get(pair);
+        if (contexts == null) {
+            contexts = new byte[HeaderCompressor.MAX_CONTEXTS][];
+            ipIdRefs = new int[HeaderCompressor.MAX_CONTEXTS];
+            contextSets.put(pair,contexts);
+            ipIdRefSets.put(pair,ipIdRefs);
+        }
+        outLength = 0;
+        ByteBuffer src = in.duplicate();
+        try {
+            while (src.hasRemaining()) {
+                final byte type = src.get();
+                switch (type) {
+                    case HeaderCompressor.TYPE_UNCOMPRESSED:
+                        copy(src,readLength(src));
+                        packetsRestored++;
+                        break;
+
+                    case HeaderCompressor.TYPE_IR:
+                        final int irCid = src.get() & 0xFF;
+                        final int irLength = readLength(src);
+                        final int start = outLength;
+                        copy(src,irLength);
+                        final int headerLength = getHeaderLength(out,start,irLength);
+                        if (headerLength > 0) {
+                            contexts[irCid] = Arrays.copyOfRange(out,start,start+headerLength);
+                            ipIdRefs[irCid] = ((out[start+4] & 0xFF) << 8) | (out[start+5] & 0xFF);
+                        } else
+                            contexts[irCid] = null;
+                        packetsRestored++;
+                        break;
+
+                    case HeaderCompressor.TYPE_CO:
+                    case HeaderCompressor.TYPE_CO_IPID_RAW:
+                        final int cid = src.get() & 0xFF;
+                        final int crc = src.get() & 0xFF;
+                        int ipId;
+                        if (type == HeaderCompressor.TYPE_CO)
+                            ipId = (ipIdRefs[cid] + (src.get() & 0xFF)) & 0xFFFF;
+                        else
+                            ipId = src.getShort() & 0xFFFF;
+                        final int restLength = readLength(src);
+                        if (restLength > src.remaining())
+                            return null;
+                        final int next = src.position() + restLength;
+                        if ((contexts[cid] == null) || !restore(contexts[cid],ipId,crc,src,restLength)) {
+                            if (contexts[cid] != null) {
+                                contexts[cid] = null; //wait for the next IR to resync
+                                contextFailures++;
+                            }
+                            packetsDropped++;
+                        } else
+                            packetsRestored++;
+                        src.position(next);
+                        break;
+
+                    default:
+                        return null;
+                }
+            }
+        } catch (RuntimeException e) {
+            return null; //truncated or damaged data
+        }
+        return ByteBuffer.wrap(Arrays.copyOf(out,outLength));
+    }
+
+    /**
+     * Rebuilds one packet from its context and the changing fields
+     * @return false if the rebuilt headers do not pass the CRC
+     */
+    private boolean restore(byte[] context, int ipId, int crc, ByteBuffer src, int restLength) {
+        final int headerLength = context.length;
+        final boolean tcp = context[9] == HeaderCompressor.PROTOCOL_TCP;
+        final int start = outLength;
+        ensureRoom(headerLength + restLength);
+        System.arraycopy(context,0,out,start,headerLength);
+        final int t = start + IPV4_HEADER_SIZE;
+        int dynamicLength;
+        if (tcp) {
+            src.get(out,t+4,8); //sequence and ack
+            out[t+13] = src.get(); //flags
+            src.get(out,t+14,4); //window and checksum
+            if ((out[t+13] & HeaderCompressor.TCP_FLAG_URG) != 0)
+                src.get(out,t+18,2);
+            else {
+                out[t+18] = 0;
+                out[t+19] = 0;
+            }
+            src.get(out,t+HeaderCompressor.TCP_MIN_HEADER_SIZE,headerLength - IPV4_HEADER_SIZE - HeaderCompressor.TCP_MIN_HEADER_SIZE); //options
+            dynamicLength = HeaderCompressor.getTcpDynamicLength(out,t,headerLength - IPV4_HEADER_SIZE);
+        } else {
+            src.get(out,t+6,2);
+            dynamicLength = 2;
+        }
+        final int payloadLength = restLength - dynamicLength;
+        if (payloadLength < 0)
+            return false;
+        src.get(out,start+headerLength,payloadLength);
+        final int length = headerLength + payloadLength;
+        out[start+2] = (byte)(length >> 8);
+        out[start+3] = (byte)length;
+        out[start+4] = (byte)(ipId >> 8);
+        out[start+5] = (byte)ipId;
+        if (!tcp) {
+            final int udpLength = length - IPV4_HEADER_SIZE;
+            out[t+4] = (byte)(udpLength >> 8);
+            out[t+5] = (byte)udpLength;
+        }
+        byte[] ipHeader = Arrays.copyOfRange(out,start,start+IPV4_HEADER_SIZE);
+        NetUtil.updateIpv4Checksum(ipHeader);
+        out[start+10] = ipHeader[10];
+        out[start+11] = ipHeader[11];
+        if (HeaderCompressor.crc8(out,start,headerLength) != crc)
+            return false;
+        outLength = start + length;
+        return true;
+    }
+
+    /**
+     * Gets the header length to keep as a context from an IR packet
+     * @return the length or -1 if the packet is not one the compressor would build a context from
+     */
+    private static int getHeaderLength(byte[] packet, int off, int len) {
+        if ((len < IPV4_HEADER_SIZE + HeaderCompressor.UDP_HEADER_SIZE) || (packet[off] != 0x45))
+            return -1;
+        if (packet[off+9] == HeaderCompressor.PROTOCOL_UDP)
+            return IPV4_HEADER_SIZE + HeaderCompressor.UDP_HEADER_SIZE;
+        if ((packet[off+9] == HeaderCompressor.PROTOCOL_TCP) && (len >= IPV4_HEADER_SIZE + HeaderCompressor.TCP_MIN_HEADER_SIZE)) {
+            final int tcpHeaderLength = ((packet[off+IPV4_HEADER_SIZE+12] >> 4) & 0x0F) * 4;
+            if ((tcpHeaderLength >= HeaderCompressor.TCP_MIN_HEADER_SIZE) && (IPV4_HEADER_SIZE + tcpHeaderLength <= len))
+                return IPV4_HEADER_SIZE + tcpHeaderLength;
+        }
+        return -1;
+    }
+
+    private static int readLength(ByteBuffer src) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = src.get();
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+            if (shift > 28)
+                throw new IllegalArgumentException("Bad length");
+        } while ((b & 0x80) != 0);
+        return length;
+    }
+
+    private void copy(ByteBuffer src, int length) {
+        ensureRoom(length);
+        src.get(out,outLength,length);
+        outLength += length;
+    }
+
+    private void ensureRoom(int needed) {
+        if (outLength + needed > out.length)
+            out = Arrays.copyOf(out,Math.max(out.length * 2,outLength + needed));
+    }
+
+    /**
+     * Forgets all contexts from this origin (i.e. when the device drops off the mesh)
+     * @param origin
+     */
+    public synchronized void forget(int origin) {
+        contextSets.keySet().removeIf(pair -> (int)(pair >> 32) == origin);
+        ipIdRefSets.keySet().removeIf(pair -> (int)(pair >> 32) == origin);
+    }
+
+    public synchronized long getPacketsRestored() { return packetsRestored; }
+
+    public synchronized long getPacketsDropped() { return packetsDropped; }
+
+    public synchronized long getContextFailures() { return contextFailures; }
+}
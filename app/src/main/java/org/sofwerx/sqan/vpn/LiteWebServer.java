@@ -4,6 +4,7 @@ import android.util.Log;
 
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.util.Metrics;
 
 import java.io.IOException;
 import java.util.HashMap;
@@ -16,6 +17,8 @@ public class LiteWebServer {
     private final static String TAG = "SqAN.WS";
     private WebServer server;
     public final static int PORT = 8080;
+    private final static String METRICS_URI = "/metrics";
+    private final static String METRICS_MIME_TYPE = "text/plain; version=0.0.4; charset=utf-8";
 
     public LiteWebServer() {
         server = new WebServer();
@@ -41,6 +44,8 @@ public class LiteWebServer {
         public Response serve(IHTTPSession session) {
             Method method = session.getMethod();
             Log.d(TAG,"Method: "+method.name());
+            if (METRICS_URI.equals(session.getUri()))
+                return newFixedLengthResponse(Response.Status.OK,METRICS_MIME_TYPE,Metrics.toPrometheus());
             SqAnDevice device = Config.getThisDevice();
             if (device == null)
                 return null;
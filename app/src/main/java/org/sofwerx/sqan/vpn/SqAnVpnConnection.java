@@ -3,31 +3,33 @@ package org.sofwerx.sqan.vpn;
 import android.app.PendingIntent;
 import android.net.VpnService;
 import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.util.Log;
 
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.SqAnService;
+import org.sofwerx.sqan.ManetOps;
+import org.sofwerx.sqan.manet.common.RouteCache;
 import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.VpnForwardValue;
 import org.sofwerx.sqan.manet.common.packet.PacketHeader;
 import org.sofwerx.sqan.manet.common.packet.VpnPacket;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
 import org.sofwerx.sqan.util.AddressUtil;
+import org.sofwerx.sqan.util.Metrics;
 import org.sofwerx.sqan.util.NetUtil;
-import org.sofwerx.sqandr.util.StringUtils;
 
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SqAnVpnConnection implements Runnable {
     private final static String TAG = Config.TAG+".Vpn";
     private static final int SIZE_TO_ROUTE_WIFI_ONLY = 256; //byte size to be considered too large and should be sent over broad pipes only
     private static final int MAX_PACKET_SIZE = Short.MAX_VALUE; //Max packet size cannot exceed MTU constraint of Short
-    private static final long IDLE_INTERVAL_MS = TimeUnit.MILLISECONDS.toMillis(100);
     private final VpnService vpnService;
     private SqAnService sqAnService;
     private SqAnDevice thisDevice;
@@ -35,7 +37,9 @@ public class SqAnVpnConnection implements Runnable {
     private final int id;
     private PendingIntent configureIntent;
     private OnEstablishListener listener;
-    private final AtomicBoolean keepGoing = new AtomicBoolean(true);
+    private SqAnDevice lastDevice; //last destination looked up (only used by the pump thread)
+    private int lastDeviceIp;
+    private final HeaderCompressor compressor = new HeaderCompressor(); //only used by the pump thread
 
     public interface OnEstablishListener {
         void onEstablish(ParcelFileDescriptor tunInterface);
@@ -66,6 +70,11 @@ public class SqAnVpnConnection implements Runnable {
         else
             thisDeviceIp = AddressUtil.getSqAnVpnIpv4Address(thisDevice.getUUID());
         id = connectionId;
+        Metrics.counter("sqan_vpn_compressor_bytes_total","VPN packet bytes before and after header compression",compressor::getBytesIn,"stage","in");
+        Metrics.counter("sqan_vpn_compressor_bytes_total","VPN packet bytes before and after header compression",compressor::getBytesOut,"stage","out");
+        Metrics.counter("sqan_vpn_compressor_packets_total","VPN packets by how their headers were sent",compressor::getPacketsCompressed,"result","compressed");
+        Metrics.counter("sqan_vpn_compressor_packets_total","VPN packets by how their headers were sent",compressor::getPacketsRefreshed,"result","refreshed");
+        Metrics.counter("sqan_vpn_compressor_packets_total","VPN packets by how their headers were sent",compressor::getPacketsUncompressed,"result","uncompressed");
     }
 
     public void setConfigureIntent(PendingIntent intent) {
@@ -84,98 +93,167 @@ public class SqAnVpnConnection implements Runnable {
             return;
         }
 
-        FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+        //forwarded packets have their addresses rewritten one at a time, so they are not batched
+        final int maxBatchBytes;
+        if (Config.isVpnForwardIps())
+            maxBatchBytes = 0;
+        else if (Config.isLargeDataWiFiOnly())
+            maxBatchBytes = SIZE_TO_ROUTE_WIFI_ONLY; //keep small packets small enough for the narrow pipes
+        else
+            maxBatchBytes = Config.getMtuSize();
+        VpnPump pump = new VpnPump(new TunInterface(pfd),this::send,MAX_PACKET_SIZE,maxBatchBytes);
+        pump.run();
+        Log.d(getTag(),pump.getPacketsRead()+" packets read from the VPN and sent in "+pump.getBatchesSent()+" bursts");
+        if (compressor.getBytesIn() > 0l)
+            Log.d(getTag(),"VPN header compression sent "+compressor.getBytesOut()+"b for "+compressor.getBytesIn()+"b of IP packets ("+compressor.getPacketsCompressed()+" compressed, "+compressor.getPacketsRefreshed()+" context refreshes)");
 
-        ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        try {
+            pfd.close();
+        } catch (IOException e) {
+            Log.e(getTag(), "Unable to close interface", e);
+        }
+    }
 
-        while (keepGoing.get()) {
-            boolean idle = true;
-            try {
-                int length = in.read(packet.array());
-                if (length > 0) {
-                    packet.limit(length);
-                    packet.rewind();
-                    byte[] rawBytes = new byte[length];
-                    packet.get(rawBytes);
-                    VpnPacket outgoing = new VpnPacket(new PacketHeader(thisDevice.getUUID()));
-                    int destinationIp = NetUtil.getDestinationIpFromIpPacket(rawBytes);
+    /**
+     * Sends a batch of one or more IP packets read from the VPN interface over SqAN
+     * @param rawBytes
+     * @param destinationIp
+     * @param packetCount
+     */
+    private void send(byte[] rawBytes, int destinationIp, int packetCount) {
+        if (Config.isIgnoringPacketsTo0000() && (destinationIp == 0))
+            return;
+        SqAnDevice device = findDevice(destinationIp);
+        if ((packetCount > 1) && ((device == null) || !device.isVpnBatchesSupported())) {
+            sendSeparately(rawBytes,destinationIp);
+            return;
+        }
+        VpnPacket outgoing = new VpnPacket(new PacketHeader(thisDevice.getUUID()));
+        if (Config.isVpnForwardIps() && (packetCount == 1)) {
+            int sourceIp = NetUtil.getSourceIpFromIpPacket(rawBytes);
+            if (sourceIp != thisDeviceIp) {
+                VpnForwardValue forwardValue = thisDevice.getOrAddIpForwardAddress(sourceIp,Config.isVpnAutoAdd());
+                if (forwardValue == null) {
+                    Log.d(getTag(),"Packet from "+AddressUtil.intToIpv4String(sourceIp)+" was blocked from forwarding traffic as it is not on the list of forwarding IP addresses.");
+                    return;
+                }
+                outgoing.setForwardValue(forwardValue);
+                int newSource = AddressUtil.getSqAnVpnIpvForwardingAddress(thisDevice.getUUID(), forwardValue);
+                NetUtil.changeIpv4HeaderSrc(rawBytes, newSource);
+                Log.d(getTag(), "Forwarding a packet from " + AddressUtil.intToIpv4String(sourceIp) + " (altering to appear from " + AddressUtil.intToIpv4String(newSource) + ")");
+                if (device == null)
+                    swapIpInPayload(rawBytes, sourceIp, newSource);
+            }
+        }
 
-                    SqAnDevice device = SqAnDevice.findByIpv4IP(destinationIp);
-                    if (!Config.isIgnoringPacketsTo0000() || (destinationIp != 0)) {
-                        if (Config.isVpnForwardIps()) {
-                            int sourceIp = NetUtil.getSourceIpFromIpPacket(rawBytes);
-                            if (sourceIp != thisDeviceIp) {
-                                VpnForwardValue forwardValue = thisDevice.getOrAddIpForwardAddress(sourceIp,Config.isVpnAutoAdd());
-                                if (forwardValue == null) {
-                                    Log.d(getTag(),"Packet from "+AddressUtil.intToIpv4String(sourceIp)+" was blocked from forwarding traffic as it is not on the list of forwarding IP addresses.");
-                                    outgoing = null;
-                                } else {
-                                    outgoing.setForwardValue(forwardValue);
-                                    int newSource = AddressUtil.getSqAnVpnIpvForwardingAddress(thisDevice.getUUID(), forwardValue);
-                                    NetUtil.changeIpv4HeaderSrc(rawBytes, newSource);
-                                    Log.d(getTag(), "Forwarding a packet from " + AddressUtil.intToIpv4String(sourceIp) + " (altering to appear from " + AddressUtil.intToIpv4String(newSource) + ")");
-                                    if (device == null)
-                                        swapIpInPayload(rawBytes, sourceIp, newSource);
-                                }
-                            }
-                        }
+        if (destinationIp != SqAnDevice.BROADCAST_IP) {
+            if (device == null)
+                Log.d(getTag(), "VpnPacket destined for an IP address (" + AddressUtil.intToIpv4String(destinationIp)+ ") that I do not recognize - broadcasting this message to all devices");
+            else {
+                Log.d(getTag(), "VpnPacket ("+packetCount+" IP packets, "+rawBytes.length+"b) being sent to " + device.getLabel());
+                outgoing.setDestination(device.getUUID());
+            }
+        }
+        if (!outgoing.isForwarded() && isCompressionWanted(device,rawBytes.length)) {
+            rawBytes = compressor.compress(outgoing.getSqAnDestination(),rawBytes,rawBytes.length);
+            outgoing.setCompressed(true);
+        }
+        outgoing.setData(rawBytes);
+        if (Config.isLargeDataWiFiOnly() && (rawBytes.length > SIZE_TO_ROUTE_WIFI_ONLY))
+            outgoing.setHighPerformanceNeeded(true);
+        sqAnService.burst(outgoing);
+    }
 
-                        if (outgoing != null) {
-                            NetUtil.PacketType type = NetUtil.getPacketType(rawBytes);
-                            byte dscp = NetUtil.getDscpFromIpPacket(rawBytes); //TODO for future routing decisions
-                            int srcPort = NetUtil.getSourcePort(rawBytes);
-                            int destPort = NetUtil.getDestinationPort(rawBytes);
+    /**
+     * Sends each IP packet in a batch as its own VpnPacket, for destinations that may be running a
+     * build that can't split batches apart (including broadcasts, which any device may receive)
+     * @param rawBytes
+     * @param destinationIp
+     */
+    private void sendSeparately(byte[] rawBytes, int destinationIp) {
+        ByteBuffer view = ByteBuffer.wrap(rawBytes);
+        while (view.hasRemaining()) {
+            final int length = NetUtil.getIpPacketLength(view);
+            if ((length <= 0) || (length > view.remaining()))
+                return;
+            byte[] packet = new byte[length];
+            view.get(packet);
+            send(packet,destinationIp,1);
+        }
+    }
 
-                            //FIXME for testing
-                            String ipAdd = AddressUtil.intToIpv4String(destinationIp);
-                            String port = Integer.toString(destPort);
-                            Log.d(TAG,"VpnPkt out to SqAN ("+ipAdd+":"+port+"): "+new String(rawBytes,StandardCharsets.US_ASCII));
-                            Log.d(TAG,"VpnPkt out to SqAN ("+ipAdd+":"+port+"): "+StringUtils.toHex(rawBytes));
-                            //FIXME for testing
+    /**
+     * Should the headers of VPN traffic to this device be compressed, based on whether the device
+     * has said it can restore them and the transport the traffic is likely to take
+     * @param device destination (or null if broadcast or unknown, which is never compressed as any
+     *               device may receive it)
+     * @param size
+     * @return
+     */
+    private boolean isCompressionWanted(SqAnDevice device, int size) {
+        if ((device == null) || !device.isHeaderCompressionSupported())
+            return false;
+        if (Config.isLargeDataWiFiOnly() && (size > SIZE_TO_ROUTE_WIFI_ONLY))
+            return Config.isVpnHeaderCompression(TransportPreference.WIFI);
+        RouteCache.Route route = RouteCache.getRoute(device.getUUID());
+        if ((route != null) && (route.getTransport() != TransportPreference.AGNOSTIC) && (route.getTransport() != TransportPreference.ALL))
+            return Config.isVpnHeaderCompression(route.getTransport());
+        ManetOps manetOps = sqAnService.getManetOps();
+        if (manetOps == null)
+            return false;
+        return (manetOps.isBtManetSelected() && Config.isVpnHeaderCompression(TransportPreference.BLUETOOTH))
+                || (manetOps.isSdrManetSelected() && Config.isVpnHeaderCompression(TransportPreference.SDR));
+    }
 
-                            if (destinationIp != SqAnDevice.BROADCAST_IP) {
-                                if (device == null) {
-                                    Log.d(getTag(), "VpnPacket destined for an IP address (" + AddressUtil.intToIpv4String(destinationIp)+ ":" + destPort + ") that I do not recognize - broadcasting this message to all devices");
-                                } else {
-                                /*if (Config.portForwardingEnabled()) {
-                                    int port = NetUtil.getPort(rawBytes);
-                                    Log.d(getTag(),"Port "+port+" found for forwarding...");
-                                }*/
-                                    Log.d(getTag(), "VpnPacket (DSCP " + NetUtil.getDscpType(dscp).name() + ", " + type.name() + ") being sent to " + device.getLabel()+", src port "+srcPort+", dest port "+destPort);
-                                    outgoing.setDestination(device.getUUID());
-                                }
-                            }
-                            outgoing.setData(rawBytes);
-                            if (Config.isLargeDataWiFiOnly() && (length > SIZE_TO_ROUTE_WIFI_ONLY))
-                                outgoing.setHighPerformanceNeeded(true);
-                            sqAnService.burst(outgoing);
-                        }
-                    }
+    /**
+     * Finds the device for this IP, reusing the last answer while traffic keeps going to the same place
+     * @param ip
+     * @return
+     */
+    private SqAnDevice findDevice(int ip) {
+        SqAnDevice device = lastDevice;
+        if ((device != null) && (lastDeviceIp == ip) && (device.getVpnIpv4AddressInt() == ip))
+            return device;
+        device = SqAnDevice.findByIpv4IP(ip);
+        lastDevice = device;
+        lastDeviceIp = ip;
+        return device;
+    }
+
+    /**
+     * The Android TUN interface; its descriptor is non-blocking and waited on with poll()
+     */
+    private static class TunInterface implements VpnPump.Tun {
+        private final FileInputStream in;
+        private final StructPollfd[] pollFds;
 
-                    packet.clear();
+        private TunInterface(ParcelFileDescriptor pfd) {
+            in = new FileInputStream(pfd.getFileDescriptor());
+            StructPollfd pollFd = new StructPollfd();
+            pollFd.fd = pfd.getFileDescriptor();
+            pollFd.events = (short)OsConstants.POLLIN;
+            pollFds = new StructPollfd[] {pollFd};
+        }
 
-                    idle = false;
-                }
+        @Override
+        public int read(byte[] buf, int offset, int length) throws IOException {
+            try {
+                return in.read(buf,offset,length); //returns 0 when nothing is waiting on a non-blocking descriptor
             } catch (IOException e) {
                 String message = e.getMessage();
-                Log.e(getTag(),"IOException: "+message);
-                if ((pfd == null) || ((message != null) && message.contains("EBADF")))
-                    keepGoing.set(false);
-            } catch (BufferUnderflowException e) {
-                Log.e(getTag(),"BufferUnderflowException: "+e.getMessage());
-            }
-            if (idle) {
-                try {
-                    Thread.sleep(IDLE_INTERVAL_MS);
-                } catch (InterruptedException ignore) {
-                }
+                if ((message != null) && message.contains("EBADF"))
+                    return -1; //the interface has been closed
+                throw e;
             }
         }
-        if (pfd != null) {
+
+        @Override
+        public void awaitReadable(long timeout) throws IOException {
             try {
-                pfd.close();
-            } catch (IOException e) {
-                Log.e(getTag(), "Unable to close interface", e);
+                Os.poll(pollFds,(int)timeout);
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EINTR)
+                    throw new IOException("poll() failed: "+e.getMessage());
             }
         }
     }
@@ -254,6 +332,7 @@ public class SqAnVpnConnection implements Runnable {
             }
         }
         final ParcelFileDescriptor vpnInterface;
+        builder.setBlocking(false); //the pump polls the descriptor so it can drain everything waiting in one pass
         builder.setSession("SqAnVpn").setConfigureIntent(configureIntent);
         synchronized (vpnService) {
             vpnInterface = builder.establish();
@@ -22,12 +22,13 @@ import org.sofwerx.sqan.manet.common.SqAnDevice;
 import org.sofwerx.sqan.manet.common.VpnForwardValue;
 import org.sofwerx.sqan.ui.SettingsActivity;
 import org.sofwerx.sqan.util.AddressUtil;
+import org.sofwerx.sqan.util.Metrics;
 import org.sofwerx.sqan.util.NetUtil;
-import org.sofwerx.sqandr.util.StringUtils;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -36,9 +37,11 @@ import androidx.annotation.NonNull;
 public class SqAnVpnService extends VpnService implements Handler.Callback {
     private static final int SQAN_VPN_NOTIFICATION = 837;
     private static final String TAG = SqAnVpnService.class.getSimpleName();
+    private static final Metrics.Counter vpnPacketsIn = Metrics.counter("sqan_vpn_packets_total","IP packets carried for the VPN","direction","in");
     public static final String ACTION_CONNECT = "org.sofwerx.sqan.vpn.START";
     public static final String ACTION_DISCONNECT = "org.sofwerx.sqan.vpn.STOP";
     private FileOutputStream out;
+    private volatile FileChannel outChannel;
     private Handler mHandler;
     private int lastMessage = R.string.disconnected;
     private static SqAnDevice thisDevice;
@@ -64,6 +67,40 @@ public class SqAnVpnService extends VpnService implements Handler.Callback {
         }
     }
 
+    /**
+     * Writes the IP packet(s) received over SqAN to the VPN interface
+     * @param data one or more IP packets back to back
+     */
+    public void onReceived(final ByteBuffer data) {
+        if (data == null)
+            return;
+        FileChannel tun = outChannel;
+        if (tun == null) {
+            Log.d(TAG,data.remaining()+"b VpnPacket data received from SqAN, but VPN is not yet ready");
+            return;
+        }
+        if (Config.isVpnForwardIps() && (thisDevice != null)) {
+            //forwarded packets have their addresses rewritten, so each is copied out and handled on its own
+            ByteBuffer view = data.duplicate();
+            while (view.hasRemaining()) {
+                int length = NetUtil.getIpPacketLength(view);
+                if ((length <= 0) || (length > view.remaining()))
+                    length = view.remaining();
+                byte[] packet = new byte[length];
+                view.get(packet);
+                onReceived(packet);
+            }
+        } else {
+            try {
+                int count = VpnPump.writePackets(tun,data);
+                vpnPacketsIn.add(count);
+                Log.d(TAG,data.remaining()+"b VpnPacket data ("+count+" IP packets) received from SqAN");
+            } catch (IOException e) {
+                Log.e(TAG,"Unable to forward VpnPacket from SqAN to the VPN:"+e.getMessage());
+            }
+        }
+    }
+
     public void onReceived(final byte[] data) {
         if (data == null)
             return;
@@ -85,17 +122,9 @@ public class SqAnVpnService extends VpnService implements Handler.Callback {
                             SqAnVpnConnection.swapIpInPayload(data,destBytes,actualDest);
                         }
                     }
-                } else {
-                    //FIXME for testing
-                    int dest = NetUtil.getDestinationIpFromIpPacket(data);
-                    int destPort = NetUtil.getDestinationPort(data);
-                    String ipAdd = AddressUtil.intToIpv4String(dest);
-                    String port = Integer.toString(destPort);
-                    Log.d(TAG,"VpnPkt in from SqAN ("+ipAdd+":"+port+"): "+new String(data,StandardCharsets.US_ASCII));
-                    Log.d(TAG,"VpnPkt in from SqAN ("+ipAdd+":"+port+"): "+StringUtils.toHex(data));
-                    //FIXME for testing
                 }
                 out.write(data);
+                vpnPacketsIn.inc();
             } catch (IOException e) {
                 Log.e(TAG,"Unable to forward VpnPacket from SqAN to the VPN:"+e.getMessage());
             }
@@ -177,8 +206,10 @@ public class SqAnVpnService extends VpnService implements Handler.Callback {
     }
     private void setConnection(final Connection connection) {
         final Connection oldConnection = mConnection.getAndSet(connection);
-        if ((connection != null) && (connection.second != null))
+        if ((connection != null) && (connection.second != null)) {
             out = new FileOutputStream(connection.second.getFileDescriptor());
+            outChannel = out.getChannel();
+        }
         if (oldConnection != null) {
             try {
                 oldConnection.first.interrupt();
@@ -190,6 +221,7 @@ public class SqAnVpnService extends VpnService implements Handler.Callback {
     }
 
     private void disconnect() {
+        outChannel = null;
         if (out != null) {
             try {
                 out.close();
@@ -0,0 +1,208 @@
+package org.sofwerx.sqan.vpn;
+
+import org.sofwerx.notdroid.util.Log;
+
+import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.util.Metrics;
+import org.sofwerx.sqan.util.NetUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves IP packets from the VPN's TUN interface towards SqAN. The pump waits on the interface
+ * rather than sleeping between reads, reads every packet into the same reusable buffer and
+ * gathers consecutive packets headed to the same destination (with the same DSCP) into a single
+ * batch so they can be sent as one SqAN packet. A batch is handed off as soon as the interface
+ * has nothing more waiting, so batching does not hold packets back.
+ *
+ * Batches are just the IP packets back to back; since each IP packet carries its own length,
+ * the receiver can split a batch back apart (see writePackets). Older builds can't, so batches
+ * are only sent to devices that advertise support in their heartbeat (see SqAnVpnConnection).
+ */
+public class VpnPump {
+    private final static String TAG = Config.TAG+".VpnPump";
+    private final static long AWAIT_TIMEOUT = 1000l; //max time to wait on the interface before checking if the pump should stop
+    private final static int MAX_PACKETS_PER_BATCH = 32;
+    private final static int WRITE_SPINS = 16; //times a full interface is retried straight away before backing off
+    private final static long MAX_WRITE_BACKOFF = 8l; //longest wait (ms) between retries of a full interface
+    private final static long MAX_WRITE_WAIT = 250l; //total time (ms) to wait on a full interface before dropping the rest
+    private final static Metrics.Counter vpnPacketsOut = Metrics.counter("sqan_vpn_packets_total","IP packets carried for the VPN","direction","out");
+    private final Tun tun;
+    private final Sink sink;
+    private final int maxPacketSize;
+    private final int maxBatchBytes;
+    private final byte[] buffer; //reused for every read; holds the current batch plus room for the next packet
+    private volatile boolean keepGoing = true;
+    private final AtomicLong packetsRead = new AtomicLong(0l);
+    private final AtomicLong batchesSent = new AtomicLong(0l);
+
+    /**
+     * The interface packets are read from
+     */
+    public interface Tun {
+        /**
+         * Reads the next IP packet without waiting
+         * @param buf
+         * @param offset
+         * @param length
+         * @return the size of the packet, 0 if no packet is waiting or -1 if the interface is closed
+         * @throws IOException
+         */
+        int read(byte[] buf, int offset, int length) throws IOException;
+
+        /**
+         * Waits until a packet may be available to read (or the timeout passes)
+         * @param timeout ms
+         * @throws IOException
+         */
+        void awaitReadable(long timeout) throws IOException;
+    }
+
+    /**
+     * Where batches of packets are sent
+     */
+    public interface Sink {
+        /**
+         * @param packets one or more IP packets back to back; this array belongs to the sink
+         * @param destinationIp the destination shared by every packet in the batch
+         * @param packetCount the number of packets in the batch
+         */
+        void onBatch(byte[] packets, int destinationIp, int packetCount);
+    }
+
+    /**
+     * @param tun
+     * @param sink
+     * @param maxPacketSize largest packet the interface can produce
+     * @param maxBatchBytes largest batch to build; packets are sent one at a time if this is 0
+     */
+    public VpnPump(Tun tun, Sink sink, int maxPacketSize, int maxBatchBytes) {
+        this.tun = tun;
+        this.sink = sink;
+        this.maxPacketSize = maxPacketSize;
+        this.maxBatchBytes = Math.max(0,maxBatchBytes);
+        buffer = new byte[this.maxBatchBytes + maxPacketSize];
+    }
+
+    /**
+     * Pumps packets until the interface closes or stop() is called
+     */
+    public void run() {
+        int used = 0;
+        int count = 0;
+        int batchDestination = 0;
+        byte batchDscp = 0;
+        while (keepGoing) {
+            try {
+                final int length = tun.read(buffer,used,maxPacketSize);
+                if (length < 0)
+                    break;
+                if (length == 0) {
+                    if (count > 0) {
+                        send(used,batchDestination,count); //nothing else is waiting so don't hold the batch
+                        used = 0;
+                        count = 0;
+                    } else
+                        tun.awaitReadable(AWAIT_TIMEOUT);
+                    continue;
+                }
+                packetsRead.incrementAndGet();
+                vpnPacketsOut.inc();
+                final int destination = NetUtil.getDestinationIpFromIpPacket(buffer,used,length);
+                final byte dscp = NetUtil.getDscpFromIpPacket(buffer,used,length);
+                if ((count > 0) && ((destination != batchDestination) || (dscp != batchDscp)
+                        || (used + length > maxBatchBytes) || (count == MAX_PACKETS_PER_BATCH))) {
+                    //this packet can't join the batch, so send the batch and start a new one with this packet
+                    send(used,batchDestination,count);
+                    System.arraycopy(buffer,used,buffer,0,length);
+                    used = 0;
+                    count = 0;
+                }
+                if (count == 0) {
+                    batchDestination = destination;
+                    batchDscp = dscp;
+                }
+                used += length;
+                count++;
+                if (used >= maxBatchBytes) {
+                    send(used,batchDestination,count);
+                    used = 0;
+                    count = 0;
+                }
+            } catch (IOException e) {
+                Log.e(TAG,"IOException: "+e.getMessage());
+            }
+        }
+        if (count > 0)
+            send(used,batchDestination,count);
+    }
+
+    private void send(int length, int destination, int count) {
+        batchesSent.incrementAndGet();
+        sink.onBatch(Arrays.copyOf(buffer,length),destination,count);
+    }
+
+    /**
+     * Stops the pump (it will notice within AWAIT_TIMEOUT)
+     */
+    public void stop() { keepGoing = false; }
+
+    public long getPacketsRead() { return packetsRead.get(); }
+
+    public long getBatchesSent() { return batchesSent.get(); }
+
+    /**
+     * Writes each of the IP packets in the data to the interface. The packets are written straight
+     * out of the data (no copies); each one gets its own write as the interface expects exactly one
+     * IP packet per write. If the interface stays full, retries back off (up to MAX_WRITE_BACKOFF)
+     * and after MAX_WRITE_WAIT the rest of the data is dropped, as IP would.
+     * @param tun
+     * @param data one or more IP packets back to back (position to limit)
+     * @return the number of packets written
+     * @throws IOException
+     */
+    public static int writePackets(WritableByteChannel tun, ByteBuffer data) throws IOException {
+        if ((tun == null) || (data == null))
+            return 0;
+        ByteBuffer view = data.duplicate();
+        final int end = view.limit();
+        int count = 0;
+        int stalls = 0;
+        long waited = 0l;
+        while (view.position() < end) {
+            int length = NetUtil.getIpPacketLength(view);
+            if ((length <= 0) || (view.position() + length > end))
+                length = end - view.position(); //not a recognizable IP packet, so pass the rest along as is
+            view.limit(view.position() + length);
+            while (view.hasRemaining()) {
+                if (tun.write(view) > 0) {
+                    stalls = 0;
+                    continue;
+                }
+                if (++stalls <= WRITE_SPINS) {
+                    Thread.yield();
+                    continue;
+                }
+                if (waited >= MAX_WRITE_WAIT) {
+                    Log.w(TAG,"VPN interface is not accepting packets; "+(end - view.position())+"b dropped");
+                    return count;
+                }
+                final long backoff = Math.min(MAX_WRITE_BACKOFF,1l << Math.min(stalls - WRITE_SPINS - 1,3));
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return count;
+                }
+                waited += backoff;
+            }
+            view.limit(end);
+            count++;
+        }
+        return count;
+    }
+}
@@ -54,7 +54,7 @@ public class SqANDRService implements DataConnectionListener {
         else if (manet instanceof SqANDRListener)
             listener = manet;
         this.manet = manet;
-        if (isAndroid()) {
+        if (isAndroid() && (context != null)) { //without a context (as in the benchmark's MeshSimulator) there is no SDR to look for
             if (context.toAndroid() instanceof android.app.Activity)
                 PermissionsHelper.checkForPermissions((android.app.Activity) context.toAndroid());
             //SqANDRLog.init(context);
@@ -1,25 +1,30 @@
 package org.sofwerx.sqandr.sdr;
 
-import android.util.Log;
+import org.sofwerx.notdroid.util.Log;
 
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.listeners.PeripheralStatusListener;
+import org.sofwerx.sqan.util.Metrics;
+import org.sofwerx.sqandr.sdr.sar.ReassemblyTable;
 import org.sofwerx.sqandr.sdr.sar.Segment;
 import org.sofwerx.sqandr.sdr.sar.Segmenter;
-import org.sofwerx.sqandr.util.ContinuityGapSAR;
+import org.sofwerx.sqandr.sdr.fec.FecCodec;
+import org.sofwerx.sqandr.util.ByteRingBuffer;
 import org.sofwerx.sqandr.util.Crypto;
 import org.sofwerx.sqandr.util.SdrUtils;
 import org.sofwerx.sqandr.util.StringUtils;
-import org.sofwerx.sqandr.util.WriteableInputStream;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public abstract class AbstractDataConnection {
     private final static String TAG = Config.TAG+".DataCon";
-    protected final static boolean USE_GAP_STRATEGY = true; //used to counter a periodic bit inversion believed to be caused by minor clock differences in SDRs. Restructures the output to include a doubling method and some headers that compensate for periodic data gaps
     private final static long TIME_BETWEEN_STALE_SEGMENTATION_CHECKS = 500l;
+    private final static Metrics.Counter demodBytes = Metrics.counter("sqan_sdr_demod_bytes_total","Bytes received from the SDR's demodulator");
+    private final static Metrics.Counter goodFrames = Metrics.counter("sqan_sdr_frames_total","Frames read from the SDR's data by whether they were valid","result","good");
+    private final static Metrics.Counter badFrames = Metrics.counter("sqan_sdr_frames_total","Frames read from the SDR's data by whether they were valid","result","bad");
     protected DataConnectionListener listener;
     public abstract boolean isActive();
     public abstract void write(byte[] data);
@@ -27,16 +32,17 @@ public abstract class AbstractDataConnection {
     public void setListener(DataConnectionListener listener) { this.listener = listener; }
     private AtomicBoolean keepGoing = new AtomicBoolean(true);
     protected PeripheralStatusListener peripheralStatusListener = null;
-    private WriteableInputStream dataBuffer;
+    private ByteRingBuffer dataBuffer;
     private Thread readThread;
     private long nextStaleCheck = Long.MIN_VALUE;
-    private ArrayList<Segmenter> segmenters;
+    private final ReassemblyTable reassembly = new ReassemblyTable();
     protected long sdrConnectionCongestedUntil = Long.MIN_VALUE;
     protected long lastSqandrHeartbeat = Long.MIN_VALUE;
-    private int lastHeaderBufferIndex = 0; //used to rewind the buffer a bit when a header turns out to produce an invalid packet
+    private final static int HEADER_MARK_LIMIT = Segment.MAX_LENGTH_BEFORE_SEGMENTING + 2; //the buffer is marked after each header so it can be rewound a bit when that header turns out to produce an invalid packet
     private final static long TIME_CONGESTION_IS_RECENT = 1000l * 5l; //time in ms to consider any congestion marker as recent
 
-    protected ContinuityGapSAR gapSar = new ContinuityGapSAR();
+    protected FecCodec fec = FecCodec.build(); //used to counter a periodic bit inversion believed to be caused by minor clock differences in SDRs; null == no correction
+    protected FecCodec txFec = FecCodec.build(); //encodes outgoing bursts; kept apart from fec since decoders keep state between calls
     private int goodData = 0;
     private int badData = 0;
     private final static int ACCEPTABLE_BAD_TO_GOOD = 8;
@@ -66,12 +72,16 @@ public abstract class AbstractDataConnection {
             //Log.w(TAG, "handleRawDatalinkInput received " + raw.length + "b raw input");
         }
         //Log.d(TAG,"handleRawDatalinkInput is processing "+raw.length+"b");
-        if (dataBuffer == null)
-            dataBuffer = new WriteableInputStream();
-        if (USE_GAP_STRATEGY && (gapSar != null))
-            dataBuffer.write(gapSar.parse(raw));
-        else
-            dataBuffer.write(raw);
+        if (dataBuffer == null) {
+            final ByteRingBuffer buffer = new ByteRingBuffer();
+            Metrics.counter("sqan_sdr_ring_dropped_bytes_total","Bytes dropped because the SDR's data was not read fast enough",buffer::getDroppedBytes);
+            Metrics.gauge("sqan_sdr_ring_backlog_bytes","Bytes from the SDR waiting to be read",buffer::getBacklog);
+            dataBuffer = buffer;
+        }
+        final byte[] decoded = (fec != null)?fec.decode(raw):raw;
+        if (decoded != null)
+            demodBytes.add(decoded.length);
+        dataBuffer.put(decoded);
         //Log.d(TAG,raw.length+"b added to dataBuffer");
         if (readThread == null) {
             readThread = new Thread() {
@@ -90,23 +100,11 @@ public abstract class AbstractDataConnection {
                             }
                         }
                         if (System.currentTimeMillis() > nextStaleCheck) {
-                            if ((segmenters != null) && !segmenters.isEmpty()) {
-                                int i=0;
-                                while (i<segmenters.size()) {
-                                    if ((segmenters.get(i) == null) || segmenters.get(i).isStale()) {
-                                        Log.d(TAG,"Segmenter #"+i+" (Packet ID "+((int)segmenters.get(i).getPacketId())+") stale, dropping (Segments: "+segmenters.get(i).getParts()+")");
-                                        segmenters.remove(i);
-                                        if (listener != null)
-                                            listener.onPacketDropped();
-                                    } else {
-                                        if (segmenters.get(i).isComplete()) {
-                                            goodData++;
-                                            Log.d(TAG,"Packet with "+segmenters.get(i).getSegmentCount()+" segments successfully reassembled");
-                                            if (listener != null)
-                                                listener.onReceiveDataLinkData(Crypto.decrypt(segmenters.get(i).reassemble()));
-                                            segmenters.remove(segmenters.get(i));
-                                        } else
-                                            i++;
+                            if (!reassembly.isEmpty()) {
+                                int dropped = reassembly.dropStale();
+                                if (listener != null) {
+                                    for (int i=0;i<dropped;i++) {
+                                        listener.onPacketDropped();
                                     }
                                 }
                                 nextStaleCheck = System.currentTimeMillis() + TIME_BETWEEN_STALE_SEGMENTATION_CHECKS;
@@ -120,6 +118,68 @@ public abstract class AbstractDataConnection {
         }
     }
 
+    /**
+     * Sends one burst of segment bytes that has already been FEC encoded (e.g. by formatting it
+     * for the link and writing it)
+     * @param burst
+     */
+    protected abstract void sendBurst(byte[] burst);
+
+    /**
+     * Encrypts a packet and wraps it in segments, concatenating as many segments into each burst
+     * as fit, then FEC encodes each burst and sends it with sendBurst()
+     * @param data
+     * @param maxBytesPerSend most segment bytes in one burst (before FEC)
+     */
+    protected void sendPacket(byte[] data, int maxBytesPerSend) {
+        if (data == null)
+            return;
+        final byte[] cipherData = Crypto.encrypt(data);
+        if (Segment.isAbleToWrapInSingleSegment(cipherData)) {
+            Segment segment = new Segment();
+            segment.setData(cipherData);
+            segment.setStandAlone();
+            sendEncoded(segment.toBytes());
+            return;
+        }
+        ArrayList<Segment> segments = Segmenter.wrapIntoSegments(cipherData);
+        if ((segments == null) || segments.isEmpty()) {
+            Log.e(TAG, "There was an unexpected problem that did not produce any segments from this packet");
+            return;
+        }
+        Log.d(TAG,"Segmenting "+cipherData.length+"b packet into "+segments.size()+" segments");
+        ByteBuffer concatted = null;
+        for (Segment segment:segments) {
+            final byte[] segBytes = segment.toBytes();
+            if (segBytes.length > maxBytesPerSend) {
+                Log.w(TAG,"Current segment size ("+segBytes.length+"b) > max bytes per send ("+maxBytesPerSend+"b)");
+                sendEncoded(segBytes);
+                continue;
+            }
+            if (concatted == null)
+                concatted = ByteBuffer.allocate(maxBytesPerSend);
+            else if (concatted.position() + segBytes.length > maxBytesPerSend) {
+                sendEncoded(toArray(concatted));
+                concatted.clear();
+            }
+            concatted.put(segBytes);
+        }
+        if ((concatted != null) && (concatted.position() > 0))
+            sendEncoded(toArray(concatted));
+    }
+
+    private void sendEncoded(byte[] burst) {
+        final FecCodec codec = txFec;
+        sendBurst((codec == null)?burst:codec.encode(burst));
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] out = new byte[buf.position()];
+        buf.flip();
+        buf.get(out);
+        return out;
+    }
+
     /**
      * Is the comms path to the SDR unable to keep up with the current outflow of data
      * @return true == congested
@@ -140,11 +200,7 @@ public abstract class AbstractDataConnection {
         keepGoing.set(false);
         if (dataBuffer != null) {
             Log.d(TAG,"Closing data buffer");
-            try {
-                dataBuffer.close();
-            } catch (IOException e) {
-                Log.w(TAG,"Unable to close dataBuffer: "+e.getMessage());
-            }
+            dataBuffer.close();
             dataBuffer = null;
         }
         if (readThread != null) {
@@ -152,9 +208,13 @@ public abstract class AbstractDataConnection {
             readThread.interrupt();
             readThread = null;
         }
-        if (gapSar != null) {
-            gapSar.close();
-            gapSar = null;
+        if (fec != null) {
+            fec.close();
+            fec = null;
+        }
+        if (txFec != null) {
+            txFec.close();
+            txFec = null;
         }
     }
 
@@ -173,12 +233,12 @@ public abstract class AbstractDataConnection {
             if (Segment.isQuickValidCheck(header)) {
                 //Log.d(TAG,"readPartialHeader() validity test passed");
                 size = header[2] & 0xFF; //needed to convert signed byte into unsigned int
-                lastHeaderBufferIndex = dataBuffer.getReadPosition();
+                dataBuffer.mark(HEADER_MARK_LIMIT);
                 return new PartialHeaderData(size,false);
             } else if (Segment.isQuickInversionValidCheck(header)) {
                 Log.d(TAG,"readPartialHeader() validity test passed, but inverted");
                 size = header[2] & 0xFF; //needed to convert signed byte into unsigned int and invert
-                lastHeaderBufferIndex = dataBuffer.getReadPosition();
+                dataBuffer.mark(HEADER_MARK_LIMIT);
                 return new PartialHeaderData(size,false);
             } else {
                 lost++;
@@ -242,37 +302,15 @@ public abstract class AbstractDataConnection {
         }*/
     }
 
-    private Segmenter findSegmenter(byte packetId) {
-        if ((segmenters != null) && !segmenters.isEmpty()) {
-            for (Segmenter segmenter:segmenters) {
-                if (segmenter.getPacketId() == packetId)
-                    return segmenter;
-            }
-        }
-        return null;
-    }
-
     private void handleSegment(Segment segment) {
         if (segment == null)
             return;
-        byte packetId = segment.getPacketId();
-        Segmenter segmenter = findSegmenter(packetId);
-        if (segmenter == null) {
-            Log.d(TAG,"First segment ("+segment.getIndex()+") for Packet ID "+packetId+" received");
-            segmenter = new Segmenter(packetId);
-            segmenter.add(segment);
-            if (segmenters == null)
-                segmenters = new ArrayList<>();
-            segmenters.add(segmenter);
-        } else {
-            segmenter.add(segment);
-            if (segmenter.isComplete()) {
-                goodData++;
-                Log.d(TAG,"Packet with "+segmenter.getSegmentCount()+" segments successfully reassembled");
-                if (listener != null)
-                    listener.onReceiveDataLinkData(Crypto.decrypt(segmenter.reassemble()));
-                segmenters.remove(segmenter);
-            }
+        int size = reassembly.add(segment);
+        if (size >= 0) {
+            goodData++;
+            goodFrames.inc();
+            if (listener != null)
+                listener.onReceiveDataLinkData(Crypto.decrypt(reassembly.getOutput(),0,size));
         }
     }
 
@@ -284,7 +322,7 @@ public abstract class AbstractDataConnection {
         try {
             PartialHeaderData headerData = readPartialHeader();
             if ((headerData.size < 0) || (headerData.size > Segment.MAX_LENGTH_BEFORE_SEGMENTING)) {
-                dataBuffer.rewindReadPosition(lastHeaderBufferIndex);
+                dataBuffer.reset();
                 throw new IOException("Unable to read packet - invalid size " + headerData.size + "b - this condition should never happen unless the link is shutting down");
             }
             byte[] rest = new byte[headerData.size+2]; //2 added to get the rest of the header
@@ -299,14 +337,16 @@ public abstract class AbstractDataConnection {
             if (segment.isValid()) {
                 if (segment.isStandAlone()) {
                     goodData++;
+                    goodFrames.inc();
                     Log.d(TAG,"Standalone packet recovered ("+headerData.size+"b)");
                     return Crypto.decrypt(segment.getData());
                 } else
                     handleSegment(segment);
             } else {
                 badData++;
-                dataBuffer.rewindReadPosition(lastHeaderBufferIndex);
-                Log.d(TAG,"readPacketData produced invalid Segment (Seg "+segment.getIndex()+", Packet ID "+segment.getPacketId()+", size "+headerData.size+"b) and was dropped invalid data was: "+StringUtils.toHex(headerData.toBytes())+StringUtils.toHex(rest));
+                badFrames.inc();
+                dataBuffer.reset();
+                Log.d(TAG,"readPacketData produced invalid Segment (Seg "+segment.getIndex()+", Packet ID "+(segment.getPacketId() & 0xFF)+", size "+headerData.size+"b) and was dropped invalid data was: "+StringUtils.toHex(headerData.toBytes())+StringUtils.toHex(rest));
                 checkDataRatio();
             }
         } catch (IOException e) {
@@ -4,15 +4,29 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
+import org.sofwerx.sqandr.sdr.fec.FecMode;
+
 public class SdrConfig {
     private final static String PREFS_SDR_MODE = "sdrmode";
     private final static String PREFS_SDR_TX_FREQ = "sdrtx";
     private final static String PREFS_SDR_RX_FREQ = "sdrrx";
+    private final static String PREFS_SDR_FEC_MODE = "sdrfec";
+    private final static String PREFS_SDR_FEC_DATA = "sdrfecdata";
+    private final static String PREFS_SDR_FEC_PARITY = "sdrfecparity";
+    private final static String PREFS_SDR_FEC_INTERLEAVE = "sdrfecinterleave";
 
     private static SdrMode mode;
     private static float txFreq;
     private static float rxFreq;
     private final static float DEFAULT_FREQ = 2500f; //MHz
+    private final static FecMode DEFAULT_FEC_MODE = FecMode.GAP; //all SDRs on the link need to use the same mode
+    private final static int DEFAULT_FEC_DATA = 64; //data bytes per Reed-Solomon codeword
+    private final static int DEFAULT_FEC_PARITY = 16; //parity bytes per Reed-Solomon codeword (corrects up to 8 bad bytes)
+    private final static int DEFAULT_FEC_INTERLEAVE = 4; //Reed-Solomon codewords interleaved together
+    private static FecMode fecMode = DEFAULT_FEC_MODE;
+    private static int fecDataBytes = DEFAULT_FEC_DATA;
+    private static int fecParityBytes = DEFAULT_FEC_PARITY;
+    private static int fecInterleave = DEFAULT_FEC_INTERLEAVE;
 
     public static SdrMode getMode() { return mode; }
     public static void setMode(SdrMode mode) { SdrConfig.mode = mode; }
@@ -20,6 +34,25 @@ public class SdrConfig {
     public static void setTxFreq(float txFreq) { SdrConfig.txFreq = txFreq; }
     public static float getRxFreq() { return rxFreq; }
     public static void setRxFreq(float rxFreq) { SdrConfig.rxFreq = rxFreq; }
+    public static FecMode getFecMode() { return fecMode; }
+    public static void setFecMode(FecMode fecMode) { SdrConfig.fecMode = fecMode; }
+    public static int getFecDataBytes() { return fecDataBytes; }
+    public static int getFecParityBytes() { return fecParityBytes; }
+    public static int getFecInterleave() { return fecInterleave; }
+
+    /**
+     * Sets the Reed-Solomon code used when the FecMode is REED_SOLOMON
+     * @param dataBytes data bytes per codeword
+     * @param parityBytes parity bytes per codeword (dataBytes + parityBytes cannot exceed 255)
+     * @param interleave number of codewords interleaved together
+     */
+    public static void setFecCode(int dataBytes, int parityBytes, int interleave) {
+        if ((dataBytes < 1) || (parityBytes < 2) || (dataBytes + parityBytes > 255))
+            return;
+        fecDataBytes = dataBytes;
+        fecParityBytes = parityBytes;
+        fecInterleave = Math.max(1,interleave);
+    }
 
     public static void init(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -30,6 +63,10 @@ public class SdrConfig {
         }
         txFreq = prefs.getFloat(PREFS_SDR_TX_FREQ,DEFAULT_FREQ);
         rxFreq = prefs.getFloat(PREFS_SDR_RX_FREQ,DEFAULT_FREQ);
+        int fec = prefs.getInt(PREFS_SDR_FEC_MODE,DEFAULT_FEC_MODE.ordinal());
+        if ((fec >= 0) && (fec < FecMode.values().length))
+            fecMode = FecMode.values()[fec];
+        setFecCode(prefs.getInt(PREFS_SDR_FEC_DATA,DEFAULT_FEC_DATA),prefs.getInt(PREFS_SDR_FEC_PARITY,DEFAULT_FEC_PARITY),prefs.getInt(PREFS_SDR_FEC_INTERLEAVE,DEFAULT_FEC_INTERLEAVE));
     }
 
     public static void saveToPrefs(Context context) {
@@ -39,6 +76,10 @@ public class SdrConfig {
         edit.putInt(PREFS_SDR_MODE,mode.ordinal());
         edit.putFloat(PREFS_SDR_TX_FREQ,txFreq);
         edit.putFloat(PREFS_SDR_RX_FREQ,rxFreq);
+        edit.putInt(PREFS_SDR_FEC_MODE,fecMode.ordinal());
+        edit.putInt(PREFS_SDR_FEC_DATA,fecDataBytes);
+        edit.putInt(PREFS_SDR_FEC_PARITY,fecParityBytes);
+        edit.putInt(PREFS_SDR_FEC_INTERLEAVE,fecInterleave);
 
         edit.apply();
     }
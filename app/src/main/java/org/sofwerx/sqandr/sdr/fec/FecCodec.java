@@ -0,0 +1,83 @@
+package org.sofwerx.sqandr.sdr.fec;
+
+import org.sofwerx.sqandr.sdr.SdrConfig;
+
+/**
+ * A forward error correction stage for the SDR data link. Outgoing data is encoded just before
+ * it is formatted for the serial link; incoming raw data is decoded before it is searched for
+ * segment headers. Decoders keep state between calls since raw data arrives in arbitrary chunks.
+ */
+public interface FecCodec {
+    /**
+     * Encodes data for transmission
+     * @param data
+     * @return
+     */
+    byte[] encode(byte[] data);
+
+    /**
+     * Takes in the next chunk of raw data from the link and recovers as much of the original
+     * data as possible
+     * @param raw
+     * @return recovered data or null if nothing was recovered yet
+     */
+    byte[] decode(byte[] raw);
+
+    /**
+     * Gets the most bytes encode() produces from data of this length
+     * @param dataLength
+     * @return
+     */
+    int getEncodedSize(int dataLength);
+
+    /**
+     * Gets the most data that can be encoded without exceeding this many bytes
+     * @param encodedLength
+     * @return
+     */
+    int getMaxDataSize(int encodedLength);
+
+    /**
+     * Gets the number of codewords (or chunks) that could not be repaired
+     * @return
+     */
+    long getUncorrectable();
+
+    void close();
+
+    /**
+     * Builds the codec selected in the SdrConfig
+     * @return the codec or null if no FEC is used
+     */
+    static FecCodec build() {
+        return build(SdrConfig.getFecMode(),SdrConfig.getFecDataBytes(),SdrConfig.getFecParityBytes(),SdrConfig.getFecInterleave());
+    }
+
+    /**
+     * Gets the most data that can be sent in one write to a link
+     * @param fec null == no FEC
+     * @param maxData the most data bytes wanted in one write
+     * @param maxEncoded the most bytes the link can carry in one write
+     * @return
+     */
+    static int getMaxDataSize(FecCodec fec, int maxData, int maxEncoded) {
+        if (fec == null)
+            return Math.min(maxData,maxEncoded);
+        return Math.min(maxData,fec.getMaxDataSize(maxEncoded));
+    }
+
+    static FecCodec build(FecMode mode, int dataBytes, int parityBytes, int interleave) {
+        if (mode == null)
+            return null;
+        switch (mode) {
+            case GAP:
+                return new GapFecCodec();
+
+            case REED_SOLOMON:
+                return new ReedSolomonFecCodec(dataBytes,parityBytes,interleave);
+
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package org.sofwerx.sqandr.sdr.fec;
+
+public enum FecMode {
+    NONE,           //raw data with no correction
+    GAP,            //every chunk is sent twice (see ContinuityGapSAR)
+    REED_SOLOMON    //Reed-Solomon codewords with optional interleaving
+}
@@ -0,0 +1,43 @@
+package org.sofwerx.sqandr.sdr.fec;
+
+import org.sofwerx.sqandr.util.ContinuityGapSAR;
+
+/**
+ * Wraps the original ContinuityGapSAR chunk doubling strategy as a FecCodec
+ */
+public class GapFecCodec implements FecCodec {
+    private ContinuityGapSAR gapSar = new ContinuityGapSAR();
+
+    @Override
+    public byte[] encode(byte[] data) {
+        return ContinuityGapSAR.formatForOutput(data);
+    }
+
+    @Override
+    public byte[] decode(byte[] raw) {
+        if (gapSar == null)
+            return null;
+        return gapSar.parse(raw);
+    }
+
+    @Override
+    public int getEncodedSize(int dataLength) {
+        return ContinuityGapSAR.getFormattedSize(dataLength);
+    }
+
+    @Override
+    public int getMaxDataSize(int encodedLength) {
+        return ContinuityGapSAR.getMaxDataSize(encodedLength);
+    }
+
+    @Override
+    public long getUncorrectable() { return 0l; } //the gap strategy does not know when a repair fails
+
+    @Override
+    public void close() {
+        if (gapSar != null) {
+            gapSar.close();
+            gapSar = null;
+        }
+    }
+}
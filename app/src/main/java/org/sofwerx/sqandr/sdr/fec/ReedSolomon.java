@@ -0,0 +1,279 @@
+package org.sofwerx.sqandr.sdr.fec;
+
+/**
+ * Reed-Solomon code over GF(256) (primitive polynomial 0x11D, first consecutive root 1). Codewords
+ * are systematic - the data bytes followed by the parity bytes - and may be shortened (i.e. any
+ * codeword size up to 255 bytes). Up to paritySymbols/2 corrupted bytes per codeword can be corrected.
+ */
+public class ReedSolomon {
+    private final static int PRIMITIVE = 0x11D;
+    private final static int[] EXP = new int[512];
+    private final static int[] LOG = new int[256];
+    private final int paritySymbols;
+    private final int[] generator;
+
+    static {
+        int x = 1;
+        for (int i=0;i<255;i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0)
+                x ^= PRIMITIVE;
+        }
+        for (int i=255;i<EXP.length;i++) {
+            EXP[i] = EXP[i-255];
+        }
+    }
+
+    /**
+     * @param paritySymbols number of parity bytes added to each codeword (must be between 2 and 254)
+     */
+    public ReedSolomon(int paritySymbols) {
+        if ((paritySymbols < 2) || (paritySymbols > 254))
+            throw new IllegalArgumentException("paritySymbols must be between 2 and 254");
+        this.paritySymbols = paritySymbols;
+        int[] g = {1};
+        for (int i=0;i<paritySymbols;i++) {
+            g = polyMul(g,new int[] {1,EXP[i]});
+        }
+        generator = g;
+    }
+
+    public int getParitySymbols() { return paritySymbols; }
+
+    /**
+     * Computes the parity for the data in codeword[offset..offset+dataLength) and places it
+     * directly after the data
+     * @param codeword
+     * @param offset
+     * @param dataLength
+     */
+    public void encode(byte[] codeword, int offset, int dataLength) {
+        if (dataLength + paritySymbols > 255)
+            throw new IllegalArgumentException("Codeword cannot be larger than 255 bytes");
+        final int parityStart = offset + dataLength;
+        for (int i=0;i<paritySymbols;i++) {
+            codeword[parityStart+i] = 0;
+        }
+        //synthetic division of data * x^paritySymbols by the generator; only the remainder is kept
+        int[] remainder = new int[paritySymbols];
+        for (int i=0;i<dataLength;i++) {
+            final int coef = (codeword[offset+i] & 0xFF) ^ remainder[0];
+            System.arraycopy(remainder,1,remainder,0,paritySymbols-1);
+            remainder[paritySymbols-1] = 0;
+            if (coef != 0) {
+                final int logCoef = LOG[coef];
+                for (int j=1;j<generator.length;j++) {
+                    if (generator[j] != 0)
+                        remainder[j-1] ^= EXP[LOG[generator[j]] + logCoef];
+                }
+            }
+        }
+        for (int i=0;i<paritySymbols;i++) {
+            codeword[parityStart+i] = (byte)remainder[i];
+        }
+    }
+
+    /**
+     * Corrects the codeword in place
+     * @param codeword
+     * @param offset
+     * @param length total codeword length (data plus parity)
+     * @return the number of bytes corrected or -1 if there were too many errors to correct
+     */
+    public int decode(byte[] codeword, int offset, int length) {
+        int[] msg = new int[length];
+        for (int i=0;i<length;i++) {
+            msg[i] = codeword[offset+i] & 0xFF;
+        }
+        int[] syndromes = new int[paritySymbols+1]; //syndromes[0] is always 0 to simplify the math that follows
+        boolean clean = true;
+        for (int i=0;i<paritySymbols;i++) {
+            syndromes[i+1] = polyEval(msg,EXP[i]);
+            if (syndromes[i+1] != 0)
+                clean = false;
+        }
+        if (clean)
+            return 0;
+
+        int[] locator = findErrorLocator(syndromes);
+        if (locator == null)
+            return -1;
+        int[] positions = findErrors(locator,length);
+        if (positions == null)
+            return -1;
+        if (!correctErrata(msg,syndromes,positions))
+            return -1;
+        for (int i=0;i<paritySymbols;i++) {
+            if (polyEval(msg,EXP[i]) != 0)
+                return -1;
+        }
+        for (int position:positions) {
+            codeword[offset+position] = (byte)msg[position];
+        }
+        return positions.length;
+    }
+
+    /**
+     * Berlekamp-Massey
+     * @return the error locator polynomial (highest degree first) or null if uncorrectable
+     */
+    private int[] findErrorLocator(int[] syndromes) {
+        int[] locator = {1};
+        int[] old = {1};
+        for (int i=0;i<paritySymbols;i++) {
+            final int k = i + 1;
+            int delta = syndromes[k];
+            for (int j=1;j<locator.length;j++) {
+                delta ^= mul(locator[locator.length-1-j],syndromes[k-j]);
+            }
+            old = append(old,0);
+            if (delta != 0) {
+                if (old.length > locator.length) {
+                    int[] replacement = polyScale(old,delta);
+                    old = polyScale(locator,inverse(delta));
+                    locator = replacement;
+                }
+                locator = polyAdd(locator,polyScale(old,delta));
+            }
+        }
+        int leading = 0;
+        while ((leading < locator.length) && (locator[leading] == 0)) {
+            leading++;
+        }
+        if (leading > 0) {
+            int[] trimmed = new int[locator.length - leading];
+            System.arraycopy(locator,leading,trimmed,0,trimmed.length);
+            locator = trimmed;
+        }
+        if ((locator.length - 1) * 2 > paritySymbols)
+            return null;
+        return locator;
+    }
+
+    /**
+     * Chien search
+     * @return the positions (index within the codeword) of the errors or null if they cannot be found
+     */
+    private int[] findErrors(int[] locator, int length) {
+        final int errors = locator.length - 1;
+        int[] reversed = new int[locator.length];
+        for (int i=0;i<locator.length;i++) {
+            reversed[i] = locator[locator.length-1-i];
+        }
+        int[] positions = new int[errors];
+        int found = 0;
+        for (int i=0;i<length;i++) {
+            if (polyEval(reversed,EXP[i]) == 0) {
+                if (found == errors)
+                    return null;
+                positions[found++] = length - 1 - i;
+            }
+        }
+        if (found != errors)
+            return null;
+        return positions;
+    }
+
+    /**
+     * Forney algorithm
+     * @return false == the errors could not be corrected
+     */
+    private boolean correctErrata(int[] msg, int[] syndromes, int[] positions) {
+        final int length = msg.length;
+        int[] coefPositions = new int[positions.length];
+        int[] errataLocator = {1};
+        for (int i=0;i<positions.length;i++) {
+            coefPositions[i] = length - 1 - positions[i];
+            errataLocator = polyMul(errataLocator,new int[] {EXP[coefPositions[i]],1});
+        }
+        //error evaluator = (syndromes * locator) mod x^(errors+1), using the reversed syndromes
+        int[] reversedSyndromes = new int[syndromes.length];
+        for (int i=0;i<syndromes.length;i++) {
+            reversedSyndromes[i] = syndromes[syndromes.length-1-i];
+        }
+        int[] product = polyMul(reversedSyndromes,errataLocator);
+        final int evaluatorLength = errataLocator.length;
+        int[] evaluator = new int[evaluatorLength];
+        System.arraycopy(product,product.length-evaluatorLength,evaluator,0,evaluatorLength);
+
+        int[] x = new int[coefPositions.length];
+        for (int i=0;i<x.length;i++) {
+            x[i] = EXP[coefPositions[i] % 255];
+        }
+        for (int i=0;i<x.length;i++) {
+            final int xInverse = inverse(x[i]);
+            int locatorPrime = 1;
+            for (int j=0;j<x.length;j++) {
+                if (j != i)
+                    locatorPrime = mul(locatorPrime,1 ^ mul(xInverse,x[j]));
+            }
+            if (locatorPrime == 0)
+                return false;
+            final int y = mul(x[i],polyEval(evaluator,xInverse));
+            msg[positions[i]] ^= div(y,locatorPrime);
+        }
+        return true;
+    }
+
+    private static int mul(int a, int b) {
+        if ((a == 0) || (b == 0))
+            return 0;
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int div(int a, int b) {
+        if (a == 0)
+            return 0;
+        return EXP[(LOG[a] + 255 - LOG[b]) % 255];
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    private static int[] polyScale(int[] p, int x) {
+        int[] out = new int[p.length];
+        for (int i=0;i<p.length;i++) {
+            out[i] = mul(p[i],x);
+        }
+        return out;
+    }
+
+    private static int[] polyAdd(int[] p, int[] q) {
+        int[] out = new int[Math.max(p.length,q.length)];
+        for (int i=0;i<p.length;i++) {
+            out[i + out.length - p.length] = p[i];
+        }
+        for (int i=0;i<q.length;i++) {
+            out[i + out.length - q.length] ^= q[i];
+        }
+        return out;
+    }
+
+    private static int[] polyMul(int[] p, int[] q) {
+        int[] out = new int[p.length + q.length - 1];
+        for (int j=0;j<q.length;j++) {
+            for (int i=0;i<p.length;i++) {
+                out[i+j] ^= mul(p[i],q[j]);
+            }
+        }
+        return out;
+    }
+
+    private static int polyEval(int[] p, int x) {
+        int y = p[0];
+        for (int i=1;i<p.length;i++) {
+            y = mul(y,x) ^ p[i];
+        }
+        return y;
+    }
+
+    private static int[] append(int[] p, int value) {
+        int[] out = new int[p.length+1];
+        System.arraycopy(p,0,out,0,p.length);
+        out[p.length] = value;
+        return out;
+    }
+}
@@ -0,0 +1,276 @@
+package org.sofwerx.sqandr.sdr.fec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Protects the SDR link with Reed-Solomon codewords. Data is split into groups of interleave
+ * codewords; each group is sent as a two byte sync marker followed by the codewords interleaved
+ * byte by byte, so a burst of corrupted bytes (like the periodic bit inversion seen between SDRs)
+ * is spread across several codewords instead of overwhelming one.
+ *
+ * The first two data bytes of each group hold the number of data bytes the group carries so the
+ * padding in the last group is not passed on. Each codeword is XORed with its own mask so that a
+ * byte lost or gained on the link makes the following codewords fail instead of decoding as their
+ * neighbours; only codewords that decode are passed on. The sync marker is checked on every group
+ * so the decoder can find the stream again one byte either side of where the next group was
+ * expected.
+ */
+public class ReedSolomonFecCodec implements FecCodec {
+    private final static byte[] SYNC = {(byte)0xE2,(byte)0x4B}; //neither byte is the other or its inverse, so a marker shifted by a byte or inverted is not mistaken for one in sync
+    private final static int LENGTH_BYTES = 2;
+    private final static int MIN_BUFFER_SIZE = 4096;
+    private final ReedSolomon rs;
+    private final int dataBytes;
+    private final int codewordBytes;
+    private final int interleave;
+    private final int groupBytes; //size of a group without the sync marker
+    private final int groupData; //data bytes carried by a group, not counting its length
+    private final byte[] masks;
+    private final byte[][] codewords;
+    private final boolean[] decoded;
+    private ByteBuffer processBuf;
+    private boolean locked = false;
+    private boolean inverted = false;
+    private long corrected = 0l;
+    private long uncorrectable = 0l;
+
+    /**
+     * @param dataBytes data bytes per codeword
+     * @param parityBytes parity bytes per codeword (can correct up to half this many bad bytes)
+     * @param interleave number of codewords interleaved together (1 == no interleaving)
+     */
+    public ReedSolomonFecCodec(int dataBytes, int parityBytes, int interleave) {
+        if ((dataBytes < 1) || (dataBytes + parityBytes > 255))
+            throw new IllegalArgumentException("Codeword (data + parity) must be between 1 and 255 bytes");
+        this.interleave = Math.max(1,interleave);
+        if (dataBytes * this.interleave <= LENGTH_BYTES)
+            throw new IllegalArgumentException("Each group needs more than "+LENGTH_BYTES+" data bytes");
+        rs = new ReedSolomon(parityBytes);
+        this.dataBytes = dataBytes;
+        this.codewordBytes = dataBytes + parityBytes;
+        groupBytes = codewordBytes * this.interleave;
+        groupData = dataBytes * this.interleave - LENGTH_BYTES;
+        masks = new byte[this.interleave];
+        for (int c=0;c<this.interleave;c++) {
+            masks[c] = (byte)(0x35 * (c + 1));
+        }
+        codewords = new byte[this.interleave][codewordBytes];
+        decoded = new boolean[this.interleave];
+        processBuf = ByteBuffer.allocate(Math.max(MIN_BUFFER_SIZE,(groupBytes + SYNC.length) * 4));
+    }
+
+    /**
+     * Gets the ratio of bytes sent to data bytes carried (i.e. 2.0 == twice as many bytes are sent)
+     * @return
+     */
+    public float getOverhead() {
+        return ((float)(groupBytes + SYNC.length))/((float)groupData);
+    }
+
+    @Override
+    public int getEncodedSize(int dataLength) {
+        return ((dataLength + groupData - 1) / groupData) * (groupBytes + SYNC.length);
+    }
+
+    @Override
+    public int getMaxDataSize(int encodedLength) {
+        return (encodedLength / (groupBytes + SYNC.length)) * groupData;
+    }
+
+    @Override
+    public byte[] encode(byte[] data) {
+        if (data == null)
+            return null;
+        final int groups = (data.length + groupData - 1) / groupData;
+        byte[][] encoding = new byte[interleave][codewordBytes];
+        ByteBuffer out = ByteBuffer.allocate(groups * (groupBytes + SYNC.length));
+        int index = 0;
+        for (int group=0;group<groups;group++) {
+            final int length = Math.min(groupData,data.length - index);
+            int pos = 0; //position within the group's data
+            for (int c=0;c<interleave;c++) {
+                byte[] codeword = encoding[c];
+                for (int i=0;i<dataBytes;i++) {
+                    if (pos == 0)
+                        codeword[i] = (byte)(length >> 8);
+                    else if (pos == 1)
+                        codeword[i] = (byte)length;
+                    else if (pos - LENGTH_BYTES < length)
+                        codeword[i] = data[index + pos - LENGTH_BYTES];
+                    else
+                        codeword[i] = 0; //pad
+                    pos++;
+                }
+                rs.encode(codeword,0,dataBytes);
+            }
+            index += length;
+            out.put(SYNC);
+            for (int i=0;i<codewordBytes;i++) {
+                for (int c=0;c<interleave;c++) {
+                    out.put((byte)(encoding[c][i] ^ masks[c]));
+                }
+            }
+        }
+        return out.array();
+    }
+
+    @Override
+    public byte[] decode(byte[] raw) {
+        if ((raw == null) || (processBuf == null))
+            return null;
+        if (raw.length > processBuf.remaining()) {
+            //the buffer is not draining, so start over with the newest data
+            processBuf.clear();
+            locked = false;
+            uncorrectable++;
+            if (raw.length > processBuf.capacity())
+                processBuf.put(raw,raw.length - processBuf.capacity(),processBuf.capacity());
+            else
+                processBuf.put(raw);
+        } else
+            processBuf.put(raw);
+        processBuf.flip();
+
+        ByteArrayOutputStream out = null;
+        while (processBuf.remaining() >= groupBytes + SYNC.length) {
+            final int start = processBuf.position();
+            final int groupStart;
+            if (locked) {
+                groupStart = findGroupWhileLocked(start);
+                if (groupStart < 0) {
+                    locked = false;
+                    continue;
+                }
+                if (groupStart + groupBytes > processBuf.limit())
+                    break; //wait for the rest of the group
+            } else {
+                if (isSync(start,false))
+                    inverted = false;
+                else if (isSync(start,true))
+                    inverted = true;
+                else {
+                    processBuf.position(start+1);
+                    continue;
+                }
+                groupStart = start + SYNC.length;
+            }
+            int good = decodeGroup(groupStart);
+            if (good == 0) {
+                //probably a false sync (or lost sync); slide forward and look again
+                locked = false;
+                processBuf.position(start+1);
+                continue;
+            }
+            if (out == null)
+                out = new ByteArrayOutputStream();
+            writeData(out);
+            locked = true;
+            processBuf.position(groupStart + groupBytes);
+        }
+        processBuf.compact();
+        if ((out == null) || (out.size() == 0))
+            return null;
+        return out.toByteArray();
+    }
+
+    /**
+     * Finds the next group's data when already in sync with the stream. The group is expected at
+     * start; one corrupted sync byte is tolerated there. Otherwise a sync marker a byte earlier (a
+     * byte was lost) or later (a byte was gained) is accepted.
+     * @param start
+     * @return the start of the group's data or -1 if the stream was lost
+     */
+    private int findGroupWhileLocked(int start) {
+        final byte s0 = sync(0);
+        final byte s1 = sync(1);
+        final byte a = processBuf.get(start);
+        final byte b = processBuf.get(start+1);
+        if ((a == s0) || (b == s1))
+            return start + SYNC.length;
+        if (a == s1)
+            return start + 1;
+        if ((b == s0) && (start + 2 < processBuf.limit()) && (processBuf.get(start+2) == s1))
+            return start + 3;
+        return -1;
+    }
+
+    private byte sync(int index) {
+        return inverted ? (byte)~SYNC[index] : SYNC[index];
+    }
+
+    private boolean isSync(int start, boolean inverse) {
+        final byte a = processBuf.get(start);
+        final byte b = processBuf.get(start+1);
+        if (inverse)
+            return (a == (byte)~SYNC[0]) && (b == (byte)~SYNC[1]);
+        return (a == SYNC[0]) && (b == SYNC[1]);
+    }
+
+    /**
+     * Deinterleaves and decodes the group
+     * @param groupStart
+     * @return the number of codewords that decoded
+     */
+    private int decodeGroup(int groupStart) {
+        final byte flip = inverted ? (byte)0xFF : 0;
+        for (int i=0;i<codewordBytes;i++) {
+            for (int c=0;c<interleave;c++) {
+                codewords[c][i] = (byte)(processBuf.get(groupStart + i*interleave + c) ^ masks[c] ^ flip);
+            }
+        }
+        int good = 0;
+        int fixed = 0;
+        for (int c=0;c<interleave;c++) {
+            int result = rs.decode(codewords[c],0,codewordBytes);
+            decoded[c] = result >= 0;
+            if (decoded[c]) {
+                good++;
+                fixed += result;
+            }
+        }
+        if (good > 0) {
+            corrected += fixed;
+            uncorrectable += interleave - good;
+        } else
+            uncorrectable++; //the rest are counted once the stream is found again
+        return good;
+    }
+
+    /**
+     * Passes on the data from the codewords that decoded. If the length did not decode, the
+     * other codewords are passed on whole, padding included.
+     * @param out
+     */
+    private void writeData(ByteArrayOutputStream out) {
+        int length = groupData;
+        if (decoded[0]) {
+            length = ((codewords[0][0] & 0xFF) << 8) | (codewords[0][1] & 0xFF);
+            if (length > groupData)
+                length = groupData;
+        }
+        for (int c=0;c<interleave;c++) {
+            if (!decoded[c])
+                continue;
+            final int first = Math.max(0,c * dataBytes - LENGTH_BYTES); //position of the codeword's first byte within the group's data
+            final int skip = (c == 0) ? LENGTH_BYTES : 0;
+            final int count = Math.min(dataBytes - skip,length - first);
+            if (count > 0)
+                out.write(codewords[c],skip,count);
+        }
+    }
+
+    /**
+     * Gets the number of bytes repaired
+     * @return
+     */
+    public long getCorrected() { return corrected; }
+
+    @Override
+    public long getUncorrectable() { return uncorrectable; }
+
+    @Override
+    public void close() {
+        processBuf = null;
+    }
+}
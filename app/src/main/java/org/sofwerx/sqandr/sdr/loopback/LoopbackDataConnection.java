@@ -0,0 +1,152 @@
+package org.sofwerx.sqandr.sdr.loopback;
+
+import org.sofwerx.notdroid.util.Log;
+
+import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.rf.IqChannel;
+import org.sofwerx.sqan.rf.SignalConverter;
+import org.sofwerx.sqan.rf.SignalModulator;
+import org.sofwerx.sqan.rf.SignalProcessingListener;
+import org.sofwerx.sqan.rf.SignalProcessor;
+import org.sofwerx.sqandr.sdr.AbstractDataConnection;
+import org.sofwerx.sqandr.sdr.fec.FecCodec;
+import org.sofwerx.sqandr.sdr.fec.FecMode;
+
+/**
+ * A data connection that needs no SDR: each packet is sent the way SerialConnection sends it
+ * (encrypted, segmented, FEC encoded) then modulated into IQ values, passed through an IqChannel
+ * and demodulated by a SignalProcessor back into the same receive path (FEC decoding, segment
+ * parsing and reassembly) a real SDR's data goes through. Packets are delivered to the
+ * DataConnectionListener on the receive thread.
+ */
+public class LoopbackDataConnection extends AbstractDataConnection implements SignalProcessingListener {
+    private final static String TAG = Config.TAG+".Loopback";
+    private final static int MAX_BYTES_PER_BURST = 252; //matches SerialConnection
+    private final SignalModulator modulator;
+    private final IqChannel channel;
+    private final SignalProcessor signalProcessor;
+    private final boolean leanMode;
+    private int maxBytesPerSend;
+    private boolean active = true;
+    private long buffersSent = 0l;
+    private long receiveTime = 0l;
+
+    /**
+     * @param modulator
+     * @param channel null == a perfect channel
+     * @param leanMode true == each write is preceded by the SqAN header instead of sending byte headers
+     */
+    public LoopbackDataConnection(SignalModulator modulator, IqChannel channel, boolean leanMode) {
+        this.modulator = modulator;
+        this.channel = channel;
+        this.leanMode = leanMode;
+        modulator.setLeanMode(leanMode);
+        signalProcessor = new SignalProcessor(this,leanMode);
+        maxBytesPerSend = getMaxBytesPerSend();
+    }
+
+    /**
+     * Gets the most segment bytes that still fit in one transmit buffer once FEC encoded
+     * @return
+     */
+    private int getMaxBytesPerSend() {
+        final int header = leanMode?SignalConverter.LEAN_HEADER.length:0;
+        return FecCodec.getMaxDataSize(txFec,MAX_BYTES_PER_BURST,modulator.getMaxBytesPerBuffer()-header);
+    }
+
+    /**
+     * Replaces the FEC set in SdrConfig for both sending and receiving
+     * @param mode
+     * @param dataBytes
+     * @param parityBytes
+     * @param interleave
+     */
+    public void setFec(FecMode mode, int dataBytes, int parityBytes, int interleave) {
+        if (fec != null)
+            fec.close();
+        if (txFec != null)
+            txFec.close();
+        fec = FecCodec.build(mode,dataBytes,parityBytes,interleave);
+        txFec = FecCodec.build(mode,dataBytes,parityBytes,interleave);
+        maxBytesPerSend = getMaxBytesPerSend();
+    }
+
+    @Override
+    public boolean isActive() { return active; }
+
+    /**
+     * Wraps the packet the same way SerialConnection does before a burst
+     * @param data
+     */
+    @Override
+    public void burstPacket(byte[] data) {
+        if (active)
+            sendPacket(data,maxBytesPerSend);
+    }
+
+    /**
+     * Adds the SqAN header in lean mode, as SerialConnection does when formatting each burst for
+     * SqANDR
+     * @param burst
+     */
+    @Override
+    protected void sendBurst(byte[] burst) {
+        if (leanMode) {
+            byte[] withHeader = new byte[SignalConverter.LEAN_HEADER.length+burst.length];
+            System.arraycopy(SignalConverter.LEAN_HEADER,0,withHeader,0,SignalConverter.LEAN_HEADER.length);
+            System.arraycopy(burst,0,withHeader,SignalConverter.LEAN_HEADER.length,burst.length);
+            burst = withHeader;
+        }
+        write(burst);
+    }
+
+    /**
+     * Sends the data in one SDR transmit buffer, as SqANDR does with each write it receives
+     * @param data
+     */
+    @Override
+    public void write(byte[] data) {
+        if ((data == null) || !active)
+            return;
+        if (data.length > modulator.getMaxBytesPerBuffer())
+            Log.w(TAG,data.length+"b is more than the "+modulator.getMaxBytesPerBuffer()+"b that fit in a transmit buffer; the rest will not be sent");
+        byte[] iq = modulator.modulate(data);
+        buffersSent++;
+        if (channel != null)
+            iq = channel.apply(iq);
+        final long start = System.nanoTime();
+        signalProcessor.consumeIqData(iq);
+        receiveTime += System.nanoTime() - start;
+    }
+
+    /**
+     * Gets the number of transmit buffers sent, each of which takes SignalModulator.getBufferSize()
+     * samples of air time
+     * @return
+     */
+    public long getBuffersSent() { return buffersSent; }
+
+    /**
+     * Gets the time spent demodulating and FEC decoding (the work done as each SDR buffer arrives);
+     * segment parsing and reassembly happen on the receive thread and are not included
+     * @return ns
+     */
+    public long getReceiveTime() { return receiveTime; }
+
+    @Override
+    public void onSignalDataExtracted(byte[] data) {
+        handleRawDatalinkInput(data);
+    }
+
+    @Override
+    public void onSignalDataOverflow() {
+        Log.w(TAG,"Signal Processor is unable to keep up with data intake");
+    }
+
+    @Override
+    public void close() {
+        active = false;
+        signalProcessor.shutdown();
+        super.close();
+    }
+}
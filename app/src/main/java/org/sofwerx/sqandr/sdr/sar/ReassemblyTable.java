@@ -0,0 +1,99 @@
+package org.sofwerx.sqandr.sdr.sar;
+
+import org.sofwerx.notdroid.util.Log;
+
+import org.sofwerx.sqan.Config;
+
+/**
+ * Holds the packets being reassembled from segments, with one slot per packet ID. Slots (and the
+ * buffer that completed packets are reassembled into) are reused rather than reallocated for each
+ * packet. Not thread safe; intended to be used from the thread reading the SDR.
+ */
+public class ReassemblyTable {
+    private final static String TAG = Config.TAG+".Reassembly";
+    private final static long TIME_TO_IGNORE_DUPLICATES = 1000l; //segments for a packet ID that was just reassembled are treated as repeats for this long (ms)
+    private final Segmenter[] slots = new Segmenter[Segment.MAX_UNIQUE_PACKET_ID+1];
+    private final boolean[] inUse = new boolean[slots.length];
+    private final long[] completedAt = new long[slots.length];
+    private final byte[] output = new byte[Segmenter.MAX_POSSIBLE_LENGTH];
+    private int active = 0;
+
+    /**
+     * Adds a segment to the packet it belongs to
+     * @param segment
+     * @return the size of the packet if this segment completed it (the packet is then in
+     * getOutput() until the next call to add) or -1 if the packet is not yet complete
+     */
+    public int add(Segment segment) {
+        if ((segment == null) || !segment.isValid() || segment.isStandAlone())
+            return -1;
+        final int slot = segment.getPacketId() & 0xFF;
+        Segmenter segmenter = slots[slot];
+        if (!inUse[slot]) {
+            if (System.currentTimeMillis() < completedAt[slot] + TIME_TO_IGNORE_DUPLICATES) {
+                Log.d(TAG,"Segment "+segment.getIndex()+" for recently reassembled Packet ID "+slot+" ignored as a repeat");
+                return -1;
+            }
+            Log.d(TAG,"First segment ("+segment.getIndex()+") for Packet ID "+slot+" received");
+            if (segmenter == null) {
+                segmenter = new Segmenter(segment.getPacketId());
+                slots[slot] = segmenter;
+            } else
+                segmenter.reset(segment.getPacketId());
+            inUse[slot] = true;
+            active++;
+        } else if (segmenter.isStale()) {
+            Log.d(TAG,"Packet ID "+slot+" reused before its old segments went stale; dropping the old segments ("+segmenter.getParts()+")");
+            segmenter.reset(segment.getPacketId());
+        }
+        if (!segmenter.add(segment) || !segmenter.isComplete())
+            return -1;
+        if (segmenter.getTotalSize() > output.length) {
+            Log.w(TAG,"Packet ID "+slot+" is "+segmenter.getTotalSize()+"b which is larger than the "+output.length+"b max; dropping");
+            release(slot);
+            return -1;
+        }
+        final int size = segmenter.reassemble(output);
+        Log.d(TAG,"Packet with "+segmenter.getSegmentCount()+" segments successfully reassembled");
+        release(slot);
+        completedAt[slot] = System.currentTimeMillis();
+        return size;
+    }
+
+    /**
+     * Gets the buffer holding the most recently completed packet
+     * @return
+     */
+    public byte[] getOutput() { return output; }
+
+    /**
+     * Drops any packets that have waited too long for their remaining segments
+     * @return the number of packets dropped
+     */
+    public int dropStale() {
+        if (active == 0)
+            return 0;
+        int dropped = 0;
+        for (int i=0;i<slots.length;i++) {
+            if (inUse[i] && slots[i].isStale()) {
+                Log.d(TAG,"Packet ID "+i+" stale, dropping (Segments: "+slots[i].getParts()+")");
+                release(i);
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Are any packets waiting on more segments
+     * @return
+     */
+    public boolean isEmpty() { return active == 0; }
+
+    private void release(int slot) {
+        if (inUse[slot]) {
+            inUse[slot] = false;
+            active--;
+        }
+    }
+}
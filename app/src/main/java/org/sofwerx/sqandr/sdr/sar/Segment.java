@@ -1,6 +1,6 @@
 package org.sofwerx.sqandr.sdr.sar;
 
-import android.util.Log;
+import org.sofwerx.notdroid.util.Log;
 
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqan.util.NetUtil;
@@ -8,17 +8,19 @@ import org.sofwerx.sqandr.util.SdrUtils;
 
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Packet structure:
  *  2 bytes header marker
  *  1 byte len
  *  1 byte Flags
- *      (includes Flag indicating segment (SEGMENTED_FLAG),
- *      the ID of the whole packet (OVERALL_ID) and
+ *      (includes Flag indicating the final segment (FINAL_SEGMENT_FLAG) and
  *      the index of this segment within that packet (INDEX)
  *  1 byte checksum
+ *  1 byte ID of the whole packet (only for packets that are split across more than one segment)
  *  < MAX_LENGTH_BEFORE__SEGMENTING bytes the payload
+ * The len and checksum cover the packet ID as well as the payload.
  */
 public class Segment {
     private final static String TAG = Config.TAG+".Seg";
@@ -27,10 +29,10 @@ public class Segment {
     public final static byte[] HEADER_MARKER = {(byte)0b01100110,(byte)0b10011001};
     public final static byte[] INVERSE_HEADER_MARKER = {(byte)0b10011001,(byte)0b01100110};
     private final static byte FINAL_SEGMENT_FLAG = (byte)0b10000000;
-    private final static byte OVERALL_ID_MASK = (byte)0b01100000;
     private final static byte INDEX_IN_SEGMENT_MASK = (byte)0b00011111;
     public final static int MAX_VALID_INDEX = 31;
-    public final static int MAX_UNIQUE_PACKET_ID = 3;
+    public final static int MAX_UNIQUE_PACKET_ID = 255; //packet IDs are a full byte so several packets can be in flight without colliding
+    public final static int MAX_SEGMENTED_PAYLOAD = MAX_LENGTH_BEFORE_SEGMENTING - 1; //room is left for the packet ID
 
     private final static int HEADER_SIZE = 5;
 
@@ -117,25 +119,28 @@ public class Segment {
     public byte[] toBytes() {
         if (data == null)
             return null;
-        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE+data.length);
-        out.put(HEADER_MARKER);
-        out.put((byte)data.length);
-        out.put(getFlags());
-        out.put((byte)(NetUtil.getChecksum(data)&0xff));
-        out.put(data);
-        return out.array();
+        final int idSize = isStandAlone()?0:1;
+        byte[] out = new byte[HEADER_SIZE+idSize+data.length];
+        out[0] = HEADER_MARKER[0];
+        out[1] = HEADER_MARKER[1];
+        out[2] = (byte)(idSize+data.length);
+        out[3] = getFlags();
+        if (idSize > 0)
+            out[HEADER_SIZE] = packetId;
+        System.arraycopy(data,0,out,HEADER_SIZE+idSize,data.length);
+        out[4] = NetUtil.getChecksum(out,HEADER_SIZE,idSize+data.length);
+        return out;
     }
 
     private byte getFlags() {
-        int out = index;
-        out = out | packetId;
+        int out = index & INDEX_IN_SEGMENT_MASK;
         if (isFinalSegment)
             out = out | FINAL_SEGMENT_FLAG;
         return (byte)out;
     }
 
     private void parseFlags(byte flags) {
-        packetId = (byte)(flags & OVERALL_ID_MASK);
+        packetId = 0;
         index = (flags & INDEX_IN_SEGMENT_MASK) & 0xFF;
         isFinalSegment = (FINAL_SEGMENT_FLAG & flags) == FINAL_SEGMENT_FLAG;
     }
@@ -162,14 +167,25 @@ public class Segment {
         }
         try {
             parseFlags(buf.get());
-            data = new byte[size];
+            byte[] payload = new byte[size];
             byte checksum = buf.get();
-            buf.get(data);
-            if (checksum != NetUtil.getChecksum(data)) {
-                Log.w(TAG, "Parsing Segment "+index+" of Packet ID "+packetId+" failed - bad checksum ("+checksum+" received, "+NetUtil.getChecksum(data)+" expected data size "+size+"b)"+(isFinalSegment?" final segment":""));
+            buf.get(payload);
+            if (checksum != NetUtil.getChecksum(payload)) {
+                Log.w(TAG, "Parsing Segment "+index+" failed - bad checksum ("+checksum+" received, "+NetUtil.getChecksum(payload)+" expected data size "+size+"b)"+(isFinalSegment?" final segment":""));
                 data = null;
                 return;
             }
+            if (isStandAlone())
+                data = payload;
+            else {
+                if (size < 2) {
+                    Log.w(TAG,"Parsing Segment "+index+" failed - too small to hold a packet ID");
+                    data = null;
+                    return;
+                }
+                packetId = payload[0];
+                data = Arrays.copyOfRange(payload,1,size);
+            }
         } catch (BufferUnderflowException e) {
             Log.w(TAG,"Parsing failed - "+e.getMessage());
         }
@@ -189,7 +205,7 @@ public class Segment {
                 Log.w(TAG,"Parsing failed - bad header marker[1]");
                 return;
             }
-            int size = in.get();
+            int size = in.get() & 0xFF;
             if (size > MAX_LENGTH_BEFORE_SEGMENTING) {
                 Log.w(TAG,"Parsing failed - length is "+size+"b which is not possible");
                 return;
@@ -1,6 +1,6 @@
 package org.sofwerx.sqandr.sdr.sar;
 
-import android.util.Log;
+import org.sofwerx.notdroid.util.Log;
 
 import org.sofwerx.sqan.Config;
 
@@ -9,23 +9,44 @@ import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Creates segmented packets for transport across the SDR.
+ * Creates segmented packets for transport across the SDR and collects the segments of a received
+ * packet until it can be reassembled. Received segments are held by index with a bitmap of the
+ * indices received, so duplicates and completeness are checked without searching or sorting.
  */
 public class Segmenter {
     private final static String TAG = Config.TAG+".Seg";
-    public final static int MAX_POSSIBLE_LENGTH = Segment.MAX_LENGTH_BEFORE_SEGMENTING * Segment.MAX_VALID_INDEX;
+    public final static int MAX_POSSIBLE_LENGTH = Segment.MAX_SEGMENTED_PAYLOAD * Segment.MAX_VALID_INDEX;
     private final static long TIME_TO_STALE_FRAGMENTS = 1000l * 5l; //after this time (ms), this fragment should be abandoned
 
-    private ArrayList<Segment> segments;
-    private final long staleTime = System.currentTimeMillis() + TIME_TO_STALE_FRAGMENTS;
+    private final Segment[] segments = new Segment[Segment.MAX_VALID_INDEX+1];
+    private int received = 0; //bitmap of the segment indices received
+    private int finalIndex = -1;
+    private int segmentCount = 0;
+    private int totalSize = 0;
+    private long staleTime;
     private byte packetId;
     private static AtomicInteger packetIdIndex = new AtomicInteger(0);
 
     /*public Segmenter() { this(getNextPacketId()); }*/
 
     public Segmenter(byte packetId) {
+        reset(packetId);
+    }
+
+    /**
+     * Clears this Segmenter so it can be reused for another packet
+     * @param packetId
+     */
+    public void reset(byte packetId) {
         this.packetId = packetId;
-        init();
+        for (int i=0;i<segments.length;i++) {
+            segments[i] = null;
+        }
+        received = 0;
+        finalIndex = -1;
+        segmentCount = 0;
+        totalSize = 0;
+        staleTime = System.currentTimeMillis() + TIME_TO_STALE_FRAGMENTS;
     }
 
     public boolean isSegmentPart(Segment segment) {
@@ -37,34 +58,37 @@ public class Segmenter {
     /**
      * Adds a segment to this Segmenter
      * @param segment
+     * @return true == the segment was added; false == the segment does not belong or is a duplicate
      */
-    public void add(Segment segment) {
+    public boolean add(Segment segment) {
         if (!isSegmentPart(segment)) {
             Log.w(TAG,"Unable to add segment - is null or does not belong");
-            return;
+            return false;
         }
-        if (segments == null) {
-            segments = new ArrayList<>();
-            segments.add(segment);
-            Log.d(TAG,"Added Seg "+segment.getIndex()+" to Packet ID "+packetId+" (first segment)");
-        } else {
-            Segment other = find(segment.getIndex());
-            if (other == null) {
-                Log.d(TAG,"Added Seg "+segment.getIndex()+" to Packet ID "+packetId);
-                segments.add(segment);
-            } else
-                Log.d(TAG,"This segment already exists; dropping");
+        final int index = segment.getIndex();
+        if ((index < 0) || (index > Segment.MAX_VALID_INDEX)) {
+            Log.w(TAG,"Unable to add segment - index "+index+" is out of range");
+            return false;
         }
+        final int bit = 1 << index;
+        if ((received & bit) != 0) {
+            Log.d(TAG,"This segment already exists; dropping");
+            return false;
+        }
+        if (segment.isFinalSegment())
+            finalIndex = index;
+        segments[index] = segment;
+        received |= bit;
+        segmentCount++;
+        totalSize += segment.getData().length;
+        Log.d(TAG,"Added Seg "+index+" to Packet ID "+(packetId & 0xFF)+((segmentCount == 1)?" (first segment)":""));
+        return true;
     }
 
     public Segment find(int index) {
-        if ((segments != null) && !segments.isEmpty()) {
-            for (Segment segment : segments) {
-                if (segment.getIndex() == index)
-                    return segment;
-            }
-        }
-        return null;
+        if ((index < 0) || (index > Segment.MAX_VALID_INDEX))
+            return null;
+        return segments[index];
     }
 
     /**
@@ -72,75 +96,55 @@ public class Segmenter {
      * @return
      */
     public boolean isComplete() {
-        if ((segments != null) && !segments.isEmpty()) {
-            sortAscending();
-            int index = -1;
-            for (Segment segment:segments) {
-                index++;
-                if (segment.getIndex() == index) {
-                    if (segment.isFinalSegment())
-                        return true;
-                } else
-                    return false;
-            }
-        }
-        return false;
+        if (finalIndex < 0)
+            return false;
+        final int expected = (finalIndex == 31)?-1:((1 << (finalIndex+1)) - 1);
+        return received == expected;
     }
 
-    private void sortAscending() {
-        if ((segments == null) || (segments.size() < 2))
-            return;
-        boolean sorted = false;
-        int i;
-        while (!sorted) {
-            i = 1;
-            sorted = true;
-            while (i < segments.size()){
-                if (segments.get(i - 1).getIndex() > segments.get(i).getIndex()) {
-                    Segment temp = segments.get(i - 1);
-                    segments.set(i - 1, segments.get(i));
-                    segments.set(i, temp);
-                    sorted = false;
-                }
-                i++;
-            }
-        }
-    }
+    /**
+     * Gets the size of the reassembled packet
+     * @return
+     */
+    public int getTotalSize() { return totalSize; }
 
     /**
      * Reassembles all of the segments into the original package
      * @return
      */
     public byte[] reassemble() {
-        if ((segments == null) || segments.isEmpty())
+        if (segmentCount == 0)
             return null;
-        int totalSize = 0;
-        for (Segment segment:segments) {
-            if (segment.getData() != null)
-                totalSize += segment.getData().length;
-        }
-        ByteBuffer out = ByteBuffer.allocate(totalSize);
+        byte[] out = new byte[totalSize];
+        reassemble(out);
+        return out;
+    }
+
+    /**
+     * Reassembles all of the segments into the provided array
+     * @param out must be at least getTotalSize() long
+     * @return the number of bytes written to out
+     */
+    public int reassemble(byte[] out) {
+        int position = 0;
         for (Segment segment:segments) {
-            out.put(segment.getData());
+            if (segment != null) {
+                byte[] data = segment.getData();
+                System.arraycopy(data,0,out,position,data.length);
+                position += data.length;
+            }
         }
-        return out.array();
+        return position;
     }
 
     public static byte getNextPacketId() {
-        int overallId = packetIdIndex.getAndIncrement();
-        if (packetIdIndex.get() > Segment.MAX_UNIQUE_PACKET_ID)
-            packetIdIndex.set(0);
-        return (byte)(overallId << 5);
+        return (byte)(packetIdIndex.getAndIncrement() & Segment.MAX_UNIQUE_PACKET_ID);
     }
 
-    private void init() { }
-
     public boolean isStale() {
         return System.currentTimeMillis() > staleTime;
     }
 
-    public ArrayList<Segment> getSegments() { return segments; }
-
     /**
      * Wraps the data in the required segmentation info
      * @param data
@@ -163,8 +167,8 @@ public class Segmenter {
         Segment segment;
         while (i<data.length) {
             len = data.length - i;
-            if (len > Segment.MAX_LENGTH_BEFORE_SEGMENTING)
-                len = Segment.MAX_LENGTH_BEFORE_SEGMENTING;
+            if (len > Segment.MAX_SEGMENTED_PAYLOAD)
+                len = Segment.MAX_SEGMENTED_PAYLOAD;
             chunk = new byte[len];
             buf.get(chunk);
             i += len;
@@ -175,7 +179,7 @@ public class Segmenter {
                 segment.setFinalSegment(true);
             segments.add(segment);
             index++;
-            if (index > Segment.MAX_LENGTH_BEFORE_SEGMENTING) {
+            if (index > Segment.MAX_VALID_INDEX) {
                 Log.e(TAG, "WARNING, unable to segment packet - packet is larger than supported; this packet should be broken into smaller packets before being passed to the segmenter");
                 break;
             }
@@ -195,26 +199,21 @@ public class Segmenter {
         return segment;
      }
 
-    public int getSegmentCount() {
-        if (segments == null)
-            return 0;
-        return segments.size();
-    }
+    public int getSegmentCount() { return segmentCount; }
 
     public byte getPacketId() { return packetId; }
 
     public String getParts() {
-        if ((segments == null) || segments.isEmpty())
+        if (segmentCount == 0)
             return "empty";
         else {
             StringBuilder out = new StringBuilder();
-            boolean first = true;
-            for (Segment seg:segments) {
-                if (first)
-                    first = false;
-                else
-                    out.append(',');
-                out.append(seg.getIndex());
+            for (int i=0;i<segments.length;i++) {
+                if ((received & (1 << i)) != 0) {
+                    if (out.length() > 0)
+                        out.append(',');
+                    out.append(i);
+                }
             }
             return out.toString();
         }
@@ -15,32 +15,39 @@ import com.hoho.android.usbserial.driver.UsbSerialDriver;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
 import com.hoho.android.usbserial.util.SerialInputOutputManager;
 
-import org.sofwerx.sqan.ManetOps;
 import org.sofwerx.sqan.listeners.PeripheralStatusListener;
+import org.sofwerx.sqan.manet.common.ManetType;
+import org.sofwerx.sqan.manet.common.RateController;
+import org.sofwerx.sqan.manet.common.TxScheduler;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.packet.TrafficClass;
 import org.sofwerx.sqan.rf.SignalConverter;
+import org.sofwerx.sqan.rf.SignalModulator;
 import org.sofwerx.sqan.rf.SignalProcessingListener;
 import org.sofwerx.sqan.util.CommsLog;
+import org.sofwerx.sqan.util.Metrics;
 import org.sofwerx.sqan.rf.SignalProcessor;
 import org.sofwerx.sqandr.sdr.AbstractDataConnection;
 import org.sofwerx.sqan.Config;
 import org.sofwerx.sqandr.sdr.SdrConfig;
+import org.sofwerx.sqandr.sdr.fec.FecCodec;
 import org.sofwerx.sqandr.sdr.sar.Segment;
-import org.sofwerx.sqandr.sdr.sar.Segmenter;
-import org.sofwerx.sqandr.util.ContinuityGapSAR;
-import org.sofwerx.sqandr.util.Crypto;
 import org.sofwerx.sqandr.util.Loader;
 import org.sofwerx.sqandr.util.SqANDRLoaderListener;
 import org.sofwerx.sqandr.util.StringUtils;
+import org.sofwerx.sqan.util.TransmittedTally;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SerialConnection extends AbstractDataConnection implements SerialInputOutputManager.Listener, SignalProcessingListener {
     private final static String TAG = Config.TAG+".Serial";
+    private final static Metrics.Counter linkBytesWritten = Metrics.counter("sqan_link_written_bytes_total","Bytes written into the link","link","SDR");
+    private final static Metrics.Histogram linkWriteTime = Metrics.histogram("sqan_link_write_ms","Time each write into the link took","link","SDR");
     private final static boolean USE_LEAN_MODE = false; //TODO in development, Lean mode - sqandr provides raw data and uses the most efficient data structure; binIn,binOut, and tx/rx buffer sizes are set by SqANDR
     private final static boolean USE_BIN_USB_IN = true; //send binary input to Pluto
     private final static boolean USE_BIN_USB_OUT = true; //use binary output from Pluto
@@ -54,11 +61,17 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
     private final static long MAX_CYCLE_TIME = (long) (1f/(SAMPLE_RATE * 1000f/RX_BUFFER_SIZE))+2l; //what is the max number of ms between cycles before data is lost
 
     private final static String OPTIMAL_FLAGS = "-txSize "+TX_BUFFER_SIZE+" -rxSize "+RX_BUFFER_SIZE+" -messageRepeat "+MESSAGE_REPEAT+" -rxsrate "+SAMPLE_RATE+" -txsrate "+SAMPLE_RATE+" -txbandwidth 2.3 -rxbandwidth 2.3 -perLast "+PERCENT_OF_LAST_AMPLITUDE+" -noHeader"+((SAMPLE_RATE<3.2f)?" -fir":"");
-    private final static int MAX_BYTES_PER_SEND = AbstractDataConnection.USE_GAP_STRATEGY?220:252;
+    private final static int MAX_BYTES_PER_BURST = 252; //most segment bytes sent in one write, before FEC
+    private final static int MAX_SQANDR_INPUT = Math.min(1024,new SignalModulator(TX_BUFFER_SIZE).getMaxBytesPerBuffer()); //most bytes SqANDR will send from one write (its input buffer is 1024b and it sends one tx buffer per write)
+    private final static int LINK_HEADER_LENGTH = USE_LEAN_MODE?SignalConverter.LEAN_HEADER.length:0;
+    private final int maxBytesPerSend = FecCodec.getMaxDataSize(txFec,MAX_BYTES_PER_BURST,MAX_SQANDR_INPUT-LINK_HEADER_LENGTH);
     private final static int SERIAL_TIMEOUT = 100;
     private final static long DELAY_FOR_LOGIN_WRITE = 500l;
     private final static long DELAY_BEFORE_BLIND_LOGIN = 1000l * 5l;
-    private final static byte ESCAPE_BYTE = 0b01000000;
+    private final static int MAX_QUEUED_BURSTS = 200; //lossy and lower priority packets are dropped after this many are waiting to be sent
+    private final TxScheduler<byte[]> burstQueue = new TxScheduler<>("SDR serial",MAX_QUEUED_BURSTS);
+    private final RateController rate = RateController.get(ManetType.SDR,PacketHeader.BROADCAST_ADDRESS);
+    private final AtomicBoolean burstScheduled = new AtomicBoolean(false);
     private UsbDeviceConnection connection;
     private UsbSerialPort port;
     private SerialInputOutputManager ioManager;
@@ -82,16 +95,13 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
     private final static char HEADER_SHUTDOWN_CHAR = 'e'; //e
     private final static byte[] SHUTDOWN_BYTES = {(byte)0b00010000,(byte)0b00010000,(byte)0b00010000,(byte)0b00010000};
     private final static byte[] NO_DATA_HEARTBEAT = {(byte)0b00000001,(byte)0b00000010,(byte)0b00000011,(byte)0b00000100};
-    private final static byte LESS_THAN_32 = 0b00011111;
     private final static byte CHAR_128 = (byte)0b10000000;
-    private final static byte CHAR_127 = (byte)0b01111111;
-    private final static byte CHAR_255 = (byte)0b11111111;
-    private final static byte CHAR_64 = (byte)0b01000000;
     private final static byte HEADER_SHUTDOWN = (byte) HEADER_SHUTDOWN_CHAR; //e
     private final static byte HEADER_BUSYBOX = (byte)'b';
     private final static boolean USE_ESC_BYTES = true;
-
-    private final static boolean CONCAT_SEGMENT_BURSTS = true; //true == try to send as many segments as possible to the SDR on each write
+    private final static boolean USE_FRAMED_LINK = true; //ask SqANDR for the framed format, which falls back to escaped bytes if SqANDR does not acknowledge it
+    private final static String FRAMED_LINK_ACK = "m Framed link";
+    private final static int MAX_SQANDR_OUTPUT = 512; //most bytes SqANDR reports in one burst
 
     public final static int TX_GAIN = 10; //Magnitude in (0 to 85dB)
 
@@ -104,7 +114,9 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
     enum LoginStatus { NEED_CHECK_LOGIN_STATUS,CHECKING_LOGGED_IN,WAITING_USERNAME, WAITING_PASSWORD, WAITING_CONFIRMATION, ERROR, LOGGED_IN }
     enum SdrAppStatus { OFF, CHECKING_FOR_UPDATE, INSTALL_NEEDED,INSTALLING, NEED_START, STARTING, RUNNING, ERROR }
 
-    private ByteBuffer serialFormatBuf = ByteBuffer.allocate(MAX_BYTES_PER_SEND*4);
+    private ByteBuffer serialFormatBuf = ByteBuffer.allocate(getMaxSerialFormatSize(maxBytesPerSend));
+    private volatile boolean framedLink = false; //true once SqANDR has acknowledged the framed format
+    private final SerialLinkFormat.Deframer deframer = new SerialLinkFormat.Deframer(SerialLinkFormat.getMaxEncodedSize(MAX_SQANDR_OUTPUT,0));
 	private SignalProcessor signalProcessor;
 	private long lastCycleTime = Long.MAX_VALUE;
 
@@ -125,6 +137,7 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
                 +" -rx "+String.format("%.2f",SdrConfig.getRxFreq())
                 +(USE_BIN_USB_IN ?" -binI":"")
                 +(USE_BIN_USB_OUT ?" -binO":"")
+                +((USE_FRAMED_LINK && PROCESS_ON_PLUTO) ?" -framed":"") //raw IQ output is not framed
                 + ((PROCESS_ON_PLUTO || !USE_BIN_USB_OUT) ? "" : " -rawOut")
                 + " " + OPTIMAL_FLAGS
                 +"\n").getBytes(StandardCharsets.UTF_8);
@@ -284,9 +297,13 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
             }
             connection = null;
         }
-        if (gapSar == null) {
-            gapSar.close();
-            gapSar = null;
+        if (fec != null) {
+            fec.close();
+            fec = null;
+        }
+        if (txFec != null) {
+            txFec.close();
+            txFec = null;
         }
     }
 
@@ -296,124 +313,64 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
 
     /**
      * Burst adds any wrapping needed to communicate the data and then conducts
-     * a write
+     * a write. Packets are queued by traffic class so that control traffic is sent
+     * ahead of bulk data when the SDR is backed up, and are taken off the queue no
+     * faster than the rate controller for the SDR allows.
      * @param data
      */
     public void burstPacket(byte[] data) {
         if (data == null)
             return;
+        if (handler == null) {
+            burstNow(data);
+            return;
+        }
+        boolean lossy = (data.length >= PacketHeader.getSize()) && PacketHeader.isLossyOk(ByteBuffer.wrap(data));
+        if (burstQueue.offer(data,data.length,TrafficClass.ofPacket(data),lossy))
+            scheduleBurst(0l);
+        else
+            Log.d(TAG,"Burst queue full, dropping "+data.length+"b packet");
+    }
 
-        if (sdrAppStatus == SdrAppStatus.RUNNING) {
-            ManetOps.addBytesToTransmittedTally(data.length);
-            final byte[] cipherData = Crypto.encrypt(data);
-            if (Segment.isAbleToWrapInSingleSegment(cipherData)) {
-                Segment segment = new Segment();
-                segment.setData(cipherData);
-                segment.setStandAlone();
-                if (USE_BIN_USB_IN) {
-                    byte[] outgoingBytes = segment.toBytes();
-                    Log.d(TAG,"Outgoing (burst, standalone): *"+StringUtils.toHex(outgoingBytes));
-
-                    //FIXME for testing
-                    //outgoingBytes = StringUtils.toByteArray("00112233445566778899AABBCCDDEEFFFFEEDDCCBBAA9988776655443322110000112233445566778899AABBCCDDEEFFFFEEDDCCBBAA99887766554433221100");
-                    //FIXME for testing
-
-                    write(toSerialLinkBinFormat(outgoingBytes));
-                } else
-                    write(toSerialLinkFormat(segment.toBytes()));
-            } else {
-                Log.d(TAG, "This packet is larger than the SerialConnection output, segmenting...");
-                ArrayList<Segment> segments = Segmenter.wrapIntoSegments(cipherData);
-                if ((segments == null) || segments.isEmpty()) {
-                    Log.e(TAG, "There was an unexpected problem that did not produce any segments from this packet");
-                    return;
-                } else
-                    Log.d(TAG,"Segmenting "+cipherData.length+"b packet into "+segments.size()+" segments");
-                byte[] currentSegBytes;
-                ByteBuffer concatted = null;
-                if (CONCAT_SEGMENT_BURSTS) {
-                    concatted = ByteBuffer.allocate(2000);
-                    concatted.clear();
-                }
-
-                for (Segment segment : segments) {
-                    currentSegBytes = segment.toBytes();
-                    if (CONCAT_SEGMENT_BURSTS) {
-                        if (concatted.position() + currentSegBytes.length < MAX_BYTES_PER_SEND)
-                            concatted.put(currentSegBytes);
-                        else {
-                            if (concatted.position() > 0) {
-                                byte[] bytesToSend = new byte[concatted.position()];
-                                concatted.flip();
-                                concatted.get(bytesToSend);
-                                if (USE_BIN_USB_IN) {
-                                    Log.d(TAG,"Outgoing: *"+StringUtils.toHex(currentSegBytes));
-                                    write(toSerialLinkBinFormat(bytesToSend));
-                                } else
-                                    write(toSerialLinkFormat(bytesToSend));
-                                concatted.clear();
-                                concatted.put(currentSegBytes);
-                            } else
-                                Log.w(TAG,"Current segment size ("+currentSegBytes.length+"b) > max bytes per send ("+MAX_BYTES_PER_SEND+"b)");
-                        }
-                    } else {
-                        if (USE_BIN_USB_IN) {
-                            Log.d(TAG, "Outgoing: " + StringUtils.toHex(currentSegBytes));
-                            write(toSerialLinkBinFormat(currentSegBytes));
-                        } else {
-                            write(toSerialLinkFormat(currentSegBytes));
-                        }
-                    }
-                }
-                if (CONCAT_SEGMENT_BURSTS) {
-                    //send the last part of the segment
-                    if (concatted.position() > 0) {
-                        currentSegBytes = new byte[concatted.position()];
-                        concatted.flip();
-                        concatted.get(currentSegBytes);
-                        if (USE_BIN_USB_IN) {
-                            Log.d(TAG,"Outgoing: *"+StringUtils.toHex(currentSegBytes));
-                            write(toSerialLinkBinFormat(currentSegBytes));
-                        } else
-                            write(toSerialLinkFormat(currentSegBytes));
-                        concatted.clear();
-                    }
-                }
+    private void scheduleBurst(long delay) {
+        if ((handler != null) && burstScheduled.compareAndSet(false,true))
+            handler.postDelayed(burstPump,delay);
+    }
 
-                /*byte[] tempOut;
-                outgoingBuffer.clear();
-                outgoingBuffer.put(Segment.HEADER_MARKER);
-                for (Segment segment : segments) {
-                    currentSegBytes = Crypto.encrypt(segment.toBytes());
-                    if (currentSegBytes.length > outgoingBuffer.remaining()) {
-                        tempOut = new byte[outgoingBuffer.position()];
-                        outgoingBuffer.get(tempOut);
-                        if (USE_BIN_USB_IN) {
-                            Log.d(TAG,"Outgoing: "+StringUtils.toHex(tempOut));
-                            write(tempOut);
-                        } else {
-                            write(toSerialLinkFormat(tempOut));
-                        }
-                        outgoingBuffer.clear();
-                        outgoingBuffer.put(Segment.HEADER_MARKER);
-                    }
-                    tempOut = new byte[outgoingBuffer.position()];
-                    outgoingBuffer.get(tempOut);
-                    if (USE_BIN_USB_IN) {
-                        Log.d(TAG,"Outgoing: "+StringUtils.toHex(tempOut));
-                        write(tempOut);
-                    } else {
-                        write(toSerialLinkFormat(tempOut));
-                    }
-                }*/
-                //write(KEEP_ALIVE_MESSAGE); //TODO for testing
+    private final Runnable burstPump = new Runnable() {
+        @Override
+        public void run() {
+            burstScheduled.set(false);
+            final long delay = rate.getDelay(System.currentTimeMillis());
+            if (delay > 0l) {
+                scheduleBurst(delay);
+                return;
             }
-            //if (signalProcessor != null)
-            //    signalProcessor.turnOnDetailedIq();
+            byte[] next = burstQueue.poll();
+            if (next != null)
+                burstNow(next);
+            if (!burstQueue.isEmpty())
+                scheduleBurst(0l);
+        }
+    };
+
+    private void burstNow(byte[] data) {
+        if (sdrAppStatus == SdrAppStatus.RUNNING) {
+            TransmittedTally.add(data.length);
+            sendPacket(data,maxBytesPerSend);
         } else
             Log.d(TAG,"Dropping "+data.length+"b packet as SqANDR is not yet running on the SDR");
     }
 
+    @Override
+    protected void sendBurst(byte[] burst) {
+        if (USE_BIN_USB_IN) {
+            Log.d(TAG,"Outgoing: *"+StringUtils.toHex(burst));
+            write(toSerialLinkBinFormat(burst));
+        } else
+            write(toSerialLinkFormat(burst));
+    }
+
     //private final static String PADDING_BYTE = "00000000000000000000";
     private final static String PADDING_BYTE = "";
 
@@ -429,46 +386,37 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
         return formattedData.getBytes(StandardCharsets.UTF_8);
     }
 
+    /**
+     * Gets the most bytes a write of this much data can take once FEC encoded and formatted for
+     * either the framed or the escaped serial link
+     * @param dataLength
+     * @return
+     */
+    private int getMaxSerialFormatSize(int dataLength) {
+        final int encoded = (txFec == null)?dataLength:txFec.getEncodedSize(dataLength);
+        return Math.max(SerialLinkFormat.getMaxEncodedSize(encoded,LINK_HEADER_LENGTH),SerialLinkFormat.getMaxEscapedSize(encoded,LINK_HEADER_LENGTH));
+    }
+
     /**
      * Provides a binary output format that adjusts the stream based on the restrictions
      * Pluto has on specific byte values in stdin
-     * @param data
+     * @param data already FEC encoded
      * @return
      */
     private byte[] toSerialLinkBinFormat(byte[] data) {
         if (data == null)
             return null;
         byte[] out;
-        if (USE_GAP_STRATEGY && (gapSar != null))
-            data = ContinuityGapSAR.formatForOutput(data);
-        int values = 0;
         serialFormatBuf.clear();
-
-        //Look for illegal byte values and then provide an escaped value and marking. Specifically,
-        //anything below 32 is considered illegal. 64 is used as a marker that the next byte
-        //has been altered from an illegal byte value. For consistency, marking illegal bytes
-        //is done by flipping the 64 bit. If 64 is provided as the value, then it is sent as
-        //64 then 128. This is a work-around to Pluto intercepting some byte values (like 13,
-        //which is ASCII for carriage return) and then altering the stream in response to those values
-        if (USE_LEAN_MODE)
-            serialFormatBuf.put(SignalConverter.SQAN_HEADER);
-        for (int i=0;i<data.length;i++) {
-            if (((data[i] & LESS_THAN_32) == data[i]) || (data[i] == CHAR_64) || (data[i] == CHAR_127)) {
-                serialFormatBuf.put(CHAR_64);
-                serialFormatBuf.put((byte)(data[i]^CHAR_255));
-                values++;
-            } else
-                serialFormatBuf.put(data[i]);
-            values++;
+        final byte[] header = USE_LEAN_MODE?SignalConverter.LEAN_HEADER:null;
+        if (data.length + LINK_HEADER_LENGTH > MAX_SQANDR_INPUT)
+            Log.w(TAG,data.length+"b is more than SqANDR sends in one write; the rest will be lost");
+        if ((framedLink ? SerialLinkFormat.encode(header,data,serialFormatBuf) : SerialLinkFormat.escape(header,data,serialFormatBuf)) < 1) {
+            Log.e(TAG,data.length+"b is too large to format for the serial link");
+            return null;
         }
-
-        serialFormatBuf.put((byte)0b00001010); //new line character
-        values++;
-
         serialFormatBuf.flip();
-        if (values == 0)
-            return null;
-        out = new byte[values];
+        out = new byte[serialFormatBuf.remaining()];
         serialFormatBuf.get(out);
 
         Log.d(TAG,"Outgoing(serialFormatBuf): "+StringUtils.toHex(out));
@@ -487,41 +435,6 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
         return parseSerialLinkFormat(new String(raw,StandardCharsets.UTF_8));
     }
 
-    /**
-     * Used to remove special byte escaping done to prevent Pluto from modifying certain bytes
-     * when Pluto fails to open stdout in binary mode
-     * @param data
-     * @return
-     */
-    private static byte[] separateEscapedCharacters(byte[] data) {
-        if (data == null)
-            return null;
-        int escapeBytes = 0;
-        for (int i=0;i<data.length;i++) {
-            if (data[i] == ESCAPE_BYTE)
-                escapeBytes++;
-        }
-
-        if (escapeBytes == 0)
-            return data;
-        byte[] out = new byte[data.length-escapeBytes];
-        int index = 0;
-        boolean escNext = false;
-        for (int i = 0; i < data.length; i++) {
-            if (data[i] == ESCAPE_BYTE)
-                escNext = true;
-            else {
-                if (escNext) {
-                    out[index] = (byte)(data[i] ^ CHAR_255);
-                    escNext = false;
-                } else
-                    out[index] = data[i];
-                index++;
-            }
-        }
-        //Log.d(TAG,"Removed "+escapeBytes+" escape bytes in "+StringUtils.toHex(data)+" to "+StringUtils.toHex(out));
-        return out;
-    }
     private byte[] parseSerialLinkFormat(String raw) {
         if ((raw == null) || (raw.length() < 3))
             return null;
@@ -566,15 +479,22 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
                 if (!USE_BIN_USB_IN)
                     Log.d(TAG,"Outgoing: "+new String(data,StandardCharsets.UTF_8));
 
+                rate.onSent(data.length,start);
                 int bytesWritten = port.write(data,SERIAL_TIMEOUT);
-                if (bytesWritten < data.length)
-                    sdrConnectionCongestedUntil = System.currentTimeMillis()+TIME_FOR_USB_BACKLOG_TO_ADD_TO_CONGESTION;
                 long lag = System.currentTimeMillis() - start;
+                linkBytesWritten.add(Math.max(0,bytesWritten));
+                linkWriteTime.record(lag);
+                if (bytesWritten < data.length) {
+                    sdrConnectionCongestedUntil = System.currentTimeMillis()+TIME_FOR_USB_BACKLOG_TO_ADD_TO_CONGESTION;
+                    rate.onCongestion(System.currentTimeMillis());
+                } else
+                    rate.onWriteCompleted(bytesWritten,lag,System.currentTimeMillis());
                 if (lag > BURST_LAG_WARNING)
                     Log.d(TAG,"WARNING: write lag "+lag+"ms");
             } catch (IOException e) {
                 Log.e(TAG,"Unable to write data: "+e.getMessage());
                 sdrConnectionCongestedUntil = System.currentTimeMillis()+TIME_FOR_USB_BACKLOG_TO_ADD_TO_CONGESTION;
+                rate.onCongestion(System.currentTimeMillis());
             }
         });
     }
@@ -675,12 +595,54 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
         }
     }
 
+    /**
+     * Handles a burst from SqANDR over the framed link, where heartbeats are framed like data
+     * @param burst
+     */
+    private void handleFramedBurst(byte[] burst) {
+        if (!handleSqandrHeartbeat(burst) && (sdrAppStatus == SdrAppStatus.RUNNING))
+            handleRawDatalinkInput(burst);
+    }
+
+    /**
+     * Checks for the heartbeat SqANDR sends each cycle (followed by the bytes it transmitted that
+     * cycle, if any)
+     * @param data
+     * @return true if this was a heartbeat
+     */
+    private boolean handleSqandrHeartbeat(byte[] data) {
+        if ((data.length != NO_DATA_HEARTBEAT.length) && (data.length != NO_DATA_HEARTBEAT.length + 1))
+            return false;
+        for (int i=0;i<NO_DATA_HEARTBEAT.length;i++) {
+            if (data[i] != NO_DATA_HEARTBEAT[i])
+                return false;
+        }
+        final int heartbeatReportedReceived = (data.length == NO_DATA_HEARTBEAT.length + 1) ? (data[NO_DATA_HEARTBEAT.length] & 0xFF) : 0;
+        if (heartbeatReportedReceived > 0)
+            Log.d(TAG, ((heartbeatReportedReceived == 255)?">254":heartbeatReportedReceived) + "b transmitted by SqANDR app");
+        //else
+        //    Log.d(TAG,"Heartbeat received from SqANDR app");
+        reportAppAsRunning();
+        lastSqandrHeartbeat = System.currentTimeMillis();
+        if (lastCycleTime < System.currentTimeMillis()) {
+            long cycledTime = System.currentTimeMillis() - lastCycleTime;
+            if (cycledTime > MAX_CYCLE_TIME)
+                Log.w(TAG, "Pluto is cycling slower (" + (System.currentTimeMillis() - lastCycleTime)+ "ms) than required ("+MAX_CYCLE_TIME+"ms), data is being lost");
+        }
+        lastCycleTime = System.currentTimeMillis();
+        return true;
+    }
+
     @Override
     public void onNewData(byte[] data) {
         if ((data == null) || (data.length < Segment.HEADER_MARKER.length))
             return;
         if (sdrAppStatus == SdrAppStatus.STARTING) {
             String message = new String(data,StandardCharsets.UTF_8);
+            if (message.contains(FRAMED_LINK_ACK)) {
+                Log.d(TAG,"SqANDR is using the framed serial format");
+                framedLink = true;
+            }
             if (message.contains(Loader.SQANDR_VERSION+": not found")) {
                 Log.d(TAG,"From SDR during app start: "+message);
                 sdrAppStatus = SdrAppStatus.INSTALL_NEEDED;
@@ -693,31 +655,9 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
         }
         if (USE_BIN_USB_OUT && ((sdrAppStatus == SdrAppStatus.RUNNING) || (sdrAppStatus == SdrAppStatus.STARTING))) {
             handler.post(() -> {
-                boolean heartbeat = false;
-                int heartbeatReportedReceived = 0;
-                if ((data.length == NO_DATA_HEARTBEAT.length) || (data.length == NO_DATA_HEARTBEAT.length + 1)) {
-                    heartbeat = true;
-                    for (int i=0;i<NO_DATA_HEARTBEAT.length;i++) {
-                        if (data[i] != NO_DATA_HEARTBEAT[i])
-                            heartbeat = false;
-                    }
-                    if (data.length == NO_DATA_HEARTBEAT.length + 1)
-                        heartbeatReportedReceived = data[NO_DATA_HEARTBEAT.length] & 0xFF;
-                }
-                if (heartbeat) {
-                    if (heartbeatReportedReceived > 0)
-                        Log.d(TAG, ((heartbeatReportedReceived == 255)?">254":heartbeatReportedReceived) + "b transmitted by SqANDR app");
-                    //else
-                    //    Log.d(TAG,"Heartbeat received from SqANDR app");
-                    reportAppAsRunning();
-                    lastSqandrHeartbeat = System.currentTimeMillis();
-                    if (lastCycleTime < System.currentTimeMillis()) {
-                        long cycledTime = System.currentTimeMillis() - lastCycleTime;
-                        if (cycledTime > MAX_CYCLE_TIME)
-                            Log.w(TAG, "Pluto is cycling slower (" + (System.currentTimeMillis() - lastCycleTime)+ "ms) than required ("+MAX_CYCLE_TIME+"ms), data is being lost");
-                    }
-                    lastCycleTime = System.currentTimeMillis();
-                } else {
+                if (framedLink)
+                    deframer.add(data,this::handleFramedBurst);
+                else if (!handleSqandrHeartbeat(data)) {
                     if (sdrAppStatus == SdrAppStatus.RUNNING) {
                         if (PROCESS_ON_PLUTO) {
                             boolean isEcho = false;
@@ -738,7 +678,7 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
                                 if (data.length > 10) //FIXME for testing
                                     Log.d(TAG, "From SDR: " + StringUtils.toHex(data));
                                 if (USE_ESC_BYTES) {
-                                    byte[] processData = separateEscapedCharacters(data);
+                                    byte[] processData = SerialLinkFormat.unescape(data);
                                     handleRawDatalinkInput(processData);
                                 } else {
                                     handleRawDatalinkInput(data);
@@ -1021,6 +961,8 @@ public class SerialConnection extends AbstractDataConnection implements SerialIn
             if (peripheralStatusListener != null)
                 peripheralStatusListener.onPeripheralMessage(message);
             attempts = 0;
+            framedLink = false;
+            deframer.reset();
             CommsLog.log(CommsLog.Entry.Category.SDR,"Initiating SDR App with command: "+new String(SDR_START_COMMAND,StandardCharsets.UTF_8));
             write(SDR_START_COMMAND);
         }
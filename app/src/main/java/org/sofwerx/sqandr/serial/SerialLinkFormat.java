@@ -0,0 +1,298 @@
+package org.sofwerx.sqandr.serial;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * The binary formats used over the serial link to SqANDR. Pluto intercepts some byte values in
+ * stdin (like 13, which is ASCII for carriage return) and alters the stream in response, so
+ * nothing below 32 (or 127) can be sent as is. Each burst ends with a new line.
+ *
+ * Escaped (escape/unescape): 64 is sent as a marker that the next byte has been altered, and the
+ * altered byte has all of its bits flipped. Every byte below 32, 64 and 127 takes two bytes, so
+ * random data grows by about 13% and the worst case doubles.
+ *
+ * Framed (encode/decode): a variant of COBS (consistent overhead byte stuffing) restricted to the
+ * 223 byte values that are allowed. The burst is split into runs that each end with a forbidden
+ * byte (plus a phantom 0 at the end of the burst); each run is sent as one code byte followed by
+ * the run's allowed bytes. A code either means "L (0 to 5) allowed bytes, then forbidden value f"
+ * (6 * 33 codes), so the forbidden byte costs nothing, or "L (6 to 30) allowed bytes and no
+ * forbidden byte" (the other 25 codes) for runs too long to fit. Random data grows by about 6%
+ * and no burst grows by more than 1/7 (plus the code for the phantom 0 and the new line).
+ */
+public class SerialLinkFormat {
+    public final static byte ESCAPE_BYTE = 0b01000000;
+    private final static byte LESS_THAN_32 = 0b00011111;
+    private final static byte CHAR_127 = (byte)0b01111111;
+    private final static byte CHAR_255 = (byte)0b11111111;
+    private final static byte END_OF_BURST = (byte)0b00001010; //new line character
+    private final static int FORBIDDEN_VALUES = 33; //0 to 31 and 127
+    private final static int MAX_SHORT_RUN = 5; //most allowed bytes before a forbidden byte in one code
+    private final static int SHORT_RUN_CODES = (MAX_SHORT_RUN + 1) * FORBIDDEN_VALUES;
+    private final static int LONG_RUN_CODES = 223 - SHORT_RUN_CODES;
+    private final static int MIN_LONG_RUN = MAX_SHORT_RUN + 1;
+    private final static int MAX_LONG_RUN = MIN_LONG_RUN + LONG_RUN_CODES - 1;
+    private final static byte[] CODE_TO_BYTE = new byte[223]; //code index to the allowed byte that sends it
+    private final static short[] BYTE_TO_CODE = new short[256]; //byte to code index (or -1 if the byte is forbidden)
+    private final static short[] BYTE_TO_FORBIDDEN = new short[256]; //byte to forbidden value index (or -1 if the byte is allowed)
+
+    static {
+        int code = 0;
+        for (int i=0;i<256;i++) {
+            if ((i < 32) || (i == 127)) {
+                BYTE_TO_CODE[i] = -1;
+                BYTE_TO_FORBIDDEN[i] = (short)((i == 127) ? 32 : i);
+            } else {
+                BYTE_TO_FORBIDDEN[i] = -1;
+                BYTE_TO_CODE[i] = (short)code;
+                CODE_TO_BYTE[code] = (byte)i;
+                code++;
+            }
+        }
+    }
+
+    /**
+     * Gets the most bytes that escaping this much data could take
+     * @param dataLength
+     * @param headerLength
+     * @return
+     */
+    public static int getMaxEscapedSize(int dataLength, int headerLength) {
+        return headerLength + dataLength * 2 + 1;
+    }
+
+    /**
+     * Escapes the data and appends it to the buffer
+     * @param header sent before the data without escaping (or null if none)
+     * @param data
+     * @param out
+     * @return the number of bytes written (or -1 if they did not fit)
+     */
+    public static int escape(byte[] header, byte[] data, ByteBuffer out) {
+        if (data == null)
+            return -1;
+        final int start = out.position();
+        try {
+            if (header != null)
+                out.put(header);
+            for (int i=0;i<data.length;i++) {
+                if (((data[i] & LESS_THAN_32) == data[i]) || (data[i] == ESCAPE_BYTE) || (data[i] == CHAR_127)) {
+                    out.put(ESCAPE_BYTE);
+                    out.put((byte)(data[i]^CHAR_255));
+                } else
+                    out.put(data[i]);
+            }
+            out.put(END_OF_BURST);
+        } catch (BufferOverflowException e) {
+            out.position(start);
+            return -1;
+        }
+        return out.position() - start;
+    }
+
+    /**
+     * Removes the escaping done by escape()
+     * @param data
+     * @return the original data (data itself if nothing was escaped)
+     */
+    public static byte[] unescape(byte[] data) {
+        if (data == null)
+            return null;
+        int escapeBytes = 0;
+        for (int i=0;i<data.length;i++) {
+            if (data[i] == ESCAPE_BYTE)
+                escapeBytes++;
+        }
+
+        if (escapeBytes == 0)
+            return data;
+        byte[] out = new byte[data.length-escapeBytes];
+        int index = 0;
+        boolean escNext = false;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == ESCAPE_BYTE)
+                escNext = true;
+            else {
+                if (escNext) {
+                    out[index] = (byte)(data[i] ^ CHAR_255);
+                    escNext = false;
+                } else
+                    out[index] = data[i];
+                index++;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Gets the most bytes that encoding this much data could take
+     * @param dataLength
+     * @param headerLength
+     * @return
+     */
+    public static int getMaxEncodedSize(int dataLength, int headerLength) {
+        final int length = headerLength + dataLength + 1; //includes the phantom 0
+        return length + (length + MIN_LONG_RUN) / (MIN_LONG_RUN + 1) + 1;
+    }
+
+    /**
+     * Encodes the header and data as one framed burst and appends it to the buffer
+     * @param header encoded ahead of the data (or null if none)
+     * @param data
+     * @param out
+     * @return the number of bytes written (or -1 if they did not fit)
+     */
+    public static int encode(byte[] header, byte[] data, ByteBuffer out) {
+        if (data == null)
+            return -1;
+        if ((header != null) && (header.length > 0)) {
+            byte[] burst = new byte[header.length + data.length];
+            System.arraycopy(header,0,burst,0,header.length);
+            System.arraycopy(data,0,burst,header.length,data.length);
+            data = burst;
+        }
+        final int start = out.position();
+        try {
+            int runStart = 0;
+            for (int i=0;i<=data.length;i++) {
+                final int forbidden = (i == data.length) ? 0 : BYTE_TO_FORBIDDEN[data[i] & 0xFF]; //the burst ends with a phantom 0
+                if (forbidden < 0)
+                    continue;
+                int run = i - runStart;
+                while (run > MAX_SHORT_RUN) {
+                    final int longRun = Math.min(run,MAX_LONG_RUN);
+                    out.put(CODE_TO_BYTE[SHORT_RUN_CODES + longRun - MIN_LONG_RUN]);
+                    out.put(data,runStart,longRun);
+                    runStart += longRun;
+                    run -= longRun;
+                }
+                out.put(CODE_TO_BYTE[run * FORBIDDEN_VALUES + forbidden]);
+                if (run > 0)
+                    out.put(data,runStart,run);
+                runStart = i + 1;
+            }
+            out.put(END_OF_BURST);
+        } catch (BufferOverflowException e) {
+            out.position(start);
+            return -1;
+        }
+        return out.position() - start;
+    }
+
+    /**
+     * Reverses encode()
+     * @param data
+     * @param offset start of the burst
+     * @param length length of the burst (not including the new line)
+     * @return the original bytes (or null if this is not a valid burst)
+     */
+    public static byte[] decode(byte[] data, int offset, int length) {
+        if ((data == null) || (length < 1))
+            return null;
+        byte[] out = new byte[length];
+        int outIndex = 0;
+        final int end = offset + length;
+        int i = offset;
+        int lastForbidden = -1;
+        while (i < end) {
+            final int code = BYTE_TO_CODE[data[i++] & 0xFF];
+            if (code < 0)
+                return null;
+            final int run;
+            if (code < SHORT_RUN_CODES) {
+                run = code / FORBIDDEN_VALUES;
+                lastForbidden = code % FORBIDDEN_VALUES;
+            } else {
+                run = code - SHORT_RUN_CODES + MIN_LONG_RUN;
+                lastForbidden = -1;
+            }
+            if (i + run > end)
+                return null;
+            System.arraycopy(data,i,out,outIndex,run);
+            i += run;
+            outIndex += run;
+            if (lastForbidden >= 0)
+                out[outIndex++] = (lastForbidden == 32) ? CHAR_127 : (byte)lastForbidden;
+        }
+        if (lastForbidden != 0)
+            return null; //every burst ends with the phantom 0
+        outIndex--;
+        if (outIndex == out.length)
+            return out;
+        byte[] trimmed = new byte[outIndex];
+        System.arraycopy(out,0,trimmed,0,outIndex);
+        return trimmed;
+    }
+
+    /**
+     * Reassembles framed bursts from reads off the serial link, which may split a burst or hold
+     * more than one. Bytes that can't be part of a framed burst (anything forbidden other than the
+     * new line, e.g. output SqANDR wrote without framing) are discarded so they don't spoil the
+     * burst they land in.
+     */
+    public static class Deframer {
+        private final byte[] buffer;
+        private int length = 0;
+        private boolean overflowed = false;
+        private int invalid = 0;
+        private long discarded = 0l;
+
+        /**
+         * @param maxSize largest encoded burst expected; longer bursts are dropped
+         */
+        public Deframer(int maxSize) {
+            buffer = new byte[maxSize];
+        }
+
+        /**
+         * Adds bytes read from the link
+         * @param data
+         * @param listener given each burst completed by these bytes
+         */
+        public void add(byte[] data, Consumer<byte[]> listener) {
+            if (data == null)
+                return;
+            for (byte b:data) {
+                if (b == END_OF_BURST) {
+                    if (overflowed)
+                        invalid++;
+                    else if (length > 0) {
+                        byte[] burst = decode(buffer,0,length);
+                        if (burst == null)
+                            invalid++;
+                        else
+                            listener.accept(burst);
+                    }
+                    length = 0;
+                    overflowed = false;
+                } else if (BYTE_TO_CODE[b & 0xFF] < 0)
+                    discarded++;
+                else if (length < buffer.length)
+                    buffer[length++] = b;
+                else
+                    overflowed = true;
+            }
+        }
+
+        /**
+         * Gets the number of bursts dropped as invalid or too long so far
+         * @return
+         */
+        public int getInvalid() { return invalid; }
+
+        /**
+         * Gets the number of bytes discarded because they can't be part of a framed burst
+         * @return
+         */
+        public long getDiscarded() { return discarded; }
+
+        /**
+         * Drops any partial burst (e.g. when SqANDR is restarted)
+         */
+        public void reset() {
+            length = 0;
+            overflowed = false;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package org.sofwerx.sqandr.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free buffer that connects one thread writing data (the producer) to one thread
+ * consuming it as an InputStream (the consumer). Data is copied in and out in bulk; a consumer
+ * waiting on data parks rather than waiting on a monitor, and is only woken when it is actually
+ * waiting. Positions are kept as ever increasing sequences so the amount of data held never has
+ * to be tracked separately.
+ *
+ * If the consumer is not keeping up, the producer drops the data that does not fit rather than
+ * overwriting data the consumer has not read yet; the dropped bytes are counted.
+ *
+ * Only one thread may call the put methods and only one (other) thread may call the read/get,
+ * mark and reset methods.
+ */
+public class ByteRingBuffer extends InputStream {
+    private final static int DEFAULT_CAPACITY = 1 << 23; //8MB
+    private final static int SPINS_BEFORE_PARKING = 64;
+    private final static long MAX_PARK_NANOS = 100l * 1000l * 1000l; //safety net so a closed buffer is always noticed
+    private final static int OVERFLOW_MARGIN = 2;
+
+    private final byte[] buffer;
+    private final int capacity;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(0l); //next sequence to be written; only the producer changes this
+    private final AtomicLong released = new AtomicLong(0l); //everything before this sequence can be overwritten; only the consumer changes this
+    private final AtomicLong droppedBytes = new AtomicLong(0l);
+    private volatile Thread waiting = null;
+    private volatile boolean closed = false;
+    private volatile boolean droppedSinceCheck = false;
+
+    //producer only
+    private long cachedReleased = 0l;
+
+    //consumer only
+    private long readPos = 0l;
+    private long cachedHead = 0l;
+    private long mark = -1l;
+    private int markLimit = 0;
+
+    public ByteRingBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param minCapacity the minimum number of bytes to hold; rounded up to a power of 2
+     */
+    public ByteRingBuffer(int minCapacity) {
+        if (minCapacity < 2)
+            minCapacity = 2;
+        int size = Integer.highestOneBit(minCapacity);
+        if (size < minCapacity)
+            size <<= 1;
+        capacity = size;
+        mask = capacity - 1;
+        buffer = new byte[capacity];
+    }
+
+    public int getCapacity() { return capacity; }
+
+    /**
+     * Adds data to this buffer (producer only)
+     * @param data
+     * @return true == the buffer is overflowing (i.e. the read operations are not keeping up, so data is being dropped)
+     */
+    public boolean put(byte[] data) {
+        if (data == null)
+            return false;
+        return put(data,0,data.length);
+    }
+
+    /**
+     * Adds data to this buffer (producer only). Whatever does not fit is dropped.
+     * @param data
+     * @param offset
+     * @param length
+     * @return true == the buffer is overflowing (i.e. the read operations are not keeping up, so data is being dropped)
+     */
+    public boolean put(byte[] data, int offset, int length) {
+        if ((data == null) || closed)
+            return false;
+        if ((offset < 0) || (length < 0) || (offset + length > data.length))
+            throw new IndexOutOfBoundsException("put("+data.length+"b,"+offset+","+length+") is out of bounds");
+        final long writePos = head.get();
+        long free = capacity - (writePos - cachedReleased);
+        if (free < length) {
+            cachedReleased = released.get();
+            free = capacity - (writePos - cachedReleased);
+        }
+        final int count = (int)Math.min(length,free);
+        if (count < length) {
+            droppedBytes.addAndGet(length - count);
+            droppedSinceCheck = true;
+        }
+        if (count > 0) {
+            final int start = (int)writePos & mask;
+            final int firstPart = Math.min(count,capacity - start);
+            System.arraycopy(data,offset,buffer,start,firstPart);
+            if (firstPart < count)
+                System.arraycopy(data,offset+firstPart,buffer,0,count - firstPart);
+            head.set(writePos + count);
+            Thread consumer = waiting;
+            if (consumer != null)
+                LockSupport.unpark(consumer);
+        }
+        return (count < length) || (free - count < OVERFLOW_MARGIN);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (readPos == cachedHead)
+            awaitData();
+        int out = buffer[(int)readPos & mask] & 0xFF;
+        readPos++;
+        release();
+        return out;
+    }
+
+    @Override
+    public int read(byte[] out, int offset, int length) throws IOException {
+        return get(out,offset,length);
+    }
+
+    /**
+     * Reads from the buffer with the option to block until the full array is filled
+     * @param out
+     * @param blockTillFull true == will block until all of the data is read
+     * @return the number of bytes read
+     * @throws IOException
+     */
+    public int read(byte[] out, boolean blockTillFull) throws IOException {
+        if ((out == null) || (out.length == 0))
+            return 0;
+        if (!blockTillFull)
+            return get(out,0,out.length);
+        int bytesRead = 0;
+        while (bytesRead < out.length) {
+            bytesRead += get(out,bytesRead,out.length - bytesRead);
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Copies as much data as is available (up to length) into out, blocking until at least one
+     * byte is available (consumer only)
+     * @param out
+     * @param offset
+     * @param length
+     * @return the number of bytes read
+     * @throws IOException if the buffer is closed or the consumer is interrupted while waiting
+     */
+    public int get(byte[] out, int offset, int length) throws IOException {
+        if (out == null)
+            throw new NullPointerException("get() requires an output array");
+        if ((offset < 0) || (length < 0) || (offset + length > out.length))
+            throw new IndexOutOfBoundsException("get("+out.length+"b,"+offset+","+length+") is out of bounds");
+        if (length == 0)
+            return 0;
+        if (cachedHead - readPos < length)
+            cachedHead = head.get();
+        if (readPos == cachedHead)
+            awaitData();
+        final int count = (int)Math.min(length,cachedHead - readPos);
+        final int start = (int)readPos & mask;
+        final int firstPart = Math.min(count,capacity - start);
+        System.arraycopy(buffer,start,out,offset,firstPart);
+        if (firstPart < count)
+            System.arraycopy(buffer,0,out,offset+firstPart,count - firstPart);
+        readPos += count;
+        release();
+        return count;
+    }
+
+    /**
+     * Blocks until there is something to read
+     */
+    private void awaitData() throws IOException {
+        for (int i=0;i<SPINS_BEFORE_PARKING;i++) {
+            cachedHead = head.get();
+            if (cachedHead != readPos)
+                return;
+            if (closed)
+                throw new IOException("Buffer is closed");
+            Thread.yield();
+        }
+        waiting = Thread.currentThread();
+        try {
+            while (true) {
+                cachedHead = head.get();
+                if (cachedHead != readPos)
+                    return;
+                if (closed)
+                    throw new IOException("Buffer is closed");
+                LockSupport.parkNanos(this,MAX_PARK_NANOS);
+                if (Thread.interrupted())
+                    throw new InterruptedIOException("Interrupted while waiting for data");
+            }
+        } finally {
+            waiting = null;
+        }
+    }
+
+    /**
+     * Lets the producer reuse everything that has been read and is not being held by a mark
+     */
+    private void release() {
+        if ((mark >= 0l) && (readPos - mark > markLimit))
+            mark = -1l;
+        released.lazySet((mark < 0l)?readPos:mark);
+    }
+
+    @Override
+    public int available() {
+        return (int)Math.min(Integer.MAX_VALUE,head.get() - readPos);
+    }
+
+    @Override
+    public boolean markSupported() { return true; }
+
+    /**
+     * Marks the current read position so the consumer can come back to it with reset(). Data
+     * from the mark on is held in the buffer until more than readLimit bytes past the mark
+     * have been read, after which the mark is dropped (consumer only).
+     * @param readLimit
+     */
+    @Override
+    public void mark(int readLimit) {
+        mark = readPos;
+        markLimit = Math.max(0,Math.min(readLimit,capacity));
+        release();
+    }
+
+    /**
+     * Rewinds the read position back to the last mark (consumer only)
+     * @throws IOException if there is no valid mark
+     */
+    @Override
+    public void reset() throws IOException {
+        if (mark < 0l)
+            throw new IOException("No valid mark to rewind to");
+        readPos = mark;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0l)
+            return 0l;
+        if (readPos == cachedHead)
+            awaitData();
+        long count = Math.min(n,cachedHead - readPos);
+        readPos += count;
+        release();
+        return count;
+    }
+
+    /**
+     * Is the buffer close to full or has data been dropped since the last time this was checked
+     * @return true == is overflowing
+     */
+    public boolean isOverflowing() {
+        boolean dropped = droppedSinceCheck;
+        if (dropped)
+            droppedSinceCheck = false;
+        return dropped || (getBacklog() >= capacity - OVERFLOW_MARGIN);
+    }
+
+    /**
+     * Gets the number of bytes held in the buffer (unread or held by a mark)
+     * @return
+     */
+    public int getBacklog() {
+        return (int)(head.get() - released.get());
+    }
+
+    /**
+     * Gets the total number of bytes dropped because the buffer was full
+     * @return
+     */
+    public long getDroppedBytes() { return droppedBytes.get(); }
+
+    /**
+     * Gets the total number of bytes put into the buffer
+     * @return
+     */
+    public long getBytesWritten() { return head.get(); }
+
+    @Override
+    public void close() {
+        closed = true;
+        Thread consumer = waiting;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+    }
+}
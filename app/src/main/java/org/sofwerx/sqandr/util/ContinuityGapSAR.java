@@ -1,6 +1,6 @@
 package org.sofwerx.sqandr.util;
 
-import android.util.Log;
+import org.sofwerx.notdroid.util.Log;
 
 import org.sofwerx.sqan.Config;
 
@@ -16,6 +16,7 @@ public class ContinuityGapSAR {
     private final static int CHUNK_SIZE = 16;
     private final static int REQUIRED_MATCHING_DATA = CHUNK_SIZE / 4;
     private final static int CHUNK_SIZE_WITH_MARKER = CHUNK_SIZE + 1;
+    private final static int MAX_FORMATTED_SIZE = 1024;
     private static ByteBuffer formatBuf;
     private ByteBuffer outBuf = ByteBuffer.allocate(1024);
     private ByteBuffer processBuf = ByteBuffer.allocate(1024);
@@ -138,6 +139,24 @@ public class ContinuityGapSAR {
         formatBuf = null;
     }
 
+    /**
+     * Gets the size formatForOutput() makes data of this length (each chunk is sent twice with its marker)
+     * @param dataLength
+     * @return
+     */
+    public static int getFormattedSize(int dataLength) {
+        return ((dataLength + CHUNK_SIZE - 1) / CHUNK_SIZE) * CHUNK_SIZE_WITH_MARKER * 2;
+    }
+
+    /**
+     * Gets the most data that formatForOutput() can fit in this many bytes
+     * @param formattedLength
+     * @return
+     */
+    public static int getMaxDataSize(int formattedLength) {
+        return (Math.min(formattedLength,MAX_FORMATTED_SIZE) / (CHUNK_SIZE_WITH_MARKER * 2)) * CHUNK_SIZE;
+    }
+
     /**
      * Intake the data to be transmitted and format it to support later reassembly
      * @param data
@@ -148,7 +167,7 @@ public class ContinuityGapSAR {
             return null;
         int makerIndex = 0;
         if (formatBuf == null)
-            formatBuf = ByteBuffer.allocate(1024);
+            formatBuf = ByteBuffer.allocate(MAX_FORMATTED_SIZE);
         formatBuf.clear();
         int max = data.length / CHUNK_SIZE;
         if (data.length % CHUNK_SIZE > 0)
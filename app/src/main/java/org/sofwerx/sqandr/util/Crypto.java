@@ -20,9 +20,15 @@ public class Crypto {
     public static byte[] decrypt(byte[] ciphertext) {
         if (ciphertext == null)
             return null;
-        byte[] plaintext = new byte[ciphertext.length];
-        for (int i=0;i<ciphertext.length;i++) {
-            plaintext[i] = (byte)(ciphertext[i] ^ XOR_PATTERN);
+        return decrypt(ciphertext,0,ciphertext.length);
+    }
+
+    public static byte[] decrypt(byte[] ciphertext, int offset, int length) {
+        if (ciphertext == null)
+            return null;
+        byte[] plaintext = new byte[length];
+        for (int i=0;i<length;i++) {
+            plaintext[i] = (byte)(ciphertext[offset+i] ^ XOR_PATTERN);
         }
         return plaintext;
     }
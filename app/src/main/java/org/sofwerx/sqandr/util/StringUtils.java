@@ -1,7 +1,7 @@
 package org.sofwerx.sqandr.util;
 
 import android.text.format.DateFormat;
-import android.util.Log;
+import org.sofwerx.notdroid.util.Log;
 
 import org.sofwerx.sqan.Config;
 
@@ -0,0 +1,228 @@
+package org.sofwerx.sqan.manet.common;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sofwerx.sqan.SqAnService;
+
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LinkStateTest {
+    private final static int LAYOUTS = 20;
+    private final static double NEIGHBORS = 6d; //average number of neighbors each device should have
+    private final static long HEARTBEAT_INTERVAL = SqAnService.MAX_TIME_BETWEEN_NARROW_HEARTBEATS;
+    private final static long MISSED_HEARTBEAT = SqAnService.MAX_NARROW_HEARTBEAT_GAP + 1000l;
+
+    @After
+    public void tearDown() {
+        SqAnDevice.clearAllDevices(null);
+    }
+
+    /**
+     * Scatters devices over an area until they form a connected mesh
+     * @return each device's sorted neighbors
+     */
+    private static int[][] getLayout(int nodes, Random random) {
+        final double side = Math.sqrt((double)nodes * Math.PI / NEIGHBORS);
+        while (true) {
+            double[] x = new double[nodes];
+            double[] y = new double[nodes];
+            for (int i=0;i<nodes;i++) {
+                x[i] = random.nextDouble() * side;
+                y[i] = random.nextDouble() * side;
+            }
+            int[][] neighbors = new int[nodes][];
+            for (int i=0;i<nodes;i++) {
+                int[] found = new int[nodes];
+                int count = 0;
+                for (int j=0;j<nodes;j++) {
+                    if ((i != j) && (Math.hypot(x[i]-x[j],y[i]-y[j]) <= 1d))
+                        found[count++] = j;
+                }
+                neighbors[i] = Arrays.copyOf(found,count);
+            }
+            if (broadcast(0,neighbors,null)[1] == nodes - 1)
+                return neighbors;
+        }
+    }
+
+    /**
+     * Sends a broadcast through the team. A device relays the first time it hears the broadcast from
+     * a device that selected it as an MPR (or the first time it hears it at all when flooding).
+     * @param selections each device's MPRs (or null to flood)
+     * @return transmissions and devices reached
+     */
+    private static int[] broadcast(int origin, int[][] neighbors, int[][] selections) {
+        boolean[] heard = new boolean[neighbors.length];
+        boolean[] sent = new boolean[neighbors.length];
+        ArrayDeque<Integer> senders = new ArrayDeque<>();
+        heard[origin] = true;
+        sent[origin] = true;
+        senders.add(origin);
+        int transmissions = 0;
+        int reached = 0;
+        while (!senders.isEmpty()) {
+            final int sender = senders.poll();
+            transmissions++;
+            for (int receiver:neighbors[sender]) {
+                if (!heard[receiver]) {
+                    heard[receiver] = true;
+                    reached++;
+                }
+                if (!sent[receiver] && ((selections == null) || (Arrays.binarySearch(selections[sender],receiver) >= 0))) {
+                    sent[receiver] = true;
+                    senders.add(receiver);
+                }
+            }
+        }
+        return new int[] {transmissions,reached};
+    }
+
+    @Test
+    public void mprRelaysReachEveryDeviceWithFewerTransmissions() {
+        Random random = new Random(17l);
+        for (int nodes:new int[] {10,25,50}) {
+            long floodTx = 0l;
+            long mprTx = 0l;
+            for (int layout=0;layout<LAYOUTS;layout++) {
+                int[][] neighbors = getLayout(nodes,random);
+                HashMap<Integer,int[]> links = new HashMap<>();
+                for (int i=0;i<nodes;i++) {
+                    links.put(i,neighbors[i]);
+                }
+                int[][] selections = new int[nodes][];
+                for (int i=0;i<nodes;i++) {
+                    selections[i] = LinkState.select(i,links);
+                }
+                for (int origin=0;origin<nodes;origin++) {
+                    floodTx += broadcast(origin,neighbors,null)[0];
+                    int[] result = broadcast(origin,neighbors,selections);
+                    assertEquals(nodes+" devices, layout "+layout+", from "+origin,nodes - 1,result[1]);
+                    mprTx += result[0];
+                }
+            }
+            assertTrue(nodes+" devices",mprTx * 3l < floodTx * 2l);
+        }
+    }
+
+    @Test
+    public void selectedRelaysCoverEveryTwoHopDevice() {
+        Random random = new Random(5l);
+        int[][] neighbors = getLayout(30,random);
+        HashMap<Integer,int[]> links = new HashMap<>();
+        for (int i=0;i<neighbors.length;i++) {
+            links.put(i,neighbors[i]);
+        }
+        for (int node=0;node<neighbors.length;node++) {
+            int[] mprs = LinkState.select(node,links);
+            HashSet<Integer> twoHop = new HashSet<>();
+            for (int neighbor:neighbors[node]) {
+                for (int target:neighbors[neighbor]) {
+                    twoHop.add(target);
+                }
+            }
+            HashSet<Integer> covered = new HashSet<>();
+            for (int mpr:mprs) {
+                assertTrue(Arrays.binarySearch(neighbors[node],mpr) >= 0); //only direct neighbors are selected
+                for (int target:neighbors[mpr]) {
+                    covered.add(target);
+                }
+            }
+            for (int neighbor:neighbors[node]) {
+                twoHop.remove(neighbor);
+                covered.remove(neighbor);
+            }
+            twoHop.remove(node);
+            covered.remove(node);
+            assertEquals(twoHop,covered);
+        }
+    }
+
+    @Test
+    public void selectsTheOnlyPathAndBreaksTiesTheSameWay() {
+        //1 is the only way to 4; 2 and 3 both reach 5, and 3 has more links
+        HashMap<Integer,int[]> links = new HashMap<>();
+        links.put(0,new int[] {1,2,3});
+        links.put(1,new int[] {0,4});
+        links.put(2,new int[] {0,5});
+        links.put(3,new int[] {0,5,6});
+        assertArrayEquals(new int[] {1,3},LinkState.select(0,links));
+
+        //with equal links the lower UUID wins
+        links.put(3,new int[] {0,5});
+        assertArrayEquals(new int[] {1,2},LinkState.select(0,links));
+    }
+
+    @Test
+    public void unknownNeighborsMeanNoSelection() {
+        assertNull(LinkState.select(0,new HashMap<>()));
+        HashMap<Integer,int[]> links = new HashMap<>();
+        links.put(0,new int[] {1,2});
+        assertEquals(0,LinkState.select(0,links).length); //neighbors' links unknown, so nothing to cover
+    }
+
+    /**
+     * A device that reported these direct links in a heartbeat this long ago
+     */
+    private static SqAnDevice reported(int uuid, long age, int... links) throws Exception {
+        SqAnDevice device = SqAnDevice.findByUUID(uuid);
+        if (device == null)
+            device = new SqAnDevice(uuid);
+        final long now = System.currentTimeMillis();
+        ArrayList<RelayConnection> relays = new ArrayList<>();
+        for (int link:links) {
+            relays.add(new RelayConnection(link,0,now,true,false));
+        }
+        device.setRelayConnections(relays);
+        Field field = SqAnDevice.class.getDeclaredField("relaysReported"); //normally set as heartbeats arrive
+        field.setAccessible(true);
+        field.set(device,now - age);
+        return device;
+    }
+
+    @Test
+    public void relaysWhenARelayListHasMissedAHeartbeat() throws Exception {
+        //this device (1) hears 2; 2 reaches 3, which is the only way to 4
+        MeshState.get().setThisDevice(new SqAnDevice(1)); //normally set by Config.init(Context)
+        reported(2,0l,1,3).setConnected(0,true,false);
+        reported(3,0l,2,4);
+        reported(4,0l,3);
+        assertArrayEquals(new int[] {3},LinkState.getMprs(2));
+
+        LinkState.clear();
+        reported(3,MISSED_HEARTBEAT,2,4);
+        assertNull(LinkState.getMprs(2)); //3's links may have changed, so 2's selection can't be known
+        assertTrue(LinkState.isRelayNeeded(2));
+
+        LinkState.clear();
+        reported(3,0l,2,4);
+        assertNotNull(LinkState.getMprs(2));
+        reported(2,MISSED_HEARTBEAT,1,3);
+        LinkState.clear();
+        assertNull(LinkState.getMprs(2));
+    }
+
+    @Test
+    public void keepsSuppressingBetweenSlowHeartbeats() throws Exception {
+        //narrow links can go well past a trickle interval between heartbeats without missing one
+        MeshState.get().setThisDevice(new SqAnDevice(1));
+        reported(2,HEARTBEAT_INTERVAL + 1000l,1,3,5).setConnected(0,true,false);
+        reported(3,HEARTBEAT_INTERVAL + 1000l,2,4);
+        reported(4,HEARTBEAT_INTERVAL + 1000l,3);
+        reported(5,HEARTBEAT_INTERVAL + 1000l,2);
+        assertArrayEquals(new int[] {3},LinkState.getMprs(2));
+        assertFalse(LinkState.isRelayNeeded(2)); //2 picked 3, not this device
+    }
+}
@@ -0,0 +1,256 @@
+package org.sofwerx.sqan.manet.common;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.packet.PingPacket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a sender over simulated links with different bottleneck rates. The sender always has bulk
+ * data waiting and also sends a small control packet every half second, which goes ahead of the
+ * bulk data in the sender's own queue; whatever is waiting is written in batches of up to 16KB as
+ * BTSocket does. The link takes writes into a fixed size buffer (like a socket or USB buffer) that
+ * drains at the bottleneck rate; a write blocks while that buffer is full.
+ */
+public class RateControllerTest {
+    private final static int PACKET_SIZE = 1000;
+    private final static int CONTROL_SIZE = 100;
+    private final static int PING_SIZE = 50;
+    private final static int BUFFER_SIZE = 1024 * 64;
+    private final static int WRITE_BATCH_SIZE = 1024 * 16;
+    private final static double DELAY = 20d; //ms one way
+    private final static double CONTROL_INTERVAL = 500d;
+    private final static double PING_INTERVAL = 1000d;
+    private final static double DURATION = 1000d * 60d;
+
+    @After
+    public void tearDown() {
+        RateController.clear();
+    }
+
+    @Test
+    public void pacingWithPingsKeepsTheLinkFromQueuing() {
+        for (int rate:new int[] {100,1000}) {
+            Result unpaced = new Simulation(rate,false,false).run();
+            Result paced = new Simulation(rate,true,true).run();
+            assertTrue(rate+"KB/s, "+paced.throughput+"KB/s paced",paced.throughput > (double)rate * 0.85d);
+            assertTrue(rate+"KB/s, queue delay "+paced.queueDelay+"ms paced vs "+unpaced.queueDelay+"ms",paced.queueDelay * 4d < unpaced.queueDelay);
+            assertTrue(rate+"KB/s, control latency "+paced.controlLatency+"ms paced vs "+unpaced.controlLatency+"ms",paced.controlLatency * 2d < unpaced.controlLatency);
+        }
+    }
+
+    @Test
+    public void roundTripsMatterOnSlowLinks() {
+        //write feedback alone can't see the queue in a slow link's buffer; round trips can
+        Result writesOnly = new Simulation(16,true,false).run();
+        Result pings = new Simulation(16,true,true).run();
+        assertTrue(pings.queueDelay * 2d < writesOnly.queueDelay);
+        assertTrue(pings.throughput > 16d * 0.85d);
+    }
+
+    @Test
+    public void startsSlowThenDoublesEachRoundTripWhileHeldBack() {
+        RateController controller = new RateController("test");
+        final long initial = controller.getRate();
+        long now = 0l;
+        for (int i=0;i<4;i++) { //the first round trip only starts the clock
+            while (controller.getDelay(now) == 0l) {
+                controller.onSent(PACKET_SIZE,now);
+            }
+            now += 100l; //one (default) round trip later
+            controller.onWriteCompleted(PACKET_SIZE,0l,now);
+        }
+        assertEquals(initial * 8l,controller.getRate(),initial / 10l);
+        assertEquals(-1l,controller.getBandwidth());
+    }
+
+    @Test
+    public void blockedWritesMeasureTheBandwidth() {
+        RateController controller = new RateController("test");
+        controller.onSent(BUFFER_SIZE,0l);
+        controller.onWriteCompleted(BUFFER_SIZE,1000l,1000l); //drained at 64KB/s
+        assertEquals(BUFFER_SIZE,controller.getBandwidth());
+        assertTrue(controller.getRate() < BUFFER_SIZE); //draining what is queued
+    }
+
+    @Test
+    public void asksForRoundTripsOnlyOnLinksInUse() {
+        final long now = System.currentTimeMillis();
+        RateController idle = RateController.get(ManetType.BT_ONLY,1);
+        RateController busy = RateController.get(ManetType.BT_ONLY,2);
+        RateController.get(ManetType.SDR,PacketHeader.BROADCAST_ADDRESS).onSent(PACKET_SIZE,now); //can't ping a shared channel
+        new RateController("unknown device").onSent(PACKET_SIZE,now);
+        busy.onSent(PACKET_SIZE,now);
+        assertFalse(idle.isRttNeeded(now));
+        ArrayList<RateController> needed = RateController.getRttNeeded();
+        assertEquals(1,needed.size());
+        assertEquals(2,needed.get(0).getUuid());
+        assertEquals(ManetType.BT_ONLY,needed.get(0).getType());
+
+        RateController.onRttSample(2,40l);
+        assertTrue(RateController.getRttNeeded().isEmpty());
+        assertTrue(busy.isRttNeeded(now + RateController.RTT_PROBE_INTERVAL + 100l));
+        assertFalse(busy.isRttNeeded(now + RateController.RTT_PROBE_INTERVAL * 3l)); //idle again
+    }
+
+    @Test
+    public void knowsWhichDeviceReturnedAPing() {
+        PingPacket first = new PingPacket(1,2);
+        PingPacket second = new PingPacket(1,3);
+        assertTrue(second.getDepartureTime() > first.getDepartureTime());
+        assertEquals(3,second.getResponder());
+        assertEquals(2,first.getResponder());
+        assertEquals(PacketHeader.BROADCAST_ADDRESS,first.getResponder()); //already handled
+    }
+
+    @Test
+    public void broadcastsAreHeldBackOnlyWhenEveryLinkIsFull() {
+        final long now = System.currentTimeMillis();
+        assertFalse(RateController.isFull(ManetType.BT_ONLY)); //nothing measured
+        RateController first = RateController.get(ManetType.BT_ONLY,1);
+        RateController second = RateController.get(ManetType.BT_ONLY,2);
+        first.onSent(1024 * 64,now); //well past the starting rate
+        assertTrue(RateController.isFull(ManetType.BT_ONLY,1));
+        assertFalse(RateController.isFull(ManetType.BT_ONLY));
+        second.onSent(1024 * 64,now);
+        assertTrue(RateController.isFull(ManetType.BT_ONLY));
+        assertFalse(RateController.isFull(ManetType.SDR));
+    }
+
+    private static class Result {
+        private final double throughput; //KB/s
+        private final double queueDelay; //ms, average
+        private final double controlLatency; //ms, average
+
+        private Result(double throughput, double queueDelay, double controlLatency) {
+            this.throughput = throughput;
+            this.queueDelay = queueDelay;
+            this.controlLatency = controlLatency;
+        }
+    }
+
+    private static class Simulation {
+        private final double bytesPerMs;
+        private final RateController controller;
+        private final boolean pings;
+        private final ArrayDeque<double[]> buffer = new ArrayDeque<>(); //time each packet leaves the link and its size
+        private final ArrayList<double[]> rttSamples = new ArrayList<>(); //time measured and round trip
+        private double queueDelays = 0d;
+        private long packets = 0l;
+        private double controlLatencies = 0d;
+        private long controlPackets = 0l;
+        private double now = 0d;
+        private double linkFreeAt = 0d;
+        private int buffered = 0;
+        private long delivered = 0l;
+
+        private Simulation(int rateKBps, boolean paced, boolean pings) {
+            bytesPerMs = (double)rateKBps * 1024d / 1000d;
+            controller = paced?new RateController("test"):null;
+            this.pings = pings;
+        }
+
+        private Result run() {
+            double nextControl = 0d;
+            double nextPing = 0d;
+            while (now < DURATION) {
+                applyRttSamples();
+                if (controller != null) {
+                    long delay = controller.getDelay((long)now);
+                    if (delay > 0l) {
+                        now = Math.floor(now) + (double)delay;
+                        continue;
+                    }
+                }
+                //gather what pacing allows into one write, the way BTSocket batches frames
+                int batch = 0;
+                int count = 0;
+                ArrayList<double[]> timed = new ArrayList<>(); //when each control packet or ping was created and whether it is a ping
+                while (true) {
+                    final boolean isPing = pings && (now >= nextPing);
+                    final boolean isControl = !isPing && (now >= nextControl);
+                    final int size = isPing?PING_SIZE:(isControl?CONTROL_SIZE:PACKET_SIZE);
+                    if ((batch > 0) && (batch + size > WRITE_BATCH_SIZE))
+                        break;
+                    if (isPing) {
+                        timed.add(new double[] {nextPing,1d});
+                        nextPing += PING_INTERVAL;
+                    } else if (isControl) {
+                        timed.add(new double[] {nextControl,0d});
+                        nextControl += CONTROL_INTERVAL;
+                    }
+                    batch += size;
+                    count++;
+                    if (controller != null) {
+                        controller.onSent(size,(long)now);
+                        if (controller.getDelay((long)now) > 0l)
+                            break;
+                    }
+                }
+                final double start = now;
+                final double accepted = write(batch);
+                final double departs = linkFreeAt; //when the last byte of this write leaves the link
+                queueDelays += (departs - (double)batch / bytesPerMs - accepted) * (double)count;
+                packets += count;
+                for (double[] packet:timed) {
+                    if (packet[1] == 0d) {
+                        controlLatencies += departs + DELAY - packet[0];
+                        controlPackets++;
+                    } else
+                        rttSamples.add(new double[] {departs + 2d*DELAY,departs + 2d*DELAY - packet[0]});
+                }
+                if (controller != null)
+                    controller.onWriteCompleted(batch,(long)(accepted - start),(long)accepted);
+                now = accepted;
+            }
+            while (!buffer.isEmpty() && (buffer.peek()[0] <= DURATION)) {
+                delivered += (long)buffer.poll()[1];
+            }
+            return new Result((double)delivered / 1024d / (DURATION / 1000d),queueDelays / (double)packets,controlLatencies / (double)controlPackets);
+        }
+
+        /**
+         * Writes into the link's buffer, blocking until there is room
+         * @param size
+         * @return when the write completed
+         */
+        private double write(int size) {
+            double time = now;
+            drain(time);
+            while (buffered + size > BUFFER_SIZE) {
+                time = buffer.peek()[0];
+                drain(time);
+            }
+            linkFreeAt = Math.max(time,linkFreeAt) + (double)size / bytesPerMs;
+            buffer.add(new double[] {linkFreeAt,size});
+            buffered += size;
+            return time;
+        }
+
+        private void drain(double time) {
+            while (!buffer.isEmpty() && (buffer.peek()[0] <= time)) {
+                double[] sent = buffer.poll();
+                buffered -= (int)sent[1];
+                if (sent[0] <= DURATION)
+                    delivered += (long)sent[1];
+            }
+        }
+
+        private void applyRttSamples() {
+            for (int i=rttSamples.size()-1;i>=0;i--) {
+                double[] sample = rttSamples.get(i);
+                if (sample[0] <= now) {
+                    controller.onRttSample((long)sample[1],(long)sample[0]);
+                    rttSamples.remove(i);
+                }
+            }
+        }
+    }
+}
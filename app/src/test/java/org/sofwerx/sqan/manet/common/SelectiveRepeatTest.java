@@ -0,0 +1,234 @@
+package org.sofwerx.sqan.manet.common;
+
+import org.junit.Test;
+import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.packet.RawBytesPacket;
+import org.sofwerx.sqan.manet.common.packet.ReliablePacket;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs SelectiveRepeat at both ends of a simulated narrow, lossy link (like the SDR) where losses
+ * hit packets in both directions independently
+ */
+public class SelectiveRepeatTest {
+    private final static int ORIGIN = 1;
+    private final static int DESTINATION = 2;
+    private final static int PACKETS = 256;
+    private final static int PAYLOAD_SIZE = 200;
+    private final static double BYTES_PER_MS = 16d; //about 16KB/s
+    private final static long DELAY = 40l; //one-way propagation and processing
+    private final static long TIMEOUT = 2l * (DELAY + 50l); //round trip plus time to serialize a few packets
+
+    private static AbstractPacket newPacket() {
+        RawBytesPacket packet = new RawBytesPacket(new PacketHeader(ORIGIN));
+        packet.setDestination(DESTINATION);
+        packet.setData(new byte[PAYLOAD_SIZE]);
+        packet.setLossy(false);
+        return packet;
+    }
+
+    /**
+     * The outcome of sending PACKETS packets from one end to the other
+     */
+    private static class Run {
+        private final ArrayList<Long> delivered = new ArrayList<>(); //the time (packet ID) of each packet handed on, in the order handed on
+        private final SelectiveRepeat[] ends = new SelectiveRepeat[2];
+        private int sends = 0;
+        private long finished;
+    }
+
+    private static Run run(int lossPercent, long seed) {
+        final Simulation sim = new Simulation(lossPercent,new Random(seed));
+        final Run run = new Run();
+        for (int i=0;i<2;i++) {
+            final int side = i;
+            run.ends[i] = new SelectiveRepeat(new SelectiveRepeat.Link() {
+                @Override
+                public void transmit(AbstractPacket packet, TransportPreference preferredTransport) {
+                    if (side == 0)
+                        run.sends++;
+                    final byte[] bytes = packet.toByteArray();
+                    sim.send(side,bytes.length,() -> {
+                        ReliablePacket arrived = (ReliablePacket)AbstractPacket.newFromBytes(bytes);
+                        AbstractPacket wrapped = run.ends[1-side].onReceived(arrived,sim.now);
+                        if (wrapped != null) {
+                            run.delivered.add(wrapped.getTime());
+                            run.finished = sim.now;
+                        }
+                        sim.schedule(run.ends,1-side);
+                    });
+                }
+
+                @Override
+                public long getRetransmitTimeout(int destination) { return TIMEOUT; }
+            });
+        }
+        for (int i=0;i<PACKETS;i++) {
+            run.ends[0].send(newPacket(),0l);
+        }
+        sim.schedule(run.ends,0);
+        sim.run();
+        return run;
+    }
+
+    @Test
+    public void deliversEveryPacketOnceOverALosslessLink() {
+        Run run = run(0,1l);
+        assertEquals(PACKETS,run.delivered.size());
+        assertEquals(PACKETS,new HashSet<>(run.delivered).size());
+        assertEquals(PACKETS,run.sends); //nothing resent
+        assertEquals(0l,run.ends[0].getResends());
+        assertEquals(0l,run.ends[1].getDuplicates());
+        //close to the link rate
+        final float goodput = (float)(PACKETS * PAYLOAD_SIZE) / (float)run.finished;
+        assertTrue("goodput "+goodput+"KB/s",goodput > BYTES_PER_MS * 0.6d);
+    }
+
+    @Test
+    public void deliversEveryPacketOnceDespiteLoss() {
+        for (int loss:new int[] {5,10,20}) {
+            Run run = run(loss,23l + loss);
+            assertEquals(loss+"% loss",PACKETS,run.delivered.size());
+            assertEquals(loss+"% loss",PACKETS,new HashSet<>(run.delivered).size());
+            assertEquals(0l,run.ends[0].getPacketsAbandoned());
+            assertTrue(loss+"% loss, "+run.sends+" sends",run.sends < PACKETS * 2);
+            assertEquals(Long.MAX_VALUE,run.ends[0].getNextDue()); //nothing left waiting
+        }
+    }
+
+    @Test
+    public void givesUpAfterEnoughTries() {
+        SelectiveRepeat end = new SelectiveRepeat(new SelectiveRepeat.Link() {
+            @Override
+            public void transmit(AbstractPacket packet, TransportPreference preferredTransport) {} //never arrives
+
+            @Override
+            public long getRetransmitTimeout(int destination) { return TIMEOUT; }
+        });
+        end.send(newPacket(),0l);
+        long now = 0l;
+        for (int i=0;(i<100) && (end.getNextDue() != Long.MAX_VALUE);i++) {
+            now = end.getNextDue();
+            end.onTimer(now);
+        }
+        assertEquals(1l,end.getPacketsAbandoned());
+        assertEquals(7l,end.getResends());
+        assertEquals(Long.MAX_VALUE,end.getNextDue());
+    }
+
+    @Test
+    public void resendsOverThePreferredTransport() {
+        final ArrayList<TransportPreference> transports = new ArrayList<>();
+        SelectiveRepeat end = new SelectiveRepeat(new SelectiveRepeat.Link() {
+            @Override
+            public void transmit(AbstractPacket packet, TransportPreference preferredTransport) { transports.add(preferredTransport); }
+
+            @Override
+            public long getRetransmitTimeout(int destination) { return TIMEOUT; }
+        });
+        end.send(newPacket(),TransportPreference.SDR,0l);
+        end.onTimer(end.getNextDue());
+        assertEquals(2,transports.size());
+        assertEquals(TransportPreference.SDR,transports.get(0));
+        assertEquals(TransportPreference.SDR,transports.get(1));
+    }
+
+    @Test
+    public void ignoresDuplicates() {
+        final ArrayList<ReliablePacket> sent = new ArrayList<>();
+        SelectiveRepeat.Link link = new SelectiveRepeat.Link() {
+            @Override
+            public void transmit(AbstractPacket packet, TransportPreference preferredTransport) { sent.add((ReliablePacket)AbstractPacket.newFromBytes(packet.toByteArray())); }
+
+            @Override
+            public long getRetransmitTimeout(int destination) { return TIMEOUT; }
+        };
+        SelectiveRepeat sender = new SelectiveRepeat(link);
+        SelectiveRepeat receiver = new SelectiveRepeat(link);
+        AbstractPacket packet = newPacket();
+        sender.send(packet,0l);
+        ReliablePacket reliable = sent.get(0);
+        assertEquals(packet.getTime(),receiver.onReceived(reliable,1l).getTime());
+        assertNull(receiver.onReceived(reliable,2l));
+        assertEquals(1l,receiver.getDuplicates());
+    }
+
+    /**
+     * Discrete event simulation of a link where each direction sends one packet at a time
+     */
+    private static class Simulation {
+        private final int loss;
+        private final Random random;
+        private final PriorityQueue<Event> events = new PriorityQueue<>();
+        private final long[] busyUntil = new long[2];
+        private final long[] timerAt = {Long.MAX_VALUE,Long.MAX_VALUE};
+        private long now = 0l;
+        private long order = 0l;
+
+        private Simulation(int loss, Random random) {
+            this.loss = loss;
+            this.random = random;
+        }
+
+        private void send(int side, int size, Runnable onArrival) {
+            final long start = Math.max(now,busyUntil[side]);
+            busyUntil[side] = start + (long)Math.ceil((double)size / BYTES_PER_MS);
+            if (random.nextInt(100) >= loss)
+                events.add(new Event(busyUntil[side] + DELAY,order++,onArrival));
+        }
+
+        /**
+         * Makes sure the timer for one end runs when it is next due
+         */
+        private void schedule(final SelectiveRepeat[] ends, final int side) {
+            final long due = Math.max(now,ends[side].getNextDue());
+            if ((due == Long.MAX_VALUE) || (due >= timerAt[side]))
+                return;
+            timerAt[side] = due;
+            events.add(new Event(due,order++,() -> {
+                if (timerAt[side] != due)
+                    return; //replaced by an earlier timer
+                timerAt[side] = Long.MAX_VALUE;
+                ends[side].onTimer(now);
+                schedule(ends,side);
+            }));
+        }
+
+        private void run() {
+            while (!events.isEmpty()) {
+                Event event = events.poll();
+                now = Math.max(now,event.time);
+                event.action.run();
+            }
+        }
+    }
+
+    private static class Event implements Comparable<Event> {
+        private final long time;
+        private final long order;
+        private final Runnable action;
+
+        private Event(long time, long order, Runnable action) {
+            this.time = time;
+            this.order = order;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time)
+                return (time < other.time)?-1:1;
+            return Long.compare(order,other.order);
+        }
+    }
+}
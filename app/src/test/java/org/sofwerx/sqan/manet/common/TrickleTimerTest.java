@@ -0,0 +1,67 @@
+package org.sofwerx.sqan.manet.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrickleTimerTest {
+    private final static long MIN_INTERVAL = 1000l * 5l;
+    private final static long MAX_INTERVAL = 1000l * 20l;
+    private final static long STEP = 100l;
+
+    /**
+     * Steps through time, returning how many times the timer fired
+     */
+    private static int countFired(TrickleTimer timer, long from, long to) {
+        int fired = 0;
+        for (long now=from;now<to;now+=STEP) {
+            if (timer.isDue(now))
+                fired++;
+        }
+        return fired;
+    }
+
+    @Test
+    public void backsOffWhileNothingChanges() {
+        TrickleTimer timer = new TrickleTimer(MIN_INTERVAL,MAX_INTERVAL);
+        assertEquals(1,countFired(timer,0l,MIN_INTERVAL + STEP)); //a time between checks is caught at the interval's end
+        countFired(timer,MIN_INTERVAL + STEP,MIN_INTERVAL * 4l);
+        assertEquals(MAX_INTERVAL,timer.getInterval());
+        //once at the maximum, one transmission per interval
+        final long start = MIN_INTERVAL * 4l;
+        final int fired = countFired(timer,start,start + MAX_INTERVAL * 10l);
+        assertTrue(fired >= 9 && fired <= 11);
+        assertEquals(MAX_INTERVAL,timer.getInterval());
+    }
+
+    @Test
+    public void resetGoesBackToTheMinimum() {
+        TrickleTimer timer = new TrickleTimer(MIN_INTERVAL,MAX_INTERVAL);
+        final long now = MAX_INTERVAL * 5l;
+        countFired(timer,0l,now);
+        assertEquals(MAX_INTERVAL,timer.getInterval());
+        timer.reset(now);
+        assertEquals(MIN_INTERVAL,timer.getInterval());
+        assertEquals(1,countFired(timer,now,now + MIN_INTERVAL));
+    }
+
+    @Test
+    public void firesInTheSecondHalfOfTheInterval() {
+        for (int i=0;i<50;i++) {
+            TrickleTimer timer = new TrickleTimer(MIN_INTERVAL,MAX_INTERVAL);
+            timer.reset(0l);
+            assertEquals(0,countFired(timer,0l,MIN_INTERVAL / 2l));
+            assertEquals(1,countFired(timer,MIN_INTERVAL / 2l,MIN_INTERVAL + STEP)); //a time between checks is caught at the interval's end
+        }
+    }
+
+    @Test
+    public void sendsAMissedTransmissionWhenCheckedLate() {
+        TrickleTimer timer = new TrickleTimer(MIN_INTERVAL,MAX_INTERVAL);
+        timer.reset(0l);
+        assertFalse(timer.isDue(1l));
+        assertTrue(timer.isDue(MIN_INTERVAL + 1l)); //checked after the whole interval passed
+    }
+}
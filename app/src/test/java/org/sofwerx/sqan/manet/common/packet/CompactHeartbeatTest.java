@@ -0,0 +1,186 @@
+package org.sofwerx.sqan.manet.common.packet;
+
+import org.junit.Test;
+import org.sofwerx.sqan.manet.common.RelayConnection;
+import org.sofwerx.sqan.manet.common.pnt.SpaceTime;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactHeartbeatTest {
+    private final static int SENDER = 7;
+    private final static int RECEIVER = 8;
+    private final static byte[] MAC = {2,0,0,0,0,7};
+    private final static String CALLSIGN = "Team-7";
+
+    /**
+     * Relay ID to hops/links (hops << 2 | wifi << 1 | bt), as in the heartbeat
+     */
+    private static HashMap<Integer,Integer> links(int count, Random random) {
+        HashMap<Integer,Integer> links = new HashMap<>();
+        for (int i=1;i<=count;i++) {
+            links.put(100 + i,hopsLink(random));
+        }
+        return links;
+    }
+
+    /**
+     * A random hops/links value (only direct connections have links)
+     */
+    private static int hopsLink(Random random) {
+        return random.nextBoolean()?((1 + random.nextInt(3)) << 2):random.nextInt(4);
+    }
+
+    private static List<RelayConnection> toRelays(HashMap<Integer,Integer> links, long now) {
+        ArrayList<RelayConnection> relays = new ArrayList<>();
+        for (HashMap.Entry<Integer,Integer> link:links.entrySet()) {
+            final int hopsLink = link.getValue();
+            relays.add(new RelayConnection(link.getKey(),hopsLink >> 2,now,(hopsLink & 0b01) != 0,(hopsLink & 0b10) != 0));
+        }
+        return relays;
+    }
+
+    private static HashMap<Integer,Integer> fromRelays(List<RelayConnection> relays) {
+        HashMap<Integer,Integer> links = new HashMap<>();
+        for (RelayConnection relay:relays) {
+            links.put(relay.getSqAnID(),(relay.getHops() << 2) | (relay.isDirectWiFi()?0b10:0) | (relay.isDirectBt()?0b01:0));
+        }
+        return links;
+    }
+
+    private static SpaceTime position(double lat, long now) {
+        SpaceTime position = new SpaceTime(lat,-77d,120d,now);
+        position.setAccuracy(5f);
+        return position;
+    }
+
+    private static byte[] encode(CompactHeartbeat.Encoder encoder, HashMap<Integer,Integer> links, SpaceTime position, long now) {
+        return encoder.encode(position,(byte)0,MAC,null,CALLSIGN,toRelays(links,now),now);
+    }
+
+    private static CompactHeartbeat.Result decode(CompactHeartbeat.Decoder decoder, byte[] payload, long now) {
+        return decoder.decode(SENDER,ByteBuffer.wrap(payload),now);
+    }
+
+    @Test
+    public void firstHeartbeatCarriesEverything() {
+        final long now = 1000000l;
+        HashMap<Integer,Integer> links = links(10,new Random(1l));
+        CompactHeartbeat.Result result = decode(new CompactHeartbeat.Decoder(),encode(new CompactHeartbeat.Encoder(),links,position(38.5,now),now),now);
+        assertNotNull(result);
+        assertFalse(result.isFullNeeded());
+        assertTrue(result.hasStatic());
+        assertEquals(CALLSIGN,result.getCallsign());
+        assertArrayEquals(MAC,result.getAwareMac());
+        assertNull(result.getAwareIpv6());
+        assertEquals(38.5,result.getPosition().getLatitude(),1e-6);
+        assertEquals(120d,result.getPosition().getAltitude(),1d);
+        assertEquals(links,fromRelays(result.getRelays()));
+    }
+
+    @Test
+    public void unchangedHeartbeatsAreSmall() {
+        long now = 1000000l;
+        HashMap<Integer,Integer> links = links(30,new Random(2l));
+        CompactHeartbeat.Encoder encoder = new CompactHeartbeat.Encoder();
+        CompactHeartbeat.Decoder decoder = new CompactHeartbeat.Decoder();
+        SpaceTime position = position(38.5,now);
+        byte[] first = encode(encoder,links,position,now);
+        decode(decoder,first,now);
+        now += 5000l;
+        byte[] next = encode(encoder,links,position,now);
+        assertTrue(next.length < first.length / 4);
+        CompactHeartbeat.Result result = decode(decoder,next,now);
+        assertNull(result.getPosition()); //hasn't moved
+        assertEquals(links,fromRelays(result.getRelays()));
+    }
+
+    @Test
+    public void deltasCarryChangedAndRemovedRelays() {
+        long now = 1000000l;
+        HashMap<Integer,Integer> links = links(30,new Random(3l));
+        CompactHeartbeat.Encoder encoder = new CompactHeartbeat.Encoder();
+        CompactHeartbeat.Decoder decoder = new CompactHeartbeat.Decoder();
+        decode(decoder,encode(encoder,links,null,now),now);
+        links.put(101,(2 << 2));
+        links.remove(102);
+        links.put(200,0b11);
+        now += 5000l;
+        byte[] delta = encode(encoder,links,null,now);
+        assertEquals(1,encoder.getKeyframes());
+        assertEquals(links,fromRelays(decode(decoder,delta,now).getRelays()));
+    }
+
+    @Test
+    public void asksForAFullHeartbeatAfterMissingTheKeyframe() {
+        long now = 1000000l;
+        HashMap<Integer,Integer> links = links(10,new Random(4l));
+        CompactHeartbeat.Encoder sender = new CompactHeartbeat.Encoder();
+        CompactHeartbeat.Encoder receiver = new CompactHeartbeat.Encoder();
+        CompactHeartbeat.Decoder decoder = new CompactHeartbeat.Decoder();
+        encode(sender,links,null,now); //lost
+        now += 5000l;
+        CompactHeartbeat.Result result = decode(decoder,encode(sender,links,null,now),now);
+        assertTrue(result.isFullNeeded());
+        assertNull(result.getRelays());
+
+        //the receiver's next heartbeat carries the request back to the sender
+        receiver.requestFullFrom(SENDER);
+        assertTrue(receiver.isUrgent());
+        CompactHeartbeat.Result request = new CompactHeartbeat.Decoder().decode(RECEIVER,ByteBuffer.wrap(encode(receiver,new HashMap<>(),null,now)),now);
+        assertTrue(request.isRequested(SENDER));
+        assertFalse(receiver.isUrgent());
+        sender.onFullRequested();
+
+        now += 1000l;
+        result = decode(decoder,encode(sender,links,null,now),now);
+        assertFalse(result.isFullNeeded());
+        assertTrue(result.hasStatic());
+        assertEquals(links,fromRelays(result.getRelays()));
+    }
+
+    @Test
+    public void neverReportsAWrongRelayListDespiteLoss() {
+        Random random = new Random(5l);
+        HashMap<Integer,Integer> links = links(20,random);
+        CompactHeartbeat.Encoder encoder = new CompactHeartbeat.Encoder();
+        CompactHeartbeat.Decoder decoder = new CompactHeartbeat.Decoder();
+        int inSync = 0;
+        long now = 1000000l;
+        for (int i=0;i<500;i++) {
+            now += 5000l;
+            if (random.nextInt(10) == 0)
+                links.put(101 + random.nextInt(25),hopsLink(random));
+            if (random.nextInt(20) == 0)
+                links.remove(101 + random.nextInt(25));
+            byte[] payload = encode(encoder,links,position(38.5 + i * 0.0001,now),now);
+            if (random.nextInt(100) < 30)
+                continue; //lost
+            CompactHeartbeat.Result result = decode(decoder,payload,now);
+            assertNotNull(result);
+            if (result.isFullNeeded())
+                encoder.onFullRequested();
+            if (result.getRelays() != null) {
+                assertEquals("heartbeat "+i,links,fromRelays(result.getRelays()));
+                inSync++;
+            }
+        }
+        assertTrue(inSync > 300);
+    }
+
+    @Test
+    public void rejectsOtherPayloads() {
+        assertNull(new CompactHeartbeat.Decoder().decode(SENDER,ByteBuffer.wrap(new byte[] {0x40,0x01,0x02}),0l));
+        assertNull(new CompactHeartbeat.Decoder().decode(SENDER,ByteBuffer.wrap(new byte[] {CompactHeartbeat.MARKER,0b00000100}),0l));
+    }
+}
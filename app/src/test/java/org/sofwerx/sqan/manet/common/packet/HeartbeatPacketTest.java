@@ -0,0 +1,108 @@
+package org.sofwerx.sqan.manet.common.packet;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sofwerx.sqan.manet.common.MeshState;
+import org.sofwerx.sqan.manet.common.RelayConnection;
+import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
+
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends heartbeats from one device's MeshState and reads them in another's, as two devices would
+ */
+public class HeartbeatPacketTest {
+    private final static int SENDER = 7;
+    private final static int RECEIVER = 8;
+    private final static int NEIGHBORS = 6;
+
+    private final MeshState original = MeshState.get();
+    private final MeshState sender = new MeshState();
+    private final MeshState receiver = new MeshState();
+
+    @After
+    public void tearDown() {
+        MeshState.set(sender);
+        SqAnDevice.clearAllDevices(null);
+        MeshState.set(receiver);
+        SqAnDevice.clearAllDevices(null);
+        MeshState.set(original);
+    }
+
+    private void setUp() {
+        MeshState.set(receiver);
+        receiver.setThisDevice(new SqAnDevice(RECEIVER));
+        MeshState.set(sender);
+        sender.setThisDevice(new SqAnDevice(SENDER));
+        for (int i=1;i<=NEIGHBORS;i++) {
+            new SqAnDevice(100 + i).setConnected(0,true,false);
+        }
+    }
+
+    /**
+     * Sends a heartbeat from the sender and reads it at the receiver
+     * @return the relays the receiver now has for the sender
+     */
+    private HashSet<Integer> send(HeartbeatPacket.DetailLevel level) {
+        MeshState.set(sender);
+        byte[] bytes = new HeartbeatPacket(sender.getThisDevice(),level).toByteArray();
+        MeshState.set(receiver);
+        AbstractPacket packet = AbstractPacket.newFromBytes(bytes);
+        assertTrue(packet instanceof HeartbeatPacket);
+        HashSet<Integer> relays = new HashSet<>();
+        for (RelayConnection relay:((HeartbeatPacket)packet).getDevice().getRelayConnections()) {
+            relays.add(relay.getSqAnID());
+        }
+        return relays;
+    }
+
+    @Test
+    public void removedRelaysDropOffTheSendersDevice() {
+        setUp();
+        HashSet<Integer> relays = send(HeartbeatPacket.DetailLevel.COMPACT); //keyframe
+        assertEquals(NEIGHBORS,relays.size());
+        assertTrue(relays.contains(103));
+
+        MeshState.set(sender);
+        SqAnDevice.remove(SqAnDevice.findByUUID(103));
+        relays = send(HeartbeatPacket.DetailLevel.COMPACT); //delta with 103 REMOVED
+        assertEquals(NEIGHBORS - 1,relays.size());
+        assertFalse(relays.contains(103));
+    }
+
+    @Test
+    public void narrowLinksStayMediumUntilEveryNeighborReadsCompact() {
+        setUp();
+        MeshState.set(receiver);
+        assertEquals(HeartbeatPacket.DetailLevel.COMPACT,HeartbeatPacket.getNarrowLinkLevel(TransportPreference.BLUETOOTH)); //no neighbors yet
+
+        send(HeartbeatPacket.DetailLevel.MEDIUM); //this build advertises it can read COMPACT
+        SqAnDevice device = SqAnDevice.findByUUID(SENDER);
+        assertTrue(device.isCompactHeartbeatsSupported());
+        device.setConnected(0,true,false);
+        SqAnDevice older = new SqAnDevice(200); //never advertised it
+        older.setConnected(0,true,false);
+        assertEquals(HeartbeatPacket.DetailLevel.MEDIUM,HeartbeatPacket.getNarrowLinkLevel(TransportPreference.BLUETOOTH));
+        assertEquals(HeartbeatPacket.DetailLevel.COMPACT,HeartbeatPacket.getNarrowLinkLevel(TransportPreference.SDR)); //not on that link
+
+        older.parseFlags(receiver.getThisDevice().getFlags()); //once it is updated
+        assertEquals(HeartbeatPacket.DetailLevel.COMPACT,HeartbeatPacket.getNarrowLinkLevel(TransportPreference.BLUETOOTH));
+    }
+
+    @Test
+    public void headerCompressionIsOnlyKnownOnceAdvertised() {
+        setUp();
+        MeshState.set(receiver);
+        SqAnDevice device = new SqAnDevice(SENDER);
+        assertFalse(device.isHeaderCompressionSupported()); //an older build never says it can restore compressed headers
+        send(HeartbeatPacket.DetailLevel.MEDIUM);
+        assertTrue(device.isHeaderCompressionSupported());
+        send(HeartbeatPacket.DetailLevel.COMPACT);
+        assertTrue(device.isHeaderCompressionSupported());
+    }
+}
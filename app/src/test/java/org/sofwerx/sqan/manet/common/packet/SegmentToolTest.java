@@ -0,0 +1,61 @@
+package org.sofwerx.sqan.manet.common.packet;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that segments claiming more of a packet than could ever be reassembled cannot run up
+ * memory for reassembly
+ */
+public class SegmentToolTest {
+    private final static int ORIGIN = 12;
+    private final static int MAX_SEGMENTS = 0xFFFF;
+
+    private static SegmentPacket segment(int segmentId, int index, int count, int size) {
+        return new SegmentPacket(new PacketHeader(ORIGIN),segmentId,index,count,ByteBuffer.allocate(size));
+    }
+
+    @After
+    public void tearDown() {
+        SegmentTool.clear();
+    }
+
+    @Test
+    public void aPacketOfTheMaxSizeIsNotSegmented() {
+        assertTrue(SegmentTool.isSinglePacket(1000,1000));
+        assertFalse(SegmentTool.isSinglePacket(1001,1000));
+    }
+
+    @Test
+    public void dropsSegmentsClaimingMoreThanTheBudget() {
+        SegmentTool.clear();
+        assertNull(SegmentTool.reassemble(segment(1,0,MAX_SEGMENTS,200))); //~13MB
+        assertNull(SegmentTool.reassemble(segment(2,3,40000,0)));
+        assertEquals(0,SegmentTool.getBytesHeld());
+    }
+
+    @Test
+    public void countsTheSegmentSlotsAgainstTheBudget() {
+        SegmentTool.clear();
+        assertNull(SegmentTool.reassemble(segment(1,0,4,100)));
+        final int held = SegmentTool.getBytesHeld();
+        assertTrue(held > 100);
+
+        //the last segment can't say how big the others are, so it is kept, but its slots are paid for
+        assertNull(SegmentTool.reassemble(segment(2,MAX_SEGMENTS - 1,MAX_SEGMENTS,10)));
+        assertTrue(SegmentTool.getBytesHeld() - held >= MAX_SEGMENTS);
+
+        //enough of these and older partial packets are evicted rather than the budget exceeded
+        for (int i=3;i<100;i++) {
+            SegmentTool.reassemble(segment(i,MAX_SEGMENTS - 1,MAX_SEGMENTS,10));
+            assertTrue(SegmentTool.getBytesHeld() <= 1024 * 1024 * 4);
+        }
+    }
+}
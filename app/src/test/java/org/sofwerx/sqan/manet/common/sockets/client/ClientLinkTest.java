@@ -0,0 +1,162 @@
+package org.sofwerx.sqan.manet.common.sockets.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.sockets.Challenge;
+import org.sofwerx.sqan.manet.common.sockets.PacketParser;
+import org.sofwerx.sqan.manet.common.sockets.SocketChannelConfig;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the Client's link against a stand-in for the Server on localhost
+ */
+public class ClientLinkTest {
+    private final static int SOCKET_BUFFER_SIZE = 1024 * 32;
+    private ServerSocketChannel acceptor;
+    private SocketChannel far;
+    private ClientLink link;
+    private SocketTransceiver datalink;
+    private final LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+
+    /**
+     * Collects what the link reads instead of building packets from it
+     */
+    private class CollectingParser extends PacketParser {
+        private CollectingParser() { super(null); }
+
+        @Override
+        public SqAnDevice processPacketAndNotifyManet(ByteBuffer buf) {
+            byte[] payload = new byte[buf.remaining()];
+            buf.get(payload);
+            received.add(payload);
+            return null;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        acceptor = ServerSocketChannel.open();
+        acceptor.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),0));
+        SocketChannel channel = SocketChannel.open(acceptor.getLocalAddress());
+        channel.setOption(StandardSocketOptions.SO_SNDBUF,SOCKET_BUFFER_SIZE);
+        far = acceptor.accept();
+        far.setOption(StandardSocketOptions.SO_RCVBUF,SOCKET_BUFFER_SIZE);
+        datalink = new SocketTransceiver(new SocketChannelConfig((String)null,0),new CollectingParser());
+        link = new ClientLink(null);
+        link.start();
+        link.attach(channel,datalink);
+        ByteBuffer challenge = ByteBuffer.wrap(Challenge.generateChallenge());
+        writeFully(far,challenge);
+        readFully(far,ByteBuffer.allocate(Challenge.CHALLENGE_LENGTH)); //the response
+        assertTrue(datalink.isReadyToWrite());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        link.stopLink();
+        far.close();
+        acceptor.close();
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0)
+                throw new EOFException();
+        }
+    }
+
+    private static byte[] frame(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i=0;i<length;i++) {
+            data[i] = (byte)(seed + i);
+        }
+        return data;
+    }
+
+    @Test(timeout=20000l)
+    public void queuedFramesArriveInOrder() throws Exception {
+        final int count = 2000;
+        Thread sender = new Thread(() -> {
+            for (int i=0;i<count;i++) {
+                while (!datalink.queueFrame(frame(1 + (i % 700),i),null,null)) {
+                    Thread.yield(); //the queue is full; the far end is reading below
+                }
+            }
+        });
+        sender.start();
+        ByteBuffer size = ByteBuffer.allocate(4);
+        for (int i=0;i<count;i++) {
+            size.clear();
+            readFully(far,size);
+            final int length = size.getInt(0);
+            assertEquals(1 + (i % 700),length);
+            ByteBuffer data = ByteBuffer.allocate(length);
+            readFully(far,data);
+            assertArrayEquals("frame "+i,frame(length,i),data.array());
+        }
+        sender.join();
+        assertFalse(datalink.hasQueuedOutput());
+    }
+
+    @Test(timeout=10000l)
+    public void refusesRatherThanWaitingWhenTheLinkIsBackedUp() throws Exception {
+        //the far end is not reading, so the socket fills and then the queue does
+        byte[] data = new byte[1000];
+        int queued = 0;
+        final long start = System.nanoTime();
+        while (datalink.queueFrame(data,null,null)) {
+            queued++;
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2l));
+        assertTrue(queued > 0);
+        assertTrue(datalink.isCongested());
+        assertEquals(1l,datalink.getRefusedFrames());
+    }
+
+    @Test(timeout=10000l)
+    public void splitsWhatItReadsIntoFrames() throws Exception {
+        byte[][] sent = {frame(10,1),frame(300,2),frame(1,3),frame(100000,4)}; //the last is bigger than the read buffer
+        ByteBuffer out = ByteBuffer.allocate(4 * sent.length + 10 + 300 + 1 + 100000);
+        for (byte[] data:sent) {
+            out.putInt(data.length);
+            out.put(data);
+        }
+        out.flip();
+        while (out.hasRemaining()) { //dribbled out so frames are split across reads
+            ByteBuffer part = out.duplicate();
+            part.limit(Math.min(out.limit(),out.position() + 7000));
+            writeFully(far,part);
+            out.position(part.position());
+            Thread.sleep(1l);
+        }
+        for (byte[] data:sent) {
+            byte[] got = received.poll(5l,TimeUnit.SECONDS);
+            assertNotNull(got);
+            assertArrayEquals(data,got);
+        }
+    }
+}
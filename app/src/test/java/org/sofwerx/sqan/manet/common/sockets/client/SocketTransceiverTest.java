@@ -0,0 +1,79 @@
+package org.sofwerx.sqan.manet.common.sockets.client;
+
+import org.junit.Test;
+import org.sofwerx.sqan.manet.common.sockets.SocketChannelConfig;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queues frames from several threads at once, as the MANET does
+ */
+public class SocketTransceiverTest {
+    private final static int SENDERS = 4;
+    private final static int FRAMES_PER_SENDER = 20000;
+    private final static int ROUNDS = 50; //the race only shows up now and then
+
+    /**
+     * Takes everything written to it
+     */
+    private static class Sink implements GatheringByteChannel {
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0l;
+            for (int i=offset;i<offset+length;i++) {
+                written += write(srcs[i]);
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) { return write(srcs,0,srcs.length); }
+
+        @Override
+        public int write(ByteBuffer src) {
+            final int written = src.remaining();
+            src.position(src.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() { return true; }
+
+        @Override
+        public void close() {}
+    }
+
+    @Test(timeout=60000l)
+    public void countsStayWithTheQueueWhenClosedWhileSendersQueue() throws Exception {
+        for (int round=0;round<ROUNDS;round++) {
+            final SocketTransceiver datalink = new SocketTransceiver(new SocketChannelConfig((String)null,0),null);
+            Thread[] senders = new Thread[SENDERS];
+            for (int i=0;i<SENDERS;i++) {
+                senders[i] = new Thread(() -> {
+                    for (int j=0;j<FRAMES_PER_SENDER;j++) {
+                        datalink.queueFrame(new byte[8],null,null);
+                    }
+                });
+                senders[i].start();
+            }
+            boolean sending = true;
+            while (sending) {
+                datalink.closeAll();
+                sending = false;
+                for (Thread sender:senders) {
+                    sending |= sender.isAlive();
+                }
+            }
+
+            //whatever is left should be exactly what the counts say
+            assertTrue(datalink.flush(new Sink()));
+            assertFalse("round "+round,datalink.hasQueuedOutput());
+            assertEquals("round "+round,0l,datalink.getQueuedBytes());
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.sofwerx.sqan.manet.common.sockets.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.sofwerx.sqan.manet.common.MeshState;
+import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.sockets.Challenge;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Relays packets between clients on localhost through an IoLoop, the way the Server does once it
+ * has accepted them
+ */
+public class ClientRelayTest {
+    private final static int SERVER_UUID = 1;
+    private final static byte PACKET_TYPE_RAW = 0b00000010;
+    private final static int PAYLOAD = 200;
+    private final static int PACKET_SIZE = PacketHeader.getSize() + PAYLOAD;
+    private final static int SOCKET_BUFFER_SIZE = 1024 * 16;
+    private static int nextUuid = 3000; //each test uses its own origins so the relay's dedup cache does not see repeats
+    private IoLoop loop;
+    private ServerSocketChannel server;
+    private final ArrayList<SocketChannel> clients = new ArrayList<>();
+
+    @BeforeClass
+    public static void setThisDevice() {
+        MeshState.get().setThisDevice(new SqAnDevice(SERVER_UUID)); //normally set by Config.init(Context)
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        loop = new IoLoop(0);
+        loop.start();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (SocketChannel client:clients) {
+            client.close();
+        }
+        server.close();
+        loop.close();
+        ClientHandler.clear();
+    }
+
+    /**
+     * Connects a client, answers the challenge and sends a packet addressed to itself so the loop
+     * learns which client this is
+     */
+    private SocketChannel connect(int uuid) throws Exception {
+        return connect(uuid,0);
+    }
+
+    /**
+     * @param sendBuffer size of the loop's socket buffer toward the client (0 == default)
+     */
+    private SocketChannel connect(int uuid, int sendBuffer) throws Exception {
+        SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+        channel.setOption(StandardSocketOptions.TCP_NODELAY,Boolean.TRUE);
+        SocketChannel accepted = server.accept();
+        accepted.configureBlocking(false);
+        if (sendBuffer > 0)
+            accepted.setOption(StandardSocketOptions.SO_SNDBUF,sendBuffer);
+        loop.register(new ClientHandler(accepted,null,null));
+        ByteBuffer challenge = ByteBuffer.allocate(Challenge.CHALLENGE_LENGTH);
+        readFully(channel,challenge);
+        writeFully(channel,ByteBuffer.wrap(Challenge.getResponse(null,challenge.array())));
+        writeFully(channel,buildPacket(ByteBuffer.allocate(4 + PACKET_SIZE),uuid,uuid,0l));
+        clients.add(channel);
+        return channel;
+    }
+
+    private static ByteBuffer buildPacket(ByteBuffer frame, int origin, int destination, long sequence) {
+        frame.clear();
+        frame.putInt(PACKET_SIZE);
+        frame.put(PACKET_TYPE_RAW);
+        frame.put((byte)0); //hop count
+        frame.putInt(origin);
+        frame.putInt(destination);
+        frame.putLong(sequence); //the time field doubles as the packet's identifier
+        frame.position(4 + PACKET_SIZE);
+        frame.flip();
+        return frame;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0)
+                throw new EOFException();
+        }
+    }
+
+    /**
+     * Reads the next packet and checks it came from origin with the expected sequence
+     */
+    private static void expectPacket(SocketChannel channel, int origin, int destination, long sequence) throws IOException {
+        ByteBuffer size = ByteBuffer.allocate(4);
+        readFully(channel,size);
+        assertEquals(PACKET_SIZE,size.getInt(0));
+        ByteBuffer packet = ByteBuffer.allocate(PACKET_SIZE);
+        readFully(channel,packet);
+        packet.flip();
+        assertEquals(origin,PacketHeader.getOriginUUID(packet));
+        assertEquals(destination,PacketHeader.getDestination(packet));
+        assertEquals(1,PacketHeader.getHopCount(packet));
+        assertEquals(sequence,packet.getLong(10));
+    }
+
+    @Test(timeout=30000l)
+    public void relaysEveryPacketInOrder() throws Exception {
+        final int count = 3;
+        final int packets = 1000;
+        final int first = nextUuid;
+        nextUuid += count;
+        final SocketChannel[] channels = new SocketChannel[count];
+        for (int i=0;i<count;i++) {
+            channels[i] = connect(first + i);
+        }
+        Thread.sleep(250l); //give the loop time to learn which client is which
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] senders = new Thread[count];
+        for (int i=0;i<count;i++) {
+            final int client = i;
+            senders[i] = new Thread(() -> {
+                ByteBuffer frame = ByteBuffer.allocate(4 + PACKET_SIZE);
+                try {
+                    for (long p=1l;p<=packets;p++) {
+                        writeFully(channels[client],buildPacket(frame,first + client,first + ((client + 1) % count),p));
+                    }
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            });
+            senders[i].start();
+        }
+        Thread[] receivers = new Thread[count];
+        for (int i=0;i<count;i++) {
+            final int client = i;
+            final int from = (client + count - 1) % count;
+            receivers[i] = new Thread(() -> {
+                try {
+                    for (long p=1l;p<=packets;p++) {
+                        expectPacket(channels[client],first + from,first + client,p);
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            });
+            receivers[i].start();
+        }
+        for (Thread thread:senders) {
+            thread.join();
+        }
+        for (Thread thread:receivers) {
+            thread.join();
+        }
+        assertNull(failure.get());
+    }
+
+    @Test(timeout=10000l)
+    public void relaysPacketsWrittenTogether() throws Exception {
+        final int sender = nextUuid++;
+        final int receiver = nextUuid++;
+        SocketChannel a = connect(sender);
+        SocketChannel b = connect(receiver);
+        Thread.sleep(250l);
+        //several packets in one write are read in the same readiness
+        ByteBuffer frame = ByteBuffer.allocate(4 + PACKET_SIZE);
+        ByteBuffer batch = ByteBuffer.allocate(frame.capacity() * 25);
+        for (long p=1l;p<=25l;p++) {
+            batch.put(buildPacket(frame,sender,receiver,p));
+        }
+        batch.flip();
+        writeFully(a,batch);
+        for (long p=1l;p<=25l;p++) {
+            expectPacket(b,sender,receiver,p);
+        }
+    }
+
+    @Test(timeout=10000l)
+    public void doesNotRelayPacketsForTheServer() throws Exception {
+        final int sender = nextUuid++;
+        final int receiver = nextUuid++;
+        SocketChannel a = connect(sender);
+        SocketChannel b = connect(receiver);
+        Thread.sleep(250l);
+        ByteBuffer frame = ByteBuffer.allocate(4 + PACKET_SIZE);
+        writeFully(a,buildPacket(frame,sender,SERVER_UUID,1l));
+        writeFully(a,buildPacket(frame,sender,receiver,2l));
+        expectPacket(b,sender,receiver,2l); //the first packet was not passed on
+    }
+
+    @Test(timeout=20000l)
+    public void reportsCongestionWhenAClientStopsReading() throws Exception {
+        final int sender = nextUuid++;
+        final int receiver = nextUuid++;
+        SocketChannel a = connect(sender);
+        SocketChannel b = connect(receiver,SOCKET_BUFFER_SIZE); //small buffers so the queue backs up quickly
+        b.setOption(StandardSocketOptions.SO_RCVBUF,SOCKET_BUFFER_SIZE);
+        Thread.sleep(250l);
+        assertFalse(ClientHandler.isCongested());
+        ByteBuffer frame = ByteBuffer.allocate(4 + PACKET_SIZE);
+        long sequence = 1l;
+        while (!ClientHandler.isCongested()) { //b never reads
+            for (int i=0;i<100;i++) {
+                writeFully(a,buildPacket(frame,sender,receiver,sequence++));
+            }
+            Thread.sleep(10l);
+        }
+    }
+}
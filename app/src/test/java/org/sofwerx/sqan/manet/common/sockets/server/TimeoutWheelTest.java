@@ -0,0 +1,63 @@
+package org.sofwerx.sqan.manet.common.sockets.server;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class TimeoutWheelTest {
+    private final static long TICK = 10l;
+
+    @Test
+    public void runsTasksOnceTheyAreDue() {
+        final long now = System.currentTimeMillis();
+        TimeoutWheel wheel = new TimeoutWheel(TICK);
+        AtomicInteger ran = new AtomicInteger();
+        wheel.schedule(ran::incrementAndGet,100l);
+        wheel.advance(now + 50l);
+        assertEquals(0,ran.get());
+        wheel.advance(now + 200l);
+        assertEquals(1,ran.get());
+        wheel.advance(now + 400l);
+        assertEquals(1,ran.get());
+    }
+
+    @Test
+    public void cancelledTasksDoNotRun() {
+        final long now = System.currentTimeMillis();
+        TimeoutWheel wheel = new TimeoutWheel(TICK);
+        AtomicInteger ran = new AtomicInteger();
+        TimeoutWheel.Timeout timeout = wheel.schedule(ran::incrementAndGet,50l);
+        wheel.schedule(ran::incrementAndGet,50l);
+        timeout.cancel();
+        wheel.advance(now + 200l);
+        assertEquals(1,ran.get());
+    }
+
+    @Test
+    public void waitsOutTimeoutsLongerThanARotation() {
+        final long now = System.currentTimeMillis();
+        TimeoutWheel wheel = new TimeoutWheel(TICK);
+        AtomicInteger ran = new AtomicInteger();
+        wheel.schedule(ran::incrementAndGet,TICK * 100l); //shares a slot with earlier ticks
+        for (long t=now;t<now + TICK * 90l;t+=TICK) {
+            wheel.advance(t);
+        }
+        assertEquals(0,ran.get());
+        wheel.advance(now + TICK * 102l);
+        assertEquals(1,ran.get());
+    }
+
+    @Test
+    public void catchesUpAfterAStall() {
+        final long now = System.currentTimeMillis();
+        TimeoutWheel wheel = new TimeoutWheel(TICK);
+        AtomicInteger ran = new AtomicInteger();
+        for (int i=1;i<=200;i++) {
+            wheel.schedule(ran::incrementAndGet,i * 5l);
+        }
+        wheel.advance(now + 10000l); //far more than a full rotation later
+        assertEquals(200,ran.get());
+    }
+}
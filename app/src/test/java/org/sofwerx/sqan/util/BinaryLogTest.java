@@ -0,0 +1,104 @@
+package org.sofwerx.sqan.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Logs through BinaryLog, then decodes the file with CommsLogDecoder
+ */
+public class BinaryLogTest {
+    private final static BinaryLog.Template SENDING = BinaryLog.template("COMMS",BinaryLog.Level.DEBUG,"BT socket #{} sending {}b to {}");
+    private final static BinaryLog.Template TEXT = BinaryLog.template("COMMS",BinaryLog.Level.WARNING,null);
+    private final static BinaryLog.Template STARTED = BinaryLog.template("SYS",BinaryLog.Level.INFO,"started");
+
+    private File log;
+    private File text;
+
+    @Before
+    public void setUp() throws IOException {
+        log = File.createTempFile("binarylog",".sqlog");
+        text = File.createTempFile("binarylog",".txt");
+    }
+
+    @After
+    public void tearDown() {
+        BinaryLog.stop();
+        BinaryLog.setLevel(BinaryLog.Level.DEBUG);
+        log.delete();
+        text.delete();
+    }
+
+    private List<String> decode() throws IOException {
+        CommsLogDecoder.decode(log,text);
+        return Files.readAllLines(text.toPath(),StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void entriesDecodeBackToText() throws IOException {
+        assertTrue(BinaryLog.start(log));
+        final long written = BinaryLog.getWritten();
+        assertTrue(BinaryLog.log(STARTED));
+        assertTrue(BinaryLog.log(SENDING,3,200,-1000001));
+        assertTrue(BinaryLog.log(TEXT,"link lost"));
+        assertTrue(BinaryLog.log(SENDING,4,64,7));
+        BinaryLog.stop();
+        assertFalse(BinaryLog.isRunning());
+        assertEquals(4l,BinaryLog.getWritten() - written);
+
+        List<String> lines = decode();
+        assertEquals(4,lines.size());
+        assertTrue(lines.get(0),lines.get(0).endsWith(" [SYS] started"));
+        assertTrue(lines.get(1),lines.get(1).endsWith(" [COMMS] BT socket #3 sending 200b to -1000001"));
+        assertTrue(lines.get(2),lines.get(2).endsWith(" [COMMS] link lost"));
+        assertTrue(lines.get(3),lines.get(3).endsWith(" [COMMS] BT socket #4 sending 64b to 7"));
+    }
+
+    @Test
+    public void everyEntryIsWrittenOrReportedAsDropped() throws IOException {
+        final int count = 1 << 16; //several times what the ring holds
+        assertTrue(BinaryLog.start(log));
+        final long written = BinaryLog.getWritten();
+        final long dropped = BinaryLog.getDropped();
+        int accepted = 0;
+        for (int i=0;i<count;i++) {
+            if (BinaryLog.log(SENDING,1,i,i))
+                accepted++;
+        }
+        BinaryLog.stop();
+        assertEquals(accepted,BinaryLog.getWritten() - written);
+        assertEquals(count - accepted,BinaryLog.getDropped() - dropped);
+
+        int entries = 0;
+        long reported = 0l;
+        for (String line:decode()) {
+            if (line.startsWith("... "))
+                reported += Long.parseLong(line.substring(4,line.indexOf(' ',4)));
+            else
+                entries++;
+        }
+        assertEquals(accepted,entries);
+        assertEquals(count - accepted,reported);
+    }
+
+    @Test
+    public void ignoresEntriesWhenStoppedOrBelowTheLevel() throws IOException {
+        assertFalse(BinaryLog.log(STARTED));
+        assertTrue(BinaryLog.start(log));
+        BinaryLog.setLevel(BinaryLog.Level.INFO);
+        assertFalse(BinaryLog.log(SENDING,1,2,3));
+        assertTrue(BinaryLog.log(STARTED));
+        BinaryLog.stop();
+        assertEquals(1,decode().size());
+    }
+}
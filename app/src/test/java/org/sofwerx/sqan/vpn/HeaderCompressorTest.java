@@ -0,0 +1,158 @@
+package org.sofwerx.sqan.vpn;
+
+import org.junit.Test;
+import org.sofwerx.sqan.manet.common.packet.PacketBufferPool;
+import org.sofwerx.sqan.util.NetUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HeaderCompressorTest {
+    private final static int ORIGIN = 11;
+    private final static int DESTINATION = 12;
+    private final static int IP_A = 0xA9FE0001; //169.254.0.1
+    private final static int IP_B = 0xA9FE0002; //169.254.0.2
+    private final static int TCP_HEADER_SIZE = 32; //20b plus NOP, NOP, timestamps
+    private final Random random = new Random(7l);
+    private int ipId = 100;
+
+    private byte[] ipv4(int protocol, int transportLength, int flagsAndOffset) {
+        byte[] packet = new byte[HeaderCompressor.IPV4_HEADER_SIZE + transportLength];
+        ByteBuffer ip = ByteBuffer.wrap(packet);
+        ip.put((byte)0x45).put((byte)0).putShort((short)packet.length).putShort((short)ipId++).putShort((short)flagsAndOffset);
+        ip.put((byte)64).put((byte)protocol).putShort((short)0).putInt(IP_A).putInt(IP_B);
+        return packet;
+    }
+
+    private byte[] udp(int srcPort, int dstPort, int payloadLength) {
+        byte[] packet = ipv4(HeaderCompressor.PROTOCOL_UDP,HeaderCompressor.UDP_HEADER_SIZE + payloadLength,0x4000);
+        ByteBuffer udp = ByteBuffer.wrap(packet,HeaderCompressor.IPV4_HEADER_SIZE,HeaderCompressor.UDP_HEADER_SIZE + payloadLength);
+        udp.putShort((short)srcPort).putShort((short)dstPort).putShort((short)(HeaderCompressor.UDP_HEADER_SIZE + payloadLength)).putShort((short)random.nextInt());
+        fill(packet,HeaderCompressor.IPV4_HEADER_SIZE + HeaderCompressor.UDP_HEADER_SIZE);
+        NetUtil.updateIpv4Checksum(packet);
+        return packet;
+    }
+
+    private byte[] tcp(int seq, int ack, int flags, int tsVal, int payloadLength) {
+        byte[] packet = ipv4(HeaderCompressor.PROTOCOL_TCP,TCP_HEADER_SIZE + payloadLength,0x4000);
+        ByteBuffer tcp = ByteBuffer.wrap(packet,HeaderCompressor.IPV4_HEADER_SIZE,TCP_HEADER_SIZE);
+        tcp.putShort((short)40123).putShort((short)8080).putInt(seq).putInt(ack);
+        tcp.put((byte)((TCP_HEADER_SIZE / 4) << 4)).put((byte)flags).putShort((short)(29200 + (seq & 0xFF)));
+        tcp.putShort((short)random.nextInt()).putShort((short)(((flags & HeaderCompressor.TCP_FLAG_URG) != 0)?5:0));
+        tcp.put((byte)1).put((byte)1).put((byte)8).put((byte)10).putInt(tsVal).putInt(tsVal - 40);
+        fill(packet,HeaderCompressor.IPV4_HEADER_SIZE + TCP_HEADER_SIZE);
+        NetUtil.updateIpv4Checksum(packet);
+        return packet;
+    }
+
+    private void fill(byte[] packet, int from) {
+        for (int i=from;i<packet.length;i++) {
+            packet[i] = (byte)random.nextInt();
+        }
+    }
+
+    private static byte[] roundTrip(HeaderCompressor compressor, HeaderDecompressor decompressor, byte[] packets, long now) {
+        byte[] unit = compressor.compress(DESTINATION,packets,packets.length,now);
+        ByteBuffer restored = decompressor.decompress(ORIGIN,DESTINATION,ByteBuffer.wrap(unit));
+        assertNotNull(restored);
+        return PacketBufferPool.toBytes(restored);
+    }
+
+    @Test
+    public void restoresAUdpFlowAndShrinksIt() {
+        HeaderCompressor compressor = new HeaderCompressor();
+        HeaderDecompressor decompressor = new HeaderDecompressor();
+        for (int i=0;i<100;i++) {
+            byte[] packet = udp(16384,16384,172);
+            assertArrayEquals("packet "+i,packet,roundTrip(compressor,decompressor,packet,i * 20l));
+        }
+        assertEquals(100l,decompressor.getPacketsRestored());
+        assertTrue(compressor.getPacketsCompressed() > compressor.getPacketsRefreshed());
+        assertTrue(compressor.getCompressionRatio() < 1f);
+    }
+
+    @Test
+    public void restoresATcpFlowWithOptions() {
+        HeaderCompressor compressor = new HeaderCompressor();
+        HeaderDecompressor decompressor = new HeaderDecompressor();
+        int seq = 1000;
+        for (int i=0;i<100;i++) {
+            final int length = (i % 10 == 0)?0:(40 + i);
+            final int flags = (i % 7 == 0)?(0x18 | HeaderCompressor.TCP_FLAG_URG):0x18;
+            byte[] packet = tcp(seq,5000,flags,10000 + i * 25,length);
+            assertArrayEquals("packet "+i,packet,roundTrip(compressor,decompressor,packet,i * 25l));
+            seq += length;
+        }
+        assertEquals(0l,decompressor.getContextFailures());
+        assertTrue(compressor.getPacketsCompressed() > 0l);
+    }
+
+    @Test
+    public void restoresBatchesOfPackets() {
+        HeaderCompressor compressor = new HeaderCompressor();
+        HeaderDecompressor decompressor = new HeaderDecompressor();
+        for (int i=0;i<20;i++) {
+            byte[] voice = udp(16384,16384,100);
+            byte[] dns = udp(32768 + i,53,32); //a new flow each time
+            byte[] chat = tcp(i * 100,5000,0x18,i,100);
+            ByteBuffer batch = ByteBuffer.allocate(voice.length + dns.length + chat.length);
+            batch.put(voice).put(dns).put(chat);
+            assertArrayEquals("batch "+i,batch.array(),roundTrip(compressor,decompressor,batch.array(),i * 20l));
+        }
+    }
+
+    @Test
+    public void passesAlongWhatItCannotCompress() {
+        HeaderCompressor compressor = new HeaderCompressor();
+        HeaderDecompressor decompressor = new HeaderDecompressor();
+        byte[] icmp = ipv4(1,40,0);
+        NetUtil.updateIpv4Checksum(icmp);
+        byte[] fragment = ipv4(HeaderCompressor.PROTOCOL_UDP,100,0x2000 | 10);
+        NetUtil.updateIpv4Checksum(fragment);
+        byte[] badChecksum = udp(1000,1000,50);
+        badChecksum[10] ^= 0x01;
+        byte[] notIp = {1,2,3,4,5};
+        for (byte[] packet:new byte[][] {icmp,fragment,badChecksum,notIp}) {
+            assertArrayEquals(packet,roundTrip(compressor,decompressor,packet,0l));
+        }
+        assertEquals(4l,compressor.getPacketsUncompressed());
+    }
+
+    @Test
+    public void resyncsAfterLosingTheContext() {
+        HeaderCompressor compressor = new HeaderCompressor();
+        HeaderDecompressor decompressor = new HeaderDecompressor();
+        ArrayList<byte[]> packets = new ArrayList<>();
+        ArrayList<byte[]> units = new ArrayList<>();
+        for (int i=0;i<200;i++) {
+            byte[] packet = udp(16384,16384,100);
+            packets.add(packet);
+            units.add(compressor.compress(DESTINATION,packet,packet.length,i * 20l));
+        }
+        int restored = 0;
+        for (int i=1;i<units.size();i++) { //the first IR never arrives
+            ByteBuffer out = decompressor.decompress(ORIGIN,DESTINATION,ByteBuffer.wrap(units.get(i)));
+            assertNotNull(out);
+            if (out.hasRemaining()) {
+                assertArrayEquals("packet "+i,packets.get(i),PacketBufferPool.toBytes(out)); //never a corrupt packet
+                restored++;
+            }
+        }
+        assertTrue(decompressor.getPacketsDropped() > 0l);
+        assertTrue(restored > units.size() - 50); //back in sync by the next refresh
+        assertEquals(units.size() - 1,restored + decompressor.getPacketsDropped());
+    }
+
+    @Test
+    public void rejectsDamagedData() {
+        HeaderDecompressor decompressor = new HeaderDecompressor();
+        assertNull(decompressor.decompress(ORIGIN,DESTINATION,ByteBuffer.wrap(new byte[] {0x7F,1,2})));
+    }
+}
@@ -0,0 +1,195 @@
+package org.sofwerx.sqan.vpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VpnPumpTest {
+    private final static int MAX_PACKET_SIZE = 2000;
+    private final static int DESTINATION_A = 0xA9FE0001; //169.254.0.1
+    private final static int DESTINATION_B = 0xA9FE0003; //169.254.0.3
+    private final static byte[] NOTHING_WAITING = new byte[0];
+
+    /**
+     * An interface that hands out queued packets (an empty one reads as nothing waiting) and
+     * stops the pump once they are gone
+     */
+    private static class QueuedTun implements VpnPump.Tun {
+        private final ArrayDeque<byte[]> packets = new ArrayDeque<>();
+        private VpnPump pump;
+
+        private QueuedTun(byte[]... packets) {
+            this.packets.addAll(Arrays.asList(packets));
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int length) {
+            if (packets.isEmpty()) {
+                pump.stop();
+                return 0;
+            }
+            byte[] packet = packets.poll();
+            System.arraycopy(packet,0,buf,offset,packet.length);
+            return packet.length;
+        }
+
+        @Override
+        public void awaitReadable(long timeout) {}
+    }
+
+    private static class Batch {
+        private final byte[] packets;
+        private final int destinationIp;
+        private final int packetCount;
+
+        private Batch(byte[] packets, int destinationIp, int packetCount) {
+            this.packets = packets;
+            this.destinationIp = destinationIp;
+            this.packetCount = packetCount;
+        }
+    }
+
+    private static ArrayList<Batch> pump(int maxBatchBytes, byte[]... packets) {
+        final ArrayList<Batch> batches = new ArrayList<>();
+        QueuedTun tun = new QueuedTun(packets);
+        VpnPump pump = new VpnPump(tun,(data, destinationIp, packetCount) -> batches.add(new Batch(data,destinationIp,packetCount)),MAX_PACKET_SIZE,maxBatchBytes);
+        tun.pump = pump;
+        pump.run();
+        return batches;
+    }
+
+    /**
+     * Builds a minimal IPV4/UDP packet filled with the seed
+     */
+    private static byte[] packet(int size, int destination, int seed) {
+        ByteBuffer packet = ByteBuffer.allocate(size);
+        packet.put((byte)0x45); //IPV4, 20b header
+        packet.put((byte)0);
+        packet.putShort((short)size);
+        packet.putInt(0);
+        packet.put((byte)64); //TTL
+        packet.put((byte)17); //UDP
+        packet.putShort((short)0);
+        packet.putInt(0xA9FE0002);
+        packet.putInt(destination);
+        while (packet.hasRemaining()) {
+            packet.put((byte)seed);
+        }
+        return packet.array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteBuffer out = ByteBuffer.allocate(Arrays.stream(parts).mapToInt(part -> part.length).sum());
+        for (byte[] part:parts) {
+            out.put(part);
+        }
+        return out.array();
+    }
+
+    @Test
+    public void batchesConsecutivePacketsToTheSameDestination() {
+        byte[] a1 = packet(100,DESTINATION_A,1);
+        byte[] a2 = packet(200,DESTINATION_A,2);
+        byte[] b1 = packet(100,DESTINATION_B,3);
+        byte[] a3 = packet(100,DESTINATION_A,4);
+        ArrayList<Batch> batches = pump(1500,a1,a2,b1,a3);
+        assertEquals(3,batches.size());
+        assertEquals(DESTINATION_A,batches.get(0).destinationIp);
+        assertEquals(2,batches.get(0).packetCount);
+        assertArrayEquals(concat(a1,a2),batches.get(0).packets);
+        assertEquals(DESTINATION_B,batches.get(1).destinationIp);
+        assertArrayEquals(b1,batches.get(1).packets);
+        assertEquals(DESTINATION_A,batches.get(2).destinationIp);
+        assertArrayEquals(a3,batches.get(2).packets);
+    }
+
+    @Test
+    public void sendsTheBatchWhenNothingElseIsWaiting() {
+        byte[] a1 = packet(100,DESTINATION_A,1);
+        byte[] a2 = packet(100,DESTINATION_A,2);
+        ArrayList<Batch> batches = pump(1500,a1,NOTHING_WAITING,a2);
+        assertEquals(2,batches.size());
+        assertArrayEquals(a1,batches.get(0).packets);
+        assertArrayEquals(a2,batches.get(1).packets);
+    }
+
+    @Test
+    public void keepsBatchesWithinTheLimit() {
+        byte[][] packets = new byte[10][];
+        for (int i=0;i<packets.length;i++) {
+            packets[i] = packet(400,DESTINATION_A,i);
+        }
+        ArrayList<Batch> batches = pump(1000,packets);
+        int count = 0;
+        for (Batch batch:batches) {
+            assertTrue(batch.packets.length <= 1000);
+            count += batch.packetCount;
+        }
+        assertEquals(packets.length,count);
+        assertArrayEquals(concat(packets[0],packets[1]),batches.get(0).packets);
+    }
+
+    @Test
+    public void sendsEachPacketOnItsOwnWhenBatchingIsOff() {
+        byte[] a1 = packet(100,DESTINATION_A,1);
+        byte[] a2 = packet(100,DESTINATION_A,2);
+        ArrayList<Batch> batches = pump(0,a1,a2);
+        assertEquals(2,batches.size());
+        assertEquals(1,batches.get(0).packetCount);
+        assertArrayEquals(a1,batches.get(0).packets);
+        assertArrayEquals(a2,batches.get(1).packets);
+    }
+
+    /**
+     * Records each write; accepts nothing while full
+     */
+    private static class RecordingChannel implements WritableByteChannel {
+        private final ArrayList<byte[]> writes = new ArrayList<>();
+        private boolean full = false;
+
+        @Override
+        public int write(ByteBuffer src) {
+            if (full)
+                return 0;
+            byte[] data = new byte[src.remaining()];
+            src.get(data);
+            writes.add(data);
+            return data.length;
+        }
+
+        @Override
+        public boolean isOpen() { return true; }
+
+        @Override
+        public void close() {}
+    }
+
+    @Test
+    public void writesEachPacketInABatchSeparately() throws IOException {
+        byte[] a1 = packet(100,DESTINATION_A,1);
+        byte[] a2 = packet(300,DESTINATION_A,2);
+        RecordingChannel tun = new RecordingChannel();
+        assertEquals(2,VpnPump.writePackets(tun,ByteBuffer.wrap(concat(a1,a2))));
+        assertEquals(2,tun.writes.size());
+        assertArrayEquals(a1,tun.writes.get(0));
+        assertArrayEquals(a2,tun.writes.get(1));
+    }
+
+    @Test(timeout=5000l)
+    public void givesUpOnAnInterfaceThatStaysFull() throws IOException {
+        RecordingChannel tun = new RecordingChannel();
+        tun.full = true;
+        final long start = System.currentTimeMillis();
+        assertEquals(0,VpnPump.writePackets(tun,ByteBuffer.wrap(packet(100,DESTINATION_A,1))));
+        assertTrue(System.currentTimeMillis() - start < 1000l);
+    }
+}
@@ -0,0 +1,169 @@
+package org.sofwerx.sqandr.sdr.fec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FecCodecTest {
+    private final static int[][] RS_CODES = {{64,16,1},{64,16,4},{96,32,4},{223,32,1}};
+    private final static int[] SIZES = {1,2,60,252,253,500,1000};
+
+    private static byte[] random(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void reedSolomonRoundTrips() {
+        Random random = new Random(1l);
+        for (int[] code:RS_CODES) {
+            ReedSolomonFecCodec encoder = new ReedSolomonFecCodec(code[0],code[1],code[2]);
+            ReedSolomonFecCodec decoder = new ReedSolomonFecCodec(code[0],code[1],code[2]);
+            for (int size:SIZES) {
+                byte[] data = random(random,size);
+                byte[] encoded = encoder.encode(data);
+                assertEquals(encoder.getEncodedSize(size),encoded.length);
+                assertArrayEquals("RS"+Arrays.toString(code)+" "+size+"b",data,decoder.decode(encoded));
+            }
+            assertEquals(0l,decoder.getUncorrectable());
+        }
+    }
+
+    @Test
+    public void gapRoundTrips() {
+        Random random = new Random(2l);
+        for (int size:SIZES) {
+            FecCodec encoder = new GapFecCodec();
+            FecCodec decoder = new GapFecCodec();
+            if (size > encoder.getMaxDataSize(Integer.MAX_VALUE))
+                continue; //more than the gap strategy formats at once
+            byte[] data = random(random,size);
+            byte[] encoded = encoder.encode(data);
+            assertEquals(encoder.getEncodedSize(size),encoded.length);
+            byte[] decoded = decoder.decode(encoded);
+            assertNotNull(decoded);
+            assertArrayEquals(size+"b",data,Arrays.copyOf(decoded,size)); //the last chunk is padded
+            encoder.close();
+            decoder.close();
+        }
+    }
+
+    @Test
+    public void maxDataSizeFits() {
+        FecCodec[] codecs = {new GapFecCodec(),new ReedSolomonFecCodec(64,16,4),new ReedSolomonFecCodec(223,32,1)};
+        for (FecCodec codec:codecs) {
+            for (int encoded:new int[] {0,100,322,863,1024}) {
+                final int max = codec.getMaxDataSize(encoded);
+                assertTrue(codec.getEncodedSize(max) <= encoded);
+                assertTrue(codec.getEncodedSize(max + 1) > encoded);
+            }
+        }
+    }
+
+    @Test
+    public void reedSolomonRepairsRandomErrors() {
+        Random random = new Random(3l);
+        ReedSolomonFecCodec encoder = new ReedSolomonFecCodec(64,16,4);
+        ReedSolomonFecCodec decoder = new ReedSolomonFecCodec(64,16,4);
+        for (int i=0;i<200;i++) {
+            byte[] data = random(random,252);
+            byte[] link = encoder.encode(data);
+            for (int b=2;b<link.length;b++) { //leave the sync marker alone
+                if (random.nextInt(200) == 0)
+                    link[b] ^= (byte)(1 + random.nextInt(255));
+            }
+            assertArrayEquals(data,decoder.decode(link));
+        }
+        assertTrue(decoder.getCorrected() > 0l);
+    }
+
+    @Test
+    public void reedSolomonRepairsInversionBursts() {
+        Random random = new Random(4l);
+        ReedSolomonFecCodec encoder = new ReedSolomonFecCodec(64,16,4);
+        ReedSolomonFecCodec decoder = new ReedSolomonFecCodec(64,16,4);
+        for (int i=0;i<200;i++) {
+            byte[] data = random(random,252);
+            byte[] link = encoder.encode(data);
+            for (int b=2+random.nextInt(100);b<link.length;b+=120) {
+                for (int j=b;(j<b+8) && (j<link.length);j++) {
+                    link[j] = (byte)~link[j];
+                }
+            }
+            assertArrayEquals(data,decoder.decode(link));
+        }
+    }
+
+    @Test
+    public void reedSolomonDecodesAnInvertedStream() {
+        Random random = new Random(5l);
+        ReedSolomonFecCodec encoder = new ReedSolomonFecCodec(64,16,4);
+        ReedSolomonFecCodec decoder = new ReedSolomonFecCodec(64,16,4);
+        byte[] data = random(random,500);
+        byte[] link = encoder.encode(data);
+        for (int i=0;i<link.length;i++) {
+            link[i] = (byte)~link[i];
+        }
+        assertArrayEquals(data,decoder.decode(link));
+    }
+
+    @Test
+    public void reedSolomonDropsCodewordsItCannotRepair() {
+        Random random = new Random(6l);
+        ReedSolomonFecCodec encoder = new ReedSolomonFecCodec(64,16,4);
+        ReedSolomonFecCodec decoder = new ReedSolomonFecCodec(64,16,4);
+        byte[] data = random(random,252);
+        byte[] link = encoder.encode(data);
+        for (int i=0;i<20;i++) {
+            link[2 + 1 + i*4] ^= 0x55; //20 errors in the second codeword; 16 parity bytes repair 8
+        }
+        byte[] decoded = decoder.decode(link);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(data,0,62); //the first codeword, less the group's length
+        expected.write(data,126,252-126); //the third and fourth
+        assertArrayEquals(expected.toByteArray(),decoded);
+        assertEquals(1l,decoder.getUncorrectable());
+    }
+
+    @Test
+    public void reedSolomonFindsTheStreamAfterALostOrExtraByte() {
+        Random random = new Random(7l);
+        ReedSolomonFecCodec encoder = new ReedSolomonFecCodec(64,16,4);
+        for (int change=-1;change<=1;change+=2) {
+            ReedSolomonFecCodec decoder = new ReedSolomonFecCodec(64,16,4);
+            byte[][] sent = new byte[10][];
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            for (int i=0;i<sent.length;i++) {
+                sent[i] = random(random,200);
+                byte[] link = encoder.encode(sent[i]);
+                if (i == 3) { //lose or add a byte in the middle of the fourth write
+                    byte[] changed = new byte[link.length + change];
+                    final int at = link.length / 2;
+                    System.arraycopy(link,0,changed,0,at);
+                    if (change > 0)
+                        changed[at] = (byte)random.nextInt();
+                    System.arraycopy(link,at + ((change < 0)?1:0),changed,at + ((change > 0)?1:0),link.length - at - ((change < 0)?1:0));
+                    link = changed;
+                }
+                byte[] decoded = decoder.decode(link);
+                if (decoded != null)
+                    received.write(decoded,0,decoded.length);
+            }
+            String stream = new String(received.toByteArray(),StandardCharsets.ISO_8859_1);
+            for (int i=0;i<sent.length;i++) {
+                if (i == 3)
+                    continue;
+                assertTrue("write "+i+" after a "+change+"b change",stream.contains(new String(sent[i],StandardCharsets.ISO_8859_1)));
+            }
+        }
+    }
+}
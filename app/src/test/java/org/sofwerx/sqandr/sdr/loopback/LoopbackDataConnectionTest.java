@@ -0,0 +1,150 @@
+package org.sofwerx.sqandr.sdr.loopback;
+
+import org.junit.Test;
+import org.sofwerx.sqan.rf.SignalModulator;
+import org.sofwerx.sqandr.sdr.DataConnectionListener;
+import org.sofwerx.sqandr.sdr.fec.FecMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pushes packets through the whole SDR data path in software (encrypt, segment, FEC, modulate,
+ * SignalProcessor, segment parsing, reassembly, decrypt) over a perfect channel, where every
+ * packet should arrive intact
+ */
+public class LoopbackDataConnectionTest {
+    private final static int PACKETS = 100; //each packet can use two packet IDs, so this stays clear of the IDs the reassembly table remembers as recently completed
+    private final static int MIN_PACKET_SIZE = 40;
+    private final static int MAX_PACKET_SIZE = 400; //larger packets are segmented
+    private final static long IDLE_WAIT = 1000l; //ms without a packet arriving before the rest are counted as lost
+
+    /**
+     * Builds random packets, each starting with its index
+     */
+    private static List<byte[]> buildPackets(long seed) {
+        Random random = new Random(seed);
+        ArrayList<byte[]> packets = new ArrayList<>(PACKETS);
+        for (int i=0;i<PACKETS;i++) {
+            byte[] packet = new byte[MIN_PACKET_SIZE + random.nextInt(MAX_PACKET_SIZE - MIN_PACKET_SIZE + 1)];
+            random.nextBytes(packet);
+            packet[0] = (byte)(i >> 8);
+            packet[1] = (byte)i;
+            packets.add(packet);
+        }
+        return packets;
+    }
+
+    private static Receiver send(FecMode mode, int dataBytes, int parityBytes, int interleave, boolean inverted, boolean leanMode) throws InterruptedException {
+        final List<byte[]> packets = buildPackets(23l);
+        final Receiver receiver = new Receiver(packets);
+        final SignalModulator modulator = new SignalModulator();
+        modulator.setInverted(inverted);
+        LoopbackDataConnection connection = new LoopbackDataConnection(modulator,null,leanMode);
+        connection.setFec(mode,dataBytes,parityBytes,interleave);
+        connection.setListener(receiver);
+        for (byte[] packet:packets) {
+            connection.burstPacket(packet);
+        }
+        receiver.await(IDLE_WAIT);
+        connection.close();
+        assertTrue(connection.getBuffersSent() >= PACKETS);
+        return receiver;
+    }
+
+    private static void assertAllIntact(String name, Receiver receiver) {
+        assertEquals(name,PACKETS,receiver.received);
+        assertEquals(name,0,receiver.corrupt);
+        assertEquals(name,0,receiver.duplicates);
+    }
+
+    @Test
+    public void cleanChannelDeliversEveryPacket() throws InterruptedException {
+        assertAllIntact("no FEC",send(FecMode.NONE,0,0,0,false,false));
+        assertAllIntact("GAP",send(FecMode.GAP,0,0,0,false,false));
+        assertAllIntact("Reed-Solomon",send(FecMode.REED_SOLOMON,64,16,4,false,false));
+    }
+
+    @Test
+    public void invertedSignalDeliversEveryPacket() throws InterruptedException {
+        assertAllIntact("GAP, inverted",send(FecMode.GAP,0,0,0,true,false));
+    }
+
+    @Test
+    public void leanModeDeliversEveryPacket() throws InterruptedException {
+        assertAllIntact("lean",send(FecMode.NONE,0,0,0,false,true));
+        assertAllIntact("lean, inverted",send(FecMode.NONE,0,0,0,true,true));
+    }
+
+    /**
+     * Checks each packet received against what was sent
+     */
+    private static class Receiver implements DataConnectionListener {
+        private final List<byte[]> sent;
+        private final boolean[] intact;
+        private int received = 0;
+        private int corrupt = 0;
+        private int duplicates = 0;
+        private long lastReceived = Long.MIN_VALUE;
+
+        private Receiver(List<byte[]> sent) {
+            this.sent = sent;
+            this.intact = new boolean[sent.size()];
+        }
+
+        @Override
+        public synchronized void onReceiveDataLinkData(byte[] data) {
+            lastReceived = System.nanoTime();
+            final int index = ((data == null) || (data.length < 2)) ? -1 : (((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+            if ((index < 0) || (index >= sent.size()) || !Arrays.equals(data,sent.get(index)))
+                corrupt++;
+            else if (intact[index])
+                duplicates++;
+            else {
+                intact[index] = true;
+                received++;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Waits until every packet arrives or no packet has arrived for a while
+         * @param idle ms
+         */
+        private synchronized void await(long idle) throws InterruptedException {
+            final long sentAt = System.nanoTime();
+            while (received < sent.size()) {
+                final long remaining = idle - (System.nanoTime() - Math.max(sentAt,lastReceived)) / 1000000l;
+                if (remaining <= 0l)
+                    break;
+                wait(remaining);
+            }
+        }
+
+        @Override
+        public void onConnect() {}
+
+        @Override
+        public void onDisconnect() {}
+
+        @Override
+        public void onReceiveCommandData(byte[] data) {}
+
+        @Override
+        public void onConnectionError(String message) {}
+
+        @Override
+        public void onPacketDropped() {}
+
+        @Override
+        public void onOperational() {}
+
+        @Override
+        public void onHighNoise(float snr) {}
+    }
+}
@@ -0,0 +1,107 @@
+package org.sofwerx.sqandr.sdr.sar;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds segments from Segmenter.wrapIntoSegments() to a ReassemblyTable the way
+ * AbstractDataConnection does
+ */
+public class ReassemblyTableTest {
+    private static byte[] randomPacket(Random random, int size) {
+        byte[] packet = new byte[size];
+        random.nextBytes(packet);
+        return packet;
+    }
+
+    /**
+     * Adds each segment, checking that only the last one completes the packet
+     * @return the size of the reassembled packet
+     */
+    private static int addAll(ReassemblyTable table, ArrayList<Segment> segments) {
+        for (int i=0;i<segments.size()-1;i++) {
+            assertEquals(-1,table.add(segments.get(i)));
+        }
+        return table.add(segments.get(segments.size()-1));
+    }
+
+    private static byte[] output(ReassemblyTable table, int size) {
+        return Arrays.copyOf(table.getOutput(),size);
+    }
+
+    @Test
+    public void reassemblesSegmentsReceivedInAnyOrder() {
+        Random random = new Random(7l);
+        ReassemblyTable table = new ReassemblyTable();
+        for (int size:new int[] {Segment.MAX_SEGMENTED_PAYLOAD + 1,1000,Segmenter.MAX_POSSIBLE_LENGTH}) {
+            byte[] packet = randomPacket(random,size);
+            ArrayList<Segment> segments = Segmenter.wrapIntoSegments(packet);
+            Collections.shuffle(segments,random);
+            assertEquals(size,addAll(table,segments));
+            assertArrayEquals(packet,output(table,size));
+            assertTrue(table.isEmpty());
+        }
+    }
+
+    @Test
+    public void keepsInterleavedPacketsApart() {
+        Random random = new Random(11l);
+        ReassemblyTable table = new ReassemblyTable();
+        byte[] first = randomPacket(random,600);
+        byte[] second = randomPacket(random,400);
+        ArrayList<Segment> firstSegments = Segmenter.wrapIntoSegments(first);
+        ArrayList<Segment> secondSegments = Segmenter.wrapIntoSegments(second);
+        for (int i=0;i<secondSegments.size()-1;i++) {
+            assertEquals(-1,table.add(firstSegments.get(i)));
+            assertEquals(-1,table.add(secondSegments.get(i)));
+        }
+        assertFalse(table.isEmpty());
+        assertEquals(second.length,table.add(secondSegments.get(secondSegments.size()-1)));
+        assertArrayEquals(second,output(table,second.length));
+        for (int i=secondSegments.size()-1;i<firstSegments.size()-1;i++) {
+            assertEquals(-1,table.add(firstSegments.get(i)));
+        }
+        assertEquals(first.length,table.add(firstSegments.get(firstSegments.size()-1)));
+        assertArrayEquals(first,output(table,first.length));
+        assertTrue(table.isEmpty());
+    }
+
+    @Test
+    public void ignoresDuplicatesAndRepeatsOfACompletedPacket() {
+        Random random = new Random(13l);
+        ReassemblyTable table = new ReassemblyTable();
+        byte[] packet = randomPacket(random,500);
+        ArrayList<Segment> segments = Segmenter.wrapIntoSegments(packet);
+        assertEquals(-1,table.add(segments.get(0)));
+        assertEquals(-1,table.add(segments.get(0)));
+        for (int i=1;i<segments.size()-1;i++) {
+            assertEquals(-1,table.add(segments.get(i)));
+        }
+        assertEquals(packet.length,table.add(segments.get(segments.size()-1)));
+
+        //the sender repeats messages, so the same segments arriving again should not deliver the packet again
+        assertEquals(-1,addAll(table,segments));
+        assertTrue(table.isEmpty());
+    }
+
+    @Test
+    public void ignoresSegmentsThatAreNotPartOfALargerPacket() {
+        ReassemblyTable table = new ReassemblyTable();
+        Segment standAlone = Segmenter.wrap(new byte[] {1,2,3});
+        standAlone.setStandAlone();
+        assertEquals(-1,table.add(standAlone));
+        assertEquals(-1,table.add(new Segment()));
+        assertEquals(-1,table.add(null));
+        assertTrue(table.isEmpty());
+        assertEquals(0,table.dropStale());
+    }
+}
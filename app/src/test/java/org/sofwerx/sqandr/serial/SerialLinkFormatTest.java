@@ -0,0 +1,190 @@
+package org.sofwerx.sqandr.serial;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips bursts through the escaped and framed serial link formats for random data (e.g.
+ * encrypted or FEC encoded), data that is mostly small values (e.g. packet headers), the worst
+ * case for each format and text
+ */
+public class SerialLinkFormatTest {
+    private final static int BURST_SIZE = 252; //SerialConnection's max bytes per send
+    private final static int BURSTS = 256;
+    private final static String[] CONTENTS = {"random","small values","escaped worst","framed worst","text"};
+
+    private static byte[][] getBursts(String content) {
+        Random random = new Random(BURST_SIZE);
+        byte[][] bursts = new byte[BURSTS][];
+        for (int b=0;b<bursts.length;b++) {
+            byte[] burst = new byte[1 + random.nextInt(BURST_SIZE)];
+            for (int i=0;i<burst.length;i++) {
+                switch (content) {
+                    case "random":
+                        burst[i] = (byte)random.nextInt(256);
+                        break;
+
+                    case "small values":
+                        burst[i] = (byte)((random.nextInt(4) == 0) ? random.nextInt(256) : random.nextInt(16));
+                        break;
+
+                    case "escaped worst":
+                        burst[i] = (byte)random.nextInt(32);
+                        break;
+
+                    case "framed worst":
+                        burst[i] = (byte)(((i % 7) == 6) ? random.nextInt(32) : (65 + random.nextInt(26)));
+                        break;
+
+                    default:
+                        burst[i] = (byte)(((i % 8) == 7) ? ' ' : ('a' + random.nextInt(26)));
+                        break;
+                }
+            }
+            bursts[b] = burst;
+        }
+        return bursts;
+    }
+
+    /**
+     * Checks what goes over the wire: nothing forbidden and a single new line at the end
+     */
+    private static void assertSendable(ByteBuffer buf) {
+        for (int i=0;i<buf.position()-1;i++) {
+            final int b = buf.get(i) & 0xFF;
+            assertTrue("byte "+b+" at "+i,(b >= 32) && (b != 127));
+        }
+        assertEquals('\n',buf.get(buf.position()-1));
+    }
+
+    @Test
+    public void escapedBurstsRoundTrip() {
+        ByteBuffer buf = ByteBuffer.allocate(SerialLinkFormat.getMaxEscapedSize(BURST_SIZE,0));
+        for (String content:CONTENTS) {
+            for (byte[] burst:getBursts(content)) {
+                buf.clear();
+                final int written = SerialLinkFormat.escape(null,burst,buf);
+                assertEquals(buf.position(),written);
+                assertTrue(buf.position() <= SerialLinkFormat.getMaxEscapedSize(burst.length,0));
+                byte[] escaped = new byte[buf.position() - 1];
+                System.arraycopy(buf.array(),0,escaped,0,escaped.length);
+                assertArrayEquals(content,burst,SerialLinkFormat.unescape(escaped));
+            }
+        }
+    }
+
+    @Test
+    public void framedBurstsRoundTripWithinTheirBound() {
+        ByteBuffer buf = ByteBuffer.allocate(SerialLinkFormat.getMaxEncodedSize(BURST_SIZE,0));
+        for (String content:CONTENTS) {
+            for (byte[] burst:getBursts(content)) {
+                buf.clear();
+                final int written = SerialLinkFormat.encode(null,burst,buf);
+                assertEquals(buf.position(),written);
+                assertTrue(content,buf.position() <= SerialLinkFormat.getMaxEncodedSize(burst.length,0));
+                assertSendable(buf);
+                assertArrayEquals(content,burst,SerialLinkFormat.decode(buf.array(),0,buf.position() - 1));
+            }
+        }
+    }
+
+    @Test
+    public void framingCostsLessThanEscaping() {
+        ByteBuffer buf = ByteBuffer.allocate(SerialLinkFormat.getMaxEscapedSize(BURST_SIZE,0));
+        for (String content:new String[] {"random","small values","escaped worst"}) {
+            long escaped = 0l;
+            long framed = 0l;
+            for (byte[] burst:getBursts(content)) {
+                buf.clear();
+                escaped += SerialLinkFormat.escape(null,burst,buf);
+                buf.clear();
+                framed += SerialLinkFormat.encode(null,burst,buf);
+            }
+            assertTrue(content+": "+framed+" framed vs "+escaped+" escaped",framed < escaped);
+        }
+    }
+
+    @Test
+    public void headerIsEncodedAheadOfTheData() {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        SerialLinkFormat.encode(new byte[] {1,2},new byte[] {3,'a',127},buf);
+        assertArrayEquals(new byte[] {1,2,3,'a',127},SerialLinkFormat.decode(buf.array(),0,buf.position() - 1));
+        assertEquals(-1,SerialLinkFormat.encode(null,new byte[100],ByteBuffer.allocate(10)));
+    }
+
+    @Test
+    public void rejectsBurstsThatAreNotFramed() {
+        assertNull(SerialLinkFormat.decode(new byte[] {'a','b'},0,2)); //doesn't end with the phantom 0
+        assertNull(SerialLinkFormat.decode(new byte[] {5},0,1)); //forbidden
+        assertNull(SerialLinkFormat.decode(new byte[0],0,0));
+    }
+
+    @Test
+    public void deframerRebuildsBurstsSplitAcrossReads() {
+        ByteBuffer buf = ByteBuffer.allocate(SerialLinkFormat.getMaxEncodedSize(BURST_SIZE,0) * BURSTS);
+        byte[][] bursts = getBursts("random");
+        for (byte[] burst:bursts) {
+            SerialLinkFormat.encode(null,burst,buf);
+        }
+        ArrayList<byte[]> received = new ArrayList<>();
+        SerialLinkFormat.Deframer deframer = new SerialLinkFormat.Deframer(SerialLinkFormat.getMaxEncodedSize(BURST_SIZE,0));
+        Random random = new Random(1l);
+        int offset = 0;
+        while (offset < buf.position()) {
+            byte[] read = new byte[Math.min(1 + random.nextInt(300),buf.position() - offset)];
+            System.arraycopy(buf.array(),offset,read,0,read.length);
+            offset += read.length;
+            deframer.add(read,received::add);
+        }
+        assertEquals(bursts.length,received.size());
+        for (int i=0;i<bursts.length;i++) {
+            assertArrayEquals(bursts[i],received.get(i));
+        }
+        assertEquals(0,deframer.getInvalid());
+    }
+
+    @Test
+    public void deframerDiscardsBytesWrittenWithoutFraming() {
+        final byte[] heartbeat = {1,2,3,4,0}; //as an older SqANDR writes it between bursts
+        final byte[] data = {3,'a',127,0,'z'};
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        SerialLinkFormat.encode(null,data,buf);
+        byte[] burst = new byte[buf.position()];
+        System.arraycopy(buf.array(),0,burst,0,burst.length);
+        byte[] read = new byte[heartbeat.length + burst.length];
+        System.arraycopy(burst,0,read,0,3);
+        System.arraycopy(heartbeat,0,read,3,heartbeat.length);
+        System.arraycopy(burst,3,read,3 + heartbeat.length,burst.length - 3);
+
+        ArrayList<byte[]> received = new ArrayList<>();
+        SerialLinkFormat.Deframer deframer = new SerialLinkFormat.Deframer(64);
+        deframer.add(heartbeat,received::add);
+        deframer.add(read,received::add);
+        assertEquals(1,received.size());
+        assertArrayEquals(data,received.get(0));
+        assertEquals(heartbeat.length * 2,deframer.getDiscarded());
+        assertEquals(0,deframer.getInvalid());
+    }
+
+    @Test
+    public void framedHeartbeatsDecodeAsSent() {
+        final byte[] notification = {1,2,3,4,(byte)200};
+        ByteBuffer buf = ByteBuffer.allocate(32);
+        SerialLinkFormat.encode(null,notification,buf);
+        assertSendable(buf);
+        ArrayList<byte[]> received = new ArrayList<>();
+        SerialLinkFormat.Deframer deframer = new SerialLinkFormat.Deframer(32);
+        byte[] read = new byte[buf.position()];
+        System.arraycopy(buf.array(),0,read,0,read.length);
+        deframer.add(read,received::add);
+        assertArrayEquals(notification,received.get(0));
+    }
+}
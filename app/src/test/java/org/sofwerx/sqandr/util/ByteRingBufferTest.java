@@ -0,0 +1,122 @@
+package org.sofwerx.sqandr.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ByteRingBufferTest {
+    private final static long TOTAL_BYTES = 1l << 22;
+
+    /**
+     * Sends a counting sequence from another thread, waiting for room rather than dropping data
+     */
+    private static Thread startProducer(final ByteRingBuffer ring, final int chunkSize) {
+        Thread producer = new Thread("RingTestProducer") {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[chunkSize];
+                long sent = 0l;
+                while (sent < TOTAL_BYTES) {
+                    final int length = (int)Math.min(chunkSize,TOTAL_BYTES - sent);
+                    for (int i=0;i<length;i++) {
+                        chunk[i] = (byte)(sent + i);
+                    }
+                    while (ring.getCapacity() - ring.getBacklog() < length) {
+                        Thread.yield();
+                    }
+                    ring.put(chunk,0,length);
+                    sent += length;
+                }
+            }
+        };
+        producer.start();
+        return producer;
+    }
+
+    @Test(timeout=30000l)
+    public void chunksArriveIntactAcrossThreads() throws Exception {
+        for (int[] sizes:new int[][] {{1 << 16,256,256},{1 << 20,16384,512},{1 << 16,4096,65536}}) {
+            ByteRingBuffer ring = new ByteRingBuffer(sizes[0]);
+            Thread producer = startProducer(ring,sizes[1]);
+            byte[] out = new byte[sizes[2]];
+            long received = 0l;
+            while (received < TOTAL_BYTES) {
+                final int count = ring.get(out,0,(int)Math.min(out.length,TOTAL_BYTES - received));
+                for (int i=0;i<count;i++) {
+                    if (out[i] != (byte)(received + i))
+                        fail("Byte "+(received + i)+" is wrong");
+                }
+                received += count;
+            }
+            producer.join();
+            assertEquals(0l,ring.getDroppedBytes());
+            assertEquals(TOTAL_BYTES,ring.getBytesWritten());
+        }
+    }
+
+    @Test(timeout=30000l)
+    public void bytesArriveIntactAcrossThreads() throws Exception {
+        ByteRingBuffer ring = new ByteRingBuffer(1 << 16);
+        Thread producer = startProducer(ring,256);
+        for (long received=0l;received<TOTAL_BYTES;received++) {
+            if ((byte)ring.read() != (byte)received)
+                fail("Byte "+received+" is wrong");
+        }
+        producer.join();
+        assertEquals(0l,ring.getDroppedBytes());
+    }
+
+    @Test
+    public void dropsWhatDoesNotFit() throws IOException {
+        ByteRingBuffer ring = new ByteRingBuffer(16);
+        assertFalse(ring.put(new byte[8]));
+        assertTrue(ring.put(new byte[12]));
+        assertEquals(4l,ring.getDroppedBytes());
+        assertEquals(16,ring.available());
+        assertTrue(ring.isOverflowing());
+        byte[] out = new byte[32];
+        assertEquals(16,ring.get(out,0,out.length));
+        assertFalse(ring.isOverflowing());
+    }
+
+    @Test
+    public void markHoldsDataForReset() throws IOException {
+        ByteRingBuffer ring = new ByteRingBuffer(8);
+        ring.put(new byte[] {1,2,3,4,5,6,7,8});
+        assertEquals(1,ring.read());
+        ring.mark(4);
+        assertEquals(2,ring.read());
+        assertEquals(3,ring.read());
+        assertTrue(ring.put(new byte[] {9,9})); //only the byte before the mark was released
+        ring.reset();
+        assertEquals(2,ring.read());
+        assertEquals(1l,ring.getDroppedBytes());
+    }
+
+    @Test(timeout=10000l)
+    public void closeWakesAWaitingReader() throws Exception {
+        final ByteRingBuffer ring = new ByteRingBuffer(8);
+        final AtomicReference<Exception> thrown = new AtomicReference<>();
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ring.read();
+                } catch (IOException e) {
+                    thrown.set(e);
+                }
+            }
+        };
+        consumer.start();
+        Thread.sleep(100l);
+        ring.close();
+        consumer.join();
+        assertTrue(thrown.get() instanceof IOException);
+    }
+}
@@ -0,0 +1,65 @@
+package org.sofwerx.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.sofwerx.sqandr.util.ByteRingBuffer;
+
+import java.io.IOException;
+
+/**
+ * Moves data through the ByteRingBuffer that carries SDR data from the thread reading USB to the
+ * thread demodulating it (this replaced WriteableInputStream), with one thread writing and one
+ * reading at the same time. The reader either copies out chunks (stream) or reads a byte at a time
+ * as the segment parser in AbstractDataConnection does (bytes).
+ */
+@State(Scope.Group)
+public class ByteRingBufferBenchmark {
+    @Param({"64","4096"})
+    public int chunkSize;
+
+    private ByteRingBuffer ring;
+    private byte[] chunk;
+    private byte[] in;
+
+    @Setup
+    public void setup() {
+        ring = new ByteRingBuffer(1024 * 256);
+        chunk = new byte[chunkSize];
+        in = new byte[chunkSize];
+    }
+
+    @Benchmark
+    @Group("stream")
+    public boolean put() {
+        if (ring.getCapacity() - ring.getBacklog() < chunkSize)
+            return false; //wait for room rather than dropping data
+        return ring.put(chunk,0,chunkSize);
+    }
+
+    @Benchmark
+    @Group("stream")
+    public int get() throws IOException {
+        if (ring.available() < 1)
+            return 0; //don't park the reader; JMH needs it to keep iterating
+        return ring.get(in,0,chunkSize);
+    }
+
+    @Benchmark
+    @Group("bytes")
+    public boolean putForBytes() {
+        return put();
+    }
+
+    @Benchmark
+    @Group("bytes")
+    public int read() throws IOException {
+        if (ring.available() < 1)
+            return -1;
+        return ring.read();
+    }
+}
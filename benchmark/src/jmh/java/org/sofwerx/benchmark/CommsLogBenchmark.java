@@ -0,0 +1,75 @@
+package org.sofwerx.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sofwerx.sqan.util.BinaryLog;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What logging a "sending" message costs the calling thread: the old CommsLog path (build the
+ * message String and write it through a shared BufferedWriter) against BinaryLog (drop the numbers
+ * into the ring and let the drainer write them). Run with -t to see contention between threads.
+ * That what BinaryLog takes in comes back out of the file is checked by BinaryLogTest.
+ */
+@State(Scope.Benchmark)
+public class CommsLogBenchmark {
+    private final static BinaryLog.Template TEMPLATE = BinaryLog.template("COMMS",BinaryLog.Level.DEBUG,"BT socket #{} sending {}b to {}");
+
+    private final AtomicInteger threads = new AtomicInteger(0);
+    private File textFile;
+    private File binaryFile;
+    private BufferedWriter writer;
+
+    @State(Scope.Thread)
+    public static class Caller {
+        private int thread;
+        private int i;
+
+        @Setup
+        public void setup(CommsLogBenchmark benchmark) {
+            thread = benchmark.threads.getAndIncrement();
+            i = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        textFile = File.createTempFile("commslog",".txt");
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(textFile)));
+        binaryFile = File.createTempFile("commslog",".sqlog");
+        BinaryLog.start(binaryFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BinaryLog.stop();
+        writer.close();
+        textFile.delete();
+        binaryFile.delete();
+    }
+
+    @Benchmark
+    public void stringAndWriter(Caller caller) throws IOException {
+        final int i = caller.i++;
+        synchronized (writer) {
+            writer.append("BT socket #"+caller.thread+" sending "+(i&0x3FF)+"b to "+(1000000+i));
+            writer.newLine();
+        }
+    }
+
+    @Benchmark
+    public boolean binaryLog(Caller caller) {
+        final int i = caller.i++;
+        return BinaryLog.log(TEMPLATE,caller.thread,i&0x3FF,1000000+i);
+    }
+}
@@ -0,0 +1,38 @@
+package org.sofwerx.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sofwerx.sqandr.util.ContinuityGapSAR;
+
+import java.util.Random;
+
+/**
+ * Formats a burst to survive continuity gaps and parses it back
+ */
+@State(Scope.Thread)
+public class ContinuityGapSARBenchmark {
+    private final static int BURST_SIZE = 252; //SerialConnection's max bytes per send
+
+    private final ContinuityGapSAR gap = new ContinuityGapSAR();
+    private byte[] data;
+    private byte[] formatted;
+
+    @Setup
+    public void setup() {
+        data = new byte[BURST_SIZE];
+        new Random(BURST_SIZE).nextBytes(data);
+        formatted = ContinuityGapSAR.formatForOutput(data);
+    }
+
+    @Benchmark
+    public byte[] formatForOutput() {
+        return ContinuityGapSAR.formatForOutput(data);
+    }
+
+    @Benchmark
+    public byte[] parse() {
+        return gap.parse(formatted);
+    }
+}
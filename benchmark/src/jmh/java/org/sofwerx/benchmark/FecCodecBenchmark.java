@@ -0,0 +1,85 @@
+package org.sofwerx.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sofwerx.sqandr.sdr.fec.FecCodec;
+import org.sofwerx.sqandr.sdr.fec.FecMode;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Encodes one SDR write with each FEC strategy and decodes it after the link has corrupted it.
+ * The decoder is kept between calls as it is on the receiving side. How much each strategy repairs
+ * is checked by FecCodecTest and reported against overhead by FecCodecReport; this measures what
+ * the repair costs.
+ */
+@State(Scope.Thread)
+public class FecCodecBenchmark {
+    private final static int WRITE_SIZE = 252; //SerialConnection's max bytes per burst
+    private final static Pattern RS = Pattern.compile("RS\\((\\d+)\\+(\\d+)\\)x(\\d+)");
+
+    @Param({"GAP","RS(64+16)x1","RS(64+16)x4","RS(96+32)x4","RS(223+32)x1"})
+    public String codec;
+
+    /**
+     * clean == no errors; random == 0.5% of bytes wrong; inversion == 12 inverted bytes every 120
+     */
+    @Param({"clean","random","inversion"})
+    public String channel;
+
+    private FecCodec encoder;
+    private FecCodec decoder;
+    private byte[] data;
+    private byte[] link;
+
+    @Setup
+    public void setup() {
+        encoder = build(codec);
+        decoder = build(codec);
+        Random random = new Random(WRITE_SIZE);
+        data = new byte[WRITE_SIZE];
+        random.nextBytes(data);
+        link = encoder.encode(data);
+        if ("random".equals(channel)) {
+            for (int i=0;i<link.length;i++) {
+                if (random.nextInt(200) == 0)
+                    link[i] ^= (byte)(1 + random.nextInt(255));
+            }
+        } else if ("inversion".equals(channel)) {
+            for (int i=random.nextInt(120);i<link.length;i+=120) {
+                for (int j=i;(j<i+12) && (j<link.length);j++) {
+                    link[j] = (byte)~link[j];
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoder.close();
+        decoder.close();
+    }
+
+    private static FecCodec build(String codec) {
+        Matcher matcher = RS.matcher(codec);
+        if (matcher.matches())
+            return FecCodec.build(FecMode.REED_SOLOMON,Integer.parseInt(matcher.group(1)),Integer.parseInt(matcher.group(2)),Integer.parseInt(matcher.group(3)));
+        return FecCodec.build(FecMode.valueOf(codec),0,0,0);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return encoder.encode(data);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return decoder.decode(link);
+    }
+}
@@ -0,0 +1,217 @@
+package org.sofwerx.benchmark;
+
+import org.sofwerx.sqandr.sdr.fec.FecCodec;
+import org.sofwerx.sqandr.sdr.fec.FecMode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares FEC strategies by passing packets through a simulated (or captured) noisy link and
+ * reporting how much data is still wrong after decoding versus how many extra bytes were sent, so
+ * Reed-Solomon can be weighed against the gap strategy (see FecCodecBenchmark for what each costs
+ * to run)
+ *
+ *   ./gradlew :benchmark:report -Preport=FecCodecReport [-Pargs="packets seed"]
+ */
+public class FecCodecReport {
+    private final static int MIN_PACKET_SIZE = 32;
+    private final static int MAX_PACKET_SIZE = 220;
+    private final static int TRAILING_IDLE_BYTES = 64; //idle link after each packet so decoders are not left waiting on more data
+    private final static int DEFAULT_PACKETS = 2000;
+    private final static long DEFAULT_SEED = 31l;
+
+    /**
+     * @param args number of packets and random seed (defaults to DEFAULT_PACKETS and DEFAULT_SEED)
+     */
+    public static void main(String[] args) {
+        final int packets = (args.length > 0)?Integer.parseInt(args[0]):DEFAULT_PACKETS;
+        final long seed = (args.length > 1)?Long.parseLong(args[1]):DEFAULT_SEED;
+        System.out.print(run(packets,seed));
+    }
+
+    /**
+     * Alters encoded bytes the way a link might
+     */
+    public interface Channel {
+        String getName();
+        void corrupt(byte[] encoded, Random random);
+    }
+
+    /**
+     * Random byte errors at a given rate
+     */
+    public static class RandomErrorChannel implements Channel {
+        private final float rate;
+
+        public RandomErrorChannel(float rate) { this.rate = rate; }
+
+        @Override
+        public String getName() { return String.format(Locale.US,"random %.1f%%",rate*100f); }
+
+        @Override
+        public void corrupt(byte[] encoded, Random random) {
+            for (int i=0;i<encoded.length;i++) {
+                if (random.nextFloat() < rate)
+                    encoded[i] ^= (byte)(1 + random.nextInt(255));
+            }
+        }
+    }
+
+    /**
+     * Periodic bursts of inverted bits, like those seen from minor clock differences between SDRs
+     */
+    public static class InversionBurstChannel implements Channel {
+        private final int period;
+        private final int burst;
+
+        public InversionBurstChannel(int period, int burst) {
+            this.period = period;
+            this.burst = burst;
+        }
+
+        @Override
+        public String getName() { return "inversion "+burst+"b every "+period+"b"; }
+
+        @Override
+        public void corrupt(byte[] encoded, Random random) {
+            int start = random.nextInt(period);
+            while (start < encoded.length) {
+                for (int i=start;(i<start+burst) && (i<encoded.length);i++) {
+                    encoded[i] = (byte)~encoded[i];
+                }
+                start += period;
+            }
+        }
+    }
+
+    public static class Result {
+        private long packets = 0l;
+        private long packetsIntact = 0l;
+        private long dataBytes = 0l;
+        private long sentBytes = 0l;
+        private long badBytes = 0l;
+
+        /**
+         * Fraction of original data bytes that were missing or wrong after decoding
+         * @return
+         */
+        public float getResidualErrorRate() { return (dataBytes == 0l)?0f:((float)badBytes)/((float)dataBytes); }
+
+        /**
+         * Fraction of packets that were recovered without any errors
+         * @return
+         */
+        public float getPacketSuccessRate() { return (packets == 0l)?0f:((float)packetsIntact)/((float)packets); }
+
+        /**
+         * Bytes sent per data byte
+         * @return
+         */
+        public float getOverhead() { return (dataBytes == 0l)?0f:((float)sentBytes)/((float)dataBytes); }
+    }
+
+    /**
+     * Encodes each packet, corrupts it with the channel, then decodes it with a fresh decoder
+     * @param mode
+     * @param dataBytes
+     * @param parityBytes
+     * @param interleave
+     * @param packets the packets to replay (i.e. captured traffic)
+     * @param channel
+     * @param seed
+     * @return
+     */
+    public static Result measure(FecMode mode, int dataBytes, int parityBytes, int interleave, List<byte[]> packets, Channel channel, long seed) {
+        Result result = new Result();
+        Random random = new Random(seed);
+        for (byte[] packet:packets) {
+            FecCodec codec = FecCodec.build(mode,dataBytes,parityBytes,interleave);
+            byte[] encoded = (codec == null)?packet.clone():codec.encode(packet);
+            byte[] link = new byte[encoded.length + TRAILING_IDLE_BYTES];
+            System.arraycopy(encoded,0,link,0,encoded.length);
+            if (channel != null)
+                channel.corrupt(link,random);
+            byte[] decoded = (codec == null)?link:codec.decode(link);
+            if (codec != null)
+                codec.close();
+            int bad = 0;
+            for (int i=0;i<packet.length;i++) {
+                if ((decoded == null) || (i >= decoded.length) || (decoded[i] != packet[i]))
+                    bad++;
+            }
+            result.packets++;
+            if (bad == 0)
+                result.packetsIntact++;
+            result.dataBytes += packet.length;
+            result.sentBytes += encoded.length;
+            result.badBytes += bad;
+        }
+        return result;
+    }
+
+    /**
+     * Builds random packets for testing
+     * @param count
+     * @param seed
+     * @return
+     */
+    public static List<byte[]> buildPackets(int count, long seed) {
+        Random random = new Random(seed);
+        ArrayList<byte[]> packets = new ArrayList<>(count);
+        for (int i=0;i<count;i++) {
+            byte[] packet = new byte[MIN_PACKET_SIZE + random.nextInt(MAX_PACKET_SIZE - MIN_PACKET_SIZE + 1)];
+            random.nextBytes(packet);
+            packets.add(packet);
+        }
+        return packets;
+    }
+
+    /**
+     * Runs each FEC strategy against a set of synthetic channels
+     * @param packetCount
+     * @param seed
+     * @return a report of the results
+     */
+    public static String run(int packetCount, long seed) {
+        return run(buildPackets(packetCount,seed),seed);
+    }
+
+    /**
+     * Runs each FEC strategy against a set of synthetic channels
+     * @param packets packets to send through each channel
+     * @param seed
+     * @return a report of the results
+     */
+    public static String run(List<byte[]> packets, long seed) {
+        Channel[] channels = {
+                null,
+                new RandomErrorChannel(0.005f),
+                new RandomErrorChannel(0.02f),
+                new InversionBurstChannel(200,6),
+                new InversionBurstChannel(120,12)
+        };
+        Object[][] codes = {
+                {FecMode.NONE,0,0,0},
+                {FecMode.GAP,0,0,0},
+                {FecMode.REED_SOLOMON,64,16,1},
+                {FecMode.REED_SOLOMON,64,16,4},
+                {FecMode.REED_SOLOMON,96,32,4},
+                {FecMode.REED_SOLOMON,223,32,1}
+        };
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,"%-20s %-24s %8s %10s %10s%n","codec","channel","overhead","residual","intact"));
+        for (Object[] code:codes) {
+            FecMode mode = (FecMode)code[0];
+            String name = (mode == FecMode.REED_SOLOMON)?("RS("+code[1]+"+"+code[2]+")x"+code[3]):mode.name();
+            for (Channel channel:channels) {
+                Result result = measure(mode,(int)code[1],(int)code[2],(int)code[3],packets,channel,seed);
+                sb.append(String.format(Locale.US,"%-20s %-24s %8.2f %9.4f%% %9.1f%%%n",name,(channel==null)?"clean":channel.getName(),
+                        result.getOverhead(),result.getResidualErrorRate()*100f,result.getPacketSuccessRate()*100f));
+            }
+        }
+        return sb.toString();
+    }
+}
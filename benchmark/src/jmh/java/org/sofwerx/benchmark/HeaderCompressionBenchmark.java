@@ -0,0 +1,86 @@
+package org.sofwerx.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.sofwerx.sqan.util.NetUtil;
+import org.sofwerx.sqan.vpn.HeaderCompressor;
+import org.sofwerx.sqan.vpn.HeaderDecompressor;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Compresses (and restores) the headers of a steady flow the way the VPN does for each IP packet
+ * it sends: udp == 20ms voice frames, tcp == a transfer with timestamp options. Whether packets
+ * come back byte-for-byte is checked by HeaderCompressorTest.
+ */
+@State(Scope.Thread)
+public class HeaderCompressionBenchmark {
+    private final static int PACKETS = 64; //cycled through, so ports and IP IDs keep changing
+    private final static int DESTINATION = 2;
+    private final static int ORIGIN = 1;
+    private final static int IPV4_HEADER_SIZE = 20;
+    private final static int UDP_HEADER_SIZE = 8;
+    private final static int TCP_HEADER_SIZE = 32;
+
+    @Param({"udp","tcp"})
+    public String flow;
+
+    @Param({"172","512"})
+    public int payload;
+
+    private byte[][] packets;
+    private HeaderCompressor compressor;
+    private HeaderDecompressor decompressor;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(7l);
+        final boolean tcp = "tcp".equals(flow);
+        final int transportHeader = tcp?TCP_HEADER_SIZE:UDP_HEADER_SIZE;
+        packets = new byte[PACKETS][];
+        int seq = random.nextInt();
+        for (int i=0;i<PACKETS;i++) {
+            byte[] packet = new byte[IPV4_HEADER_SIZE + transportHeader + payload];
+            random.nextBytes(packet);
+            ByteBuffer buf = ByteBuffer.wrap(packet);
+            buf.put((byte)0x45).put((byte)0).putShort((short)packet.length).putShort((short)(100 + i)).putShort((short)0x4000); //DF
+            buf.put((byte)64).put((byte)(tcp?6:17)).putShort((short)0).putInt(0xA9FE0001).putInt(0xA9FE0002);
+            if (tcp) {
+                buf.putShort((short)40123).putShort((short)8080).putInt(seq).putInt(5000);
+                buf.put((byte)((TCP_HEADER_SIZE / 4) << 4)).put((byte)0x18).putShort((short)29200);
+                buf.putShort((short)random.nextInt()).putShort((short)0);
+                buf.put((byte)1).put((byte)1).put((byte)8).put((byte)10).putInt(10000 + i).putInt(9000 + i);
+                seq += payload;
+            } else
+                buf.putShort((short)16384).putShort((short)16384).putShort((short)(UDP_HEADER_SIZE + payload)).putShort((short)random.nextInt());
+            NetUtil.updateIpv4Checksum(packet);
+            packets[i] = packet;
+        }
+        compressor = new HeaderCompressor();
+        decompressor = new HeaderDecompressor();
+    }
+
+    private byte[] nextPacket() {
+        byte[] packet = packets[next];
+        next = (next + 1) % PACKETS;
+        return packet;
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        byte[] packet = nextPacket();
+        return compressor.compress(DESTINATION,packet,packet.length);
+    }
+
+    @Benchmark
+    public ByteBuffer roundTrip() {
+        byte[] packet = nextPacket();
+        return decompressor.decompress(ORIGIN,DESTINATION,ByteBuffer.wrap(compressor.compress(DESTINATION,packet,packet.length)));
+    }
+}
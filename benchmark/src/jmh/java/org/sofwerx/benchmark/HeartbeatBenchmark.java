@@ -0,0 +1,56 @@
+package org.sofwerx.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.packet.HeartbeatPacket;
+
+/**
+ * Builds and parses heartbeats from a device with 50 teammates, so each heartbeat carries 50 relays.
+ * After the first COMPACT heartbeat the rest are deltas against its keyframe; that they stay small
+ * and keep receivers in sync despite loss is checked by CompactHeartbeatTest.
+ */
+@State(Scope.Thread)
+public class HeartbeatBenchmark {
+    private final static int RELAYS = 50;
+
+    @Param({"MEDIUM","COMPACT"})
+    public String detailLevel;
+
+    private SqAnDevice device;
+    private HeartbeatPacket.DetailLevel level;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        SqAnDevice.clearAllDevices(null);
+        device = new SqAnDevice(PacketBenchmark.ORIGIN);
+        device.setCallsign("Benchmark");
+        for (int i=1;i<=RELAYS;i++) {
+            SqAnDevice teammate = new SqAnDevice(PacketBenchmark.ORIGIN + i);
+            teammate.setConnected(1 + i % 3,(i % 2) == 0,(i % 2) == 1);
+        }
+        level = HeartbeatPacket.DetailLevel.valueOf(detailLevel);
+        bytes = new HeartbeatPacket(device,level).toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SqAnDevice.clearAllDevices(null);
+    }
+
+    @Benchmark
+    public byte[] build() {
+        return new HeartbeatPacket(device,level).toByteArray();
+    }
+
+    @Benchmark
+    public AbstractPacket parse() {
+        return AbstractPacket.newFromBytes(bytes);
+    }
+}
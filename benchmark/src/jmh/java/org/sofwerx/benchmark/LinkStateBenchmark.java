@@ -0,0 +1,58 @@
+package org.sofwerx.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sofwerx.sqan.manet.common.LinkState;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Selects the multipoint relays of every device in a team scattered so each device has about six
+ * neighbors (as each device does for its neighbors when the topology changes). That broadcasts
+ * relayed only by MPRs still reach every device is checked by LinkStateTest.
+ */
+@State(Scope.Thread)
+public class LinkStateBenchmark {
+    private final static double NEIGHBORS = 6d;
+
+    @Param({"10","25","50"})
+    public int nodes;
+
+    private HashMap<Integer,int[]> links;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(17l);
+        final double side = Math.sqrt((double)nodes * Math.PI / NEIGHBORS);
+        double[] x = new double[nodes];
+        double[] y = new double[nodes];
+        for (int i=0;i<nodes;i++) {
+            x[i] = random.nextDouble() * side;
+            y[i] = random.nextDouble() * side;
+        }
+        links = new HashMap<>();
+        for (int i=0;i<nodes;i++) {
+            int[] found = new int[nodes];
+            int count = 0;
+            for (int j=0;j<nodes;j++) {
+                if ((i != j) && (Math.hypot(x[i]-x[j],y[i]-y[j]) <= 1d))
+                    found[count++] = j;
+            }
+            links.put(i,Arrays.copyOf(found,count));
+        }
+    }
+
+    @Benchmark
+    public int selectAll() {
+        int mprs = 0;
+        for (int i=0;i<nodes;i++) {
+            mprs += LinkState.select(i,links).length;
+        }
+        return mprs;
+    }
+}
@@ -0,0 +1,126 @@
+package org.sofwerx.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.packet.ChannelBytesPacket;
+import org.sofwerx.sqan.manet.common.packet.DisconnectingPacket;
+import org.sofwerx.sqan.manet.common.packet.HeartbeatPacket;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.packet.PingPacket;
+import org.sofwerx.sqan.manet.common.packet.RawBytesPacket;
+import org.sofwerx.sqan.manet.common.packet.ReliablePacket;
+import org.sofwerx.sqan.manet.common.packet.SegmentTool;
+import org.sofwerx.sqan.manet.common.packet.VpnPacket;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Serializes and parses each type of packet (see AbstractPacket.newFromHeader), both through the
+ * byte[] API and through the zero-copy ByteBuffer API (writeTo and newFromBuffer). Run with
+ * -prof gc to compare the allocation of each.
+ */
+@State(Scope.Thread)
+public class PacketBenchmark {
+    final static int ORIGIN = 1540000001;
+    final static int DESTINATION = 1540000002;
+    private final static int PAYLOAD_SIZE = 1000;
+    private final static int SEGMENT_SIZE = 255; //WiFi Aware's max message size
+
+    @Param({"RAW_BYTES","HEARTBEAT","PING","CHANNEL_BYTES","DISCONNECTING","VPN_BYTES","SEGMENT","RELIABLE"})
+    public String type;
+
+    private AbstractPacket packet;
+    private byte[] bytes;
+    private ByteBuffer out;
+    private ByteBuffer in;
+
+    @Setup
+    public void setup() {
+        packet = newPacket(type);
+        bytes = packet.toByteArray();
+        out = ByteBuffer.allocateDirect(bytes.length);
+        in = ByteBuffer.allocateDirect(bytes.length);
+        in.put(bytes);
+        in.flip();
+    }
+
+    @Benchmark
+    public byte[] toByteArray() {
+        return packet.toByteArray();
+    }
+
+    @Benchmark
+    public AbstractPacket newFromBytes() {
+        return AbstractPacket.newFromBytes(bytes);
+    }
+
+    @Benchmark
+    public int writeTo() {
+        out.clear();
+        packet.writeTo(out);
+        return out.position();
+    }
+
+    @Benchmark
+    public AbstractPacket newFromBuffer() {
+        in.rewind();
+        return AbstractPacket.newFromBuffer(in);
+    }
+
+    private static AbstractPacket newPacket(String type) {
+        switch (type) {
+            case "HEARTBEAT":
+                return new HeartbeatPacket(ORIGIN);
+
+            case "PING":
+                return new PingPacket(ORIGIN,DESTINATION);
+
+            case "CHANNEL_BYTES":
+                ChannelBytesPacket channel = new ChannelBytesPacket(new PacketHeader(ORIGIN));
+                channel.setChannel("chat");
+                channel.setData(getPayload());
+                return channel;
+
+            case "DISCONNECTING":
+                return new DisconnectingPacket(ORIGIN);
+
+            case "VPN_BYTES":
+                VpnPacket vpn = new VpnPacket(new PacketHeader(ORIGIN));
+                vpn.setData(getPayload());
+                return vpn;
+
+            case "SEGMENT":
+                return SegmentTool.toSegments(newRawBytes().toByteArray(),SEGMENT_SIZE).get(0);
+
+            case "RELIABLE":
+                ReliablePacket reliable = new ReliablePacket(ORIGIN,DESTINATION);
+                reliable.setData(newRawBytes().toByteArray(),(byte)1,5,3);
+                reliable.setAck((byte)1,4,0b1011);
+                return reliable;
+
+            default:
+                return newRawBytes();
+        }
+    }
+
+    private static RawBytesPacket newRawBytes() {
+        RawBytesPacket raw = new RawBytesPacket(new PacketHeader(ORIGIN));
+        raw.setDestination(DESTINATION);
+        raw.setData(getPayload());
+        return raw;
+    }
+
+    /**
+     * @return the same random looking payload every time
+     */
+    static byte[] getPayload() {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        new Random(PAYLOAD_SIZE).nextBytes(payload);
+        return payload;
+    }
+}
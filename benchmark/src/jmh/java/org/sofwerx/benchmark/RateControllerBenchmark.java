@@ -0,0 +1,48 @@
+package org.sofwerx.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sofwerx.sqan.manet.common.RateController;
+
+/**
+ * Cost of pacing one packet: checking the delay, accounting for the packet and reporting the write
+ * (blocked every so often, as when the link's buffer fills). That pacing keeps the link from
+ * queuing is checked by RateControllerTest, and the queue delay and throughput it gets over links
+ * with different bottleneck rates are reported by RateControllerReport.
+ */
+@State(Scope.Thread)
+public class RateControllerBenchmark {
+    private final static int BLOCKED_EVERY = 64;
+
+    @Param({"100","1000"})
+    public int packetSize;
+
+    private RateController controller;
+    private long now;
+    private int writes;
+
+    @Setup
+    public void setup() {
+        controller = new RateController("benchmark");
+        now = 0l;
+        writes = 0;
+    }
+
+    @Benchmark
+    public long pace() {
+        final long delay = controller.getDelay(now);
+        now += delay;
+        controller.onSent(packetSize,now);
+        if (++writes % BLOCKED_EVERY == 0) {
+            controller.onWriteCompleted(packetSize,20l,now + 20l);
+            now += 20l;
+        } else
+            controller.onWriteCompleted(packetSize,0l,now);
+        if (writes % BLOCKED_EVERY == 1)
+            controller.onRttSample(40l + delay,now);
+        return delay;
+    }
+}
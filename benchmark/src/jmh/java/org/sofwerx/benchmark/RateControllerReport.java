@@ -0,0 +1,201 @@
+package org.sofwerx.benchmark;
+
+import org.sofwerx.sqan.manet.common.RateController;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+
+/**
+ * Measures queue delay and throughput over simulated links with different bottleneck rates. A
+ * sender always has bulk data waiting and also sends a small control packet every half second,
+ * which goes ahead of the bulk data in the sender's own queue; whatever is waiting is written in
+ * batches of up to 16KB as BTSocket does. The link takes writes into a fixed
+ * size buffer (like a socket or USB buffer) that drains at the bottleneck rate; a write blocks
+ * while that buffer is full. Writing as fast as the link accepts is compared with pacing by
+ * RateController, both with write feedback alone and with a ping every second. Time is simulated,
+ * so this reports what the link carries rather than how long pacing takes (see
+ * RateControllerBenchmark).
+ *
+ *   ./gradlew :benchmark:report -Preport=RateControllerReport [-Pargs="16 100 1000"]
+ */
+public class RateControllerReport {
+    private final static int PACKET_SIZE = 1000;
+    private final static int CONTROL_SIZE = 100;
+    private final static int PING_SIZE = 50;
+    private final static int BUFFER_SIZE = 1024 * 64;
+    private final static int WRITE_BATCH_SIZE = 1024 * 16;
+    private final static double DELAY = 20d; //ms one way
+    private final static double CONTROL_INTERVAL = 500d;
+    private final static double PING_INTERVAL = 1000d;
+    private final static double DURATION = 1000d * 60d;
+    private final static int[] DEFAULT_RATES_KBPS = {16,100,1000};
+
+    /**
+     * @param args bottleneck rates in KB/s to sweep (defaults to DEFAULT_RATES_KBPS)
+     */
+    public static void main(String[] args) {
+        int[] rates = DEFAULT_RATES_KBPS;
+        if (args.length > 0) {
+            rates = new int[args.length];
+            for (int i=0;i<args.length;i++) {
+                rates[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.print(run(rates));
+    }
+
+    /**
+     * Runs the simulation for each bottleneck rate
+     * @param ratesKBps bottleneck rates in KB/s (e.g. 16, 100, 1000)
+     * @return a report of the results
+     */
+    public static String run(int... ratesKBps) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,"%db packets into a %dKB buffer, %.0fms one way delay, %.0fs per run%n",PACKET_SIZE,BUFFER_SIZE/1024,DELAY,DURATION/1000d));
+        for (int rate:ratesKBps) {
+            sb.append(String.format(Locale.US,"%d KB/s link:%n",rate));
+            sb.append(String.format(Locale.US,"  unpaced:         %s%n",new Simulation(rate,false,false).run()));
+            sb.append(String.format(Locale.US,"  paced:           %s%n",new Simulation(rate,true,false).run()));
+            sb.append(String.format(Locale.US,"  paced and pings: %s%n",new Simulation(rate,true,true).run()));
+        }
+        return sb.toString();
+    }
+
+    private static class Simulation {
+        private final double bytesPerMs;
+        private final RateController controller;
+        private final boolean pings;
+        private final ArrayDeque<double[]> buffer = new ArrayDeque<>(); //time each packet leaves the link and its size
+        private final ArrayList<double[]> rttSamples = new ArrayList<>(); //time measured and round trip
+        private final ArrayList<Double> queueDelays = new ArrayList<>();
+        private final ArrayList<Double> controlLatencies = new ArrayList<>();
+        private double now = 0d;
+        private double linkFreeAt = 0d;
+        private int buffered = 0;
+        private long delivered = 0l;
+
+        private Simulation(int rateKBps, boolean paced, boolean pings) {
+            bytesPerMs = (double)rateKBps * 1024d / 1000d;
+            controller = paced?new RateController("report"):null;
+            this.pings = pings;
+        }
+
+        private String run() {
+            double nextControl = 0d;
+            double nextPing = 0d;
+            while (now < DURATION) {
+                applyRttSamples();
+                if (controller != null) {
+                    long delay = controller.getDelay((long)now);
+                    if (delay > 0l) {
+                        now = Math.floor(now) + (double)delay;
+                        continue;
+                    }
+                }
+                //gather what pacing allows into one write, the way BTSocket batches frames
+                int batch = 0;
+                int packets = 0;
+                ArrayList<double[]> timed = new ArrayList<>(); //when each control packet or ping was created and whether it is a ping
+                while (true) {
+                    final boolean isPing = pings && (now >= nextPing);
+                    final boolean isControl = !isPing && (now >= nextControl);
+                    final int size = isPing?PING_SIZE:(isControl?CONTROL_SIZE:PACKET_SIZE);
+                    if ((batch > 0) && (batch + size > WRITE_BATCH_SIZE))
+                        break;
+                    if (isPing) {
+                        timed.add(new double[] {nextPing,1d});
+                        nextPing += PING_INTERVAL;
+                    } else if (isControl) {
+                        timed.add(new double[] {nextControl,0d});
+                        nextControl += CONTROL_INTERVAL;
+                    }
+                    batch += size;
+                    packets++;
+                    if (controller != null) {
+                        controller.onSent(size,(long)now);
+                        if (controller.getDelay((long)now) > 0l)
+                            break;
+                    }
+                }
+                final double start = now;
+                final double accepted = write(batch);
+                final double departs = linkFreeAt; //when the last byte of this write leaves the link
+                final double queueDelay = departs - (double)batch / bytesPerMs - accepted;
+                for (int i=0;i<packets;i++) {
+                    queueDelays.add(queueDelay);
+                }
+                for (double[] packet:timed) {
+                    if (packet[1] == 0d)
+                        controlLatencies.add(departs + DELAY - packet[0]);
+                    else
+                        rttSamples.add(new double[] {departs + 2d*DELAY,departs + 2d*DELAY - packet[0]});
+                }
+                if (controller != null)
+                    controller.onWriteCompleted(batch,(long)(accepted - start),(long)accepted);
+                now = accepted;
+            }
+            while (!buffer.isEmpty() && (buffer.peek()[0] <= DURATION)) {
+                delivered += (long)buffer.poll()[1];
+            }
+            Collections.sort(queueDelays);
+            Collections.sort(controlLatencies);
+            return String.format(Locale.US,"%.1f KB/s, queue delay avg %.0fms p95 %.0fms, control packet latency avg %.0fms p95 %.0fms",
+                    (double)delivered / 1024d / (DURATION / 1000d),average(queueDelays),percentile(queueDelays,95),average(controlLatencies),percentile(controlLatencies,95));
+        }
+
+        /**
+         * Writes a packet into the link's buffer, blocking until there is room
+         * @param size
+         * @return when the write completed
+         */
+        private double write(int size) {
+            double time = now;
+            drain(time);
+            while (buffered + size > BUFFER_SIZE) {
+                time = buffer.peek()[0];
+                drain(time);
+            }
+            linkFreeAt = Math.max(time,linkFreeAt) + (double)size / bytesPerMs;
+            buffer.add(new double[] {linkFreeAt,size});
+            buffered += size;
+            return time;
+        }
+
+        private void drain(double time) {
+            while (!buffer.isEmpty() && (buffer.peek()[0] <= time)) {
+                double[] sent = buffer.poll();
+                buffered -= (int)sent[1];
+                if (sent[0] <= DURATION)
+                    delivered += (long)sent[1];
+            }
+        }
+
+        private void applyRttSamples() {
+            for (int i=rttSamples.size()-1;i>=0;i--) {
+                double[] sample = rttSamples.get(i);
+                if (sample[0] <= now) {
+                    controller.onRttSample((long)sample[1],(long)sample[0]);
+                    rttSamples.remove(i);
+                }
+            }
+        }
+    }
+
+    private static double average(ArrayList<Double> values) {
+        if (values.isEmpty())
+            return 0d;
+        double total = 0d;
+        for (double value:values) {
+            total += value;
+        }
+        return total / (double)values.size();
+    }
+
+    private static double percentile(ArrayList<Double> sorted, int percent) {
+        if (sorted.isEmpty())
+            return 0d;
+        return sorted.get(Math.min(sorted.size() - 1,sorted.size() * percent / 100));
+    }
+}
@@ -0,0 +1,61 @@
+package org.sofwerx.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sofwerx.sqandr.sdr.sar.Segment;
+import org.sofwerx.sqandr.sdr.sar.Segmenter;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Breaks packets into SDR segments and puts them back together from the bytes sent over the air
+ */
+@State(Scope.Thread)
+public class SegmenterBenchmark {
+    @Param({"200","1000","3937"}) //a packet that fits in one segment is sent standalone and never reassembled
+    public int size;
+
+    private byte[] data;
+    private byte[][] onAir;
+    private byte packetId;
+    private final byte[] out = new byte[Segmenter.MAX_POSSIBLE_LENGTH];
+
+    @Setup
+    public void setup() {
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+        ArrayList<Segment> segments = Segmenter.wrapIntoSegments(data);
+        packetId = segments.get(0).getPacketId();
+        onAir = new byte[segments.size()][];
+        for (int i=0;i<onAir.length;i++) {
+            onAir[i] = segments.get(i).toBytes();
+        }
+    }
+
+    @Benchmark
+    public byte[][] wrapIntoSegments() {
+        ArrayList<Segment> segments = Segmenter.wrapIntoSegments(data);
+        byte[][] bytes = new byte[segments.size()][];
+        for (int i=0;i<bytes.length;i++) {
+            bytes[i] = segments.get(i).toBytes();
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int reassemble() {
+        Segmenter segmenter = new Segmenter(packetId);
+        for (byte[] raw:onAir) {
+            Segment segment = new Segment();
+            segment.parse(raw);
+            segmenter.add(segment);
+        }
+        if (!segmenter.isComplete())
+            throw new IllegalStateException("Segments did not reassemble");
+        return segmenter.reassemble(out);
+    }
+}
@@ -0,0 +1,93 @@
+package org.sofwerx.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sofwerx.sqan.manet.common.SelectiveRepeat;
+import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.packet.RawBytesPacket;
+import org.sofwerx.sqan.manet.common.packet.ReliablePacket;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Processing cost of sending a packet reliably: wrapping, acknowledging and (with loss) resending
+ * it, with SelectiveRepeat at both ends of an in-memory link and the clock jumping ahead to each
+ * timer. Whether every packet gets through is checked by SelectiveRepeatTest, and the goodput a
+ * lossy link gets at each loss rate is reported by SelectiveRepeatReport.
+ */
+@State(Scope.Thread)
+public class SelectiveRepeatBenchmark {
+    private final static int ORIGIN = 1;
+    private final static int DESTINATION = 2;
+    private final static long TIMEOUT = 200l;
+
+    @Param({"0","10"})
+    public int lossPercent;
+
+    @Param({"200"})
+    public int payload;
+
+    private final SelectiveRepeat[] ends = new SelectiveRepeat[2];
+    private final ArrayDeque<byte[]>[] inbound = newQueues();
+    private Random random;
+    private long now;
+    private long delivered;
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<byte[]>[] newQueues() {
+        return new ArrayDeque[] {new ArrayDeque<byte[]>(),new ArrayDeque<byte[]>()};
+    }
+
+    @Setup
+    public void setup() {
+        random = new Random(23l);
+        now = 0l;
+        for (int i=0;i<2;i++) {
+            final int far = 1 - i;
+            ends[i] = new SelectiveRepeat(new SelectiveRepeat.Link() {
+                @Override
+                public void transmit(AbstractPacket packet, TransportPreference preferredTransport) {
+                    if (random.nextInt(100) >= lossPercent)
+                        inbound[far].add(packet.toByteArray());
+                }
+
+                @Override
+                public long getRetransmitTimeout(int destination) { return TIMEOUT; }
+            });
+        }
+    }
+
+    @Benchmark
+    public long send() {
+        RawBytesPacket packet = new RawBytesPacket(new PacketHeader(ORIGIN));
+        packet.setDestination(DESTINATION);
+        packet.setData(new byte[payload]);
+        packet.setLossy(false);
+        ends[0].send(packet,now);
+        while (true) {
+            boolean idle = true;
+            for (int i=0;i<2;i++) {
+                byte[] bytes = inbound[i].poll();
+                if (bytes != null) {
+                    idle = false;
+                    if (ends[i].onReceived((ReliablePacket)AbstractPacket.newFromBytes(bytes),now) != null)
+                        delivered++;
+                }
+            }
+            if (!idle)
+                continue;
+            final long next = Math.min(ends[0].getNextDue(),ends[1].getNextDue());
+            if (next == Long.MAX_VALUE)
+                return delivered;
+            now = Math.max(now,next);
+            ends[0].onTimer(now);
+            ends[1].onTimer(now);
+        }
+    }
+}
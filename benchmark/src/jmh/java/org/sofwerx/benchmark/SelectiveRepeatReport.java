@@ -0,0 +1,214 @@
+package org.sofwerx.benchmark;
+
+import org.sofwerx.sqan.manet.common.SelectiveRepeat;
+import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.packet.RawBytesPacket;
+import org.sofwerx.sqan.manet.common.packet.ReliablePacket;
+import org.sofwerx.sqan.manet.common.sockets.TransportPreference;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Measures goodput over a simulated narrow, lossy link (like the SDR) for packets that must get
+ * through, sweeping the loss rate. SelectiveRepeat is compared with resending at the application
+ * layer (one packet at a time, resent when its reply doesn't come back in time) and with sending
+ * best effort. Losses hit packets in both directions independently. Time is simulated, so this
+ * reports what the link carries rather than how long the code takes (see SelectiveRepeatBenchmark).
+ *
+ *   ./gradlew :benchmark:report -Preport=SelectiveRepeatReport [-Pargs="0 5 10 20"]
+ */
+public class SelectiveRepeatReport {
+    private final static int ORIGIN = 1;
+    private final static int DESTINATION = 2;
+    private final static int PACKETS = 256;
+    private final static int PAYLOAD_SIZE = 200;
+    private final static double BYTES_PER_MS = 16d; //about 16KB/s
+    private final static long DELAY = 40l; //one-way propagation and processing
+    private final static long TIMEOUT = 2l * (DELAY + 50l); //round trip plus time to serialize a few packets
+    private final static int[] DEFAULT_LOSS_PERCENTS = {0,1,5,10,20,30};
+
+    /**
+     * @param args loss percentages to sweep (defaults to DEFAULT_LOSS_PERCENTS)
+     */
+    public static void main(String[] args) {
+        int[] lossPercents = DEFAULT_LOSS_PERCENTS;
+        if (args.length > 0) {
+            lossPercents = new int[args.length];
+            for (int i=0;i<args.length;i++) {
+                lossPercents[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.print(run(lossPercents));
+    }
+
+    /**
+     * Runs the simulation at each loss rate
+     * @param lossPercents share of packets lost in each direction
+     * @return a report of the results
+     */
+    public static String run(int... lossPercents) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,"%d packets of %db over a %.0fKB/s link with %dms delay%n",PACKETS,PAYLOAD_SIZE,BYTES_PER_MS,DELAY));
+        for (int loss:lossPercents) {
+            Random random = new Random(23l + loss);
+            float[] arq = runArq(loss,random);
+            float[] app = runApplicationResends(loss,random);
+            int delivered = 0;
+            for (int i=0;i<PACKETS;i++) {
+                if (random.nextInt(100) >= loss)
+                    delivered++;
+            }
+            sb.append(String.format(Locale.US,"%d%% loss: ARQ %.2fKB/s (%.1f%% delivered, %.2f sends/packet, %d acks); application resends %.2fKB/s (%.1f%%); best effort %.1f%% delivered%n",
+                    loss,arq[0],arq[1],arq[2],(int)arq[3],app[0],app[1],100f*(float)delivered/(float)PACKETS));
+        }
+        return sb.toString();
+    }
+
+    private static float[] runArq(final int loss, final Random random) {
+        final Simulation sim = new Simulation(loss,random);
+        final HashSet<Long> received = new HashSet<>();
+        final long[] lastDelivery = {0l};
+        final int[] sends = {0};
+        final SelectiveRepeat[] ends = new SelectiveRepeat[2];
+        for (int i=0;i<2;i++) {
+            final int side = i;
+            ends[i] = new SelectiveRepeat(new SelectiveRepeat.Link() {
+                @Override
+                public void transmit(AbstractPacket packet, TransportPreference preferredTransport) {
+                    if (side == 0)
+                        sends[0]++;
+                    final byte[] bytes = packet.toByteArray();
+                    sim.send(side,bytes.length,() -> {
+                        ReliablePacket arrived = (ReliablePacket)AbstractPacket.newFromBytes(bytes);
+                        AbstractPacket wrapped = ends[1-side].onReceived(arrived,sim.now);
+                        if ((wrapped != null) && received.add(wrapped.getTime()))
+                            lastDelivery[0] = sim.now;
+                        sim.schedule(ends,1-side);
+                    });
+                }
+
+                @Override
+                public long getRetransmitTimeout(int destination) { return TIMEOUT; }
+            });
+        }
+        for (int i=0;i<PACKETS;i++) {
+            ends[0].send(newPacket(i),0l);
+        }
+        sim.schedule(ends,0);
+        sim.run();
+        long acks = ends[1].getAcksSent();
+        return new float[] {getGoodput(received.size(),lastDelivery[0]),100f*(float)received.size()/(float)PACKETS,(float)sends[0]/(float)PACKETS,(float)acks};
+    }
+
+    private static float[] runApplicationResends(final int loss, final Random random) {
+        final Simulation sim = new Simulation(loss,random);
+        final int size = PacketHeader.getSize() + PAYLOAD_SIZE;
+        final int replySize = PacketHeader.getSize() + 8;
+        int delivered = 0;
+        for (int i=0;i<PACKETS;i++) {
+            boolean done = false;
+            for (int tries=0;!done && (tries<8);tries++) {
+                final long sent = sim.now;
+                final boolean[] replied = {false};
+                sim.send(0,size,() -> sim.send(1,replySize,() -> replied[0] = true));
+                sim.run();
+                if (replied[0])
+                    done = true;
+                else
+                    sim.now = Math.max(sim.now,sent + TIMEOUT);
+            }
+            if (done)
+                delivered++;
+        }
+        return new float[] {getGoodput(delivered,sim.now),100f*(float)delivered/(float)PACKETS};
+    }
+
+    private static float getGoodput(int packets, long elapsed) {
+        if (elapsed <= 0l)
+            return 0f;
+        return (float)(packets * PAYLOAD_SIZE) / (float)elapsed; //bytes per ms == KB/s
+    }
+
+    private static AbstractPacket newPacket(int index) {
+        PacketHeader header = new PacketHeader(ORIGIN);
+        header.setTime(index); //the time field doubles as the packet's identifier so none are counted twice
+        RawBytesPacket packet = new RawBytesPacket(header);
+        packet.setDestination(DESTINATION);
+        packet.setData(new byte[PAYLOAD_SIZE]);
+        packet.setLossy(false);
+        return packet;
+    }
+
+    /**
+     * Discrete event simulation of a link where each direction sends one packet at a time
+     */
+    private static class Simulation {
+        private final int loss;
+        private final Random random;
+        private final PriorityQueue<Event> events = new PriorityQueue<>();
+        private final long[] busyUntil = new long[2];
+        private final long[] timerAt = {Long.MAX_VALUE,Long.MAX_VALUE};
+        private long now = 0l;
+        private long order = 0l;
+
+        private Simulation(int loss, Random random) {
+            this.loss = loss;
+            this.random = random;
+        }
+
+        private void send(int side, int size, Runnable onArrival) {
+            final long start = Math.max(now,busyUntil[side]);
+            busyUntil[side] = start + (long)Math.ceil((double)size / BYTES_PER_MS);
+            if (random.nextInt(100) >= loss)
+                events.add(new Event(busyUntil[side] + DELAY,order++,onArrival));
+        }
+
+        /**
+         * Makes sure the timer for one end runs when it is next due
+         */
+        private void schedule(final SelectiveRepeat[] ends, final int side) {
+            final long due = Math.max(now,ends[side].getNextDue());
+            if ((due == Long.MAX_VALUE) || (due >= timerAt[side]))
+                return;
+            timerAt[side] = due;
+            events.add(new Event(due,order++,() -> {
+                if (timerAt[side] != due)
+                    return; //replaced by an earlier timer
+                timerAt[side] = Long.MAX_VALUE;
+                ends[side].onTimer(now);
+                schedule(ends,side);
+            }));
+        }
+
+        private void run() {
+            while (!events.isEmpty()) {
+                Event event = events.poll();
+                now = Math.max(now,event.time);
+                event.action.run();
+            }
+        }
+    }
+
+    private static class Event implements Comparable<Event> {
+        private final long time;
+        private final long order;
+        private final Runnable action;
+
+        private Event(long time, long order, Runnable action) {
+            this.time = time;
+            this.order = order;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time)
+                return (time < other.time)?-1:1;
+            return Long.compare(order,other.order);
+        }
+    }
+}
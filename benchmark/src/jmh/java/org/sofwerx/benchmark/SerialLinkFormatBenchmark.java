@@ -0,0 +1,75 @@
+package org.sofwerx.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sofwerx.sqandr.serial.SerialLinkFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Formats a burst for the serial link to SqANDR and reads it back, with both the escaped and the
+ * framed formats
+ */
+@State(Scope.Thread)
+public class SerialLinkFormatBenchmark {
+    private final static int BURST_SIZE = 252; //SerialConnection's max bytes per send
+
+    /**
+     * random == about an eighth of the bytes need escaping; low == every byte does (and every
+     * byte is absorbed into a framing code)
+     */
+    @Param({"random","low"})
+    public String content;
+
+    private byte[] data;
+    private byte[] escaped;
+    private byte[] encoded;
+    private final ByteBuffer buf = ByteBuffer.allocate(SerialLinkFormat.getMaxEscapedSize(BURST_SIZE,0));
+
+    @Setup
+    public void setup() {
+        data = new byte[BURST_SIZE];
+        if ("low".equals(content)) {
+            for (int i=0;i<data.length;i++) {
+                data[i] = (byte)(i % 32);
+            }
+        } else
+            new Random(BURST_SIZE).nextBytes(data);
+        buf.clear();
+        SerialLinkFormat.escape(null,data,buf);
+        buf.flip();
+        escaped = new byte[buf.remaining() - 1]; //without the new line that ends the burst
+        buf.get(escaped);
+        buf.clear();
+        SerialLinkFormat.encode(null,data,buf);
+        buf.flip();
+        encoded = new byte[buf.remaining() - 1];
+        buf.get(encoded);
+    }
+
+    @Benchmark
+    public int escape() {
+        buf.clear();
+        return SerialLinkFormat.escape(null,data,buf);
+    }
+
+    @Benchmark
+    public byte[] unescape() {
+        return SerialLinkFormat.unescape(escaped);
+    }
+
+    @Benchmark
+    public int encode() {
+        buf.clear();
+        return SerialLinkFormat.encode(null,data,buf);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return SerialLinkFormat.decode(encoded,0,encoded.length);
+    }
+}
@@ -0,0 +1,68 @@
+package org.sofwerx.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sofwerx.sqan.rf.SignalConverter;
+
+import java.util.Random;
+
+/**
+ * Demodulates a buffer of IQ values one value at a time (onNewIQ) and as a batch (demodulate).
+ * The IQ values carry the SqAN header followed by random bytes, one bit per value: the I value
+ * rises for a 1 and falls for a 0.
+ */
+@State(Scope.Thread)
+public class SignalConverterBenchmark {
+    private final static int IQ_VALUES = 1024 * 16; //SerialConnection's RX buffer size
+    private final static int BYTES_PER_IQ = 4; //16 bit I then 16 bit Q
+    private final static short HIGH = 2000;
+    private final static short LOW = -2000;
+
+    private final short[] valuesI = new short[IQ_VALUES];
+    private final short[] valuesQ = new short[IQ_VALUES];
+    private final byte[] iq = new byte[IQ_VALUES * BYTES_PER_IQ];
+    private final byte[] out = new byte[SignalConverter.getMaxOutputSize(IQ_VALUES * BYTES_PER_IQ)];
+    private SignalConverter converter;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(IQ_VALUES);
+        int bit = 0;
+        for (int i=0;i<IQ_VALUES;i++) {
+            final int header = bit % (8 * 64); //a SqAN header every 64 bytes
+            boolean on;
+            if (header < 8 * SignalConverter.SQAN_HEADER.length)
+                on = ((SignalConverter.SQAN_HEADER[header / 8] >> (7 - header % 8)) & 1) == 1;
+            else
+                on = random.nextBoolean();
+            bit++;
+            valuesI[i] = on?HIGH:LOW;
+            valuesQ[i] = (short)(random.nextInt(2 * HIGH) - HIGH);
+            iq[i * BYTES_PER_IQ] = (byte)valuesI[i];
+            iq[i * BYTES_PER_IQ + 1] = (byte)(valuesI[i] >> 8);
+            iq[i * BYTES_PER_IQ + 2] = (byte)valuesQ[i];
+            iq[i * BYTES_PER_IQ + 3] = (byte)(valuesQ[i] >> 8);
+        }
+        converter = new SignalConverter(true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IQ_VALUES)
+    public void onNewIQ(Blackhole blackhole) {
+        for (int i=0;i<IQ_VALUES;i++) {
+            blackhole.consume(converter.onNewIQ(valuesI[i],valuesQ[i]).bitOn);
+            if (converter.hasByte())
+                blackhole.consume(converter.popByte());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IQ_VALUES)
+    public int demodulate() {
+        return converter.demodulate(iq,0,iq.length,out,0);
+    }
+}
@@ -0,0 +1,145 @@
+package org.sofwerx.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.sofwerx.sqan.vpn.VpnPump;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Time for a burst of IP packets written to the VPN's interface to come out of the VpnPump. A pipe
+ * stands in for the TUN descriptor; batchBytes == 0 sends every packet on its own. How the pump
+ * groups packets is checked by VpnPumpTest.
+ */
+@State(Scope.Thread)
+public class VpnPumpBenchmark {
+    private final static int MAX_PACKET_SIZE = Short.MAX_VALUE;
+    private final static int IPV4_HEADER_SIZE = 20;
+    private final static int DESTINATION_IP = 0xA9FE0001; //169.254.0.1
+
+    @Param({"0","1500"})
+    public int batchBytes;
+
+    @Param({"1","16"})
+    public int burst;
+
+    @Param({"100","1000"})
+    public int packetSize;
+
+    private Pipe pipe;
+    private PipeTun tun;
+    private VpnPump pump;
+    private Thread reader;
+    private ByteBuffer packets;
+    private final AtomicInteger received = new AtomicInteger();
+    private int expected;
+
+    @Setup
+    public void setup() throws IOException {
+        pipe = Pipe.open();
+        tun = new PipeTun(pipe.source());
+        pump = new VpnPump(tun,(data, destinationIp, packetCount) -> received.addAndGet(packetCount),MAX_PACKET_SIZE,batchBytes);
+        reader = new Thread(pump::run,"VpnPumpBenchmarkReader");
+        reader.start();
+        packets = ByteBuffer.allocate(packetSize * burst);
+        for (int i=0;i<burst;i++) {
+            packets.put((byte)0x45); //IPV4, 20b header
+            packets.put((byte)0);
+            packets.putShort((short)packetSize);
+            packets.putInt(0);
+            packets.put((byte)64); //TTL
+            packets.put((byte)17); //UDP
+            packets.putShort((short)0);
+            packets.putInt(0xA9FE0002);
+            packets.putInt(DESTINATION_IP);
+            packets.position(packetSize * (i + 1));
+        }
+        expected = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        pump.stop();
+        pipe.sink().close();
+        reader.join();
+        pipe.source().close();
+        tun.close();
+    }
+
+    @Benchmark
+    public int deliver() throws IOException {
+        packets.rewind();
+        while (packets.hasRemaining()) {
+            pipe.sink().write(packets);
+        }
+        expected += burst;
+        while (received.get() < expected) {
+            Thread.yield();
+        }
+        return expected;
+    }
+
+    /**
+     * A TUN stand-in backed by a pipe. A pipe is a byte stream, so packets are split back out
+     * using the length in each IP header (a TUN descriptor returns one packet per read).
+     */
+    private static class PipeTun implements VpnPump.Tun {
+        private final Pipe.SourceChannel source;
+        private final Selector selector;
+        private final ByteBuffer staging = ByteBuffer.allocate(MAX_PACKET_SIZE * 2);
+
+        private PipeTun(Pipe.SourceChannel source) throws IOException {
+            this.source = source;
+            source.configureBlocking(false);
+            selector = Selector.open();
+            source.register(selector,SelectionKey.OP_READ);
+            staging.flip();
+        }
+
+        private int nextPacketSize() {
+            if (staging.remaining() < IPV4_HEADER_SIZE)
+                return -1;
+            final int size = staging.getShort(staging.position() + 2) & 0xFFFF;
+            return (size > staging.remaining())?-1:size;
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int length) throws IOException {
+            int size = nextPacketSize();
+            if (size < 0) {
+                staging.compact();
+                final int read = source.read(staging);
+                staging.flip();
+                if ((read < 0) && !staging.hasRemaining())
+                    return -1;
+                size = nextPacketSize();
+                if (size < 0)
+                    return 0;
+            }
+            if (size > length)
+                throw new IOException(size+"b packet is too large for the "+length+"b read");
+            staging.get(buf,offset,size);
+            return size;
+        }
+
+        @Override
+        public void awaitReadable(long timeout) throws IOException {
+            selector.select(timeout);
+            selector.selectedKeys().clear();
+        }
+
+        private void close() throws IOException {
+            selector.close();
+        }
+    }
+}
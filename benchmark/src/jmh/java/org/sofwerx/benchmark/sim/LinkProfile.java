@@ -0,0 +1,96 @@
+package org.sofwerx.benchmark.sim;
+
+import org.sofwerx.sqan.manet.bt.helper.BTSocket;
+import org.sofwerx.sqandr.sdr.sar.Segmenter;
+
+import java.util.Locale;
+
+/**
+ * How a simulated link behaves: how fast it sends, how long a frame takes to reach the other end
+ * once it has been sent, how often frames are lost and the largest frame it carries. Shared links
+ * (WiFi, SDR) are a single broadcast medium where every device in range hears each frame and
+ * frames that overlap collide; point-to-point links (BT) carry each frame to one neighbor.
+ */
+public class LinkProfile {
+    public final static LinkProfile WIFI = new LinkProfile("WiFi",1024 * 1024 * 2,2000l,0.002d,64000,64,true);
+    public final static LinkProfile BT = new LinkProfile("BT",1024 * 100,15000l,0.0001d,BTSocket.MAX_PACKET_SIZE,16,false);
+    public final static LinkProfile SDR = new LinkProfile("SDR",1024 * 16,40000l,0.05d,Segmenter.MAX_POSSIBLE_LENGTH,32,true);
+
+    private final String name;
+    private final int bytesPerSecond;
+    private final long latency;
+    private final double lossPerKB;
+    private final int mtu;
+    private final int frameOverhead;
+    private final boolean shared;
+
+    /**
+     * @param name
+     * @param bytesPerSecond rate at which a frame is sent
+     * @param latency microseconds from the end of sending a frame until it is handled by the receiver
+     * @param lossPerKB chance that any given KB of a frame is lost (a frame is lost if any part of it is)
+     * @param mtu largest packet sent as one frame; bigger packets are segmented
+     * @param frameOverhead bytes the link adds to every frame (preamble, framing, link headers)
+     * @param shared true if every device in range hears each frame (and overlapping frames collide)
+     */
+    public LinkProfile(String name, int bytesPerSecond, long latency, double lossPerKB, int mtu, int frameOverhead, boolean shared) {
+        this.name = name;
+        this.bytesPerSecond = bytesPerSecond;
+        this.latency = latency;
+        this.lossPerKB = lossPerKB;
+        this.mtu = mtu;
+        this.frameOverhead = frameOverhead;
+        this.shared = shared;
+    }
+
+    /**
+     * Gets one of the standard profiles by name
+     * @param name WiFi, BT or SDR
+     * @return the profile (or null if there is no profile by that name)
+     */
+    public static LinkProfile valueOf(String name) {
+        if (name == null)
+            return null;
+        for (LinkProfile profile:new LinkProfile[] {WIFI,BT,SDR}) {
+            if (profile.name.equalsIgnoreCase(name))
+                return profile;
+        }
+        return null;
+    }
+
+    public String getName() { return name; }
+
+    public int getBytesPerSecond() { return bytesPerSecond; }
+
+    public long getLatency() { return latency; }
+
+    public int getMtu() { return mtu; }
+
+    public boolean isShared() { return shared; }
+
+    /**
+     * Gets how long the link is busy sending a frame
+     * @param size bytes in the frame (not including link overhead)
+     * @return microseconds
+     */
+    public long getAirtime(int size) {
+        return Math.max(1l,(1000000l * (long)(size + frameOverhead) + bytesPerSecond - 1) / (long)bytesPerSecond);
+    }
+
+    /**
+     * Gets the chance that a frame is lost (independent of any collision)
+     * @param size bytes in the frame
+     * @return 0 to 1
+     */
+    public double getLossChance(int size) {
+        if (lossPerKB <= 0d)
+            return 0d;
+        return 1d - Math.pow(1d - lossPerKB,(double)(size + frameOverhead) / 1024d);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,"%s (%dKB/s, %.1fms, %.2f%% loss per KB, %db MTU, %s)",name,bytesPerSecond/1024,
+                (double)latency/1000d,100d*lossPerKB,mtu,shared?"shared":"point-to-point");
+    }
+}
@@ -0,0 +1,549 @@
+package org.sofwerx.benchmark.sim;
+
+import org.sofwerx.notdroid.content.Context;
+import org.sofwerx.notdroid.os.Handler;
+import org.sofwerx.sqan.Config;
+import org.sofwerx.sqan.SqAnService;
+import org.sofwerx.sqan.listeners.ManetListener;
+import org.sofwerx.sqan.manet.common.ManetException;
+import org.sofwerx.sqan.manet.common.MeshState;
+import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.Status;
+import org.sofwerx.sqan.manet.common.packet.AbstractPacket;
+import org.sofwerx.sqan.manet.common.packet.DedupCache;
+import org.sofwerx.sqan.manet.common.packet.HeartbeatPacket;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.packet.RawBytesPacket;
+import org.sofwerx.sqan.manet.sdr.SdrManet;
+import org.sofwerx.sqan.util.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Discrete event simulation of a team of devices sharing one kind of link, run headless on a
+ * JVM. Devices are scattered so each hears about 6 others; every device sends heartbeats and,
+ * once those have had time to spread, unicast and broadcast traffic at random (Poisson) times.
+ *
+ * Every device runs its own SdrManet with its own MeshState (its own list of devices, routes, MPR
+ * selections, partial packets and delivered packets), which is made current while that device
+ * handles an event, so devices only know about each other from the heartbeats they actually hear.
+ * Only the radio is simulated: what the SdrManet would hand to the SDR goes out over the simulated
+ * link and what arrives goes into SdrManet.onPacketReceived, so segmenting, reassembly, relaying
+ * (MPR or flooding), duplicate and hop count checks are all the MANET's own. Heartbeats come from
+ * the SdrManet's trickle timer, checked every SqAnService.HELPER_INTERVAL as SqAnService does.
+ * ManetOps (and so its ARQ, pacing and choice of transport) needs Android to run, so traffic is
+ * sent the way ManetOps hands it to a MANET once those are done; SelectiveRepeatReport and
+ * RateControllerReport cover those. The relays for WiFi and Bluetooth live in their socket code
+ * (ClientHandler and BTSocket) and need real connections, so the WiFi and BT profiles only change
+ * how the air behaves under the same SDR MANET.
+ *
+ * On shared links a device waits while it hears someone else (with a random backoff), can't hear
+ * while it is sending and loses frames that overlap, including those from devices it can't hear
+ * itself. The same seed always gives the same layout, traffic, heartbeats and results.
+ *
+ *   ./gradlew :benchmark:report -Preport=org.sofwerx.benchmark.sim.MeshSimulator [-Pargs="50 SDR 1 60"]
+ */
+public class MeshSimulator {
+    private final static double NEIGHBORS = 6d;
+    private final static double RANGE = 1d;
+    private final static int FIRST_UUID = 1600000000;
+    private final static long SLOT = 50l; //backoff slot in microseconds
+    private final static int CONTENTION_WINDOW = 16; //backoff slots
+    private final static int MAX_QUEUED_FRAMES = 512;
+    private final static long PERIODIC_INTERVAL = 1000l * SqAnService.HELPER_INTERVAL; //how often SqAnService runs each MANET's periodic tasks
+    private final static long WARM_UP = 1000l * SqAnService.MAX_NARROW_HEARTBEAT_GAP; //time for heartbeats to spread before traffic starts
+    private final static long DRAIN_TIME = 1000000l * 10l; //time after traffic stops for packets still in flight
+
+    public enum Relay {FLOOD,MPR}
+
+    private final int nodes;
+    private final LinkProfile profile;
+    private final long seed;
+    private long duration = 1000000l * 60l;
+    private double unicastRate = 0.5d; //per device per second
+    private double broadcastRate = 0.1d; //per device per second
+    private int payloadSize = 512;
+    private Relay relay = Relay.MPR;
+
+    //state for a single run
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private Random channel;
+    private Node[] devices;
+    private HashMap<Long,Message> messages;
+    private Metrics.Histogram latencies;
+    private long now;
+    private long order;
+    private long airtime, frames, collisions, lostFrames, queueDrops, relayedFrames, heartbeats;
+    private long unicastSent, unicastDelivered, broadcastSent, broadcastDelivered, deliveredBytes;
+
+    public MeshSimulator(int nodes, LinkProfile profile, long seed) {
+        this.nodes = nodes;
+        this.profile = profile;
+        this.seed = seed;
+    }
+
+    /**
+     * @param seconds how long devices generate traffic (after the heartbeats have had time to spread)
+     */
+    public void setDuration(int seconds) { duration = 1000000l * (long)seconds; }
+
+    /**
+     * @param unicastRate unicast packets sent by each device per second
+     * @param broadcastRate broadcast packets sent by each device per second
+     * @param payloadSize bytes of data in each packet
+     */
+    public void setTraffic(double unicastRate, double broadcastRate, int payloadSize) {
+        this.unicastRate = unicastRate;
+        this.broadcastRate = broadcastRate;
+        this.payloadSize = payloadSize;
+    }
+
+    public void setRelay(Relay relay) { this.relay = relay; }
+
+    /**
+     * Runs the simulation. The MeshState and MPR relay setting in use before the run are put back
+     * afterwards
+     * @return a one line report of the results
+     */
+    public String run() {
+        final MeshState previousState = MeshState.get();
+        final boolean previousMprRelay = Config.isMprRelayEnabled();
+        try {
+            Config.setMprRelayEnabled(relay == Relay.MPR);
+            events.clear();
+            channel = new Random(seed * 31l + 7l);
+            messages = new HashMap<>();
+            latencies = new Metrics.Histogram();
+            now = 0l;
+            order = 0l;
+            airtime = frames = collisions = lostFrames = queueDrops = relayedFrames = heartbeats = 0l;
+            unicastSent = unicastDelivered = broadcastSent = broadcastDelivered = deliveredBytes = 0l;
+            final long duplicatesBefore = DedupCache.getTotalHits();
+
+            int[][] neighbors = getLayout(nodes,new Random(seed));
+            Random jitter = new Random(seed * 13l + 5l);
+            devices = new Node[nodes];
+            for (int i=0;i<nodes;i++) {
+                devices[i] = new Node(i,neighbors[i],new Random(jitter.nextLong()));
+            }
+            final long end = WARM_UP + duration + DRAIN_TIME;
+            Random random = new Random(seed * 17l + 3l);
+            schedulePeriodicTasks(random,end);
+            scheduleTraffic(random);
+
+            while (!events.isEmpty()) {
+                Event event = events.poll();
+                if (event.time > end)
+                    break;
+                now = event.time;
+                MeshState.set(event.node.state);
+                event.action.run();
+            }
+            return getReport(DedupCache.getTotalHits() - duplicatesBefore);
+        } finally {
+            MeshState.set(previousState);
+            Config.setMprRelayEnabled(previousMprRelay);
+        }
+    }
+
+    private String getReport(long duplicates) {
+        final long broadcastPossible = broadcastSent * (long)(nodes - 1);
+        return String.format(Locale.US,"%s: unicast %.1f%% delivered, broadcast %.1f%% delivered, latency p50 %.1fms p95 %.1fms p99 %.1fms, %.1fus airtime per delivered byte; %d frames, %d heartbeats, %d relayed frames, %d collisions, %d lost, %d queue drops, %d duplicates",
+                relay,percent(unicastDelivered,unicastSent),percent(broadcastDelivered,broadcastPossible),
+                (double)latencies.getPercentile(50d)/1000d,(double)latencies.getPercentile(95d)/1000d,(double)latencies.getPercentile(99d)/1000d,
+                (deliveredBytes == 0l)?0d:(double)airtime/(double)deliveredBytes,frames,heartbeats,relayedFrames,collisions,lostFrames,queueDrops,duplicates);
+    }
+
+    private static double percent(long part, long whole) {
+        if (whole == 0l)
+            return 0d;
+        return 100d * (double)part / (double)whole;
+    }
+
+    /**
+     * Starts each device's periodic tasks at a random point in the first interval, as each device
+     * starts its SqAnService at a different time
+     */
+    private void schedulePeriodicTasks(Random random, long end) {
+        for (Node node:devices) {
+            final long first = (long)(random.nextDouble() * (double)PERIODIC_INTERVAL);
+            schedule(first,node,() -> node.executePeriodicTasks(end));
+        }
+    }
+
+    /**
+     * Draws every packet the devices will send up front so the traffic is the same whatever
+     * happens on the links (e.g. when comparing relay strategies)
+     */
+    private void scheduleTraffic(Random random) {
+        for (int i=0;i<nodes;i++) {
+            final Node origin = devices[i];
+            for (int kind=0;kind<2;kind++) {
+                final boolean broadcast = (kind == 1);
+                final double rate = broadcast?broadcastRate:unicastRate;
+                if (rate <= 0d)
+                    continue;
+                long time = 0l;
+                while (true) {
+                    time += (long)(-Math.log(1d - random.nextDouble()) * 1000000d / rate);
+                    if (time >= duration)
+                        break;
+                    int destination = PacketHeader.BROADCAST_ADDRESS;
+                    if (!broadcast) {
+                        int target = random.nextInt(nodes - 1);
+                        if (target >= i)
+                            target++;
+                        destination = devices[target].uuid;
+                    }
+                    final int to = destination;
+                    schedule(WARM_UP + time,origin,() -> origin.originate(to));
+                }
+            }
+        }
+    }
+
+    private void schedule(long time, Node node, Runnable action) {
+        events.add(new Event(time,order++,node,action));
+    }
+
+    private class Node implements ManetListener {
+        private final int uuid;
+        private final int[] neighbors;
+        private final MeshState state = new MeshState();
+        private final Manet manet;
+        private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+        private boolean sending = false;
+        private boolean waiting = false;
+        private long sendingUntil = 0l;
+        private long hearingSince = 0l;
+        private long hearingUntil = 0l;
+        private Reception hearing;
+
+        private Node(int index, int[] neighbors, Random jitter) {
+            this.uuid = FIRST_UUID + index;
+            this.neighbors = neighbors;
+            MeshState.set(state);
+            SqAnDevice thisDevice = new SqAnDevice(uuid);
+            SqAnDevice.remove(thisDevice); //as Config.init(Context) does
+            state.setThisDevice(thisDevice);
+            manet = new Manet(this,jitter);
+            try {
+                manet.init();
+            } catch (ManetException ignore) { //SdrManet.init() doesn't throw
+            }
+        }
+
+        /**
+         * Checks for a heartbeat as SqAnService's periodic helper does (the rest of
+         * SdrManet.executePeriodicTasks is housekeeping on the wall clock)
+         */
+        private void executePeriodicTasks(long end) {
+            manet.burstHeartbeatIfDue(now / 1000l);
+            if (now + PERIODIC_INTERVAL <= end)
+                schedule(now + PERIODIC_INTERVAL,this,() -> executePeriodicTasks(end));
+        }
+
+        private void originate(int destination) {
+            RawBytesPacket packet = new RawBytesPacket(new PacketHeader(uuid));
+            packet.setDestination(destination);
+            packet.setData(new byte[payloadSize]);
+            messages.put(packet.getTime(),new Message(now,destination == PacketHeader.BROADCAST_ADDRESS));
+            if (destination == PacketHeader.BROADCAST_ADDRESS)
+                broadcastSent++;
+            else
+                unicastSent++;
+            try {
+                manet.send(packet);
+            } catch (ManetException ignore) { //the simulated link doesn't throw
+            }
+        }
+
+        /**
+         * Puts a frame from the SdrManet on the air
+         * @param bytes
+         */
+        private void transmit(byte[] bytes) {
+            if (PacketHeader.getOriginUUID(ByteBuffer.wrap(bytes)) != uuid)
+                relayedFrames++;
+            if (profile.isShared())
+                enqueue(bytes,PacketHeader.BROADCAST_ADDRESS);
+            else {
+                for (int neighbor:neighbors) { //point-to-point links carry a copy to each neighbor
+                    enqueue(bytes,neighbor);
+                }
+            }
+            startSending();
+        }
+
+        private void enqueue(byte[] bytes, int to) {
+            if (queue.size() >= MAX_QUEUED_FRAMES) {
+                queueDrops++;
+                return;
+            }
+            queue.add(new Frame(bytes,to));
+        }
+
+        private boolean isChannelBusy() {
+            return profile.isShared() && (hearingSince < now) && (now < hearingUntil);
+        }
+
+        private void startSending() {
+            if (sending || waiting || queue.isEmpty())
+                return;
+            if (isChannelBusy()) {
+                waiting = true;
+                schedule(hearingUntil + SLOT * (long)channel.nextInt(CONTENTION_WINDOW),this,() -> {
+                    waiting = false;
+                    startSending();
+                });
+                return;
+            }
+            final Frame frame = queue.poll();
+            final long length = profile.getAirtime(frame.bytes.length);
+            sending = true;
+            sendingUntil = now + length;
+            airtime += length;
+            frames++;
+            if (profile.isShared()) {
+                for (int neighbor:neighbors) {
+                    devices[neighbor].hear(frame,length);
+                }
+            } else
+                devices[frame.to].hear(frame,length);
+            schedule(sendingUntil,this,() -> {
+                sending = false;
+                startSending();
+            });
+        }
+
+        /**
+         * Starts hearing a frame from a neighbor
+         */
+        private void hear(Frame frame, long length) {
+            final Reception reception = new Reception(frame);
+            if (profile.isShared()) {
+                if (sendingUntil > now)
+                    reception.garbled = true; //can't hear while sending
+                if (hearingUntil > now) {
+                    collisions++;
+                    reception.garbled = true;
+                    if (hearing != null)
+                        hearing.garbled = true;
+                } else
+                    hearingSince = now;
+                if (now + length >= hearingUntil) {
+                    hearingUntil = now + length;
+                    hearing = reception;
+                }
+            }
+            schedule(now + length + profile.getLatency(),this,() -> {
+                if (reception.garbled || (channel.nextDouble() < profile.getLossChance(frame.bytes.length))) {
+                    lostFrames++;
+                    return;
+                }
+                manet.onPacketReceived(frame.bytes);
+            });
+        }
+
+        @Override
+        public void onRx(AbstractPacket packet) {
+            if (!(packet instanceof RawBytesPacket))
+                return;
+            if ((packet.getSqAnDestination() != PacketHeader.BROADCAST_ADDRESS) && (packet.getSqAnDestination() != uuid))
+                return; //only passing through
+            Message message = messages.get(packet.getTime());
+            if (message == null)
+                return;
+            latencies.record(now - message.created);
+            deliveredBytes += payloadSize;
+            if (message.broadcast)
+                broadcastDelivered++;
+            else
+                unicastDelivered++;
+        }
+
+        @Override
+        public void onStatus(Status status) {}
+
+        @Override
+        public void onTx(AbstractPacket packet) {}
+
+        @Override
+        public void onTx(byte[] payload) {}
+
+        @Override
+        public void onTxFailed(AbstractPacket packet) {}
+
+        @Override
+        public void onDevicesChanged(SqAnDevice device) {}
+
+        @Override
+        public void updateDeviceUi(SqAnDevice device) {}
+
+        @Override
+        public void onAuthenticatedOnNet() {}
+
+        @Override
+        public void onPacketDropped() {}
+
+        @Override
+        public void onHighNoise(float snr) {}
+    }
+
+    /**
+     * A device's SdrManet with the simulated link in place of the SDR
+     */
+    private class Manet extends SdrManet {
+        private final Node node;
+
+        private Manet(Node node, Random jitter) {
+            super(new Handler(),(Context)null,node,jitter); //no context so no SDR is looked for
+            this.node = node;
+        }
+
+        @Override
+        protected void transmit(byte[] bytes) { node.transmit(bytes); }
+
+        @Override
+        public void burst(AbstractPacket packet) throws ManetException {
+            if ((packet instanceof HeartbeatPacket) && (packet.getOrigin() == node.uuid))
+                heartbeats++;
+            super.burst(packet);
+        }
+
+        @Override
+        public int getMaximumPacketSize() { return profile.getMtu(); }
+
+        @Override
+        protected void burstHeartbeatIfDue(long now) { super.burstHeartbeatIfDue(now); } //so the simulation can check on its own clock
+    }
+
+    private static class Frame {
+        private final byte[] bytes;
+        private final int to; //device index or BROADCAST_ADDRESS
+
+        private Frame(byte[] bytes, int to) {
+            this.bytes = bytes;
+            this.to = to;
+        }
+    }
+
+    private static class Reception {
+        private final Frame frame;
+        private boolean garbled = false;
+
+        private Reception(Frame frame) { this.frame = frame; }
+    }
+
+    private static class Message {
+        private final long created;
+        private final boolean broadcast;
+
+        private Message(long created, boolean broadcast) {
+            this.created = created;
+            this.broadcast = broadcast;
+        }
+    }
+
+    private static class Event implements Comparable<Event> {
+        private final long time;
+        private final long order;
+        private final Node node;
+        private final Runnable action;
+
+        private Event(long time, long order, Node node, Runnable action) {
+            this.time = time;
+            this.order = order;
+            this.node = node;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time)
+                return (time < other.time)?-1:1;
+            return Long.compare(order,other.order);
+        }
+    }
+
+    /**
+     * Checks if every device can reach every other
+     */
+    private static boolean isConnected(int[][] neighbors) {
+        final int count = neighbors.length;
+        boolean[] seen = new boolean[count];
+        int[] queue = new int[count];
+        int head = 0;
+        int tail = 0;
+        seen[0] = true;
+        queue[tail++] = 0;
+        while (head < tail) {
+            for (int neighbor:neighbors[queue[head++]]) {
+                if (!seen[neighbor]) {
+                    seen[neighbor] = true;
+                    queue[tail++] = neighbor;
+                }
+            }
+        }
+        return tail == count;
+    }
+
+    /**
+     * Scatters devices over an area sized so each hears about NEIGHBORS others, retrying until every
+     * device can reach every other
+     */
+    private static int[][] getLayout(int nodes, Random random) {
+        final double side = Math.sqrt((double)nodes * Math.PI * RANGE * RANGE / NEIGHBORS);
+        while (true) {
+            double[] x = new double[nodes];
+            double[] y = new double[nodes];
+            for (int i=0;i<nodes;i++) {
+                x[i] = random.nextDouble() * side;
+                y[i] = random.nextDouble() * side;
+            }
+            int[][] neighbors = new int[nodes][];
+            for (int i=0;i<nodes;i++) {
+                int[] found = new int[nodes];
+                int count = 0;
+                for (int j=0;j<nodes;j++) {
+                    if ((i != j) && (Math.hypot(x[i]-x[j],y[i]-y[j]) <= RANGE))
+                        found[count++] = j;
+                }
+                neighbors[i] = Arrays.copyOf(found,count);
+            }
+            if (isConnected(neighbors))
+                return neighbors;
+        }
+    }
+
+    /**
+     * Runs the simulation with MPR relaying and with flooding
+     * @param argv devices, link (WiFi, BT or SDR), seed, seconds, then optionally unicast and
+     *             broadcast packets per device per second and payload size
+     */
+    public static void main(String[] argv) {
+        int nodes = (argv.length > 0)?Integer.parseInt(argv[0]):50;
+        LinkProfile profile = (argv.length > 1)?LinkProfile.valueOf(argv[1]):LinkProfile.SDR;
+        if (profile == null) {
+            System.out.println("Unknown link "+argv[1]+"; use WiFi, BT or SDR");
+            return;
+        }
+        long seed = (argv.length > 2)?Long.parseLong(argv[2]):1l;
+        int seconds = (argv.length > 3)?Integer.parseInt(argv[3]):60;
+        System.out.println(nodes+" devices over "+profile+", seed "+seed+", "+seconds+"s of traffic");
+        for (Relay relay:Relay.values()) {
+            MeshSimulator sim = new MeshSimulator(nodes,profile,seed);
+            sim.setDuration(seconds);
+            if (argv.length > 6)
+                sim.setTraffic(Double.parseDouble(argv[4]),Double.parseDouble(argv[5]),Integer.parseInt(argv[6]));
+            sim.setRelay(relay);
+            System.out.println(sim.run());
+        }
+    }
+}
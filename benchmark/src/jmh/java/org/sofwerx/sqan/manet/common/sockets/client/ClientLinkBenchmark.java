@@ -0,0 +1,112 @@
+package org.sofwerx.sqan.manet.common.sockets.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sofwerx.sqan.manet.common.sockets.Challenge;
+import org.sofwerx.sqan.manet.common.sockets.SocketChannelConfig;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * How long a sender is held up handing a packet to the Client while the far end drains the link
+ * on another thread: queued == through SocketTransceiver and ClientLink, which never wait on the
+ * socket; blocking == writing each frame from the sender's thread, as the Client used to. Whether
+ * queued frames arrive intact is checked by ClientLinkTest.
+ */
+@State(Scope.Thread)
+public class ClientLinkBenchmark {
+    private final static int SOCKET_BUFFER_SIZE = 1024 * 32;
+
+    @Param({"queued","blocking"})
+    public String mode;
+
+    @Param({"100","1000"})
+    public int payload;
+
+    private ServerSocketChannel acceptor;
+    private SocketChannel channel;
+    private SocketChannel far;
+    private Thread drain;
+    private ClientLink link;
+    private SocketTransceiver datalink;
+    private byte[] data;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setup() throws Exception {
+        acceptor = ServerSocketChannel.open();
+        acceptor.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),0));
+        channel = SocketChannel.open(acceptor.getLocalAddress());
+        channel.setOption(StandardSocketOptions.SO_SNDBUF,SOCKET_BUFFER_SIZE);
+        far = acceptor.accept();
+        ByteBuffer challenge = ByteBuffer.wrap(Challenge.generateChallenge());
+        while (challenge.hasRemaining()) {
+            far.write(challenge);
+        }
+        if ("queued".equals(mode)) {
+            datalink = new SocketTransceiver(new SocketChannelConfig((String)null,0),null);
+            link = new ClientLink(null);
+            link.start();
+            link.attach(channel,datalink);
+            while (!datalink.isReadyToWrite()) {
+                Thread.sleep(1l);
+            }
+        } else {
+            challenge.clear();
+            while (challenge.hasRemaining()) {
+                channel.read(challenge);
+            }
+            channel.write(ByteBuffer.wrap(Challenge.getResponse(null,challenge.array())));
+        }
+        drain = new Thread(() -> {
+            ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 64);
+            try {
+                while (far.read(buf) >= 0) {
+                    buf.clear();
+                }
+            } catch (IOException ignore) { //closed by tearDown
+            }
+        },"ClientLinkBenchmarkDrain");
+        drain.start();
+        data = new byte[payload];
+        frame = ByteBuffer.allocate(4 + payload);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (link != null)
+            link.stopLink();
+        channel.close();
+        far.close();
+        acceptor.close();
+        drain.join();
+    }
+
+    @Benchmark
+    public boolean send() throws IOException {
+        if (datalink != null) {
+            while (datalink.isCongested()) {
+                Thread.yield(); //let the link catch up rather than measuring refusals
+            }
+            return datalink.queueFrame(data,null,null);
+        }
+        frame.clear();
+        frame.putInt(payload);
+        frame.put(data);
+        frame.flip();
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,148 @@
+package org.sofwerx.sqan.manet.common.sockets.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sofwerx.sqan.manet.common.MeshState;
+import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.sockets.Challenge;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Relays packets from one client to another through an IoLoop on localhost, the way the Server
+ * does once it has accepted them. The Server itself runs on an Android HandlerThread, so this
+ * drives its IoLoop and ClientHandlers directly (hence the package). Whether every packet arrives
+ * is checked by ClientRelayTest; this measures the relay between one pair of clients, and
+ * ClientRelayReport measures it with many clients at once.
+ */
+@State(Scope.Thread)
+public class ClientRelayBenchmark {
+    private final static int SENDER_UUID = 2001;
+    private final static int RECEIVER_UUID = 2002;
+    private final static byte PACKET_TYPE_RAW = 0b00000010;
+    private final static int BATCH = 32;
+
+    @Param({"100","1000"})
+    public int payload;
+
+    private IoLoop loop;
+    private ServerSocketChannel server;
+    private SocketChannel sender;
+    private SocketChannel receiver;
+    private ByteBuffer frame;
+    private ByteBuffer batch;
+    private ByteBuffer in;
+    private long sequence = 0l;
+
+    @Setup
+    public void setup() throws Exception {
+        if (MeshState.get().getThisDevice() == null)
+            MeshState.get().setThisDevice(new SqAnDevice(1)); //normally set by Config.init(Context)
+        loop = new IoLoop(0);
+        loop.start();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),0));
+        sender = connect(SENDER_UUID);
+        receiver = connect(RECEIVER_UUID);
+        Thread.sleep(250l); //give the loop time to learn which client is which
+        frame = ByteBuffer.allocate(4 + PacketHeader.getSize() + payload);
+        batch = ByteBuffer.allocate(frame.capacity() * BATCH);
+        in = ByteBuffer.allocate(frame.capacity() * BATCH);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sender.close();
+        receiver.close();
+        server.close();
+        loop.close();
+        ClientHandler.clear();
+    }
+
+    private SocketChannel connect(int uuid) throws IOException {
+        SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+        channel.setOption(StandardSocketOptions.TCP_NODELAY,Boolean.TRUE);
+        SocketChannel accepted = server.accept();
+        accepted.configureBlocking(false);
+        accepted.setOption(StandardSocketOptions.TCP_NODELAY,Boolean.TRUE);
+        try {
+            loop.register(new ClientHandler(accepted,null,null));
+        } catch (BlacklistException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer challenge = ByteBuffer.allocate(Challenge.CHALLENGE_LENGTH);
+        readFully(channel,challenge);
+        writeFully(channel,ByteBuffer.wrap(Challenge.getResponse(null,challenge.array())));
+        //a packet addressed to itself lets the loop learn which client this is
+        writeFully(channel,buildPacket(ByteBuffer.allocate(4 + PacketHeader.getSize() + 8),uuid,uuid));
+        return channel;
+    }
+
+    private ByteBuffer buildPacket(ByteBuffer frame, int origin, int destination) {
+        frame.clear();
+        frame.putInt(frame.capacity() - 4);
+        frame.put(PACKET_TYPE_RAW);
+        frame.put((byte)0); //hop count
+        frame.putInt(origin);
+        frame.putInt(destination);
+        frame.putLong(++sequence); //the time field doubles as the packet's identifier so none are taken as duplicates
+        frame.position(frame.capacity());
+        frame.flip();
+        return frame;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0)
+                throw new EOFException();
+        }
+    }
+
+    /**
+     * One packet at a time, so this is the relay latency
+     */
+    @Benchmark
+    public ByteBuffer single() throws IOException {
+        writeFully(sender,buildPacket(frame,SENDER_UUID,RECEIVER_UUID));
+        in.clear();
+        in.limit(frame.capacity());
+        readFully(receiver,in);
+        return in;
+    }
+
+    /**
+     * Several packets written at once, which the loop reads in one readiness
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public ByteBuffer batch() throws IOException {
+        batch.clear();
+        for (int i=0;i<BATCH;i++) {
+            batch.put(buildPacket(frame,SENDER_UUID,RECEIVER_UUID));
+        }
+        batch.flip();
+        writeFully(sender,batch);
+        in.clear();
+        readFully(receiver,in);
+        return in;
+    }
+}
@@ -0,0 +1,213 @@
+package org.sofwerx.sqan.manet.common.sockets.server;
+
+import org.sofwerx.sqan.manet.common.MeshState;
+import org.sofwerx.sqan.manet.common.SqAnDevice;
+import org.sofwerx.sqan.manet.common.packet.PacketHeader;
+import org.sofwerx.sqan.manet.common.sockets.Challenge;
+import org.sofwerx.sqan.util.Metrics;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the relay with many clients on localhost at once. Each client streams packets to the
+ * next client (so every packet is relayed) while reading what the one before it sends; clients are
+ * spread over one IoLoop per core as the Server does. The relay latency of every packet is
+ * recorded to get its distribution and the aggregate throughput is reported. Clients send as fast
+ * as the relay takes their packets, so the latency includes queuing at that throughput.
+ * ClientRelayBenchmark measures a single client pair.
+ *
+ *   ./gradlew :benchmark:report -Preport=org.sofwerx.sqan.manet.common.sockets.server.ClientRelayReport [-Pargs="clients packets payload"]
+ */
+public class ClientRelayReport {
+    private final static int SERVER_UUID = 1;
+    private final static int FIRST_CLIENT_UUID = 1000;
+    private final static byte PACKET_TYPE_RAW = 0b00000010;
+    private final static int MAX_IO_LOOPS = 4; //as the Server
+    private final static long TIME_TO_LEARN_CLIENTS = 500l;
+    private final static long TIMEOUT = 1000l * 60l;
+    private final static int DEFAULT_CLIENTS = 50;
+    private final static int DEFAULT_PACKETS = 2000;
+    private final static int DEFAULT_PAYLOAD = 200;
+
+    /**
+     * @param args number of clients, packets each client sends and payload bytes per packet
+     *             (defaults to DEFAULT_CLIENTS, DEFAULT_PACKETS and DEFAULT_PAYLOAD)
+     */
+    public static void main(String[] args) throws Exception {
+        final int clients = (args.length > 0)?Integer.parseInt(args[0]):DEFAULT_CLIENTS;
+        final int packets = (args.length > 1)?Integer.parseInt(args[1]):DEFAULT_PACKETS;
+        final int payload = (args.length > 2)?Integer.parseInt(args[2]):DEFAULT_PAYLOAD;
+        if (MeshState.get().getThisDevice() == null)
+            MeshState.get().setThisDevice(new SqAnDevice(SERVER_UUID)); //normally set by Config.init(Context)
+        System.out.print(run(clients,packets,payload,TIMEOUT));
+    }
+
+    /**
+     * Runs the clients
+     * @param clientCount number of clients
+     * @param packetsPerClient number of packets each client sends
+     * @param payloadSize bytes of payload per packet (at least 8)
+     * @param timeout max time (ms) to wait for the packets to arrive
+     * @return a report of the results
+     */
+    public static String run(final int clientCount, final int packetsPerClient, int payloadSize, long timeout) throws IOException, InterruptedException {
+        final int packetSize = PacketHeader.getSize() + Math.max(8,payloadSize);
+        final IoLoop[] loops = new IoLoop[Math.max(1,Math.min(MAX_IO_LOOPS,Runtime.getRuntime().availableProcessors()))];
+        for (int i=0;i<loops.length;i++) {
+            loops[i] = new IoLoop(i);
+            loops[i].start();
+        }
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),0));
+        SocketChannel[] channels = new SocketChannel[clientCount];
+        try {
+            for (int i=0;i<clientCount;i++) {
+                channels[i] = connect(server,loops[i % loops.length],FIRST_CLIENT_UUID + i,packetSize);
+            }
+            Thread.sleep(TIME_TO_LEARN_CLIENTS);
+
+            final Metrics.Histogram latencies = new Metrics.Histogram(); //microseconds
+            final AtomicLong bytesReceived = new AtomicLong(0l);
+            final int[] received = new int[clientCount];
+            Thread[] threads = new Thread[clientCount * 2];
+            final long start = System.nanoTime();
+            for (int i=0;i<clientCount;i++) {
+                final int client = i;
+                final SocketChannel channel = channels[i];
+                threads[i*2] = new Thread(() -> {
+                    ByteBuffer frame = ByteBuffer.allocate(4 + packetSize);
+                    final int origin = FIRST_CLIENT_UUID + client;
+                    final int destination = FIRST_CLIENT_UUID + ((client + 1) % clientCount);
+                    try {
+                        for (int p=1;p<=packetsPerClient;p++) {
+                            writeFully(channel,buildPacket(frame,origin,destination,p,System.nanoTime()));
+                        }
+                    } catch (IOException ignore) {
+                    }
+                },"ReportTx"+i);
+                threads[i*2+1] = new Thread(() -> {
+                    ByteBuffer size = ByteBuffer.allocate(4);
+                    ByteBuffer packet = ByteBuffer.allocate(packetSize);
+                    final int uuid = FIRST_CLIENT_UUID + client;
+                    try {
+                        while (received[client] < packetsPerClient) {
+                            size.clear();
+                            readFully(channel,size);
+                            final int length = size.getInt(0);
+                            if (length > packet.capacity())
+                                packet = ByteBuffer.allocate(length);
+                            packet.clear();
+                            packet.limit(length);
+                            readFully(channel,packet);
+                            packet.flip();
+                            if ((length >= packetSize) && (PacketHeader.getDestination(packet) == uuid)) {
+                                latencies.record((System.nanoTime() - packet.getLong(PacketHeader.getSize())) / 1000l);
+                                bytesReceived.addAndGet(length);
+                                received[client]++;
+                            }
+                        }
+                    } catch (IOException ignore) {
+                    }
+                },"ReportRx"+i);
+            }
+            for (Thread thread:threads) {
+                thread.start();
+            }
+            final long waitUntil = System.currentTimeMillis() + timeout;
+            for (Thread thread:threads) {
+                thread.join(Math.max(1l,waitUntil - System.currentTimeMillis()));
+            }
+            final long elapsed = System.nanoTime() - start;
+
+            final long delivered = latencies.getCount();
+            final float seconds = ((float)elapsed)/1000000000f;
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US,"%d clients on %d loops, %d x %db packets each%n",clientCount,loops.length,packetsPerClient,packetSize));
+            sb.append(String.format(Locale.US,"delivered %d of %d in %.2fs%n",delivered,(long)clientCount * (long)packetsPerClient,seconds));
+            sb.append(String.format(Locale.US,"throughput %.2f MB/s, %.0f packets/s%n",((float)bytesReceived.get())/(1024f*1024f)/seconds,((float)delivered)/seconds));
+            if (delivered > 0l)
+                sb.append(String.format(Locale.US,"relay latency mean %.2fms p50 %.2fms p90 %.2fms p99 %.2fms p99.9 %.2fms%n",
+                        ((float)latencies.getSum())/((float)delivered)/1000f,toMs(latencies.getPercentile(50d)),toMs(latencies.getPercentile(90d)),
+                        toMs(latencies.getPercentile(99d)),toMs(latencies.getPercentile(99.9d))));
+            return sb.toString();
+        } finally {
+            for (SocketChannel channel:channels) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+            server.close();
+            for (IoLoop loop:loops) {
+                loop.close();
+            }
+            ClientHandler.clear();
+        }
+    }
+
+    private static float toMs(long micros) { return ((float)micros)/1000f; }
+
+    /**
+     * Connects a client, answers the challenge and sends a packet addressed to itself so the loop
+     * learns which client this is
+     */
+    private static SocketChannel connect(ServerSocketChannel server, IoLoop loop, int uuid, int packetSize) throws IOException {
+        SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+        channel.setOption(StandardSocketOptions.TCP_NODELAY,Boolean.TRUE);
+        SocketChannel accepted = server.accept();
+        accepted.configureBlocking(false);
+        accepted.setOption(StandardSocketOptions.TCP_NODELAY,Boolean.TRUE);
+        try {
+            loop.register(new ClientHandler(accepted,null,null));
+        } catch (BlacklistException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer challenge = ByteBuffer.allocate(Challenge.CHALLENGE_LENGTH);
+        readFully(channel,challenge);
+        writeFully(channel,ByteBuffer.wrap(Challenge.getResponse(null,challenge.array())));
+        writeFully(channel,buildPacket(ByteBuffer.allocate(4 + packetSize),uuid,uuid,0l,0l));
+        return channel;
+    }
+
+    /**
+     * Builds a framed packet (length prefix followed by the packet) with the send time as the
+     * start of its payload
+     */
+    private static ByteBuffer buildPacket(ByteBuffer frame, int origin, int destination, long sequence, long sent) {
+        frame.clear();
+        frame.putInt(frame.capacity() - 4);
+        frame.put(PACKET_TYPE_RAW);
+        frame.put((byte)0); //hop count
+        frame.putInt(origin);
+        frame.putInt(destination);
+        frame.putLong(sequence); //the time field doubles as the packet's identifier
+        frame.putLong(sent);
+        frame.position(frame.capacity());
+        frame.flip();
+        return frame;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0)
+                throw new EOFException();
+        }
+    }
+}
@@ -232,6 +232,97 @@ unsigned char hexToBin (char hex[]) {
 	return result | HexChar(hex[1]);
 }
 
+/**
+ * Framed serial format (-framed), matching SerialLinkFormat.java in the SqAN app: a COBS variant
+ * restricted to the 223 byte values that pass through the serial link unaltered (everything but
+ * 0 to 31 and 127). A burst is split into runs that each end with a forbidden byte (plus a phantom
+ * 0 at the end of the burst) and each run is sent as a code byte followed by the run's allowed
+ * bytes. A code either means L (0 to 5) allowed bytes then forbidden value f, or L (6 to 30)
+ * allowed bytes and no forbidden byte. Each burst ends with a new line.
+ **/
+#define FRAME_FORBIDDEN_VALUES 33
+#define FRAME_MAX_SHORT_RUN 5
+#define FRAME_SHORT_RUN_CODES ((FRAME_MAX_SHORT_RUN + 1) * FRAME_FORBIDDEN_VALUES)
+#define FRAME_MIN_LONG_RUN (FRAME_MAX_SHORT_RUN + 1)
+#define FRAME_MAX_LONG_RUN (FRAME_MIN_LONG_RUN + 223 - FRAME_SHORT_RUN_CODES - 1)
+#define FRAME_MAX_ENCODED_SIZE(len) ((len) + 1 + ((len) + 1 + FRAME_MIN_LONG_RUN) / (FRAME_MIN_LONG_RUN + 1) + 1)
+
+static unsigned char frameCodeToByte(int code) {
+	return (unsigned char)((code < 95) ? (code + 32) : (code + 33));
+}
+
+//gets the code sent by an allowed byte (or -1 if the byte is forbidden)
+static int frameByteToCode(unsigned char b) {
+	if ((b < 32) || (b == 127))
+		return -1;
+	return (b < 127) ? (b - 32) : (b - 33);
+}
+
+//gets the index of a forbidden byte (or -1 if the byte is allowed)
+static int frameForbiddenIndex(unsigned char b) {
+	if (b < 32)
+		return b;
+	if (b == 127)
+		return 32;
+	return -1;
+}
+
+//encodes len bytes as a burst (including the new line) into out, which must hold FRAME_MAX_ENCODED_SIZE(len) bytes; returns the bytes written
+static int frameEncode(const unsigned char *in, int len, unsigned char *out) {
+	int outIndex = 0;
+	int runStart = 0;
+	for (int i=0;i<=len;i++) {
+		int forbidden = (i == len) ? 0 : frameForbiddenIndex(in[i]); //the burst ends with a phantom 0
+		if (forbidden < 0)
+			continue;
+		int run = i - runStart;
+		while (run > FRAME_MAX_SHORT_RUN) {
+			int longRun = (run < FRAME_MAX_LONG_RUN) ? run : FRAME_MAX_LONG_RUN;
+			out[outIndex++] = frameCodeToByte(FRAME_SHORT_RUN_CODES + longRun - FRAME_MIN_LONG_RUN);
+			memcpy(out + outIndex, in + runStart, longRun);
+			outIndex += longRun;
+			runStart += longRun;
+			run -= longRun;
+		}
+		out[outIndex++] = frameCodeToByte(run * FRAME_FORBIDDEN_VALUES + forbidden);
+		memcpy(out + outIndex, in + runStart, run);
+		outIndex += run;
+		runStart = i + 1;
+	}
+	out[outIndex++] = '\n';
+	return outIndex;
+}
+
+//decodes a burst (without its new line) into out, which holds maxOut bytes; returns the bytes decoded or -1 if the burst is not valid
+static int frameDecode(const unsigned char *in, int len, unsigned char *out, int maxOut) {
+	int outIndex = 0;
+	int i = 0;
+	int lastForbidden = -1;
+	while (i < len) {
+		int code = frameByteToCode(in[i++]);
+		int run;
+		if (code < 0)
+			return -1;
+		if (code < FRAME_SHORT_RUN_CODES) {
+			run = code / FRAME_FORBIDDEN_VALUES;
+			lastForbidden = code % FRAME_FORBIDDEN_VALUES;
+		} else {
+			run = code - FRAME_SHORT_RUN_CODES + FRAME_MIN_LONG_RUN;
+			lastForbidden = -1;
+		}
+		if ((i + run > len) || (outIndex + run + ((lastForbidden >= 0) ? 1 : 0) > maxOut))
+			return -1;
+		memcpy(out + outIndex, in + i, run);
+		i += run;
+		outIndex += run;
+		if (lastForbidden >= 0)
+			out[outIndex++] = (lastForbidden == 32) ? 127 : (unsigned char)lastForbidden;
+	}
+	if (lastForbidden != 0)
+		return -1; //every burst ends with the phantom 0
+	return outIndex - 1;
+}
+
 int ad9361_set_trx_fir_enable(struct iio_device *dev, int enable)
 {
 	int ret = iio_device_attr_write_bool(dev,
@@ -422,6 +513,7 @@ int main (int argc, char **argv){
 	char dataout[512]; //the received bytes to report back to the Android
 	int dataoutIndex = 0;
 	const int SIZE_OF_DATAOUT = (int)(sizeof(dataout)/sizeof(dataout[0]))-1;
+	unsigned char framedout[FRAME_MAX_ENCODED_SIZE(512)]; //dataout in the framed format
 	bool shortHeader = false;
 	int bitIndex = 0;
 	bool byteTiming = false;
@@ -440,6 +532,7 @@ int main (int argc, char **argv){
 	bool binIn = false;
 	bool inNonBlock = true;
 	bool binOut = false;
+	bool framedLink = false; //true == binary input and output use the framed format rather than escaped bytes
 	bool firstCycle = true;
 	bool onboardProcessing = true;
 	bool bufLoopback = false;
@@ -505,6 +598,9 @@ int main (int argc, char **argv){
 			} else if (strcmp("-binO",argv[j]) == 0) {
 				binOut = true;
 				verbose = false;
+			} else if (strcmp("-framed",argv[j]) == 0) {
+				framedLink = true;
+				printf("m Framed link\n");
 			} else if (strcmp("-block",argv[j]) == 0) {
 				inNonBlock = false;
 			} else if (strcmp("-bufferLoopback",argv[j]) == 0) {
@@ -554,6 +650,7 @@ int main (int argc, char **argv){
 				printf(" -messageRepeat = Designates number of times to repeat packet (if this makes the total to be transmitted larger than the buffer size, then the packet will only be repeated as often as fits in the buffer).\n");
 				printf(" -binI = switches SqANDR to modified binary input across the USB connection; -nonBlock is also invoked automatically\n");
 				printf(" -binO = switches SqANDR to modified binary output across the USB connection; -minComms is also invoked automatically\n");
+				printf(" -framed = uses the framed format (a COBS variant) rather than escaped bytes for -binI and -binO, which adds less overhead\n");
 				printf(" -block = switches input to blocking mode\n");
 				printf(" -shortHeader = Use short byte header\n");
 				printf(" -perLast = sets the percent of last amplitude (0 to 100) to consider when looking at a change in bit value\n");
@@ -913,7 +1010,7 @@ int main (int argc, char **argv){
 							//the work around is to use 64 as a special byte. When 64 is read, then 64 is dropped and the 
 							//next byte read is read as the XOR of the value
 							
-							if ((tempByte == CHAR_127) || (tempByte == BYTE_64) || ((tempByte & LESS_THAN_32) == tempByte)) {
+							if (!framedLink && ((tempByte == CHAR_127) || (tempByte == BYTE_64) || ((tempByte & LESS_THAN_32) == tempByte))) {
 								dataout[dataoutIndex] = BYTE_64;
 								dataoutIndex++;
 								tempByte = tempByte ^ CHAR_255;
@@ -993,7 +1090,10 @@ int main (int argc, char **argv){
 				/**
 				* Output as pure binary
 				**/
-				fwrite(dataout,1,dataoutIndex,stdout);
+				if (framedLink)
+					fwrite(framedout,1,frameEncode((unsigned char *)dataout,dataoutIndex,framedout),stdout);
+				else
+					fwrite(dataout,1,dataoutIndex,stdout);
 				fflush(stdout);
 			} else {
 				/**
@@ -1036,6 +1136,13 @@ int main (int argc, char **argv){
 						printf("m Shutdown commnd received...\n");
 						stop = true;
 						break;
+					} else if (framedLink) {
+						index = frameDecode(tempbytes,bytesInput,bytein,MAX_DATA_IN);
+						if (index < 0) {
+							printf("m Dropped malformed input\n");
+							index = 0;
+						}
+						bytesInput = index;
 					} else {
 						for (int i=0;i<bytesInput;i++) {
 							if (tempbytes[i] == BYTE_64) {// this signals that the next character is a special character so this character should be ignored
@@ -1186,9 +1293,15 @@ int main (int argc, char **argv){
 					SEND_NOTIFICATION[SEND_NOTIFICATION_LEN-1] = (char)bytesInput;
 				else
 					SEND_NOTIFICATION[SEND_NOTIFICATION_LEN-1] = (char)255;
-				fwrite(SEND_NOTIFICATION,1,SEND_NOTIFICATION_LEN,stdout);
+				if (framedLink && onboardProcessing) //framed like any other burst so it can't run into one
+					fwrite(framedout,1,frameEncode((unsigned char *)SEND_NOTIFICATION,SEND_NOTIFICATION_LEN,framedout),stdout);
+				else
+					fwrite(SEND_NOTIFICATION,1,SEND_NOTIFICATION_LEN,stdout);
 			} else {
-				fwrite(NO_DATA_HEARTBEAT,1,NO_DATA_HEARTBEAT_LEN,stdout);
+				if (framedLink && onboardProcessing)
+					fwrite(framedout,1,frameEncode((const unsigned char *)NO_DATA_HEARTBEAT,NO_DATA_HEARTBEAT_LEN,framedout),stdout);
+				else
+					fwrite(NO_DATA_HEARTBEAT,1,NO_DATA_HEARTBEAT_LEN,stdout);
 			}
 			fflush(stdout);
 		}